@@ -86,6 +86,8 @@ import com.cloud.agent.api.GetHostStatsAnswer;
 import com.cloud.agent.api.GetHostStatsCommand;
 import com.cloud.agent.api.GetStorageStatsAnswer;
 import com.cloud.agent.api.GetStorageStatsCommand;
+import com.cloud.agent.api.GetVolumeStatsAnswer;
+import com.cloud.agent.api.GetVolumeStatsCommand;
 import com.cloud.agent.api.GetVmStatsAnswer;
 import com.cloud.agent.api.GetVmStatsCommand;
 import com.cloud.agent.api.GetVncPortAnswer;
@@ -123,8 +125,10 @@ import com.cloud.agent.api.StartupRoutingCommand;
 import com.cloud.agent.api.StartupStorageCommand;
 import com.cloud.agent.api.StopAnswer;
 import com.cloud.agent.api.StopCommand;
+import com.cloud.agent.api.StoragePoolStatsEntry;
 import com.cloud.agent.api.UpgradeSnapshotCommand;
 import com.cloud.agent.api.VmStatsEntry;
+import com.cloud.agent.api.VolumeStatsEntry;
 import com.cloud.agent.api.check.CheckSshAnswer;
 import com.cloud.agent.api.check.CheckSshCommand;
 import com.cloud.agent.api.proxy.CheckConsoleProxyLoadCommand;
@@ -165,6 +169,7 @@ import com.cloud.agent.storage.KVMPhysicalDisk;
 import com.cloud.agent.storage.KVMPhysicalDisk.PhysicalDiskFormat;
 import com.cloud.agent.storage.KVMStoragePool;
 import com.cloud.agent.storage.KVMStoragePoolManager;
+import com.cloud.agent.storage.LinkedCloneManager;
 import com.cloud.dc.Vlan;
 import com.cloud.exception.InternalErrorException;
 import com.cloud.host.Host.Type;
@@ -672,7 +677,17 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 		Thread ha = new Thread(_monitor);
 		ha.start();
 
-		_storagePoolMgr = new KVMStoragePoolManager(_storage, _monitor);
+		value = (String) params.get("kvm.clone.mode");
+		boolean linkedClones = !"full".equalsIgnoreCase(value);
+		value = (String) params.get("kvm.clone.flatten");
+		LinkedCloneManager.FlattenPolicy flattenPolicy = "ondelete"
+				.equalsIgnoreCase(value) ? LinkedCloneManager.FlattenPolicy.OnBaseDelete
+				: LinkedCloneManager.FlattenPolicy.Never;
+
+		value = (String) params.get("storage.stats.freshness");
+		_storagePoolMgr = new KVMStoragePoolManager(_storage, _monitor,
+				NumbersUtil.parseLong(value, 60) * 1000, new LinkedCloneManager(
+						linkedClones, flattenPolicy, _cmdsTimeout));
 
 		_sysvmISOPath = (String) params.get("systemvm.iso.path");
 		if (_sysvmISOPath == null) {
@@ -979,6 +994,8 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 				return execute((CreatePrivateTemplateFromVolumeCommand) cmd);
 			} else if (cmd instanceof GetStorageStatsCommand) {
 				return execute((GetStorageStatsCommand) cmd);
+			} else if (cmd instanceof GetVolumeStatsCommand) {
+				return execute((GetVolumeStatsCommand) cmd);
 			} else if (cmd instanceof ManageSnapshotCommand) {
 				return execute((ManageSnapshotCommand) cmd);
 			} else if (cmd instanceof BackupSnapshotCommand) {
@@ -1173,7 +1190,12 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 		try {
 			KVMStoragePool pool = _storagePoolMgr.getStoragePool(vol
 					.getPoolUuid());
-			pool.deletePhysicalDisk(vol.getPath());
+			if (vol.getType() == null) {
+				// templates on primary storage are destroyed without a volume type
+				pool.deleteTemplateDisk(vol.getPath());
+			} else {
+				pool.deletePhysicalDisk(vol.getPath());
+			}
 
 			return new Answer(cmd, true, "Success");
 		} catch (CloudRuntimeException e) {
@@ -1619,6 +1641,24 @@ public class LibvirtComputingResource extends ServerResourceBase implements
 		}
 	}
 
+	protected GetVolumeStatsAnswer execute(final GetVolumeStatsCommand cmd) {
+		HashMap<String, StoragePoolStatsEntry> poolStats = new HashMap<String, StoragePoolStatsEntry>();
+		HashMap<String, VolumeStatsEntry> volumeStats = new HashMap<String, VolumeStatsEntry>();
+		for (String poolUuid : cmd.getPoolUuids()) {
+			try {
+				KVMStoragePool sp = _storagePoolMgr.getStoragePool(poolUuid);
+				poolStats.put(poolUuid, new StoragePoolStatsEntry(sp.getCapacity(), sp.getUsed()));
+				List<String> volumes = cmd.getVolumePaths().get(poolUuid);
+				if (volumes != null && !volumes.isEmpty()) {
+					volumeStats.putAll(_storagePoolMgr.getVolumeStats(sp, volumes));
+				}
+			} catch (CloudRuntimeException e) {
+				s_logger.debug("Unable to get stats of storage pool " + poolUuid + ": " + e.toString());
+			}
+		}
+		return new GetVolumeStatsAnswer(cmd, poolStats, volumeStats, _storagePoolMgr.getPoolRefreshCount());
+	}
+
 	protected CreatePrivateTemplateAnswer execute(
 			CreatePrivateTemplateFromVolumeCommand cmd) {
 		String secondaryStorageURL = cmd.getSecondaryStorageUrl();
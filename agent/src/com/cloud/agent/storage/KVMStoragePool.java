@@ -27,6 +27,8 @@ public interface KVMStoragePool {
 
 	public boolean deletePhysicalDisk(String uuid);
 
+	public boolean deleteTemplateDisk(String uuid);
+
 	public List<KVMPhysicalDisk> listPhysicalDisks();
 
 	public String getUuid();
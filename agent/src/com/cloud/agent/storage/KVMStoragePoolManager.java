@@ -12,9 +12,11 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.agent.storage;
 
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import com.cloud.agent.api.VolumeStatsEntry;
 import com.cloud.agent.resource.computing.KVMHABase;
 import com.cloud.agent.resource.computing.KVMHABase.PoolType;
 import com.cloud.agent.resource.computing.KVMHAMonitor;
@@ -23,7 +25,7 @@ import com.cloud.storage.Storage.StoragePoolType;
 import com.cloud.storage.StorageLayer;
 
 public class KVMStoragePoolManager {
-	private StorageAdaptor _storageAdaptor;
+	private LibvirtStorageAdaptor _storageAdaptor;
 	private KVMHAMonitor _haMonitor;
 	private final Map<String, Object> _storagePools = new ConcurrentHashMap<String, Object>();
 
@@ -40,6 +42,16 @@ public class KVMStoragePoolManager {
 		this._haMonitor = monitor;
 	}
 
+	/**
+	 * @param statsFreshness milliseconds storage pool and volume stats are reused for
+	 * @param linkedClones creates disks from templates on file based pools
+	 */
+	public KVMStoragePoolManager(StorageLayer storagelayer, KVMHAMonitor monitor, long statsFreshness,
+			LinkedCloneManager linkedClones) {
+		this._storageAdaptor = new LibvirtStorageAdaptor(storagelayer, statsFreshness, linkedClones);
+		this._haMonitor = monitor;
+	}
+
 	public KVMStoragePool getStoragePool(String uuid) {
 		return this._storageAdaptor.getStoragePool(uuid);
 	}
@@ -103,4 +115,12 @@ public class KVMStoragePoolManager {
 	public KVMPhysicalDisk getPhysicalDiskFromUrl(String url) {
 		return this._storageAdaptor.getPhysicalDiskFromURI(url);
 	}
+
+	public Map<String, VolumeStatsEntry> getVolumeStats(KVMStoragePool pool, List<String> volumeNames) {
+		return this._storageAdaptor.getVolumeStats(pool, volumeNames);
+	}
+
+	public long getPoolRefreshCount() {
+		return this._storageAdaptor.getPoolRefreshCount();
+	}
 }
@@ -16,17 +16,23 @@ import java.io.File;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
 import org.apache.log4j.Logger;
 import org.libvirt.Connect;
 import org.libvirt.LibvirtException;
 import org.libvirt.StoragePool;
 import org.libvirt.StoragePoolInfo;
 import org.libvirt.StorageVol;
+import org.libvirt.StorageVolInfo;
 import org.libvirt.StoragePoolInfo.StoragePoolState;
 
 import com.cloud.agent.api.ManageSnapshotCommand;
+import com.cloud.agent.api.VolumeStatsEntry;
 import com.cloud.agent.resource.computing.LibvirtConnection;
 import com.cloud.agent.resource.computing.LibvirtStoragePoolDef;
 import com.cloud.agent.resource.computing.LibvirtStoragePoolXMLParser;
@@ -38,6 +44,7 @@ import com.cloud.agent.storage.KVMPhysicalDisk.PhysicalDiskFormat;
 import com.cloud.exception.InternalErrorException;
 import com.cloud.storage.Storage.StoragePoolType;
 import com.cloud.storage.StorageLayer;
+import com.cloud.utils.LRUCache;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.script.OutputInterpreter;
 import com.cloud.utils.script.Script;
@@ -48,11 +55,31 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
 	private StorageLayer _storageLayer;
 	private String _mountPoint = "/mnt";
 	private String _manageSnapshotPath;
+	private final AtomicLong _poolRefreshCount = new AtomicLong();
+	// pool and volume stats are served from here until they are older than the stats freshness
+	private final LRUCache<String, long[]> _poolStats;
+	private final LRUCache<String, VolumeStatsEntry> _volumeStats;
+	private final LRUCache<String, Boolean> _recentlyRefreshed;
+	private final LinkedCloneManager _linkedClones;
 
 	public LibvirtStorageAdaptor(StorageLayer storage) {
+		this(storage, 60000L, new LinkedCloneManager(true,
+				LinkedCloneManager.FlattenPolicy.Never, 7200 * 1000));
+	}
+
+	/**
+	 * @param statsFreshness milliseconds pool and volume stats are reused for
+	 * @param linkedClones creates disks from templates on file based pools
+	 */
+	public LibvirtStorageAdaptor(StorageLayer storage, long statsFreshness,
+			LinkedCloneManager linkedClones) {
 		_storageLayer = storage;
+		_linkedClones = linkedClones;
 		_manageSnapshotPath = Script.findScript("scripts/storage/qcow2/",
 				"managesnapshot.sh");
+		_poolStats = new LRUCache<String, long[]>(1024, statsFreshness);
+		_volumeStats = new LRUCache<String, VolumeStatsEntry>(65536, statsFreshness);
+		_recentlyRefreshed = new LRUCache<String, Boolean>(1024, statsFreshness);
 	}
 
 	@Override
@@ -172,12 +199,65 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
 		try {
 			synchronized (getStoragePool(pool.getUUIDString())) {
 				pool.refresh(0);
+				_poolRefreshCount.incrementAndGet();
+				_recentlyRefreshed.put(pool.getUUIDString(), Boolean.TRUE);
 			}
 		} catch (LibvirtException e) {
 
 		}
 	}
 
+	/**
+	 * @return times a storage pool has been rescanned by libvirt
+	 */
+	public long getPoolRefreshCount() {
+		return _poolRefreshCount.get();
+	}
+
+	/**
+	 * Reports the allocation and capacity of volumes in a pool.  Stats still
+	 * fresh are not asked of libvirt again, and the pool is rescanned at most
+	 * once within the freshness for volumes libvirt does not know about yet.
+	 * 
+	 * @return stats by volume name, volumes that cannot be found are left out
+	 */
+	public Map<String, VolumeStatsEntry> getVolumeStats(KVMStoragePool pool,
+			List<String> volumeNames) {
+		Map<String, VolumeStatsEntry> stats = new HashMap<String, VolumeStatsEntry>();
+		StoragePool virtPool = ((LibvirtStoragePool) pool).getPool();
+		List<String> missing = new ArrayList<String>();
+		for (String name : volumeNames) {
+			VolumeStatsEntry entry = _volumeStats.get(pool.getUuid() + "/" + name);
+			if (entry != null) {
+				stats.put(name, entry);
+			} else if (!lookupVolumeStats(virtPool, pool.getUuid(), name, stats)) {
+				missing.add(name);
+			}
+		}
+
+		if (!missing.isEmpty() && _recentlyRefreshed.get(pool.getUuid()) == null) {
+			storagePoolRefresh(virtPool);
+			for (String name : missing) {
+				lookupVolumeStats(virtPool, pool.getUuid(), name, stats);
+			}
+		}
+		return stats;
+	}
+
+	private boolean lookupVolumeStats(StoragePool virtPool, String poolUuid,
+			String name, Map<String, VolumeStatsEntry> stats) {
+		try {
+			StorageVol vol = virtPool.storageVolLookupByName(name);
+			StorageVolInfo info = vol.getInfo();
+			VolumeStatsEntry entry = new VolumeStatsEntry(info.allocation, info.capacity);
+			_volumeStats.put(poolUuid + "/" + name, entry);
+			stats.put(name, entry);
+			return true;
+		} catch (LibvirtException e) {
+			return false;
+		}
+	}
+
 	private StoragePool createNfsStoragePool(Connect conn, String uuid,
 			String host, String path) {
 		String targetPath = _mountPoint + File.separator + uuid;
@@ -385,6 +465,13 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
 	}
 
 	private void getStats(LibvirtStoragePool pool) {
+		long[] cached = _poolStats.get(pool.getUuid());
+		if (cached != null) {
+			pool.setCapacity(cached[0]);
+			pool.setUsed(cached[1]);
+			return;
+		}
+
 		Script statsScript = new Script("/bin/bash", s_logger);
 		statsScript.add("-c");
 		statsScript.add("stats=$(df --total " + pool.getLocalPath()
@@ -398,6 +485,7 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
 				if (sizes.length == 2) {
 					pool.setCapacity(Long.parseLong(sizes[0]) * 1024);
 					pool.setUsed(Long.parseLong(sizes[1]) * 1024);
+					_poolStats.put(pool.getUuid(), new long[] { pool.getCapacity(), pool.getUsed() });
 				}
 			}
 		}
@@ -588,18 +676,33 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
 		}
 	}
 
+	@Override
+	public boolean deleteTemplateDisk(String uuid, KVMStoragePool pool) {
+		if (pool.getType() != StoragePoolType.CLVM) {
+			KVMPhysicalDisk template = getPhysicalDisk(uuid, pool);
+			if (!_linkedClones.releaseBase(template.getPath(),
+					pool.getLocalPath(), pool.getType().isShared())) {
+				throw new CloudRuntimeException("Unable to delete " + uuid
+						+ ", there are volumes based on it");
+			}
+		}
+		return deletePhysicalDisk(uuid, pool);
+	}
+
 	@Override
 	public KVMPhysicalDisk createDiskFromTemplate(KVMPhysicalDisk template,
 			String name, PhysicalDiskFormat format, long size,
 			KVMStoragePool destPool) {
+		if (format == PhysicalDiskFormat.QCOW2) {
+			// qemu-img creates the file, libvirt picks it up on the pool refresh in getVolume
+			_linkedClones.createDisk(template.getPath(), template.getFormat()
+					.toString(), destPool.getLocalPath() + File.separator + name);
+			return getPhysicalDisk(name, destPool);
+		}
+
 		KVMPhysicalDisk disk = destPool.createPhysicalDisk(UUID.randomUUID()
 				.toString(), format, template.getVirtualSize());
-
-		if (format == PhysicalDiskFormat.QCOW2) {
-			Script.runSimpleBashScript("qemu-img create -f "
-					+ template.getFormat() + " -b  " + template.getPath() + " "
-					+ disk.getPath());
-		} else if (format == PhysicalDiskFormat.RAW) {
+		if (format == PhysicalDiskFormat.RAW) {
 			Script.runSimpleBashScript("qemu-img convert -f "
 					+ template.getFormat() + " -O raw " + template.getPath()
 					+ " " + disk.getPath());
@@ -689,6 +792,8 @@ public class LibvirtStorageAdaptor implements StorageAdaptor {
 		StoragePool virtPool = libvirtPool.getPool();
 		try {
 			virtPool.refresh(0);
+			_poolRefreshCount.incrementAndGet();
+			_recentlyRefreshed.put(pool.getUuid(), Boolean.TRUE);
 		} catch (LibvirtException e) {
 			return false;
 		}
@@ -109,6 +109,11 @@ public class LibvirtStoragePool implements KVMStoragePool {
 		return this._storageAdaptor.deletePhysicalDisk(uuid, this);
 	}
 
+	@Override
+	public boolean deleteTemplateDisk(String uuid) {
+		return this._storageAdaptor.deleteTemplateDisk(uuid, this);
+	}
+
 	@Override
 	public List<KVMPhysicalDisk> listPhysicalDisks() {
 		return this._storageAdaptor.listPhysicalDisks(this.uuid, this);
@@ -0,0 +1,251 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.agent.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.cloud.utils.script.Script;
+
+/**
+ * Creates the root disks of new vms on file based primary storage either as
+ * copy-on-write clones of the template (qcow2 overlays whose backing file is
+ * the template) or as full copies.
+ *
+ * A template that has clones must not be deleted.  Which volumes are based on
+ * a template is read from the qcow2 headers in the pool instead of being
+ * counted in memory, so the count is right for clones created by other hosts
+ * sharing the pool and survives agent restarts.
+ *
+ * Flattening rewrites a clone, which corrupts it if a vm has it open, so
+ * clones are only flattened on local pools and only when no process on
+ * this host has any of them open.  On shared pools another host's vms may
+ * be using them, which cannot be seen from here.
+ */
+public class LinkedCloneManager {
+	private static final Logger s_logger = Logger.getLogger(LinkedCloneManager.class);
+
+	private static final int QCOW_MAGIC = ('Q' << 24) | ('F' << 16) | ('I' << 8) | 0xfb;
+	private static final int MAX_BACKING_FILE_SIZE = 1023;
+
+	public static enum FlattenPolicy {
+		/** Deleting a template that still has clones fails. */
+		Never,
+		/**
+		 * Clones are made independent of the template before it is deleted,
+		 * if none of them is in use and the pool is local.
+		 */
+		OnBaseDelete;
+	}
+
+	private final boolean _linked;
+	private final FlattenPolicy _flattenPolicy;
+	private final int _timeout;
+
+	/**
+	 * @param linked create clones instead of full copies
+	 * @param flattenPolicy what to do with clones when their template is deleted
+	 * @param timeout milliseconds a qemu-img run may take
+	 */
+	public LinkedCloneManager(boolean linked, FlattenPolicy flattenPolicy, int timeout) {
+		_linked = linked;
+		_flattenPolicy = flattenPolicy;
+		_timeout = timeout;
+	}
+
+	public boolean isLinked() {
+		return _linked;
+	}
+
+	public FlattenPolicy getFlattenPolicy() {
+		return _flattenPolicy;
+	}
+
+	/**
+	 * Creates a qcow2 disk at diskPath holding the content of the template,
+	 * as a clone or a full copy depending on the clone mode.
+	 */
+	public void createDisk(String templatePath, String templateFormat, String diskPath) {
+		String result;
+		if (_linked) {
+			result = qemuImg("create", "-f", "qcow2", "-b", templatePath, diskPath);
+			// qemu opens backing files read only; keep everything else from writing to it
+			new File(templatePath).setWritable(false, false);
+		} else {
+			result = qemuImg("convert", "-f", templateFormat, "-O", "qcow2", templatePath, diskPath);
+		}
+		if (result != null) {
+			throw new CloudRuntimeException("Failed to create " + diskPath + " from " + templatePath + ": " + result);
+		}
+	}
+
+	/**
+	 * Copies the data a clone reads from its template into the clone so
+	 * that it no longer needs the template.
+	 */
+	public void flatten(String clonePath) {
+		String result = qemuImg("rebase", "-b", "", clonePath);
+		if (result != null) {
+			throw new CloudRuntimeException("Failed to flatten " + clonePath + ": " + result);
+		}
+	}
+
+	/**
+	 * @return the paths of the images in poolPath whose backing file is templatePath.
+	 */
+	public List<String> listClones(String templatePath, String poolPath) {
+		List<String> clones = new ArrayList<String>();
+		File template = new File(templatePath);
+		File[] files = new File(poolPath).listFiles();
+		if (files == null) {
+			return clones;
+		}
+		for (File file : files) {
+			if (!file.isFile() || file.getName().equals(template.getName())) {
+				continue;
+			}
+			String backingFile;
+			try {
+				backingFile = getBackingFile(file);
+			} catch (IOException e) {
+				s_logger.warn("Unable to read the header of " + file + ": " + e.getMessage());
+				continue;
+			}
+			// volume names in a pool are unique and the pool may be mounted elsewhere on other hosts
+			if (backingFile != null && new File(backingFile).getName().equals(template.getName())) {
+				clones.add(file.getPath());
+			}
+		}
+		return clones;
+	}
+
+	/**
+	 * Called before a template on primary storage is deleted.
+	 *
+	 * @param shared whether other hosts use the pool too
+	 * @return true if the template can be deleted, false if clones still need it.
+	 */
+	public boolean releaseBase(String templatePath, String poolPath, boolean shared) {
+		try {
+			if (getBackingFile(new File(templatePath)) != null) {
+				// a clone itself, only templates are cloned
+				return true;
+			}
+		} catch (IOException e) {
+			s_logger.debug("Unable to read the header of " + templatePath + ": " + e.getMessage());
+		}
+		List<String> clones = listClones(templatePath, poolPath);
+		if (clones.isEmpty()) {
+			return true;
+		}
+		if (_flattenPolicy != FlattenPolicy.OnBaseDelete) {
+			s_logger.info(clones.size() + " volumes are still based on " + templatePath);
+			return false;
+		}
+		if (shared) {
+			s_logger.info(clones.size() + " volumes are still based on " + templatePath
+					+ ", not flattening them on a shared pool where vms on other hosts may use them");
+			return false;
+		}
+		for (String clone : clones) {
+			if (isInUse(clone)) {
+				s_logger.info("Not flattening the clones of " + templatePath + ", " + clone + " is in use");
+				return false;
+			}
+		}
+		for (String clone : clones) {
+			s_logger.debug("Flattening " + clone + " before deleting " + templatePath);
+			flatten(clone);
+		}
+		new File(templatePath).setWritable(true, true);
+		return true;
+	}
+
+	/**
+	 * @return whether a process on this host, a running vm for instance,
+	 * has the file open.
+	 */
+	protected boolean isInUse(String path) {
+		File file = new File(path);
+		File[] procs = new File("/proc").listFiles();
+		if (procs == null) {
+			// no way to tell
+			return true;
+		}
+		try {
+			String target = file.getCanonicalPath();
+			for (File proc : procs) {
+				if (!proc.getName().matches("\\d+")) {
+					continue;
+				}
+				File[] fds = new File(proc, "fd").listFiles();
+				if (fds == null) {
+					continue;
+				}
+				for (File fd : fds) {
+					try {
+						if (target.equals(fd.getCanonicalPath())) {
+							return true;
+						}
+					} catch (IOException e) {
+						// closed while we were looking
+					}
+				}
+			}
+		} catch (IOException e) {
+			s_logger.warn("Unable to tell whether " + path + " is in use: " + e.getMessage());
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the backing file recorded in a qcow2 header, or null if the
+	 * file is not qcow2 or has no backing file.
+	 */
+	public static String getBackingFile(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			if (raf.length() < 20 || raf.readInt() != QCOW_MAGIC) {
+				return null;
+			}
+			raf.readInt(); // version
+			long offset = raf.readLong();
+			int size = raf.readInt();
+			if (offset == 0 || size <= 0 || size > MAX_BACKING_FILE_SIZE || offset + size > raf.length()) {
+				return null;
+			}
+			byte[] name = new byte[size];
+			raf.seek(offset);
+			raf.readFully(name);
+			return new String(name, "UTF-8");
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * @return null if qemu-img succeeded, otherwise the error.
+	 */
+	protected String qemuImg(String... args) {
+		Script script = new Script("qemu-img", _timeout, s_logger);
+		script.add(args);
+		return script.execute();
+	}
+}
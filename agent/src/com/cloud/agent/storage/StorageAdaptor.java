@@ -36,6 +36,8 @@ public interface StorageAdaptor {
 
 	public boolean deletePhysicalDisk(String uuid, KVMStoragePool pool);
 
+	public boolean deleteTemplateDisk(String uuid, KVMStoragePool pool);
+
 	public KVMPhysicalDisk createDiskFromTemplate(KVMPhysicalDisk template,
 			String name, PhysicalDiskFormat format, long size,
 			KVMStoragePool destPool);
@@ -0,0 +1,243 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.agent.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.storage.LinkedCloneManager.FlattenPolicy;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+public class LinkedCloneManagerTest extends TestCase {
+	private static final Logger s_logger = Logger.getLogger(LinkedCloneManagerTest.class);
+
+	// what qemu-img allocates for an empty qcow2 overlay with 64k clusters
+	private static final int OVERLAY_SIZE = 3 * 64 * 1024;
+	private static final int TEMPLATE_SIZE = 32 * 1024 * 1024;
+
+	private File _pool;
+	private File _template;
+
+	/**
+	 * Does what qemu-img does to the files without needing qemu-img on the
+	 * test machine.
+	 */
+	static class FakeQemuImgManager extends LinkedCloneManager {
+		FakeQemuImgManager(boolean linked, FlattenPolicy policy) {
+			super(linked, policy, 60000);
+		}
+
+		@Override
+		protected String qemuImg(String... args) {
+			try {
+				if (args[0].equals("create")) {
+					writeQcow2(new File(args[5]), args[4], null);
+				} else if (args[0].equals("convert")) {
+					copy(new File(args[5]), new File(args[6]), false);
+				} else if (args[0].equals("rebase")) {
+					File clone = new File(args[3]);
+					String backingFile = getBackingFile(clone);
+					File base = new File(clone.getParentFile(), new File(backingFile).getName());
+					writeQcow2(clone, null, base);
+				} else {
+					return "unknown command " + args[0];
+				}
+			} catch (IOException e) {
+				return e.getMessage();
+			}
+			return null;
+		}
+
+		private void writeQcow2(File file, String backingFile, File data) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(0);
+				raf.writeInt(('Q' << 24) | ('F' << 16) | ('I' << 8) | 0xfb);
+				raf.writeInt(2);
+				raf.writeLong(backingFile != null ? 72 : 0);
+				raf.writeInt(backingFile != null ? backingFile.length() : 0);
+				if (backingFile != null) {
+					raf.seek(72);
+					raf.write(backingFile.getBytes("UTF-8"));
+				}
+				raf.setLength(OVERLAY_SIZE);
+			} finally {
+				raf.close();
+			}
+			if (data != null) {
+				copy(data, file, true);
+			}
+		}
+	}
+
+	@Override
+	protected void setUp() throws Exception {
+		_pool = File.createTempFile("pool", "");
+		_pool.delete();
+		_pool.mkdirs();
+		_template = new File(_pool, "template-uuid");
+		byte[] block = new byte[1024 * 1024];
+		new Random(1).nextBytes(block);
+		FileOutputStream out = new FileOutputStream(_template);
+		try {
+			for (int i = 0; i < TEMPLATE_SIZE / block.length; i++) {
+				out.write(block);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		File[] files = _pool.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.setWritable(true);
+				file.delete();
+			}
+		}
+		_pool.delete();
+	}
+
+	public void testClonesAreCountedFromTheirHeaders() throws Exception {
+		LinkedCloneManager mgr = new FakeQemuImgManager(true, FlattenPolicy.Never);
+		mgr.createDisk(_template.getPath(), "qcow2", new File(_pool, "vol-1").getPath());
+		mgr.createDisk(_template.getPath(), "qcow2", new File(_pool, "vol-2").getPath());
+		new FileOutputStream(new File(_pool, "not-an-image")).close();
+
+		assertEquals(_template.getPath(), LinkedCloneManager.getBackingFile(new File(_pool, "vol-1")));
+		assertNull(LinkedCloneManager.getBackingFile(_template));
+
+		List<String> clones = mgr.listClones(_template.getPath(), _pool.getPath());
+		assertEquals(2, clones.size());
+
+		// a pool mounted at another path on another host still finds them
+		assertEquals(2, mgr.listClones("/mnt/elsewhere/template-uuid", _pool.getPath()).size());
+	}
+
+	public void testTemplateWithClonesIsNotReleased() throws Exception {
+		LinkedCloneManager mgr = new FakeQemuImgManager(true, FlattenPolicy.Never);
+		File vol = new File(_pool, "vol-1");
+		mgr.createDisk(_template.getPath(), "qcow2", vol.getPath());
+
+		assertFalse(mgr.releaseBase(_template.getPath(), _pool.getPath(), false));
+		// deleting the clone itself is always fine
+		assertTrue(mgr.releaseBase(vol.getPath(), _pool.getPath(), false));
+
+		vol.delete();
+		assertTrue(mgr.releaseBase(_template.getPath(), _pool.getPath(), false));
+	}
+
+	public void testClonesAreFlattenedOnTemplateDelete() throws Exception {
+		LinkedCloneManager mgr = new FakeQemuImgManager(true, FlattenPolicy.OnBaseDelete);
+		File vol = new File(_pool, "vol-1");
+		mgr.createDisk(_template.getPath(), "qcow2", vol.getPath());
+
+		assertTrue(mgr.releaseBase(_template.getPath(), _pool.getPath(), false));
+		assertNull(LinkedCloneManager.getBackingFile(vol));
+		assertTrue(vol.length() >= TEMPLATE_SIZE);
+		assertTrue(mgr.listClones(_template.getPath(), _pool.getPath()).isEmpty());
+	}
+
+	public void testClonesInUseAreNotFlattened() throws Exception {
+		LinkedCloneManager mgr = new FakeQemuImgManager(true, FlattenPolicy.OnBaseDelete);
+		File idle = new File(_pool, "vol-1");
+		File running = new File(_pool, "vol-2");
+		mgr.createDisk(_template.getPath(), "qcow2", idle.getPath());
+		mgr.createDisk(_template.getPath(), "qcow2", running.getPath());
+
+		// a vm on another host may have them open
+		assertFalse(mgr.releaseBase(_template.getPath(), _pool.getPath(), true));
+
+		// like qemu does for a running vm
+		RandomAccessFile open = new RandomAccessFile(running, "rw");
+		try {
+			assertTrue(mgr.isInUse(running.getPath()));
+			assertFalse(mgr.isInUse(idle.getPath()));
+			assertFalse(mgr.releaseBase(_template.getPath(), _pool.getPath(), false));
+		} finally {
+			open.close();
+		}
+		// none of them was touched
+		assertEquals(_template.getPath(), LinkedCloneManager.getBackingFile(idle));
+		assertEquals(_template.getPath(), LinkedCloneManager.getBackingFile(running));
+
+		assertTrue(mgr.releaseBase(_template.getPath(), _pool.getPath(), false));
+		assertNull(LinkedCloneManager.getBackingFile(running));
+	}
+
+	public void testFailedQemuImgIsReported() throws Exception {
+		LinkedCloneManager mgr = new FakeQemuImgManager(true, FlattenPolicy.Never) {
+			@Override
+			protected String qemuImg(String... args) {
+				return "No space left on device";
+			}
+		};
+		try {
+			mgr.createDisk(_template.getPath(), "qcow2", new File(_pool, "vol-1").getPath());
+			fail("a failed qemu-img run was not reported");
+		} catch (CloudRuntimeException e) {
+		}
+	}
+
+	/**
+	 * Deploys the same number of root disks as clones and as full copies and
+	 * compares how long it takes and how much is written to the pool.
+	 */
+	public void testDeployBenchmark() throws Exception {
+		int deploys = 20;
+		for (boolean linked : new boolean[] { false, true }) {
+			LinkedCloneManager mgr = new FakeQemuImgManager(linked, FlattenPolicy.Never);
+			long written = 0;
+			long start = System.nanoTime();
+			for (int i = 0; i < deploys; i++) {
+				File vol = new File(_pool, (linked ? "linked-" : "full-") + i);
+				mgr.createDisk(_template.getPath(), "qcow2", vol.getPath());
+				written += vol.length();
+			}
+			long elapsed = System.nanoTime() - start;
+			s_logger.info((linked ? "Linked clones: " : "Full copies: ") + deploys + " deploys in " + (elapsed / 1000000) + "ms, "
+					+ (written / deploys / 1024) + "KB written per deploy");
+			if (linked) {
+				assertEquals(OVERLAY_SIZE, written / deploys);
+			} else {
+				assertEquals(TEMPLATE_SIZE, written / deploys);
+			}
+		}
+	}
+
+	static void copy(File from, File to, boolean append) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		FileOutputStream out = new FileOutputStream(to, append);
+		try {
+			byte[] buf = new byte[1024 * 1024];
+			int len;
+			while ((len = in.read(buf)) > 0) {
+				out.write(buf, 0, len);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.agent.api;
+
+import java.util.HashMap;
+
+import com.cloud.agent.api.LogLevel.Log4jLevel;
+
+@LogLevel(Log4jLevel.Trace)
+public class GetVolumeStatsAnswer extends Answer {
+    HashMap<String, StoragePoolStatsEntry> poolStats;
+    HashMap<String, VolumeStatsEntry> volumeStats;
+    long poolRefreshCount;
+
+    protected GetVolumeStatsAnswer() {
+        //no-args constructor for json serialization-deserialization
+    }
+
+    /**
+     * @param poolStats stats by pool uuid
+     * @param volumeStats stats by volume path
+     * @param poolRefreshCount times the host has rescanned its storage pools since it started
+     */
+    public GetVolumeStatsAnswer(GetVolumeStatsCommand cmd, HashMap<String, StoragePoolStatsEntry> poolStats, HashMap<String, VolumeStatsEntry> volumeStats, long poolRefreshCount) {
+        super(cmd);
+        this.poolStats = poolStats;
+        this.volumeStats = volumeStats;
+        this.poolRefreshCount = poolRefreshCount;
+    }
+
+    public GetVolumeStatsAnswer(GetVolumeStatsCommand cmd, String details) {
+        super(cmd, false, details);
+    }
+
+    public HashMap<String, StoragePoolStatsEntry> getPoolStats() {
+        return poolStats;
+    }
+
+    public HashMap<String, VolumeStatsEntry> getVolumeStats() {
+        return volumeStats;
+    }
+
+    public long getPoolRefreshCount() {
+        return poolRefreshCount;
+    }
+}
@@ -0,0 +1,54 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.agent.api;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.agent.api.LogLevel.Log4jLevel;
+
+/**
+ * Asks a host for the stats of several storage pools and of the volumes on
+ * them in one command, instead of one command per pool and per volume.
+ */
+@LogLevel(Log4jLevel.Trace)
+public class GetVolumeStatsCommand extends Command {
+    List<String> poolUuids;
+    HashMap<String, List<String>> volumePaths;
+
+    protected GetVolumeStatsCommand() {
+    }
+
+    /**
+     * @param poolUuids pools to report capacity and usage of
+     * @param volumePaths paths of the volumes to report, by pool uuid
+     */
+    public GetVolumeStatsCommand(List<String> poolUuids, Map<String, List<String>> volumePaths) {
+        this.poolUuids = poolUuids;
+        this.volumePaths = new HashMap<String, List<String>>(volumePaths);
+    }
+
+    public List<String> getPoolUuids() {
+        return poolUuids;
+    }
+
+    public Map<String, List<String>> getVolumePaths() {
+        return volumePaths;
+    }
+
+    @Override
+    public boolean executeInSequence() {
+        return false;
+    }
+}
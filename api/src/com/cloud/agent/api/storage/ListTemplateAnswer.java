@@ -12,6 +12,7 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.agent.api.storage;
 
+import java.util.List;
 import java.util.Map;
 
 import com.cloud.agent.api.Answer;
@@ -21,6 +22,10 @@ import com.cloud.storage.template.TemplateInfo;
 public class ListTemplateAnswer extends Answer  {
     private String secUrl;
     private Map<String, TemplateInfo> templateInfos;
+    private String inventoryEpoch;
+    private long generation;
+    private boolean incremental;
+    private List<String> removedTemplates;
 	
 	public ListTemplateAnswer() {
 		
@@ -47,4 +52,32 @@ public class ListTemplateAnswer extends Answer  {
     public String getSecUrl() {
         return secUrl;
     }
+
+    /**
+     * Sets the template inventory position of this answer.  When incremental,
+     * the template infos are only the templates installed or changed since the
+     * generation asked for, and removedTemplates the ones deleted.
+     */
+    public void setInventory(String inventoryEpoch, long generation, boolean incremental, List<String> removedTemplates) {
+        this.inventoryEpoch = inventoryEpoch;
+        this.generation = generation;
+        this.incremental = incremental;
+        this.removedTemplates = removedTemplates;
+    }
+
+    public String getInventoryEpoch() {
+        return inventoryEpoch;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public boolean isIncremental() {
+        return incremental;
+    }
+
+    public List<String> getRemovedTemplates() {
+        return removedTemplates;
+    }
 }
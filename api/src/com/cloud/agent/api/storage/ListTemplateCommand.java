@@ -20,6 +20,8 @@ public class ListTemplateCommand extends StorageCommand {
     private String secUrl;
     @LogLevel(Log4jLevel.Off)
     private SwiftTO swift;
+    private String inventoryEpoch;
+    private long sinceGeneration = -1;
     
     public ListTemplateCommand() {
     }
@@ -28,6 +30,16 @@ public class ListTemplateCommand extends StorageCommand {
 	    this.secUrl = secUrl;
         this.swift = null;
 	}
+
+    /**
+     * Asks for the templates changed since the given generation of the
+     * secondary storage template inventory.
+     */
+    public ListTemplateCommand(String secUrl, String inventoryEpoch, long sinceGeneration) {
+        this(secUrl);
+        this.inventoryEpoch = inventoryEpoch;
+        this.sinceGeneration = sinceGeneration;
+    }
 	
     public ListTemplateCommand(SwiftTO swift) {
         this.secUrl = null;
@@ -47,4 +59,12 @@ public class ListTemplateCommand extends StorageCommand {
         return swift;
     }
 
+    public String getInventoryEpoch() {
+        return inventoryEpoch;
+    }
+
+    public long getSinceGeneration() {
+        return sinceGeneration;
+    }
+
 }
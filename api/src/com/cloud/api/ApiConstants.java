@@ -97,6 +97,7 @@ public class ApiConstants {
     public static final String ISO_FILTER = "isofilter";
     public static final String ISO_GUEST_OS_NONE = "None";
     public static final String JOB_ID = "jobid";
+    public static final String JOB_IDS = "jobids";
     public static final String JOB_STATUS = "jobstatus";
     public static final String LASTNAME = "lastname";
     public static final String LEVEL = "level";
@@ -207,6 +208,10 @@ public class ApiConstants {
     public static final String PAGE = "page";
     public static final String PAGE_SIZE = "pagesize";
     public static final String COUNT = "count";
+    public static final String PAGE_TOKEN = "pagetoken";
+    public static final String NEXT_PAGE_TOKEN = "nextpagetoken";
+    public static final String ESTIMATE_COUNT = "estimatecount";
+    public static final String ESTIMATED_COUNT = "estimatedcount";
     public static final String TRAFFIC_TYPE = "traffictype";
     public static final String NETWORK_OFFERING_ID = "networkofferingid";
     public static final String NETWORK_IDS = "networkids";
@@ -330,6 +335,7 @@ public class ApiConstants {
     public static final String INSTANCE_NAME = "instancename";
     public static final String START_VM = "startvm";
     public static final String HA_HOST = "hahost";
+    public static final String ROLLUP = "rollup";
 
     
     public enum HostDetails {
@@ -12,6 +12,7 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.api;
 
+import com.cloud.api.response.ListResponse;
 import com.cloud.async.AsyncJob;
 import com.cloud.exception.InvalidParameterValueException;
 
@@ -34,6 +35,14 @@ public abstract class BaseListCmd extends BaseCmd {
     @Parameter(name = ApiConstants.PAGE_SIZE, type = CommandType.INTEGER)
     private Integer pageSize;
 
+    @Parameter(name = ApiConstants.PAGE_TOKEN, type = CommandType.STRING, description = "continue listing right after the last item of the previous page; pass the nextpagetoken of the previous response. Can't be used with page")
+    private String pageToken;
+
+    @Parameter(name = ApiConstants.ESTIMATE_COUNT, type = CommandType.BOOLEAN, description = "if true, the response carries an estimate of the total number of items, taken from the database query plan")
+    private Boolean estimateCount;
+
+    private Integer estimatedCount;
+
     // ///////////////////////////////////////////////////
     // ///////////////// Accessors ///////////////////////
     // ///////////////////////////////////////////////////
@@ -58,6 +67,25 @@ public abstract class BaseListCmd extends BaseCmd {
         return pageSize;
     }
 
+    public String getPageToken() {
+        if (pageToken != null && page != null) {
+            throw new InvalidParameterValueException("Can't specify page parameter together with pagetoken");
+        }
+        return pageToken;
+    }
+
+    public boolean isEstimateCount() {
+        return estimateCount != null && estimateCount;
+    }
+
+    public Integer getEstimatedCount() {
+        return estimatedCount;
+    }
+
+    public void setEstimatedCount(Integer estimatedCount) {
+        this.estimatedCount = estimatedCount;
+    }
+
     static void configure() {
         if (_configService.getDefaultPageSize().longValue() != PAGESIZE_UNLIMITED) {
             MAX_PAGESIZE = _configService.getDefaultPageSize();
@@ -98,6 +126,32 @@ public abstract class BaseListCmd extends BaseCmd {
         return startIndex;
     }
 
+    /**
+     * @return id of the last item of the previous page if the list is continued from a pagetoken; null if not.
+     */
+    public Long getStartAfterId() {
+        String token = getPageToken();
+        if (token == null) {
+            return null;
+        }
+        try {
+            return Long.parseLong(token, Character.MAX_RADIX);
+        } catch (NumberFormatException e) {
+            throw new InvalidParameterValueException("Invalid pagetoken " + token);
+        }
+    }
+
+    /**
+     * Hands out the token to continue the list after this page.  A page that
+     * is not full is the last one so it doesn't get a token.
+     */
+    protected void setNextPageToken(ListResponse<?> response, int resultSize, long lastId) {
+        Long pageSizeVal = getPageSizeVal();
+        if (pageSizeVal != null && resultSize > 0 && resultSize >= pageSizeVal) {
+            response.setNextPageToken(Long.toString(lastId, Character.MAX_RADIX));
+        }
+    }
+
     public AsyncJob.Type getInstanceType() {
         return AsyncJob.Type.None;
     }
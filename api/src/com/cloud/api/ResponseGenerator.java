@@ -19,6 +19,7 @@ import java.util.List;
 import com.cloud.api.ApiConstants.HostDetails;
 import com.cloud.api.ApiConstants.VMDetails;
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
 import com.cloud.api.response.AccountResponse;
 import com.cloud.api.response.AsyncJobResponse;
 import com.cloud.api.response.CapacityResponse;
@@ -226,6 +227,8 @@ public interface ResponseGenerator {
 
     AsyncJobResponse queryJobResult(QueryAsyncJobResultCmd cmd);
 
+    ListResponse<AsyncJobResponse> queryJobResults(QueryAsyncJobResultsCmd cmd);
+
     NetworkOfferingResponse createNetworkOfferingResponse(NetworkOffering offering);
 
     NetworkResponse createNetworkResponse(Network network);
@@ -110,6 +110,10 @@ public class ListEventsCmd extends BaseListProjectAndAccountResourcesCmd {
         }
 
         response.setResponses(eventResponses);
+        response.setEstimatedCount(getEstimatedCount());
+        if (!result.isEmpty()) {
+            setNextPageToken(response, result.size(), result.get(result.size() - 1).getId());
+        }
         response.setResponseName(getCommandName());
         this.setResponseObject(response);
     }
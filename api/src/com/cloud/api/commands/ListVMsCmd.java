@@ -182,6 +182,10 @@ public class ListVMsCmd extends BaseListProjectAndAccountResourcesCmd {
         	 vmResponses = _responseGenerator.createUserVmResponse("virtualmachine", getDetails(), result.toArray(new UserVm[result.size()]));
         }
         response.setResponses(vmResponses);
+        response.setEstimatedCount(getEstimatedCount());
+        if (!result.isEmpty()) {
+            setNextPageToken(response, result.size(), result.get(result.size() - 1).getId());
+        }
         response.setResponseName(getCommandName());
         this.setResponseObject(response);
     }
@@ -0,0 +1,77 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.api.commands;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.api.ApiConstants;
+import com.cloud.api.BaseCmd;
+import com.cloud.api.IdentityMapper;
+import com.cloud.api.Implementation;
+import com.cloud.api.Parameter;
+import com.cloud.api.response.AsyncJobResponse;
+import com.cloud.api.response.ListResponse;
+import com.cloud.user.Account;
+
+@Implementation(description="Retrieves the current status of several asynchronous jobs, optionally waiting until one of them completes.", responseObject=AsyncJobResponse.class)
+public class QueryAsyncJobResultsCmd extends BaseCmd {
+    public static final Logger s_logger = Logger.getLogger(QueryAsyncJobResultsCmd.class.getName());
+
+    private static final String s_name = "queryasyncjobresultsresponse";
+
+    /////////////////////////////////////////////////////
+    //////////////// API parameters /////////////////////
+    /////////////////////////////////////////////////////
+
+    @IdentityMapper(entityTableName="async_job")
+    @Parameter(name=ApiConstants.JOB_IDS, type=CommandType.LIST, collectionType=CommandType.LONG, required=true, description="the IDs of the asychronous jobs")
+    private List<Long> ids;
+
+    @Parameter(name=ApiConstants.TIMEOUT, type=CommandType.INTEGER, description="if none of the jobs is complete, seconds to wait for one of them to complete before returning. Capped by job.query.wait.max")
+    private Integer timeout;
+
+    /////////////////////////////////////////////////////
+    /////////////////// Accessors ///////////////////////
+    /////////////////////////////////////////////////////
+
+    public List<Long> getIds() {
+        return ids;
+    }
+
+    public int getTimeout() {
+        return timeout == null ? 0 : timeout;
+    }
+
+    /////////////////////////////////////////////////////
+    /////////////// API Implementation///////////////////
+    /////////////////////////////////////////////////////
+
+    @Override
+    public String getCommandName() {
+        return s_name;
+    }
+
+    @Override
+    public long getEntityOwnerId() {
+        return Account.ACCOUNT_ID_SYSTEM;
+    }
+
+    @Override
+    public void execute(){
+        ListResponse<AsyncJobResponse> response = _responseGenerator.queryJobResults(this);
+        response.setResponseName(getCommandName());
+        this.setResponseObject(response);
+    }
+}
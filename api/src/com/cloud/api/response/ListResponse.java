@@ -18,6 +18,8 @@ import com.cloud.api.ResponseObject;
 
 public class ListResponse<T extends ResponseObject> extends BaseResponse {
     List<T> responses;
+    Integer estimatedCount;
+    String nextPageToken;
 
     public List<T> getResponses() {
         return responses;
@@ -27,6 +29,22 @@ public class ListResponse<T extends ResponseObject> extends BaseResponse {
         this.responses = responses;
     }
 
+    public Integer getEstimatedCount() {
+        return estimatedCount;
+    }
+
+    public void setEstimatedCount(Integer estimatedCount) {
+        this.estimatedCount = estimatedCount;
+    }
+
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    public void setNextPageToken(String nextPageToken) {
+        this.nextPageToken = nextPageToken;
+    }
+
     public Integer getCount() {
         if (responses != null) {
             return responses.size();
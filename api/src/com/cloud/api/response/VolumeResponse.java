@@ -65,6 +65,10 @@ public class VolumeResponse extends BaseResponse implements ControlledEntityResp
     @Param(description = "size of the disk volume")
     private Long size;
 
+    @SerializedName("physicalsize")
+    @Param(description = "bytes the disk volume takes on primary storage, when volume stats are collected")
+    private Long physicalSize;
+
     @SerializedName(ApiConstants.CREATED)
     @Param(description = "the date the disk volume was created")
     private Date created;
@@ -204,6 +208,10 @@ public class VolumeResponse extends BaseResponse implements ControlledEntityResp
         this.size = size;
     }
 
+    public void setPhysicalSize(Long physicalSize) {
+        this.physicalSize = physicalSize;
+    }
+
     public void setCreated(Date created) {
         this.created = created;
     }
@@ -12,57 +12,56 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.consoleproxy;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.Logger;
 
+/**
+ * AjaxFIFOImageCache keeps the last few images generated for AJAX viewer in a
+ * ring buffer. Keys are handed out in increasing order, so the slot of a key is
+ * fixed and putting a new image simply overwrites the oldest one.
+ */
 public class AjaxFIFOImageCache {
 	private static final Logger s_logger = Logger.getLogger(AjaxFIFOImageCache.class);
 	
-	private List<Integer> fifoQueue;
-	private Map<Integer, byte[]> cache;
-	private int cacheSize;
+	private final int[] keys;
+	private final byte[][] images;
 	private int nextKey = 1;
 	
 	public AjaxFIFOImageCache(int cacheSize) {
-		this.cacheSize = cacheSize;
-		fifoQueue = new ArrayList<Integer>();
-		cache = new HashMap<Integer, byte[]>();
+		keys = new int[cacheSize];
+		images = new byte[cacheSize][];
 	}
 	
 	public synchronized void clear() {
-		fifoQueue.clear();
-		cache.clear();
+		for(int i = 0; i < keys.length; i++) {
+			keys[i] = 0;
+			images[i] = null;
+		}
 	}
 	
 	public synchronized int putImage(byte[] image) {
-		while(cache.size() >= cacheSize) {
-			Integer keyToRemove = fifoQueue.remove(0);
-			cache.remove(keyToRemove);
-			
-			if(s_logger.isTraceEnabled())
-				s_logger.trace("Remove image from cache, key: " + keyToRemove);
-		}
-		
 		int key = getNextKey();
+		int slot = key % keys.length;
 		
-		if(s_logger.isTraceEnabled())
+		if(s_logger.isTraceEnabled()) {
+			if(images[slot] != null)
+				s_logger.trace("Remove image from cache, key: " + keys[slot]);
 			s_logger.trace("Add image to cache, key: " + key);
+		}
 		
-		cache.put(key, image);
-		fifoQueue.add(key);
+		keys[slot] = key;
+		images[slot] = image;
 		return key;
 	}
 	
 	public synchronized byte[] getImage(int key) {
-		if(cache.containsKey(key)) {
-			if(s_logger.isTraceEnabled())
-				s_logger.trace("Retrieve image from cache, key: " + key);
-			
-			return cache.get(key);
+		if(key > 0) {
+			int slot = key % keys.length;
+			if(keys[slot] == key) {
+				if(s_logger.isTraceEnabled())
+					s_logger.trace("Retrieve image from cache, key: " + key);
+				
+				return images[slot];
+			}
 		}
 		
 		if(s_logger.isTraceEnabled())
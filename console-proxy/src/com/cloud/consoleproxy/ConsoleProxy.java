@@ -21,15 +21,17 @@ import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
-import java.util.Hashtable;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 
 import org.apache.axis.encoding.Base64;
 import org.apache.log4j.xml.DOMConfigurator;
 
-import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.TileImageEncoder;
+import com.cloud.consoleproxy.vnc.VncNioSelector;
 import com.sun.net.httpserver.HttpServer;
 
 /**
@@ -56,12 +58,13 @@ public class ConsoleProxy {
 	public static Method reportMethod;
 	public static Method ensureRouteMethod;
 	
-	static Hashtable<String, ConsoleProxyClient> connectionMap = new Hashtable<String, ConsoleProxyClient>();
+	static ConcurrentHashMap<String, ConsoleProxyClient> connectionMap = new ConcurrentHashMap<String, ConsoleProxyClient>();
 	static int httpListenPort = 80;
 	static int httpCmdListenPort = 8001;
 	static int reconnectMaxRetry = 5;
 	static int readTimeoutSeconds = 90;
 	static int keyboardType = KEYBOARD_RAW;
+	static boolean vncNio = false;
 	static String factoryClzName;
 	static boolean standaloneStart = false;
 	
@@ -149,6 +152,24 @@ public class ConsoleProxy {
 			readTimeoutSeconds = Integer.parseInt(s);
 			s_logger.info("Setting readTimeoutSeconds=" + readTimeoutSeconds);
 		}
+		
+		s = conf.getProperty("consoleproxy.vncNio");
+		if (s!=null) {
+			vncNio = Boolean.parseBoolean(s);
+			s_logger.info("Setting vncNio=" + vncNio);
+		}
+		
+		s = conf.getProperty("consoleproxy.vncNioSelectors");
+		if (s!=null) {
+			VncNioSelector.setSelectorCount(Integer.parseInt(s));
+			s_logger.info("Setting vncNioSelectors=" + s);
+		}
+		
+		s = conf.getProperty("consoleproxy.jpegQuality");
+		if (s!=null) {
+			TileImageEncoder.setJpegQuality(Float.parseFloat(s));
+			s_logger.info("Setting jpegQuality=" + s);
+		}
 	}
 	
 	public static ConsoleProxyServerFactory getHttpServerFactory() {
@@ -369,10 +390,14 @@ public class ConsoleProxy {
 	}
 	
 	public static ConsoleProxyClient getVncViewer(ConsoleProxyClientParam param) throws Exception {
-		ConsoleProxyClient viewer = null;
-		
-		boolean reportLoadChange = false;
 		String clientKey = param.getClientMapKey();
+		
+		// a live session with the same sid is the common case, it needs no lock
+		ConsoleProxyClient viewer = connectionMap.get(clientKey);
+		if(isViewerReusable(viewer, param))
+			return viewer;
+		
+		boolean reportLoadChange = false;
 		synchronized (connectionMap) {
 			viewer = connectionMap.get(clientKey);
 			if (viewer == null) {
@@ -404,9 +429,16 @@ public class ConsoleProxy {
 	}
 	
 	public static ConsoleProxyClient getAjaxVncViewer(ConsoleProxyClientParam param, String ajaxSession) throws Exception {
+		String clientKey = param.getClientMapKey();
+		
+		ConsoleProxyClient existingViewer = connectionMap.get(clientKey);
+		if(isViewerReusable(existingViewer, param)) {
+			if(ajaxSession == null || ajaxSession.isEmpty())
+				authenticationExternally(param);
+			return existingViewer;
+		}
 		
 		boolean reportLoadChange = false;
-		String clientKey = param.getClientMapKey();
 		synchronized (connectionMap) {
 			ConsoleProxyClient viewer = connectionMap.get(clientKey);
 			if (viewer == null) {
@@ -439,13 +471,15 @@ public class ConsoleProxy {
 		}
 	}
 	
+	private static boolean isViewerReusable(ConsoleProxyClient viewer, ConsoleProxyClientParam param) {
+		return viewer != null && viewer.isFrontEndAlive() && param.getClientHostPassword().equals(viewer.getClientHostPassword());
+	}
+	
 	public static void removeViewer(ConsoleProxyClient viewer) {
-		synchronized (connectionMap) {
-			for(Map.Entry<String, ConsoleProxyClient> entry : connectionMap.entrySet()) {
-				if(entry.getValue() == viewer) {
-					connectionMap.remove(entry.getKey());
-					return;
-				}
+		for(Map.Entry<String, ConsoleProxyClient> entry : connectionMap.entrySet()) {
+			if(entry.getValue() == viewer) {
+				connectionMap.remove(entry.getKey(), viewer);
+				return;
 			}
 		}
 	}
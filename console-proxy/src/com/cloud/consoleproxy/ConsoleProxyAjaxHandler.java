@@ -142,25 +142,32 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 		}
 		
 		if(event != 0) {
-			if(ajaxSessionId != 0 && ajaxSessionId == viewer.getAjaxSessionId()) {
+			if(ajaxSessionId != 0 && viewer.hasAjaxSession(ajaxSessionId)) {
 				if(event == 7) {
 					// client send over an event bag
 					InputStream is = t.getRequestBody();
-					handleClientEventBag(viewer, convertStreamToString(is, true));
+					String requestData = convertStreamToString(is, true);
+					if(viewer.acquireInputControl(ajaxSessionId))
+						handleClientEventBag(viewer, requestData);
+					else if(s_logger.isDebugEnabled())
+						s_logger.debug("Another viewer is in control of the console, drop input from ajax session " + ajaxSessionId);
 				} else {
-					handleClientEvent(viewer, event, queryMap);
+					if(viewer.acquireInputControl(ajaxSessionId))
+						handleClientEvent(viewer, event, queryMap);
+					else if(s_logger.isDebugEnabled())
+						s_logger.debug("Another viewer is in control of the console, drop input from ajax session " + ajaxSessionId);
 				}
 				sendResponse(t, "text/html", "OK");
 			} else {
 				if(s_logger.isDebugEnabled())
-					s_logger.debug("Ajax request comes from a different session, id in request: " + ajaxSessionId + ", id in viewer: " + viewer.getAjaxSessionId());
+					s_logger.debug("Ajax request comes from an unknown session, id in request: " + ajaxSessionId + ", latest id in viewer: " + viewer.getAjaxSessionId());
 				
 				sendResponse(t, "text/html", "Invalid ajax client session id");
 			}
 		} else {
-			if(ajaxSessionId != 0 && ajaxSessionId != viewer.getAjaxSessionId()) {
+			if(ajaxSessionId != 0 && !viewer.hasAjaxSession(ajaxSessionId)) {
 				if(s_logger.isDebugEnabled())
-					s_logger.debug("Ajax request comes from a different session, id in request: " + ajaxSessionId + ", id in viewer: " + viewer.getAjaxSessionId());
+					s_logger.debug("Ajax request comes from an unknown session, id in request: " + ajaxSessionId + ", latest id in viewer: " + viewer.getAjaxSessionId());
 				handleClientKickoff(t, viewer);
 			} else if(ajaxSessionId == 0) {
 				if(s_logger.isDebugEnabled())
@@ -174,7 +181,7 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 				if(s_logger.isTraceEnabled())
 					s_logger.trace("Ajax request indicates client update");
 				
-				handleClientUpdate(t, viewer);
+				handleClientUpdate(t, viewer, ajaxSessionId);
 			}
 		}
 	}
@@ -386,8 +393,8 @@ public class ConsoleProxyAjaxHandler implements HttpHandler {
 		}
 	}
 	
-	private void handleClientUpdate(HttpExchange t, ConsoleProxyClient viewer) throws IOException {
-		String response = viewer.onAjaxClientUpdate();
+	private void handleClientUpdate(HttpExchange t, ConsoleProxyClient viewer, long ajaxSessionId) throws IOException {
+		String response = viewer.onAjaxClientUpdate(ajaxSessionId);
 		
 		Headers hds = t.getResponseHeaders();
 		hds.set("Content-Type", "text/javascript");
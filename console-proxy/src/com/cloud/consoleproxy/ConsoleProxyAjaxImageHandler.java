@@ -17,6 +17,7 @@ import java.io.OutputStream;
 import java.util.Map;
 
 import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.TileImageEncoder;
 import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
@@ -94,7 +95,7 @@ public class ConsoleProxyAjaxImageHandler implements HttpHandler {
 		byte[] img = viewer.getAjaxImageCache().getImage(key);
 		if(img != null) {
 			Headers hds = t.getResponseHeaders();
-			hds.set("Content-Type", "image/jpeg");
+			hds.set("Content-Type", TileImageEncoder.getContentType(img));
 			t.sendResponseHeaders(200, img.length);
 			
 			OutputStream os = t.getResponseBody();
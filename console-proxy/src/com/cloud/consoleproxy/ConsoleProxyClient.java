@@ -13,6 +13,7 @@
 package com.cloud.consoleproxy;
 
 import java.awt.Image;
+import java.io.IOException;
 import java.util.List;
 
 /**
@@ -35,11 +36,14 @@ public interface ConsoleProxyClient {
 	// AJAX viewer
 	//
 	long getAjaxSessionId();
+	boolean hasAjaxSession(long ajaxSessionId);
+	boolean acquireInputControl(long ajaxSessionId);	// only one viewer drives keyboard and mouse at a time
 	AjaxFIFOImageCache getAjaxImageCache();
 	Image getClientScaledImage(int width, int height);					// client thumbnail support
+	ConsoleProxyThumbnailCache.Thumbnail getClientThumbnail(int width, int height) throws IOException;
 	
 	String onAjaxClientStart(String title, List<String> languages, String guest);
-	String onAjaxClientUpdate();
+	String onAjaxClientUpdate(long ajaxSessionId);
 	String onAjaxClientKickoff();
 
 	//
@@ -57,6 +61,7 @@ public interface ConsoleProxyClient {
 	int getClientHostPort();
 	String getClientHostPassword();
 	String getClientTag();
+	long getClientBytesReceived();
 
 	//
 	// Setup/house-keeping
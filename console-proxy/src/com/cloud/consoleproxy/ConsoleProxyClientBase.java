@@ -14,7 +14,12 @@ package com.cloud.consoleproxy;
 
 import java.awt.Image;
 import java.awt.Rectangle;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
@@ -30,6 +35,10 @@ import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
  * 
  * It mainly implements the features needed by front-end AJAX viewer
  * 
+ * Several AJAX viewers can watch the console at the same time, each with an
+ * AJAX session of its own to track the tiles it has not got yet. Only one
+ * of them is in control of keyboard and mouse at a time.
+ * 
  */
 public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, ConsoleProxyClientListener {
 	private static final Logger s_logger = Logger.getLogger(ConsoleProxyClientBase.class);
@@ -37,12 +46,31 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 	private static int s_nextClientId = 0;
 	protected int clientId = getNextClientId();
 	
+	protected static final int MAX_AJAX_SESSIONS = 8;
+	// a viewer which has not polled for update this long is dropped
+	protected static final long AJAX_SESSION_TIMEOUT = 60000;
+	// a viewer gets the keyboard and mouse once the viewer in control has not sent input for this long
+	protected static final long INPUT_CONTROL_IDLE_TIME = 3000;
+	
 	protected long ajaxSessionId = 0;
+	protected final Map<Long, AjaxSession> ajaxSessions = new HashMap<Long, AjaxSession>();
+	protected long inputControlSessionId = 0;
+	protected long lastInputTime = 0;
 	
-	protected boolean dirtyFlag = false;
-	protected Object tileDirtyEvent = new Object();
+	// tracks the frame buffer for tile layout and the coverage test of new viewers
 	protected TileTracker tracker;
-	protected AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(2);
+	protected AjaxFIFOImageCache ajaxImageCache = new AjaxFIFOImageCache(2*MAX_AJAX_SESSIONS);
+	
+	// merged tile images by frame buffer content and tiles, viewers polling for the same update share them
+	protected final Map<String, byte[]> encodedImages = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+			return size() > MAX_AJAX_SESSIONS;
+		}
+	};
+	protected ConsoleProxyThumbnailCache thumbnailCache = new ConsoleProxyThumbnailCache();
 
 	protected ConsoleProxyClientParam clientParam;
 	protected String clientToken;
@@ -50,7 +78,6 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 	protected long createTime = System.currentTimeMillis();
 	protected long lastFrontEndActivityTime = System.currentTimeMillis();
 
-	protected boolean framebufferResized = false;
 	protected int resizedFramebufferWidth;
 	protected int resizedFramebufferHeight;
 
@@ -80,6 +107,27 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 		return ajaxImageCache;
 	}
 	
+	@Override
+	public boolean hasAjaxSession(long ajaxSessionId) {
+		synchronized(ajaxSessions) {
+			return ajaxSessions.containsKey(ajaxSessionId);
+		}
+	}
+	
+	@Override
+	public boolean acquireInputControl(long ajaxSessionId) {
+		long now = System.currentTimeMillis();
+		synchronized(ajaxSessions) {
+			if(inputControlSessionId != ajaxSessionId && now - lastInputTime < INPUT_CONTROL_IDLE_TIME 
+				&& ajaxSessions.containsKey(inputControlSessionId))
+				return false;
+			
+			inputControlSessionId = ajaxSessionId;
+			lastInputTime = now;
+			return true;
+		}
+	}
+	
 	public Image getClientScaledImage(int width, int height) {
 		FrameBufferCanvas canvas = getFrameBufferCavas();
 		if(canvas != null)
@@ -88,6 +136,15 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 		return null;
 	}
 	
+	@Override
+	public ConsoleProxyThumbnailCache.Thumbnail getClientThumbnail(int width, int height) throws IOException {
+		FrameBufferCanvas canvas = getFrameBufferCavas();
+		if(canvas != null)
+			return thumbnailCache.getThumbnail(canvas, width, height);
+		
+		return null;
+	}
+	
 	public abstract void sendClientRawKeyboardEvent(InputEventType event, int code, int modifiers);
 	public abstract void sendClientMouseEvent(InputEventType event, int x, int y, int code, int modifiers);
 	
@@ -137,53 +194,50 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 		tracker.resize(w, h);
 
 		synchronized(this) {
-			framebufferResized = true;
 			resizedFramebufferWidth = w;
 			resizedFramebufferHeight = h;
 		}
 		
-		signalTileDirtyEvent();
+		synchronized(ajaxSessions) {
+			for(AjaxSession session : ajaxSessions.values())
+				session.resize(w, h);
+		}
 	}
 
 	@Override
 	public void onFramebufferUpdate(int x, int y, int w, int h) {
 		if(s_logger.isTraceEnabled())
 			s_logger.trace("Frame buffer update {" + x + "," + y + "," + w + "," + h + "}");
-		tracker.invalidate(new Rectangle(x, y, w, h));
+		Rectangle rect = new Rectangle(x, y, w, h);
+		tracker.invalidate(rect);
+		thumbnailCache.invalidate(rect);
 		
-		signalTileDirtyEvent();
+		synchronized(ajaxSessions) {
+			for(AjaxSession session : ajaxSessions.values())
+				session.invalidate(rect);
+		}
 	}
 	
 	//
 	// AJAX Image manipulation 
 	//
-	public byte[] getFrameBufferJpeg() {
+	// tiles whose content did not change since they were last sent to the session are removed from tiles
+	private String prepareAjaxImage(AjaxSession session, List<TileInfo> tiles, boolean init) {
 		FrameBufferCanvas canvas = getFrameBufferCavas();
-		if(canvas != null)
-			return canvas.getFrameBufferJpeg();
-		
-		return null;
-	}
-	
-	public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
-		FrameBufferCanvas canvas = getFrameBufferCavas();
-		if(canvas != null)
-			return canvas.getTilesMergedJpeg(tileList, tileWidth, tileHeight);
-		return null;
-	}
-	
-	private String prepareAjaxImage(List<TileInfo> tiles, boolean init) {
-		byte[] imgBits;
-		if(init)
-			imgBits = getFrameBufferJpeg();
-		else 
-			imgBits = getTilesMergedJpeg(tiles, tracker.getTileWidth(), tracker.getTileHeight());
+		byte[] imgBits = null;
+		if(canvas != null) {
+			if(init) {
+				imgBits = canvas.getFrameBufferImage(tiles, session.tracker);
+			} else {
+				imgBits = canvas.getTilesMergedImage(tiles, tracker.getTileWidth(), tracker.getTileHeight(), session.tracker, encodedImages);
+			}
+		}
 		
 		if(imgBits == null) {
-			s_logger.warn("Unable to generate jpeg image");
+			s_logger.warn("Unable to generate tile image");
 		} else {
 			if(s_logger.isTraceEnabled())
-				s_logger.trace("Generated jpeg image size: " + imgBits.length);
+				s_logger.trace("Generated tile image size: " + imgBits.length + ", tiles: " + tiles.size());
 		}
 		
 		int key = ajaxImageCache.putImage(imgBits);
@@ -195,17 +249,36 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 		return sb.toString();
 	}
 	
-	private String prepareAjaxSession(boolean init) {
-		if(init) {
-			synchronized(this) {
-				ajaxSessionId++;
-			}
-		}
-
+	private String prepareAjaxSession(AjaxSession session) {
 		StringBuffer sb = new StringBuffer();
-		sb.append("/ajax?token=").append(clientToken).append("&sess=").append(ajaxSessionId);
+		sb.append("/ajax?token=").append(clientToken).append("&sess=").append(session.id);
 		return sb.toString();
 	}
+	
+	private AjaxSession startAjaxSession() {
+		long now = System.currentTimeMillis();
+		synchronized(ajaxSessions) {
+			AjaxSession oldest = null;
+			Iterator<AjaxSession> it = ajaxSessions.values().iterator();
+			while(it.hasNext()) {
+				AjaxSession session = it.next();
+				if(now - session.lastPollTime > AJAX_SESSION_TIMEOUT) {
+					it.remove();
+				} else if(oldest == null || session.lastPollTime < oldest.lastPollTime) {
+					oldest = session;
+				}
+			}
+			
+			if(ajaxSessions.size() >= MAX_AJAX_SESSIONS && oldest != null) {
+				s_logger.info("Too many viewers of console " + clientId + ", drop AJAX session " + oldest.id);
+				ajaxSessions.remove(oldest.id);
+			}
+			
+			AjaxSession session = new AjaxSession(++ajaxSessionId, tracker);
+			ajaxSessions.put(session.id, session);
+			return session;
+		}
+	}
 
 	@Override
 	public String onAjaxClientKickoff() {
@@ -239,11 +312,6 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 		if(!waitForViewerReady())
 			return onAjaxClientConnectFailed();
 		
-		synchronized(this) {
-			ajaxSessionId++;
-			framebufferResized = false;
-		}
-		
 		int tileWidth = tracker.getTileWidth();
 		int tileHeight = tracker.getTileHeight();
 		int width = tracker.getTrackWidth();
@@ -262,9 +330,10 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 			retry++;
 		}
 		
-		List<TileInfo> tiles = tracker.scan(true);
-		String imgUrl = prepareAjaxImage(tiles, true);
-		String updateUrl = prepareAjaxSession(true);
+		AjaxSession session = startAjaxSession();
+		List<TileInfo> tiles = session.tracker.scan(true);
+		String imgUrl = prepareAjaxImage(session, tiles, true);
+		String updateUrl = prepareAjaxSession(session);
 		
 		StringBuffer sbTileSequence = new StringBuffer();
 		int i = 0;
@@ -360,37 +429,29 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 	}
 
 	@Override
-	public String onAjaxClientUpdate() {
+	public String onAjaxClientUpdate(long ajaxSessionId) {
 		updateFrontEndActivityTime();
 		if(!waitForViewerReady())
 			return onAjaxClientDisconnected();
 		
-		synchronized(tileDirtyEvent) {
-			if(!dirtyFlag) {
-				try {
-					tileDirtyEvent.wait(3000);
-				} catch(InterruptedException e) {
-				}
-			}
+		AjaxSession session;
+		synchronized(ajaxSessions) {
+			session = ajaxSessions.get(ajaxSessionId);
 		}
+		if(session == null)
+			return onAjaxClientKickoff();
 		
-		boolean doResize = false;
-		synchronized(this) {
-			if(framebufferResized) {
-				framebufferResized = false;
-				doResize = true;
-			}
-		}
+		session.waitForUpdate(3000);
+		boolean doResize = session.takeResized();
 		
 		List<TileInfo> tiles;
 		
 		if(doResize)
-			tiles = tracker.scan(true);
+			tiles = session.tracker.scan(true);
 		else
-			tiles = tracker.scan(false);
-		dirtyFlag = false;
+			tiles = session.tracker.scan(false);
 		
-		String imgUrl = prepareAjaxImage(tiles, false);
+		String imgUrl = prepareAjaxImage(session, tiles, false);
 		StringBuffer sbTileSequence = new StringBuffer();
 		int i = 0;
 		for(TileInfo tile : tiles) {
@@ -429,13 +490,6 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 		return ++s_nextClientId;
 	}
 	
-	private void signalTileDirtyEvent() {
-		synchronized(tileDirtyEvent) {
-			dirtyFlag = true;
-			tileDirtyEvent.notifyAll();
-		}
-	}
-	
 	public void updateFrontEndActivityTime() {
 		lastFrontEndActivityTime = System.currentTimeMillis(); 
 	}
@@ -450,5 +504,60 @@ public abstract class ConsoleProxyClientBase implements ConsoleProxyClient, Cons
 		this.clientParam = clientParam;
 		ConsoleProxyPasswordBasedEncryptor encryptor = new ConsoleProxyPasswordBasedEncryptor(ConsoleProxy.getEncryptorPassword());
 		this.clientToken = encryptor.encryptObject(ConsoleProxyClientParam.class, clientParam);
-	}
+	}
+	
+	/**
+	 * State of one AJAX viewer: the tiles it still needs and whether it has seen
+	 * the latest frame buffer size. The decoded frame buffer itself is shared. 
+	 */
+	protected static class AjaxSession {
+		final long id;
+		final TileTracker tracker;
+		
+		private boolean dirty = false;
+		private boolean resized = false;
+		volatile long lastPollTime;
+		
+		AjaxSession(long id, TileTracker layout) {
+			this.id = id;
+			tracker = new TileTracker();
+			tracker.initTracking(layout.getTileWidth(), layout.getTileHeight(), 
+				layout.getTrackWidth(), layout.getTrackHeight());
+			lastPollTime = System.currentTimeMillis();
+		}
+		
+		void invalidate(Rectangle rect) {
+			tracker.invalidate(rect);
+			synchronized(this) {
+				dirty = true;
+				notifyAll();
+			}
+		}
+		
+		void resize(int w, int h) {
+			tracker.resize(w, h);
+			synchronized(this) {
+				resized = true;
+				dirty = true;
+				notifyAll();
+			}
+		}
+		
+		synchronized void waitForUpdate(long timeout) {
+			lastPollTime = System.currentTimeMillis();
+			if(!dirty) {
+				try {
+					wait(timeout);
+				} catch(InterruptedException e) {
+				}
+			}
+			dirty = false;
+		}
+		
+		synchronized boolean takeResized() {
+			boolean b = resized;
+			resized = false;
+			return b;
+		}
+	}
 }
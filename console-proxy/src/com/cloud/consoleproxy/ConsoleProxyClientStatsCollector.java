@@ -13,9 +13,10 @@
 package com.cloud.consoleproxy;
 
 import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.util.ArrayList;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Map;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
@@ -29,11 +30,18 @@ public class ConsoleProxyClientStatsCollector {
 	
 	ArrayList<ConsoleProxyConnection> connections;
 	
+	// system load average per processor, negative if not available
+	double cpuLoad;
+	
 	public ConsoleProxyClientStatsCollector() {
 	}
 	
-	public ConsoleProxyClientStatsCollector(Hashtable<String, ConsoleProxyClient> connMap) {
+	public ConsoleProxyClientStatsCollector(Map<String, ConsoleProxyClient> connMap) {
 		setConnections(connMap);
+		
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		double loadAverage = os.getSystemLoadAverage();
+		cpuLoad = loadAverage < 0 ? -1 : loadAverage / os.getAvailableProcessors();
 	}
 	
 	public String getStatsReport() {
@@ -46,27 +54,23 @@ public class ConsoleProxyClientStatsCollector {
 		gson.toJson(this, os);
 	}
 
-	private void setConnections(Hashtable<String, ConsoleProxyClient> connMap) {
+	private void setConnections(Map<String, ConsoleProxyClient> connMap) {
 		
 		ArrayList<ConsoleProxyConnection> conns = new ArrayList<ConsoleProxyConnection>();
-		Enumeration<String> e = connMap.keys();
-	    while (e.hasMoreElements()) {
-	    	synchronized (connMap) {
-	    		String key = e.nextElement();
-		        ConsoleProxyClient client = connMap.get(key);
-		         
-		        ConsoleProxyConnection conn = new ConsoleProxyConnection();
-		         
-		        conn.id = client.getClientId();
-		        conn.clientInfo = "";
-		        conn.host = client.getClientHostAddress();
-		        conn.port = client.getClientHostPort();
-		        conn.tag = client.getClientTag();
-		        conn.createTime = client.getClientCreateTime();
-		        conn.lastUsedTime = client.getClientLastFrontEndActivityTime();
-		        conns.add(conn);
-	    	}
-	    }
+		// connection map is a concurrent map, iterating it needs no lock
+		for (ConsoleProxyClient client : connMap.values()) {
+			ConsoleProxyConnection conn = new ConsoleProxyConnection();
+			
+			conn.id = client.getClientId();
+			conn.clientInfo = "";
+			conn.host = client.getClientHostAddress();
+			conn.port = client.getClientHostPort();
+			conn.tag = client.getClientTag();
+			conn.createTime = client.getClientCreateTime();
+			conn.lastUsedTime = client.getClientLastFrontEndActivityTime();
+			conn.bytesReceived = client.getClientBytesReceived();
+			conns.add(conn);
+		}
 	    connections = conns;
 	}
 	
@@ -78,6 +82,7 @@ public class ConsoleProxyClientStatsCollector {
 		public String tag;
 		public long createTime;
 		public long lastUsedTime;
+		public long bytesReceived;
 		
 		public ConsoleProxyConnection() {
 		}
@@ -13,8 +13,8 @@
 package com.cloud.consoleproxy;
 
 import java.io.File;
-import java.util.Enumeration;
-import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.apache.log4j.Logger;
 
@@ -30,10 +30,10 @@ public class ConsoleProxyGCThread extends Thread {
 	
 	private final static int MAX_SESSION_IDLE_SECONDS = 180;
 
-	private Hashtable<String, ConsoleProxyClient> connMap;
+	private ConcurrentHashMap<String, ConsoleProxyClient> connMap;
 	private long lastLogScan = 0;
 	
-	public ConsoleProxyGCThread(Hashtable<String, ConsoleProxyClient> connMap) {
+	public ConsoleProxyGCThread(ConcurrentHashMap<String, ConsoleProxyClient> connMap) {
 		this.connMap = connMap;
 	}
 	
@@ -67,24 +67,18 @@ public class ConsoleProxyGCThread extends Thread {
 			
 			if(s_logger.isDebugEnabled())
 				s_logger.debug("connMap=" + connMap);
-			Enumeration<String> e = connMap.keys();
-		    while (e.hasMoreElements()) {
-		    	String key;
-		    	ConsoleProxyClient client;
-		    	
-		    	synchronized (connMap) {
-    		        key  = e.nextElement();
-    		        client  = connMap.get(key);
-		    	}
+		    for (Map.Entry<String, ConsoleProxyClient> entry : connMap.entrySet()) {
+		    	String key = entry.getKey();
+		    	ConsoleProxyClient client = entry.getValue();
 
     		    long seconds_unused = (System.currentTimeMillis() - client.getClientLastFrontEndActivityTime()) / 1000;
     		    if (seconds_unused < MAX_SESSION_IDLE_SECONDS) {
     		      	continue;
     		    }
     		    
-		    	synchronized (connMap) {
-		    		connMap.remove(key);
-		    	}
+		    	// the session may have been re-created under the same key meanwhile
+		    	if (!connMap.remove(key, client))
+		    		continue;
 		    	
     		    // close the server connection
     		    s_logger.info("Dropping " + client + " which has not been used for " + seconds_unused + " seconds");
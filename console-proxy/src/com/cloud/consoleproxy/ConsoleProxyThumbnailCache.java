@@ -0,0 +1,157 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.cloud.consoleproxy.util.TileImageEncoder;
+import com.cloud.consoleproxy.util.TileTracker;
+import com.cloud.consoleproxy.vnc.FrameBufferCanvas;
+
+/**
+ * Keeps the scaled thumbnails of a console session, one per requested size.
+ * 
+ * A thumbnail tracks the frame buffer tiles invalidated since it was last
+ * scaled and only those parts are scaled again. The encoded image and its
+ * ETag stay the same as long as the scaled pixels do not change. The ETag is a
+ * digest of the encoded image, so it never repeats for different content, not
+ * even after the proxy restarts or a thumbnail size is evicted.
+ */
+public class ConsoleProxyThumbnailCache {
+	private static final int MAX_THUMBNAIL_SIZES = 4;
+	private static final int TILE_SIZE = 64;
+	
+	private final Map<Long, ScaledThumbnail> thumbnails = new LinkedHashMap<Long, ScaledThumbnail>(8, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, ScaledThumbnail> eldest) {
+			return size() > MAX_THUMBNAIL_SIZES;
+		}
+	};
+	
+	public void invalidate(Rectangle rect) {
+		synchronized(thumbnails) {
+			for(ScaledThumbnail thumbnail : thumbnails.values())
+				thumbnail.tracker.invalidate(rect);
+		}
+	}
+	
+	public Thumbnail getThumbnail(FrameBufferCanvas canvas, int width, int height) throws IOException {
+		Long key = ((long)width << 32) | height;
+		ScaledThumbnail thumbnail;
+		synchronized(thumbnails) {
+			thumbnail = thumbnails.get(key);
+			if(thumbnail == null) {
+				thumbnail = new ScaledThumbnail(width, height);
+				thumbnails.put(key, thumbnail);
+			}
+		}
+		return thumbnail.refresh(canvas);
+	}
+	
+	public static class Thumbnail {
+		private final byte[] imageBits;
+		private final String etag;
+		
+		Thumbnail(byte[] imageBits, String etag) {
+			this.imageBits = imageBits;
+			this.etag = etag;
+		}
+		
+		public byte[] getImageBits() {
+			return imageBits;
+		}
+		
+		public String getETag() {
+			return etag;
+		}
+		
+		public String getContentType() {
+			return TileImageEncoder.getContentType(imageBits);
+		}
+	}
+	
+	private class ScaledThumbnail {
+		private final BufferedImage image;
+		private volatile TileTracker tracker;
+		
+		// canvas the thumbnail was scaled from, it is replaced when the session reconnects
+		private FrameBufferCanvas source;
+		// scaled pixels of the current thumbnail
+		private int[] encodedPixels;
+		private Thumbnail current;
+		
+		ScaledThumbnail(int width, int height) {
+			image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			tracker = createTracker();
+		}
+		
+		synchronized Thumbnail refresh(FrameBufferCanvas canvas) throws IOException {
+			if(canvas != source) {
+				tracker = createTracker();
+				source = canvas;
+			}
+			
+			if(!canvas.updateScaledImage(image, tracker) && current != null)
+				return current;
+			
+			int[] pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+			if(current != null && Arrays.equals(pixels, encodedPixels))
+				return current;
+			
+			int width = image.getWidth();
+			int height = image.getHeight();
+			TileImageEncoder encoder = TileImageEncoder.getInstance();
+			int[] dst = encoder.getScratchBuffer(width, height);
+			int stride = encoder.getStride();
+			for(int line = 0; line < height; line++)
+				System.arraycopy(pixels, line*width, dst, line*stride, width);
+			
+			byte[] imageBits = encoder.encode(width, height);
+			encodedPixels = pixels.clone();
+			current = new Thumbnail(imageBits, "\"" + digest(imageBits) + "\"");
+			return current;
+		}
+		
+		private String digest(byte[] imageBits) {
+			MessageDigest md;
+			try {
+				md = MessageDigest.getInstance("SHA-1");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			byte[] digest = md.digest(imageBits);
+			StringBuilder sb = new StringBuilder(digest.length*2);
+			for(byte b : digest)
+				sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+			return sb.toString();
+		}
+		
+		private TileTracker createTracker() {
+			// sized by the canvas on the first refresh
+			TileTracker tracker = new TileTracker();
+			tracker.setTileWidth(TILE_SIZE);
+			tracker.setTileHeight(TILE_SIZE);
+			return tracker;
+		}
+	}
+}
@@ -16,7 +16,6 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.FontMetrics;
 import java.awt.Graphics2D;
-import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -156,18 +155,24 @@ public class ConsoleProxyThumbnailHandler implements HttpHandler {
 		}
 		
 		{
-			Image scaledImage = viewer.getClientScaledImage(width, height);
-			BufferedImage bufferedImage = new BufferedImage(width, height,
-					BufferedImage.TYPE_3BYTE_BGR);
-			Graphics2D bufImageGraphics = bufferedImage.createGraphics();
-			bufImageGraphics.drawImage(scaledImage, 0, 0, null);
-			ByteArrayOutputStream bos = new ByteArrayOutputStream(8196);
-			javax.imageio.ImageIO.write(bufferedImage, "jpg", bos);
-			byte[] bs = bos.toByteArray();
+			// scaled image is kept by the session, only changed parts are scaled again
+			ConsoleProxyThumbnailCache.Thumbnail thumbnail = viewer.getClientThumbnail(Math.min(width, 800), Math.min(height, 600));
+			if(thumbnail == null)
+				throw new IOException("Frame buffer of console is not available");
+			
 			Headers hds = t.getResponseHeaders();
-			hds.set("Content-Type", "image/jpeg");
+			hds.set("ETag", thumbnail.getETag());
+			// browser may keep the image but has to revalidate it every time
 			hds.set("Cache-Control", "no-cache");
-			hds.set("Cache-Control", "no-store");
+			
+			String ifNoneMatch = t.getRequestHeaders().getFirst("If-None-Match");
+			if(thumbnail.getETag().equals(ifNoneMatch)) {
+				t.sendResponseHeaders(304, -1);
+				return;
+			}
+			
+			byte[] bs = thumbnail.getImageBits();
+			hds.set("Content-Type", thumbnail.getContentType());
 			t.sendResponseHeaders(200, bs.length);
 			OutputStream os = t.getResponseBody();
 			os.write(bs);
@@ -78,6 +78,12 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
 							} catch (URISyntaxException e) {
 								s_logger.warn("Invalid tunnel URL " + tunnelUrl);
 							}
+						} else if(ConsoleProxy.vncNio) {
+							s_logger.info("Connect to VNC server directly in NIO mode. host: " + getClientHostAddress() + ", port: " + getClientHostPort());
+							client.connectToNio(getClientHostAddress(), getClientHostPort(), getClientHostPassword());
+							
+							// the selector serves the session from now on, onClientClose() tells when it is gone
+							return;
 						} else {
 							s_logger.info("Connect to VNC server directly. host: " + getClientHostAddress() + ", port: " + getClientHostPort());
 							client.connectTo(getClientHostAddress(), getClientHostPort(), getClientHostPassword());
@@ -102,6 +108,13 @@ public class ConsoleProxyVncClient extends ConsoleProxyClientBase {
 		worker.start();
 	}
 	
+	@Override
+	public long getClientBytesReceived() {
+		if(client != null)
+			return client.getBytesReceived();
+		return 0;
+	}
+	
 	@Override
 	public void closeClient() {
 		if(client != null)
@@ -0,0 +1,247 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * TileImageEncoder encodes frame buffer tiles for AJAX viewer. Each thread
+ * gets its own encoder, which keeps image writers, write parameters, a
+ * scratch image and output buffer between calls. Callers copy pixels
+ * straight into the scratch raster and then encode it.
+ * 
+ * Content with few colors (text consoles, flat desktops) is encoded as
+ * palette PNG, which is both smaller and sharper than JPEG, anything else is
+ * encoded as JPEG.
+ */
+public class TileImageEncoder {
+	private static final Logger s_logger = Logger.getLogger(TileImageEncoder.class);
+	
+	public static final String CONTENT_TYPE_JPEG = "image/jpeg";
+	public static final String CONTENT_TYPE_PNG = "image/png";
+	
+	// encode as PNG when image has no more colors than this
+	private static final int MAX_PNG_COLORS = 256;
+	private static final int COLOR_TABLE_SIZE = 1024;
+	
+	private static volatile float s_jpegQuality = 0.75f;
+	
+	private static final ThreadLocal<TileImageEncoder> s_encoders = new ThreadLocal<TileImageEncoder>() {
+		@Override
+		protected TileImageEncoder initialValue() {
+			return new TileImageEncoder();
+		}
+	};
+	
+	private final ImageWriter jpegWriter;
+	private final ImageWriteParam jpegParam;
+	private float jpegParamQuality;
+	private final ImageWriter pngWriter;
+	
+	private BufferedImage scratchImage;
+	private int[] scratchBuffer;
+	
+	private final ByteArrayOutputStream bos = new ByteArrayOutputStream(128000);
+	
+	// open addressing color table, an entry is valid when its generation is current
+	private final int[] colorKeys = new int[COLOR_TABLE_SIZE];
+	private final int[] colorIndexes = new int[COLOR_TABLE_SIZE];
+	private final int[] colorGenerations = new int[COLOR_TABLE_SIZE];
+	private int generation = 0;
+	private final int[] palette = new int[MAX_PNG_COLORS];
+	private int paletteSize;
+	private byte[] indexBuffer;
+	
+	public static TileImageEncoder getInstance() {
+		return s_encoders.get();
+	}
+	
+	public static void setJpegQuality(float quality) {
+		s_jpegQuality = quality;
+	}
+	
+	public static String getContentType(byte[] image) {
+		if(image != null && image.length > 4 && (image[0] & 0xff) == 0x89 && image[1] == 'P' && image[2] == 'N' && image[3] == 'G')
+			return CONTENT_TYPE_PNG;
+		return CONTENT_TYPE_JPEG;
+	}
+	
+	private TileImageEncoder() {
+		jpegWriter = getWriter("jpg");
+		jpegParam = jpegWriter.getDefaultWriteParam();
+		jpegParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		pngWriter = getWriter("png");
+	}
+	
+	private static ImageWriter getWriter(String formatName) {
+		Iterator<ImageWriter> it = ImageIO.getImageWritersByFormatName(formatName);
+		if(!it.hasNext())
+			throw new IllegalStateException("No image writer for " + formatName);
+		return it.next();
+	}
+	
+	/**
+	 * Makes sure the scratch image can hold width x height pixels and returns its pixels.
+	 * Lines in the returned buffer are getStride() pixels apart
+	 */
+	public int[] getScratchBuffer(int width, int height) {
+		if(scratchImage == null || scratchImage.getWidth() < width || scratchImage.getHeight() < height) {
+			int newWidth = Math.max(width, scratchImage != null ? scratchImage.getWidth() : 0);
+			int newHeight = Math.max(height, scratchImage != null ? scratchImage.getHeight() : 0);
+			scratchImage = new BufferedImage(newWidth, newHeight, BufferedImage.TYPE_INT_RGB);
+			scratchBuffer = ((DataBufferInt)scratchImage.getRaster().getDataBuffer()).getData();
+		}
+		return scratchBuffer;
+	}
+	
+	public int getStride() {
+		return scratchImage.getWidth();
+	}
+	
+	/**
+	 * Encodes the top-left width x height area of the scratch image
+	 */
+	public byte[] encode(int width, int height) throws IOException {
+		bos.reset();
+		if(collectPalette(width, height))
+			writePng(width, height);
+		else
+			writeJpeg(width, height);
+		return bos.toByteArray();
+	}
+	
+	private boolean collectPalette(int width, int height) {
+		generation++;
+		if(generation == 0) {
+			// wrapped around, old generations could look current again
+			Arrays.fill(colorGenerations, 0);
+			generation = 1;
+		}
+		paletteSize = 0;
+		
+		int stride = getStride();
+		int lastPixel = -1;
+		for(int y = 0; y < height; y++) {
+			for(int i = y*stride, end = i + width; i < end; i++) {
+				int pixel = scratchBuffer[i] & 0xffffff;
+				if(pixel == lastPixel)
+					continue;
+				lastPixel = pixel;
+				
+				if(lookupColor(pixel) < 0) {
+					if(paletteSize == MAX_PNG_COLORS)
+						return false;
+					addColor(pixel);
+				}
+			}
+		}
+		return true;
+	}
+	
+	private int lookupColor(int pixel) {
+		int slot = hashColor(pixel);
+		while(colorGenerations[slot] == generation) {
+			if(colorKeys[slot] == pixel)
+				return colorIndexes[slot];
+			slot = (slot + 1) & (COLOR_TABLE_SIZE - 1);
+		}
+		return -1;
+	}
+	
+	private void addColor(int pixel) {
+		int slot = hashColor(pixel);
+		while(colorGenerations[slot] == generation)
+			slot = (slot + 1) & (COLOR_TABLE_SIZE - 1);
+		
+		colorGenerations[slot] = generation;
+		colorKeys[slot] = pixel;
+		colorIndexes[slot] = paletteSize;
+		palette[paletteSize++] = pixel;
+	}
+	
+	private static int hashColor(int pixel) {
+		int h = pixel * 0x9E3779B1;
+		return (h >>> 22) & (COLOR_TABLE_SIZE - 1);
+	}
+	
+	private void writePng(int width, int height) throws IOException {
+		if(indexBuffer == null || indexBuffer.length < width*height)
+			indexBuffer = new byte[width*height];
+		
+		int stride = getStride();
+		int lastPixel = -1;
+		int lastIndex = 0;
+		for(int y = 0, j = 0; y < height; y++) {
+			for(int i = y*stride, end = i + width; i < end; i++, j++) {
+				int pixel = scratchBuffer[i] & 0xffffff;
+				if(pixel != lastPixel) {
+					lastPixel = pixel;
+					lastIndex = lookupColor(pixel);
+				}
+				indexBuffer[j] = (byte)lastIndex;
+			}
+		}
+		
+		byte[] r = new byte[paletteSize];
+		byte[] g = new byte[paletteSize];
+		byte[] b = new byte[paletteSize];
+		for(int i = 0; i < paletteSize; i++) {
+			r[i] = (byte)(palette[i] >> 16);
+			g[i] = (byte)(palette[i] >> 8);
+			b[i] = (byte)palette[i];
+		}
+		IndexColorModel colorModel = new IndexColorModel(8, paletteSize, r, g, b);
+		WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(indexBuffer, width*height), width, height, width, 1, new int[] { 0 }, null);
+		
+		write(pngWriter, new BufferedImage(colorModel, raster, false, null), null);
+	}
+	
+	private void writeJpeg(int width, int height) throws IOException {
+		float quality = s_jpegQuality;
+		if(quality != jpegParamQuality) {
+			jpegParam.setCompressionQuality(quality);
+			jpegParamQuality = quality;
+		}
+		write(jpegWriter, scratchImage.getSubimage(0, 0, width, height), jpegParam);
+	}
+	
+	private void write(ImageWriter writer, BufferedImage image, ImageWriteParam param) throws IOException {
+		ImageOutputStream ios = new MemoryCacheImageOutputStream(bos);
+		try {
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.setOutput(null);
+			ios.close();
+		}
+		
+		if(s_logger.isTraceEnabled())
+			s_logger.trace("Encoded " + image.getWidth() + "x" + image.getHeight() + " image with " + (writer == pngWriter ? paletteSize + " colors as PNG" : "JPEG") + ", size: " + bos.size());
+	}
+}
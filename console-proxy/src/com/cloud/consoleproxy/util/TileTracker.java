@@ -21,6 +21,18 @@ public class TileTracker {
 	// 2 dimension tile status snapshot, a true value means the corresponding tile has been invalidated
 	private boolean[][] snapshot;
 	
+	// content hash of each tile as last sent to the viewer, used to skip tiles
+	// which are invalidated but whose pixels did not change
+	private long[][] tileHashes;
+	private boolean[][] tileHashValid;
+	
+	// the hashes are dropped and every tile is sent again this often, so a tile
+	// skipped because of a hash collision does not stay stale on the viewer
+	private long tileHashRefreshInterval = DEFAULT_TILE_HASH_REFRESH_INTERVAL;
+	private long tileHashesSince = 0;
+	
+	public static final long DEFAULT_TILE_HASH_REFRESH_INTERVAL = 5*60*1000;
+	
 	private int tileWidth = 0;
 	private int tileHeight = 0;
 	private int trackWidth = 0;
@@ -80,6 +92,9 @@ public class TileTracker {
 		for(int i = 0; i < rows; i++)
 			for(int j = 0; j < cols; j++)
 				snapshot[i][j] = false;
+		tileHashes = new long[rows][cols];
+		tileHashValid = new boolean[rows][cols];
+		tileHashesSince = 0;
 	}
 	
 	public synchronized void resize(int trackWidth, int trackHeight) {
@@ -97,6 +112,13 @@ public class TileTracker {
 		for(int i = 0; i < rows; i++)
 			for(int j = 0; j < cols; j++)
 				snapshot[i][j] = true;
+		tileHashes = new long[rows][cols];
+		tileHashValid = new boolean[rows][cols];
+		tileHashesSince = 0;
+	}
+	
+	public void setTileHashRefreshInterval(long tileHashRefreshInterval) {
+		this.tileHashRefreshInterval = tileHashRefreshInterval;
 	}
 	
 	public void invalidate(Rectangle rect) {
@@ -111,6 +133,14 @@ public class TileTracker {
 		List<TileInfo> l = new ArrayList<TileInfo>();
 		
 		synchronized(this) {
+			if(tileHashesSince != 0 && System.currentTimeMillis() - tileHashesSince >= tileHashRefreshInterval) {
+				for(int i = 0; i < tileHashValid.length; i++)
+					for(int j = 0; j < tileHashValid[i].length; j++)
+						tileHashValid[i][j] = false;
+				tileHashesSince = 0;
+				init = true;
+			}
+			
 			for(int i = 0; i < getTileRows(); i++) {
 				for(int j = 0; j < getTileCols(); j++) {
 					if(init || snapshot[i][j]) {
@@ -130,6 +160,24 @@ public class TileTracker {
 		}	
 	}
 	
+	/**
+	 * Records the content hash of a tile which is about to be sent
+	 * @return false if the tile has been sent with the same content before
+	 */
+	public synchronized boolean updateTileHash(int row, int col, long hash) {
+		if(row >= tileHashes.length || col >= tileHashes[row].length)
+			return true;
+		
+		if(tileHashValid[row][col] && tileHashes[row][col] == hash)
+			return false;
+		
+		if(tileHashesSince == 0)
+			tileHashesSince = System.currentTimeMillis();
+		tileHashes[row][col] = hash;
+		tileHashValid[row][col] = true;
+		return true;
+	}
+	
 	public boolean hasFullCoverage() {
 		synchronized(this) {
 			for(int i = 0; i < getTileRows(); i++) {
@@ -227,6 +275,10 @@ public class TileTracker {
 		int nEndTileRow;
 		int nEndTileCol;
 		
+		// not sized yet, resize() will invalidate every tile
+		if(snapshot == null)
+			return;
+		
 		int cols = getTileCols();
 		int rows = getTileRows();
 		
@@ -19,11 +19,16 @@ import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
-import com.cloud.consoleproxy.util.ImageHelper;
+import com.cloud.consoleproxy.util.TileImageEncoder;
 import com.cloud.consoleproxy.util.TileInfo;
+import com.cloud.consoleproxy.util.TileTracker;
 
 /**
  * A <code>BuffereImageCanvas</code> component represents frame buffer image on the
@@ -40,6 +45,9 @@ public class BufferedImageCanvas extends Canvas implements FrameBufferCanvas {
 
   private PaintNotificationListener listener;
 
+  // incremented, with offline image locked, each time it is drawn to
+  private long generation;
+
   public BufferedImageCanvas(PaintNotificationListener listener, int width, int height) {
     super();
     this.listener = listener;
@@ -85,6 +93,13 @@ public class BufferedImageCanvas extends Canvas implements FrameBufferCanvas {
   public Graphics2D getOfflineGraphics() {
     return graphics;
   }
+
+  /**
+   * Called with the offline image locked after drawing to it
+   */
+  public void contentChanged() {
+    generation++;
+  }
   
   public void copyTile(Graphics2D g, int x, int y, Rectangle rc) {
 	synchronized(offlineImage) {
@@ -101,50 +116,211 @@ public class BufferedImageCanvas extends Canvas implements FrameBufferCanvas {
   }
   
   @Override
-  public byte[] getFrameBufferJpeg() {
-	int width = 800;
-	int height = 600;
-	
-	width = offlineImage.getWidth();
-	height = offlineImage.getHeight();
-	
-	BufferedImage bufferedImage = new BufferedImage(width, height,
-		BufferedImage.TYPE_3BYTE_BGR);
-	Graphics2D g = bufferedImage.createGraphics();
+  public byte[] getFrameBufferImage(List<TileInfo> tileList, TileTracker tracker) {
+	int width = offlineImage.getWidth();
+	int height = offlineImage.getHeight();
+
+	TileImageEncoder encoder = TileImageEncoder.getInstance();
+	int[] dst = encoder.getScratchBuffer(width, height);
+	int stride = encoder.getStride();
+
 	synchronized(offlineImage) {
-	  g.drawImage(offlineImage, 0, 0, width, height, 0, 0, width, height, null);
+	  int[] src = getOfflineImageBuffer();
+	  for(int line = 0; line < height; line++)
+		System.arraycopy(src, line*width, dst, line*stride, width);
+	}
+
+	// Viewer gets every tile, remember what it has
+	for(TileInfo tile : tileList) {
+	  Rectangle rc = tile.getTileRect();
+	  int tileWidth = Math.min(rc.width, width - rc.x);
+	  int tileHeight = Math.min(rc.height, height - rc.y);
+	  if(tileWidth > 0 && tileHeight > 0)
+		tracker.updateTileHash(tile.getRow(), tile.getCol(), hashTile(dst, stride, rc, tileWidth, tileHeight));
 	}
-		
+
 	byte[] imgBits = null;
 	try {
-	  imgBits = ImageHelper.jpegFromImage(bufferedImage);
+	  imgBits = encoder.encode(width, height);
 	} catch (IOException e) {
 	}
 	return imgBits;
   }
-	
+
+  /**
+   * Merges tiles side by side into one image. Tiles whose content has not
+   * changed since they were last sent are removed from the list, unless
+   * tracker is null.
+   */
+  @Override
+  public byte[] getTilesMergedImage(List<TileInfo> tileList, int tileWidth, int tileHeight, TileTracker tracker) {
+	return getTilesMergedImage(tileList, tileWidth, tileHeight, tracker, null);
+  }
+
+  /**
+   * Same as getTilesMergedImage(tileList, tileWidth, tileHeight, tracker), an
+   * image merged from the same tiles of the same frame buffer content is taken
+   * from encodedImages instead of being encoded again. The unchanged tiles are
+   * found, the cache key is taken and the pixels are copied under one lock of
+   * the offline image, so the image always shows the content the tracker
+   * records as sent.
+   */
   @Override
-  public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight) {
-	int width = Math.max(tileWidth, tileWidth*tileList.size());
-	BufferedImage bufferedImage = new BufferedImage(width, tileHeight,
-		BufferedImage.TYPE_3BYTE_BGR);
-	Graphics2D g = bufferedImage.createGraphics();
-	
+  public byte[] getTilesMergedImage(List<TileInfo> tileList, int tileWidth, int tileHeight, TileTracker tracker,
+	Map<String, byte[]> encodedImages) {
+	TileImageEncoder encoder = TileImageEncoder.getInstance();
+	int[] dst = encoder.getScratchBuffer(Math.max(tileWidth, tileWidth*tileList.size()), tileHeight);
+	int stride = encoder.getStride();
+
+	String key = null;
+	int i = 0;
 	synchronized(offlineImage) {
-	  int i = 0;
+	  int[] src = getOfflineImageBuffer();
+	  int imageWidth = offlineImage.getWidth();
+	  int imageHeight = offlineImage.getHeight();
+
+	  Iterator<TileInfo> it = tileList.iterator();
+	  while(it.hasNext()) {
+		TileInfo tile = it.next();
+		Rectangle rc = tile.getTileRect();
+		int width = Math.min(rc.width, imageWidth - rc.x);
+		int height = Math.min(rc.height, imageHeight - rc.y);
+		if(width <= 0 || height <= 0 ||
+		  (tracker != null && !tracker.updateTileHash(tile.getRow(), tile.getCol(), hashTile(src, imageWidth, rc, width, height))))
+		  it.remove();
+	  }
+
+	  if(encodedImages != null) {
+		key = getEncodedImageKey(generation, tileList);
+		synchronized(encodedImages) {
+		  byte[] imgBits = encodedImages.get(key);
+		  if(imgBits != null)
+			return imgBits;
+		}
+	  }
+
 	  for(TileInfo tile : tileList) {
 		Rectangle rc = tile.getTileRect();
-		g.drawImage(offlineImage, i*tileWidth, 0, i*tileWidth + rc.width, rc.height, 
-		  rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, null);
+		int width = Math.min(rc.width, imageWidth - rc.x);
+		int height = Math.min(rc.height, imageHeight - rc.y);
+		for(int line = 0; line < height; line++)
+		  System.arraycopy(src, (rc.y + line)*imageWidth + rc.x, dst, line*stride + i*tileWidth, width);
 		i++;
 	  }
 	}
-	
+
+	// Keep sending an image when nothing changed, the viewer always loads one
+	if(i == 0)
+	  Arrays.fill(dst, 0, tileWidth, 0);
+
 	byte[] imgBits = null;
 	try {
-	  imgBits = ImageHelper.jpegFromImage(bufferedImage);
+	  imgBits = encoder.encode(Math.max(tileWidth, tileWidth*i), i == 0 ? 1 : tileHeight);
 	} catch (IOException e) {
 	}
+
+	if(imgBits != null && key != null) {
+	  synchronized(encodedImages) {
+		encodedImages.put(key, imgBits);
+	  }
+	}
 	return imgBits;
   }
-}
\ No newline at end of file
+
+  private static String getEncodedImageKey(long generation, List<TileInfo> tiles) {
+	StringBuilder sb = new StringBuilder();
+	sb.append(generation);
+	for(TileInfo tile : tiles)
+	  sb.append('|').append(tile.getRow()).append(',').append(tile.getCol());
+	return sb.toString();
+  }
+
+  /**
+   * Scales the frame buffer down into scaledImage (TYPE_INT_RGB), only the
+   * parts covering tiles invalidated in tracker are scaled again. Each scaled
+   * pixel is the average of the frame buffer pixels it covers, so a partial
+   * update gives the same pixels as scaling the whole frame buffer.
+   * @return false if no pixel of scaledImage was updated
+   */
+  @Override
+  public boolean updateScaledImage(BufferedImage scaledImage, TileTracker tracker) {
+	BufferedImage image = offlineImage;
+	int[] dst = ((DataBufferInt)scaledImage.getRaster().getDataBuffer()).getData();
+	int dstWidth = scaledImage.getWidth();
+	int dstHeight = scaledImage.getHeight();
+
+	synchronized(image) {
+	  int srcWidth = image.getWidth();
+	  int srcHeight = image.getHeight();
+	  if(tracker.getTrackWidth() != srcWidth || tracker.getTrackHeight() != srcHeight)
+		tracker.resize(srcWidth, srcHeight);
+
+	  List<TileInfo> tiles = tracker.scan(false);
+	  if(tiles.isEmpty())
+		return false;
+
+	  int[] src = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+	  for(TileInfo tile : tiles) {
+		Rectangle rc = tile.getTileRect();
+		// scaled pixels whose source area overlaps the tile, one more on each side for rounding
+		int left = Math.max(0, rc.x*dstWidth/srcWidth - 1);
+		int right = Math.min(dstWidth, (rc.x + rc.width)*dstWidth/srcWidth + 2);
+		int top = Math.max(0, rc.y*dstHeight/srcHeight - 1);
+		int bottom = Math.min(dstHeight, (rc.y + rc.height)*dstHeight/srcHeight + 2);
+		scaleArea(src, srcWidth, srcHeight, dst, dstWidth, dstHeight, left, top, right, bottom);
+	  }
+	}
+	return true;
+  }
+
+  private static void scaleArea(int[] src, int srcWidth, int srcHeight, int[] dst, int dstWidth, int dstHeight,
+	int left, int top, int right, int bottom) {
+	for(int y = top; y < bottom; y++) {
+	  int y0 = y*srcHeight/dstHeight;
+	  int y1 = Math.max(y0 + 1, (y + 1)*srcHeight/dstHeight);
+	  for(int x = left; x < right; x++) {
+		int x0 = x*srcWidth/dstWidth;
+		int x1 = Math.max(x0 + 1, (x + 1)*srcWidth/dstWidth);
+
+		int r = 0, g = 0, b = 0;
+		for(int line = y0; line < y1; line++) {
+		  for(int i = line*srcWidth + x0, end = i + x1 - x0; i < end; i++) {
+			int pixel = src[i];
+			r += (pixel >> 16) & 0xff;
+			g += (pixel >> 8) & 0xff;
+			b += pixel & 0xff;
+		  }
+		}
+		int count = (y1 - y0)*(x1 - x0);
+		dst[y*dstWidth + x] = ((r/count) << 16) | ((g/count) << 8) | (b/count);
+	  }
+	}
+  }
+
+  private int[] getOfflineImageBuffer() {
+	return ((DataBufferInt)offlineImage.getRaster().getDataBuffer()).getData();
+  }
+
+  /**
+   * 64 bit content hash of a tile, each pixel is mixed in the way MurmurHash3
+   * mixes a block, so small edits to neighbouring pixels do not cancel out
+   * the way they do with a polynomial hash.
+   */
+  static long hashTile(int[] buf, int stride, Rectangle rc, int width, int height) {
+	long hash = width*31 + height;
+	for(int line = 0; line < height; line++) {
+	  for(int i = (rc.y + line)*stride + rc.x, end = i + width; i < end; i++) {
+		long k = (buf[i] & 0xffffffffL)*0x87c37b91114253d5L;
+		k = Long.rotateLeft(k, 31)*0x4cf5ad432745937fL;
+		hash ^= k;
+		hash = Long.rotateLeft(hash, 27)*5 + 0x52dce729;
+	  }
+	}
+	hash ^= hash >>> 33;
+	hash *= 0xff51afd7ed558ccdL;
+	hash ^= hash >>> 33;
+	hash *= 0xc4ceb9fe1a85ec53L;
+	hash ^= hash >>> 33;
+	return hash;
+  }
+}
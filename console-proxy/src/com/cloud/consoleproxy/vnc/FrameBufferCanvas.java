@@ -13,12 +13,17 @@
 package com.cloud.consoleproxy.vnc;
 
 import java.awt.Image;
+import java.awt.image.BufferedImage;
 import java.util.List;
+import java.util.Map;
 
 import com.cloud.consoleproxy.util.TileInfo;
+import com.cloud.consoleproxy.util.TileTracker;
 
 public interface FrameBufferCanvas {
 	Image getFrameBufferScaledImage(int width, int height);
-	public byte[] getFrameBufferJpeg();
-	public byte[] getTilesMergedJpeg(List<TileInfo> tileList, int tileWidth, int tileHeight);
+	public boolean updateScaledImage(BufferedImage scaledImage, TileTracker tracker);
+	public byte[] getFrameBufferImage(List<TileInfo> tileList, TileTracker tracker);
+	public byte[] getTilesMergedImage(List<TileInfo> tileList, int tileWidth, int tileHeight, TileTracker tracker);
+	public byte[] getTilesMergedImage(List<TileInfo> tileList, int tileWidth, int tileHeight, TileTracker tracker, Map<String, byte[]> encodedImages);
 }
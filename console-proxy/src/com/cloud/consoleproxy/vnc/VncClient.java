@@ -16,11 +16,14 @@ import java.awt.Frame;
 import java.awt.ScrollPane;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.io.BufferedInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
 import java.security.spec.KeySpec;
 
 import javax.crypto.Cipher;
@@ -40,11 +43,13 @@ public class VncClient {
   private Socket socket;
   private DataInputStream is;
   private DataOutputStream os;
+  private CountingInputStream counter;
 
   private VncScreenDescription screen = new VncScreenDescription();
 
   private VncClientPacketSender sender;
   private VncServerPacketReceiver receiver;
+  private VncNioConnection nioConnection;
   
   private boolean noUI = false;
   private ConsoleProxyClientListener clientListener = null;
@@ -101,6 +106,9 @@ public class VncClient {
 	if(receiver != null)
 		receiver.closeConnection();
 
+	if(nioConnection != null)
+		nioConnection.closeConnection();
+
 	if(is != null) {
 	  try {
 	    is.close();
@@ -146,8 +154,58 @@ public class VncClient {
     doConnect(password);
   }
   
+  /**
+   * Connect to VNC server and let a VncNioSelector serve the connection
+   * afterwards. Unlike other connectTo() methods, this one returns as soon as
+   * connection is initialized, no thread is kept for the connection.
+   */
+  public void connectToNio(String host, int port, String password) throws UnknownHostException, IOException {
+	s_logger.info("Connecting to VNC server " + host + ":" + port + " in NIO mode...");
+    SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+    try {
+      this.socket = channel.socket();
+
+      // Handshake is done in blocking mode, without buffering, so no byte
+      // of server data is left behind when channel is switched to selector
+      counter = new CountingInputStream(socket.getInputStream(), getBytesReceived());
+      is = new DataInputStream(counter);
+      os = new DataOutputStream(socket.getOutputStream());
+
+      handshake();
+      authenticate(password);
+      initialize();
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    } catch (RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+
+    VncNioSelector selector = VncNioSelector.getSelector();
+    BufferedImageCanvas canvas = new BufferedImageCanvas(new PaintNotificationListener() {
+      @Override
+      public void imagePaintedOnScreen() {
+        sender.imagePaintedOnScreen();
+      }
+    }, screen.getFramebufferWidth(), screen.getFramebufferHeight());
+
+    nioConnection = new VncNioConnection(this, channel, screen, canvas, new FrameBufferUpdateListener() {
+      @Override
+      public void frameBufferPacketReceived() {
+        sender.frameBufferPacketReceived();
+      }
+    }, clientListener);
+
+    // Packets are queued on the connection and written by selector thread
+    sender = new VncClientPacketSender(new DataOutputStream(nioConnection.getOutputStream()), screen, this, true);
+    nioConnection.start(selector);
+  }
+
   private void doConnect(String password) throws IOException {
-    is = new DataInputStream(socket.getInputStream());
+    // Count bytes across reconnects, before buffering
+    counter = new CountingInputStream(socket.getInputStream(), getBytesReceived());
+    is = new DataInputStream(new BufferedInputStream(counter));
     os = new DataOutputStream(socket.getOutputStream());
 
     // Initialize connection
@@ -410,6 +468,8 @@ public class VncClient {
   public FrameBufferCanvas getFrameBufferCanvas() {
     if(receiver != null)
       return receiver.getCanvas();
+    if(nioConnection != null)
+      return nioConnection.getCanvas();
 	  
 	return null;
   }
@@ -429,7 +489,17 @@ public class VncClient {
     sender.sendClientPacket(new MouseEventPacket(event, x, y));
   }
   
+  /**
+   * Number of bytes received from VNC server by this client.
+   */
+  public long getBytesReceived() {
+    long count = counter != null ? counter.getCount() : 0;
+    if (nioConnection != null)
+      count += nioConnection.getBytesReceived();
+    return count;
+  }
+
   public boolean isHostConnected() {
-	  return receiver != null && receiver.isConnectionAlive();
+	  return (receiver != null && receiver.isConnectionAlive()) || (nioConnection != null && nioConnection.isConnectionAlive());
   }
 }
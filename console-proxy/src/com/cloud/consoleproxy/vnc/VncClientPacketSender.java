@@ -38,15 +38,24 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
   private final VncScreenDescription screen;
   private final VncClient vncConnection;
 
+  // Write packets from calling thread instead of sender thread, used when
+  // output stream does not block
+  private final boolean directWrite;
+
   private boolean connectionAlive = true;
 
   // Don't send update request again until we receive next frame buffer update
   private boolean updateRequestSent = false;
 
   public VncClientPacketSender(DataOutputStream os, VncScreenDescription screen, VncClient vncConnection) {
+    this(os, screen, vncConnection, false);
+  }
+
+  public VncClientPacketSender(DataOutputStream os, VncScreenDescription screen, VncClient vncConnection, boolean directWrite) {
     this.os = os;
     this.screen = screen;
     this.vncConnection = vncConnection;
+    this.directWrite = directWrite;
 
     sendSetPixelFormat();
     sendSetEncodings();
@@ -54,9 +63,27 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
   }
   
   public void sendClientPacket(ClientPacket packet) {
+    if (directWrite) {
+      writeClientPacket(packet);
+      return;
+    }
 	  queue.add(packet);
   }
 
+  private void writeClientPacket(ClientPacket packet) {
+    try {
+      synchronized (os) {
+        packet.write(os);
+        os.flush();
+      }
+    } catch (Throwable e) {
+      if (connectionAlive) {
+        closeConnection();
+        vncConnection.shutdown();
+      }
+    }
+  }
+
   @Override
   public void run() {
     try {
@@ -76,12 +103,12 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
   }
 
   private void sendSetEncodings() {
-    queue.add(new SetEncodingsPacket(RfbConstants.SUPPORTED_ENCODINGS_ARRAY));
+    sendClientPacket(new SetEncodingsPacket(RfbConstants.SUPPORTED_ENCODINGS_ARRAY));
   }
 
   private void sendSetPixelFormat() {
     if (!screen.isRGB888_32_LE()) {
-      queue.add(new SetPixelFormatPacket(screen, 32, 24, RfbConstants.LITTLE_ENDIAN, RfbConstants.TRUE_COLOR, 255, 255, 255, 16, 8, 0));
+      sendClientPacket(new SetPixelFormatPacket(screen, 32, 24, RfbConstants.LITTLE_ENDIAN, RfbConstants.TRUE_COLOR, 255, 255, 255, 16, 8, 0));
     }
   }
 
@@ -90,7 +117,7 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
   }
 
   public void requestFullScreenUpdate() {
-    queue.add(new FramebufferUpdateRequestPacket(RfbConstants.FRAMEBUFFER_FULL_UPDATE_REQUEST, 0, 0, screen.getFramebufferWidth(), screen
+    sendClientPacket(new FramebufferUpdateRequestPacket(RfbConstants.FRAMEBUFFER_FULL_UPDATE_REQUEST, 0, 0, screen.getFramebufferWidth(), screen
         .getFramebufferHeight()));
     updateRequestSent = true;
   }
@@ -98,7 +125,7 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
   @Override
   public void imagePaintedOnScreen() {
     if (!updateRequestSent) {
-      queue.add(new FramebufferUpdateRequestPacket(RfbConstants.FRAMEBUFFER_INCREMENTAL_UPDATE_REQUEST, 0, 0, screen.getFramebufferWidth(), screen
+      sendClientPacket(new FramebufferUpdateRequestPacket(RfbConstants.FRAMEBUFFER_INCREMENTAL_UPDATE_REQUEST, 0, 0, screen.getFramebufferWidth(), screen
           .getFramebufferHeight()));
       updateRequestSent = true;
     }
@@ -111,12 +138,12 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
 
   @Override
   public void mouseDragged(MouseEvent e) {
-    queue.add(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
+    sendClientPacket(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
   }
 
   @Override
   public void mouseMoved(MouseEvent e) {
-    queue.add(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
+    sendClientPacket(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
   }
 
   @Override
@@ -126,12 +153,12 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
 
   @Override
   public void mousePressed(MouseEvent e) {
-    queue.add(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
+    sendClientPacket(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
   }
 
   @Override
   public void mouseReleased(MouseEvent e) {
-    queue.add(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
+    sendClientPacket(new MouseEventPacket(mapAwtModifiersToVncButtonMask(e.getModifiersEx()), e.getX(), e.getY()));
   }
 
   @Override
@@ -170,13 +197,13 @@ public class VncClientPacketSender implements Runnable, PaintNotificationListene
   @Override
   public void keyPressed(KeyEvent e) {
     ClientPacket request = new KeyboardEventPacket(RfbConstants.KEY_DOWN, mapAwtKeyToVncKey(e.getKeyCode()));
-    queue.add(request);
+    sendClientPacket(request);
   }
 
   @Override
   public void keyReleased(KeyEvent e) {
     ClientPacket request = new KeyboardEventPacket(RfbConstants.KEY_UP, mapAwtKeyToVncKey(e.getKeyCode()));
-    queue.add(request);
+    sendClientPacket(request);
   }
 
   private int mapAwtKeyToVncKey(int key) {
@@ -0,0 +1,468 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.vnc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.cloud.consoleproxy.ConsoleProxyClientListener;
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.vnc.packet.server.EncodingContext;
+import com.cloud.consoleproxy.vnc.packet.server.FramebufferUpdatePacket;
+import com.cloud.consoleproxy.vnc.packet.server.ServerCutText;
+
+/**
+ * VncNioConnection - connection to VNC server, which is served by
+ * VncNioSelector instead of its own receiver thread. Data from server is
+ * collected in a buffer and parsed incrementally: a message or rectangle is
+ * decoded only when all of its bytes are received, otherwise parser waits for
+ * more data. Size of a rectangle is worked out from its header and, for
+ * Hextile, from tile headers, which are scanned as they arrive, so every
+ * rectangle is decoded once.
+ */
+public class VncNioConnection {
+  private static final Logger s_logger = Logger.getLogger(VncNioConnection.class);
+
+  private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+  // Do not let one busy connection starve others on the same selector
+  private static final int MAX_READS_PER_EVENT = 4;
+
+  private static final int STATE_MESSAGE = 0, STATE_RECT = 1;
+
+  private static final int HEXTILE_TILE_SIZE = 16;
+  private static final int HEXTILE_RAW = 1, HEXTILE_BACKGROUND_SPECIFIED = 2, HEXTILE_FOREGROUND_SPECIFIED = 4, HEXTILE_ANY_SUBRECTS = 8,
+      HEXTILE_SUBRECTS_COLOURED = 16;
+
+  private static final int TIGHT_FILL = 0x08, TIGHT_JPEG = 0x09, TIGHT_MAX_SUBENCODING = 0x09, TIGHT_EXPLICIT_FILTER = 0x04,
+      TIGHT_FILTER_PALETTE = 1, TIGHT_MIN_TO_COMPRESS = 12;
+
+  private final VncClient vncConnection;
+  private final SocketChannel channel;
+  private final VncScreenDescription screen;
+  private final BufferedImageCanvas canvas;
+  private final FrameBufferUpdateListener fburListener;
+  private final ConsoleProxyClientListener clientListener;
+  private final EncodingContext encodingContext = new EncodingContext();
+
+  private VncNioSelector selector;
+  private SelectionKey key;
+  private volatile boolean connectionAlive = true;
+
+  private byte[] readBuffer = new byte[INITIAL_BUFFER_SIZE];
+  private int readStart = 0;
+  private int readEnd = 0;
+  private volatile long bytesReceived = 0;
+
+  private int state = STATE_MESSAGE;
+  private int rectsRemaining = 0;
+  private FramebufferUpdatePacket update;
+
+  // Tiles of Hextile rectangle being received, which are scanned already,
+  // and their size including rectangle header
+  private int hextileTilesScanned = 0;
+  private long hextileScannedSize = 0;
+
+  private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+
+  public VncNioConnection(VncClient vncConnection, SocketChannel channel, VncScreenDescription screen, BufferedImageCanvas canvas,
+      FrameBufferUpdateListener fburListener, ConsoleProxyClientListener clientListener) {
+    this.vncConnection = vncConnection;
+    this.channel = channel;
+    this.screen = screen;
+    this.canvas = canvas;
+    this.fburListener = fburListener;
+    this.clientListener = clientListener;
+  }
+
+  public void start(VncNioSelector selector) throws IOException {
+    this.selector = selector;
+    channel.configureBlocking(false);
+    selector.register(this);
+  }
+
+  public BufferedImageCanvas getCanvas() {
+    return canvas;
+  }
+
+  public boolean isConnectionAlive() {
+    return connectionAlive;
+  }
+
+  public long getBytesReceived() {
+    return bytesReceived;
+  }
+
+  /**
+   * Stream for client packets. Each flush() queues written bytes for the
+   * selector thread.
+   */
+  public OutputStream getOutputStream() {
+    return new ByteArrayOutputStream(64) {
+      @Override
+      public synchronized void flush() {
+        if (count > 0) {
+          send(toByteArray());
+          reset();
+        }
+      }
+    };
+  }
+
+  private void send(byte[] data) {
+    writeQueue.add(ByteBuffer.wrap(data));
+    // Before registration, queued data is written once channel is registered
+    if (selector != null && key != null)
+      selector.requestWrite(this);
+  }
+
+  /**
+   * Called by selector thread.
+   */
+  void onRegister(Selector nioSelector) {
+    if (!connectionAlive)
+      return;
+
+    try {
+      key = channel.register(nioSelector, SelectionKey.OP_READ, this);
+      flushWrites();
+    } catch (IOException e) {
+      onError(e);
+    }
+  }
+
+  /**
+   * Called by selector thread.
+   */
+  void flushWrites() {
+    if (!connectionAlive || key == null)
+      return;
+
+    try {
+      ByteBuffer buf;
+      while ((buf = writeQueue.peek()) != null) {
+        channel.write(buf);
+        if (buf.hasRemaining())
+          break;
+        writeQueue.poll();
+      }
+
+      // Wait until socket is writable, if not everything is written
+      if (writeQueue.isEmpty())
+        key.interestOps(SelectionKey.OP_READ);
+      else
+        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    } catch (IOException e) {
+      onError(e);
+    }
+  }
+
+  /**
+   * Called by selector thread.
+   */
+  void onReadable() {
+    try {
+      for (int i = 0; i < MAX_READS_PER_EVENT && connectionAlive; i++) {
+        if (readEnd == readBuffer.length)
+          makeRoom();
+
+        int count = channel.read(ByteBuffer.wrap(readBuffer, readEnd, readBuffer.length - readEnd));
+        if (count < 0)
+          throw new EOFException("Connection closed by VNC server.");
+        if (count == 0)
+          break;
+
+        readEnd += count;
+        bytesReceived += count;
+        parse();
+      }
+    } catch (Throwable e) {
+      onError(e);
+    }
+  }
+
+  private void makeRoom() {
+    int length = readEnd - readStart;
+    if (readStart > 0 && length < readBuffer.length / 2) {
+      System.arraycopy(readBuffer, readStart, readBuffer, 0, length);
+    } else {
+      // Message, which is not complete yet, is larger than buffer
+      byte[] newBuffer = new byte[readBuffer.length * 2];
+      System.arraycopy(readBuffer, readStart, newBuffer, 0, length);
+      readBuffer = newBuffer;
+    }
+    readStart = 0;
+    readEnd = length;
+  }
+
+  /**
+   * Decode all complete messages and rectangles in buffer.
+   */
+  private void parse() throws IOException {
+    ParseBuffer in = new ParseBuffer(readBuffer, readStart, readEnd);
+    DataInputStream is = new DataInputStream(in);
+
+    try {
+      while (connectionAlive) {
+        int available = in.available();
+        int start = in.getPosition();
+
+        if (state == STATE_MESSAGE) {
+          if (available < 1)
+            break;
+
+          int messageType = readBuffer[start] & 0xFF;
+          switch (messageType) {
+
+          case RfbConstants.SERVER_FRAMEBUFFER_UPDATE: {
+            if (available < 4)
+              return;
+            is.skipBytes(2); // Message type and padding
+            rectsRemaining = is.readUnsignedShort();
+
+            // Notify sender that frame buffer update is received,
+            // so it can send another frame buffer update request
+            fburListener.frameBufferPacketReceived();
+            if (update == null)
+              update = new FramebufferUpdatePacket(canvas, screen, clientListener, encodingContext);
+            if (rectsRemaining > 0)
+              state = STATE_RECT;
+            break;
+          }
+
+          case RfbConstants.SERVER_BELL: {
+            is.skipBytes(1);
+            break;
+          }
+
+          case RfbConstants.SERVER_CUT_TEXT: {
+            if (available < 8 || available < 8 + readInt(start + 4))
+              return;
+            is.skipBytes(1);
+            new ServerCutText(is);
+            break;
+          }
+
+          default:
+            throw new IOException("Unknown server packet type: " + messageType + ".");
+          }
+
+        } else {
+          if (available < 12 || available < getMinimumRectSize(start, available))
+            return;
+
+          try {
+            update.readRect(is);
+          } catch (EOFException e) {
+            // Rectangle is not complete yet, parse it again when more data arrive
+            in.setPosition(start);
+            return;
+          }
+          hextileTilesScanned = 0;
+          hextileScannedSize = 0;
+
+          if (--rectsRemaining == 0)
+            state = STATE_MESSAGE;
+        }
+      }
+    } finally {
+      readStart = in.getPosition();
+      if (readStart == readEnd) {
+        readStart = 0;
+        readEnd = 0;
+      }
+    }
+  }
+
+  /**
+   * Size of rectangle, as far as it can be told from received data, so large
+   * rectangles are not parsed again and again while they are being received.
+   * When size is not known yet, returned value is larger than available.
+   */
+  private long getMinimumRectSize(int start, int available) {
+    int width = readUnsignedShort(start + 4);
+    int height = readUnsignedShort(start + 6);
+    int encoding = readInt(start + 8);
+
+    switch (encoding) {
+    case RfbConstants.ENCODING_RAW:
+      return 12 + (long) width * height * screen.getBytesPerPixel();
+    case RfbConstants.ENCODING_COPY_RECT:
+      return 16;
+    case RfbConstants.ENCODING_ZRLE:
+      return available < 16 ? 16 : 16 + (readInt(start + 12) & 0xFFFFFFFFL);
+    case RfbConstants.ENCODING_HEXTILE:
+      return getHextileSize(start, available, width, height);
+    case RfbConstants.ENCODING_TIGHT:
+      return getTightSize(start, available, width, height);
+    default:
+      return 12;
+    }
+  }
+
+  /**
+   * Scan headers of Hextile tiles, which are received, continuing from the
+   * tile where previous scan stopped.
+   */
+  private long getHextileSize(int start, int available, int width, int height) {
+    if (hextileScannedSize == 0)
+      hextileScannedSize = 12;
+
+    int cols = (width + HEXTILE_TILE_SIZE - 1) / HEXTILE_TILE_SIZE;
+    int tiles = cols * ((height + HEXTILE_TILE_SIZE - 1) / HEXTILE_TILE_SIZE);
+    while (hextileTilesScanned < tiles) {
+      if (hextileScannedSize >= available)
+        return hextileScannedSize + 1;
+
+      int offset = start + (int) hextileScannedSize;
+      int subencoding = readBuffer[offset] & 0xFF;
+      int tileSize = 1;
+      if ((subencoding & HEXTILE_RAW) != 0) {
+        int tileWidth = Math.min(HEXTILE_TILE_SIZE, width - (hextileTilesScanned % cols) * HEXTILE_TILE_SIZE);
+        int tileHeight = Math.min(HEXTILE_TILE_SIZE, height - (hextileTilesScanned / cols) * HEXTILE_TILE_SIZE);
+        tileSize += tileWidth * tileHeight * 4;
+      } else {
+        if ((subencoding & HEXTILE_BACKGROUND_SPECIFIED) != 0)
+          tileSize += 4;
+        if ((subencoding & HEXTILE_FOREGROUND_SPECIFIED) != 0)
+          tileSize += 4;
+        if ((subencoding & HEXTILE_ANY_SUBRECTS) != 0) {
+          if (hextileScannedSize + tileSize >= available)
+            return hextileScannedSize + tileSize + 1;
+          int numberOfSubrects = readBuffer[offset + tileSize] & 0xFF;
+          tileSize += 1 + numberOfSubrects * (((subencoding & HEXTILE_SUBRECTS_COLOURED) != 0) ? 6 : 2);
+        }
+      }
+      hextileScannedSize += tileSize;
+      hextileTilesScanned++;
+    }
+    return hextileScannedSize;
+  }
+
+  private long getTightSize(int start, int available, int width, int height) {
+    int pos = 12;
+    if (available <= pos)
+      return pos + 1;
+    int subencoding = (readBuffer[start + pos++] & 0xFF) >> 4;
+
+    if (subencoding == TIGHT_FILL)
+      return pos + 3;
+    if (subencoding == TIGHT_JPEG)
+      return getTightCompactDataSize(start, available, pos);
+    if (subencoding > TIGHT_MAX_SUBENCODING)
+      return pos; // Decoder reports it
+
+    int filter = 0;
+    if ((subencoding & TIGHT_EXPLICIT_FILTER) != 0) {
+      if (available <= pos)
+        return pos + 1;
+      filter = readBuffer[start + pos++] & 0xFF;
+    }
+
+    long rowSize = width * 3;
+    if (filter == TIGHT_FILTER_PALETTE) {
+      if (available <= pos)
+        return pos + 1;
+      int numberOfColors = (readBuffer[start + pos++] & 0xFF) + 1;
+      pos += numberOfColors * 3;
+      rowSize = (numberOfColors == 2) ? (width + 7) / 8 : width;
+    }
+
+    long dataSize = rowSize * height;
+    if (dataSize < TIGHT_MIN_TO_COMPRESS)
+      return pos + dataSize;
+    return getTightCompactDataSize(start, available, pos);
+  }
+
+  /**
+   * Size of Tight rectangle, which ends with compact length at given position
+   * and data of that length.
+   */
+  private long getTightCompactDataSize(int start, int available, int pos) {
+    int length = 0;
+    for (int i = 0; i < 3; i++) {
+      if (available <= pos)
+        return pos + 1;
+      int b = readBuffer[start + pos++] & 0xFF;
+      if (i == 2) {
+        length |= b << 14;
+      } else {
+        length |= (b & 0x7F) << (7 * i);
+        if ((b & 0x80) == 0)
+          break;
+      }
+    }
+    return (long) pos + length;
+  }
+
+  private int readUnsignedShort(int offset) {
+    return ((readBuffer[offset] & 0xFF) << 8) | (readBuffer[offset + 1] & 0xFF);
+  }
+
+  private int readInt(int offset) {
+    return ((readBuffer[offset] & 0xFF) << 24) | ((readBuffer[offset + 1] & 0xFF) << 16) | ((readBuffer[offset + 2] & 0xFF) << 8)
+        | (readBuffer[offset + 3] & 0xFF);
+  }
+
+  private void onError(Throwable e) {
+    if (connectionAlive) {
+      if (s_logger.isDebugEnabled())
+        s_logger.debug("Closing VNC connection: " + e.getMessage());
+      closeConnection();
+      vncConnection.shutdown();
+    }
+  }
+
+  public void closeConnection() {
+    if (!connectionAlive)
+      return;
+    connectionAlive = false;
+
+    if (key != null)
+      key.cancel();
+    try {
+      channel.close();
+    } catch (IOException e) {
+    }
+    writeQueue.clear();
+    // Inflaters are used by selector thread only, it is done with this connection
+    encodingContext.close();
+  }
+
+  /**
+   * Byte array stream, which position can be saved and restored.
+   */
+  private static class ParseBuffer extends ByteArrayInputStream {
+    ParseBuffer(byte[] buf, int start, int end) {
+      super(buf, start, end - start);
+    }
+
+    int getPosition() {
+      return pos;
+    }
+
+    void setPosition(int position) {
+      pos = position;
+    }
+  }
+}
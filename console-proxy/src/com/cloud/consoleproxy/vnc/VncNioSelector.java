@@ -0,0 +1,124 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.vnc;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.cloud.consoleproxy.util.Logger;
+
+/**
+ * VncNioSelector - event loop, which serves many VNC server connections from
+ * one thread. Connections are spread over a small number of selectors, so
+ * decoding can use more than one CPU.
+ */
+public class VncNioSelector implements Runnable {
+  private static final Logger s_logger = Logger.getLogger(VncNioSelector.class);
+
+  private static int s_selectorCount = Runtime.getRuntime().availableProcessors();
+  private static VncNioSelector[] s_selectors;
+  private static int s_nextSelector = 0;
+
+  private final Selector selector;
+  private final Thread thread;
+
+  // Connections to register and connections with data to write, changed from other threads
+  private final Queue<VncNioConnection> pendingRegistrations = new ConcurrentLinkedQueue<VncNioConnection>();
+  private final Queue<VncNioConnection> pendingWrites = new ConcurrentLinkedQueue<VncNioConnection>();
+
+  public static synchronized void setSelectorCount(int count) {
+    if (s_selectors == null && count > 0)
+      s_selectorCount = count;
+  }
+
+  /**
+   * Pick selector for new connection.
+   */
+  public static synchronized VncNioSelector getSelector() throws IOException {
+    if (s_selectors == null) {
+      VncNioSelector[] selectors = new VncNioSelector[s_selectorCount];
+      for (int i = 0; i < selectors.length; i++) {
+        selectors[i] = new VncNioSelector(i);
+      }
+      s_selectors = selectors;
+    }
+
+    VncNioSelector selector = s_selectors[s_nextSelector];
+    s_nextSelector = (s_nextSelector + 1) % s_selectors.length;
+    return selector;
+  }
+
+  private VncNioSelector(int index) throws IOException {
+    selector = Selector.open();
+    thread = new Thread(this, "VNC NIO selector " + index);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void register(VncNioConnection connection) {
+    pendingRegistrations.add(connection);
+    selector.wakeup();
+  }
+
+  /**
+   * Ask selector thread to write queued data of connection.
+   */
+  public void requestWrite(VncNioConnection connection) {
+    if (Thread.currentThread() == thread) {
+      connection.flushWrites();
+      return;
+    }
+    pendingWrites.add(connection);
+    selector.wakeup();
+  }
+
+  @Override
+  public void run() {
+    while (true) {
+      try {
+        selector.select();
+
+        VncNioConnection connection;
+        while ((connection = pendingRegistrations.poll()) != null) {
+          connection.onRegister(selector);
+        }
+        while ((connection = pendingWrites.poll()) != null) {
+          connection.flushWrites();
+        }
+
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+          SelectionKey key = it.next();
+          it.remove();
+
+          connection = (VncNioConnection) key.attachment();
+          try {
+            if (key.isValid() && key.isWritable())
+              connection.flushWrites();
+            if (key.isValid() && key.isReadable())
+              connection.onReadable();
+          } catch (CancelledKeyException e) {
+            // Connection is closed by other thread
+          }
+        }
+      } catch (Throwable e) {
+        s_logger.error("Unexpected exception in VNC selector loop: " + e.getMessage(), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,119 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * EncodingContext - decoder state, which must live as long as the connection
+ * to VNC server: zlib streams of ZRLE and Tight encodings are not reset
+ * between rectangles, so same inflaters must be used for all of them. Scratch
+ * buffers are kept here too, to not allocate them for every rectangle.
+ */
+public class EncodingContext {
+
+  public static final int TIGHT_STREAMS = 4;
+
+  private final Inflater zrleInflater = new Inflater();
+  private final Inflater[] tightInflaters = new Inflater[TIGHT_STREAMS];
+
+  private byte[] compressedBuffer = new byte[4096];
+  private byte[] inflatedBuffer = new byte[64 * 1024];
+  private final int[] palette = new int[256];
+
+  public EncodingContext() {
+    for (int i = 0; i < TIGHT_STREAMS; i++) {
+      tightInflaters[i] = new Inflater();
+    }
+  }
+
+  public Inflater getZrleInflater() {
+    return zrleInflater;
+  }
+
+  public Inflater getTightInflater(int streamId) {
+    return tightInflaters[streamId];
+  }
+
+  public void resetTightInflater(int streamId) {
+    tightInflaters[streamId].reset();
+  }
+
+  /**
+   * Get scratch buffer for compressed data. Content of buffer is not
+   * preserved between calls.
+   */
+  public byte[] getCompressedBuffer(int size) {
+    if (compressedBuffer.length < size) {
+      compressedBuffer = new byte[size];
+    }
+    return compressedBuffer;
+  }
+
+  public byte[] getInflatedBuffer() {
+    return inflatedBuffer;
+  }
+
+  public int[] getPalette() {
+    return palette;
+  }
+
+  /**
+   * Feed compressed data to inflater and inflate everything, what is
+   * available. Server flushes zlib stream at end of each rectangle, so all
+   * data of rectangle can be inflated at once.
+   * 
+   * @return number of bytes inflated into inflated buffer
+   */
+  public int inflate(Inflater inflater, byte[] input, int length) throws IOException {
+    inflater.setInput(input, 0, length);
+
+    int inflated = 0;
+    try {
+      while (true) {
+        int count = inflater.inflate(inflatedBuffer, inflated, inflatedBuffer.length - inflated);
+        inflated += count;
+
+        if (inflated == inflatedBuffer.length) {
+          // Buffer is full, grow it and continue
+          byte[] newBuffer = new byte[inflatedBuffer.length * 2];
+          System.arraycopy(inflatedBuffer, 0, newBuffer, 0, inflated);
+          inflatedBuffer = newBuffer;
+          continue;
+        }
+
+        if (count == 0) {
+          if (inflater.needsDictionary())
+            throw new IOException("Cannot inflate data from VNC server: dictionary is required.");
+          break;
+        }
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Cannot inflate data from VNC server: " + e.getMessage());
+    }
+
+    return inflated;
+  }
+
+  /**
+   * Release native resources of inflaters.
+   */
+  public void close() {
+    zrleInflater.end();
+    for (int i = 0; i < TIGHT_STREAMS; i++) {
+      tightInflaters[i].end();
+    }
+  }
+}
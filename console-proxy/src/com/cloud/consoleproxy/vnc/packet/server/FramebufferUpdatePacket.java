@@ -12,6 +12,7 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.consoleproxy.vnc.packet.server;
 
+import java.awt.image.BufferedImage;
 import java.io.DataInputStream;
 import java.io.IOException;
 
@@ -28,16 +29,30 @@ public class FramebufferUpdatePacket {
   private final VncScreenDescription screen;
   private final BufferedImageCanvas canvas;
   private final ConsoleProxyClientListener clientListener;
+  private final EncodingContext context;
 
   public FramebufferUpdatePacket(BufferedImageCanvas canvas, VncScreenDescription screen, DataInputStream is, 
-    ConsoleProxyClientListener clientListener) throws IOException {
+    ConsoleProxyClientListener clientListener, EncodingContext context) throws IOException {
 	  
     this.screen = screen;
     this.canvas = canvas;
     this.clientListener = clientListener;
+    this.context = context;
     readPacketData(is);
   }
 
+  /**
+   * Create packet, which rectangles are read one by one with readRect(), when
+   * each of them is received completely.
+   */
+  public FramebufferUpdatePacket(BufferedImageCanvas canvas, VncScreenDescription screen, ConsoleProxyClientListener clientListener,
+      EncodingContext context) {
+    this.screen = screen;
+    this.canvas = canvas;
+    this.clientListener = clientListener;
+    this.context = context;
+  }
+
   private void readPacketData(DataInputStream is) throws IOException {
     is.skipBytes(1);// Skip padding
 
@@ -46,49 +61,75 @@ public class FramebufferUpdatePacket {
 
     // For all rectangles
     for (int i = 0; i < numberOfRectangles; i++) {
+      readRect(is);
+    }
+
+  }
+
+  /**
+   * Read one rectangle and paint it. Frame buffer is not touched until
+   * rectangle is read completely.
+   */
+  public void readRect(DataInputStream is) throws IOException {
+    // Read coordinate of rectangle
+    int x = is.readUnsignedShort();
+    int y = is.readUnsignedShort();
+    int width = is.readUnsignedShort();
+    int height = is.readUnsignedShort();
+
+    int encodingType = is.readInt();
+
+    // Process rectangle
+    Rect rect;
+    switch (encodingType) {
+
+    case RfbConstants.ENCODING_RAW: {
+      rect = new RawRect(screen, x, y, width, height, is);
+      break;
+    }
+
+    case RfbConstants.ENCODING_COPY_RECT: {
+      rect = new CopyRect(x, y, width, height, is);
+      break;
+    }
+
+    case RfbConstants.ENCODING_HEXTILE: {
+      rect = new HextileRect(x, y, width, height, is, context);
+      break;
+    }
 
-      // Read coordinate of rectangle
-      int x = is.readUnsignedShort();
-      int y = is.readUnsignedShort();
-      int width = is.readUnsignedShort();
-      int height = is.readUnsignedShort();
-
-      int encodingType = is.readInt();
-
-      // Process rectangle
-      Rect rect;
-      switch (encodingType) {
-
-      case RfbConstants.ENCODING_RAW: {
-        rect = new RawRect(screen, x, y, width, height, is);
-        break;
-      }
-
-      case RfbConstants.ENCODING_COPY_RECT: {
-        rect = new CopyRect(x, y, width, height, is);
-        break;
-      }
-
-      case RfbConstants.ENCODING_DESKTOP_SIZE: {
-        rect = new FrameBufferSizeChangeRequest(canvas, width, height);
-        break;
-      }
-
-      default:
-        throw new RuntimeException("Unsupported ecnoding: " + encodingType);
-      }
-
-      paint(rect, canvas);
-      
-      if(this.clientListener != null)
-    	  this.clientListener.onFramebufferUpdate(rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight());
+    case RfbConstants.ENCODING_ZRLE: {
+      rect = new ZrleRect(x, y, width, height, is, context);
+      break;
     }
 
+    case RfbConstants.ENCODING_TIGHT: {
+      rect = new TightRect(x, y, width, height, is, context);
+      break;
+    }
+
+    case RfbConstants.ENCODING_DESKTOP_SIZE: {
+      rect = new FrameBufferSizeChangeRequest(canvas, width, height);
+      break;
+    }
+
+    default:
+      throw new RuntimeException("Unsupported ecnoding: " + encodingType);
+    }
+
+    paint(rect, canvas);
+    
+    if(this.clientListener != null)
+      this.clientListener.onFramebufferUpdate(rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight());
   }
 
   public void paint(Rect rect, BufferedImageCanvas canvas) {
-    // Draw rectangle on offline buffer
-    rect.paint(canvas.getOfflineImage(), canvas.getOfflineGraphics());
+    // Draw rectangle on offline buffer, viewers copying tiles never see half of it
+    BufferedImage image = canvas.getOfflineImage();
+    synchronized(image) {
+      rect.paint(image, canvas.getOfflineGraphics());
+      canvas.contentChanged();
+    }
     
     // Request update of repainted area
     canvas.repaint(rect.getX(), rect.getY(), rect.getWidth(), rect.getHeight());
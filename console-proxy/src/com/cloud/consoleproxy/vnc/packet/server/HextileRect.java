@@ -0,0 +1,96 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * HextileRect - rectangle in Hextile encoding. Rectangle is split into 16x16
+ * tiles, each tile is either raw or background filled with optional
+ * subrectangles. Background and foreground colors are carried over from tile
+ * to tile.
+ */
+public class HextileRect extends AbstractPixelRect {
+
+  private static final int TILE_SIZE = 16;
+
+  private static final int RAW = 1, BACKGROUND_SPECIFIED = 2, FOREGROUND_SPECIFIED = 4, ANY_SUBRECTS = 8, SUBRECTS_COLOURED = 16;
+
+  public HextileRect(int x, int y, int width, int height, DataInputStream is, EncodingContext context) throws IOException {
+    super(x, y, width, height);
+
+    int background = 0;
+    int foreground = 0;
+
+    for (int tileY = 0; tileY < height; tileY += TILE_SIZE) {
+      int tileHeight = Math.min(TILE_SIZE, height - tileY);
+
+      for (int tileX = 0; tileX < width; tileX += TILE_SIZE) {
+        int tileWidth = Math.min(TILE_SIZE, width - tileX);
+
+        int subencoding = is.readUnsignedByte();
+
+        if ((subencoding & RAW) != 0) {
+          readRawTile(is, context, tileX, tileY, tileWidth, tileHeight);
+          continue;
+        }
+
+        if ((subencoding & BACKGROUND_SPECIFIED) != 0)
+          background = readPixel(is);
+
+        if ((subencoding & FOREGROUND_SPECIFIED) != 0)
+          foreground = readPixel(is);
+
+        fill(tileX, tileY, tileWidth, tileHeight, background);
+
+        if ((subencoding & ANY_SUBRECTS) != 0) {
+          int numberOfSubrects = is.readUnsignedByte();
+          boolean coloured = (subencoding & SUBRECTS_COLOURED) != 0;
+
+          for (int i = 0; i < numberOfSubrects; i++) {
+            int color = coloured ? readPixel(is) : foreground;
+            int xy = is.readUnsignedByte();
+            int wh = is.readUnsignedByte();
+
+            int subX = xy >> 4;
+            int subY = xy & 0xF;
+            int subWidth = Math.min((wh >> 4) + 1, tileWidth - subX);
+            int subHeight = Math.min((wh & 0xF) + 1, tileHeight - subY);
+            fill(tileX + subX, tileY + subY, subWidth, subHeight, color);
+          }
+        }
+      }
+    }
+  }
+
+  private void readRawTile(DataInputStream is, EncodingContext context, int tileX, int tileY, int tileWidth, int tileHeight) throws IOException {
+    int size = tileWidth * tileHeight * 4;
+    byte[] bbuf = context.getCompressedBuffer(size);
+    is.readFully(bbuf, 0, size);
+
+    for (int line = 0, j = 0; line < tileHeight; line++) {
+      int offset = (tileY + line) * width + tileX;
+      for (int i = offset; i < offset + tileWidth; i++, j += 4) {
+        buf[i] = (bbuf[j + 0] & 0xFF) | ((bbuf[j + 1] & 0xFF) << 8) | ((bbuf[j + 2] & 0xFF) << 16);
+      }
+    }
+  }
+
+  /**
+   * Read 32 bit little-endian pixel.
+   */
+  private static int readPixel(DataInputStream is) throws IOException {
+    return Integer.reverseBytes(is.readInt()) & 0xFFFFFF;
+  }
+}
@@ -0,0 +1,198 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * TightRect - rectangle in Tight encoding. Rectangle is either filled with
+ * solid color, sent as JPEG image or sent as filtered (copy, palette or
+ * gradient) data, compressed with one of four zlib streams. We always ask
+ * server for 32 bit RGB888 pixels, so Tight pixels (TPIXEL) are 3 bytes long,
+ * in red, green, blue order.
+ */
+public class TightRect extends AbstractPixelRect {
+
+  private static final int FILL = 0x08, JPEG = 0x09, MAX_SUBENCODING = 0x09;
+
+  private static final int EXPLICIT_FILTER = 0x04;
+
+  private static final int FILTER_COPY = 0, FILTER_PALETTE = 1, FILTER_GRADIENT = 2;
+
+  /**
+   * Data shorter than this is sent without compression.
+   */
+  private static final int MIN_TO_COMPRESS = 12;
+
+  public TightRect(int x, int y, int width, int height, DataInputStream is, EncodingContext context) throws IOException {
+    super(x, y, width, height);
+
+    int control = is.readUnsignedByte();
+
+    // Lower bits tell which zlib streams are reset by server
+    for (int i = 0; i < EncodingContext.TIGHT_STREAMS; i++) {
+      if ((control & (1 << i)) != 0)
+        context.resetTightInflater(i);
+    }
+
+    int subencoding = control >> 4;
+
+    if (subencoding == FILL) {
+      fill(0, 0, width, height, readTPixel(is));
+
+    } else if (subencoding == JPEG) {
+      readJpeg(is);
+
+    } else if (subencoding > MAX_SUBENCODING) {
+      throw new RuntimeException("Unsupported Tight subencoding: " + subencoding);
+
+    } else {
+      readBasic(is, context, subencoding);
+    }
+  }
+
+  private void readJpeg(DataInputStream is) throws IOException {
+    byte[] jpeg = new byte[readCompactLength(is)];
+    is.readFully(jpeg);
+
+    BufferedImage image = ImageIO.read(new ByteArrayInputStream(jpeg));
+    if (image == null)
+      throw new IOException("Cannot decode JPEG image in Tight rectangle.");
+
+    image.getRGB(0, 0, Math.min(width, image.getWidth()), Math.min(height, image.getHeight()), buf, 0, width);
+  }
+
+  private void readBasic(DataInputStream is, EncodingContext context, int subencoding) throws IOException {
+    int streamId = subencoding & 0x03;
+
+    int filter = FILTER_COPY;
+    if ((subencoding & EXPLICIT_FILTER) != 0)
+      filter = is.readUnsignedByte();
+
+    int[] palette = context.getPalette();
+    int numberOfColors = 0;
+    int rowSize;
+
+    switch (filter) {
+    case FILTER_COPY:
+    case FILTER_GRADIENT:
+      rowSize = width * 3;
+      break;
+
+    case FILTER_PALETTE:
+      numberOfColors = is.readUnsignedByte() + 1;
+      for (int i = 0; i < numberOfColors; i++) {
+        palette[i] = readTPixel(is);
+      }
+      rowSize = (numberOfColors == 2) ? (width + 7) / 8 : width;
+      break;
+
+    default:
+      throw new RuntimeException("Unsupported Tight filter: " + filter);
+    }
+
+    int dataSize = rowSize * height;
+    byte[] data;
+    if (dataSize < MIN_TO_COMPRESS) {
+      data = context.getCompressedBuffer(dataSize);
+      is.readFully(data, 0, dataSize);
+    } else {
+      int compressedLength = readCompactLength(is);
+      byte[] compressed = context.getCompressedBuffer(compressedLength);
+      is.readFully(compressed, 0, compressedLength);
+
+      int inflated = context.inflate(context.getTightInflater(streamId), compressed, compressedLength);
+      if (inflated < dataSize)
+        throw new IOException("Unexpected end of Tight data: expected " + dataSize + " bytes, got " + inflated + ".");
+      data = context.getInflatedBuffer();
+    }
+
+    switch (filter) {
+    case FILTER_COPY: {
+      for (int i = 0, j = 0; i < buf.length; i++, j += 3) {
+        buf[i] = ((data[j] & 0xFF) << 16) | ((data[j + 1] & 0xFF) << 8) | (data[j + 2] & 0xFF);
+      }
+      break;
+    }
+
+    case FILTER_PALETTE: {
+      if (numberOfColors == 2) {
+        // One bit per pixel, each line is padded to byte boundary
+        for (int line = 0; line < height; line++) {
+          int offset = line * width;
+          for (int col = 0; col < width; col++) {
+            int b = data[line * rowSize + col / 8];
+            buf[offset + col] = palette[(b >> (7 - col % 8)) & 1];
+          }
+        }
+      } else {
+        for (int i = 0; i < buf.length; i++) {
+          buf[i] = palette[data[i] & 0xFF];
+        }
+      }
+      break;
+    }
+
+    case FILTER_GRADIENT: {
+      // Each color component is predicted from left, upper and upper left
+      // pixels, data contains difference from prediction
+      for (int line = 0, i = 0, j = 0; line < height; line++) {
+        for (int col = 0; col < width; col++, i++) {
+          int pixel = 0;
+          for (int shift = 16; shift >= 0; shift -= 8, j++) {
+            int left = (col > 0) ? (buf[i - 1] >> shift) & 0xFF : 0;
+            int up = (line > 0) ? (buf[i - width] >> shift) & 0xFF : 0;
+            int upLeft = (line > 0 && col > 0) ? (buf[i - width - 1] >> shift) & 0xFF : 0;
+
+            int prediction = Math.max(0, Math.min(255, left + up - upLeft));
+            pixel |= ((prediction + data[j]) & 0xFF) << shift;
+          }
+          buf[i] = pixel;
+        }
+      }
+      break;
+    }
+    }
+  }
+
+  private static int readTPixel(DataInputStream is) throws IOException {
+    int red = is.readUnsignedByte();
+    int green = is.readUnsignedByte();
+    int blue = is.readUnsignedByte();
+    return (red << 16) | (green << 8) | blue;
+  }
+
+  /**
+   * Read length, which is sent in 1-3 bytes, 7 bits per byte, least
+   * significant bits first. High bit of byte is set, when another byte
+   * follows.
+   */
+  private static int readCompactLength(DataInputStream is) throws IOException {
+    int b = is.readUnsignedByte();
+    int length = b & 0x7F;
+    if ((b & 0x80) != 0) {
+      b = is.readUnsignedByte();
+      length |= (b & 0x7F) << 7;
+      if ((b & 0x80) != 0) {
+        b = is.readUnsignedByte();
+        length |= (b & 0xFF) << 14;
+      }
+    }
+    return length;
+  }
+}
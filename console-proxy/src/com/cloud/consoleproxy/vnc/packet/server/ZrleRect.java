@@ -0,0 +1,164 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * ZrleRect - rectangle in ZRLE encoding. Data is zlib compressed stream of
+ * 64x64 tiles, each tile is raw, solid, packed palette or run-length encoded.
+ * We always ask server for 32 bit RGB888 pixels, so compressed pixels
+ * (CPIXEL) are 3 bytes long, least significant byte first.
+ */
+public class ZrleRect extends AbstractPixelRect {
+
+  private static final int TILE_SIZE = 64;
+
+  private byte[] data;
+  private int position;
+  private int length;
+
+  public ZrleRect(int x, int y, int width, int height, DataInputStream is, EncodingContext context) throws IOException {
+    super(x, y, width, height);
+
+    int compressedLength = is.readInt();
+    byte[] compressed = context.getCompressedBuffer(compressedLength);
+    is.readFully(compressed, 0, compressedLength);
+
+    length = context.inflate(context.getZrleInflater(), compressed, compressedLength);
+    data = context.getInflatedBuffer();
+    position = 0;
+
+    int[] palette = context.getPalette();
+    for (int tileY = 0; tileY < height; tileY += TILE_SIZE) {
+      int tileHeight = Math.min(TILE_SIZE, height - tileY);
+
+      for (int tileX = 0; tileX < width; tileX += TILE_SIZE) {
+        int tileWidth = Math.min(TILE_SIZE, width - tileX);
+        readTile(tileX, tileY, tileWidth, tileHeight, palette);
+      }
+    }
+
+    // Buffer belongs to the context
+    data = null;
+  }
+
+  private void readTile(int tileX, int tileY, int tileWidth, int tileHeight, int[] palette) throws IOException {
+    int subencoding = readUnsignedByte();
+
+    if (subencoding == 0) {
+      // Raw pixels
+      for (int line = 0; line < tileHeight; line++) {
+        int offset = (tileY + line) * width + tileX;
+        for (int i = offset; i < offset + tileWidth; i++) {
+          buf[i] = readCPixel();
+        }
+      }
+
+    } else if (subencoding == 1) {
+      // Solid tile
+      fill(tileX, tileY, tileWidth, tileHeight, readCPixel());
+
+    } else if (subencoding <= 16) {
+      // Packed palette
+      readPalette(palette, subencoding);
+      int bitsPerIndex = (subencoding == 2) ? 1 : (subencoding <= 4) ? 2 : 4;
+      int mask = (1 << bitsPerIndex) - 1;
+
+      for (int line = 0; line < tileHeight; line++) {
+        int offset = (tileY + line) * width + tileX;
+        int bits = 0;
+        int bitsLeft = 0;
+        // Each line is padded to byte boundary
+        for (int i = offset; i < offset + tileWidth; i++) {
+          if (bitsLeft == 0) {
+            bits = readUnsignedByte();
+            bitsLeft = 8;
+          }
+          bitsLeft -= bitsPerIndex;
+          buf[i] = palette[(bits >> bitsLeft) & mask];
+        }
+      }
+
+    } else if (subencoding == 128) {
+      // Plain RLE
+      int size = tileWidth * tileHeight;
+      for (int i = 0; i < size;) {
+        int pixel = readCPixel();
+        int runLength = readRunLength();
+        i = fillRun(tileX, tileY, tileWidth, i, Math.min(runLength, size - i), pixel);
+      }
+
+    } else if (subencoding >= 130) {
+      // Palette RLE
+      readPalette(palette, subencoding - 128);
+      int size = tileWidth * tileHeight;
+      for (int i = 0; i < size;) {
+        int index = readUnsignedByte();
+        int runLength = 1;
+        if ((index & 0x80) != 0) {
+          index &= 0x7F;
+          runLength = readRunLength();
+        }
+        i = fillRun(tileX, tileY, tileWidth, i, Math.min(runLength, size - i), palette[index]);
+      }
+
+    } else {
+      throw new RuntimeException("Unsupported ZRLE subencoding: " + subencoding);
+    }
+  }
+
+  /**
+   * Fill run of pixels, which starts at given index in tile and can span
+   * several lines of tile.
+   * 
+   * @return index in tile after the run
+   */
+  private int fillRun(int tileX, int tileY, int tileWidth, int index, int runLength, int pixel) {
+    for (int end = index + runLength; index < end; index++) {
+      buf[(tileY + index / tileWidth) * width + tileX + index % tileWidth] = pixel;
+    }
+    return index;
+  }
+
+  private void readPalette(int[] palette, int paletteSize) throws IOException {
+    for (int i = 0; i < paletteSize; i++) {
+      palette[i] = readCPixel();
+    }
+  }
+
+  private int readRunLength() throws IOException {
+    int runLength = 1;
+    int b;
+    do {
+      b = readUnsignedByte();
+      runLength += b;
+    } while (b == 255);
+    return runLength;
+  }
+
+  private int readUnsignedByte() throws IOException {
+    if (position >= length)
+      throw new IOException("Unexpected end of ZRLE data.");
+    return data[position++] & 0xFF;
+  }
+
+  private int readCPixel() throws IOException {
+    if (position + 3 > length)
+      throw new IOException("Unexpected end of ZRLE data.");
+    int pixel = (data[position] & 0xFF) | ((data[position + 1] & 0xFF) << 8) | ((data[position + 2] & 0xFF) << 16);
+    position += 3;
+    return pixel;
+  }
+}
@@ -0,0 +1,219 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import com.cloud.consoleproxy.util.ImageHelper;
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.util.TileInfo;
+import com.cloud.consoleproxy.util.TileTracker;
+import com.cloud.consoleproxy.vnc.BufferedImageCanvas;
+import com.cloud.consoleproxy.vnc.PaintNotificationListener;
+
+/**
+ * Replays framebuffer updates through the AJAX tile encoding and compares the
+ * tile encoder against drawing tiles into a new image and writing it with
+ * ImageIO on every update.
+ * 
+ * Usage: TileEncoderBenchmark [directory of recorded frames] [rounds]
+ * 
+ * Recorded frames are screenshots of a session (png or jpg, replayed in name
+ * order), each one is diffed against the previous one and the changed area is
+ * reported as one update, the way a VNC server reports it. Without a directory
+ * a synthetic session of typing into a text console with a small animated
+ * area is generated.
+ */
+public class TileEncoderBenchmark {
+	private static final Logger s_logger = Logger.getLogger(TileEncoderBenchmark.class);
+	
+	private static final int TILE_WIDTH = 64;
+	private static final int TILE_HEIGHT = 64;
+	
+	public static void main(String[] args) throws Exception {
+		List<BufferedImage> frames;
+		if(args.length > 0)
+			frames = loadFrames(new File(args[0]));
+		else
+			frames = generateFrames(1024, 768, 200);
+		int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		
+		if(frames.isEmpty()) {
+			s_logger.error("No frames to replay");
+			System.exit(1);
+		}
+		
+		int width = frames.get(0).getWidth();
+		int height = frames.get(0).getHeight();
+		List<Rectangle> updates = diffFrames(frames);
+		
+		for(int round = 0; round < rounds; round++) {
+			Result current = replay(frames, updates, width, height, false);
+			Result previous = replay(frames, updates, width, height, true);
+			
+			// first round warms up JIT and image writers
+			if(round > 0) {
+				s_logger.info("Round " + round + ": tile encoder " + current + "; new image + ImageIO " + previous);
+			}
+		}
+	}
+	
+	private static class Result {
+		long nanos;
+		long bytes;
+		long tiles;
+		int images;
+		
+		@Override
+		public String toString() {
+			return (nanos / 1000000) + " ms, " + images + " images, " + tiles + " tiles, " + (bytes / 1024) + " KB";
+		}
+	}
+	
+	private static Result replay(List<BufferedImage> frames, List<Rectangle> updates, int width, int height, boolean imageIO) throws IOException {
+		BufferedImageCanvas canvas = new BufferedImageCanvas(new PaintNotificationListener() {
+			@Override
+			public void imagePaintedOnScreen() {
+			}
+		}, width, height);
+		
+		TileTracker tracker = new TileTracker();
+		tracker.initTracking(TILE_WIDTH, TILE_HEIGHT, width, height);
+		Graphics2D g = canvas.getOfflineGraphics();
+		
+		Result result = new Result();
+		for(int i = 0; i < frames.size(); i++) {
+			// painting the framebuffer is not part of the measurement
+			Rectangle rc = updates.get(i);
+			g.drawImage(frames.get(i), rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, rc.x, rc.y, rc.x + rc.width, rc.y + rc.height, null);
+			tracker.invalidate(rc);
+			
+			long start = System.nanoTime();
+			List<TileInfo> tiles = tracker.scan(i == 0);
+			byte[] img;
+			if(i == 0)
+				img = canvas.getFrameBufferImage(tiles, tracker);
+			else if(imageIO)
+				img = mergeWithImageIO(canvas, tiles);
+			else
+				img = canvas.getTilesMergedImage(tiles, TILE_WIDTH, TILE_HEIGHT, tracker);
+			result.nanos += System.nanoTime() - start;
+			
+			result.bytes += img.length;
+			result.tiles += tiles.size();
+			result.images++;
+		}
+		return result;
+	}
+	
+	private static byte[] mergeWithImageIO(BufferedImageCanvas canvas, List<TileInfo> tiles) throws IOException {
+		BufferedImage image = new BufferedImage(Math.max(TILE_WIDTH, TILE_WIDTH*tiles.size()), TILE_HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+		Graphics2D g = image.createGraphics();
+		int i = 0;
+		for(TileInfo tile : tiles) {
+			canvas.copyTile(g, i*TILE_WIDTH, 0, tile.getTileRect());
+			i++;
+		}
+		return ImageHelper.jpegFromImage(image);
+	}
+	
+	private static List<BufferedImage> loadFrames(File dir) throws IOException {
+		File[] files = dir.listFiles();
+		if(files == null)
+			throw new IOException("Cannot list " + dir);
+		Arrays.sort(files);
+		
+		List<BufferedImage> frames = new ArrayList<BufferedImage>();
+		for(File file : files) {
+			BufferedImage frame = ImageIO.read(file);
+			if(frame == null)
+				continue;
+			if(!frames.isEmpty() && (frame.getWidth() != frames.get(0).getWidth() || frame.getHeight() != frames.get(0).getHeight()))
+				continue;
+			frames.add(frame);
+		}
+		return frames;
+	}
+	
+	private static List<BufferedImage> generateFrames(int width, int height, int count) {
+		Random random = new Random(1);
+		List<BufferedImage> frames = new ArrayList<BufferedImage>();
+		BufferedImage previous = null;
+		for(int i = 0; i < count; i++) {
+			BufferedImage frame = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+			Graphics2D g = frame.createGraphics();
+			if(previous != null) {
+				g.drawImage(previous, 0, 0, null);
+			} else {
+				g.setColor(new Color(0x000080));
+				g.fillRect(0, 0, width, height);
+			}
+			
+			// one more character typed on the console
+			int line = (i / 80) % (height / 16);
+			int col = i % 80;
+			g.setColor(Color.lightGray);
+			g.fillRect(col*9 + 2, line*16 + 3, 6, 10);
+			
+			// small animation with many colors, e.g. a progress spinner or a clock
+			for(int y = height - 96; y < height - 32; y++)
+				for(int x = width - 96; x < width - 32; x++)
+					frame.setRGB(x, y, random.nextInt(0xffffff));
+			
+			frames.add(frame);
+			previous = frame;
+		}
+		return frames;
+	}
+	
+	private static List<Rectangle> diffFrames(List<BufferedImage> frames) {
+		List<Rectangle> updates = new ArrayList<Rectangle>();
+		BufferedImage previous = null;
+		for(BufferedImage frame : frames) {
+			int width = frame.getWidth();
+			int height = frame.getHeight();
+			if(previous == null) {
+				updates.add(new Rectangle(0, 0, width, height));
+			} else {
+				int left = width, top = height, right = -1, bottom = -1;
+				for(int y = 0; y < height; y++) {
+					for(int x = 0; x < width; x++) {
+						if(frame.getRGB(x, y) != previous.getRGB(x, y)) {
+							left = Math.min(left, x);
+							right = Math.max(right, x);
+							top = Math.min(top, y);
+							bottom = Math.max(bottom, y);
+						}
+					}
+				}
+				if(right < 0)
+					updates.add(new Rectangle(0, 0, 1, 1));
+				else
+					updates.add(new Rectangle(left, top, right - left + 1, bottom - top + 1));
+			}
+			previous = frame;
+		}
+		return updates;
+	}
+}
@@ -0,0 +1,277 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.cloud.consoleproxy.util.Logger;
+import com.cloud.consoleproxy.vnc.RfbConstants;
+import com.cloud.consoleproxy.vnc.VncClient;
+
+/**
+ * Measures CPU and threads used by console sessions, with one thread per
+ * session reading from VNC server (classic) or with NIO selectors.
+ * 
+ * A local fake VNC server runs in the same process. It answers every frame
+ * buffer update request with a 64x64 raw rectangle, at most updatesPerSecond
+ * times a second per session. CPU of fake server threads is not counted.
+ * Threads are counted against the ones running before the sessions start.
+ * 
+ * Usage: VncSessionBenchmark [sessions] [seconds] [updatesPerSecond]
+ */
+public class VncSessionBenchmark {
+	private static final Logger s_logger = Logger.getLogger(VncSessionBenchmark.class);
+	
+	private static final String SERVER_THREAD_PREFIX = "Fake VNC server";
+	private static final int WIDTH = 1024;
+	private static final int HEIGHT = 768;
+	private static final int RECT_SIZE = 64;
+	
+	public static void main(String[] args) throws Exception {
+		int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		int updatesPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		
+		final ServerSocket serverSocket = new ServerSocket(0, sessions);
+		startFakeServer(serverSocket, updatesPerSecond);
+		
+		s_logger.info(run(serverSocket.getLocalPort(), sessions, seconds, false));
+		s_logger.info(run(serverSocket.getLocalPort(), sessions, seconds, true));
+		System.exit(0);
+	}
+	
+	private static String run(int port, int sessions, int seconds, final boolean nio) throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		int threadsBefore = countClientThreads(threads);
+		final AtomicLong updates = new AtomicLong();
+		List<VncClient> clients = new ArrayList<VncClient>();
+		
+		for(int i = 0; i < sessions; i++) {
+			final VncClient[] client = new VncClient[1];
+			client[0] = new VncClient(new ConsoleProxyClientListener() {
+				@Override
+				public void onFramebufferSizeChange(int w, int h) {
+				}
+				
+				@Override
+				public void onFramebufferUpdate(int x, int y, int w, int h) {
+					updates.incrementAndGet();
+					client[0].requestUpdate(false);
+				}
+				
+				@Override
+				public void onClientConnected() {
+				}
+				
+				@Override
+				public void onClientClose() {
+				}
+			});
+			clients.add(client[0]);
+			
+			if(nio) {
+				client[0].connectToNio("localhost", port, "");
+			} else {
+				final int serverPort = port;
+				Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							client[0].connectTo("localhost", serverPort, "");
+						} catch (IOException e) {
+						}
+					}
+				}, "Classic VNC session " + i);
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+		
+		// warm up
+		Thread.sleep(3000);
+		
+		long cpuStart = getClientCpuTime(threads);
+		long updatesStart = updates.get();
+		long start = System.nanoTime();
+		Thread.sleep(seconds*1000L);
+		long cpu = getClientCpuTime(threads) - cpuStart;
+		long elapsed = System.nanoTime() - start;
+		long updateCount = updates.get() - updatesStart;
+		int threadCount = countClientThreads(threads) - threadsBefore;
+		
+		for(VncClient client : clients)
+			client.shutdown();
+		Thread.sleep(1000);
+		
+		double cpuPercent = 100.0 * cpu / elapsed;
+		double cpuPerSession = cpu / 1000000.0 / sessions / (elapsed / 1000000000.0);
+		return (nio ? "NIO" : "Classic") + ": " + sessions + " sessions, " + threadCount + " threads, " 
+			+ String.format("%.1f", cpuPercent) + "% of one CPU, " + String.format("%.2f", cpuPerSession) + "ms CPU per session per second, "
+			+ (updateCount * 1000000000L / elapsed) + " updates/s, " 
+			+ String.format("%.0f", sessions * 100.0 / Math.max(cpuPercent, 0.01)) + " sessions per CPU at this update rate";
+	}
+	
+	private static long getClientCpuTime(ThreadMXBean threads) {
+		long total = 0;
+		for(ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if(info == null || info.getThreadName().startsWith(SERVER_THREAD_PREFIX))
+				continue;
+			long cpu = threads.getThreadCpuTime(info.getThreadId());
+			if(cpu > 0)
+				total += cpu;
+		}
+		return total;
+	}
+	
+	private static int countClientThreads(ThreadMXBean threads) {
+		int count = 0;
+		for(ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if(info != null && !info.getThreadName().startsWith(SERVER_THREAD_PREFIX))
+				count++;
+		}
+		return count;
+	}
+	
+	private static void startFakeServer(final ServerSocket serverSocket, final int updatesPerSecond) {
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int i = 0;
+				while(true) {
+					try {
+						final Socket socket = serverSocket.accept();
+						Thread thread = new Thread(new Runnable() {
+							@Override
+							public void run() {
+								try {
+									serveSession(socket, updatesPerSecond);
+								} catch (IOException e) {
+								} finally {
+									try {
+										socket.close();
+									} catch (IOException e) {
+									}
+								}
+							}
+						}, SERVER_THREAD_PREFIX + " session " + (i++));
+						thread.setDaemon(true);
+						thread.start();
+					} catch (IOException e) {
+						return;
+					}
+				}
+			}
+		}, SERVER_THREAD_PREFIX + " acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+	
+	private static void serveSession(Socket socket, int updatesPerSecond) throws IOException {
+		DataInputStream is = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		DataOutputStream os = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		
+		// RFB 3.3 handshake without authentication
+		os.write((RfbConstants.RFB_PROTOCOL_VERSION + "\n").getBytes(RfbConstants.CHARSET));
+		os.flush();
+		is.readFully(new byte[12]);
+		os.writeInt(RfbConstants.NO_AUTH);
+		os.flush();
+		is.readUnsignedByte();
+		
+		// Server init: 32 bit little-endian RGB888
+		os.writeShort(WIDTH);
+		os.writeShort(HEIGHT);
+		os.write(new byte[] { 32, 24, 0, 1 });
+		os.writeShort(255);
+		os.writeShort(255);
+		os.writeShort(255);
+		os.write(new byte[] { 16, 8, 0, 0, 0, 0 });
+		byte[] name = "fake".getBytes(RfbConstants.CHARSET);
+		os.writeInt(name.length);
+		os.write(name);
+		os.flush();
+		
+		byte[] pixels = new byte[RECT_SIZE * RECT_SIZE * 4];
+		long interval = 1000000000L / updatesPerSecond;
+		long nextUpdate = System.nanoTime();
+		int frame = 0;
+		while(true) {
+			int messageType = is.readUnsignedByte();
+			switch(messageType) {
+			case RfbConstants.CLIENT_SET_PIXEL_FORMAT:
+				is.readFully(new byte[19]);
+				break;
+				
+			case RfbConstants.CLIENT_SET_ENCODINGS:
+				is.readUnsignedByte();
+				is.readFully(new byte[4 * is.readUnsignedShort()]);
+				break;
+				
+			case RfbConstants.CLIENT_FRAMEBUFFER_UPDATE_REQUEST:
+				is.readFully(new byte[9]);
+				long wait = nextUpdate - System.nanoTime();
+				if(wait > 0) {
+					try {
+						Thread.sleep(wait / 1000000, (int)(wait % 1000000));
+					} catch (InterruptedException e) {
+					}
+				}
+				nextUpdate = System.nanoTime() + interval;
+				
+				// one raw rectangle with new content, at a different place each time
+				frame++;
+				for(int i = 0; i < pixels.length; i++)
+					pixels[i] = (byte)(frame + i);
+				os.writeByte(RfbConstants.SERVER_FRAMEBUFFER_UPDATE);
+				os.writeByte(0);
+				os.writeShort(1);
+				os.writeShort((frame * RECT_SIZE) % (WIDTH - RECT_SIZE));
+				os.writeShort((frame / 16 * RECT_SIZE) % (HEIGHT - RECT_SIZE));
+				os.writeShort(RECT_SIZE);
+				os.writeShort(RECT_SIZE);
+				os.writeInt(RfbConstants.ENCODING_RAW);
+				os.write(pixels);
+				os.flush();
+				break;
+				
+			case RfbConstants.CLIENT_KEYBOARD_EVENT:
+				is.readFully(new byte[7]);
+				break;
+				
+			case RfbConstants.CLIENT_POINTER_EVENT:
+				is.readFully(new byte[5]);
+				break;
+				
+			case RfbConstants.CLIENT_CUT_TEXT:
+				is.readFully(new byte[3]);
+				is.readFully(new byte[is.readInt()]);
+				break;
+				
+			default:
+				throw new IOException("Unknown client message " + messageType);
+			}
+		}
+	}
+}
@@ -0,0 +1,54 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.util;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class TileTrackerTest extends TestCase {
+
+	private TileTracker tracker;
+
+	@Override
+	protected void setUp() {
+		tracker = new TileTracker();
+		tracker.initTracking(64, 64, 256, 128);
+	}
+
+	public void testUnchangedTileIsSkipped() {
+		assertTrue(tracker.updateTileHash(0, 1, 42L));
+		assertFalse(tracker.updateTileHash(0, 1, 42L));
+		assertTrue(tracker.updateTileHash(0, 1, 43L));
+	}
+
+	public void testHashesAreDroppedPeriodically() throws InterruptedException {
+		tracker.setTileHashRefreshInterval(10);
+		assertTrue(tracker.updateTileHash(1, 2, 42L));
+		assertTrue(tracker.scan(false).isEmpty());
+
+		Thread.sleep(20);
+
+		// every tile is sent again and the hash no longer matches
+		List<TileInfo> tiles = tracker.scan(false);
+		assertEquals(2*4, tiles.size());
+		assertTrue(tracker.updateTileHash(1, 2, 42L));
+		assertTrue(tracker.scan(false).isEmpty());
+	}
+
+	public void testNoRefreshWithoutHashes() throws InterruptedException {
+		tracker.setTileHashRefreshInterval(1);
+		Thread.sleep(5);
+		assertTrue(tracker.scan(false).isEmpty());
+	}
+}
@@ -0,0 +1,170 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.vnc;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+import com.cloud.consoleproxy.util.TileInfo;
+import com.cloud.consoleproxy.util.TileTracker;
+
+public class BufferedImageCanvasTest extends TestCase {
+
+  private static final Rectangle TILE = new Rectangle(0, 0, 8, 8);
+
+  public void testCancellingEditsChangeHash() {
+    int[] pixels = new int[8 * 8];
+    Random random = new Random(1);
+    for (int i = 0; i < pixels.length; i++)
+      pixels[i] = random.nextInt() & 0xFFFFFF;
+    long before = BufferedImageCanvas.hashTile(pixels, 8, TILE, 8, 8);
+
+    // +1 in one pixel and -31 in the next cancel out in a 31 polynomial hash
+    pixels[10] += 1;
+    pixels[11] -= 31;
+    assertFalse(before == BufferedImageCanvas.hashTile(pixels, 8, TILE, 8, 8));
+
+    // swapping two pixels
+    pixels[10] -= 1;
+    pixels[11] += 31;
+    int tmp = pixels[20];
+    pixels[20] = pixels[21];
+    pixels[21] = tmp;
+    assertFalse(before == BufferedImageCanvas.hashTile(pixels, 8, TILE, 8, 8));
+  }
+
+  public void testSinglePixelEditsDoNotCollide() {
+    int[] pixels = new int[8 * 8];
+    Set<Long> hashes = new HashSet<Long>();
+    hashes.add(BufferedImageCanvas.hashTile(pixels, 8, TILE, 8, 8));
+
+    // every pixel of the tile set to each of a few colors
+    int[] colors = { 0x000001, 0x000100, 0x010000, 0xFFFFFF };
+    for (int i = 0; i < pixels.length; i++) {
+      for (int color : colors) {
+        pixels[i] = color;
+        assertTrue(hashes.add(BufferedImageCanvas.hashTile(pixels, 8, TILE, 8, 8)));
+      }
+      pixels[i] = 0;
+    }
+  }
+
+  public void testViewersShareMergedImage() throws Exception {
+    BufferedImageCanvas canvas = new BufferedImageCanvas(null, 64, 32);
+    fill(canvas, 0, 0xFF0000);
+    Map<String, byte[]> encodedImages = new HashMap<String, byte[]>();
+
+    TileTracker first = createTracker();
+    List<TileInfo> firstTiles = getTiles();
+    byte[] image = canvas.getTilesMergedImage(firstTiles, 32, 32, first, encodedImages);
+    assertEquals(2, firstTiles.size());
+
+    TileTracker second = createTracker();
+    List<TileInfo> secondTiles = getTiles();
+    assertSame(image, canvas.getTilesMergedImage(secondTiles, 32, 32, second, encodedImages));
+    assertEquals(2, secondTiles.size());
+
+    // once the frame buffer is drawn to the image is not reused, only the changed tile is sent
+    fill(canvas, 32, 0x00FF00);
+    List<TileInfo> tiles = getTiles();
+    byte[] changed = canvas.getTilesMergedImage(tiles, 32, 32, first, encodedImages);
+    assertNotSame(image, changed);
+    assertEquals(1, tiles.size());
+    assertEquals(1, tiles.get(0).getCol());
+    assertEquals(0x00FF00, ImageIO.read(new ByteArrayInputStream(changed)).getRGB(0, 0) & 0xFFFFFF);
+  }
+
+  public void testMergedImageMatchesRecordedHashes() throws Exception {
+    final BufferedImageCanvas canvas = new BufferedImageCanvas(null, 64, 32);
+    final Map<String, byte[]> encodedImages = new HashMap<String, byte[]>();
+    final int[] colors = { 0xFF0000, 0x00FF00, 0x0000FF };
+
+    Thread painter = new Thread() {
+      @Override
+      public void run() {
+        for (int i = 0; !isInterrupted(); i++)
+          fill(canvas, 0, colors[i % colors.length]);
+      }
+    };
+    painter.start();
+    try {
+      for (int round = 0; round < 200; round++) {
+        TileTracker tracker = createTracker();
+        List<TileInfo> tiles = getTiles();
+        byte[] image = canvas.getTilesMergedImage(tiles, 32, 32, tracker, encodedImages);
+        assertEquals(2, tiles.size());
+
+        // each tile the viewer got is the content the tracker recorded for it
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(image));
+        int[] pixels = decoded.getRGB(0, 0, 64, 32, null, 0, 64);
+        for (int i = 0; i < pixels.length; i++)
+          pixels[i] &= 0xFFFFFF;
+        for (int col = 0; col < 2; col++)
+          assertFalse(tracker.updateTileHash(0, col, BufferedImageCanvas.hashTile(pixels, 64, new Rectangle(col * 32, 0, 32, 32), 32, 32)));
+      }
+    } finally {
+      painter.interrupt();
+      painter.join();
+    }
+  }
+
+  // the way frame buffer updates are drawn, the whole canvas from column x on
+  private static void fill(BufferedImageCanvas canvas, int x, int color) {
+    BufferedImage image = canvas.getOfflineImage();
+    synchronized (image) {
+      int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+      for (int line = 0; line < image.getHeight(); line++)
+        Arrays.fill(pixels, line * image.getWidth() + x, (line + 1) * image.getWidth(), color);
+      canvas.contentChanged();
+    }
+  }
+
+  private static TileTracker createTracker() {
+    TileTracker tracker = new TileTracker();
+    tracker.initTracking(32, 32, 64, 32);
+    return tracker;
+  }
+
+  private static List<TileInfo> getTiles() {
+    List<TileInfo> tiles = new ArrayList<TileInfo>();
+    tiles.add(new TileInfo(0, 0, new Rectangle(0, 0, 32, 32)));
+    tiles.add(new TileInfo(0, 1, new Rectangle(32, 0, 32, 32)));
+    return tiles;
+  }
+
+  public void testHashOnlyCoversTile() {
+    int[] pixels = new int[16 * 16];
+    Rectangle rc = new Rectangle(8, 8, 8, 8);
+    long before = BufferedImageCanvas.hashTile(pixels, 16, rc, 8, 8);
+
+    pixels[0] = 0xFFFFFF;
+    assertEquals(before, BufferedImageCanvas.hashTile(pixels, 16, rc, 8, 8));
+
+    pixels[9 * 16 + 9] = 0xFFFFFF;
+    assertFalse(before == BufferedImageCanvas.hashTile(pixels, 16, rc, 8, 8));
+  }
+}
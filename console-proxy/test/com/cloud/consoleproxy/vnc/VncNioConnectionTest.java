@@ -0,0 +1,256 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.vnc;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+import com.cloud.consoleproxy.ConsoleProxyClientListener;
+
+/**
+ * Runs a VNC session over NIO against a fake VNC server, which sends its
+ * frame buffer update in small pieces, so rectangles arrive over many reads.
+ */
+public class VncNioConnectionTest extends TestCase {
+
+  private static final int WIDTH = 64;
+  private static final int HEIGHT = 48;
+
+  private static final int HEXTILE_RAW = 1, HEXTILE_BACKGROUND_SPECIFIED = 2, HEXTILE_FOREGROUND_SPECIFIED = 4, HEXTILE_ANY_SUBRECTS = 8;
+
+  private ServerSocket serverSocket;
+  private VncClient client;
+  private volatile Throwable serverError;
+
+  @Override
+  protected void setUp() throws IOException {
+    serverSocket = new ServerSocket(0);
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    if (client != null)
+      client.shutdown();
+    serverSocket.close();
+  }
+
+  public void testRectanglesSplitAcrossReads() throws Exception {
+    final byte[] update = createUpdate();
+    Thread server = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          Socket socket = serverSocket.accept();
+          try {
+            serveSession(socket, update);
+          } finally {
+            socket.close();
+          }
+        } catch (Throwable e) {
+          serverError = e;
+        }
+      }
+    }, "Fake VNC server");
+    server.setDaemon(true);
+    server.start();
+
+    final CountDownLatch rects = new CountDownLatch(3);
+    client = new VncClient(new ConsoleProxyClientListener() {
+      @Override
+      public void onFramebufferSizeChange(int w, int h) {
+      }
+
+      @Override
+      public void onFramebufferUpdate(int x, int y, int w, int h) {
+        rects.countDown();
+      }
+
+      @Override
+      public void onClientConnected() {
+      }
+
+      @Override
+      public void onClientClose() {
+      }
+    });
+    client.connectToNio("localhost", serverSocket.getLocalPort(), "");
+
+    assertTrue("rectangles were not decoded, server error: " + serverError, rects.await(30, TimeUnit.SECONDS));
+    assertTrue(client.isHostConnected());
+
+    BufferedImage image = ((BufferedImageCanvas) client.getFrameBufferCanvas()).getOfflineImage();
+
+    // Hextile: raw tile, then background tile with one foreground subrectangle
+    assertEquals(0, image.getRGB(0, 0) & 0xFFFFFF);
+    assertEquals(15 * 16 + 15, image.getRGB(15, 15) & 0xFFFFFF);
+    assertEquals(0x0000FF, image.getRGB(16, 0) & 0xFFFFFF);
+    assertEquals(0xFF0000, image.getRGB(20, 4) & 0xFFFFFF);
+    assertEquals(0x0000FF, image.getRGB(31, 15) & 0xFFFFFF);
+
+    // Tight: compressed copy filter rectangle and fill rectangle
+    for (int y = 16; y < 32; y++) {
+      for (int x = 0; x < WIDTH; x++)
+        assertEquals("pixel " + x + "," + y, tightPixel(x, y), image.getRGB(x, y) & 0xFFFFFF);
+    }
+    assertEquals(0x336699, image.getRGB(0, 32) & 0xFFFFFF);
+    assertEquals(0x336699, image.getRGB(WIDTH - 1, HEIGHT - 1) & 0xFFFFFF);
+  }
+
+  private static int tightPixel(int x, int y) {
+    return ((x * 4) << 16) | ((y * 8) << 8) | ((x + y) & 0xFF);
+  }
+
+  private static void writePixel(OutputStream out, int pixel) throws IOException {
+    out.write(pixel & 0xFF);
+    out.write((pixel >> 8) & 0xFF);
+    out.write((pixel >> 16) & 0xFF);
+    out.write(0);
+  }
+
+  private static byte[] createUpdate() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream os = new DataOutputStream(bytes);
+    os.writeByte(RfbConstants.SERVER_FRAMEBUFFER_UPDATE);
+    os.writeByte(0);
+    os.writeShort(3);
+
+    // Hextile 32x16: raw tile and tile with subrectangle
+    os.writeShort(0);
+    os.writeShort(0);
+    os.writeShort(32);
+    os.writeShort(16);
+    os.writeInt(RfbConstants.ENCODING_HEXTILE);
+    os.writeByte(HEXTILE_RAW);
+    for (int i = 0; i < 16 * 16; i++)
+      writePixel(os, i);
+    os.writeByte(HEXTILE_BACKGROUND_SPECIFIED | HEXTILE_FOREGROUND_SPECIFIED | HEXTILE_ANY_SUBRECTS);
+    writePixel(os, 0x0000FF);
+    writePixel(os, 0xFF0000);
+    os.writeByte(1);
+    os.writeByte((4 << 4) | 4);
+    os.writeByte((1 << 4) | 1);
+
+    // Tight 64x16 with copy filter, compressed with stream 0
+    ByteArrayOutputStream tpixels = new ByteArrayOutputStream();
+    for (int y = 16; y < 32; y++) {
+      for (int x = 0; x < WIDTH; x++) {
+        int pixel = tightPixel(x, y);
+        tpixels.write(pixel >> 16);
+        tpixels.write((pixel >> 8) & 0xFF);
+        tpixels.write(pixel & 0xFF);
+      }
+    }
+    Deflater deflater = new Deflater();
+    deflater.setInput(tpixels.toByteArray());
+    byte[] compressed = new byte[tpixels.size() + 1024];
+    int length = deflater.deflate(compressed, 0, compressed.length, Deflater.SYNC_FLUSH);
+    deflater.end();
+
+    os.writeShort(0);
+    os.writeShort(16);
+    os.writeShort(WIDTH);
+    os.writeShort(16);
+    os.writeInt(RfbConstants.ENCODING_TIGHT);
+    os.writeByte(0);
+    os.writeByte((length & 0x7F) | 0x80);
+    os.writeByte(length >> 7);
+    os.write(compressed, 0, length);
+
+    // Tight fill of the rest
+    os.writeShort(0);
+    os.writeShort(32);
+    os.writeShort(WIDTH);
+    os.writeShort(HEIGHT - 32);
+    os.writeInt(RfbConstants.ENCODING_TIGHT);
+    os.writeByte(0x08 << 4);
+    os.write(new byte[] { 0x33, 0x66, (byte) 0x99 });
+
+    os.flush();
+    return bytes.toByteArray();
+  }
+
+  private static void serveSession(Socket socket, byte[] update) throws IOException, InterruptedException {
+    socket.setTcpNoDelay(true);
+    DataInputStream is = new DataInputStream(socket.getInputStream());
+    DataOutputStream os = new DataOutputStream(socket.getOutputStream());
+
+    // RFB 3.3 handshake without authentication
+    os.write((RfbConstants.RFB_PROTOCOL_VERSION + "\n").getBytes(RfbConstants.CHARSET));
+    is.readFully(new byte[12]);
+    os.writeInt(RfbConstants.NO_AUTH);
+    is.readUnsignedByte();
+
+    // Server init: 32 bit little-endian RGB888
+    os.writeShort(WIDTH);
+    os.writeShort(HEIGHT);
+    os.write(new byte[] { 32, 24, 0, 1 });
+    os.writeShort(255);
+    os.writeShort(255);
+    os.writeShort(255);
+    os.write(new byte[] { 16, 8, 0, 0, 0, 0 });
+    byte[] name = "fake".getBytes(RfbConstants.CHARSET);
+    os.writeInt(name.length);
+    os.write(name);
+    os.flush();
+
+    boolean sent = false;
+    while (true) {
+      int messageType = is.readUnsignedByte();
+      switch (messageType) {
+      case RfbConstants.CLIENT_SET_PIXEL_FORMAT:
+        is.readFully(new byte[19]);
+        break;
+
+      case RfbConstants.CLIENT_SET_ENCODINGS:
+        is.readUnsignedByte();
+        is.readFully(new byte[4 * is.readUnsignedShort()]);
+        break;
+
+      case RfbConstants.CLIENT_FRAMEBUFFER_UPDATE_REQUEST:
+        is.readFully(new byte[9]);
+        if (!sent) {
+          // Small pieces, so every rectangle needs several reads
+          for (int i = 0; i < update.length; i += 50) {
+            os.write(update, i, Math.min(50, update.length - i));
+            os.flush();
+            Thread.sleep(1);
+          }
+          sent = true;
+        }
+        break;
+
+      case RfbConstants.CLIENT_KEYBOARD_EVENT:
+        is.readFully(new byte[7]);
+        break;
+
+      case RfbConstants.CLIENT_POINTER_EVENT:
+        is.readFully(new byte[5]);
+        break;
+
+      default:
+        throw new IOException("Unknown client message " + messageType);
+      }
+    }
+  }
+}
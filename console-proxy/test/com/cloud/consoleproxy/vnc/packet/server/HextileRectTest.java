@@ -0,0 +1,122 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+public class HextileRectTest extends TestCase {
+
+  private static final int RAW = 1, BACKGROUND_SPECIFIED = 2, FOREGROUND_SPECIFIED = 4, ANY_SUBRECTS = 8, SUBRECTS_COLOURED = 16;
+
+  private final EncodingContext context = new EncodingContext();
+
+  @Override
+  protected void tearDown() {
+    context.close();
+  }
+
+  /**
+   * Write 32 bit little-endian pixel.
+   */
+  private static void writePixel(ByteArrayOutputStream out, int pixel) {
+    out.write(pixel & 0xFF);
+    out.write((pixel >> 8) & 0xFF);
+    out.write((pixel >> 16) & 0xFF);
+    out.write(0);
+  }
+
+  private HextileRect decode(ByteArrayOutputStream out, int width, int height) throws IOException {
+    DataInputStream is = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+    HextileRect rect = new HextileRect(0, 0, width, height, is, context);
+    assertEquals("whole rectangle must be consumed", 0, is.available());
+    return rect;
+  }
+
+  public void testBackgroundAndForegroundCarryOverToNextTile() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    // First tile 16x4: blue background, red 2x1 subrectangle at (1, 2)
+    out.write(BACKGROUND_SPECIFIED | FOREGROUND_SPECIFIED | ANY_SUBRECTS);
+    writePixel(out, 0x0000FF);
+    writePixel(out, 0xFF0000);
+    out.write(1);
+    out.write((1 << 4) | 2);
+    out.write((1 << 4) | 0);
+
+    // Second tile 4x4: same background, foreground subrectangle at (3, 3)
+    // is clipped to the tile
+    out.write(ANY_SUBRECTS);
+    out.write(1);
+    out.write((3 << 4) | 3);
+    out.write((3 << 4) | 3);
+
+    HextileRect rect = decode(out, 20, 4);
+
+    assertEquals(0x0000FF, rect.buf[0]);
+    assertEquals(0xFF0000, rect.buf[2 * 20 + 1]);
+    assertEquals(0xFF0000, rect.buf[2 * 20 + 2]);
+    assertEquals(0x0000FF, rect.buf[2 * 20 + 3]);
+    assertEquals(0x0000FF, rect.buf[16]);
+    assertEquals(0xFF0000, rect.buf[3 * 20 + 19]);
+    assertEquals(0x0000FF, rect.buf[3 * 20 + 18]);
+  }
+
+  public void testRawAndColouredSubrectTiles() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    // First tile 16x2 raw
+    out.write(RAW);
+    for (int i = 0; i < 16 * 2; i++) {
+      writePixel(out, i);
+    }
+
+    // Second tile 16x2: green background, two coloured subrectangles
+    out.write(BACKGROUND_SPECIFIED | ANY_SUBRECTS | SUBRECTS_COLOURED);
+    writePixel(out, 0x00FF00);
+    out.write(2);
+    writePixel(out, 0x123456);
+    out.write(0);
+    out.write(0);
+    writePixel(out, 0x654321);
+    out.write((15 << 4) | 1);
+    out.write(0);
+
+    HextileRect rect = decode(out, 32, 2);
+
+    assertEquals(0, rect.buf[0]);
+    assertEquals(15, rect.buf[15]);
+    assertEquals(16, rect.buf[32]);
+    assertEquals(31, rect.buf[32 + 15]);
+    assertEquals(0x123456, rect.buf[16]);
+    assertEquals(0x00FF00, rect.buf[17]);
+    assertEquals(0x654321, rect.buf[32 + 31]);
+  }
+
+  public void testTruncatedTileFails() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(RAW);
+    writePixel(out, 1);
+
+    try {
+      decode(out, 4, 4);
+      fail("truncated raw tile must not decode");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,255 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.TestCase;
+
+public class TightRectTest extends TestCase {
+
+  private static final int FILL = 0x08, JPEG = 0x09, EXPLICIT_FILTER = 0x04;
+
+  private static final int FILTER_PALETTE = 1, FILTER_GRADIENT = 2;
+
+  private final EncodingContext context = new EncodingContext();
+
+  // The server keeps four zlib streams for the whole connection
+  private final Deflater[] deflaters = new Deflater[EncodingContext.TIGHT_STREAMS];
+
+  @Override
+  protected void setUp() {
+    for (int i = 0; i < deflaters.length; i++) {
+      deflaters[i] = new Deflater();
+    }
+  }
+
+  @Override
+  protected void tearDown() {
+    context.close();
+    for (Deflater deflater : deflaters) {
+      deflater.end();
+    }
+  }
+
+  private static void writeTPixel(ByteArrayOutputStream out, int pixel) {
+    out.write((pixel >> 16) & 0xFF);
+    out.write((pixel >> 8) & 0xFF);
+    out.write(pixel & 0xFF);
+  }
+
+  private static void writeCompactLength(ByteArrayOutputStream out, int length) {
+    if (length < 0x80) {
+      out.write(length);
+    } else if (length < 0x4000) {
+      out.write((length & 0x7F) | 0x80);
+      out.write(length >> 7);
+    } else {
+      out.write((length & 0x7F) | 0x80);
+      out.write(((length >> 7) & 0x7F) | 0x80);
+      out.write(length >> 14);
+    }
+  }
+
+  /**
+   * Write filtered data the way the server does: as is, when it is short, or
+   * compressed with given stream, which is flushed at end of rectangle.
+   */
+  private void writeData(ByteArrayOutputStream out, int streamId, byte[] data) {
+    if (data.length < 12) {
+      out.write(data, 0, data.length);
+      return;
+    }
+    Deflater deflater = deflaters[streamId];
+    deflater.setInput(data);
+    byte[] compressed = new byte[data.length + 1024];
+    int length = deflater.deflate(compressed, 0, compressed.length, Deflater.SYNC_FLUSH);
+    writeCompactLength(out, length);
+    out.write(compressed, 0, length);
+  }
+
+  private TightRect decode(ByteArrayOutputStream out, int width, int height) throws IOException {
+    DataInputStream is = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+    TightRect rect = new TightRect(0, 0, width, height, is, context);
+    assertEquals("whole rectangle must be consumed", 0, is.available());
+    return rect;
+  }
+
+  private static int[] pixels(int count, int seed) {
+    int[] pixels = new int[count];
+    for (int i = 0; i < count; i++) {
+      pixels[i] = ((i * 37 + seed) * 0x010305) & 0xFFFFFF;
+    }
+    return pixels;
+  }
+
+  private static byte[] copyFilter(int[] pixels) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (int pixel : pixels) {
+      writeTPixel(out, pixel);
+    }
+    return out.toByteArray();
+  }
+
+  public void testFill() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(FILL << 4);
+    writeTPixel(out, 0x336699);
+
+    TightRect rect = decode(out, 5, 3);
+    for (int pixel : rect.buf) {
+      assertEquals(0x336699, pixel);
+    }
+  }
+
+  public void testCopyFilterShortDataIsNotCompressed() throws IOException {
+    int[] pixels = pixels(3, 1);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(0);
+    writeData(out, 0, copyFilter(pixels));
+
+    TightRect rect = decode(out, 3, 1);
+    assertEquals(pixels[0], rect.buf[0]);
+    assertEquals(pixels[2], rect.buf[2]);
+  }
+
+  public void testCopyFilterStreamsContinueAndReset() throws IOException {
+    // Two rectangles on stream 1, so second one needs inflater state of first
+    for (int seed = 0; seed < 2; seed++) {
+      int[] pixels = pixels(40 * 10, seed);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.write(1 << 4);
+      writeData(out, 1, copyFilter(pixels));
+
+      TightRect rect = decode(out, 40, 10);
+      for (int i = 0; i < pixels.length; i++) {
+        assertEquals("pixel " + i + " of rectangle " + seed, pixels[i], rect.buf[i]);
+      }
+    }
+
+    // Server resets stream 1 and starts new zlib stream
+    deflaters[1].end();
+    deflaters[1] = new Deflater();
+    int[] pixels = pixels(40 * 10, 7);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write((1 << 4) | (1 << 1));
+    writeData(out, 1, copyFilter(pixels));
+
+    TightRect rect = decode(out, 40, 10);
+    assertEquals(pixels[0], rect.buf[0]);
+    assertEquals(pixels[399], rect.buf[399]);
+  }
+
+  public void testTwoColorPalette() throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write((EXPLICIT_FILTER | 2) << 4);
+    out.write(FILTER_PALETTE);
+    out.write(2 - 1);
+    writeTPixel(out, 0x000000);
+    writeTPixel(out, 0xFFFFFF);
+
+    // 10x2, one bit per pixel, rows padded to 2 bytes
+    writeData(out, 2, new byte[] { (byte) 0x80, (byte) 0x40, (byte) 0xFF, (byte) 0xC0 });
+
+    TightRect rect = decode(out, 10, 2);
+    assertEquals(0xFFFFFF, rect.buf[0]);
+    assertEquals(0x000000, rect.buf[1]);
+    assertEquals(0xFFFFFF, rect.buf[9]);
+    assertEquals(0x000000, rect.buf[8]);
+    for (int i = 10; i < 20; i++) {
+      assertEquals(0xFFFFFF, rect.buf[i]);
+    }
+  }
+
+  public void testPaletteIsCompressed() throws IOException {
+    int[] colors = { 0xFF0000, 0x00FF00, 0x0000FF };
+    byte[] indexes = new byte[16 * 4];
+    for (int i = 0; i < indexes.length; i++) {
+      indexes[i] = (byte) (i % 3);
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write((EXPLICIT_FILTER | 3) << 4);
+    out.write(FILTER_PALETTE);
+    out.write(colors.length - 1);
+    for (int color : colors) {
+      writeTPixel(out, color);
+    }
+    writeData(out, 3, indexes);
+
+    TightRect rect = decode(out, 16, 4);
+    for (int i = 0; i < indexes.length; i++) {
+      assertEquals(colors[i % 3], rect.buf[i]);
+    }
+  }
+
+  public void testGradientFilter() throws IOException {
+    int width = 8, height = 6;
+    int[] pixels = pixels(width * height, 3);
+
+    // Difference of each component from its prediction
+    byte[] data = new byte[pixels.length * 3];
+    for (int line = 0, i = 0, j = 0; line < height; line++) {
+      for (int col = 0; col < width; col++, i++) {
+        for (int shift = 16; shift >= 0; shift -= 8, j++) {
+          int left = (col > 0) ? (pixels[i - 1] >> shift) & 0xFF : 0;
+          int up = (line > 0) ? (pixels[i - width] >> shift) & 0xFF : 0;
+          int upLeft = (line > 0 && col > 0) ? (pixels[i - width - 1] >> shift) & 0xFF : 0;
+          int prediction = Math.max(0, Math.min(255, left + up - upLeft));
+          data[j] = (byte) (((pixels[i] >> shift) & 0xFF) - prediction);
+        }
+      }
+    }
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(EXPLICIT_FILTER << 4);
+    out.write(FILTER_GRADIENT);
+    writeData(out, 0, data);
+
+    TightRect rect = decode(out, width, height);
+    for (int i = 0; i < pixels.length; i++) {
+      assertEquals("pixel " + i, pixels[i], rect.buf[i]);
+    }
+  }
+
+  public void testJpeg() throws IOException {
+    BufferedImage image = new BufferedImage(16, 8, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < 8; y++) {
+      for (int x = 0; x < 16; x++) {
+        image.setRGB(x, y, 0x808080);
+      }
+    }
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    assertTrue(ImageIO.write(image, "jpeg", jpeg));
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(JPEG << 4);
+    writeCompactLength(out, jpeg.size());
+    jpeg.writeTo(out);
+
+    TightRect rect = decode(out, 16, 8);
+    for (int pixel : rect.buf) {
+      for (int shift = 16; shift >= 0; shift -= 8) {
+        int component = (pixel >> shift) & 0xFF;
+        assertTrue("lossy component " + component, Math.abs(component - 0x80) <= 2);
+      }
+    }
+  }
+}
@@ -0,0 +1,139 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy.vnc.packet.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+
+public class ZrleRectTest extends TestCase {
+
+  private final EncodingContext context = new EncodingContext();
+
+  // The server keeps one zlib stream for the whole connection
+  private final Deflater deflater = new Deflater();
+
+  @Override
+  protected void tearDown() {
+    context.close();
+    deflater.end();
+  }
+
+  /**
+   * Write compressed pixel: 3 bytes, least significant byte first.
+   */
+  private static void writeCPixel(ByteArrayOutputStream out, int pixel) {
+    out.write(pixel & 0xFF);
+    out.write((pixel >> 8) & 0xFF);
+    out.write((pixel >> 16) & 0xFF);
+  }
+
+  private static void writeRunLength(ByteArrayOutputStream out, int runLength) {
+    runLength -= 1;
+    while (runLength >= 255) {
+      out.write(255);
+      runLength -= 255;
+    }
+    out.write(runLength);
+  }
+
+  /**
+   * Compress tile data the way the server does: continue the stream and flush
+   * it at end of rectangle, then decode the rectangle.
+   */
+  private ZrleRect decode(ByteArrayOutputStream tiles, int width, int height) throws IOException {
+    byte[] input = tiles.toByteArray();
+    deflater.setInput(input);
+    byte[] compressed = new byte[input.length + 1024];
+    int length = deflater.deflate(compressed, 0, compressed.length, Deflater.SYNC_FLUSH);
+
+    ByteArrayOutputStream packet = new ByteArrayOutputStream();
+    DataOutputStream os = new DataOutputStream(packet);
+    os.writeInt(length);
+    os.write(compressed, 0, length);
+
+    DataInputStream is = new DataInputStream(new ByteArrayInputStream(packet.toByteArray()));
+    ZrleRect rect = new ZrleRect(0, 0, width, height, is, context);
+    assertEquals("whole rectangle must be consumed", 0, is.available());
+    return rect;
+  }
+
+  public void testSolidAndPackedPaletteTiles() throws IOException {
+    ByteArrayOutputStream tiles = new ByteArrayOutputStream();
+
+    // First tile 64x2 is solid
+    tiles.write(1);
+    writeCPixel(tiles, 0x102030);
+
+    // Second tile 6x2: palette of two colors, one bit per pixel, rows padded
+    tiles.write(2);
+    writeCPixel(tiles, 0xAAAAAA);
+    writeCPixel(tiles, 0x555555);
+    tiles.write(0xA8); // 101010
+    tiles.write(0x54); // 010101
+
+    ZrleRect rect = decode(tiles, 70, 2);
+
+    assertEquals(0x102030, rect.buf[0]);
+    assertEquals(0x102030, rect.buf[70 + 63]);
+    assertEquals(0x555555, rect.buf[64]);
+    assertEquals(0xAAAAAA, rect.buf[65]);
+    assertEquals(0x555555, rect.buf[68]);
+    assertEquals(0xAAAAAA, rect.buf[70 + 64]);
+    assertEquals(0x555555, rect.buf[70 + 69]);
+  }
+
+  public void testRunLengthTilesShareStreamWithPreviousRectangle() throws IOException {
+    ByteArrayOutputStream tiles = new ByteArrayOutputStream();
+    tiles.write(0);
+    for (int i = 0; i < 4; i++) {
+      writeCPixel(tiles, i);
+    }
+    ZrleRect raw = decode(tiles, 2, 2);
+    assertEquals(3, raw.buf[3]);
+
+    // Plain RLE: 300 pixels of one color, spanning lines, then the rest
+    tiles = new ByteArrayOutputStream();
+    tiles.write(128);
+    writeCPixel(tiles, 0x00FF00);
+    writeRunLength(tiles, 300);
+    writeCPixel(tiles, 0x0000FF);
+    writeRunLength(tiles, 20);
+
+    ZrleRect rle = decode(tiles, 32, 10);
+    assertEquals(0x00FF00, rle.buf[0]);
+    assertEquals(0x00FF00, rle.buf[299]);
+    assertEquals(0x0000FF, rle.buf[300]);
+    assertEquals(0x0000FF, rle.buf[319]);
+
+    // Palette RLE: single pixel, then run of 5
+    tiles = new ByteArrayOutputStream();
+    tiles.write(128 + 2);
+    writeCPixel(tiles, 0x111111);
+    writeCPixel(tiles, 0x222222);
+    tiles.write(1);
+    tiles.write(0x80);
+    writeRunLength(tiles, 5);
+
+    ZrleRect paletteRle = decode(tiles, 3, 2);
+    assertEquals(0x222222, paletteRle.buf[0]);
+    for (int i = 1; i < 6; i++) {
+      assertEquals(0x111111, paletteRle.buf[i]);
+    }
+  }
+}
@@ -29,4 +29,9 @@ public interface UsageEventDao extends GenericDao<UsageEventVO, Long> {
 
     List<UsageEventVO> listDirectIpEvents(Date startDate, Date endDate, long zoneId);
 
+    /**
+     * @return up to limit events with ids greater than eventId, oldest first.
+     */
+    List<UsageEventVO> listEventsAfter(long eventId, int limit);
+
 }
\ No newline at end of file
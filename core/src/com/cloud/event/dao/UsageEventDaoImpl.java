@@ -40,6 +40,7 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
 
     private final SearchBuilder<UsageEventVO> latestEventsSearch;
     private final SearchBuilder<UsageEventVO> IpeventsSearch;
+    private final SearchBuilder<UsageEventVO> eventsAfterSearch;
     private static final String COPY_EVENTS = "INSERT INTO cloud_usage.usage_event (id, type, account_id, created, zone_id, resource_id, resource_name, offering_id, template_id, size, resource_type) " +
     		"SELECT id, type, account_id, created, zone_id, resource_id, resource_name, offering_id, template_id, size, resource_type FROM cloud.usage_event vmevt WHERE vmevt.id > ? and vmevt.id <= ? ";
     private static final String COPY_ALL_EVENTS = "INSERT INTO cloud_usage.usage_event (id, type, account_id, created, zone_id, resource_id, resource_name, offering_id, template_id, size, resource_type) " +
@@ -62,6 +63,10 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
         IpeventsSearch.or("releaseEvent", IpeventsSearch.entity().getType(), SearchCriteria.Op.EQ);
         IpeventsSearch.closeParen();
         IpeventsSearch.done();
+
+        eventsAfterSearch = createSearchBuilder();
+        eventsAfterSearch.and("id", eventsAfterSearch.entity().getId(), SearchCriteria.Op.GT);
+        eventsAfterSearch.done();
     }
 
     @Override
@@ -178,4 +183,12 @@ public class UsageEventDaoImpl extends GenericDaoBase<UsageEventVO, Long> implem
         return listBy(sc, filter);
     }
 
+    @Override
+    public List<UsageEventVO> listEventsAfter(long eventId, int limit) {
+        Filter filter = new Filter(UsageEventVO.class, "id", Boolean.TRUE, Long.valueOf(0), Long.valueOf(limit));
+        SearchCriteria<UsageEventVO> sc = eventsAfterSearch.create();
+        sc.setParameters("id", eventId);
+        return listBy(sc, filter);
+    }
+
 }
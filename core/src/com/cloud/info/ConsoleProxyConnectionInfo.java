@@ -19,6 +19,7 @@ public class ConsoleProxyConnectionInfo {
 	public String tag;
 	public long createTime;
 	public long lastUsedTime;
+	public long bytesReceived;
 	
 	public ConsoleProxyConnectionInfo() {
 	}
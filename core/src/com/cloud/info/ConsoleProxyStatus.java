@@ -14,11 +14,22 @@ package com.cloud.info;
 
 public class ConsoleProxyStatus {
 	private ConsoleProxyConnectionInfo[] connections;
+	private double cpuLoad = -1;
 	
 	public ConsoleProxyStatus() {
 	}
 	
+	public ConsoleProxyStatus(ConsoleProxyConnectionInfo[] connections, double cpuLoad) {
+		this.connections = connections;
+		this.cpuLoad = cpuLoad;
+	}
+	
 	public ConsoleProxyConnectionInfo[] getConnections() {
 		return connections;
 	}
+	
+	// system load average per processor of the proxy VM, negative if not reported
+	public double getCpuLoad() {
+		return cpuLoad;
+	}
 }
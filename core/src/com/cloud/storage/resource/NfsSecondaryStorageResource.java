@@ -76,10 +76,12 @@ import com.cloud.host.Host;
 import com.cloud.host.Host.Type;
 import com.cloud.resource.ServerResourceBase;
 import com.cloud.storage.StorageLayer;
+import com.cloud.storage.swift.SwiftClient;
 import com.cloud.storage.template.DownloadManager;
 import com.cloud.storage.template.DownloadManagerImpl;
 import com.cloud.storage.template.DownloadManagerImpl.ZfsPathParser;
 import com.cloud.storage.template.TemplateInfo;
+import com.cloud.storage.template.TemplateInventory;
 import com.cloud.storage.template.TemplateLocation;
 import com.cloud.storage.template.UploadManager;
 import com.cloud.storage.template.UploadManagerImpl;
@@ -87,7 +89,6 @@ import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.net.NetUtils;
-import com.cloud.utils.script.OutputInterpreter;
 import com.cloud.utils.script.Script;
 import com.cloud.vm.SecondaryStorageVm;
 
@@ -121,6 +122,9 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
 	final private String _parent = "/mnt/SecStorage";
 	final private String _tmpltDir = "/var/cloudstack/template";
     final private String _tmpltpp = "template.properties";
+    private final Map<String, SwiftClient> _swiftClients = new HashMap<String, SwiftClient>();
+    private long _swiftSegmentSize = SwiftClient.DEFAULT_SEGMENT_SIZE;
+    private int _swiftThreads = SwiftClient.DEFAULT_THREADS;
     @Override
     public void disconnected() {
     }
@@ -183,6 +187,7 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         String path = cmd.getPath();
         String errMsg;
         String lDir = null;
+        long start = System.currentTimeMillis();
         try {
             String parent = getRootDir(secondaryStorageUrl);
             lDir = parent + "/template/tmpl/" + accountId.toString() + "/" + templateId.toString();
@@ -193,12 +198,14 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
                 throw new InternalErrorException(errMsg);
             }
             String lPath = lDir + "/" + path;
+            long bytes = 0;
             result = swiftDownload(swift, "T-" + templateId.toString(), path, lPath);
             if (result != null) {
                 errMsg = "failed to download template " + path + " from Swift to secondary storage " + lPath + " , err=" + result;
                 s_logger.warn(errMsg);
                 throw new CloudRuntimeException(errMsg);
             }
+            bytes += new File(lPath).length();
             path = "template.properties";
             lPath = lDir + "/" + path;
             result = swiftDownload(swift, "T-" + templateId.toString(), path, lPath);
@@ -207,7 +214,8 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
                 s_logger.warn(errMsg);
                 throw new CloudRuntimeException(errMsg);
             }
-            return new Answer(cmd, true, "success");
+            bytes += new File(lPath).length();
+            return new Answer(cmd, true, "success, downloaded " + getTransferSummary(bytes, start));
         } catch (Exception e) {
             if (lDir != null) {
                 deleteLocalDir(lDir);
@@ -231,13 +239,20 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
                 s_logger.debug(errMsg);
                 return new Answer(cmd, false, errMsg);
             }
+            long start = System.currentTimeMillis();
             String result = swiftUpload(swift, "T-" + templateId.toString(), lPath, "*");
             if (result != null) {
                 String errMsg = "failed to upload template from secondary storage " + lPath + " to swift  , err=" + result;
                 s_logger.debug(errMsg);
                 return new Answer(cmd, false, errMsg);
             }
-            return new Answer(cmd, true, "success");
+            long bytes = 0;
+            for (File file : new File(lPath).listFiles()) {
+                if (!file.getName().startsWith(".")) {
+                    bytes += file.length();
+                }
+            }
+            return new Answer(cmd, true, "success, uploaded " + getTransferSummary(bytes, start));
         } catch (Exception e) {
             String errMsg = cmd + " Command failed due to " + e.toString();
             s_logger.warn(errMsg, e);
@@ -268,61 +283,54 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
 
     }
 
-    String swiftDownload(SwiftTO swift, String container, String rfilename, String lFullPath) {
-        Script command = new Script("/bin/bash", s_logger);
-        command.add("-c");
-        command.add("/usr/bin/python /usr/local/cloud/systemvm/scripts/storage/secondary/swift -A "
-                + swift.getUrl() + " -U " + swift.getAccount() + ":" + swift.getUserName() + " -K " + swift.getKey()
-                + " download " + container + " " + rfilename + " -o " + lFullPath);
-        OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
-        String result = command.execute(parser);
-        if (result != null) {
-            String errMsg = "swiftDownload failed  err=" + result;
-            s_logger.warn(errMsg);
-            return errMsg;
-        }
-        if (parser.getLines() != null) {
-            String[] lines = parser.getLines().split("\\n");
-            for (String line : lines) {
-                if (line.contains("Errno") || line.contains("failed")) {
-                    String errMsg = "swiftDownload failed , err=" + lines.toString();
-                    s_logger.warn(errMsg);
-                    return errMsg;
-                }
+    SwiftClient getSwiftClient(SwiftTO swift) {
+        String key = swift.getUrl() + "|" + swift.getAccount() + ":" + swift.getUserName() + "|" + swift.getKey();
+        synchronized (_swiftClients) {
+            SwiftClient client = _swiftClients.get(key);
+            if (client == null) {
+                client = new SwiftClient(swift.getUrl(), swift.getAccount(), swift.getUserName(), swift.getKey(), _swiftSegmentSize, _swiftThreads);
+                _swiftClients.put(key, client);
             }
+            return client;
         }
-        return null;
+    }
 
+    static String getTransferSummary(long bytes, long startTime) {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        return bytes + " bytes in " + (elapsed / 1000) + "s (" + (bytes * 1000 / elapsed / 1024) + " KB/s)";
     }
 
-    String swiftDownloadContainer(SwiftTO swift, String container, String ldir) {
-        Script command = new Script("/bin/bash", s_logger);
-        command.add("-c");
-        command.add("cd " + ldir + ";/usr/bin/python /usr/local/cloud/systemvm/scripts/storage/secondary/swift -A " + swift.getUrl() + " -U " + swift.getAccount() + ":" + swift.getUserName() + " -K "
-                + swift.getKey() + " download " + container);
-        OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
-        String result = command.execute(parser);
-        if (result != null) {
-            String errMsg = "swiftDownloadContainer failed  err=" + result;
-            s_logger.warn(errMsg);
+    String swiftDownload(SwiftTO swift, String container, String rfilename, String lFullPath) {
+        try {
+            long start = System.currentTimeMillis();
+            long bytes = getSwiftClient(swift).download(container, rfilename, new File(lFullPath));
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Downloaded " + container + "/" + rfilename + " from Swift, " + getTransferSummary(bytes, start));
+            }
+            return null;
+        } catch (IOException e) {
+            String errMsg = "swiftDownload failed  err=" + e.getMessage();
+            s_logger.warn(errMsg, e);
             return errMsg;
         }
-        if (parser.getLines() != null) {
-            String[] lines = parser.getLines().split("\\n");
-            for (String line : lines) {
-                if (line.contains("Errno") || line.contains("failed")) {
-                    String errMsg = "swiftDownloadContainer failed , err=" + lines.toString();
-                    s_logger.warn(errMsg);
-                    return errMsg;
-                }
+    }
+
+    String swiftDownloadContainer(SwiftTO swift, String container, String ldir) {
+        try {
+            long start = System.currentTimeMillis();
+            long bytes = getSwiftClient(swift).downloadContainer(container, new File(ldir));
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Downloaded container " + container + " from Swift, " + getTransferSummary(bytes, start));
             }
+            return null;
+        } catch (IOException e) {
+            String errMsg = "swiftDownloadContainer failed  err=" + e.getMessage();
+            s_logger.warn(errMsg, e);
+            return errMsg;
         }
-        return null;
-
     }
 
     String swiftUpload(SwiftTO swift, String container, String lDir, String lFilename) {
-        long SWIFT_MAX_SIZE = 5L * 1024L * 1024L * 1024L;
         List<String> files = new ArrayList<String>();
         if (lFilename.equals("*")) {
             File dir = new File(lDir);
@@ -336,34 +344,18 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             files.add(lFilename);
         }
 
+        SwiftClient client = getSwiftClient(swift);
         for (String file : files) {
-            File f = new File(lDir + "/" + file);
-            long size = f.length();
-            Script command = new Script("/bin/bash", s_logger);
-            command.add("-c");
-            if (size <= SWIFT_MAX_SIZE) {
-                command.add("cd " + lDir + ";/usr/bin/python /usr/local/cloud/systemvm/scripts/storage/secondary/swift -A " + swift.getUrl() + " -U " + swift.getAccount() + ":" + swift.getUserName()
-                        + " -K " + swift.getKey() + " upload " + container + " " + file);
-            } else {
-                command.add("cd " + lDir + ";/usr/bin/python /usr/local/cloud/systemvm/scripts/storage/secondary/swift -A " + swift.getUrl() + " -U " + swift.getAccount() + ":" + swift.getUserName()
-                        + " -K " + swift.getKey() + " upload -S " + SWIFT_MAX_SIZE + " " + container + " " + file);
-            }
-            OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
-            String result = command.execute(parser);
-            if (result != null) {
-                String errMsg = "swiftUpload failed , err=" + result;
-                s_logger.warn(errMsg);
-                return errMsg;
-            }
-            if (parser.getLines() != null) {
-                String[] lines = parser.getLines().split("\\n");
-                for (String line : lines) {
-                    if (line.contains("Errno") || line.contains("failed")) {
-                        String errMsg = "swiftUpload failed , err=" + lines.toString();
-                        s_logger.warn(errMsg);
-                        return errMsg;
-                    }
+            try {
+                long start = System.currentTimeMillis();
+                long bytes = client.upload(container, file, new File(lDir + "/" + file));
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Uploaded " + lDir + "/" + file + " to Swift, " + getTransferSummary(bytes, start));
                 }
+            } catch (IOException e) {
+                String errMsg = "swiftUpload failed , err=" + e.getMessage();
+                s_logger.warn(errMsg, e);
+                return errMsg;
             }
         }
 
@@ -371,51 +363,25 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
     }
 
     String[] swiftList(SwiftTO swift, String container, String rFilename) {
-        Script command = new Script("/bin/bash", s_logger);
-        command.add("-c");
-        command.add("/usr/bin/python /usr/local/cloud/systemvm/scripts/storage/secondary/swift -A " + swift.getUrl() + " -U " + swift.getAccount() + ":" + swift.getUserName() + " -K "
-                + swift.getKey() + " list " + container + " " + rFilename);
-        OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
-        String result = command.execute(parser);
-        if (result == null && parser.getLines() != null) {
-            String[] lines = parser.getLines().split("\\n");
-            return lines;
-        } else {
-            if (result != null) {
-                String errMsg = "swiftList failed , err=" + result;
-                s_logger.warn(errMsg);
-            } else {
-                String errMsg = "swiftList failed, no lines returns";
-                s_logger.warn(errMsg);
-            }
+        try {
+            List<String> names = getSwiftClient(swift).list(container, rFilename);
+            return names.toArray(new String[names.size()]);
+        } catch (IOException e) {
+            String errMsg = "swiftList failed , err=" + e.getMessage();
+            s_logger.warn(errMsg, e);
+            return null;
         }
-        return null;
     }
 
     String swiftDelete(SwiftTO swift, String container, String object) {
-        Script command = new Script("/bin/bash", s_logger);
-        command.add("-c");
-        command.add("/usr/bin/python /usr/local/cloud/systemvm/scripts/storage/secondary/swift -A "
-                + swift.getUrl() + " -U " + swift.getAccount() + ":" + swift.getUserName() + " -K " + swift.getKey()
- + " delete " + container + " " + object);
-        OutputInterpreter.AllLinesParser parser = new OutputInterpreter.AllLinesParser();
-        String result = command.execute(parser);
-        if (result != null) {
-            String errMsg = "swiftDelete failed , err=" + result;
-            s_logger.warn(errMsg);
+        try {
+            getSwiftClient(swift).delete(container, object);
+            return null;
+        } catch (IOException e) {
+            String errMsg = "swiftDelete failed , err=" + e.getMessage();
+            s_logger.warn(errMsg, e);
             return errMsg;
         }
-        if (parser.getLines() != null) {
-            String[] lines = parser.getLines().split("\\n");
-            for (String line : lines) {
-                if (line.contains("Errno") || line.contains("failed")) {
-                    String errMsg = "swiftDelete failed , err=" + lines.toString();
-                    s_logger.warn(errMsg);
-                    return errMsg;
-                }
-            }
-        }
-        return null;
     }
 
 
@@ -697,8 +663,10 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
             return new ListTemplateAnswer(cmd.getSwift().toString(), templateInfos);
         } else {
             String root = getRootDir(cmd.getSecUrl());
-            Map<String, TemplateInfo> templateInfos = _dlMgr.gatherTemplateInfo(root);
-            return new ListTemplateAnswer(cmd.getSecUrl(), templateInfos);
+            TemplateInventory.Changes changes = _dlMgr.listTemplateChanges(root, cmd.getInventoryEpoch(), cmd.getSinceGeneration());
+            ListTemplateAnswer answer = new ListTemplateAnswer(cmd.getSecUrl(), changes.getTemplates());
+            answer.setInventory(changes.getEpoch(), changes.getGeneration(), !changes.isFull(), changes.getRemoved());
+            return answer;
         }
     }
     
@@ -847,6 +815,8 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         String absoluteTemplatePath = parent + relativeTemplatePath;
         File tmpltParent = new File(absoluteTemplatePath).getParentFile();
         String details = null;
+        // a template that is partly deleted can't be used either
+        _dlMgr.templateDeleted(parent, relativeTemplatePath);
         if (!tmpltParent.exists()) {
             details = "template parent directory " + tmpltParent.getName() + " doesn't exist";
             s_logger.debug(details);
@@ -1004,6 +974,11 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
         _params = params;
         String value = (String)params.get("scripts.timeout");
         _timeout = NumbersUtil.parseInt(value, 1440) * 1000;
+
+        value = (String)params.get("swift.segment.size");
+        _swiftSegmentSize = Math.min(NumbersUtil.parseLong(value, SwiftClient.DEFAULT_SEGMENT_SIZE), SwiftClient.MAX_OBJECT_SIZE);
+        value = (String)params.get("swift.threads");
+        _swiftThreads = NumbersUtil.parseInt(value, SwiftClient.DEFAULT_THREADS);
         
         _storage = (StorageLayer)params.get(StorageLayer.InstanceConfigKey);
         if (_storage == null) {
@@ -1262,6 +1237,12 @@ public class NfsSecondaryStorageResource extends ServerResourceBase implements S
 
     @Override
     public boolean stop() {
+        synchronized (_swiftClients) {
+            for (SwiftClient client : _swiftClients.values()) {
+                client.shutdown();
+            }
+            _swiftClients.clear();
+        }
         return true;
     }
 
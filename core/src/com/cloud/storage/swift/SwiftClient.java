@@ -0,0 +1,866 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.swift;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.methods.DeleteMethod;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.commons.httpclient.methods.PutMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.httpclient.util.URIUtil;
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * SwiftClient talks to a Swift object store with the v1 auth and storage
+ * API, in place of running the swift command line tool for every object.
+ * 
+ * The auth token is kept until Swift rejects it and connections are pooled.
+ * Files larger than the segment size are stored the way the swift tool
+ * stores them, as segments in the <container>_segments container plus a
+ * manifest object, and the segments are uploaded and downloaded in
+ * parallel.  The MD5 of every object and segment is checked against the
+ * ETag reported by Swift.
+ */
+public class SwiftClient {
+    private static final Logger s_logger = Logger.getLogger(SwiftClient.class);
+
+    // Swift does not take larger objects
+    public static final long MAX_OBJECT_SIZE = 5L * 1024 * 1024 * 1024;
+    public static final long DEFAULT_SEGMENT_SIZE = 1024L * 1024 * 1024;
+    public static final int DEFAULT_THREADS = 4;
+    public static final String SEGMENT_CONTAINER_SUFFIX = "_segments";
+
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int MAX_RETRIES = 3;
+    private static final int LIST_LIMIT = 10000;
+
+    private final String _authUrl;
+    private final String _user;
+    private final String _key;
+    private final long _segmentSize;
+
+    private final MultiThreadedHttpConnectionManager _connectionManager;
+    private final HttpClient _client;
+    private final ExecutorService _executor;
+
+    private AuthToken _authToken;
+
+    static class AuthToken {
+        final String storageUrl;
+        final String token;
+
+        AuthToken(String storageUrl, String token) {
+            this.storageUrl = storageUrl;
+            this.token = token;
+        }
+    }
+
+    /**
+     * An object as listed or stat'ed.
+     */
+    public static class ObjectInfo {
+        final String name;
+        final long size;
+        final String etag;
+        // container/prefix of the segments if the object is a manifest
+        final String manifest;
+
+        ObjectInfo(String name, long size, String etag, String manifest) {
+            this.name = name;
+            this.size = size;
+            this.etag = etag;
+            this.manifest = manifest;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public String getManifest() {
+            return manifest;
+        }
+    }
+
+    public SwiftClient(String authUrl, String account, String userName, String key) {
+        this(authUrl, account, userName, key, DEFAULT_SEGMENT_SIZE, DEFAULT_THREADS);
+    }
+
+    public SwiftClient(String authUrl, String account, String userName, String key, long segmentSize, int threads) {
+        if (segmentSize <= 0 || segmentSize > MAX_OBJECT_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size " + segmentSize);
+        }
+        _authUrl = authUrl;
+        _user = account + ":" + userName;
+        _key = key;
+        _segmentSize = segmentSize;
+
+        threads = Math.max(1, threads);
+        _connectionManager = new MultiThreadedHttpConnectionManager();
+        // a transfer's own requests run next to the segments it waits for
+        _connectionManager.getParams().setDefaultMaxConnectionsPerHost(threads + 2);
+        _connectionManager.getParams().setMaxTotalConnections(threads + 2);
+        _client = new HttpClient(_connectionManager);
+        _executor = Executors.newFixedThreadPool(threads, new NamedThreadFactory("Swift-Transfer"));
+    }
+
+    public void shutdown() {
+        _executor.shutdownNow();
+        _connectionManager.shutdown();
+    }
+
+    //
+    // Operations
+    //
+
+    /**
+     * Uploads a file, as segments and a manifest if it is larger than the segment size.
+     * @return bytes uploaded.
+     */
+    public long upload(String container, String objectName, final File file) throws IOException {
+        if (!file.isFile()) {
+            throw new FileNotFoundException(file.getAbsolutePath());
+        }
+        createContainer(container);
+
+        long size = file.length();
+        final Progress progress = new Progress("upload of " + file.getAbsolutePath() + " to " + container + "/" + objectName, size);
+        if (size <= _segmentSize) {
+            putObjectWithRetry(container, objectName, file, 0, size, progress);
+            return size;
+        }
+
+        final String segmentContainer = container + SEGMENT_CONTAINER_SUFFIX;
+        createContainer(segmentContainer);
+        // same names as the swift tool gives the segments
+        final String mtime = Long.toString(file.lastModified() / 1000);
+        String prefix = objectName + "/" + mtime + "/" + size + "/";
+        int count = (int)((size + _segmentSize - 1) / _segmentSize);
+        s_logger.info("Upload " + file.getAbsolutePath() + " to " + container + "/" + objectName + " in " + count + " segments");
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int i = 0; i < count; i++) {
+            final String segmentName = prefix + String.format("%08d", i);
+            final long offset = i * _segmentSize;
+            final long length = Math.min(_segmentSize, size - offset);
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    putObjectWithRetry(segmentContainer, segmentName, file, offset, length, progress);
+                    return null;
+                }
+            });
+        }
+        runAll(tasks);
+
+        final String manifest = segmentContainer + "/" + prefix;
+        new Call<Object>() {
+            @Override
+            HttpMethodBase createMethod(String url) {
+                PutMethod method = new PutMethod(url);
+                method.setRequestHeader("X-Object-Manifest", manifest);
+                method.setRequestHeader("X-Object-Meta-Mtime", mtime);
+                method.setRequestHeader("Content-Length", "0");
+                return method;
+            }
+
+            @Override
+            Object handle(HttpMethodBase method, int status) throws IOException {
+                if (status != HttpStatus.SC_CREATED) {
+                    throw new IOException("Unable to create manifest " + objectName() + ", HTTP " + status);
+                }
+                return null;
+            }
+        }.execute(path(container, objectName));
+        return size;
+    }
+
+    /**
+     * Downloads an object into a file, fetching the segments of a manifest
+     * object in parallel.
+     * @return bytes downloaded.
+     */
+    public long download(String container, String objectName, final File target) throws IOException {
+        ObjectInfo info = stat(container, objectName);
+        if (info == null) {
+            throw new FileNotFoundException("Object " + container + "/" + objectName + " is not found");
+        }
+
+        if (info.manifest == null) {
+            Progress progress = new Progress("download of " + container + "/" + objectName + " to " + target.getAbsolutePath(), info.size);
+            truncate(target, 0);
+            return getObjectWithRetry(container, objectName, target, 0, progress);
+        }
+
+        int slash = info.manifest.indexOf('/');
+        if (slash <= 0) {
+            throw new IOException("Invalid manifest " + info.manifest + " of " + container + "/" + objectName);
+        }
+        final String segmentContainer = info.manifest.substring(0, slash);
+        String prefix = info.manifest.substring(slash + 1);
+        List<ObjectInfo> segments = listObjects(segmentContainer, prefix);
+        long size = 0;
+        for (ObjectInfo segment : segments) {
+            size += segment.size;
+        }
+        s_logger.info("Download " + container + "/" + objectName + " in " + segments.size() + " segments, " + size + " bytes");
+
+        final Progress progress = new Progress("download of " + container + "/" + objectName + " to " + target.getAbsolutePath(), size);
+        truncate(target, size);
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        long offset = 0;
+        for (final ObjectInfo segment : segments) {
+            final long segmentOffset = offset;
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    long bytes = getObjectWithRetry(segmentContainer, segment.name, target, segmentOffset, progress);
+                    if (bytes != segment.size) {
+                        throw new IOException("Segment " + segment.name + " has " + bytes + " bytes, " + segment.size + " expected");
+                    }
+                    return null;
+                }
+            });
+            offset += segment.size;
+        }
+        runAll(tasks);
+        return size;
+    }
+
+    /**
+     * Downloads every object of a container into a directory.  Nothing is
+     * downloaded if the name of an object would put it outside the directory,
+     * e.g. one starting with "../".
+     * @return bytes downloaded.
+     */
+    public long downloadContainer(String container, File dir) throws IOException {
+        String dirPath = dir.getCanonicalPath() + File.separator;
+        Map<String, File> targets = new LinkedHashMap<String, File>();
+        for (String name : list(container, null)) {
+            File target = new File(dir, name).getCanonicalFile();
+            if (!target.getPath().startsWith(dirPath)) {
+                throw new IOException("Object " + container + "/" + name + " is outside of " + dir.getAbsolutePath());
+            }
+            targets.put(name, target);
+        }
+
+        long bytes = 0;
+        for (Map.Entry<String, File> entry : targets.entrySet()) {
+            File parent = entry.getValue().getParentFile();
+            if (!parent.exists() && !parent.mkdirs()) {
+                throw new IOException("Unable to create " + parent.getAbsolutePath());
+            }
+            bytes += download(container, entry.getKey(), entry.getValue());
+        }
+        return bytes;
+    }
+
+    /**
+     * @param container null or empty to list the containers of the account.
+     * @param prefix null or empty to list every object.
+     * @return names of the objects in the container.
+     */
+    public List<String> list(String container, String prefix) throws IOException {
+        List<String> names = new ArrayList<String>();
+        for (ObjectInfo info : listObjects(container, prefix)) {
+            names.add(info.name);
+        }
+        return names;
+    }
+
+    /**
+     * Deletes an object, with its segments if it is a manifest.  An empty
+     * object name deletes every object of the container, then the container.
+     * Objects and containers that are not found count as deleted.
+     */
+    public void delete(String container, String objectName) throws IOException {
+        if (objectName != null && objectName.length() > 0) {
+            deleteObject(container, objectName);
+            return;
+        }
+
+        List<ObjectInfo> objects;
+        try {
+            objects = listObjects(container, null);
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        for (ObjectInfo info : objects) {
+            deleteObject(container, info.name);
+        }
+        new IdempotentCall<Object>() {
+            @Override
+            HttpMethodBase createMethod(String url) {
+                return new DeleteMethod(url);
+            }
+
+            @Override
+            Object handle(HttpMethodBase method, int status) throws IOException {
+                if (status != HttpStatus.SC_NO_CONTENT && status != HttpStatus.SC_NOT_FOUND) {
+                    throw new IOException("Unable to delete container " + objectName() + ", HTTP " + status);
+                }
+                return null;
+            }
+        }.execute(path(container, null));
+    }
+
+    /**
+     * @return the object, null if it is not found.
+     */
+    public ObjectInfo stat(final String container, final String objectName) throws IOException {
+        return new IdempotentCall<ObjectInfo>() {
+            @Override
+            HttpMethodBase createMethod(String url) {
+                return new HeadMethod(url);
+            }
+
+            @Override
+            ObjectInfo handle(HttpMethodBase method, int status) throws IOException {
+                if (status == HttpStatus.SC_NOT_FOUND) {
+                    return null;
+                }
+                if (status != HttpStatus.SC_OK && status != HttpStatus.SC_NO_CONTENT) {
+                    throw new IOException("Unable to stat " + objectName() + ", HTTP " + status);
+                }
+                Header length = method.getResponseHeader("Content-Length");
+                Header manifest = method.getResponseHeader("X-Object-Manifest");
+                return new ObjectInfo(objectName, length != null ? Long.parseLong(length.getValue().trim()) : 0, getEtag(method),
+                        manifest != null ? URIUtil.decode(manifest.getValue()) : null);
+            }
+        }.execute(path(container, objectName));
+    }
+
+    //
+    // Objects and containers
+    //
+
+    private void createContainer(String container) throws IOException {
+        new IdempotentCall<Object>() {
+            @Override
+            HttpMethodBase createMethod(String url) {
+                PutMethod method = new PutMethod(url);
+                method.setRequestHeader("Content-Length", "0");
+                return method;
+            }
+
+            @Override
+            Object handle(HttpMethodBase method, int status) throws IOException {
+                if (status != HttpStatus.SC_CREATED && status != HttpStatus.SC_ACCEPTED) {
+                    throw new IOException("Unable to create container " + objectName() + ", HTTP " + status);
+                }
+                return null;
+            }
+        }.execute(path(container, null));
+    }
+
+    private List<ObjectInfo> listObjects(String container, String prefix) throws IOException {
+        final List<ObjectInfo> objects = new ArrayList<ObjectInfo>();
+        String marker = null;
+        while (true) {
+            StringBuilder query = new StringBuilder("?format=json&limit=").append(LIST_LIMIT);
+            if (prefix != null && prefix.length() > 0) {
+                query.append("&prefix=").append(URIUtil.encodeWithinQuery(prefix));
+            }
+            if (marker != null) {
+                query.append("&marker=").append(URIUtil.encodeWithinQuery(marker));
+            }
+
+            final boolean account = container == null || container.length() == 0;
+            int count = new IdempotentCall<Integer>() {
+                @Override
+                HttpMethodBase createMethod(String url) {
+                    return new GetMethod(url);
+                }
+
+                @Override
+                Integer handle(HttpMethodBase method, int status) throws IOException {
+                    if (status == HttpStatus.SC_NO_CONTENT) {
+                        return 0;
+                    }
+                    if (status == HttpStatus.SC_NOT_FOUND) {
+                        throw new FileNotFoundException("Container " + objectName() + " is not found");
+                    }
+                    if (status != HttpStatus.SC_OK) {
+                        throw new IOException("Unable to list " + objectName() + ", HTTP " + status);
+                    }
+                    // nothing is added until the whole page is read, a failed read is sent again
+                    JsonArray entries = new JsonParser().parse(method.getResponseBodyAsString()).getAsJsonArray();
+                    List<ObjectInfo> page = new ArrayList<ObjectInfo>();
+                    for (JsonElement element : entries) {
+                        JsonObject entry = element.getAsJsonObject();
+                        String name = entry.get("name").getAsString();
+                        if (account) {
+                            page.add(new ObjectInfo(name, entry.get("bytes").getAsLong(), null, null));
+                        } else {
+                            page.add(new ObjectInfo(name, entry.get("bytes").getAsLong(), entry.get("hash").getAsString(), null));
+                        }
+                    }
+                    objects.addAll(page);
+                    return entries.size();
+                }
+            }.execute((account ? "" : path(container, null)) + query);
+
+            if (count < LIST_LIMIT) {
+                return objects;
+            }
+            marker = objects.get(objects.size() - 1).name;
+        }
+    }
+
+    private void deleteObject(final String container, final String objectName) throws IOException {
+        ObjectInfo info = stat(container, objectName);
+        if (info == null) {
+            return;
+        }
+        if (info.manifest != null) {
+            int slash = info.manifest.indexOf('/');
+            String segmentContainer = info.manifest.substring(0, slash);
+            for (ObjectInfo segment : listObjects(segmentContainer, info.manifest.substring(slash + 1))) {
+                deleteObject(segmentContainer, segment.name);
+            }
+        }
+        new IdempotentCall<Object>() {
+            @Override
+            HttpMethodBase createMethod(String url) {
+                return new DeleteMethod(url);
+            }
+
+            @Override
+            Object handle(HttpMethodBase method, int status) throws IOException {
+                if (status != HttpStatus.SC_NO_CONTENT && status != HttpStatus.SC_NOT_FOUND) {
+                    throw new IOException("Unable to delete " + objectName() + ", HTTP " + status);
+                }
+                return null;
+            }
+        }.execute(path(container, objectName));
+    }
+
+    private void putObjectWithRetry(String container, String objectName, File file, long offset, long length, Progress progress) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            FileRangeEntity entity = new FileRangeEntity(file, offset, length, progress);
+            try {
+                putObject(container, objectName, entity);
+                return;
+            } catch (IOException e) {
+                progress.add(-entity.getBytesWritten());
+                if (attempt >= MAX_RETRIES) {
+                    throw e;
+                }
+                s_logger.info("Retry upload of " + container + "/" + objectName + " after " + e.getMessage());
+            }
+        }
+    }
+
+    private void putObject(String container, String objectName, final FileRangeEntity entity) throws IOException {
+        String etag = new Call<String>() {
+            @Override
+            HttpMethodBase createMethod(String url) {
+                PutMethod method = new PutMethod(url);
+                method.setRequestEntity(entity);
+                return method;
+            }
+
+            @Override
+            String handle(HttpMethodBase method, int status) throws IOException {
+                if (status == 422) {
+                    throw new IOException("Swift found the checksum of " + objectName() + " wrong");
+                }
+                if (status != HttpStatus.SC_CREATED) {
+                    throw new IOException("Unable to upload " + objectName() + ", HTTP " + status);
+                }
+                return getEtag(method);
+            }
+        }.execute(path(container, objectName));
+
+        if (etag != null && !etag.equalsIgnoreCase(entity.getChecksum())) {
+            throw new IOException("Checksum of " + container + "/" + objectName + " is " + etag + " in Swift, " + entity.getChecksum() + " sent");
+        }
+    }
+
+    private long getObjectWithRetry(String container, String objectName, File target, long offset, Progress progress) throws IOException {
+        for (int attempt = 1;; attempt++) {
+            AtomicLong received = new AtomicLong();
+            try {
+                return getObject(container, objectName, target, offset, progress, received);
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                progress.add(-received.get());
+                if (attempt >= MAX_RETRIES) {
+                    throw e;
+                }
+                s_logger.info("Retry download of " + container + "/" + objectName + " after " + e.getMessage());
+            }
+        }
+    }
+
+    private long getObject(String container, String objectName, final File target, final long offset, final Progress progress, final AtomicLong received)
+            throws IOException {
+        return new Call<Long>() {
+            @Override
+            HttpMethodBase createMethod(String url) {
+                return new GetMethod(url);
+            }
+
+            @Override
+            Long handle(HttpMethodBase method, int status) throws IOException {
+                if (status == HttpStatus.SC_NOT_FOUND) {
+                    throw new FileNotFoundException("Object " + objectName() + " is not found");
+                }
+                if (status != HttpStatus.SC_OK) {
+                    throw new IOException("Unable to download " + objectName() + ", HTTP " + status);
+                }
+
+                MessageDigest digest = newDigest();
+                RandomAccessFile out = new RandomAccessFile(target, "rw");
+                try {
+                    out.seek(offset);
+                    InputStream in = method.getResponseBodyAsStream();
+                    if (in != null) {
+                        byte[] buf = new byte[BLOCK_SIZE];
+                        int bytes;
+                        while ((bytes = in.read(buf)) > 0) {
+                            out.write(buf, 0, bytes);
+                            digest.update(buf, 0, bytes);
+                            received.addAndGet(bytes);
+                            progress.add(bytes);
+                        }
+                    }
+                } finally {
+                    out.close();
+                }
+
+                // the ETag of a manifest object is not the MD5 of its content
+                String etag = getEtag(method);
+                String checksum = toHex(digest.digest());
+                if (etag != null && method.getResponseHeader("X-Object-Manifest") == null && !etag.equalsIgnoreCase(checksum)) {
+                    throw new IOException("Checksum of " + objectName() + " is " + etag + " in Swift, " + checksum + " received");
+                }
+                return received.get();
+            }
+        }.execute(path(container, objectName));
+    }
+
+    //
+    // Plumbing
+    //
+
+    /**
+     * A request against the storage URL, sent again with a new token if
+     * Swift rejects the one it was sent with.
+     */
+    private abstract class Call<T> {
+        private String _path;
+
+        abstract HttpMethodBase createMethod(String url) throws IOException;
+
+        abstract T handle(HttpMethodBase method, int status) throws IOException;
+
+        String objectName() {
+            return _path;
+        }
+
+        boolean isIdempotent() {
+            return false;
+        }
+
+        T execute(String path) throws IOException {
+            _path = path;
+            AuthToken auth = getAuthToken(null);
+            boolean reauthenticated = false;
+            for (int attempt = 1;; attempt++) {
+                HttpMethodBase method = createMethod(auth.storageUrl + path);
+                method.setRequestHeader("X-Auth-Token", auth.token);
+                try {
+                    int status = _client.executeMethod(method);
+                    if (status == HttpStatus.SC_UNAUTHORIZED && !reauthenticated) {
+                        reauthenticated = true;
+                        auth = getAuthToken(auth);
+                        attempt--;
+                        continue;
+                    }
+                    return handle(method, status);
+                } catch (FileNotFoundException e) {
+                    throw e;
+                } catch (InterruptedIOException e) {
+                    throw e;
+                } catch (IOException e) {
+                    if (!isIdempotent() || attempt >= MAX_RETRIES) {
+                        throw e;
+                    }
+                    s_logger.info("Retry " + method.getName() + " of " + path + " after " + e.getMessage());
+                } finally {
+                    method.releaseConnection();
+                }
+            }
+        }
+    }
+
+    /**
+     * A request which does the same when it is sent more than once, sent
+     * again when it fails with an I/O error.  Transfers have their own retry
+     * as a failed transfer has to be rewound first.
+     */
+    private abstract class IdempotentCall<T> extends Call<T> {
+        @Override
+        boolean isIdempotent() {
+            return true;
+        }
+    }
+
+    /**
+     * @param rejected token Swift did not accept, null to get the current one.
+     */
+    private synchronized AuthToken getAuthToken(AuthToken rejected) throws IOException {
+        if (_authToken != null && _authToken != rejected) {
+            return _authToken;
+        }
+
+        GetMethod method = new GetMethod(_authUrl);
+        method.setRequestHeader("X-Auth-User", _user);
+        method.setRequestHeader("X-Auth-Key", _key);
+        try {
+            int status = _client.executeMethod(method);
+            if (status < 200 || status >= 300) {
+                throw new IOException("Swift authentication of " + _user + " at " + _authUrl + " failed, HTTP " + status);
+            }
+            Header storageUrl = method.getResponseHeader("X-Storage-Url");
+            Header token = method.getResponseHeader("X-Auth-Token");
+            if (token == null) {
+                token = method.getResponseHeader("X-Storage-Token");
+            }
+            if (storageUrl == null || token == null) {
+                throw new IOException("Swift authentication at " + _authUrl + " returned no storage url or token");
+            }
+            _authToken = new AuthToken(storageUrl.getValue().trim(), token.getValue().trim());
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Authenticated " + _user + " with Swift, storage url " + _authToken.storageUrl);
+            }
+            return _authToken;
+        } finally {
+            method.releaseConnection();
+        }
+    }
+
+    /**
+     * Runs the tasks on the transfer threads and waits for all of them.  The
+     * first failure cancels the tasks not yet done.
+     */
+    private void runAll(List<Callable<Object>> tasks) throws IOException {
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (Callable<Object> task : tasks) {
+            futures.add(_executor.submit(task));
+        }
+        try {
+            for (Future<Object> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for Swift transfers");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException(cause.getMessage());
+        } finally {
+            for (Future<Object> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Streams a range of a file as the body of a PUT and computes its MD5.
+     */
+    static class FileRangeEntity implements RequestEntity {
+        private final File _file;
+        private final long _offset;
+        private final long _length;
+        private final Progress _progress;
+        private volatile long _written;
+        private String _checksum;
+
+        FileRangeEntity(File file, long offset, long length, Progress progress) {
+            _file = file;
+            _offset = offset;
+            _length = length;
+            _progress = progress;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public void writeRequest(OutputStream out) throws IOException {
+            // sent again if the token was rejected
+            _progress.add(-_written);
+            _written = 0;
+
+            MessageDigest digest = newDigest();
+            RandomAccessFile in = new RandomAccessFile(_file, "r");
+            try {
+                in.seek(_offset);
+                byte[] buf = new byte[BLOCK_SIZE];
+                long remaining = _length;
+                while (remaining > 0) {
+                    int bytes = in.read(buf, 0, (int)Math.min(buf.length, remaining));
+                    if (bytes < 0) {
+                        throw new IOException(_file.getAbsolutePath() + " is shorter than " + (_offset + _length) + " bytes");
+                    }
+                    out.write(buf, 0, bytes);
+                    digest.update(buf, 0, bytes);
+                    remaining -= bytes;
+                    _written += bytes;
+                    _progress.add(bytes);
+                }
+            } finally {
+                in.close();
+            }
+            _checksum = toHex(digest.digest());
+        }
+
+        @Override
+        public long getContentLength() {
+            return _length;
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        long getBytesWritten() {
+            return _written;
+        }
+
+        String getChecksum() {
+            return _checksum;
+        }
+    }
+
+    /**
+     * Logs the progress of a transfer every 10 percent.
+     */
+    static class Progress {
+        private final String _description;
+        private final long _total;
+        private final long _start = System.currentTimeMillis();
+        private final AtomicLong _done = new AtomicLong();
+        private int _reported;
+
+        Progress(String description, long total) {
+            _description = description;
+            _total = total;
+        }
+
+        void add(long bytes) {
+            long done = _done.addAndGet(bytes);
+            if (_total <= 0 || bytes <= 0) {
+                return;
+            }
+            int percent = (int)(done * 100 / _total);
+            synchronized (this) {
+                if (percent / 10 <= _reported / 10) {
+                    return;
+                }
+                _reported = percent;
+            }
+            long elapsed = Math.max(1, System.currentTimeMillis() - _start);
+            s_logger.info(percent + "% of " + _description + " done, " + (done * 1000 / elapsed / 1024) + " KB/s");
+        }
+    }
+
+    private static String path(String container, String objectName) throws IOException {
+        StringBuilder sb = new StringBuilder("/").append(URIUtil.encodePath(container));
+        if (objectName != null) {
+            sb.append('/').append(URIUtil.encodePath(objectName));
+        }
+        return sb.toString();
+    }
+
+    private static void truncate(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String getEtag(HttpMethodBase method) {
+        Header etag = method.getResponseHeader("ETag");
+        if (etag == null) {
+            return null;
+        }
+        String value = etag.getValue().trim();
+        if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new CloudRuntimeException("MD5 is not available", e);
+        }
+    }
+
+    private static String toHex(byte[] digest) {
+        return String.format("%032x", new BigInteger(1, digest));
+    }
+}
@@ -91,4 +91,18 @@ public interface DownloadManager extends Manager {
 	 * @return list of template info for installed templates
 	 */
 	public Map<String, TemplateInfo> gatherTemplateInfo(String templateDir);
+
+	/**
+	 * Lists the templates from the template inventory, scanning them only when the
+	 * inventory is missing or its last scan is older than the scan interval.
+	 * @param epoch inventory epoch the caller's generation belongs to, null for all templates
+	 * @param sinceGeneration last inventory generation the caller has seen
+	 * @return templates installed or changed after sinceGeneration and the ones removed
+	 */
+	public TemplateInventory.Changes listTemplateChanges(String rootDir, String epoch, long sinceGeneration);
+
+	/**
+	 * Records in the template inventory that the template at installPath was deleted.
+	 */
+	public void templateDeleted(String rootDir, String installPath);
 }
\ No newline at end of file
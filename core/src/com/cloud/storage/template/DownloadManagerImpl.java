@@ -214,6 +214,9 @@ public class DownloadManagerImpl implements DownloadManager {
     private final Map<String, DownloadJob> jobs = new ConcurrentHashMap<String, DownloadJob>();
     private String listTmpltScr;
     private int installTimeoutPerGig = 180 * 60 * 1000;
+    private int _downloadSegments = SegmentedHttpTemplateDownloader.DEFAULT_SEGMENTS;
+    private long _inventoryScanInterval = 24 * 60 * 60 * 1000L;
+    private final Map<String, TemplateInventory> _inventories = new HashMap<String, TemplateInventory>();
     private boolean _sslCopy;
 
     /**
@@ -300,6 +303,15 @@ public class DownloadManagerImpl implements DownloadManager {
         }
     }
 
+    private static boolean isSameCheckSum(String checksum1, String checksum2) {
+        try {
+            // leading zeros are dropped by computeCheckSum
+            return new BigInteger(checksum1.trim(), 16).equals(new BigInteger(checksum2.trim(), 16));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     /**
      * Post download activity (install and cleanup). Executed in context of downloader thread
      * 
@@ -346,7 +358,21 @@ public class DownloadManagerImpl implements DownloadManager {
 
         scr.add("-t", templatePath);
         scr.add("-f", td.getDownloadLocalPath());
+
+        // computed while downloading, saves reading the file again to verify and record the checksum
+        String downloadCheckSum = null;
+        boolean compressed = true;
+        if (td instanceof SegmentedHttpTemplateDownloader) {
+            downloadCheckSum = ((SegmentedHttpTemplateDownloader)td).getChecksum();
+            compressed = ((SegmentedHttpTemplateDownloader)td).isCompressed();
+        }
         if (dnld.getChecksum() != null && dnld.getChecksum().length() > 1) {
+            if (downloadCheckSum != null) {
+                if (!isSameCheckSum(dnld.getChecksum(), downloadCheckSum)) {
+                    return "Checksum failed, not proceeding with install";
+                }
+                scr.add("-k");
+            }
             scr.add("-c", dnld.getChecksum());
         }
         scr.add("-u"); // cleanup
@@ -393,12 +419,28 @@ public class DownloadManagerImpl implements DownloadManager {
             }
         }
         
-        String checkSum = computeCheckSum(downloadedTemplate);
+        String checkSum;
+        if (downloadCheckSum != null && !compressed && dnld.getFormat() != ImageFormat.VHD) {
+            // the install script moved the downloaded file in place, vhd-util may have changed a VHD footer
+            checkSum = downloadCheckSum;
+        } else {
+            checkSum = computeCheckSum(downloadedTemplate);
+        }
         dnld.setCheckSum(checkSum);
         
         if (!loc.save()) {
             s_logger.warn("Cleaning up because we're unable to save the formats");
             loc.purge();
+        } else {
+            // read back what was saved, the same way a scan of the template directory would
+            TemplateLocation installed = new TemplateLocation(_storage, templatePath);
+            try {
+                if (installed.load()) {
+                    getInventory(dnld.getInstallPathPrefix()).templateInstalled(installed.getTemplateInfo());
+                }
+            } catch (IOException e) {
+                s_logger.warn("Unable to add " + templatePath + " to the template inventory, it will be found by the next scan", e);
+            }
         }
 
         return null;
@@ -448,7 +490,11 @@ public class DownloadManagerImpl implements DownloadManager {
             TemplateDownloader td;
             if ((uri != null) && (uri.getScheme() != null)) {
                 if (uri.getScheme().equalsIgnoreCase("http") || uri.getScheme().equalsIgnoreCase("https")) {
-                    td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy);
+                    if (_downloadSegments > 1) {
+                        td = new SegmentedHttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy, format, _downloadSegments);
+                    } else {
+                        td = new HttpTemplateDownloader(_storage, url, tmpDir, new Completion(jobId), maxTemplateSizeInBytes, user, password, proxy);
+                    }
                 } else if (uri.getScheme().equalsIgnoreCase("file")) {
                     td = new LocalTemplateDownloader(_storage, url, tmpDir, maxTemplateSizeInBytes, new Completion(jobId));
                 } else if (uri.getScheme().equalsIgnoreCase("scp")) {
@@ -709,6 +755,7 @@ public class DownloadManagerImpl implements DownloadManager {
             result.put(tInfo.templateName, tInfo);
             s_logger.debug("Added template name: " + tInfo.templateName + ", path: " + tmplt);
         }
+        getInventory(templateDir).reconcile(result);
         /*
         for (String tmplt : isoTmplts) {
             String tmp[];
@@ -723,6 +770,35 @@ public class DownloadManagerImpl implements DownloadManager {
         return result;
     }
 
+    @Override
+    public TemplateInventory.Changes listTemplateChanges(String rootDir, String epoch, long sinceGeneration) {
+        TemplateInventory inventory = getInventory(rootDir + File.separator + _templateDir);
+        synchronized (inventory) {
+            // the full walk is now only a periodic consistency check
+            if (!inventory.isInitialized() || System.currentTimeMillis() - inventory.getLastFullScan() > _inventoryScanInterval) {
+                gatherTemplateInfo(rootDir);
+            }
+            return inventory.getChanges(epoch, sinceGeneration);
+        }
+    }
+
+    @Override
+    public void templateDeleted(String rootDir, String installPath) {
+        getInventory(rootDir + File.separator + _templateDir).templateRemovedByPath(installPath);
+    }
+
+    private TemplateInventory getInventory(String templateDir) {
+        String key = new File(templateDir).getPath();
+        synchronized (_inventories) {
+            TemplateInventory inventory = _inventories.get(key);
+            if (inventory == null) {
+                inventory = new TemplateInventory(key);
+                _inventories.put(key, inventory);
+            }
+            return inventory;
+        }
+    }
+
     private int deleteDownloadDirectories(File downloadPath, int deleted) {
         try {
             if (downloadPath.exists()) {
@@ -814,6 +890,12 @@ public class DownloadManagerImpl implements DownloadManager {
         value = (String) params.get("install.numthreads");
         final int numInstallThreads = NumbersUtil.parseInt(value, 10);
 
+        value = (String) params.get("download.segments");
+        _downloadSegments = NumbersUtil.parseInt(value, SegmentedHttpTemplateDownloader.DEFAULT_SEGMENTS);
+
+        value = (String) params.get("template.inventory.scan.interval");
+        _inventoryScanInterval = NumbersUtil.parseLong(value, 24 * 60 * 60) * 1000L;
+
         String scriptsDir = (String) params.get("template.scripts.dir");
         if (scriptsDir == null) {
             scriptsDir = "scripts/storage/secondary";
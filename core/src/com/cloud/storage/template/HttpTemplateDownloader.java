@@ -151,7 +151,7 @@ public class HttpTemplateDownloader implements TemplateDownloader {
 	}
 	
 
-	private  Pair<String, Integer> validateUrl(String url) throws IllegalArgumentException {
+	static Pair<String, Integer> validateUrl(String url) throws IllegalArgumentException {
 		try {
 			URI uri = new URI(url);
 			if (!uri.getScheme().equalsIgnoreCase("http") && !uri.getScheme().equalsIgnoreCase("https") ) {
@@ -0,0 +1,508 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * ImageInspector reads the metadata of VHD, QCOW2 and VMDK images without
+ * external tools.  Only the headers and block tables are read, with
+ * positional reads on a FileChannel, so inspecting an image costs a few
+ * reads however big it is.  It reports the virtual size and how much of it
+ * is allocated in the image.
+ *
+ * sparseCopy writes the disk content of an image to a raw file and leaves
+ * holes for the unallocated blocks instead of writing zeros.
+ */
+public class ImageInspector {
+    public static enum Format {
+        RAW, QCOW2, VHD, VMDK;
+    }
+
+    private static final int SECTOR = 512;
+    private static final int COPY_CHUNK = 1024 * 1024;
+
+    private static final long VHD_COOKIE = 0x636f6e6563746978L; // "conectix"
+    private static final long VHD_SPARSE_COOKIE = 0x6378737061727365L; // "cxsparse"
+    private static final int VHD_FIXED = 2;
+    private static final int VHD_DYNAMIC = 3;
+    private static final int VHD_DIFFERENCING = 4;
+    private static final int VHD_UNUSED_BLOCK = 0xffffffff;
+
+    private static final int QCOW_MAGIC = 0x514649fb; // "QFI\xfb"
+    private static final long QCOW_OFFSET_MASK = 0x00fffffffffffe00L;
+    private static final long QCOW_COMPRESSED = 1L << 62;
+    private static final long QCOW_ZERO = 1L; // v3, the cluster reads as zeros
+    private static final int QCOW_V3_HEADER = 104;
+    // the only incompatible feature that doesn't change how the tables are read
+    private static final long QCOW_DIRTY = 1L;
+
+    private static final int VMDK_MAGIC = 0x564d444b; // "KDMV" little endian
+    private static final long VMDK_GD_AT_END = -1L;
+    private static final String VMDK_DESCRIPTOR = "# Disk DescriptorFile";
+    private static final Pattern VMDK_EXTENT = Pattern.compile("^(RW|RDONLY|NOACCESS)\\s+(\\d+)\\s+(\\w+)\\s+\"([^\"]+)\"", Pattern.MULTILINE);
+    private static final Pattern VMDK_CREATE_TYPE = Pattern.compile("^createType\\s*=\\s*\"([^\"]+)\"", Pattern.MULTILINE);
+
+    public static class ImageInfo {
+        Format format;
+        String type;
+        long virtualSize;
+        long allocatedSize;
+        long fileSize;
+        int blockSize;
+        String backingFile;
+
+        public Format getFormat() {
+            return format;
+        }
+
+        /**
+         * @return the format's own name for the kind of image, e.g. dynamic
+         *         for a VHD or monolithicSparse for a VMDK.
+         */
+        public String getType() {
+            return type;
+        }
+
+        public long getVirtualSize() {
+            return virtualSize;
+        }
+
+        /**
+         * @return bytes of the virtual disk that are allocated in the image.
+         */
+        public long getAllocatedSize() {
+            return allocatedSize;
+        }
+
+        public long getFileSize() {
+            return fileSize;
+        }
+
+        /**
+         * @return allocation unit in bytes: VHD block, QCOW2 cluster or VMDK grain.
+         */
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        /**
+         * @return the parent of a differencing VHD or the backing file of a QCOW2, null if none.
+         */
+        public String getBackingFile() {
+            return backingFile;
+        }
+
+        @Override
+        public String toString() {
+            return format + "(" + type + ", virtual=" + virtualSize + ", allocated=" + allocatedSize + ", file=" + fileSize
+                    + (backingFile != null ? ", backing=" + backingFile : "") + ")";
+        }
+    }
+
+    /**
+     * Called for each allocated run of the virtual disk.
+     */
+    interface BlockVisitor {
+        /**
+         * @param virtualOffset where the run is on the virtual disk.
+         * @param fileOffset where the run is in the image file.
+         */
+        void visit(long virtualOffset, long fileOffset, int length) throws IOException;
+    }
+
+    public static ImageInfo inspect(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            return inspect(file, raf.getChannel(), null);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes the virtual disk of an image to dest as a raw image.  Only
+     * allocated blocks with data in them are written, the rest of dest is
+     * left as holes.  Images that need a backing file or use compression
+     * are refused.
+     * @return bytes written.
+     */
+    public static long sparseCopy(File src, File dest) throws IOException {
+        RandomAccessFile in = new RandomAccessFile(src, "r");
+        try {
+            RandomAccessFile out = new RandomAccessFile(dest, "rw");
+            try {
+                final FileChannel inChannel = in.getChannel();
+                final FileChannel outChannel = out.getChannel();
+                final ByteBuffer buf = ByteBuffer.allocate(COPY_CHUNK);
+                final long[] written = new long[1];
+                out.setLength(0);
+                ImageInfo info = inspect(src, inChannel, new BlockVisitor() {
+                    @Override
+                    public void visit(long virtualOffset, long fileOffset, int length) throws IOException {
+                        while (length > 0) {
+                            int len = Math.min(length, COPY_CHUNK);
+                            buf.clear();
+                            buf.limit(len);
+                            readFully(inChannel, buf, fileOffset);
+                            if (!isZero(buf.array(), len)) {
+                                buf.flip();
+                                while (buf.hasRemaining()) {
+                                    outChannel.write(buf, virtualOffset + buf.position());
+                                }
+                                written[0] += len;
+                            }
+                            virtualOffset += len;
+                            fileOffset += len;
+                            length -= len;
+                        }
+                    }
+                });
+                out.setLength(info.virtualSize);
+                return written[0];
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    static ImageInfo inspect(File file, FileChannel channel, BlockVisitor visitor) throws IOException {
+        long fileSize = channel.size();
+        ImageInfo info;
+        ByteBuffer magic = read(channel, 0, (int)Math.min(fileSize, VMDK_DESCRIPTOR.length()), ByteOrder.BIG_ENDIAN);
+        if (magic.limit() >= 4 && magic.getInt(0) == QCOW_MAGIC) {
+            info = inspectQcow2(channel, visitor);
+        } else if (magic.limit() >= 4 && magic.order(ByteOrder.LITTLE_ENDIAN).getInt(0) == VMDK_MAGIC) {
+            info = inspectVmdkSparse(channel, visitor);
+        } else if (magic.limit() == VMDK_DESCRIPTOR.length() && new String(magic.array(), 0, magic.limit(), "US-ASCII").equals(VMDK_DESCRIPTOR)) {
+            info = inspectVmdkDescriptor(file, channel, visitor);
+        } else if (fileSize >= SECTOR && read(channel, fileSize - SECTOR, 8, ByteOrder.BIG_ENDIAN).getLong(0) == VHD_COOKIE) {
+            info = inspectVhd(channel, fileSize, visitor);
+        } else {
+            info = new ImageInfo();
+            info.format = Format.RAW;
+            info.type = "raw";
+            info.virtualSize = fileSize;
+            info.allocatedSize = fileSize;
+            info.blockSize = SECTOR;
+            if (visitor != null) {
+                visitRange(visitor, 0, 0, fileSize);
+            }
+        }
+        info.fileSize = fileSize;
+        return info;
+    }
+
+    private static ImageInfo inspectVhd(FileChannel channel, long fileSize, BlockVisitor visitor) throws IOException {
+        ByteBuffer footer = read(channel, fileSize - SECTOR, SECTOR, ByteOrder.BIG_ENDIAN);
+        ImageInfo info = new ImageInfo();
+        info.format = Format.VHD;
+        info.virtualSize = footer.getLong(48);
+        int diskType = footer.getInt(60);
+        if (diskType == VHD_FIXED) {
+            info.type = "fixed";
+            info.allocatedSize = info.virtualSize;
+            info.blockSize = SECTOR;
+            if (visitor != null) {
+                visitRange(visitor, 0, 0, info.virtualSize);
+            }
+            return info;
+        }
+        if (diskType != VHD_DYNAMIC && diskType != VHD_DIFFERENCING) {
+            throw new IOException("Unknown VHD disk type " + diskType);
+        }
+        info.type = diskType == VHD_DYNAMIC ? "dynamic" : "differencing";
+
+        long headerOffset = footer.getLong(16);
+        ByteBuffer header = read(channel, headerOffset, 1024, ByteOrder.BIG_ENDIAN);
+        if (header.getLong(0) != VHD_SPARSE_COOKIE) {
+            throw new IOException("No VHD dynamic disk header at " + headerOffset);
+        }
+        long batOffset = header.getLong(16);
+        int entries = header.getInt(28);
+        int blockSize = header.getInt(32);
+        if (blockSize <= 0 || blockSize % SECTOR != 0 || entries < 0 || (long)entries * blockSize < info.virtualSize) {
+            throw new IOException("Invalid VHD dynamic disk header: " + entries + " blocks of " + blockSize);
+        }
+        info.blockSize = blockSize;
+        if (diskType == VHD_DIFFERENCING) {
+            String parent = new String(header.array(), 64, 512, "UTF-16BE");
+            int end = parent.indexOf('\0');
+            info.backingFile = end >= 0 ? parent.substring(0, end) : parent;
+            if (visitor != null) {
+                throw new IOException("A differencing VHD can't be copied without its parent " + info.backingFile);
+            }
+        }
+
+        // each block starts with a bitmap of its sectors, padded to a sector
+        int bitmapSize = ((blockSize / SECTOR / 8 + SECTOR - 1) / SECTOR) * SECTOR;
+        ByteBuffer bat = read(channel, batOffset, entries * 4, ByteOrder.BIG_ENDIAN);
+        long allocated = 0;
+        for (int i = 0; i < entries; i++) {
+            int sector = bat.getInt(i * 4);
+            if (sector == VHD_UNUSED_BLOCK) {
+                continue;
+            }
+            allocated += blockSize;
+            if (visitor != null) {
+                long blockOffset = (sector & 0xffffffffL) * SECTOR;
+                long virtualOffset = (long)i * blockSize;
+                ByteBuffer bitmap = read(channel, blockOffset, bitmapSize, ByteOrder.BIG_ENDIAN);
+                visitVhdBitmap(visitor, bitmap.array(), blockSize / SECTOR, virtualOffset, blockOffset + bitmapSize, info.virtualSize);
+            }
+        }
+        info.allocatedSize = Math.min(allocated, info.virtualSize);
+        return info;
+    }
+
+    private static void visitVhdBitmap(BlockVisitor visitor, byte[] bitmap, int sectors, long virtualOffset, long dataOffset, long virtualSize) throws IOException {
+        int run = -1;
+        for (int s = 0; s <= sectors; s++) {
+            // the most significant bit of the first byte is the first sector
+            boolean set = s < sectors && (bitmap[s / 8] & (0x80 >> (s % 8))) != 0;
+            if (set && run < 0) {
+                run = s;
+            } else if (!set && run >= 0) {
+                long offset = virtualOffset + (long)run * SECTOR;
+                long length = Math.min((long)(s - run) * SECTOR, virtualSize - offset);
+                if (length > 0) {
+                    visitor.visit(offset, dataOffset + (long)run * SECTOR, (int)length);
+                }
+                run = -1;
+            }
+        }
+    }
+
+    private static ImageInfo inspectQcow2(FileChannel channel, BlockVisitor visitor) throws IOException {
+        ByteBuffer header = read(channel, 0, 72, ByteOrder.BIG_ENDIAN);
+        ImageInfo info = new ImageInfo();
+        info.format = Format.QCOW2;
+        int version = header.getInt(4);
+        if (version < 2) {
+            throw new IOException("Unsupported qcow version " + version);
+        }
+        info.type = "qcow2 v" + version;
+        if (version >= 3) {
+            ByteBuffer v3 = read(channel, 0, QCOW_V3_HEADER, ByteOrder.BIG_ENDIAN);
+            long incompatible = v3.getLong(72);
+            int headerLength = v3.getInt(100);
+            if (headerLength < QCOW_V3_HEADER) {
+                throw new IOException("Invalid qcow2 header length " + headerLength);
+            }
+            if ((incompatible & ~QCOW_DIRTY) != 0) {
+                throw new IOException("Unsupported qcow2 incompatible features 0x" + Long.toHexString(incompatible));
+            }
+        }
+        long backingOffset = header.getLong(8);
+        int backingSize = header.getInt(16);
+        int clusterBits = header.getInt(20);
+        info.virtualSize = header.getLong(24);
+        int cryptMethod = header.getInt(32);
+        int l1Size = header.getInt(36);
+        long l1Offset = header.getLong(40);
+        if (clusterBits < 9 || clusterBits > 21 || l1Size < 0) {
+            throw new IOException("Invalid qcow2 header: cluster bits " + clusterBits + ", l1 size " + l1Size);
+        }
+        int clusterSize = 1 << clusterBits;
+        info.blockSize = clusterSize;
+        if (backingOffset != 0 && backingSize > 0) {
+            info.backingFile = new String(read(channel, backingOffset, backingSize, ByteOrder.BIG_ENDIAN).array(), 0, backingSize, "UTF-8");
+        }
+        if (visitor != null) {
+            if (info.backingFile != null) {
+                throw new IOException("A qcow2 image can't be copied without its backing file " + info.backingFile);
+            }
+            if (cryptMethod != 0) {
+                throw new IOException("Encrypted qcow2 images can't be copied");
+            }
+        }
+
+        int l2Entries = clusterSize / 8;
+        ByteBuffer l1 = read(channel, l1Offset, l1Size * 8, ByteOrder.BIG_ENDIAN);
+        long allocated = 0;
+        for (int i = 0; i < l1Size; i++) {
+            long l2Offset = l1.getLong(i * 8) & QCOW_OFFSET_MASK;
+            if (l2Offset == 0) {
+                continue;
+            }
+            ByteBuffer l2 = read(channel, l2Offset, clusterSize, ByteOrder.BIG_ENDIAN);
+            for (int j = 0; j < l2Entries; j++) {
+                long entry = l2.getLong(j * 8);
+                long virtualOffset = ((long)i * l2Entries + j) * clusterSize;
+                if (virtualOffset >= info.virtualSize) {
+                    break;
+                }
+                if ((entry & QCOW_COMPRESSED) != 0) {
+                    allocated += clusterSize;
+                    if (visitor != null) {
+                        throw new IOException("Compressed qcow2 clusters can't be copied");
+                    }
+                    continue;
+                }
+                long clusterOffset = entry & QCOW_OFFSET_MASK;
+                if (clusterOffset == 0 || (version >= 3 && (entry & QCOW_ZERO) != 0)) {
+                    continue;
+                }
+                allocated += clusterSize;
+                if (visitor != null) {
+                    visitor.visit(virtualOffset, clusterOffset, (int)Math.min(clusterSize, info.virtualSize - virtualOffset));
+                }
+            }
+        }
+        info.allocatedSize = Math.min(allocated, info.virtualSize);
+        return info;
+    }
+
+    private static ImageInfo inspectVmdkSparse(FileChannel channel, BlockVisitor visitor) throws IOException {
+        ByteBuffer header = read(channel, 0, SECTOR, ByteOrder.LITTLE_ENDIAN);
+        ImageInfo info = new ImageInfo();
+        info.format = Format.VMDK;
+        info.type = "monolithicSparse";
+        info.virtualSize = header.getLong(12) * SECTOR;
+        long grainSize = header.getLong(20) * SECTOR;
+        long descriptorOffset = header.getLong(28) * SECTOR;
+        long descriptorSize = header.getLong(36) * SECTOR;
+        int gtEntries = header.getInt(44);
+        long gdOffset = header.getLong(56);
+        int compression = header.getShort(77);
+        if (grainSize <= 0 || grainSize > Integer.MAX_VALUE || gtEntries <= 0) {
+            throw new IOException("Invalid VMDK sparse header: grain " + grainSize + ", " + gtEntries + " grain table entries");
+        }
+        info.blockSize = (int)grainSize;
+        if (descriptorOffset != 0 && descriptorSize > 0 && descriptorSize <= 64 * 1024) {
+            Matcher type = VMDK_CREATE_TYPE.matcher(new String(read(channel, descriptorOffset, (int)descriptorSize, ByteOrder.LITTLE_ENDIAN).array(), "US-ASCII"));
+            if (type.find()) {
+                info.type = type.group(1);
+            }
+        }
+        if (gdOffset == VMDK_GD_AT_END) {
+            throw new IOException("Stream optimized VMDK images are not supported");
+        }
+        if (visitor != null && compression != 0) {
+            throw new IOException("Compressed VMDK images can't be copied");
+        }
+
+        long grainsPerTable = gtEntries * grainSize;
+        int tables = (int)((info.virtualSize + grainsPerTable - 1) / grainsPerTable);
+        ByteBuffer gd = read(channel, gdOffset * SECTOR, tables * 4, ByteOrder.LITTLE_ENDIAN);
+        long allocated = 0;
+        for (int i = 0; i < tables; i++) {
+            long gtOffset = (gd.getInt(i * 4) & 0xffffffffL) * SECTOR;
+            if (gtOffset == 0) {
+                continue;
+            }
+            ByteBuffer gt = read(channel, gtOffset, gtEntries * 4, ByteOrder.LITTLE_ENDIAN);
+            for (int j = 0; j < gtEntries; j++) {
+                long grainSector = gt.getInt(j * 4) & 0xffffffffL;
+                long virtualOffset = ((long)i * gtEntries + j) * grainSize;
+                if (virtualOffset >= info.virtualSize) {
+                    break;
+                }
+                // 1 marks a grain that reads as zeros
+                if (grainSector <= 1) {
+                    continue;
+                }
+                allocated += grainSize;
+                if (visitor != null) {
+                    visitor.visit(virtualOffset, grainSector * SECTOR, (int)Math.min(grainSize, info.virtualSize - virtualOffset));
+                }
+            }
+        }
+        info.allocatedSize = Math.min(allocated, info.virtualSize);
+        return info;
+    }
+
+    /**
+     * A descriptor file lists the extents holding the data.  Extents that
+     * are next to it are inspected for their allocation.
+     */
+    private static ImageInfo inspectVmdkDescriptor(File file, FileChannel channel, BlockVisitor visitor) throws IOException {
+        if (channel.size() > 64 * 1024) {
+            throw new IOException("VMDK descriptor " + file + " is too big");
+        }
+        String descriptor = new String(read(channel, 0, (int)channel.size(), ByteOrder.BIG_ENDIAN).array(), "US-ASCII");
+        ImageInfo info = new ImageInfo();
+        info.format = Format.VMDK;
+        Matcher type = VMDK_CREATE_TYPE.matcher(descriptor);
+        info.type = type.find() ? type.group(1) : "descriptor";
+        info.blockSize = SECTOR;
+        if (visitor != null) {
+            throw new IOException("VMDK descriptor files can't be copied, copy their extents");
+        }
+        Matcher extent = VMDK_EXTENT.matcher(descriptor);
+        while (extent.find()) {
+            long size = Long.parseLong(extent.group(2)) * SECTOR;
+            info.virtualSize += size;
+            File extentFile = new File(file.getParentFile(), extent.group(4));
+            if (!extentFile.exists()) {
+                continue;
+            }
+            if (extent.group(3).equals("SPARSE")) {
+                info.allocatedSize += inspect(extentFile).getAllocatedSize();
+            } else {
+                info.allocatedSize += Math.min(size, extentFile.length());
+            }
+        }
+        if (info.virtualSize == 0) {
+            throw new IOException("No extents in VMDK descriptor " + file);
+        }
+        return info;
+    }
+
+    private static void visitRange(BlockVisitor visitor, long virtualOffset, long fileOffset, long length) throws IOException {
+        while (length > 0) {
+            int len = (int)Math.min(length, COPY_CHUNK);
+            visitor.visit(virtualOffset, fileOffset, len);
+            virtualOffset += len;
+            fileOffset += len;
+            length -= len;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length, ByteOrder order) throws IOException {
+        if (position < 0 || length < 0 || position + length > channel.size()) {
+            throw new IOException("Image metadata at " + position + " with length " + length + " is beyond the end of the file");
+        }
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        readFully(channel, buf, position);
+        buf.flip();
+        return buf.order(order);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of image at " + (position + buf.position()));
+            }
+        }
+    }
+
+    private static boolean isZero(byte[] buf, int length) {
+        for (int i = 0; i < length; i++) {
+            if (buf[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -13,7 +13,6 @@
 package com.cloud.storage.template;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Map;
 
@@ -24,7 +23,6 @@ import org.apache.log4j.Logger;
 
 import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.StorageLayer;
-import com.cloud.utils.NumbersUtil;
 
 @Local(value=Processor.class)
 public class QCOW2Processor implements Processor {
@@ -54,26 +52,22 @@ public class QCOW2Processor implements Processor {
         File qcow2File = _storage.getFile(qcow2Path);
         
         info.size = _storage.getSize(qcow2Path);
-        FileInputStream strm = null;
-        byte[] b = new byte[8];
+        ImageInspector.ImageInfo image;
         try {
-            strm = new FileInputStream(qcow2File);
-            strm.skip(24);
-            strm.read(b);
-        } catch (Exception e) {
+            image = ImageInspector.inspect(qcow2File);
+        } catch (IOException e) {
             s_logger.warn("Unable to read qcow2 file " + qcow2Path, e);
             return null;
-        } finally {
-            if (strm != null) {
-                try {
-                    strm.close();
-                } catch (IOException e) {
-                }
-            }
         }
-        
-        long templateSize = NumbersUtil.bytesToLong(b);
-        info.virtualSize = templateSize;
+        if (image.getFormat() != ImageInspector.Format.QCOW2) {
+            s_logger.warn(qcow2Path + " is not a qcow2 file, it looks like " + image.getFormat());
+            return null;
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Inspected " + qcow2Path + ": " + image);
+        }
+
+        info.virtualSize = image.getVirtualSize();
 
         return info;
 	}
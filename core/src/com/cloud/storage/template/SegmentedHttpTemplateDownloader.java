@@ -0,0 +1,629 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.Credentials;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.commons.httpclient.UsernamePasswordCredentials;
+import org.apache.commons.httpclient.auth.AuthScope;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.HeadMethod;
+import org.apache.log4j.Logger;
+
+import com.cloud.agent.api.storage.DownloadCommand.Proxy;
+import com.cloud.storage.Storage.ImageFormat;
+import com.cloud.storage.StorageLayer;
+import com.cloud.utils.Pair;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Downloads a template over HTTP with several connections, each one fetching
+ * a range of the file into its place in a preallocated file.  The MD5 of the
+ * file is computed during the download, in file order, and the image header
+ * is checked as soon as the first bytes are in so a wrong file is rejected
+ * before the rest of it is fetched.  A segment whose connection drops is
+ * requested again from where it stopped.
+ * 
+ * Servers that do not take range requests, or do not tell the length, are
+ * read with a single stream.
+ */
+public class SegmentedHttpTemplateDownloader extends TemplateDownloaderBase {
+    private static final Logger s_logger = Logger.getLogger(SegmentedHttpTemplateDownloader.class);
+
+    public static final int DEFAULT_SEGMENTS = 4;
+
+    // files smaller than two of these are not split
+    static final long MIN_SEGMENT_SIZE = 16L * 1024 * 1024;
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final int MAX_SEGMENT_RETRIES = 3;
+    // enough for the ISO 9660 volume descriptor at 32K
+    static final int HEADER_SIZE = 34 * 1024;
+
+    private static final byte[] GZIP_MAGIC = { (byte)0x1f, (byte)0x8b };
+    private static final byte[] BZIP2_MAGIC = { 'B', 'Z', 'h' };
+    private static final byte[] ZIP_MAGIC = { 'P', 'K', 3, 4 };
+    private static final byte[] TAR_MAGIC = { 'u', 's', 't', 'a', 'r' };
+    private static final byte[] QCOW2_MAGIC = { 'Q', 'F', 'I', (byte)0xfb };
+    private static final byte[] ISO9660_MAGIC = { 'C', 'D', '0', '0', '1' };
+    private static final byte[] UDF_MAGIC = { 'B', 'E', 'A', '0', '1' };
+
+    private final HttpClient _client;
+    private final ImageFormat _format;
+    private final int _maxSegments;
+
+    private final List<Segment> _segments = new ArrayList<Segment>();
+    private final List<HttpMethod> _activeMethods = new ArrayList<HttpMethod>();
+    private final AtomicLong _received = new AtomicLong();
+    private volatile boolean _stopped;
+    private String _segmentError;
+    private FileChannel _channel;
+
+    // null until the header has been seen
+    private volatile Boolean _compressed;
+
+    private final Object _digestLock = new Object();
+    private MessageDigest _digest;
+    private long _hashedUpTo;
+    private String _checksum;
+
+    /**
+     * A range of the file fetched by one connection.
+     */
+    static class Segment {
+        final int index;
+        final long start;
+        // exclusive, -1 while the length is unknown
+        volatile long end;
+        // only changed by the thread downloading the segment
+        volatile long written;
+
+        Segment(int index, long start, long end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+
+        long position() {
+            return start + written;
+        }
+
+        boolean isComplete() {
+            return end >= 0 && position() >= end;
+        }
+    }
+
+    public SegmentedHttpTemplateDownloader(StorageLayer storage, String downloadUrl, String toDir, DownloadCompleteCallback callback, long maxTemplateSizeInBytes,
+            String user, String password, Proxy proxy, ImageFormat format, int maxSegments) {
+        super(storage, downloadUrl, toDir, maxTemplateSizeInBytes, callback);
+        _format = format;
+        _maxSegments = Math.max(1, maxSegments);
+
+        MultiThreadedHttpConnectionManager connectionManager = new MultiThreadedHttpConnectionManager();
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost(_maxSegments);
+        connectionManager.getParams().setMaxTotalConnections(_maxSegments);
+        _client = new HttpClient(connectionManager);
+
+        try {
+            File f = File.createTempFile("dnld", "tmp_", new File(toDir));
+            if (_storage != null) {
+                _storage.setWorldReadableAndWriteable(f);
+            }
+            _toFile = f.getAbsolutePath();
+
+            Pair<String, Integer> hostAndPort = validateUrl(downloadUrl);
+            if (proxy != null) {
+                _client.getHostConfiguration().setProxy(proxy.getHost(), proxy.getPort());
+                if (proxy.getUserName() != null) {
+                    Credentials proxyCreds = new UsernamePasswordCredentials(proxy.getUserName(), proxy.getPassword());
+                    _client.getState().setProxyCredentials(AuthScope.ANY, proxyCreds);
+                }
+            }
+            if ((user != null) && (password != null)) {
+                _client.getParams().setAuthenticationPreemptive(true);
+                Credentials defaultcreds = new UsernamePasswordCredentials(user, password);
+                _client.getState().setCredentials(new AuthScope(hostAndPort.first(), hostAndPort.second(), AuthScope.ANY_REALM), defaultcreds);
+                s_logger.info("Added credentials of user " + user + " for host " + hostAndPort.first() + ":" + hostAndPort.second());
+            }
+        } catch (IllegalArgumentException e) {
+            _errorString = e.getMessage();
+            _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            _inited = false;
+        } catch (IOException e) {
+            _errorString = "Unable to start download -- check url? ";
+            _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            s_logger.warn("Unable to create the file to download " + downloadUrl + " to", e);
+        }
+    }
+
+    protected Pair<String, Integer> validateUrl(String url) {
+        return HttpTemplateDownloader.validateUrl(url);
+    }
+
+    @Override
+    public long download(boolean resume, DownloadCompleteCallback callback) {
+        switch (_status) {
+        case ABORTED:
+        case UNRECOVERABLE_ERROR:
+        case DOWNLOAD_FINISHED:
+            return 0;
+        default:
+        }
+
+        long start = System.currentTimeMillis();
+        File file = new File(_toFile);
+        RandomAccessFile out = null;
+        ExecutorService executor = null;
+        try {
+            _stopped = false;
+            _segmentError = null;
+            if (resume && !_segments.isEmpty()) {
+                s_logger.info("Resuming download of " + _downloadUrl + " with " + _received.get() + " bytes downloaded");
+            } else if (!planSegments()) {
+                return 0;
+            }
+
+            out = new RandomAccessFile(file, "rw");
+            if (_remoteSize > 0 && out.length() != _remoteSize) {
+                // sparse on most file systems, segments write into their own ranges
+                out.setLength(_remoteSize);
+            }
+            _channel = out.getChannel();
+            _status = TemplateDownloader.Status.IN_PROGRESS;
+
+            s_logger.info("Starting download from " + _downloadUrl + " to " + _toFile + " remoteSize=" + _remoteSize + " , segments=" + _segments.size());
+            executor = Executors.newFixedThreadPool(_segments.size(), new NamedThreadFactory("Template-Segment"));
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (Segment segment : _segments) {
+                if (!segment.isComplete()) {
+                    futures.add(executor.submit(new SegmentDownloader(segment)));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            if (_status == TemplateDownloader.Status.ABORTED) {
+                return _received.get();
+            }
+            if (_segmentError == null && _compressed == null) {
+                // smaller than the header
+                checkHeader();
+            }
+            if (_segmentError != null) {
+                _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+                _errorString = _segmentError;
+                return 0;
+            }
+
+            _channel.force(false);
+            finishChecksum();
+            _status = TemplateDownloader.Status.DOWNLOAD_FINISHED;
+            _errorString = "Downloaded " + _received.get() + " bytes (download complete remote=" + _remoteSize + "bytes)";
+            return _received.get();
+        } catch (IOException e) {
+            _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            _errorString = e.getMessage();
+        } catch (InterruptedException e) {
+            _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            _errorString = "Download interrupted";
+        } catch (ExecutionException e) {
+            s_logger.warn("Segment download failed", e.getCause());
+            _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            _errorString = e.getCause().getMessage();
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+            _downloadTime += System.currentTimeMillis() - start;
+            if (_status == TemplateDownloader.Status.UNRECOVERABLE_ERROR && file.exists() && !file.isDirectory()) {
+                file.delete();
+            }
+            if (callback != null) {
+                callback.downloadComplete(_status);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Asks the server for the length of the file and whether it takes range
+     * requests, and splits the file accordingly.
+     * @return false if the file cannot be downloaded.
+     */
+    private boolean planSegments() throws IOException {
+        _segments.clear();
+        _received.set(0);
+        _compressed = null;
+        resetDigest();
+
+        long size = -1;
+        boolean ranges = false;
+        HeadMethod head = new HeadMethod(_downloadUrl);
+        try {
+            int responseCode = _client.executeMethod(head);
+            if (responseCode == HttpStatus.SC_OK) {
+                Header contentLength = head.getResponseHeader("Content-Length");
+                if (contentLength != null) {
+                    try {
+                        size = Long.parseLong(contentLength.getValue().trim());
+                    } catch (NumberFormatException e) {
+                        s_logger.debug("Invalid Content-Length " + contentLength.getValue() + " from " + _downloadUrl);
+                    }
+                }
+                Header acceptRanges = head.getResponseHeader("Accept-Ranges");
+                ranges = acceptRanges != null && "bytes".equalsIgnoreCase(acceptRanges.getValue().trim());
+            } else if (s_logger.isDebugEnabled()) {
+                s_logger.debug("HEAD " + _downloadUrl + " returned " + responseCode + ", download with a single stream");
+            }
+        } finally {
+            head.releaseConnection();
+        }
+
+        if (size > getMaxTemplateSizeInBytes()) {
+            s_logger.info("Remote size is too large: " + size + " , max=" + getMaxTemplateSizeInBytes());
+            _status = TemplateDownloader.Status.UNRECOVERABLE_ERROR;
+            _errorString = "Download file size is too large";
+            return false;
+        }
+
+        if (size <= 0) {
+            _remoteSize = 0;
+            _segments.add(new Segment(0, 0, -1));
+            return true;
+        }
+
+        _remoteSize = size;
+        int count = 1;
+        if (ranges) {
+            count = (int)Math.max(1, Math.min(_maxSegments, size / MIN_SEGMENT_SIZE));
+        }
+        long segmentSize = (size + count - 1) / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * segmentSize;
+            _segments.add(new Segment(i, start, Math.min(size, start + segmentSize)));
+        }
+        return true;
+    }
+
+    private class SegmentDownloader implements Runnable {
+        private final Segment _segment;
+
+        SegmentDownloader(Segment segment) {
+            _segment = segment;
+        }
+
+        @Override
+        public void run() {
+            int failures = 0;
+            while (!_stopped && !_segment.isComplete()) {
+                long position = _segment.position();
+                try {
+                    fetch(_segment);
+                    if (!_stopped && !_segment.isComplete()) {
+                        throw new IOException("Connection closed at offset " + _segment.position());
+                    }
+                } catch (IOException e) {
+                    if (_stopped) {
+                        break;
+                    }
+                    if (_segment.position() > position) {
+                        failures = 0;
+                    }
+                    if (++failures > MAX_SEGMENT_RETRIES) {
+                        fail("Segment " + _segment.index + " of " + _downloadUrl + " failed: " + e.getMessage());
+                        break;
+                    }
+                    s_logger.info("Download of segment " + _segment.index + " of " + _downloadUrl + " failed, resume at offset " + _segment.position() + ": " + e.getMessage());
+                } catch (Throwable th) {
+                    s_logger.warn("Unexpected exception downloading segment " + _segment.index + " of " + _downloadUrl, th);
+                    fail("Segment " + _segment.index + " failed: " + th.getMessage());
+                }
+            }
+        }
+    }
+
+    private void fetch(Segment segment) throws IOException {
+        GetMethod request = new GetMethod(_downloadUrl);
+        boolean partial = _segments.size() > 1 || segment.position() > 0;
+        if (partial) {
+            request.addRequestHeader("Range", "bytes=" + segment.position() + "-" + (segment.end >= 0 ? Long.toString(segment.end - 1) : ""));
+        }
+
+        synchronized (_activeMethods) {
+            if (_stopped) {
+                return;
+            }
+            _activeMethods.add(request);
+        }
+        try {
+            int responseCode = _client.executeMethod(request);
+            if (partial && responseCode == HttpStatus.SC_OK && _segments.size() == 1) {
+                // the server ignored the range, start over
+                s_logger.info("HTTP Server does not support partial get, download " + _downloadUrl + " from the beginning");
+                segment.written = 0;
+                _received.set(0);
+                resetDigest();
+            } else if (partial && responseCode != HttpStatus.SC_PARTIAL_CONTENT) {
+                fail("HTTP Server does not support partial get");
+                return;
+            } else if (!partial && responseCode != HttpStatus.SC_OK) {
+                fail(" HTTP Server returned " + responseCode + " (expected 200 OK) ");
+                return;
+            }
+
+            if (segment.end < 0) {
+                Header contentLength = request.getResponseHeader("Content-Length");
+                if (contentLength != null && segment.position() == 0) {
+                    long size = Long.parseLong(contentLength.getValue().trim());
+                    if (size > getMaxTemplateSizeInBytes()) {
+                        fail("Download file size is too large");
+                        return;
+                    }
+                    segment.end = size;
+                    _remoteSize = size;
+                }
+            }
+
+            InputStream in = request.getResponseBodyAsStream();
+            if (in == null) {
+                throw new IOException("No content from " + _downloadUrl);
+            }
+            byte[] block = new byte[BLOCK_SIZE];
+            while (!_stopped) {
+                int len = BLOCK_SIZE;
+                if (segment.end >= 0) {
+                    len = (int)Math.min(BLOCK_SIZE, segment.end - segment.position());
+                    if (len == 0) {
+                        break;
+                    }
+                }
+
+                int bytes = in.read(block, 0, len);
+                if (bytes < 0) {
+                    if (segment.end < 0) {
+                        // without a length the end of the stream is the end of the file
+                        segment.end = segment.position();
+                    }
+                    break;
+                }
+
+                long offset = segment.position();
+                ByteBuffer buf = ByteBuffer.wrap(block, 0, bytes);
+                long writeOffset = offset;
+                while (buf.hasRemaining()) {
+                    writeOffset += _channel.write(buf, writeOffset);
+                }
+                segment.written += bytes;
+                _received.addAndGet(bytes);
+
+                if (segment.end < 0 && segment.position() > getMaxTemplateSizeInBytes()) {
+                    fail("Download file size is too large");
+                    break;
+                }
+                if (segment.index == 0 && _compressed == null && segment.position() >= HEADER_SIZE) {
+                    checkHeader();
+                }
+                updateDigest(block, bytes, offset);
+            }
+        } finally {
+            synchronized (_activeMethods) {
+                _activeMethods.remove(request);
+            }
+            request.releaseConnection();
+        }
+    }
+
+    private void fail(String error) {
+        synchronized (_activeMethods) {
+            if (_segmentError == null && _status != TemplateDownloader.Status.ABORTED) {
+                s_logger.warn("Download of " + _downloadUrl + " failed: " + error);
+                _segmentError = error;
+            }
+            abortActiveMethods();
+        }
+    }
+
+    private void abortActiveMethods() {
+        synchronized (_activeMethods) {
+            _stopped = true;
+            for (HttpMethod method : _activeMethods) {
+                method.abort();
+            }
+        }
+    }
+
+    private void checkHeader() throws IOException {
+        Segment first = _segments.get(0);
+        int length = (int)Math.min(HEADER_SIZE, first.position());
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (_channel.read(buf, buf.position()) < 0) {
+                break;
+            }
+        }
+        byte[] header = buf.array();
+        _compressed = isCompressed(header, buf.position());
+        String error = checkTemplateHeader(_format, header, buf.position());
+        if (error != null) {
+            fail(error);
+        }
+    }
+
+    /**
+     * Hashes a block just written if it is next in file order, then whatever
+     * the other segments have written ahead of it, read back from the file.
+     */
+    private void updateDigest(byte[] block, int bytes, long offset) throws IOException {
+        synchronized (_digestLock) {
+            if (offset == _hashedUpTo) {
+                _digest.update(block, 0, bytes);
+                _hashedUpTo += bytes;
+            }
+            catchUpDigest();
+        }
+    }
+
+    private void catchUpDigest() throws IOException {
+        ByteBuffer buf = null;
+        while (true) {
+            Segment segment = getSegmentAt(_hashedUpTo);
+            if (segment == null || segment.position() <= _hashedUpTo) {
+                break;
+            }
+            if (buf == null) {
+                buf = ByteBuffer.allocate(BLOCK_SIZE);
+            }
+            buf.clear();
+            buf.limit((int)Math.min(BLOCK_SIZE, segment.position() - _hashedUpTo));
+            int bytes = _channel.read(buf, _hashedUpTo);
+            if (bytes <= 0) {
+                throw new IOException("Unable to read " + _toFile + " at offset " + _hashedUpTo);
+            }
+            _digest.update(buf.array(), 0, bytes);
+            _hashedUpTo += bytes;
+        }
+    }
+
+    private Segment getSegmentAt(long offset) {
+        for (Segment segment : _segments) {
+            if (offset >= segment.start && (segment.end < 0 || offset < segment.end)) {
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    private void resetDigest() {
+        synchronized (_digestLock) {
+            try {
+                _digest = MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new CloudRuntimeException("MD5 is not available", e);
+            }
+            _hashedUpTo = 0;
+            _checksum = null;
+        }
+    }
+
+    private void finishChecksum() throws IOException {
+        synchronized (_digestLock) {
+            catchUpDigest();
+            if (_hashedUpTo == _received.get()) {
+                // same format as the checksum computed after install
+                _checksum = new BigInteger(1, _digest.digest()).toString(16);
+            } else {
+                s_logger.warn("Only " + _hashedUpTo + " of " + _received.get() + " bytes of " + _toFile + " were hashed");
+            }
+        }
+    }
+
+    /**
+     * @return MD5 of the downloaded file, null until the download finished.
+     */
+    public String getChecksum() {
+        synchronized (_digestLock) {
+            return _checksum;
+        }
+    }
+
+    /**
+     * @return true if the downloaded file is gzip, bzip2 or zip compressed.
+     */
+    public boolean isCompressed() {
+        return Boolean.TRUE.equals(_compressed);
+    }
+
+    static boolean isCompressed(byte[] header, int length) {
+        return matches(header, length, 0, GZIP_MAGIC) || matches(header, length, 0, BZIP2_MAGIC) || matches(header, length, 0, ZIP_MAGIC);
+    }
+
+    /**
+     * Checks the start of a downloaded file against the format of the template.
+     * Compressed files are checked by the install script after uncompressing.
+     * @return why the file is not an image of the format, null if it may be one.
+     */
+    static String checkTemplateHeader(ImageFormat format, byte[] header, int length) {
+        if (isCompressed(header, length)) {
+            return null;
+        }
+        if (format != ImageFormat.OVA && matches(header, length, 257, TAR_MAGIC)) {
+            return "tar archives not supported";
+        }
+        if (format == ImageFormat.QCOW2 && !matches(header, length, 0, QCOW2_MAGIC)) {
+            return "Downloaded file is not a QCOW2 image";
+        }
+        if (format == ImageFormat.ISO && !matches(header, length, 32769, ISO9660_MAGIC) && !matches(header, length, 32769, UDF_MAGIC)) {
+            return "Downloaded file is not an ISO image";
+        }
+        return null;
+    }
+
+    private static boolean matches(byte[] header, int length, int offset, byte[] magic) {
+        if (offset + magic.length > length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (header[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean stopDownload() {
+        abortActiveMethods();
+        return super.stopDownload();
+    }
+
+    @Override
+    public long getDownloadedBytes() {
+        return _received.get();
+    }
+
+    @Override
+    public int getDownloadPercent() {
+        if (_remoteSize == 0) {
+            return 0;
+        }
+        return (int)(100.0 * _received.get() / _remoteSize);
+    }
+}
@@ -0,0 +1,554 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.template;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.log4j.Logger;
+
+/**
+ * TemplateInventory is an index of the templates installed under a template
+ * directory on secondary storage, so listing them does not need a walk over
+ * every template directory and template.properties file.
+ * 
+ * The index is kept in two files in the template directory: a snapshot of
+ * the whole index and an append-only journal of the installs and deletes
+ * made since the snapshot was written.  Every change is given the next
+ * generation number, and a caller that remembers the generation it last saw
+ * can ask for only the changes after it.  The epoch is created with the
+ * index; a caller holding a generation from another epoch gets everything.
+ * 
+ * Deletes are remembered for the last MAX_REMOVED templates.  A caller that
+ * is further behind than that gets a full list as well.
+ * 
+ * Storage VMs sharing the secondary storage all write the index.  Changes
+ * are made holding a lock on a third file, after reading what the others
+ * have written, so no two writers give out the same generation and a
+ * snapshot never drops records another writer appended.
+ */
+public class TemplateInventory {
+    private static final Logger s_logger = Logger.getLogger(TemplateInventory.class);
+
+    public final static String SnapshotFilename = "template.inventory";
+    public final static String JournalFilename = "template.journal";
+    public final static String LockFilename = "template.lock";
+
+    static final int MAX_JOURNAL_ENTRIES = 1000;
+    static final int MAX_REMOVED = 10000;
+
+    private static final String INSTALLED = "+";
+    private static final String REMOVED = "-";
+
+    // a FileLock does not keep out other channels of the same process
+    private static final Map<String, Object> s_writeLocks = new HashMap<String, Object>();
+
+    private final File _snapshot;
+    private final File _journal;
+    private final File _lockFile;
+    private final Object _writeLock;
+
+    private String _epoch;
+    private long _generation;
+    private long _removedFloor;
+    private long _lastFullScan;
+    private final Map<String, Entry> _templates = new HashMap<String, Entry>();
+    // in generation order, the eldest is dropped first
+    private final LinkedHashMap<String, Long> _removed = new LinkedHashMap<String, Long>();
+
+    private long _snapshotModified;
+    private long _journalRead;
+    private int _journalEntries;
+
+    private static class Entry {
+        final TemplateInfo info;
+        final long generation;
+
+        Entry(TemplateInfo info, long generation) {
+            this.info = info;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * The templates changed after a generation, or all of them when full is set.
+     */
+    public static class Changes {
+        private final String epoch;
+        private final long generation;
+        private final boolean full;
+        private final Map<String, TemplateInfo> templates;
+        private final List<String> removed;
+
+        Changes(String epoch, long generation, boolean full, Map<String, TemplateInfo> templates, List<String> removed) {
+            this.epoch = epoch;
+            this.generation = generation;
+            this.full = full;
+            this.templates = templates;
+            this.removed = removed;
+        }
+
+        public String getEpoch() {
+            return epoch;
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        public boolean isFull() {
+            return full;
+        }
+
+        public Map<String, TemplateInfo> getTemplates() {
+            return templates;
+        }
+
+        public List<String> getRemoved() {
+            return removed;
+        }
+    }
+
+    public TemplateInventory(String templateDir) {
+        _snapshot = new File(templateDir, SnapshotFilename);
+        _journal = new File(templateDir, JournalFilename);
+        _lockFile = new File(templateDir, LockFilename);
+        synchronized (s_writeLocks) {
+            String path = _lockFile.getAbsolutePath();
+            Object writeLock = s_writeLocks.get(path);
+            if (writeLock == null) {
+                writeLock = new Object();
+                s_writeLocks.put(path, writeLock);
+            }
+            _writeLock = writeLock;
+        }
+    }
+
+    /**
+     * @return false if there is no index yet and the templates have to be
+     *         scanned and passed to reconcile.
+     */
+    public synchronized boolean isInitialized() {
+        refresh();
+        return _epoch != null;
+    }
+
+    public synchronized long getLastFullScan() {
+        refresh();
+        return _lastFullScan;
+    }
+
+    public synchronized String getEpoch() {
+        return _epoch;
+    }
+
+    public synchronized long getGeneration() {
+        return _generation;
+    }
+
+    /**
+     * Brings the index in line with a full scan of the template directory.
+     * The differences are recorded as changes, so callers following the
+     * generations see what the scan found.
+     */
+    public synchronized void reconcile(Map<String, TemplateInfo> scanned) {
+        synchronized (_writeLock) {
+            FileLock lock = lock();
+            try {
+                refresh();
+                reconcileLocked(scanned);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    private void reconcileLocked(Map<String, TemplateInfo> scanned) {
+        if (_epoch == null) {
+            _epoch = UUID.randomUUID().toString();
+            _generation = 0;
+            _removedFloor = 0;
+        }
+
+        int changed = 0;
+        for (TemplateInfo info : scanned.values()) {
+            Entry entry = _templates.get(info.templateName);
+            if (entry == null || !isSame(entry.info, info)) {
+                put(info, ++_generation);
+                changed++;
+            }
+        }
+        Iterator<String> it = _templates.keySet().iterator();
+        while (it.hasNext()) {
+            String name = it.next();
+            if (!scanned.containsKey(name)) {
+                it.remove();
+                _removed.put(name, ++_generation);
+                changed++;
+            }
+        }
+        trimRemoved();
+        _lastFullScan = System.currentTimeMillis();
+        if (!writeSnapshot()) {
+            // without a snapshot a restart rebuilds the index from a scan anyway
+            s_logger.warn("Unable to save the template inventory in " + _snapshot.getParent());
+        }
+        s_logger.info("Template inventory " + _snapshot.getParent() + " reconciled with " + scanned.size() + " templates, " + changed + " changes, generation " + _generation);
+    }
+
+    public synchronized void templateInstalled(TemplateInfo info) {
+        synchronized (_writeLock) {
+            FileLock lock = lock();
+            try {
+                refresh();
+                if (_epoch == null) {
+                    // picked up by the first scan
+                    return;
+                }
+                long generation = ++_generation;
+                put(info, generation);
+                append(INSTALLED + "\t" + generation + "\t" + format(info));
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    public synchronized void templateRemoved(String templateName) {
+        synchronized (_writeLock) {
+            FileLock lock = lock();
+            try {
+                refresh();
+                removeLocked(templateName);
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    /**
+     * Removes the template installed in the same directory as installPath,
+     * which is how delete requests name templates.
+     */
+    public synchronized void templateRemovedByPath(String installPath) {
+        synchronized (_writeLock) {
+            FileLock lock = lock();
+            try {
+                refresh();
+                String dir = parentOf(installPath);
+                for (Entry entry : _templates.values()) {
+                    if (entry.info.installPath != null && dir.equals(parentOf(entry.info.installPath))) {
+                        removeLocked(entry.info.templateName);
+                        return;
+                    }
+                }
+            } finally {
+                unlock(lock);
+            }
+        }
+    }
+
+    private void removeLocked(String templateName) {
+        if (_epoch == null || !_templates.containsKey(templateName)) {
+            return;
+        }
+        long generation = ++_generation;
+        remove(templateName, generation);
+        append(REMOVED + "\t" + generation + "\t" + templateName);
+    }
+
+    /**
+     * @param epoch epoch the caller's generation belongs to, null if it has none.
+     * @param sinceGeneration last generation the caller has seen.
+     */
+    public synchronized Changes getChanges(String epoch, long sinceGeneration) {
+        refresh();
+        boolean full = epoch == null || !epoch.equals(_epoch) || sinceGeneration < _removedFloor || sinceGeneration > _generation;
+
+        Map<String, TemplateInfo> templates = new HashMap<String, TemplateInfo>();
+        for (Entry entry : _templates.values()) {
+            if (full || entry.generation > sinceGeneration) {
+                templates.put(entry.info.templateName, entry.info);
+            }
+        }
+        List<String> removed = new ArrayList<String>();
+        if (!full) {
+            for (Map.Entry<String, Long> entry : _removed.entrySet()) {
+                if (entry.getValue() > sinceGeneration) {
+                    removed.add(entry.getKey());
+                }
+            }
+        }
+        return new Changes(_epoch, _generation, full, templates, removed);
+    }
+
+    private void put(TemplateInfo info, long generation) {
+        _templates.put(info.templateName, new Entry(info, generation));
+        _removed.remove(info.templateName);
+    }
+
+    private void remove(String templateName, long generation) {
+        _templates.remove(templateName);
+        _removed.remove(templateName);
+        _removed.put(templateName, generation);
+        trimRemoved();
+    }
+
+    private void trimRemoved() {
+        Iterator<Map.Entry<String, Long>> it = _removed.entrySet().iterator();
+        while (_removed.size() > MAX_REMOVED && it.hasNext()) {
+            _removedFloor = Math.max(_removedFloor, it.next().getValue());
+            it.remove();
+        }
+    }
+
+    private static boolean isSame(TemplateInfo a, TemplateInfo b) {
+        return a.id == b.id && a.size == b.size && a.physicalSize == b.physicalSize && a.isPublic == b.isPublic && a.isCorrupted == b.isCorrupted
+                && (a.installPath == null ? b.installPath == null : a.installPath.equals(b.installPath));
+    }
+
+    private static String parentOf(String path) {
+        int index = path.lastIndexOf(File.separator);
+        return index < 0 ? "" : path.substring(0, index);
+    }
+
+    private static String format(TemplateInfo info) {
+        return info.templateName + "\t" + info.id + "\t" + info.isPublic + "\t" + info.isCorrupted + "\t" + info.size + "\t" + info.physicalSize + "\t"
+                + (info.installPath == null ? "" : info.installPath);
+    }
+
+    private static TemplateInfo parse(String[] fields, int offset) {
+        TemplateInfo info = new TemplateInfo();
+        info.templateName = fields[offset];
+        info.id = Long.parseLong(fields[offset + 1]);
+        info.isPublic = Boolean.parseBoolean(fields[offset + 2]);
+        info.isCorrupted = Boolean.parseBoolean(fields[offset + 3]);
+        info.size = Long.parseLong(fields[offset + 4]);
+        info.physicalSize = Long.parseLong(fields[offset + 5]);
+        info.installPath = fields[offset + 6].length() == 0 ? null : fields[offset + 6];
+        return info;
+    }
+
+    /**
+     * Keeps the other writers out until unlock.  Null if the storage does not
+     * support locks, the change is then made without one.
+     */
+    private FileLock lock() {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(_lockFile, "rw");
+            FileLock lock = file.getChannel().lock();
+            file = null;
+            return lock;
+        } catch (IOException e) {
+            s_logger.warn("Unable to lock " + _lockFile.getPath() + ", changing the template inventory without a lock", e);
+            return null;
+        } finally {
+            close(file);
+        }
+    }
+
+    private void unlock(FileLock lock) {
+        if (lock != null) {
+            // closing the channel releases the lock
+            close(lock.channel());
+        }
+    }
+
+    /**
+     * Picks up what another writer, such as a second storage VM sharing the
+     * same secondary storage, has written since the files were last read.
+     */
+    private void refresh() {
+        if (_snapshot.lastModified() != _snapshotModified || _journal.length() < _journalRead) {
+            load();
+        } else if (_journal.length() > _journalRead) {
+            replayJournal();
+        }
+    }
+
+    private void load() {
+        _epoch = null;
+        _generation = 0;
+        _removedFloor = 0;
+        _lastFullScan = 0;
+        _templates.clear();
+        _removed.clear();
+        _journalRead = 0;
+        _journalEntries = 0;
+        _snapshotModified = _snapshot.lastModified();
+
+        if (_snapshot.exists()) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(_snapshot), "UTF-8"));
+                String[] header = reader.readLine().split("\t");
+                String epoch = header[0];
+                _generation = Long.parseLong(header[1]);
+                _removedFloor = Long.parseLong(header[2]);
+                _lastFullScan = Long.parseLong(header[3]);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    apply(line);
+                }
+                _epoch = epoch;
+            } catch (Exception e) {
+                s_logger.warn("Unable to read the template inventory " + _snapshot.getPath() + ", the templates will be scanned", e);
+                _templates.clear();
+                _removed.clear();
+                return;
+            } finally {
+                close(reader);
+            }
+        }
+        replayJournal();
+    }
+
+    private void replayJournal() {
+        if (_epoch == null || !_journal.exists()) {
+            return;
+        }
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(_journal);
+            in.getChannel().position(_journalRead);
+            byte[] data = new byte[(int)(_journal.length() - _journalRead)];
+            int read = 0;
+            int n;
+            while (read < data.length && (n = in.read(data, read, data.length - read)) > 0) {
+                read += n;
+            }
+            int start = 0;
+            for (int i = 0; i < read; i++) {
+                // a record without its newline is still being written
+                if (data[i] != '\n') {
+                    continue;
+                }
+                String line = new String(data, start, i - start, "UTF-8");
+                try {
+                    long generation = Long.parseLong(line.split("\t", -1)[1]);
+                    // records already folded into the snapshot are skipped
+                    if (generation > _generation) {
+                        apply(line);
+                        _generation = generation;
+                    }
+                } catch (RuntimeException e) {
+                    s_logger.warn("Skipping bad record in the template journal " + _journal.getPath() + ": " + line);
+                }
+                _journalRead += i + 1 - start;
+                _journalEntries++;
+                start = i + 1;
+            }
+        } catch (IOException e) {
+            s_logger.warn("Unable to read the template journal " + _journal.getPath(), e);
+        } finally {
+            close(in);
+        }
+    }
+
+    private void apply(String line) {
+        String[] fields = line.split("\t", -1);
+        long generation = Long.parseLong(fields[1]);
+        if (INSTALLED.equals(fields[0])) {
+            put(parse(fields, 2), generation);
+        } else if (REMOVED.equals(fields[0])) {
+            remove(fields[2], generation);
+        } else {
+            throw new IllegalArgumentException("Unknown template inventory record " + fields[0]);
+        }
+    }
+
+    private void append(String record) {
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(_journal, true), "UTF-8");
+            writer.write(record + "\n");
+            writer.flush();
+        } catch (IOException e) {
+            s_logger.warn("Unable to append to the template journal " + _journal.getPath() + ", saving a snapshot instead", e);
+            writeSnapshot();
+            return;
+        } finally {
+            close(writer);
+        }
+        // moves past the record just written, and anything another writer appended
+        replayJournal();
+        if (_journalEntries >= MAX_JOURNAL_ENTRIES) {
+            writeSnapshot();
+        }
+    }
+
+    /**
+     * Writes the whole index and empties the journal.  The snapshot is
+     * written to a temporary file and renamed so a reader never sees half of it.
+     */
+    private boolean writeSnapshot() {
+        File tmp = new File(_snapshot.getPath() + ".tmp");
+        Writer writer = null;
+        try {
+            writer = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+            writer.write(_epoch + "\t" + _generation + "\t" + _removedFloor + "\t" + _lastFullScan + "\n");
+            for (Entry entry : _templates.values()) {
+                writer.write(INSTALLED + "\t" + entry.generation + "\t" + format(entry.info) + "\n");
+            }
+            for (Map.Entry<String, Long> entry : _removed.entrySet()) {
+                writer.write(REMOVED + "\t" + entry.getValue() + "\t" + entry.getKey() + "\n");
+            }
+            writer.close();
+            writer = null;
+            if (!tmp.renameTo(_snapshot)) {
+                s_logger.warn("Unable to rename " + tmp.getPath() + " to " + _snapshot.getPath());
+                return false;
+            }
+        } catch (IOException e) {
+            s_logger.warn("Unable to write the template inventory " + _snapshot.getPath(), e);
+            return false;
+        } finally {
+            close(writer);
+        }
+        // the journal records are all in the snapshot now
+        _journal.delete();
+        // other writers notice the new snapshot by its time, which must not be that of the last one
+        if (_snapshot.lastModified() <= _snapshotModified) {
+            _snapshot.setLastModified(_snapshotModified + 1000);
+        }
+        _snapshotModified = _snapshot.lastModified();
+        _journalRead = 0;
+        _journalEntries = 0;
+        return true;
+    }
+
+    private static void close(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
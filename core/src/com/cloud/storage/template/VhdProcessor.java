@@ -13,7 +13,6 @@
 package com.cloud.storage.template;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.Map;
@@ -26,7 +25,6 @@ import org.apache.log4j.Logger;
 import com.cloud.exception.InternalErrorException;
 import com.cloud.storage.Storage.ImageFormat;
 import com.cloud.storage.StorageLayer;
-import com.cloud.utils.NumbersUtil;
 
 /**
  * VhdProcessor processes the downloaded template for VHD.  It
@@ -40,10 +38,6 @@ public class VhdProcessor implements Processor {
     private static final Logger s_logger = Logger.getLogger(VhdProcessor.class);
     String _name;
     StorageLayer _storage;
-    private int vhd_footer_size = 512;
-    private int vhd_footer_creator_app_offset = 28;
-    private int vhd_footer_creator_ver_offset = 32;
-    private int vhd_footer_current_size_offset = 48;
     private byte[][] citrix_creator_app = {{0x74, 0x61, 0x70, 0x00},{0x43, 0x54, 0x58, 0x53}}; /*"tap ", and "CTXS"*/
 
     @Override
@@ -67,31 +61,21 @@ public class VhdProcessor implements Processor {
         File vhdFile = _storage.getFile(vhdPath);
         
         info.size = _storage.getSize(vhdPath);
-        FileInputStream strm = null;
-        byte[] currentSize = new byte[8];
-        byte[] creatorApp = new byte[4];
+        ImageInspector.ImageInfo image;
         try {
-            strm = new FileInputStream(vhdFile);
-            strm.skip(info.size - vhd_footer_size + vhd_footer_creator_app_offset);
-            strm.read(creatorApp);
-            strm.skip(vhd_footer_current_size_offset - vhd_footer_creator_ver_offset);
-            strm.read(currentSize);           
-        } catch (Exception e) {
+            image = ImageInspector.inspect(vhdFile);
+        } catch (IOException e) {
             s_logger.warn("Unable to read vhd file " + vhdPath, e);
             throw new InternalErrorException("Unable to read vhd file " + vhdPath + ": " + e);
-        } finally {
-            if (strm != null) {
-                try {
-                    strm.close();
-                } catch (IOException e) {
-                }
-            }
         }
-        
-        //imageSignatureCheck(creatorApp);
-        
-        long templateSize = NumbersUtil.bytesToLong(currentSize);
-        info.virtualSize = templateSize;
+        if (image.getFormat() != ImageInspector.Format.VHD) {
+            throw new InternalErrorException(vhdPath + " is not a vhd file, it looks like " + image.getFormat());
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Inspected " + vhdPath + ": " + image);
+        }
+
+        info.virtualSize = image.getVirtualSize();
 
         return info;
     }
@@ -77,6 +77,21 @@ public class AccountVO implements Account, Identity {
         this.state = State.enabled;
     	this.uuid = UUID.randomUUID().toString();
     }
+
+    /**
+     * Copies an account, e.g. to hand out an account that is cached without sharing it.
+     */
+    public AccountVO(AccountVO that) {
+        this.id = that.id;
+        this.accountName = that.accountName;
+        this.type = that.type;
+        this.domainId = that.domainId;
+        this.state = that.state;
+        this.removed = (that.removed != null) ? new Date(that.removed.getTime()) : null;
+        this.needsCleanup = that.needsCleanup;
+        this.networkDomain = that.networkDomain;
+        this.uuid = that.uuid;
+    }
     
     public void setNeedsCleanup(boolean value) {
     	needsCleanup = value;
@@ -110,6 +110,28 @@ public class UserVO implements User, Identity {
     	this.uuid = UUID.randomUUID().toString();
     }
 
+    /**
+     * Copies a user, e.g. to hand out a user that is cached without sharing it.
+     */
+    public UserVO(UserVO that) {
+        this.id = that.id;
+        this.username = that.username;
+        this.password = that.password;
+        this.firstname = that.firstname;
+        this.lastname = that.lastname;
+        this.accountId = that.accountId;
+        this.email = that.email;
+        this.state = that.state;
+        this.apiKey = that.apiKey;
+        this.secretKey = that.secretKey;
+        this.created = (that.created != null) ? new Date(that.created.getTime()) : null;
+        this.removed = (that.removed != null) ? new Date(that.removed.getTime()) : null;
+        this.timezone = that.timezone;
+        this.registrationToken = that.registrationToken;
+        this.registered = that.registered;
+        this.uuid = that.uuid;
+    }
+
     @Override
     public long getId() {
         return id;
@@ -0,0 +1,228 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.swift;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+public class SwiftClientTest extends TestCase {
+    private static final long SEGMENT_SIZE = 1024 * 1024;
+
+    private SwiftServerStub _stub;
+    private SwiftClient _client;
+    private File _dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        Logger.getLogger("httpclient.wire").setLevel(Level.INFO);
+        _stub = new SwiftServerStub("account:user", "secret");
+        _client = new SwiftClient(_stub.getAuthUrl(), "account", "user", "secret", SEGMENT_SIZE, 4);
+        _dir = File.createTempFile("swift", "test");
+        _dir.delete();
+        _dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _client.shutdown();
+        _stub.stop();
+        delete(_dir);
+    }
+
+    private static void delete(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        f.delete();
+    }
+
+    private File createFile(String name, long size) throws IOException {
+        File f = new File(_dir, name);
+        Random random = new Random(size);
+        byte[] buf = new byte[64 * 1024];
+        OutputStream out = new FileOutputStream(f);
+        try {
+            for (long written = 0; written < size; written += buf.length) {
+                random.nextBytes(buf);
+                out.write(buf, 0, (int)Math.min(buf.length, size - written));
+            }
+        } finally {
+            out.close();
+        }
+        return f;
+    }
+
+    private static byte[] read(File f) throws IOException {
+        byte[] data = new byte[(int)f.length()];
+        InputStream in = new FileInputStream(f);
+        try {
+            int read = 0;
+            while (read < data.length) {
+                read += in.read(data, read, data.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    public void testSmallObject() throws Exception {
+        File source = createFile("template.properties", 1000);
+        assertEquals(1000, _client.upload("T-1", "template.properties", source));
+
+        SwiftClient.ObjectInfo info = _client.stat("T-1", "template.properties");
+        assertEquals(1000, info.getSize());
+        assertEquals(SwiftServerStub.md5(read(source)), info.getEtag());
+        assertNull(info.getManifest());
+        assertNull(_client.stat("T-1", "missing"));
+
+        File target = new File(_dir, "downloaded");
+        assertEquals(1000, _client.download("T-1", "template.properties", target));
+        assertEquals(SwiftServerStub.md5(read(source)), SwiftServerStub.md5(read(target)));
+        assertEquals(1, _stub.authCount.get());
+    }
+
+    public void testSegmentedObjectTransfersInParallel() throws Exception {
+        _stub.transferDelay = 50;
+        long size = 5 * SEGMENT_SIZE + SEGMENT_SIZE / 2;
+        File source = createFile("disk.vhd", size);
+        assertEquals(size, _client.upload("T-2", "disk.vhd", source));
+        assertTrue("segments sent one at a time", _stub.maxActiveTransfers.get() > 1);
+
+        SortedMap<String, SwiftServerStub.StoredObject> segments = _stub.getContainer("T-2" + SwiftClient.SEGMENT_CONTAINER_SUFFIX);
+        assertEquals(6, segments.size());
+        assertTrue(segments.firstKey().startsWith("disk.vhd/"));
+        assertTrue(segments.firstKey().endsWith("/" + size + "/00000000"));
+        SwiftClient.ObjectInfo info = _client.stat("T-2", "disk.vhd");
+        assertEquals(size, info.getSize());
+        assertNotNull(info.getManifest());
+
+        _stub.maxActiveTransfers.set(0);
+        File target = new File(_dir, "downloaded.vhd");
+        assertEquals(size, _client.download("T-2", "disk.vhd", target));
+        assertEquals(SwiftServerStub.md5(read(source)), SwiftServerStub.md5(read(target)));
+        assertTrue("segments fetched one at a time", _stub.maxActiveTransfers.get() > 1);
+        assertEquals(6, _stub.objectGets.get());
+    }
+
+    public void testCorruptedDownloadIsFetchedAgain() throws Exception {
+        File source = createFile("disk.qcow2", 3 * SEGMENT_SIZE);
+        _client.upload("T-3", "disk.qcow2", source);
+
+        _stub.corruptGets.set(1);
+        File target = new File(_dir, "downloaded.qcow2");
+        _client.download("T-3", "disk.qcow2", target);
+        assertEquals(SwiftServerStub.md5(read(source)), SwiftServerStub.md5(read(target)));
+        assertEquals(4, _stub.objectGets.get());
+
+        _stub.corruptGets.set(100);
+        try {
+            _client.download("T-3", "disk.qcow2", target);
+            fail("corrupted download was accepted");
+        } catch (IOException e) {
+        }
+    }
+
+    public void testExpiredTokenIsRenewed() throws Exception {
+        _client.upload("T-4", "a", createFile("a", 10));
+        _stub.expireTokens();
+        _client.upload("T-4", "b", createFile("b", SEGMENT_SIZE + 10));
+        assertEquals(2, _stub.authCount.get());
+
+        List<String> names = _client.list("T-4", null);
+        assertEquals(2, names.size());
+        assertEquals("a", names.get(0));
+        assertEquals(1, _client.list("T-4", "b").size());
+        assertTrue(_client.list(null, null).contains("T-4"));
+    }
+
+    public void testDownloadContainer() throws Exception {
+        File source = createFile("disk.vhd", 2 * SEGMENT_SIZE + 1);
+        _client.upload("T-5", "disk.vhd", source);
+        _client.upload("T-5", "template.properties", createFile("template.properties", 100));
+
+        File dir = new File(_dir, "container");
+        dir.mkdirs();
+        assertEquals(2 * SEGMENT_SIZE + 101, _client.downloadContainer("T-5", dir));
+        assertEquals(SwiftServerStub.md5(read(source)), SwiftServerStub.md5(read(new File(dir, "disk.vhd"))));
+        assertEquals(100, new File(dir, "template.properties").length());
+    }
+
+    public void testDownloadContainerStaysInDirectory() throws Exception {
+        _client.upload("T-8", "template.properties", createFile("template.properties", 100));
+        _stub.getContainer("T-8").put("../escaped.properties", new SwiftServerStub.StoredObject(new byte[10], null));
+
+        File dir = new File(_dir, "container");
+        dir.mkdirs();
+        try {
+            _client.downloadContainer("T-8", dir);
+            fail("object outside of the directory was downloaded");
+        } catch (IOException e) {
+        }
+        assertFalse(new File(_dir, "escaped.properties").exists());
+        assertEquals(0, dir.list().length);
+    }
+
+    public void testDeleteContainerWithSegments() throws Exception {
+        _client.upload("T-6", "disk.vhd", createFile("disk.vhd", 3 * SEGMENT_SIZE));
+        _client.upload("T-6", "template.properties", createFile("template.properties", 100));
+
+        _client.delete("T-6", "");
+        assertFalse(_client.list(null, null).contains("T-6"));
+        assertTrue(_stub.getContainer("T-6" + SwiftClient.SEGMENT_CONTAINER_SUFFIX).isEmpty());
+
+        // already gone
+        _client.delete("T-6", "");
+        _client.delete("T-6", "disk.vhd");
+    }
+
+    public void testBrokenListingIsSentAgain() throws Exception {
+        _client.upload("T-7", "disk.vhd", createFile("disk.vhd", 2 * SEGMENT_SIZE));
+        _client.upload("T-7", "template.properties", createFile("template.properties", 100));
+
+        _stub.brokenListings.set(2);
+        List<String> names = _client.list("T-7", null);
+        assertEquals(2, names.size());
+        assertEquals("disk.vhd", names.get(0));
+
+        // the segments are listed to delete them, then the container to empty it
+        _stub.brokenListings.set(1);
+        _client.delete("T-7", "disk.vhd");
+        _stub.brokenListings.set(1);
+        _client.delete("T-7", "");
+        assertFalse(_client.list(null, null).contains("T-7"));
+        assertTrue(_stub.getContainer("T-7" + SwiftClient.SEGMENT_CONTAINER_SUFFIX).isEmpty());
+
+        _stub.brokenListings.set(3);
+        try {
+            _client.list("T-7" + SwiftClient.SEGMENT_CONTAINER_SUFFIX, null);
+            fail("listing was retried more than 3 times");
+        } catch (IOException e) {
+        }
+    }
+}
@@ -0,0 +1,398 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.swift;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-memory server with the parts of the Swift v1 API SwiftClient uses:
+ * auth, containers, objects and manifest objects.
+ */
+public class SwiftServerStub {
+    private static final String ACCOUNT_PATH = "/v1/AUTH_test";
+
+    private final HttpServer _server;
+    private final ExecutorService _executor;
+    private final String _user;
+    private final String _key;
+
+    private final SortedMap<String, SortedMap<String, StoredObject>> _containers = new TreeMap<String, SortedMap<String, StoredObject>>();
+    private int _tokenGeneration = 0;
+
+    final AtomicInteger authCount = new AtomicInteger();
+    final AtomicInteger objectGets = new AtomicInteger();
+    final AtomicInteger activeTransfers = new AtomicInteger();
+    final AtomicInteger maxActiveTransfers = new AtomicInteger();
+    // milliseconds an object GET or PUT takes at least
+    volatile long transferDelay = 0;
+    // number of object GETs to send with a flipped byte
+    final AtomicInteger corruptGets = new AtomicInteger();
+    // number of container listings to break off in the middle of the response
+    final AtomicInteger brokenListings = new AtomicInteger();
+
+    static class StoredObject {
+        final byte[] data;
+        final String etag;
+        final String manifest;
+
+        StoredObject(byte[] data, String manifest) {
+            this.data = data;
+            this.etag = md5(data);
+            this.manifest = manifest;
+        }
+    }
+
+    public SwiftServerStub(String user, String key) throws IOException {
+        _user = user;
+        _key = key;
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/auth/v1.0", new AuthHandler());
+        _server.createContext(ACCOUNT_PATH, new StorageHandler());
+        _executor = Executors.newCachedThreadPool();
+        _server.setExecutor(_executor);
+        _server.start();
+    }
+
+    public String getAuthUrl() {
+        return "http://127.0.0.1:" + _server.getAddress().getPort() + "/auth/v1.0";
+    }
+
+    public void stop() {
+        _server.stop(0);
+        _executor.shutdownNow();
+    }
+
+    public synchronized void expireTokens() {
+        _tokenGeneration++;
+    }
+
+    private synchronized String currentToken() {
+        return "AUTH_tk" + _tokenGeneration;
+    }
+
+    synchronized SortedMap<String, StoredObject> getContainer(String name) {
+        return _containers.get(name);
+    }
+
+    private class AuthHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            authCount.incrementAndGet();
+            drain(t);
+            try {
+                if (!_user.equals(t.getRequestHeaders().getFirst("X-Auth-User")) || !_key.equals(t.getRequestHeaders().getFirst("X-Auth-Key"))) {
+                    respond(t, 401, null);
+                    return;
+                }
+                t.getResponseHeaders().set("X-Storage-Url", "http://127.0.0.1:" + _server.getAddress().getPort() + ACCOUNT_PATH);
+                t.getResponseHeaders().set("X-Auth-Token", currentToken());
+                respond(t, 204, null);
+            } finally {
+                t.close();
+            }
+        }
+    }
+
+    private class StorageHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            // a request body left unread resets the connection, only object PUTs read theirs
+            if (!t.getRequestMethod().equals("PUT")) {
+                drain(t);
+            }
+            if (!currentToken().equals(t.getRequestHeaders().getFirst("X-Auth-Token"))) {
+                drain(t);
+                respond(t, 401, null);
+                t.close();
+                return;
+            }
+            String path = t.getRequestURI().getPath().substring(ACCOUNT_PATH.length());
+            if (path.startsWith("/")) {
+                path = path.substring(1);
+            }
+            int slash = path.indexOf('/');
+            if (path.length() == 0) {
+                handleAccount(t);
+            } else if (slash < 0) {
+                handleContainer(t, path);
+            } else {
+                handleObject(t, path.substring(0, slash), path.substring(slash + 1));
+            }
+            // not closed when handling failed, the server drops the connection instead of ending the response properly
+            t.close();
+        }
+    }
+
+    private void handleAccount(HttpExchange t) throws IOException {
+        StringBuilder sb = new StringBuilder("[");
+        synchronized (this) {
+            for (Map.Entry<String, SortedMap<String, StoredObject>> entry : _containers.entrySet()) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append("{\"name\":\"").append(entry.getKey()).append("\",\"count\":").append(entry.getValue().size()).append(",\"bytes\":0}");
+            }
+        }
+        respond(t, 200, sb.append(']').toString().getBytes());
+    }
+
+    private void handleContainer(HttpExchange t, String name) throws IOException {
+        String method = t.getRequestMethod();
+        if (method.equals("PUT")) {
+            drain(t);
+            synchronized (this) {
+                if (_containers.containsKey(name)) {
+                    respond(t, 202, null);
+                } else {
+                    _containers.put(name, new TreeMap<String, StoredObject>());
+                    respond(t, 201, null);
+                }
+            }
+        } else if (method.equals("DELETE")) {
+            synchronized (this) {
+                SortedMap<String, StoredObject> container = _containers.get(name);
+                if (container == null) {
+                    respond(t, 404, null);
+                } else if (!container.isEmpty()) {
+                    respond(t, 409, null);
+                } else {
+                    _containers.remove(name);
+                    respond(t, 204, null);
+                }
+            }
+        } else if (method.equals("GET")) {
+            Map<String, String> query = parseQuery(t.getRequestURI().getRawQuery());
+            String prefix = query.containsKey("prefix") ? query.get("prefix") : "";
+            String marker = query.get("marker");
+            int limit = query.containsKey("limit") ? Integer.parseInt(query.get("limit")) : 10000;
+            StringBuilder sb = new StringBuilder("[");
+            synchronized (this) {
+                SortedMap<String, StoredObject> container = _containers.get(name);
+                if (container == null) {
+                    respond(t, 404, null);
+                    return;
+                }
+                int count = 0;
+                for (Map.Entry<String, StoredObject> entry : container.entrySet()) {
+                    if (!entry.getKey().startsWith(prefix) || (marker != null && entry.getKey().compareTo(marker) <= 0)) {
+                        continue;
+                    }
+                    if (count++ == limit) {
+                        break;
+                    }
+                    if (sb.length() > 1) {
+                        sb.append(',');
+                    }
+                    sb.append("{\"name\":\"").append(entry.getKey()).append("\",\"hash\":\"").append(entry.getValue().etag)
+                        .append("\",\"bytes\":").append(entry.getValue().data.length).append('}');
+                }
+            }
+            byte[] body = sb.append(']').toString().getBytes();
+            if (brokenListings.getAndDecrement() > 0) {
+                // chunked, so the client sees the body end before its last chunk
+                t.sendResponseHeaders(200, 0);
+                OutputStream os = t.getResponseBody();
+                os.write(body, 0, body.length / 2);
+                os.flush();
+                throw new IOException("Listing of " + name + " broken off");
+            }
+            respond(t, 200, body);
+        } else {
+            respond(t, 405, null);
+        }
+    }
+
+    private void handleObject(HttpExchange t, String containerName, String name) throws IOException {
+        String method = t.getRequestMethod();
+        SortedMap<String, StoredObject> container = getContainer(containerName);
+        if (container == null) {
+            drain(t);
+            respond(t, 404, null);
+            return;
+        }
+
+        if (method.equals("PUT")) {
+            byte[] data = transfer(t);
+            StoredObject object = new StoredObject(data, t.getRequestHeaders().getFirst("X-Object-Manifest"));
+            String expected = t.getRequestHeaders().getFirst("ETag");
+            if (expected != null && !expected.equals(object.etag)) {
+                respond(t, 422, null);
+                return;
+            }
+            synchronized (this) {
+                container.put(name, object);
+            }
+            t.getResponseHeaders().set("ETag", object.etag);
+            respond(t, 201, null);
+            return;
+        }
+
+        StoredObject object;
+        synchronized (this) {
+            object = container.get(name);
+        }
+        if (object == null) {
+            respond(t, 404, null);
+            return;
+        }
+
+        if (method.equals("DELETE")) {
+            synchronized (this) {
+                container.remove(name);
+            }
+            respond(t, 204, null);
+            return;
+        }
+
+        byte[] data = object.data;
+        String etag = object.etag;
+        if (object.manifest != null) {
+            t.getResponseHeaders().set("X-Object-Manifest", object.manifest);
+            // the content of a manifest object is its segments put together, the ETag is not its MD5
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            StringBuilder etags = new StringBuilder();
+            int slash = object.manifest.indexOf('/');
+            synchronized (this) {
+                SortedMap<String, StoredObject> segments = _containers.get(object.manifest.substring(0, slash));
+                String prefix = object.manifest.substring(slash + 1);
+                if (segments != null) {
+                    for (Map.Entry<String, StoredObject> entry : segments.entrySet()) {
+                        if (entry.getKey().startsWith(prefix)) {
+                            content.write(entry.getValue().data);
+                            etags.append(entry.getValue().etag);
+                        }
+                    }
+                }
+            }
+            data = content.toByteArray();
+            etag = "\"" + md5(etags.toString().getBytes()) + "\"";
+        }
+        t.getResponseHeaders().set("ETag", etag);
+
+        if (method.equals("HEAD")) {
+            t.getResponseHeaders().set("Content-Length", Integer.toString(data.length));
+            t.sendResponseHeaders(200, -1);
+        } else if (method.equals("GET")) {
+            objectGets.incrementAndGet();
+            if (corruptGets.getAndDecrement() > 0 && data.length > 0) {
+                data = data.clone();
+                data[data.length / 2] ^= 0xff;
+            }
+            transfer(t, data);
+        } else {
+            respond(t, 405, null);
+        }
+    }
+
+    private byte[] transfer(HttpExchange t) throws IOException {
+        enterTransfer();
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            InputStream in = t.getRequestBody();
+            byte[] buf = new byte[64 * 1024];
+            int bytes;
+            while ((bytes = in.read(buf)) > 0) {
+                out.write(buf, 0, bytes);
+            }
+            return out.toByteArray();
+        } finally {
+            leaveTransfer();
+        }
+    }
+
+    private void transfer(HttpExchange t, byte[] data) throws IOException {
+        enterTransfer();
+        try {
+            respond(t, 200, data);
+        } finally {
+            leaveTransfer();
+        }
+    }
+
+    private void enterTransfer() {
+        int active = activeTransfers.incrementAndGet();
+        while (true) {
+            int max = maxActiveTransfers.get();
+            if (active <= max || maxActiveTransfers.compareAndSet(max, active)) {
+                break;
+            }
+        }
+        if (transferDelay > 0) {
+            try {
+                Thread.sleep(transferDelay);
+            } catch (InterruptedException e) {
+            }
+        }
+    }
+
+    private void leaveTransfer() {
+        activeTransfers.decrementAndGet();
+    }
+
+    private static void drain(HttpExchange t) throws IOException {
+        InputStream in = t.getRequestBody();
+        byte[] buf = new byte[64 * 1024];
+        while (in.read(buf) > 0) {
+        }
+    }
+
+    private static void respond(HttpExchange t, int status, byte[] body) throws IOException {
+        if (body == null || body.length == 0 || t.getRequestMethod().equals("HEAD")) {
+            t.sendResponseHeaders(status, -1);
+            return;
+        }
+        t.sendResponseHeaders(status, body.length);
+        OutputStream os = t.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query != null) {
+            for (String param : query.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq > 0) {
+                    params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+
+    static String md5(byte[] data) {
+        try {
+            return String.format("%032x", new BigInteger(1, MessageDigest.getInstance("MD5").digest(data)));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,363 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class ImageInspectorTest extends TestCase {
+    private File _dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        _dir = File.createTempFile("images", "");
+        _dir.delete();
+        _dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    private static byte[] pattern(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte)(seed + i % 251 + 1);
+        }
+        return data;
+    }
+
+    private static void write(File file, long offset, byte[] data) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(offset);
+            raf.write(data);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int)raf.length()];
+            raf.readFully(data);
+            return data;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] vhdFooter(long size, int diskType, long headerOffset) {
+        ByteBuffer footer = ByteBuffer.allocate(512);
+        footer.put("conectix".getBytes());
+        footer.putLong(16, headerOffset);
+        footer.put(28, (byte)'t').put(29, (byte)'a').put(30, (byte)'p');
+        footer.putLong(40, size);
+        footer.putLong(48, size);
+        footer.putInt(60, diskType);
+        return footer.array();
+    }
+
+    /**
+     * A 16k dynamic VHD with 4k blocks; block 1 is fully written and only
+     * the first two sectors of block 3 are.
+     */
+    private File createDynamicVhd(String name, int diskType, String parent) throws IOException {
+        File vhd = new File(_dir, name);
+        int blockSize = 4096;
+        long batOffset = 1536;
+        long block1 = 2048;
+        long block3 = block1 + 512 + blockSize;
+        long footerOffset = block3 + 512 + blockSize;
+
+        write(vhd, 0, vhdFooter(16384, diskType, 512));
+        ByteBuffer header = ByteBuffer.allocate(1024);
+        header.put("cxsparse".getBytes());
+        header.putLong(8, -1L);
+        header.putLong(16, batOffset);
+        header.putInt(28, 4);
+        header.putInt(32, blockSize);
+        if (parent != null) {
+            byte[] name16 = parent.getBytes("UTF-16BE");
+            System.arraycopy(name16, 0, header.array(), 64, name16.length);
+        }
+        write(vhd, 512, header.array());
+
+        ByteBuffer bat = ByteBuffer.allocate(512);
+        bat.putInt(0xffffffff).putInt((int)(block1 / 512)).putInt(0xffffffff).putInt((int)(block3 / 512));
+        write(vhd, batOffset, bat.array());
+
+        byte[] full = new byte[512];
+        full[0] = (byte)0xff;
+        write(vhd, block1, full);
+        write(vhd, block1 + 512, pattern(blockSize, 1));
+        byte[] partial = new byte[512];
+        partial[0] = (byte)0xc0;
+        write(vhd, block3, partial);
+        // the sectors not in the bitmap hold garbage that must not be copied
+        write(vhd, block3 + 512, pattern(blockSize, 3));
+        write(vhd, footerOffset, vhdFooter(16384, diskType, 512));
+        return vhd;
+    }
+
+    public void testFixedVhd() throws Exception {
+        File vhd = new File(_dir, "fixed.vhd");
+        write(vhd, 0, pattern(8192, 0));
+        write(vhd, 8192, vhdFooter(8192, 2, -1L));
+
+        ImageInspector.ImageInfo info = ImageInspector.inspect(vhd);
+        assertEquals(ImageInspector.Format.VHD, info.getFormat());
+        assertEquals("fixed", info.getType());
+        assertEquals(8192, info.getVirtualSize());
+        assertEquals(8192, info.getAllocatedSize());
+        assertEquals(8704, info.getFileSize());
+    }
+
+    public void testDynamicVhd() throws Exception {
+        File vhd = createDynamicVhd("dynamic.vhd", 3, null);
+        ImageInspector.ImageInfo info = ImageInspector.inspect(vhd);
+        assertEquals(ImageInspector.Format.VHD, info.getFormat());
+        assertEquals("dynamic", info.getType());
+        assertEquals(16384, info.getVirtualSize());
+        assertEquals(8192, info.getAllocatedSize());
+        assertEquals(4096, info.getBlockSize());
+        assertNull(info.getBackingFile());
+
+        File raw = new File(_dir, "dynamic.raw");
+        assertEquals(4096 + 1024, ImageInspector.sparseCopy(vhd, raw));
+        byte[] expected = new byte[16384];
+        System.arraycopy(pattern(4096, 1), 0, expected, 4096, 4096);
+        System.arraycopy(pattern(1024, 3), 0, expected, 12288, 1024);
+        assertTrue(Arrays.equals(expected, readAll(raw)));
+    }
+
+    public void testDifferencingVhdNeedsItsParent() throws Exception {
+        File vhd = createDynamicVhd("child.vhd", 4, "parent.vhd");
+        ImageInspector.ImageInfo info = ImageInspector.inspect(vhd);
+        assertEquals("differencing", info.getType());
+        assertEquals("parent.vhd", info.getBackingFile());
+        try {
+            ImageInspector.sparseCopy(vhd, new File(_dir, "child.raw"));
+            fail("differencing vhd copied without its parent");
+        } catch (IOException e) {
+        }
+    }
+
+    /**
+     * A 64k qcow2 with 512 byte clusters, so 64 clusters per L2 table and two
+     * L1 entries; clusters 1 and 70 are allocated, 70 in the second table.
+     */
+    private File createQcow2(boolean compressed) throws IOException {
+        File qcow2 = new File(_dir, "disk.qcow2");
+        ByteBuffer header = ByteBuffer.allocate(512);
+        header.putInt(0x514649fb).putInt(2);
+        header.putInt(20, 9);
+        header.putLong(24, 65536);
+        header.putInt(36, 2);
+        header.putLong(40, 512);
+        write(qcow2, 0, header.array());
+
+        ByteBuffer l1 = ByteBuffer.allocate(512);
+        l1.putLong(0, 1024 | (1L << 63)).putLong(8, 1536);
+        write(qcow2, 512, l1.array());
+        ByteBuffer l2 = ByteBuffer.allocate(512);
+        l2.putLong(8, 2048 | (compressed ? 1L << 62 : 1L << 63));
+        write(qcow2, 1024, l2.array());
+        l2 = ByteBuffer.allocate(512);
+        l2.putLong(6 * 8, 2560);
+        write(qcow2, 1536, l2.array());
+        write(qcow2, 2048, pattern(512, 5));
+        write(qcow2, 2560, pattern(512, 7));
+        return qcow2;
+    }
+
+    public void testQcow2() throws Exception {
+        File qcow2 = createQcow2(false);
+        ImageInspector.ImageInfo info = ImageInspector.inspect(qcow2);
+        assertEquals(ImageInspector.Format.QCOW2, info.getFormat());
+        assertEquals(65536, info.getVirtualSize());
+        assertEquals(1024, info.getAllocatedSize());
+        assertEquals(512, info.getBlockSize());
+
+        File raw = new File(_dir, "qcow2.raw");
+        assertEquals(1024, ImageInspector.sparseCopy(qcow2, raw));
+        byte[] expected = new byte[65536];
+        System.arraycopy(pattern(512, 5), 0, expected, 512, 512);
+        System.arraycopy(pattern(512, 7), 0, expected, 70 * 512, 512);
+        assertTrue(Arrays.equals(expected, readAll(raw)));
+    }
+
+    public void testCompressedQcow2IsInspectedButNotCopied() throws Exception {
+        File qcow2 = createQcow2(true);
+        assertEquals(1024, ImageInspector.inspect(qcow2).getAllocatedSize());
+        try {
+            ImageInspector.sparseCopy(qcow2, new File(_dir, "compressed.raw"));
+            fail("compressed clusters copied");
+        } catch (IOException e) {
+        }
+    }
+
+    public void testQcow2v3ZeroClusters() throws Exception {
+        File qcow2 = createQcow2(false);
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.putInt(0, 3);
+        write(qcow2, 4, header.array());
+        header.putInt(0, 104);
+        write(qcow2, 100, header.array());
+        // the first data cluster is preallocated but reads as zeros, another one is zero without a cluster
+        ByteBuffer l2 = ByteBuffer.allocate(16);
+        l2.putLong(0, 1).putLong(8, 2048 | 1 | (1L << 63));
+        write(qcow2, 1024, l2.array());
+
+        ImageInspector.ImageInfo info = ImageInspector.inspect(qcow2);
+        assertEquals("qcow2 v3", info.getType());
+        assertEquals(512, info.getAllocatedSize());
+
+        File raw = new File(_dir, "qcow2v3.raw");
+        assertEquals(512, ImageInspector.sparseCopy(qcow2, raw));
+        byte[] expected = new byte[65536];
+        System.arraycopy(pattern(512, 7), 0, expected, 70 * 512, 512);
+        assertTrue(Arrays.equals(expected, readAll(raw)));
+
+        // dirty only means the refcounts may be off
+        ByteBuffer features = ByteBuffer.allocate(8);
+        features.putLong(0, 1);
+        write(qcow2, 72, features.array());
+        assertEquals(512, ImageInspector.inspect(qcow2).getAllocatedSize());
+
+        // e.g. extended l2 entries, which are read differently
+        features.putLong(0, 1 << 4);
+        write(qcow2, 72, features.array());
+        try {
+            ImageInspector.inspect(qcow2);
+            fail("unknown incompatible feature accepted");
+        } catch (IOException e) {
+        }
+        try {
+            ImageInspector.sparseCopy(qcow2, raw);
+            fail("unknown incompatible feature accepted");
+        } catch (IOException e) {
+        }
+    }
+
+    public void testQcow2BackingFile() throws Exception {
+        File qcow2 = new File(_dir, "overlay.qcow2");
+        ByteBuffer header = ByteBuffer.allocate(1024);
+        header.putInt(0x514649fb).putInt(2).putLong(72).putInt(10);
+        header.putInt(20, 16);
+        header.putLong(24, 1L << 30);
+        System.arraycopy("base.qcow2".getBytes(), 0, header.array(), 72, 10);
+        write(qcow2, 0, header.array());
+
+        ImageInspector.ImageInfo info = ImageInspector.inspect(qcow2);
+        assertEquals(1L << 30, info.getVirtualSize());
+        assertEquals(0, info.getAllocatedSize());
+        assertEquals("base.qcow2", info.getBackingFile());
+    }
+
+    /**
+     * A 32k monolithic sparse VMDK with 4k grains and 4 grain table entries,
+     * so two grain tables; grains 2 and 5 are allocated.
+     */
+    private File createSparseVmdk(String name) throws IOException {
+        File vmdk = new File(_dir, name);
+        ByteBuffer header = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x564d444b).putInt(1).putInt(3);
+        header.putLong(12, 64);
+        header.putLong(20, 8);
+        header.putLong(28, 1);
+        header.putLong(36, 1);
+        header.putInt(44, 4);
+        header.putLong(56, 2);
+        write(vmdk, 0, header.array());
+        write(vmdk, 512, "# Disk DescriptorFile\nversion=1\ncreateType=\"monolithicSparse\"\n".getBytes());
+
+        ByteBuffer gd = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+        gd.putInt(3).putInt(4);
+        write(vmdk, 1024, gd.array());
+        ByteBuffer gt = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+        gt.putInt(8, 8);
+        write(vmdk, 1536, gt.array());
+        gt = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+        gt.putInt(0, 1).putInt(4, 16);
+        write(vmdk, 2048, gt.array());
+        write(vmdk, 8 * 512, pattern(4096, 9));
+        write(vmdk, 16 * 512, pattern(4096, 11));
+        return vmdk;
+    }
+
+    public void testSparseVmdk() throws Exception {
+        File vmdk = createSparseVmdk("disk.vmdk");
+        ImageInspector.ImageInfo info = ImageInspector.inspect(vmdk);
+        assertEquals(ImageInspector.Format.VMDK, info.getFormat());
+        assertEquals("monolithicSparse", info.getType());
+        assertEquals(32768, info.getVirtualSize());
+        assertEquals(8192, info.getAllocatedSize());
+
+        File raw = new File(_dir, "vmdk.raw");
+        assertEquals(8192, ImageInspector.sparseCopy(vmdk, raw));
+        byte[] expected = new byte[32768];
+        System.arraycopy(pattern(4096, 9), 0, expected, 2 * 4096, 4096);
+        System.arraycopy(pattern(4096, 11), 0, expected, 5 * 4096, 4096);
+        assertTrue(Arrays.equals(expected, readAll(raw)));
+    }
+
+    public void testVmdkDescriptor() throws Exception {
+        createSparseVmdk("disk-s001.vmdk");
+        File descriptor = new File(_dir, "disk.vmdk");
+        write(descriptor, 0, ("# Disk DescriptorFile\nversion=1\ncreateType=\"twoGbMaxExtentSparse\"\n\n" +
+                "# Extent description\nRW 64 SPARSE \"disk-s001.vmdk\"\nRW 64 SPARSE \"disk-s002.vmdk\"\n").getBytes());
+
+        ImageInspector.ImageInfo info = ImageInspector.inspect(descriptor);
+        assertEquals(ImageInspector.Format.VMDK, info.getFormat());
+        assertEquals("twoGbMaxExtentSparse", info.getType());
+        assertEquals(65536, info.getVirtualSize());
+        // the second extent is missing
+        assertEquals(8192, info.getAllocatedSize());
+    }
+
+    public void testRawCopySkipsZeros() throws Exception {
+        File raw = new File(_dir, "disk.img");
+        write(raw, 3 * 1024 * 1024, pattern(4096, 13));
+        ImageInspector.ImageInfo info = ImageInspector.inspect(raw);
+        assertEquals(ImageInspector.Format.RAW, info.getFormat());
+        assertEquals(3 * 1024 * 1024 + 4096, info.getVirtualSize());
+
+        File copy = new File(_dir, "copy.img");
+        assertEquals(4096, ImageInspector.sparseCopy(raw, copy));
+        assertTrue(Arrays.equals(readAll(raw), readAll(copy)));
+    }
+
+    public void testTruncatedImageIsRejected() throws Exception {
+        File qcow2 = createQcow2(false);
+        RandomAccessFile raf = new RandomAccessFile(qcow2, "rw");
+        raf.setLength(1200);
+        raf.close();
+        try {
+            ImageInspector.inspect(qcow2);
+            fail("truncated image inspected");
+        } catch (IOException e) {
+        }
+    }
+}
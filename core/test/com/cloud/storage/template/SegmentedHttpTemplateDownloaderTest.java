@@ -0,0 +1,261 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.cloud.storage.Storage.ImageFormat;
+import com.cloud.storage.template.TemplateDownloader.Status;
+import com.cloud.utils.Pair;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class SegmentedHttpTemplateDownloaderTest extends TestCase {
+    private static final long FILE_SIZE = 6 * SegmentedHttpTemplateDownloader.MIN_SEGMENT_SIZE;
+
+    private File _dir;
+    private File _source;
+    private HttpServer _server;
+    private ExecutorService _executor;
+    private String _url;
+
+    private volatile boolean _rangeSupported = true;
+    // the first response covering this offset is cut there
+    private volatile long _dropAt = -1;
+    // milliseconds to wait after every 64K sent
+    private volatile long _throttle = 0;
+    private final AtomicLong _bytesServed = new AtomicLong();
+    private final AtomicInteger _requests = new AtomicInteger();
+
+    @Override
+    protected void setUp() throws Exception {
+        // logging every byte on the wire takes longer than the download
+        Logger.getLogger("httpclient.wire").setLevel(Level.INFO);
+
+        _dir = File.createTempFile("segmented", "test");
+        _dir.delete();
+        _dir.mkdirs();
+
+        // a sparse QCOW2 lookalike with some data spread over it
+        _source = new File(_dir, "template.qcow2");
+        RandomAccessFile raf = new RandomAccessFile(_source, "rw");
+        raf.setLength(FILE_SIZE);
+        raf.write(new byte[] { 'Q', 'F', 'I', (byte)0xfb });
+        Random random = new Random(1);
+        byte[] data = new byte[64 * 1024];
+        for (long offset = 4096; offset < FILE_SIZE; offset += FILE_SIZE / 7) {
+            random.nextBytes(data);
+            raf.seek(offset);
+            raf.write(data);
+        }
+        raf.close();
+
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        _server.createContext("/", new FileHandler());
+        // segments are served in parallel
+        _executor = Executors.newCachedThreadPool();
+        _server.setExecutor(_executor);
+        _server.start();
+        _url = "http://127.0.0.1:" + _server.getAddress().getPort() + "/template.qcow2";
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _server.stop(0);
+        _executor.shutdownNow();
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    private class FileHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            _requests.incrementAndGet();
+            long start = 0;
+            long end = FILE_SIZE - 1;
+            String range = t.getRequestHeaders().getFirst("Range");
+            boolean partial = _rangeSupported && range != null;
+            if (partial) {
+                String[] bounds = range.substring("bytes=".length()).split("-");
+                start = Long.parseLong(bounds[0]);
+                if (bounds.length > 1 && bounds[1].length() > 0) {
+                    end = Long.parseLong(bounds[1]);
+                }
+                t.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + FILE_SIZE);
+            }
+            if (_rangeSupported) {
+                t.getResponseHeaders().set("Accept-Ranges", "bytes");
+            }
+            long length = end - start + 1;
+            if (t.getRequestMethod().equals("HEAD")) {
+                t.getResponseHeaders().set("Content-Length", Long.toString(length));
+                t.sendResponseHeaders(getStatusCode(partial), -1);
+                t.close();
+                return;
+            }
+
+            t.sendResponseHeaders(getStatusCode(partial), length);
+            OutputStream os = t.getResponseBody();
+            RandomAccessFile raf = new RandomAccessFile(_source, "r");
+            try {
+                raf.seek(start);
+                byte[] buf = new byte[64 * 1024];
+                long offset = start;
+                while (offset <= end) {
+                    int len = (int)Math.min(buf.length, end - offset + 1);
+                    long dropAt = _dropAt;
+                    if (dropAt > offset && dropAt < offset + len) {
+                        _dropAt = -1;
+                        len = (int)(dropAt - offset);
+                        raf.readFully(buf, 0, len);
+                        os.write(buf, 0, len);
+                        _bytesServed.addAndGet(len);
+                        throw new IOException("dropped at " + dropAt);
+                    }
+                    raf.readFully(buf, 0, len);
+                    os.write(buf, 0, len);
+                    _bytesServed.addAndGet(len);
+                    offset += len;
+                    if (_throttle > 0) {
+                        try {
+                            Thread.sleep(_throttle);
+                        } catch (InterruptedException e) {
+                        }
+                    }
+                }
+                os.close();
+            } finally {
+                raf.close();
+                t.close();
+            }
+        }
+
+        private int getStatusCode(boolean partial) {
+            return partial ? 206 : 200;
+        }
+    }
+
+    private SegmentedHttpTemplateDownloader createDownloader(ImageFormat format) {
+        return new SegmentedHttpTemplateDownloader(null, _url, _dir.getAbsolutePath(), null, TemplateDownloader.DEFAULT_MAX_TEMPLATE_SIZE_IN_BYTES,
+                null, null, null, format, SegmentedHttpTemplateDownloader.DEFAULT_SEGMENTS) {
+            @Override
+            protected Pair<String, Integer> validateUrl(String url) {
+                // the test server is on the loopback address
+                return new Pair<String, Integer>("127.0.0.1", _server.getAddress().getPort());
+            }
+        };
+    }
+
+    private static String md5(File f) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        InputStream is = new FileInputStream(f);
+        try {
+            byte[] buf = new byte[1024 * 1024];
+            int read;
+            while ((read = is.read(buf)) > 0) {
+                digest.update(buf, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        return new BigInteger(1, digest.digest()).toString(16);
+    }
+
+    public void testSegmentedDownload() throws Exception {
+        SegmentedHttpTemplateDownloader td = createDownloader(ImageFormat.QCOW2);
+        assertEquals(FILE_SIZE, td.download(false, null));
+        assertEquals(Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(100, td.getDownloadPercent());
+
+        String expected = md5(_source);
+        assertEquals(expected, md5(new File(td.getDownloadLocalPath())));
+        assertEquals(expected, td.getChecksum());
+        assertFalse(td.isCompressed());
+        // HEAD and one GET per segment
+        assertEquals(1 + SegmentedHttpTemplateDownloader.DEFAULT_SEGMENTS, _requests.get());
+        assertEquals(FILE_SIZE, _bytesServed.get());
+    }
+
+    public void testDroppedSegmentResumes() throws Exception {
+        // in the middle of the third segment
+        _dropAt = FILE_SIZE / 2 + 12345;
+        SegmentedHttpTemplateDownloader td = createDownloader(ImageFormat.QCOW2);
+        assertEquals(FILE_SIZE, td.download(false, null));
+        assertEquals(Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(md5(_source), td.getChecksum());
+        assertEquals(md5(_source), md5(new File(td.getDownloadLocalPath())));
+        // the dropped segment did not start over, bytes in flight when the connection dropped are fetched again at most
+        assertTrue(_bytesServed.get() < FILE_SIZE + 1024 * 1024);
+        assertEquals(2 + SegmentedHttpTemplateDownloader.DEFAULT_SEGMENTS, _requests.get());
+    }
+
+    public void testSingleStreamWithoutRangeSupport() throws Exception {
+        _rangeSupported = false;
+        SegmentedHttpTemplateDownloader td = createDownloader(ImageFormat.QCOW2);
+        assertEquals(FILE_SIZE, td.download(false, null));
+        assertEquals(Status.DOWNLOAD_FINISHED, td.getStatus());
+        assertEquals(md5(_source), td.getChecksum());
+        assertEquals(2, _requests.get());
+    }
+
+    public void testWrongFormatRejectedEarly() throws Exception {
+        _throttle = 1;
+        SegmentedHttpTemplateDownloader td = createDownloader(ImageFormat.ISO);
+        assertEquals(0, td.download(false, null));
+        assertEquals(Status.UNRECOVERABLE_ERROR, td.getStatus());
+        assertEquals("Downloaded file is not an ISO image", td.getDownloadError());
+        assertFalse(new File(td.getDownloadLocalPath()).exists());
+        assertTrue("fetched " + _bytesServed.get() + " bytes", _bytesServed.get() < FILE_SIZE / 2);
+    }
+
+    public void testCheckTemplateHeader() {
+        byte[] header = new byte[SegmentedHttpTemplateDownloader.HEADER_SIZE];
+        header[0] = (byte)0x1f;
+        header[1] = (byte)0x8b;
+        assertTrue(SegmentedHttpTemplateDownloader.isCompressed(header, header.length));
+        assertNull(SegmentedHttpTemplateDownloader.checkTemplateHeader(ImageFormat.QCOW2, header, header.length));
+
+        header = new byte[SegmentedHttpTemplateDownloader.HEADER_SIZE];
+        System.arraycopy("ustar".getBytes(), 0, header, 257, 5);
+        assertEquals("tar archives not supported", SegmentedHttpTemplateDownloader.checkTemplateHeader(ImageFormat.VHD, header, header.length));
+        assertNull(SegmentedHttpTemplateDownloader.checkTemplateHeader(ImageFormat.OVA, header, header.length));
+
+        header = new byte[SegmentedHttpTemplateDownloader.HEADER_SIZE];
+        System.arraycopy("CD001".getBytes(), 0, header, 32769, 5);
+        assertNull(SegmentedHttpTemplateDownloader.checkTemplateHeader(ImageFormat.ISO, header, header.length));
+        assertNotNull(SegmentedHttpTemplateDownloader.checkTemplateHeader(ImageFormat.QCOW2, header, header.length));
+        // a fixed size VHD has no header to check
+        assertNull(SegmentedHttpTemplateDownloader.checkTemplateHeader(ImageFormat.VHD, header, header.length));
+    }
+}
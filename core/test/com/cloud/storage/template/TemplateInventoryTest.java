@@ -0,0 +1,193 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.template;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class TemplateInventoryTest extends TestCase {
+    private File _dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        _dir = File.createTempFile("inventory", "");
+        _dir.delete();
+        _dir.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (File f : _dir.listFiles()) {
+            f.delete();
+        }
+        _dir.delete();
+    }
+
+    private static TemplateInfo template(String name, long size) {
+        return new TemplateInfo(name, "template/tmpl/2/" + name + "/" + name + ".qcow2", size, size, true, false);
+    }
+
+    private TemplateInventory scanned(TemplateInfo... templates) {
+        TemplateInventory inventory = new TemplateInventory(_dir.getPath());
+        Map<String, TemplateInfo> scan = new HashMap<String, TemplateInfo>();
+        for (TemplateInfo info : templates) {
+            scan.put(info.getTemplateName(), info);
+        }
+        inventory.reconcile(scan);
+        return inventory;
+    }
+
+    public void testNoIndexUntilScanned() {
+        TemplateInventory inventory = new TemplateInventory(_dir.getPath());
+        assertFalse(inventory.isInitialized());
+        inventory.templateInstalled(template("a", 1));
+        assertFalse(inventory.isInitialized());
+
+        inventory.reconcile(new HashMap<String, TemplateInfo>());
+        assertTrue(inventory.isInitialized());
+        assertTrue(inventory.getLastFullScan() > 0);
+    }
+
+    public void testOnlyChangesSinceGeneration() {
+        TemplateInventory inventory = scanned(template("a", 1), template("b", 1));
+        TemplateInventory.Changes all = inventory.getChanges(null, -1);
+        assertTrue(all.isFull());
+        assertEquals(2, all.getTemplates().size());
+
+        inventory.templateInstalled(template("c", 1));
+        inventory.templateRemoved("a");
+
+        TemplateInventory.Changes changes = inventory.getChanges(all.getEpoch(), all.getGeneration());
+        assertFalse(changes.isFull());
+        assertEquals(1, changes.getTemplates().size());
+        assertTrue(changes.getTemplates().containsKey("c"));
+        assertEquals(1, changes.getRemoved().size());
+        assertEquals("a", changes.getRemoved().get(0));
+
+        TemplateInventory.Changes none = inventory.getChanges(changes.getEpoch(), changes.getGeneration());
+        assertTrue(none.getTemplates().isEmpty());
+        assertTrue(none.getRemoved().isEmpty());
+    }
+
+    public void testUnknownEpochGetsEverything() {
+        TemplateInventory inventory = scanned(template("a", 1));
+        TemplateInventory.Changes changes = inventory.getChanges("another", 0);
+        assertTrue(changes.isFull());
+        assertEquals(1, changes.getTemplates().size());
+    }
+
+    public void testJournalIsReplayed() throws Exception {
+        TemplateInventory inventory = scanned(template("a", 1), template("b", 1));
+        String epoch = inventory.getEpoch();
+        long generation = inventory.getGeneration();
+        inventory.templateInstalled(template("c", 1));
+        inventory.templateRemovedByPath("template/tmpl/2/b/b.qcow2");
+
+        // a record that was still being written when the storage VM went away
+        FileOutputStream out = new FileOutputStream(new File(_dir, TemplateInventory.JournalFilename), true);
+        out.write("+\t99\td\t0\ttrue".getBytes("UTF-8"));
+        out.close();
+
+        TemplateInventory reopened = new TemplateInventory(_dir.getPath());
+        assertTrue(reopened.isInitialized());
+        assertEquals(epoch, reopened.getEpoch());
+        TemplateInventory.Changes changes = reopened.getChanges(epoch, generation);
+        assertFalse(changes.isFull());
+        assertEquals(generation + 2, changes.getGeneration());
+        assertTrue(changes.getTemplates().containsKey("c"));
+        assertEquals("b", changes.getRemoved().get(0));
+        assertEquals(2, reopened.getChanges(null, -1).getTemplates().size());
+    }
+
+    public void testReconcileRecordsDifferences() {
+        TemplateInventory inventory = scanned(template("a", 1), template("b", 1));
+        String epoch = inventory.getEpoch();
+        long generation = inventory.getGeneration();
+
+        Map<String, TemplateInfo> scan = new HashMap<String, TemplateInfo>();
+        scan.put("a", template("a", 1));
+        scan.put("b", template("b", 2));
+        scan.put("c", template("c", 1));
+        inventory.reconcile(scan);
+        inventory.reconcile(new HashMap<String, TemplateInfo>(scan));
+
+        assertEquals(epoch, inventory.getEpoch());
+        TemplateInventory.Changes changes = inventory.getChanges(epoch, generation);
+        assertEquals(2, changes.getTemplates().size());
+        assertEquals(2, changes.getTemplates().get("b").getSize());
+        assertTrue(changes.getRemoved().isEmpty());
+    }
+
+    public void testJournalIsFoldedIntoSnapshot() {
+        TemplateInventory inventory = scanned();
+        String epoch = inventory.getEpoch();
+        for (int i = 0; i < TemplateInventory.MAX_JOURNAL_ENTRIES + 10; i++) {
+            inventory.templateInstalled(template("t" + i, 1));
+        }
+        assertTrue(new File(_dir, TemplateInventory.JournalFilename).length() < 10 * 200);
+
+        TemplateInventory reopened = new TemplateInventory(_dir.getPath());
+        TemplateInventory.Changes changes = reopened.getChanges(epoch, 5);
+        assertFalse(changes.isFull());
+        assertEquals(TemplateInventory.MAX_JOURNAL_ENTRIES + 5, changes.getTemplates().size());
+    }
+
+    public void testSharedBetweenWriters() {
+        TemplateInventory first = scanned(template("a", 1));
+        TemplateInventory second = new TemplateInventory(_dir.getPath());
+        assertTrue(second.isInitialized());
+
+        second.templateInstalled(template("b", 1));
+        first.templateInstalled(template("c", 1));
+        TemplateInventory.Changes changes = first.getChanges(null, -1);
+        assertEquals(3, changes.getTemplates().size());
+        assertEquals(3, second.getChanges(null, -1).getTemplates().size());
+    }
+
+    public void testConcurrentWritersKeepEveryChange() throws Exception {
+        TemplateInventory first = scanned(template("a", 1));
+        final String epoch = first.getEpoch();
+        final long generation = first.getGeneration();
+        final int count = TemplateInventory.MAX_JOURNAL_ENTRIES;
+
+        Thread[] writers = new Thread[2];
+        for (int w = 0; w < writers.length; w++) {
+            final String prefix = "w" + w + "-";
+            final TemplateInventory inventory = w == 0 ? first : new TemplateInventory(_dir.getPath());
+            writers[w] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < count; i++) {
+                        inventory.templateInstalled(template(prefix + i, 1));
+                    }
+                }
+            };
+            writers[w].start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        // every install got its own generation and survived the snapshots taken along the way
+        TemplateInventory reopened = new TemplateInventory(_dir.getPath());
+        TemplateInventory.Changes changes = reopened.getChanges(epoch, generation);
+        assertFalse(changes.isFull());
+        assertEquals(generation + 2 * count, changes.getGeneration());
+        assertEquals(2 * count, changes.getTemplates().size());
+        assertEquals(2 * count + 1, reopened.getChanges(null, -1).getTemplates().size());
+    }
+}
@@ -20,7 +20,7 @@
 # createtmplt.sh -- install a template
 
 usage() {
-  printf "Usage: %s: -t <template-fs> -n <templatename> -f <root disk file> -c <md5 cksum> -d <descr> -h  [-u] [-v]\n" $(basename $0) >&2
+  printf "Usage: %s: -t <template-fs> -n <templatename> -f <root disk file> -c <md5 cksum> [-k] -d <descr> -h  [-u] [-v]\n" $(basename $0) >&2
 }
 
 
@@ -128,8 +128,9 @@ hvm=false
 cleanup=false
 dflag=
 cflag=
+kflag=
 
-while getopts 'vuht:n:f:s:c:d:S:' OPTION
+while getopts 'vuhkt:n:f:s:c:d:S:' OPTION
 do
   case $OPTION in
   t)	tflag=1
@@ -159,6 +160,8 @@ do
 		;;
   u)	cleanup="true"
 		;;
+  k)	kflag=1
+		;;
   v)	verbose="true"
 		;;
   ?)	usage
@@ -181,7 +184,8 @@ then
   exit 3
 fi
 
-if [ -n "$cksum" ]
+# -k: the caller verified the checksum while downloading
+if [ -n "$cksum" -a -z "$kflag" ]
 then
   verify_cksum $cksum $tmpltimg
 fi
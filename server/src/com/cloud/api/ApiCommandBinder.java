@@ -0,0 +1,286 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.api;
+
+import java.lang.reflect.Field;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.api.BaseCmd.CommandType;
+import com.cloud.api.commands.ListEventsCmd;
+import com.cloud.exception.InvalidParameterValueException;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * ApiCommandBinder sets the @Parameter fields of a command from the request
+ * parameters.  The fields of a command class, their annotations and the
+ * parser for each field's type are looked up once per class and kept, so
+ * binding a request is a walk over a prepared list instead of a reflection
+ * walk over the class hierarchy.
+ */
+public class ApiCommandBinder {
+    private static final Logger s_logger = Logger.getLogger(ApiCommandBinder.class.getName());
+
+    private static final Map<Class<?>, ApiCommandBinder> s_binders = new ConcurrentHashMap<Class<?>, ApiCommandBinder>();
+
+    /**
+     * Resolves the ids and uuids passed in for @IdentityMapper parameters to database ids.
+     */
+    public interface IdentityResolver {
+        Long getIdentityId(String tableName, String identityString);
+
+        Map<String, Long> getIdentityIds(String tableName, List<String> identityStrings);
+    }
+
+    private final List<ParameterBinder> _parameters;
+
+    public static ApiCommandBinder getBinder(Class<? extends BaseCmd> clazz) {
+        ApiCommandBinder binder = s_binders.get(clazz);
+        if (binder == null) {
+            // Two threads may build the same binder; they are identical so either one can win.
+            binder = new ApiCommandBinder(clazz);
+            s_binders.put(clazz, binder);
+        }
+        return binder;
+    }
+
+    protected ApiCommandBinder(Class<? extends BaseCmd> clazz) {
+        List<ParameterBinder> parameters = new ArrayList<ParameterBinder>();
+        Class<?> current = clazz;
+        // same order as before: the command's own fields first, then the super classes'
+        while (current != null && BaseCmd.class.isAssignableFrom(current)) {
+            for (Field field : current.getDeclaredFields()) {
+                Parameter parameterAnnotation = field.getAnnotation(Parameter.class);
+                if ((parameterAnnotation == null) || !parameterAnnotation.expose()) {
+                    continue;
+                }
+                field.setAccessible(true);
+                parameters.add(new ParameterBinder(clazz, field, parameterAnnotation, field.getAnnotation(IdentityMapper.class)));
+            }
+            current = current.getSuperclass();
+        }
+        _parameters = Collections.unmodifiableList(parameters);
+    }
+
+    public List<ParameterBinder> getParameters() {
+        return _parameters;
+    }
+
+    public static class ParameterBinder {
+        final Field _field;
+        final Parameter _annotation;
+        final IdentityMapper _identityMapper;
+        final ValueParser _parser;
+
+        ParameterBinder(Class<? extends BaseCmd> cmdClass, Field field, Parameter annotation, IdentityMapper identityMapper) {
+            _field = field;
+            _annotation = annotation;
+            _identityMapper = identityMapper;
+            _parser = createParser(cmdClass, field, annotation, identityMapper);
+        }
+
+        public String getName() {
+            return _annotation.name();
+        }
+
+        public boolean isRequired() {
+            return _annotation.required();
+        }
+
+        public void bind(BaseCmd cmdObj, Object paramObj, IdentityResolver resolver) throws IllegalArgumentException, ParseException {
+            Object value = _parser.parse(paramObj, resolver);
+            try {
+                _field.set(cmdObj, value);
+            } catch (IllegalAccessException ex) {
+                s_logger.error("Error initializing command " + cmdObj.getCommandName() + ", field " + _field.getName() + " is not accessible.");
+                throw new CloudRuntimeException("Internal error initializing parameters for command " + cmdObj.getCommandName() + " [field " + _field.getName() + " is not accessible]");
+            }
+        }
+    }
+
+    interface ValueParser {
+        Object parse(Object paramObj, IdentityResolver resolver) throws ParseException;
+    }
+
+    static ValueParser createParser(Class<? extends BaseCmd> cmdClass, final Field field, final Parameter annotation, final IdentityMapper identityMapper) {
+        switch (annotation.type()) {
+        case BOOLEAN:
+            return new ValueParser() {
+                @Override
+                public Object parse(Object paramObj, IdentityResolver resolver) {
+                    return Boolean.valueOf(paramObj.toString());
+                }
+            };
+        case DATE:
+            // This piece of code is for maintaining backward compatibility and support both the date formats(Bug 9724)
+            // Do the date massaging for ListEventsCmd only
+            if (ListEventsCmd.class.isAssignableFrom(cmdClass)) {
+                final boolean isStartDate = field.getName().equals("startDate");
+                final boolean isEndDate = field.getName().equals("endDate");
+                return new ValueParser() {
+                    @Override
+                    public Object parse(Object paramObj, IdentityResolver resolver) throws ParseException {
+                        Matcher matcher = BaseCmd.newInputDateFormat.matcher(paramObj.toString());
+                        if (matcher.matches()) {
+                            DateFormat newFormat = BaseCmd.NEW_INPUT_FORMAT;
+                            synchronized (newFormat) {
+                                return newFormat.parse(paramObj.toString());
+                            }
+                        }
+                        DateFormat format = BaseCmd.INPUT_FORMAT;
+                        Date date;
+                        synchronized (format) {
+                            date = format.parse(paramObj.toString());
+                        }
+                        if (isStartDate) {
+                            date = massageDate(date, 0, 0, 0);
+                        } else if (isEndDate) {
+                            date = massageDate(date, 23, 59, 59);
+                        }
+                        return date;
+                    }
+                };
+            }
+            return new ValueParser() {
+                @Override
+                public Object parse(Object paramObj, IdentityResolver resolver) throws ParseException {
+                    DateFormat format = BaseCmd.INPUT_FORMAT;
+                    synchronized (format) {
+                        format.setLenient(false);
+                        return format.parse(paramObj.toString());
+                    }
+                }
+            };
+        case FLOAT:
+            return new ValueParser() {
+                @Override
+                public Object parse(Object paramObj, IdentityResolver resolver) {
+                    return Float.valueOf(paramObj.toString());
+                }
+            };
+        case INTEGER:
+            return new ValueParser() {
+                @Override
+                public Object parse(Object paramObj, IdentityResolver resolver) {
+                    return Integer.valueOf(paramObj.toString());
+                }
+            };
+        case LIST:
+            return new ValueParser() {
+                @Override
+                @SuppressWarnings({ "unchecked", "rawtypes" })
+                public Object parse(Object paramObj, IdentityResolver resolver) {
+                    List<String> tokens = new ArrayList<String>();
+                    StringTokenizer st = new StringTokenizer(paramObj.toString(), ",");
+                    while (st.hasMoreTokens()) {
+                        tokens.add(st.nextToken());
+                    }
+
+                    CommandType listType = annotation.collectionType();
+                    Map<String, Long> ids = null;
+                    if (listType == CommandType.LONG && identityMapper != null) {
+                        // one query for the whole list instead of one per element
+                        ids = resolver.getIdentityIds(identityMapper.entityTableName(), tokens);
+                    }
+
+                    List listParam = new ArrayList();
+                    for (String token : tokens) {
+                        switch (listType) {
+                        case INTEGER:
+                            listParam.add(Integer.valueOf(token));
+                            break;
+                        case LONG:
+                            listParam.add(ids != null ? ids.get(token) : Long.valueOf(token));
+                            break;
+                        case SHORT:
+                            listParam.add(Short.valueOf(token));
+                        case STRING:
+                            listParam.add(token);
+                            break;
+                        }
+                    }
+                    return listParam;
+                }
+            };
+        case LONG:
+            if (identityMapper != null) {
+                return new ValueParser() {
+                    @Override
+                    public Object parse(Object paramObj, IdentityResolver resolver) {
+                        return resolver.getIdentityId(identityMapper.entityTableName(), paramObj.toString());
+                    }
+                };
+            }
+            return new ValueParser() {
+                @Override
+                public Object parse(Object paramObj, IdentityResolver resolver) {
+                    return Long.valueOf(paramObj.toString());
+                }
+            };
+        case SHORT:
+            return new ValueParser() {
+                @Override
+                public Object parse(Object paramObj, IdentityResolver resolver) {
+                    return Short.valueOf(paramObj.toString());
+                }
+            };
+        case STRING:
+            return new ValueParser() {
+                @Override
+                public Object parse(Object paramObj, IdentityResolver resolver) {
+                    if ((paramObj != null) && paramObj.toString().length() > annotation.length()) {
+                        s_logger.error("Value greater than max allowed length " + annotation.length() + " for param: " + field.getName());
+                        throw new InvalidParameterValueException("Value greater than max allowed length " + annotation.length() + " for param: " + field.getName());
+                    }
+                    return paramObj.toString();
+                }
+            };
+        case TZDATE:
+            return new ValueParser() {
+                @Override
+                public Object parse(Object paramObj, IdentityResolver resolver) throws ParseException {
+                    return DateUtil.parseTZDateString(paramObj.toString());
+                }
+            };
+        case MAP:
+        default:
+            return new ValueParser() {
+                @Override
+                public Object parse(Object paramObj, IdentityResolver resolver) {
+                    return paramObj;
+                }
+            };
+        }
+    }
+
+    private static Date massageDate(Date date, int hourOfDay, int minute, int second) {
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(date);
+        cal.set(Calendar.HOUR_OF_DAY, hourOfDay);
+        cal.set(Calendar.MINUTE, minute);
+        cal.set(Calendar.SECOND, second);
+        return cal.getTime();
+    }
+}
@@ -92,6 +92,7 @@ import com.cloud.storage.VMTemplateHostVO;
 import com.cloud.storage.VMTemplateSwiftVO;
 import com.cloud.storage.VMTemplateVO;
 import com.cloud.storage.Volume.Type;
+import com.cloud.storage.VolumeStats;
 import com.cloud.storage.VolumeVO;
 import com.cloud.storage.dao.DiskOfferingDao;
 import com.cloud.storage.dao.GuestOSCategoryDao;
@@ -366,6 +367,10 @@ public class ApiDBUtils {
     public static StorageStats getSecondaryStorageStatistics(long id) {
         return _statsCollector.getStorageStats(id);
     }
+
+    public static VolumeStats getVolumeStatistics(long volumeId) {
+        return _statsCollector.getVolumeStats(volumeId);
+    }
     
     public static CapacityVO getStoragePoolUsedStats(Long poolId, Long clusterId, Long podId, Long zoneId){
     	return _storageMgr.getStoragePoolUsedStats(poolId, clusterId, podId, zoneId);
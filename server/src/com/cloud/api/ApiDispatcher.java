@@ -13,20 +13,14 @@
 package com.cloud.api;
 
 import java.lang.reflect.Field;
-import java.text.DateFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Calendar;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.StringTokenizer;
-import java.util.regex.Matcher;
 
 import org.apache.log4j.Logger;
 
-import com.cloud.api.BaseCmd.CommandType;
-import com.cloud.api.commands.ListEventsCmd;
 import com.cloud.async.AsyncCommandQueued;
 import com.cloud.async.AsyncJobManager;
 import com.cloud.exception.AccountLimitException;
@@ -39,7 +33,7 @@ import com.cloud.utils.IdentityProxy;
 import com.cloud.server.ManagementServer;
 import com.cloud.user.Account;
 import com.cloud.user.UserContext;
-import com.cloud.utils.DateUtil;
+import com.cloud.utils.LRUCache;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.PluggableService;
 import com.cloud.utils.exception.CSExceptionErrorCode;
@@ -55,18 +49,22 @@ public class ApiDispatcher {
     ComponentLocator _locator;
     AsyncJobManager _asyncMgr;
     IdentityDao _identityDao;
+    ApiCommandBinder.IdentityResolver _identityResolver;
 
-    // singleton class
-    private static ApiDispatcher s_instance = new ApiDispatcher();
+    // singleton class, created on first use so setupParameters can be exercised without a management server
+    private static class InstanceHolder {
+        static final ApiDispatcher s_instance = new ApiDispatcher();
+    }
 
     public static ApiDispatcher getInstance() {
-        return s_instance;
+        return InstanceHolder.s_instance;
     }
 
     private ApiDispatcher() {
         _locator = ComponentLocator.getLocator(ManagementServer.Name);
         _asyncMgr = _locator.getManager(AsyncJobManager.class);
         _identityDao = _locator.getDao(IdentityDao.class);
+        _identityResolver = new CachingIdentityResolver(_identityDao);
     }
 
     public void dispatchCreateCmd(BaseAsyncCreateCmd cmd, Map<String, String> params) {
@@ -267,6 +265,10 @@ public class ApiDispatcher {
     }
 
     public static void setupParameters(BaseCmd cmd, Map<String, String> params) {
+        setupParameters(cmd, params, getInstance()._identityResolver);
+    }
+
+    static void setupParameters(BaseCmd cmd, Map<String, String> params, ApiCommandBinder.IdentityResolver identityResolver) {
         Map<String, Object> unpackedParams = cmd.unpackParams(params);
 
         if (cmd instanceof BaseListCmd) {
@@ -285,46 +287,27 @@ public class ApiDispatcher {
             }
         }
 
-        Field[] fields = cmd.getClass().getDeclaredFields();
-        Class<?> superClass = cmd.getClass().getSuperclass();
-        while (BaseCmd.class.isAssignableFrom(superClass)) {
-            Field[] superClassFields = superClass.getDeclaredFields();
-            if (superClassFields != null) {
-                Field[] tmpFields = new Field[fields.length + superClassFields.length];
-                System.arraycopy(fields, 0, tmpFields, 0, fields.length);
-                System.arraycopy(superClassFields, 0, tmpFields, fields.length, superClassFields.length);
-                fields = tmpFields;
-            }
-            superClass = superClass.getSuperclass();
-        }
-
-        for (Field field : fields) {
-            Parameter parameterAnnotation = field.getAnnotation(Parameter.class);
-            if ((parameterAnnotation == null) || !parameterAnnotation.expose()) {
-                continue;
-            }
-
-            IdentityMapper identityMapper = field.getAnnotation(IdentityMapper.class);
-
-            Object paramObj = unpackedParams.get(parameterAnnotation.name());
+        ApiCommandBinder binder = ApiCommandBinder.getBinder(cmd.getClass());
+        for (ApiCommandBinder.ParameterBinder parameter : binder.getParameters()) {
+            Object paramObj = unpackedParams.get(parameter.getName());
             if (paramObj == null) {
-                if (parameterAnnotation.required()) {
+                if (parameter.isRequired()) {
                     throw new ServerApiException(BaseCmd.PARAM_ERROR, "Unable to execute API command " + cmd.getCommandName().substring(0, cmd.getCommandName().length() - 8) + " due to missing parameter "
-                            + parameterAnnotation.name());
+                            + parameter.getName());
                 }
                 continue;
             }
 
             // marshall the parameter into the correct type and set the field value
             try {
-                setFieldValue(field, cmd, paramObj, parameterAnnotation, identityMapper);
+                parameter.bind(cmd, paramObj, identityResolver);
             } catch (IllegalArgumentException argEx) {
                 if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("Unable to execute API command " + cmd.getCommandName() + " due to invalid value " + paramObj + " for parameter " + parameterAnnotation.name());
+                    s_logger.debug("Unable to execute API command " + cmd.getCommandName() + " due to invalid value " + paramObj + " for parameter " + parameter.getName());
                 }
                 throw new ServerApiException(BaseCmd.PARAM_ERROR, "Unable to execute API command " + cmd.getCommandName().substring(0, cmd.getCommandName().length() - 8) + " due to invalid value " + paramObj
                         + " for parameter "
-                        + parameterAnnotation.name());
+                        + parameter.getName());
             } catch (ParseException parseEx) {
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Invalid date parameter " + paramObj + " passed to command " + cmd.getCommandName().substring(0, cmd.getCommandName().length() - 8));
@@ -343,125 +326,6 @@ public class ApiDispatcher {
         }
     }
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
-    private static void setFieldValue(Field field, BaseCmd cmdObj, Object paramObj, Parameter annotation, IdentityMapper identityMapper) throws IllegalArgumentException, ParseException {
-        try {
-            field.setAccessible(true);
-            CommandType fieldType = annotation.type();
-            switch (fieldType) {
-            case BOOLEAN:
-                field.set(cmdObj, Boolean.valueOf(paramObj.toString()));
-                break;
-            case DATE:
-                // This piece of code is for maintaining backward compatibility and support both the date formats(Bug
-// 9724)
-                // Do the date massaging for ListEventsCmd only
-                if (cmdObj instanceof ListEventsCmd) {
-                    boolean isObjInNewDateFormat = isObjInNewDateFormat(paramObj.toString());
-                    if (isObjInNewDateFormat) {
-                        DateFormat newFormat = BaseCmd.NEW_INPUT_FORMAT;
-                        synchronized (newFormat) {
-                            field.set(cmdObj, newFormat.parse(paramObj.toString()));
-                        }
-                    } else {
-                        DateFormat format = BaseCmd.INPUT_FORMAT;
-                        synchronized (format) {
-                            Date date = format.parse(paramObj.toString());
-                            if (field.getName().equals("startDate")) {
-                                date = massageDate(date, 0, 0, 0);
-                            } else if (field.getName().equals("endDate")) {
-                                date = massageDate(date, 23, 59, 59);
-                            }
-                            field.set(cmdObj, date);
-                        }
-                    }
-                } else {
-                    DateFormat format = BaseCmd.INPUT_FORMAT;
-                    format.setLenient(false);
-                    synchronized (format) {
-                        field.set(cmdObj, format.parse(paramObj.toString()));
-                    }
-                }
-                break;
-            case FLOAT:
-                field.set(cmdObj, Float.valueOf(paramObj.toString()));
-                break;
-            case INTEGER:
-                field.set(cmdObj, Integer.valueOf(paramObj.toString()));
-                break;
-            case LIST:
-                List listParam = new ArrayList();
-                StringTokenizer st = new StringTokenizer(paramObj.toString(), ",");
-                while (st.hasMoreTokens()) {
-                    String token = st.nextToken();
-                    CommandType listType = annotation.collectionType();
-                    switch (listType) {
-                    case INTEGER:
-                        listParam.add(Integer.valueOf(token));
-                        break;
-                    case LONG: {
-                        Long val = null;
-                        if (identityMapper != null)
-                            val = s_instance._identityDao.getIdentityId(identityMapper, token);
-                        else
-                            val = Long.valueOf(token);
-
-                        listParam.add(val);
-                    }
-                        break;
-                    case SHORT:
-                        listParam.add(Short.valueOf(token));
-                    case STRING:
-                        listParam.add(token);
-                        break;
-                    }
-                }
-                field.set(cmdObj, listParam);
-                break;
-            case LONG:
-                if (identityMapper != null)
-                    field.set(cmdObj, s_instance._identityDao.getIdentityId(identityMapper, paramObj.toString()));
-                else
-                    field.set(cmdObj, Long.valueOf(paramObj.toString()));
-                break;
-            case SHORT:
-                field.set(cmdObj, Short.valueOf(paramObj.toString()));
-                break;
-            case STRING:
-                if ((paramObj != null) && paramObj.toString().length() > annotation.length()) {
-                    s_logger.error("Value greater than max allowed length " + annotation.length() + " for param: " + field.getName());
-                    throw new InvalidParameterValueException("Value greater than max allowed length " + annotation.length() + " for param: " + field.getName());
-                }
-                field.set(cmdObj, paramObj.toString());
-                break;
-            case TZDATE:
-                field.set(cmdObj, DateUtil.parseTZDateString(paramObj.toString()));
-                break;
-            case MAP:
-            default:
-                field.set(cmdObj, paramObj);
-                break;
-            }
-        } catch (IllegalAccessException ex) {
-            s_logger.error("Error initializing command " + cmdObj.getCommandName() + ", field " + field.getName() + " is not accessible.");
-            throw new CloudRuntimeException("Internal error initializing parameters for command " + cmdObj.getCommandName() + " [field " + field.getName() + " is not accessible]");
-        }
-    }
-
-    private static boolean isObjInNewDateFormat(String string) {
-        Matcher matcher = BaseCmd.newInputDateFormat.matcher(string);
-        return matcher.matches();
-    }
-
-    private static Date massageDate(Date date, int hourOfDay, int minute, int second) {
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(date);
-        cal.set(Calendar.HOUR_OF_DAY, hourOfDay);
-        cal.set(Calendar.MINUTE, minute);
-        cal.set(Calendar.SECOND, second);
-        return cal.getTime();
-    }
-
     public static void plugService(BaseCmd cmd) {
 
         if (!ApiServer.isPluggableServiceCommand(cmd.getClass().getName())) {
@@ -503,6 +367,56 @@ public class ApiDispatcher {
     
     
     public static Long getIdentiyId(String tableName, String token) {
-        return s_instance._identityDao.getIdentityId(tableName, token);
+        return getInstance()._identityResolver.getIdentityId(tableName, token);
+    }
+
+    /**
+     * Keeps recently resolved ids and uuids so that a client polling with the
+     * same uuids doesn't cost a query for each of them on every call.  An id
+     * found here may belong to an entity expunged within the time to live;
+     * the managers check the entity anyway.
+     */
+    static class CachingIdentityResolver implements ApiCommandBinder.IdentityResolver {
+        private final IdentityDao _identityDao;
+        private final LRUCache<String, Long> _cache = new LRUCache<String, Long>(10000, 10 * 60 * 1000L);
+
+        CachingIdentityResolver(IdentityDao identityDao) {
+            _identityDao = identityDao;
+        }
+
+        @Override
+        public Long getIdentityId(String tableName, String identityString) {
+            String key = tableName + ":" + identityString;
+            Long id = _cache.get(key);
+            if (id == null) {
+                id = _identityDao.getIdentityId(tableName, identityString);
+                if (id != null) {
+                    _cache.put(key, id);
+                }
+            }
+            return id;
+        }
+
+        @Override
+        public Map<String, Long> getIdentityIds(String tableName, List<String> identityStrings) {
+            Map<String, Long> ids = new HashMap<String, Long>();
+            List<String> missing = new ArrayList<String>();
+            for (String identityString : identityStrings) {
+                Long id = _cache.get(tableName + ":" + identityString);
+                if (id != null) {
+                    ids.put(identityString, id);
+                } else {
+                    missing.add(identityString);
+                }
+            }
+            if (!missing.isEmpty()) {
+                Map<String, Long> found = _identityDao.getIdentityIds(tableName, missing);
+                for (Map.Entry<String, Long> entry : found.entrySet()) {
+                    _cache.put(tableName + ":" + entry.getKey(), entry.getValue());
+                }
+                ids.putAll(found);
+            }
+            return ids;
+        }
     }
 }
@@ -0,0 +1,565 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.api;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpDateGenerator;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.apache.log4j.Logger;
+
+import com.cloud.cluster.StackMaid;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * ApiNioListener serves the integration API port from a single selector
+ * thread.  Connections, including idle keep-alive ones, don't hold a thread.
+ * Only a complete request is handed to the worker pool, and when the pool
+ * and its queue are full the request is answered right away with a 503.
+ *
+ * The request handler is given the time the request was queued and the
+ * remote address through the HttpContext so it can put them in the access log.
+ */
+public class ApiNioListener extends Thread {
+    private static final Logger s_logger = Logger.getLogger(ApiNioListener.class);
+
+    public static final String CONTEXT_REMOTE_ADDRESS = "api.remote.address";
+    public static final String CONTEXT_QUEUED_AT = "api.queued.at";
+    public static final String CONTEXT_CONTINUATION = "api.continuation";
+
+    private static final int MAX_HEADER_SIZE = 16 * 1024;
+    private static final int MAX_BODY_SIZE = 1024 * 1024;
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+
+    private final HttpRequestHandler _handler;
+    private final int _port;
+    private final int _idleTimeout;
+    private final ThreadPoolExecutor _executor;
+    private final ConcurrentLinkedQueue<Connection> _responses = new ConcurrentLinkedQueue<Connection>();
+    private final HttpDateGenerator _dateGenerator = new HttpDateGenerator();
+    private Selector _selector;
+    private ServerSocketChannel _serverChannel;
+
+    /**
+     * @param handler handler to run complete requests
+     * @param port port to listen on
+     * @param workers max number of requests executed at the same time
+     * @param queueSize max number of requests waiting for a worker
+     * @param idleTimeout milliseconds a connection is kept open without a request in progress
+     */
+    public ApiNioListener(HttpRequestHandler handler, int port, int workers, int queueSize, int idleTimeout) {
+        super("ApiServer-Listener");
+        setDaemon(true);
+        _handler = handler;
+        _port = port;
+        _idleTimeout = idleTimeout;
+        _executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize), new NamedThreadFactory("ApiServer"));
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void run() {
+        try {
+            _selector = Selector.open();
+            _serverChannel = ServerSocketChannel.open();
+            _serverChannel.configureBlocking(false);
+            _serverChannel.socket().setReuseAddress(true);
+            _serverChannel.socket().bind(new InetSocketAddress(_port));
+            _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            s_logger.error("error initializing api server", e);
+            return;
+        }
+
+        s_logger.info("ApiServer listening on port " + _port + " with " + _executor.getMaximumPoolSize() + " workers");
+        long lastIdleCheck = System.currentTimeMillis();
+        while (!Thread.interrupted()) {
+            try {
+                _selector.select(1000);
+
+                Iterator<SelectionKey> it = _selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    try {
+                        if (!key.isValid()) {
+                            close(key);
+                        } else if (key.isAcceptable()) {
+                            accept();
+                        } else if (key.isReadable()) {
+                            read(key);
+                        } else if (key.isWritable()) {
+                            write(key);
+                        }
+                    } catch (CancelledKeyException e) {
+                        close(key);
+                    } catch (IOException e) {
+                        if (s_logger.isTraceEnabled()) {
+                            s_logger.trace("ApiServer:  IOException - " + e);
+                        }
+                        close(key);
+                    }
+                }
+
+                Connection conn;
+                while ((conn = _responses.poll()) != null) {
+                    startWrite(conn);
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck > 1000) {
+                    closeIdleConnections(now);
+                    lastIdleCheck = now;
+                }
+            } catch (Throwable e) {
+                s_logger.warn("Caught an exception but continuing on.", e);
+            }
+        }
+
+        _executor.shutdown();
+        try {
+            _serverChannel.close();
+            _selector.close();
+        } catch (IOException e) {
+        }
+    }
+
+    public int getQueuedRequests() {
+        return _executor.getQueue().size();
+    }
+
+    public int getActiveRequests() {
+        return _executor.getActiveCount();
+    }
+
+    protected void accept() throws IOException {
+        SocketChannel channel = _serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection conn = new Connection(channel);
+        conn._key = channel.register(_selector, SelectionKey.OP_READ, conn);
+    }
+
+    protected void read(SelectionKey key) throws IOException {
+        Connection conn = (Connection)key.attachment();
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        int count = conn._channel.read(buffer);
+        if (count < 0) {
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("ApiServer:  Client closed connection");
+            }
+            close(key);
+            return;
+        }
+        conn._lastActivity = System.currentTimeMillis();
+        conn._input.write(buffer.array(), 0, count);
+
+        HttpRequest request;
+        try {
+            request = conn.parse();
+        } catch (HttpException e) {
+            s_logger.warn("ApiServer:  Unrecoverable HTTP protocol violation " + e.getMessage());
+            conn._keepAlive = false;
+            respond(conn, createErrorResponse(HttpStatus.SC_BAD_REQUEST));
+            return;
+        }
+        if (request == null) {
+            return;
+        }
+
+        // Don't read the next request before this one is answered.
+        key.interestOps(0);
+        dispatch(conn, request);
+    }
+
+    protected void dispatch(Connection conn, HttpRequest request) {
+        dispatch(conn, request, new Continuation(conn, request));
+    }
+
+    protected void dispatch(final Connection conn, final HttpRequest request, final Continuation continuation) {
+        final long queuedAt = System.currentTimeMillis();
+        try {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    HttpContext context = new BasicHttpContext(null);
+                    context.setAttribute(CONTEXT_REMOTE_ADDRESS, conn._channel.socket().getInetAddress());
+                    context.setAttribute(CONTEXT_QUEUED_AT, queuedAt);
+                    context.setAttribute(CONTEXT_CONTINUATION, continuation);
+                    HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, HttpStatus.SC_OK, null);
+                    try {
+                        _handler.handle(request, response, context);
+                        if (continuation.park()) {
+                            // answered when the continuation is resumed
+                            response = null;
+                        }
+                    } catch (HttpException e) {
+                        s_logger.warn("ApiServer:  Unrecoverable HTTP protocol violation " + e.getMessage());
+                        continuation.cancel();
+                        conn._keepAlive = false;
+                        response = createErrorResponse(HttpStatus.SC_BAD_REQUEST);
+                    } catch (Throwable e) {
+                        s_logger.error("Unhandled exception, ", e);
+                        continuation.cancel();
+                        conn._keepAlive = false;
+                        response = createErrorResponse(HttpStatus.SC_INTERNAL_SERVER_ERROR);
+                    } finally {
+                        try {
+                            StackMaid.current().exitCleanup();
+                        } finally {
+                            if (response != null) {
+                                respond(conn, response);
+                            }
+                        }
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            s_logger.warn("ApiServer:  Too many requests queued (" + _executor.getQueue().size() + "), rejecting request from " + conn._channel.socket().getInetAddress());
+            conn._keepAlive = false;
+            respond(conn, createErrorResponse(HttpStatus.SC_SERVICE_UNAVAILABLE));
+        }
+    }
+
+    protected void respond(Connection conn, HttpResponse response) {
+        try {
+            conn._output = serialize(response, conn._keepAlive);
+        } catch (IOException e) {
+            s_logger.warn("Unable to serialize the response", e);
+            conn._keepAlive = false;
+            conn._output = ByteBuffer.allocate(0);
+        }
+        _responses.add(conn);
+        _selector.wakeup();
+    }
+
+    protected void startWrite(Connection conn) {
+        try {
+            conn._key.interestOps(SelectionKey.OP_WRITE);
+        } catch (CancelledKeyException e) {
+            close(conn._key);
+        }
+    }
+
+    protected void write(SelectionKey key) throws IOException {
+        Connection conn = (Connection)key.attachment();
+        conn._channel.write(conn._output);
+        if (conn._output.hasRemaining()) {
+            return;
+        }
+
+        conn._output = null;
+        conn._lastActivity = System.currentTimeMillis();
+        if (!conn._keepAlive) {
+            close(key);
+            return;
+        }
+        key.interestOps(SelectionKey.OP_READ);
+
+        // The client may have pipelined the next request behind this one.
+        HttpRequest request;
+        try {
+            request = conn.parse();
+        } catch (HttpException e) {
+            conn._keepAlive = false;
+            respond(conn, createErrorResponse(HttpStatus.SC_BAD_REQUEST));
+            return;
+        }
+        if (request != null) {
+            key.interestOps(0);
+            dispatch(conn, request);
+        }
+    }
+
+    protected void closeIdleConnections(long now) {
+        for (SelectionKey key : _selector.keys()) {
+            Object attachment = key.attachment();
+            if (attachment instanceof Connection) {
+                Connection conn = (Connection)attachment;
+                if (key.isValid() && key.interestOps() == SelectionKey.OP_READ && now - conn._lastActivity > _idleTimeout) {
+                    close(key);
+                }
+            }
+        }
+    }
+
+    protected void close(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+        }
+    }
+
+    protected HttpResponse createErrorResponse(int status) {
+        HttpResponse response = new BasicHttpResponse(HttpVersion.HTTP_1_1, status, null);
+        try {
+            ByteArrayEntity entity = new ByteArrayEntity(("<error>" + EnglishReasonPhraseCatalog.INSTANCE.getReason(status, Locale.ENGLISH) + "</error>").getBytes("UTF-8"));
+            entity.setContentType("text/xml");
+            response.setEntity(entity);
+        } catch (IOException e) {
+        }
+        return response;
+    }
+
+    protected ByteBuffer serialize(HttpResponse response, boolean keepAlive) throws IOException {
+        HttpEntity entity = response.getEntity();
+        byte[] content = entity != null ? EntityUtils.toByteArray(entity) : new byte[0];
+
+        int status = response.getStatusLine().getStatusCode();
+        String reason = response.getStatusLine().getReasonPhrase();
+        if (reason == null) {
+            reason = EnglishReasonPhraseCatalog.INSTANCE.getReason(status, Locale.ENGLISH);
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append(" ").append(reason != null ? reason : "").append("\r\n");
+        sb.append("Date: ").append(_dateGenerator.getCurrentDate()).append("\r\n");
+        sb.append("Server: HttpComponents/1.1\r\n");
+        for (Header header : response.getAllHeaders()) {
+            sb.append(header.getName()).append(": ").append(header.getValue()).append("\r\n");
+        }
+        if (entity != null && entity.getContentType() != null) {
+            sb.append(entity.getContentType().getName()).append(": ").append(entity.getContentType().getValue()).append("\r\n");
+        }
+        sb.append("Content-Length: ").append(content.length).append("\r\n");
+        sb.append("Connection: ").append(keepAlive ? "Keep-Alive" : "Close").append("\r\n\r\n");
+
+        byte[] head = sb.toString().getBytes("ISO-8859-1");
+        ByteBuffer buffer = ByteBuffer.allocate(head.length + content.length);
+        buffer.put(head).put(content);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Continuation lets a handler give its worker back while the request waits
+     * for something, e.g. a long poll.  The handler calls suspend() and returns
+     * without a response; resume() hands the same request to a worker again and
+     * the handler runs a second time with isResumed() true.  The connection reads
+     * nothing else until the request is answered.
+     */
+    public class Continuation {
+        private final Connection _conn;
+        private final HttpRequest _request;
+        private boolean _suspended = false;
+        private boolean _parked = false;
+        private boolean _resumePending = false;
+        private volatile boolean _resumed = false;
+
+        Continuation(Connection conn, HttpRequest request) {
+            _conn = conn;
+            _request = request;
+        }
+
+        public synchronized void suspend() {
+            _suspended = true;
+        }
+
+        public boolean isResumed() {
+            return _resumed;
+        }
+
+        /**
+         * May be called from any thread, also before the handler has returned.
+         */
+        public synchronized void resume() {
+            if (!_suspended) {
+                return;
+            }
+            if (_parked) {
+                redispatch();
+            } else {
+                _resumePending = true;
+            }
+        }
+
+        /**
+         * Called by the worker once the handler has returned.
+         * @return true if the request was suspended and is answered later.
+         */
+        synchronized boolean park() {
+            if (!_suspended) {
+                return false;
+            }
+            if (_resumePending) {
+                redispatch();
+            } else {
+                _parked = true;
+            }
+            return true;
+        }
+
+        /**
+         * Called by the worker when the handler failed; the error is the answer.
+         */
+        synchronized void cancel() {
+            _suspended = false;
+            _resumePending = false;
+        }
+
+        private void redispatch() {
+            _suspended = false;
+            _parked = false;
+            _resumePending = false;
+            _resumed = true;
+            dispatch(_conn, _request, this);
+        }
+    }
+
+    /**
+     * Connection holds the bytes received so far and the response being
+     * written.  Only the selector thread touches the channel.
+     */
+    protected static class Connection {
+        final SocketChannel _channel;
+        final Buffer _input = new Buffer();
+        SelectionKey _key;
+        ByteBuffer _output;
+        volatile boolean _keepAlive = true;
+        long _lastActivity = System.currentTimeMillis();
+
+        Connection(SocketChannel channel) {
+            _channel = channel;
+        }
+
+        /**
+         * @return the request if all of it has been received; null if more bytes are needed.
+         */
+        HttpRequest parse() throws HttpException {
+            byte[] data = _input.buf();
+            int length = _input.size();
+            int headerEnd = indexOf(data, length);
+            if (headerEnd < 0) {
+                if (length > MAX_HEADER_SIZE) {
+                    throw new HttpException("Request header is too large");
+                }
+                return null;
+            }
+
+            String[] lines;
+            try {
+                lines = new String(data, 0, headerEnd, "ISO-8859-1").split("\r\n");
+            } catch (IOException e) {
+                throw new HttpException("Unable to decode request header");
+            }
+            String[] requestLine = lines[0].split(" ");
+            if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/")) {
+                throw new HttpException("Invalid request line: " + lines[0]);
+            }
+
+            int contentLength = 0;
+            boolean keepAlive = "HTTP/1.1".equals(requestLine[2]);
+            String[][] headers = new String[lines.length - 1][];
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) {
+                    throw new HttpException("Invalid header: " + lines[i]);
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                headers[i - 1] = new String[] { name, value };
+                if ("Content-Length".equalsIgnoreCase(name)) {
+                    try {
+                        contentLength = Integer.parseInt(value);
+                    } catch (NumberFormatException e) {
+                        throw new HttpException("Invalid Content-Length: " + value);
+                    }
+                } else if ("Transfer-Encoding".equalsIgnoreCase(name) && !"identity".equalsIgnoreCase(value)) {
+                    throw new HttpException("Unsupported Transfer-Encoding: " + value);
+                } else if ("Connection".equalsIgnoreCase(name)) {
+                    keepAlive = "keep-alive".equalsIgnoreCase(value) || (keepAlive && !"close".equalsIgnoreCase(value));
+                }
+            }
+            if (contentLength < 0 || contentLength > MAX_BODY_SIZE) {
+                throw new HttpException("Invalid Content-Length: " + contentLength);
+            }
+
+            int bodyStart = headerEnd + 4;
+            if (length < bodyStart + contentLength) {
+                return null;
+            }
+
+            HttpRequest request;
+            if (contentLength > 0) {
+                byte[] body = new byte[contentLength];
+                System.arraycopy(data, bodyStart, body, 0, contentLength);
+                BasicHttpEntityEnclosingRequest enclosing = new BasicHttpEntityEnclosingRequest(requestLine[0], requestLine[1]);
+                enclosing.setEntity(new ByteArrayEntity(body));
+                request = enclosing;
+            } else {
+                request = new BasicHttpRequest(requestLine[0], requestLine[1]);
+            }
+            for (String[] header : headers) {
+                request.addHeader(header[0], header[1]);
+            }
+
+            _input.consume(bodyStart + contentLength);
+            _keepAlive = keepAlive;
+            return request;
+        }
+
+        static int indexOf(byte[] data, int length) {
+            for (int i = 0; i + 3 < length; i++) {
+                if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n') {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+
+    protected static class Buffer extends ByteArrayOutputStream {
+        byte[] buf() {
+            return buf;
+        }
+
+        void consume(int length) {
+            System.arraycopy(buf, length, buf, 0, count - length);
+            count -= length;
+        }
+    }
+}
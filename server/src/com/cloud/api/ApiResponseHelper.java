@@ -32,6 +32,7 @@ import com.cloud.acl.ControlledEntity.ACLType;
 import com.cloud.api.ApiConstants.HostDetails;
 import com.cloud.api.ApiConstants.VMDetails;
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
 import com.cloud.api.response.AccountResponse;
 import com.cloud.api.response.ApiResponseSerializer;
 import com.cloud.api.response.AsyncJobResponse;
@@ -168,6 +169,7 @@ import com.cloud.storage.VMTemplateStorageResourceAssoc.Status;
 import com.cloud.storage.VMTemplateSwiftVO;
 import com.cloud.storage.VMTemplateVO;
 import com.cloud.storage.Volume;
+import com.cloud.storage.VolumeStats;
 import com.cloud.storage.VolumeVO;
 import com.cloud.storage.snapshot.SnapshotPolicy;
 import com.cloud.template.VirtualMachineTemplate;
@@ -1011,6 +1013,10 @@ public class ApiResponseHelper implements ResponseGenerator {
 
         // Show the virtual size of the volume
         volResponse.setSize(volume.getSize());
+        VolumeStats volumeStats = ApiDBUtils.getVolumeStatistics(volume.getId());
+        if (volumeStats != null) {
+            volResponse.setPhysicalSize(volumeStats.getBytesUsed());
+        }
 
         volResponse.setCreated(volume.getCreated());
         volResponse.setState(volume.getState().toString());
@@ -2570,6 +2576,18 @@ public class ApiResponseHelper implements ResponseGenerator {
         return createAsyncJobResponse(result);
     }
 
+    @Override
+    public ListResponse<AsyncJobResponse> queryJobResults(QueryAsyncJobResultsCmd cmd) {
+        List<? extends AsyncJob> jobs = ApiDBUtils._asyncMgr.queryAsyncJobResults(cmd);
+        List<AsyncJobResponse> jobResponses = new ArrayList<AsyncJobResponse>();
+        for (AsyncJob job : jobs) {
+            jobResponses.add(createAsyncJobResponse(job));
+        }
+        ListResponse<AsyncJobResponse> response = new ListResponse<AsyncJobResponse>();
+        response.setResponses(jobResponses);
+        return response;
+    }
+
     @Override
     public SecurityGroupResponse createSecurityGroupResponseFromSecurityGroupRule(List<? extends SecurityRule> securityRules) {
         SecurityGroupResponse response = new SecurityGroupResponse();
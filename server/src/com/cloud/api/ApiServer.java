@@ -25,6 +25,7 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -101,6 +102,7 @@ import com.cloud.user.UserAccount;
 import com.cloud.user.UserContext;
 import com.cloud.user.UserVO;
 import com.cloud.utils.IdentityProxy;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.PropertiesUtil;
 import com.cloud.utils.component.ComponentLocator;
@@ -110,6 +112,7 @@ import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 import com.cloud.utils.encoding.Base64;
 import com.cloud.utils.exception.CSExceptionErrorCode;
+import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.uuididentity.dao.IdentityDao;
 
 public class ApiServer implements HttpRequestHandler {
@@ -127,6 +130,7 @@ public class ApiServer implements HttpRequestHandler {
     private AccountManager _accountMgr = null;
     private DomainManager _domainMgr = null;
     private AsyncJobManager _asyncMgr = null;
+    private int _jobQueryWaitMax = 60;
     private Account _systemAccount = null;
     private User _systemUser = null;
 
@@ -141,6 +145,18 @@ public class ApiServer implements HttpRequestHandler {
     private static List<String> s_pluggableServiceCommands = null;
     private static final DateFormat _dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
 
+    // Mac.getInstance() goes through the provider lookup every time, keep one per request thread instead
+    private static final ThreadLocal<Mac> s_hmacSha1 = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance("HmacSHA1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new CloudRuntimeException("HmacSHA1 is not available", e);
+            }
+        }
+    };
+
     private static ExecutorService _executor = new ThreadPoolExecutor(10, 150, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("ApiServer"));
 
     static {
@@ -292,9 +308,18 @@ public class ApiServer implements HttpRequestHandler {
             jsonContentType = jsonType;
         }
 
+        _jobQueryWaitMax = NumbersUtil.parseInt(configDao.getValue(Config.JobQueryWaitMax.key()), 60);
+
         if (apiPort != null) {
-            ListenerThread listenerThread = new ListenerThread(this, apiPort);
-            listenerThread.start();
+            if (Boolean.valueOf(configDao.getValue(Config.IntegrationAPINio.key()))) {
+                int workers = NumbersUtil.parseInt(configDao.getValue(Config.IntegrationAPIWorkers.key()), 50);
+                int queueSize = NumbersUtil.parseInt(configDao.getValue(Config.IntegrationAPIQueueSize.key()), 500);
+                ApiNioListener listener = new ApiNioListener(this, apiPort, workers, queueSize, 30000);
+                listener.start();
+            } else {
+                ListenerThread listenerThread = new ListenerThread(this, apiPort);
+                listenerThread.start();
+            }
         }
     }
 
@@ -302,11 +327,14 @@ public class ApiServer implements HttpRequestHandler {
     @Override
     public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
         // get some information for the access log...
+        long startTime = System.currentTimeMillis();
         StringBuffer sb = new StringBuffer();
         HttpServerConnection connObj = (HttpServerConnection) context.getAttribute("http.connection");
         if (connObj instanceof SocketHttpServerConnection) {
             InetAddress remoteAddr = ((SocketHttpServerConnection) connObj).getRemoteAddress();
             sb.append(remoteAddr.toString() + " -- ");
+        } else if (context.getAttribute(ApiNioListener.CONTEXT_REMOTE_ADDRESS) != null) {
+            sb.append(context.getAttribute(ApiNioListener.CONTEXT_REMOTE_ADDRESS).toString() + " -- ");
         }
         sb.append(request.getRequestLine());
 
@@ -341,6 +369,12 @@ public class ApiServer implements HttpRequestHandler {
                     parameterMap.put(/* name */paramValue[0], /* value */new String[] { paramValue[1] });
                 }
             }
+            ApiNioListener.Continuation continuation = (ApiNioListener.Continuation) context.getAttribute(ApiNioListener.CONTEXT_CONTINUATION);
+            if (continuation != null && suspendJobQuery(parameterMap, continuation)) {
+                sb.append(" suspended");
+                return;
+            }
+
             try {
                 // always trust commands from API port, user context will always be UID_SYSTEM/ACCOUNT_ID_SYSTEM
                 UserContext.registerContext(_systemUser.getId(), _systemAccount, null, true);
@@ -359,11 +393,61 @@ public class ApiServer implements HttpRequestHandler {
                 throw e;
             }
         } finally {
+            // time spent waiting for a worker vs. time spent executing the request
+            Long queuedAt = (Long) context.getAttribute(ApiNioListener.CONTEXT_QUEUED_AT);
+            if (queuedAt != null) {
+                sb.append(" queue=" + (startTime - queuedAt) + "ms");
+            }
+            sb.append(" exec=" + (System.currentTimeMillis() - startTime) + "ms");
             s_accessLogger.info(sb.toString());
             UserContext.unregisterContext();
         }
     }
 
+    /**
+     * A queryAsyncJobResults call with a timeout doesn't hold a worker while it waits.  The
+     * request is suspended until one of its jobs completes or the timeout expires, and then
+     * runs again without the timeout.
+     * 
+     * @return true if the request was suspended
+     */
+    private boolean suspendJobQuery(Map<String, String[]> params, final ApiNioListener.Continuation continuation) {
+        if (continuation.isResumed()) {
+            params.remove(ApiConstants.TIMEOUT);
+            return false;
+        }
+
+        String[] command = params.get("command");
+        String[] timeout = params.get(ApiConstants.TIMEOUT);
+        String[] jobIdsParam = params.get(ApiConstants.JOB_IDS);
+        if (command == null || !"queryAsyncJobResults".equals(command[0]) || timeout == null || jobIdsParam == null) {
+            return false;
+        }
+        int seconds = Math.min(NumbersUtil.parseInt(timeout[0], 0), _jobQueryWaitMax);
+        if (seconds <= 0) {
+            return false;
+        }
+
+        List<Long> jobIds = new ArrayList<Long>();
+        try {
+            for (String token : URLDecoder.decode(jobIdsParam[0], "UTF-8").split(",")) {
+                jobIds.add(ApiDispatcher.getIdentiyId("async_job", token));
+            }
+        } catch (Exception e) {
+            // let the command report the bad parameter
+            return false;
+        }
+
+        continuation.suspend();
+        _asyncMgr.waitForAnyJob(jobIds, seconds * 1000L, new Runnable() {
+            @Override
+            public void run() {
+                continuation.resume();
+            }
+        });
+        return true;
+    }
+
     @SuppressWarnings("rawtypes")
     public String handleRequest(Map params, boolean decode, String responseType, StringBuffer auditTrailSb) throws ServerApiException {
         String response = null;
@@ -623,9 +707,12 @@ public class ApiServer implements HttpRequestHandler {
 
             // if userId not null, that mean that user is logged in
             if (userId != null) {
-                Long accountId = ApiDBUtils.findUserById(userId).getAccountId();
-                Account userAccount = _accountMgr.getAccount(accountId);
-                short accountType = userAccount.getType();
+                Pair<User, Account> userAcctPair = _accountMgr.getActiveUserAccount(userId);
+                if (userAcctPair == null) {
+                    s_logger.info("session user " + userId + " no longer exists -- ignoring request");
+                    return false;
+                }
+                short accountType = userAcctPair.second().getType();
 
                 if (!isCommandAvailable(accountType, commandName)) {
                     s_logger.warn("The given command:" + commandName + " does not exist");
@@ -643,6 +730,7 @@ public class ApiServer implements HttpRequestHandler {
             // - build a request string with sorted params, make sure it's all lowercase
             // - sign the request, verify the signature is the same
             List<String> parameterNames = new ArrayList<String>();
+            StringBuilder unsignedRequestSb = new StringBuilder();
 
             for (Object paramNameObj : requestParameters.keySet()) {
                 parameterNames.add((String) paramNameObj); // put the name in a list that we'll sort later
@@ -669,11 +757,10 @@ public class ApiServer implements HttpRequestHandler {
                         expires = paramValue;
                     }
 
-                    if (unsignedRequest == null) {
-                        unsignedRequest = paramName + "=" + URLEncoder.encode(paramValue, "UTF-8").replaceAll("\\+", "%20");
-                    } else {
-                        unsignedRequest = unsignedRequest + "&" + paramName + "=" + URLEncoder.encode(paramValue, "UTF-8").replaceAll("\\+", "%20");
+                    if (unsignedRequestSb.length() > 0) {
+                        unsignedRequestSb.append('&');
                     }
+                    unsignedRequestSb.append(paramName).append('=').append(URLEncoder.encode(paramValue, "UTF-8").replace("+", "%20"));
                 }
             }
 
@@ -740,9 +827,9 @@ public class ApiServer implements HttpRequestHandler {
                 return false;
             }
 
-            unsignedRequest = unsignedRequest.toLowerCase();
+            unsignedRequest = unsignedRequestSb.toString().toLowerCase();
 
-            Mac mac = Mac.getInstance("HmacSHA1");
+            Mac mac = s_hmacSha1.get();
             SecretKeySpec keySpec = new SecretKeySpec(secretKey.getBytes(), "HmacSHA1");
             mac.init(keySpec);
             mac.update(unsignedRequest.getBytes());
@@ -853,13 +940,15 @@ public class ApiServer implements HttpRequestHandler {
     }
 
     public boolean verifyUser(Long userId) {
-        User user = _accountMgr.getUserIncludingRemoved(userId);
+        Pair<User, Account> userAcctPair = _accountMgr.getActiveUserAccount(userId);
+        User user = null;
         Account account = null;
-        if (user != null) {
-            account = _accountMgr.getAccount(user.getAccountId());
+        if (userAcctPair != null) {
+            user = userAcctPair.first();
+            account = userAcctPair.second();
         }
 
-        if ((user == null) || (user.getRemoved() != null) || !user.getState().equals(Account.State.enabled) || (account == null) || !account.getState().equals(Account.State.enabled)) {
+        if ((user == null) || !user.getState().equals(Account.State.enabled) || (account == null) || !account.getState().equals(Account.State.enabled)) {
             s_logger.warn("Deleted/Disabled/Locked user with id=" + userId + " attempting to access public API");
             return false;
         }
@@ -102,6 +102,8 @@ public class ApiServlet extends HttpServlet {
     @SuppressWarnings("unchecked")
     private void processRequest(HttpServletRequest req, HttpServletResponse resp) {
         StringBuffer auditTrailSb = new StringBuffer();
+        long authStartTime = 0;
+        long commandStartTime = 0;
         auditTrailSb.append(" " + req.getRemoteAddr());
         auditTrailSb.append(" -- " + req.getMethod() + " ");
         // get the response format since we'll need it in a couple of places
@@ -233,6 +235,7 @@ public class ApiServlet extends HttpServlet {
             // if a API key exists
             UserContext.registerContext(_accountMgr.getSystemUser().getId(), _accountMgr.getSystemAccount(), null, false);
             Long userId = null;
+            authStartTime = System.currentTimeMillis();
 
             if (!isNew) {
                 userId = (Long) session.getAttribute("userid");
@@ -278,7 +281,9 @@ public class ApiServlet extends HttpServlet {
                 }
             }
 
-            if (_apiServer.verifyRequest(params, userId)) {
+            boolean verified = _apiServer.verifyRequest(params, userId);
+            commandStartTime = System.currentTimeMillis();
+            if (verified) {
                 /*
                  * if (accountObj != null) { Account userAccount = (Account)accountObj; if (userAccount.getType() ==
                  * Account.ACCOUNT_TYPE_NORMAL) { params.put(BaseCmd.Properties.USER_ID.getName(), new String[] { userId });
@@ -330,6 +335,10 @@ public class ApiServlet extends HttpServlet {
                 auditTrailSb.append(" unknown exception writing api response");
             }
         } finally {
+            // time spent authenticating the request vs. time spent executing the command
+            if (commandStartTime > 0) {
+                auditTrailSb.append(" auth=" + (commandStartTime - authStartTime) + "ms exec=" + (System.currentTimeMillis() - commandStartTime) + "ms");
+            }
             s_accessLogger.info(auditTrailSb.toString());
             // cleanup user context to prevent from being peeked in other request context
             UserContext.unregisterContext();
@@ -71,6 +71,9 @@ public class GetUsageRecordsCmd extends BaseListCmd {
     @Parameter(name=ApiConstants.TYPE, type=CommandType.LONG, description="List usage records for the specified usage type")
     private Long usageType;
 
+    @Parameter(name=ApiConstants.ROLLUP, type=CommandType.BOOLEAN, description="If true, lists the usage summed up per account, usage type, offering and zone over the date range instead of the usage records. The sums are read from the daily and monthly usage rollups where they cover the range.")
+    private Boolean rollup;
+
     /////////////////////////////////////////////////////
     /////////////////// Accessors ///////////////////////
     /////////////////////////////////////////////////////
@@ -102,6 +105,10 @@ public class GetUsageRecordsCmd extends BaseListCmd {
     public Long getProjectId() {
         return projectId;
     }
+
+    public boolean isRollup() {
+        return (rollup != null) && rollup;
+    }
     
     /////////////////////////////////////////////////////
     ///////////////  Misc parameters  ///////////////////
@@ -243,7 +250,17 @@ public class GetUsageRecordsCmd extends BaseListCmd {
                 usageRecResponse.setVmName(usageRecord.getVmName());
                 usageRecResponse.setTemplateId(usageRecord.getTemplateId());
                 
-                if(usageRecord.getUsageType() == UsageTypes.RUNNING_VM || usageRecord.getUsageType() == UsageTypes.ALLOCATED_VM){
+                if (usageRecord.getUsageId() == null && usageRecord.getNetworkId() == null) {
+                    // usage summed up from the rollups, only the offering is known
+                    if (usageRecord.getOfferingId() != null) {
+                        if (usageRecord.getUsageType() == UsageTypes.NETWORK_OFFERING) {
+                            usageRecResponse.setOfferingId(identityDao.getIdentityUuid("network_offerings", usageRecord.getOfferingId().toString()));
+                        } else {
+                            usageRecResponse.setOfferingId(identityDao.getIdentityUuid("disk_offering", usageRecord.getOfferingId().toString()));
+                        }
+                    }
+
+                } else if(usageRecord.getUsageType() == UsageTypes.RUNNING_VM || usageRecord.getUsageType() == UsageTypes.ALLOCATED_VM){
                 	//Service Offering Id
                 	usageRecResponse.setOfferingId(identityDao.getIdentityUuid("disk_offering", usageRecord.getOfferingId().toString()));
                 	//VM Instance ID
@@ -0,0 +1,128 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.api.commands;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.api.ApiConstants;
+import com.cloud.api.ApiDBUtils;
+import com.cloud.api.BaseListCmd;
+import com.cloud.api.IdentityMapper;
+import com.cloud.api.Implementation;
+import com.cloud.api.Parameter;
+import com.cloud.api.response.ListResponse;
+import com.cloud.projects.Project;
+import com.cloud.server.ManagementServerExt;
+import com.cloud.server.api.response.CurrentUsageResponse;
+import com.cloud.usage.UsageMeterVO;
+import com.cloud.user.Account;
+
+@Implementation(description="Lists the usage of accounts since the last usage job, as metered by the usage server. The usage records remain the source of truth.", responseObject=CurrentUsageResponse.class)
+public class ListCurrentUsageCmd extends BaseListCmd {
+    public static final Logger s_logger = Logger.getLogger(ListCurrentUsageCmd.class.getName());
+
+    private static final String s_name = "listcurrentusageresponse";
+
+    /////////////////////////////////////////////////////
+    //////////////// API parameters /////////////////////
+    /////////////////////////////////////////////////////
+
+    @Parameter(name=ApiConstants.ACCOUNT, type=CommandType.STRING, description="List the usage of the specified user.")
+    private String accountName;
+
+    @IdentityMapper(entityTableName="domain")
+    @Parameter(name=ApiConstants.DOMAIN_ID, type=CommandType.LONG, description="List the usage of the specified domain.")
+    private Long domainId;
+
+    @IdentityMapper(entityTableName="account")
+    @Parameter(name=ApiConstants.ACCOUNT_ID, type=CommandType.LONG, description="List the usage of the specified account")
+    private Long accountId;
+
+    @IdentityMapper(entityTableName="projects")
+    @Parameter(name=ApiConstants.PROJECT_ID, type=CommandType.LONG, description="List the usage of the specified project")
+    private Long projectId;
+
+    @Parameter(name=ApiConstants.TYPE, type=CommandType.LONG, description="List the usage of the specified usage type")
+    private Long usageType;
+
+    /////////////////////////////////////////////////////
+    /////////////////// Accessors ///////////////////////
+    /////////////////////////////////////////////////////
+
+    public String getAccountName() {
+        return accountName;
+    }
+
+    public Long getDomainId() {
+        return domainId;
+    }
+
+    public Long getAccountId() {
+        return accountId;
+    }
+
+    public Long getProjectId() {
+        return projectId;
+    }
+
+    public Long getUsageType() {
+        return usageType;
+    }
+
+    /////////////////////////////////////////////////////
+    /////////////// API Implementation///////////////////
+    /////////////////////////////////////////////////////
+
+    @Override
+    public String getCommandName() {
+        return s_name;
+    }
+
+    @Override
+    public void execute(){
+        ManagementServerExt _mgrExt = (ManagementServerExt)_mgr;
+        List<UsageMeterVO> meters = _mgrExt.listCurrentUsage(this);
+        DecimalFormat decimalFormat = new DecimalFormat("###########.######");
+        ListResponse<CurrentUsageResponse> response = new ListResponse<CurrentUsageResponse>();
+        List<CurrentUsageResponse> usageResponses = new ArrayList<CurrentUsageResponse>();
+        for (UsageMeterVO meter : meters) {
+            CurrentUsageResponse usageResponse = new CurrentUsageResponse();
+            Account account = ApiDBUtils.findAccountByIdIncludingRemoved(meter.getAccountId());
+            if (account != null && account.getType() == Account.ACCOUNT_TYPE_PROJECT) {
+                Project project = ApiDBUtils.findProjectByProjectAccountId(account.getId());
+                usageResponse.setProjectId(project.getId());
+                usageResponse.setProjectName(project.getName());
+            } else if (account != null) {
+                usageResponse.setAccountId(account.getId());
+                usageResponse.setAccountName(account.getAccountName());
+            }
+            usageResponse.setDomainId(meter.getDomainId());
+            usageResponse.setZoneId(meter.getZoneId());
+            usageResponse.setUsageType(meter.getUsageType());
+            usageResponse.setRawUsage(decimalFormat.format(meter.getRawUsage()));
+            usageResponse.setAccruing(meter.getOpenCount());
+            usageResponse.setStartDate(meter.getPeriodStart());
+            usageResponse.setEndDate(meter.getUpdated());
+            usageResponse.setObjectName("currentusage");
+            usageResponses.add(usageResponse);
+        }
+
+        response.setResponses(usageResponses);
+        response.setResponseName(getCommandName());
+        this.setResponseObject(response);
+    }
+}
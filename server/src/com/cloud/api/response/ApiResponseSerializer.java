@@ -76,7 +76,7 @@ public class ApiResponseSerializer {
                     jsonStr = unescape(jsonStr);
 
                     if (count != null && count != 0) {
-                        sb.append("{ \"" + ApiConstants.COUNT + "\":" + ((ListResponse) result).getCount() + " ,\"" + responses.get(0).getObjectName() + "\" : [  " + jsonStr);
+                        sb.append("{ \"" + ApiConstants.COUNT + "\":" + ((ListResponse) result).getCount() + " ," + toJSONPagingString((ListResponse) result) + "\"" + responses.get(0).getObjectName() + "\" : [  " + jsonStr);
                     }
                     for (int i = 1; i < count; i++) {
                         jsonStr = gson.toJson(responses.get(i));
@@ -112,6 +112,17 @@ public class ApiResponseSerializer {
         return null;
     }
 
+    private static String toJSONPagingString(ListResponse<?> result) {
+        StringBuilder sb = new StringBuilder();
+        if (result.getEstimatedCount() != null) {
+            sb.append("\"" + ApiConstants.ESTIMATED_COUNT + "\":" + result.getEstimatedCount() + " ,");
+        }
+        if (result.getNextPageToken() != null) {
+            sb.append("\"" + ApiConstants.NEXT_PAGE_TOKEN + "\":\"" + result.getNextPageToken() + "\" ,");
+        }
+        return sb.toString();
+    }
+
     private static String toXMLSerializedString(ResponseObject result) {
         StringBuilder sb = new StringBuilder();
         sb.append("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>");
@@ -123,6 +134,14 @@ public class ApiResponseSerializer {
             if (count != null && count != 0) {
                 sb.append("<" + ApiConstants.COUNT + ">" + ((ListResponse) result).getCount() + "</" + ApiConstants.COUNT + ">");
             }
+            Integer estimatedCount = ((ListResponse) result).getEstimatedCount();
+            if (estimatedCount != null) {
+                sb.append("<" + ApiConstants.ESTIMATED_COUNT + ">" + estimatedCount + "</" + ApiConstants.ESTIMATED_COUNT + ">");
+            }
+            String nextPageToken = ((ListResponse) result).getNextPageToken();
+            if (nextPageToken != null) {
+                sb.append("<" + ApiConstants.NEXT_PAGE_TOKEN + ">" + nextPageToken + "</" + ApiConstants.NEXT_PAGE_TOKEN + ">");
+            }
             List<? extends ResponseObject> responses = ((ListResponse) result).getResponses();
             if ((responses != null) && !responses.isEmpty()) {
                 for (ResponseObject obj : responses) {
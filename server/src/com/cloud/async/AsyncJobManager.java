@@ -15,6 +15,7 @@ package com.cloud.async;
 import java.util.List;
 
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
 import com.cloud.utils.component.Manager;
 
 public interface AsyncJobManager extends Manager {
@@ -43,4 +44,24 @@ public interface AsyncJobManager extends Manager {
      * @return an async-call result object
      */
     public AsyncJob queryAsyncJobResult(QueryAsyncJobResultCmd cmd);
+
+    /**
+     * Queries for the status or final result of several async jobs.  Returns right away,
+     * the timeout of the command is waited out by ApiServer before it is dispatched.
+     * @param cmd the command that specifies the job ids
+     * @return the jobs, in the order they were asked for
+     */
+    public List<? extends AsyncJob> queryAsyncJobResults(QueryAsyncJobResultsCmd cmd);
+
+    /**
+     * Runs the callback once, when one of the jobs completes on any management server
+     * or when the timeout expires.  The callback runs on the thread that completes the
+     * job or on a timer thread, so it must not block.
+     */
+    public void waitForAnyJob(List<Long> jobIds, long timeoutMs, Runnable callback);
+
+    /**
+     * Wakes up the waiters on a job that was completed on another management server.
+     */
+    public void notifyJobWaiters(long jobId);
 }
@@ -21,7 +21,9 @@ package com.cloud.async;
 import java.io.File;
 import java.io.FileInputStream;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -30,7 +32,9 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -44,7 +48,10 @@ import com.cloud.api.ApiSerializerHelper;
 import com.cloud.api.BaseAsyncCmd;
 import com.cloud.api.BaseCmd;
 import com.cloud.api.ServerApiException;
+import com.cloud.agent.api.AsyncJobCompletedCommand;
+import com.cloud.agent.api.Command;
 import com.cloud.api.commands.QueryAsyncJobResultCmd;
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
 import com.cloud.api.response.ExceptionResponse;
 import com.cloud.async.dao.AsyncJobDao;
 import com.cloud.cluster.ClusterManager;
@@ -83,6 +90,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     private static final int MAX_ONETIME_SCHEDULE_SIZE = 50;
     private static final int HEARTBEAT_INTERVAL = 2000;
     private static final int GC_INTERVAL = 10000;				// 10 seconds
+    private static final int COMPLETION_BROADCAST_INTERVAL = 500;
     
     private String _name;
     
@@ -98,8 +106,15 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 
     private final ScheduledExecutorService _heartbeatScheduler =
         Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Heartbeat"));
+    private final ScheduledExecutorService _waiterScheduler =
+        Executors.newScheduledThreadPool(1, new NamedThreadFactory("AsyncJobMgr-Waiter"));
     private ExecutorService _executor;
 
+    // waiters on jobs that haven't completed yet, see waitForAnyJob()
+    private final Map<Long, List<JobWaiter>> _jobWaiters = new HashMap<Long, List<JobWaiter>>();
+    // jobs completed here since the last AsyncJobCompletedCommand was broadcast
+    private final List<Long> _completedJobIds = new ArrayList<Long>();
+
     @Override
 	public AsyncJobExecutorContext getExecutorContext() {
 		return _context;
@@ -188,6 +203,12 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     	} catch(Exception e) {
     		s_logger.error("Unexpected exception while completing async job-" + jobId, e);
     		txt.rollback();
+    		return;
+    	}
+
+    	notifyJobWaiters(jobId);
+    	synchronized(_completedJobIds) {
+    		_completedJobIds.add(jobId);
     	}
     }
 
@@ -297,6 +318,14 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
             throw new InvalidParameterValueException("Unable to find a job by id " + cmd.getId());
         }
        
+        checkJobAccess(caller, job);
+        
+        //poll the job
+        queryAsyncJobResult(cmd.getId());
+        return _jobDao.findById(cmd.getId());
+    }
+
+    private void checkJobAccess(Account caller, AsyncJobVO job) {
         User userJobOwner = _accountMgr.getUserIncludingRemoved(job.getUserId());
         Account jobOwner = _accountMgr.getAccount(userJobOwner.getAccountId());
         
@@ -309,10 +338,166 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
         } else if (caller.getType() == Account.ACCOUNT_TYPE_DOMAIN_ADMIN) {
             _accountMgr.checkAccess(caller, null, true, jobOwner);
         }
-        
-        //poll the job
-        queryAsyncJobResult(cmd.getId());
-        return _jobDao.findById(cmd.getId());
+    }
+
+    @Override
+    public List<AsyncJobVO> queryAsyncJobResults(QueryAsyncJobResultsCmd cmd) {
+        return queryAsyncJobResults(UserContext.current().getCaller(), cmd);
+    }
+
+    List<AsyncJobVO> queryAsyncJobResults(Account caller, QueryAsyncJobResultsCmd cmd) {
+        List<Long> jobIds = cmd.getIds();
+
+        List<AsyncJobVO> jobs = listJobsInOrder(jobIds);
+        for (AsyncJobVO job : jobs) {
+            checkJobAccess(caller, job);
+        }
+
+        // the timeout is handled by ApiServer, which suspends the request without holding
+        // a worker thread; here the call never waits so it can't park a servlet thread
+
+        List<Long> pendingJobIds = new ArrayList<Long>();
+        for (AsyncJobVO job : jobs) {
+            if (job.getStatus() == AsyncJobResult.STATUS_IN_PROGRESS) {
+                pendingJobIds.add(job.getId());
+            }
+        }
+        if (!pendingJobIds.isEmpty()) {
+            _jobDao.updateLastPolled(pendingJobIds, DateUtil.currentGMTTime());
+        }
+        return jobs;
+    }
+
+    private List<AsyncJobVO> listJobsInOrder(List<Long> jobIds) {
+        Map<Long, AsyncJobVO> jobsById = new HashMap<Long, AsyncJobVO>();
+        for (AsyncJobVO job : _jobDao.listByIds(jobIds)) {
+            jobsById.put(job.getId(), job);
+        }
+        List<AsyncJobVO> jobs = new ArrayList<AsyncJobVO>(jobIds.size());
+        for (Long jobId : jobIds) {
+            AsyncJobVO job = jobsById.get(jobId);
+            if (job == null) {
+                throw new InvalidParameterValueException("Unable to find a job by id " + jobId);
+            }
+            jobs.add(job);
+        }
+        return jobs;
+    }
+
+    private static boolean isAnyJobDone(List<AsyncJobVO> jobs) {
+        for (AsyncJobVO job : jobs) {
+            if (job.getStatus() != AsyncJobResult.STATUS_IN_PROGRESS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void waitForAnyJob(List<Long> jobIds, long timeoutMs, Runnable callback) {
+        JobWaiter waiter = new JobWaiter(jobIds, callback);
+        synchronized (_jobWaiters) {
+            for (Long jobId : jobIds) {
+                List<JobWaiter> waiters = _jobWaiters.get(jobId);
+                if (waiters == null) {
+                    waiters = new ArrayList<JobWaiter>();
+                    _jobWaiters.put(jobId, waiters);
+                }
+                waiters.add(waiter);
+            }
+        }
+        waiter._timeout = _waiterScheduler.schedule(waiter, timeoutMs, TimeUnit.MILLISECONDS);
+
+        // a job may have completed before the waiter was registered
+        List<AsyncJobVO> jobs = _jobDao.listByIds(jobIds);
+        if (jobs.size() < jobIds.size() || isAnyJobDone(jobs)) {
+            waiter.fire();
+        }
+    }
+
+    /**
+     * Tells the other management servers about the jobs completed here, one command
+     * per interval rather than one per job, so that their waiters can be woken up.
+     */
+    private Runnable getCompletionBroadcastTask() {
+        return new Runnable() {
+            @Override
+            public void run() {
+                long[] jobIds;
+                synchronized (_completedJobIds) {
+                    if (_completedJobIds.isEmpty() || _clusterMgr == null) {
+                        return;
+                    }
+                    jobIds = new long[_completedJobIds.size()];
+                    for (int i = 0; i < jobIds.length; i++) {
+                        jobIds[i] = _completedJobIds.get(i);
+                    }
+                    _completedJobIds.clear();
+                }
+
+                try {
+                    _clusterMgr.broadcast(0, new Command[] { new AsyncJobCompletedCommand(jobIds) });
+                } catch (Throwable e) {
+                    s_logger.warn("Unable to tell the other management servers that " + jobIds.length + " jobs completed", e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void notifyJobWaiters(long jobId) {
+        List<JobWaiter> waiters;
+        synchronized (_jobWaiters) {
+            waiters = _jobWaiters.remove(jobId);
+        }
+        if (waiters != null) {
+            for (JobWaiter waiter : waiters) {
+                waiter.fire();
+            }
+        }
+    }
+
+    private class JobWaiter implements Runnable {
+        final List<Long> _jobIds;
+        final Runnable _callback;
+        final AtomicBoolean _fired = new AtomicBoolean(false);
+        volatile ScheduledFuture<?> _timeout;
+
+        JobWaiter(List<Long> jobIds, Runnable callback) {
+            _jobIds = jobIds;
+            _callback = callback;
+        }
+
+        @Override
+        public void run() {
+            // timed out
+            fire();
+        }
+
+        void fire() {
+            if (!_fired.compareAndSet(false, true)) {
+                return;
+            }
+            synchronized (_jobWaiters) {
+                for (Long jobId : _jobIds) {
+                    List<JobWaiter> waiters = _jobWaiters.get(jobId);
+                    if (waiters != null) {
+                        waiters.remove(this);
+                        if (waiters.isEmpty()) {
+                            _jobWaiters.remove(jobId);
+                        }
+                    }
+                }
+            }
+            if (_timeout != null) {
+                _timeout.cancel(false);
+            }
+            try {
+                _callback.run();
+            } catch (Throwable e) {
+                s_logger.warn("Unexpected exception while waking up the waiter on jobs " + _jobIds, e);
+            }
+        }
     }
 
     @Override @DB
@@ -787,6 +972,8 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
 			HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
     	_heartbeatScheduler.scheduleAtFixedRate(getGCTask(), GC_INTERVAL,
 			GC_INTERVAL, TimeUnit.MILLISECONDS);
+    	_waiterScheduler.scheduleWithFixedDelay(getCompletionBroadcastTask(), COMPLETION_BROADCAST_INTERVAL,
+    		COMPLETION_BROADCAST_INTERVAL, TimeUnit.MILLISECONDS);
     	
         return true;
     }
@@ -805,6 +992,7 @@ public class AsyncJobManagerImpl implements AsyncJobManager, ClusterManagerListe
     @Override
     public boolean stop() {
     	_heartbeatScheduler.shutdown();
+    	_waiterScheduler.shutdown();
     	_executor.shutdown();
         return true;
     }
@@ -24,4 +24,6 @@ public interface AsyncJobDao extends GenericDao<AsyncJobVO, Long> {
 	List<AsyncJobVO> findInstancePendingAsyncJobs(AsyncJob.Type instanceType, Long accountId);
 	List<AsyncJobVO> getExpiredJobs(Date cutTime, int limit);
 	void resetJobProcess(long msid, int jobResultCode, String jobResultMessage);
+	List<AsyncJobVO> listByIds(List<Long> jobIds);
+	void updateLastPolled(List<Long> jobIds, Date lastPolled);
 }
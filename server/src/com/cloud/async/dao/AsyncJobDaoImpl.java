@@ -38,6 +38,7 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
 	private final SearchBuilder<AsyncJobVO> pendingAsyncJobSearch;	
 	private final SearchBuilder<AsyncJobVO> pendingAsyncJobsSearch;	
 	private final SearchBuilder<AsyncJobVO> expiringAsyncJobSearch;		
+	private final SearchBuilder<AsyncJobVO> jobIdsSearch;
 	
 	public AsyncJobDaoImpl() {
 		pendingAsyncJobSearch = createSearchBuilder();
@@ -62,6 +63,29 @@ public class AsyncJobDaoImpl extends GenericDaoBase<AsyncJobVO, Long> implements
 		expiringAsyncJobSearch.and("created", expiringAsyncJobSearch.entity().getCreated(), 
 			SearchCriteria.Op.LTEQ);
 		expiringAsyncJobSearch.done();
+
+		jobIdsSearch = createSearchBuilder();
+		jobIdsSearch.and("ids", jobIdsSearch.entity().getId(), SearchCriteria.Op.IN);
+		jobIdsSearch.and("status", jobIdsSearch.entity().getStatus(), SearchCriteria.Op.EQ);
+		jobIdsSearch.done();
+	}
+
+	@Override
+	public List<AsyncJobVO> listByIds(List<Long> jobIds) {
+		SearchCriteria<AsyncJobVO> sc = jobIdsSearch.create();
+		sc.setParameters("ids", jobIds.toArray());
+		return listIncludingRemovedBy(sc);
+	}
+
+	@Override
+	public void updateLastPolled(List<Long> jobIds, Date lastPolled) {
+		SearchCriteria<AsyncJobVO> sc = jobIdsSearch.create();
+		sc.setParameters("ids", jobIds.toArray());
+		sc.setParameters("status", AsyncJobResult.STATUS_IN_PROGRESS);
+
+		AsyncJobVO job = createForUpdate();
+		job.setLastPolled(lastPolled);
+		update(job, sc);
 	}
 	
 	public AsyncJobVO findInstancePendingAsyncJob(String instanceType, long instanceId) {
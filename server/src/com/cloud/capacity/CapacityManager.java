@@ -12,6 +12,7 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.capacity;
 
+import com.cloud.capacity.PoolCapacityLedger.PoolUsage;
 import com.cloud.host.HostVO;
 import com.cloud.storage.StoragePoolVO;
 import com.cloud.storage.VMTemplateVO;
@@ -41,7 +42,27 @@ public interface CapacityManager extends Manager {
 	/**
      * @param pool storage pool
      * @param templateForVmCreation template that will be used for vm creation 
-     * @return total allocated capacity for the storage pool
+     * @return total allocated capacity for the storage pool, summed in the database
      */
     long getAllocatedPoolCapacity(StoragePoolVO pool, VMTemplateVO templateForVmCreation);
+
+    /**
+     * @param poolId id of the storage pool
+     * @return volumes and templates allocated on the pool, kept in memory between calls.
+     *         It may lag behind the database, so it is good for ranking pools but not for capacity checks.
+     */
+    PoolUsage getPoolUsage(long poolId);
+
+    /**
+     * Keeps the allocated pool capacity up to date when a volume is placed on,
+     * moved between or removed from storage pools, or changes size.
+     * @param oldPoolId pool the volume was on, null if it was on none
+     * @param newPoolId pool the volume is on now, null if it is on none
+     */
+    void volumeAllocationChanged(Long oldPoolId, long oldSize, Long newPoolId, long newSize);
+
+    /**
+     * Makes the allocated capacity of the pool be summed again, used when templates are copied to or removed from it.
+     */
+    void invalidatePoolCapacity(long poolId);
 }
@@ -18,6 +18,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.ejb.Local;
 import javax.naming.ConfigurationException;
@@ -33,6 +34,7 @@ import com.cloud.agent.api.Command;
 import com.cloud.agent.api.StartupCommand;
 import com.cloud.agent.api.StartupRoutingCommand;
 import com.cloud.api.ApiDBUtils;
+import com.cloud.capacity.PoolCapacityLedger.PoolUsage;
 import com.cloud.capacity.dao.CapacityDao;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.ConfigurationManager;
@@ -107,6 +109,8 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     long _extraBytesPerVolume = 0;
     private float _storageOverProvisioningFactor = 1.0f;
     private float _cpuOverProvisioningFactor = 1.0f;
+    private int _poolCapacityReconcileInterval;
+    private final PoolCapacityLedger _poolLedger = new PoolCapacityLedger();
 
     @Override
     public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
@@ -114,6 +118,7 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
         _vmCapacityReleaseInterval = NumbersUtil.parseInt(_configDao.getValue(Config.CapacitySkipcountingHours.key()), 3600);
         _storageOverProvisioningFactor = NumbersUtil.parseFloat(_configDao.getValue(Config.StorageOverprovisioningFactor.key()), 1.0f);
         _cpuOverProvisioningFactor = NumbersUtil.parseFloat(_configDao.getValue(Config.CPUOverprovisioningFactor.key()), 1.0f);
+        _poolCapacityReconcileInterval = NumbersUtil.parseInt(_configDao.getValue(Config.StoragePoolCapacityReconcileInterval.key()), 600);
 
         if (_cpuOverProvisioningFactor < 1.0f) {
             _cpuOverProvisioningFactor = 1.0f;
@@ -130,6 +135,9 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     public boolean start() {
     	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_PREPARE_MAINTENANCE_AFTER, this);
     	_resourceMgr.registerResourceEvent(ResourceListener.EVENT_CANCEL_MAINTENANCE_AFTER, this);
+        if (_poolCapacityReconcileInterval > 0) {
+            _executor.scheduleWithFixedDelay(new PoolCapacityReconciler(), _poolCapacityReconcileInterval, _poolCapacityReconcileInterval, TimeUnit.SECONDS);
+        }
         return true;
     }
 
@@ -436,22 +444,14 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
     @Override
     public long getAllocatedPoolCapacity(StoragePoolVO pool, VMTemplateVO templateForVmCreation){
       
-        // Get size for all the volumes
-        Pair<Long, Long> sizes = _volumeDao.getCountAndTotalByPool(pool.getId());
-        long totalAllocatedSize = sizes.second() + sizes.first() * _extraBytesPerVolume;
-
-        // Iterate through all templates on this storage pool
-        boolean tmpinstalled = false;
-        List<VMTemplateStoragePoolVO> templatePoolVOs;
-        templatePoolVOs = _templatePoolDao.listByPoolId(pool.getId());
-        
-        for (VMTemplateStoragePoolVO templatePoolVO : templatePoolVOs) {            
-            if ((templateForVmCreation != null) && !tmpinstalled && (templatePoolVO.getTemplateId() == templateForVmCreation.getId())) {
-                tmpinstalled = true;
-            }
-            long templateSize = templatePoolVO.getTemplateSize();
-            totalAllocatedSize += templateSize + _extraBytesPerVolume;
+        // Volumes and templates on this storage pool, summed again as the ledger may lag behind other management servers
+        PoolUsage usage = loadPoolUsage(pool.getId());
+        long drift = _poolLedger.load(pool.getId(), usage);
+        if (drift != 0 && s_logger.isDebugEnabled()) {
+            s_logger.debug("Allocated capacity of storage pool " + pool.getId() + " was off by " + drift + " bytes");
         }
+        long totalAllocatedSize = usage.getAllocatedBytes(_extraBytesPerVolume);
+        boolean tmpinstalled = (templateForVmCreation != null) && usage.hasTemplate(templateForVmCreation.getId());
         
         // Add the size for the templateForVmCreation if its not already present
         if ((templateForVmCreation != null) && !tmpinstalled) {
@@ -479,7 +479,51 @@ public class CapacityManagerImpl implements CapacityManager, StateListener<State
         
         return totalAllocatedSize;
     }
-    
+
+    @Override
+    public PoolUsage getPoolUsage(long poolId) {
+        PoolUsage usage = _poolLedger.get(poolId);
+        if (usage == null) {
+            usage = loadPoolUsage(poolId);
+            _poolLedger.load(poolId, usage);
+        }
+        return usage;
+    }
+
+    protected PoolUsage loadPoolUsage(long poolId) {
+        Pair<Long, Long> sizes = _volumeDao.getCountAndTotalByPool(poolId);
+        Map<Long, Long> templateSizes = new HashMap<Long, Long>();
+        for (VMTemplateStoragePoolVO templatePoolVO : _templatePoolDao.listByPoolId(poolId)) {
+            templateSizes.put(templatePoolVO.getTemplateId(), templatePoolVO.getTemplateSize());
+        }
+        return new PoolUsage(sizes.first(), sizes.second(), templateSizes);
+    }
+
+    @Override
+    public void volumeAllocationChanged(Long oldPoolId, long oldSize, Long newPoolId, long newSize) {
+        _poolLedger.volumeChanged(oldPoolId, oldSize, newPoolId, newSize);
+    }
+
+    @Override
+    public void invalidatePoolCapacity(long poolId) {
+        _poolLedger.invalidate(poolId);
+    }
+
+    protected class PoolCapacityReconciler implements Runnable {
+        @Override
+        public void run() {
+            try {
+                for (Long poolId : _poolLedger.listPools()) {
+                    long drift = _poolLedger.load(poolId, loadPoolUsage(poolId));
+                    if (drift != 0 && s_logger.isDebugEnabled()) {
+                        s_logger.debug("Allocated capacity of storage pool " + poolId + " was off by " + drift + " bytes, reloaded it from the database");
+                    }
+                }
+            } catch (Throwable t) {
+                s_logger.warn("Unable to reconcile the allocated capacity of storage pools", t);
+            }
+        }
+    }
     
     @DB
     @Override
@@ -0,0 +1,142 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.capacity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PoolCapacityLedger keeps what is allocated on each storage pool in memory so
+ * the allocators do not have to sum the volumes and templates of every pool
+ * with SQL on every allocation.  A pool is loaded from the database the first
+ * time it is asked for and then kept up to date as volumes are created, moved,
+ * resized and removed.  Changes made by other management servers are only
+ * picked up when the pool is loaded again, so the owner reloads the pools
+ * periodically and the ledger reports how far each pool had drifted.
+ */
+public class PoolCapacityLedger {
+    private final Map<Long, PoolUsage> _pools = new HashMap<Long, PoolUsage>();
+
+    public static class PoolUsage {
+        private final long _volumeCount;
+        private final long _volumeBytes;
+        private final Map<Long, Long> _templateSizes;
+        private final long _templateBytes;
+
+        /**
+         * @param templateSizes size of each template copied to the pool, by template id.
+         */
+        public PoolUsage(long volumeCount, long volumeBytes, Map<Long, Long> templateSizes) {
+            _volumeCount = volumeCount;
+            _volumeBytes = volumeBytes;
+            _templateSizes = Collections.unmodifiableMap(new HashMap<Long, Long>(templateSizes));
+            long templateBytes = 0;
+            for (Long size : templateSizes.values()) {
+                templateBytes += size;
+            }
+            _templateBytes = templateBytes;
+        }
+
+        private PoolUsage(PoolUsage usage, long volumeCount, long volumeBytes) {
+            _volumeCount = volumeCount;
+            _volumeBytes = volumeBytes;
+            _templateSizes = usage._templateSizes;
+            _templateBytes = usage._templateBytes;
+        }
+
+        public long getVolumeCount() {
+            return _volumeCount;
+        }
+
+        public long getVolumeBytes() {
+            return _volumeBytes;
+        }
+
+        public long getTemplateBytes() {
+            return _templateBytes;
+        }
+
+        public boolean hasTemplate(long templateId) {
+            return _templateSizes.containsKey(templateId);
+        }
+
+        /**
+         * @param extraBytesPerVolume overhead counted for every volume and template copy.
+         * @return bytes allocated on the pool, the same total CapacityManager.getAllocatedPoolCapacity() used to sum with SQL.
+         */
+        public long getAllocatedBytes(long extraBytesPerVolume) {
+            return _volumeBytes + _templateBytes + (_volumeCount + _templateSizes.size()) * extraBytesPerVolume;
+        }
+    }
+
+    /**
+     * @return the usage of the pool or null if the pool has not been loaded.
+     */
+    public synchronized PoolUsage get(long poolId) {
+        return _pools.get(poolId);
+    }
+
+    /**
+     * Replaces what is kept for the pool with what was read from the database.
+     * @return bytes by which the pool had drifted from the database, 0 if it was not loaded.
+     */
+    public synchronized long load(long poolId, PoolUsage usage) {
+        PoolUsage old = _pools.put(poolId, usage);
+        if (old == null) {
+            return 0;
+        }
+        return usage.getAllocatedBytes(0) - old.getAllocatedBytes(0);
+    }
+
+    /**
+     * Records a volume moving between pools or changing size.  A null pool
+     * means the volume is not on any pool, so creating a volume goes from null
+     * and removing it goes to null.  Pools that are not loaded are skipped as
+     * they are read from the database when first asked for.
+     */
+    public synchronized void volumeChanged(Long oldPoolId, long oldSize, Long newPoolId, long newSize) {
+        if (oldPoolId != null && oldPoolId.equals(newPoolId)) {
+            PoolUsage usage = _pools.get(oldPoolId);
+            if (usage != null && oldSize != newSize) {
+                _pools.put(oldPoolId, new PoolUsage(usage, usage._volumeCount, usage._volumeBytes + newSize - oldSize));
+            }
+            return;
+        }
+        if (oldPoolId != null) {
+            PoolUsage usage = _pools.get(oldPoolId);
+            if (usage != null) {
+                _pools.put(oldPoolId, new PoolUsage(usage, Math.max(0, usage._volumeCount - 1), Math.max(0, usage._volumeBytes - oldSize)));
+            }
+        }
+        if (newPoolId != null) {
+            PoolUsage usage = _pools.get(newPoolId);
+            if (usage != null) {
+                _pools.put(newPoolId, new PoolUsage(usage, usage._volumeCount + 1, usage._volumeBytes + newSize));
+            }
+        }
+    }
+
+    /**
+     * Drops the pool so it is read from the database the next time it is asked for.
+     */
+    public synchronized void invalidate(long poolId) {
+        _pools.remove(poolId);
+    }
+
+    public synchronized List<Long> listPools() {
+        return new ArrayList<Long>(_pools.keySet());
+    }
+}
@@ -43,12 +43,14 @@ import org.apache.log4j.Logger;
 import com.cloud.agent.AgentManager;
 import com.cloud.agent.AgentManager.OnError;
 import com.cloud.agent.api.Answer;
+import com.cloud.agent.api.AsyncJobCompletedCommand;
 import com.cloud.agent.api.ChangeAgentAnswer;
 import com.cloud.agent.api.ChangeAgentCommand;
 import com.cloud.agent.api.Command;
 import com.cloud.agent.api.PropagateResourceEventCommand;
 import com.cloud.agent.api.TransferAgentCommand;
 import com.cloud.agent.manager.Commands;
+import com.cloud.async.AsyncJobManager;
 import com.cloud.cluster.agentlb.dao.HostTransferMapDao;
 import com.cloud.cluster.dao.ManagementServerHostDao;
 import com.cloud.cluster.dao.ManagementServerHostPeerDao;
@@ -105,6 +107,7 @@ public class ClusterManagerImpl implements ClusterManager {
     private ClusteredAgentRebalanceService _rebalanceService;
     @Inject
     private ResourceManager _resourceMgr;
+    private AsyncJobManager _asyncJobMgr;
 
     private final ScheduledExecutorService _heartbeatScheduler = Executors.newScheduledThreadPool(1, new NamedThreadFactory("Cluster-Heartbeat"));
     private final ExecutorService _notificationExecutor = Executors.newFixedThreadPool(1, new NamedThreadFactory("Cluster-Notification"));
@@ -402,6 +405,16 @@ public class ClusterManagerImpl implements ClusterManager {
             Answer[] answers = new Answer[1];
             answers[0] = new Answer(cmd, result, null);
             return _gson.toJson(answers);
+        } else if (cmds.length == 1 && cmds[0] instanceof AsyncJobCompletedCommand) {
+            AsyncJobCompletedCommand cmd = (AsyncJobCompletedCommand) cmds[0];
+            if (_asyncJobMgr != null) {
+                for (long jobId : cmd.getJobIds()) {
+                    _asyncJobMgr.notifyJobWaiters(jobId);
+                }
+            }
+            Answer[] answers = new Answer[1];
+            answers[0] = new Answer(cmd, true, null);
+            return _gson.toJson(answers);
         }
 
         try {
@@ -1233,6 +1246,8 @@ public class ClusterManagerImpl implements ClusterManager {
             throw new ConfigurationException("Unable to get " + AgentManager.class.getName());
         }
 
+        _asyncJobMgr = locator.getManager(AsyncJobManager.class);
+
         _mshostDao = locator.getDao(ManagementServerHostDao.class);
         if (_mshostDao == null) {
             throw new ConfigurationException("Unable to get " + ManagementServerHostDao.class.getName());
@@ -64,10 +64,22 @@ public enum Config {
 	
 	StorageOverprovisioningFactor("Storage", StoragePoolAllocator.class, String.class, "storage.overprovisioning.factor", "2", "Used for storage overprovisioning calculation; available storage will be (actualStorageSize * storage.overprovisioning.factor)", null),
 	StorageStatsInterval("Storage", ManagementServer.class, String.class, "storage.stats.interval", "60000", "The interval (in milliseconds) when storage stats (per host) are retrieved from agents.", null),
+	StorageStatsBatchVolumes("Storage", ManagementServer.class, Integer.class, "storage.stats.batch.volumes", "5000", "Maximum volumes whose stats are asked of a host in one command", null),
 	MaxVolumeSize("Storage", ManagementServer.class, Integer.class, "storage.max.volume.size", "2000", "The maximum size for a volume (in GB).", null),
 	TotalRetries("Storage", AgentManager.class, Integer.class, "total.retries", "4", "The number of times each command sent to a host should be retried in case of failure.", null),
 	StoragePoolMaxWaitSeconds("Storage", ManagementServer.class, Integer.class, "storage.pool.max.waitseconds", "3600", "Timeout (in seconds) to synchronize storage pool operations.", null),
 	StorageTemplateCleanupEnabled("Storage", ManagementServer.class, Boolean.class, "storage.template.cleanup.enabled", "true", "Enable/disable template cleanup activity, only take effect when overall storage cleanup is enabled", null),
+	StoragePoolCapacityReconcileInterval("Storage", ManagementServer.class, Integer.class, "storage.pool.capacity.reconcile.interval", "600", "Time (in seconds) between reloading the allocated capacity of storage pools kept in memory from the database, 0 to never reload it", null),
+	StoragePoolAllocatorIoVolumes("Storage", ManagementServer.class, Integer.class, "storage.pool.allocator.io.volumes", "100", "Volumes on a storage pool at which the scoring storage pool allocator sees no I/O headroom left on it", null),
+	StoragePoolAllocatorIoWeight("Storage", ManagementServer.class, Float.class, "storage.pool.allocator.io.weight", "0.5", "Weight of the I/O headroom of a pool, relative to its free space, when the scoring storage pool allocator ranks pools", null),
+	StoragePoolAllocatorTemplateWeight("Storage", ManagementServer.class, Float.class, "storage.pool.allocator.template.weight", "0.25", "Weight of a pool already having the template of a root volume, relative to its free space, when the scoring storage pool allocator ranks pools", null),
+	TemplateCacheEnabled("Storage", ManagementServer.class, Boolean.class, "template.cache.enabled", "false", "Copy the templates deployed most in a cluster to its primary storage ahead of deployments, and keep unused template copies within the pool's cache budget", null),
+	TemplateCacheInterval("Storage", ManagementServer.class, Integer.class, "template.cache.interval", "600", "Time (in seconds) between looking for templates to copy to primary storage ahead of deployments", null),
+	TemplateCachePoolBudget("Storage", ManagementServer.class, Integer.class, "template.cache.pool.budget", "10", "Percentage of a primary storage pool's capacity template copies may take before unused ones are evicted", null),
+	TemplateCacheLookbackDays("Storage", ManagementServer.class, Integer.class, "template.cache.lookback.days", "7", "Days of deploy history used to find the templates deployed most in a cluster", null),
+	TemplateCacheMinDeploys("Storage", ManagementServer.class, Integer.class, "template.cache.min.deploys", "3", "Deploys of a template in a cluster within the look back period before it is copied to the cluster ahead of deployments", null),
+	TemplateCacheStageMax("Storage", ManagementServer.class, Integer.class, "template.cache.stage.max", "4", "Maximum templates copied to primary storage ahead of deployments in one run", null),
+	TemplateCacheIdleThreshold("Storage", ManagementServer.class, Integer.class, "template.cache.idle.threshold", "2", "Templates are copied ahead of deployments to a zone only while fewer VMs than this are starting in it", null),
 	PrimaryStorageDownloadWait("Storage", TemplateManager.class, Integer.class, "primary.storage.download.wait", "10800", "In second, timeout for download template to primary storage", null),
 	CreateVolumeFromSnapshotWait("Storage", StorageManager.class, Integer.class, "create.volume.from.snapshot.wait", "10800", "In second, timeout for create template from snapshot", null),
 	CopyVolumeWait("Storage", StorageManager.class, Integer.class, "copy.volume.wait", "10800", "In second, timeout for copy volume command", null),
@@ -121,6 +133,10 @@ public enum Config {
 		"console proxy service management state", null),
     ConsoleProxyManagementLastState("Console Proxy", AgentManager.class, String.class, "consoleproxy.management.state.last", com.cloud.consoleproxy.ConsoleProxyManagementState.Auto.toString(), 
 		"last console proxy service management state", null),
+	ConsoleProxyLoadPlannerEnabled("Console Proxy", AgentManager.class, Boolean.class, "consoleproxy.loadplanner.enabled", "false", "If true, console proxy sessions are placed by reported session count, bandwidth and CPU load, and proxy VMs are launched ahead of forecasted demand", null),
+	ConsoleProxyCapacityLeadTime("Console Proxy", AgentManager.class, Long.class, "consoleproxy.capacity.leadtime", "600000", "How far ahead(in milliseconds) console proxy demand is forecasted when launching proxy VMs, should cover the time to boot a proxy VM", null),
+	ConsoleProxyCapacityScaleDownDelay("Console Proxy", AgentManager.class, Long.class, "consoleproxy.capacity.scaledown.delay", "1800000", "Time(in milliseconds) a zone must have a spare idle console proxy before one is stopped", null),
+	ConsoleProxyBandwidthMax("Console Proxy", AgentManager.class, Long.class, "consoleproxy.bandwidth.max", "10485760", "Bytes per second a console proxy VM is expected to receive from VNC servers at full load, used to score proxies for session placement", null),
 	
 	// Snapshots
     SnapshotHourlyMax("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.hourly", "8", "Maximum hourly snapshots for a volume", null),
@@ -129,10 +145,16 @@ public enum Config {
     SnapshotMonthlyMax("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.monthly", "8", "Maximum monthly snapshots for a volume", null),
     SnapshotPollInterval("Snapshots", SnapshotManager.class, Integer.class, "snapshot.poll.interval", "300", "The time interval in seconds when the management server polls for snapshots to be scheduled.", null),
     SnapshotDeltaMax("Snapshots", SnapshotManager.class, Integer.class, "snapshot.delta.max", "16", "max delta snapshots between two full snapshots.", null),
+    SnapshotDispatchWindow("Snapshots", SnapshotManager.class, Integer.class, "snapshot.dispatch.window", "1800", "Time in seconds recurring snapshots of a policy are spread over, each volume is given a fixed offset in it. It is capped at half the policy interval.", null),
+    SnapshotMaxConcurrentPerPool("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.concurrent.per.pool", "10", "Maximum recurring snapshots being taken or backed up on one primary storage pool, 0 for no limit", null),
+    SnapshotMaxConcurrentPerHost("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.concurrent.per.host", "4", "Maximum recurring snapshots being taken or backed up from one host, 0 for no limit", null),
+    SnapshotMaxConcurrentPerSsvm("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.concurrent.per.ssvm", "10", "Maximum recurring snapshots being backed up per running secondary storage VM of a zone, 0 for no limit", null),
+    SnapshotMaxDispatchPerPoll("Snapshots", SnapshotManager.class, Integer.class, "snapshot.max.dispatch.per.poll", "200", "Maximum recurring snapshots started on one poll of the snapshot scheduler, 0 for no limit", null),
     
 	// Advanced
     JobExpireMinutes("Advanced", ManagementServer.class, String.class, "job.expire.minutes", "1440", "Time (in minutes) for async-jobs to be kept in system", null),
     JobCancelThresholdMinutes("Advanced", ManagementServer.class, String.class, "job.cancel.threshold.minutes", "60", "Time (in minutes) for async-jobs to be forcely cancelled if it has been in process for long", null),
+    JobQueryWaitMax("Advanced", ManagementServer.class, Integer.class, "job.query.wait.max", "60", "Max time (in seconds) a queryAsyncJobResults call waits for one of its jobs to complete", null),
  SwiftEnable(
             "Advanced", ManagementServer.class, Boolean.class, "swift.enable", "false", "enable swift ", null),
 	
@@ -141,13 +163,20 @@ public enum Config {
 	InstanceName("Advanced", AgentManager.class, String.class, "instance.name", "VM", "Name of the deployment instance.", "instanceName"),
 	ExpungeDelay("Advanced", UserVmManager.class, Integer.class, "expunge.delay", "86400", "Determines how long (in seconds) to wait before actually expunging destroyed vm. The default value = the default value of expunge.interval", null),
 	ExpungeInterval("Advanced", UserVmManager.class, Integer.class, "expunge.interval", "86400", "The interval (in seconds) to wait before running the expunge thread.", null),
-	ExpungeWorkers("Advanced", UserVmManager.class, Integer.class, "expunge.workers",  "1", "Number of workers performing expunge ", null),
+	ExpungeWorkers("Advanced", UserVmManager.class, Integer.class, "expunge.workers",  "1", "Number of workers performing expunge; destroyed vms and volumes are expunged this many at a time", null),
+	ExpungeBatchSize("Advanced", UserVmManager.class, Integer.class, "expunge.batch.size", "100", "Number of destroyed vms or volumes fetched at a time by expunge and storage cleanup; full batches are followed right away by the next one", null),
+	ExpungeMaxPerHost("Advanced", UserVmManager.class, Integer.class, "expunge.max.per.host", "2", "Maximum number of vms being expunged at the same time on one host, 0 for no limit", null),
+	ExpungeMaxPerPool("Advanced", UserVmManager.class, Integer.class, "expunge.max.per.pool", "4", "Maximum number of vms or volumes being expunged at the same time on one primary storage pool, 0 for no limit", null),
 	ExtractURLCleanUpInterval("Advanced", ManagementServer.class, Integer.class, "extract.url.cleanup.interval",  "7200", "The interval (in seconds) to wait before cleaning up the extract URL's ", null),
 	DisableExtraction("Advanced", ManagementServer.class, Boolean.class, "disable.extraction",  "false", "Flag for disabling extraction of template, isos and volumes", null),
 	ExtractURLExpirationInterval("Advanced", ManagementServer.class, Integer.class, "extract.url.expiration.interval",  "14400", "The life of an extract URL after which it is deleted ", null),
 	HostStatsInterval("Advanced", ManagementServer.class, Integer.class, "host.stats.interval", "60000", "The interval (in milliseconds) when host stats are retrieved from agents.", null),
 	HostRetry("Advanced", AgentManager.class, Integer.class, "host.retry", "2", "Number of times to retry hosts for creating a volume", null),
 	IntegrationAPIPort("Advanced", ManagementServer.class, Integer.class, "integration.api.port", null, "Defaul API port", null),
+	IntegrationAPINio("Advanced", ManagementServer.class, Boolean.class, "integration.api.nio", "true", "Serve the integration API port with a non-blocking listener that doesn't hold a thread per connection", null),
+	IntegrationAPIWorkers("Advanced", ManagementServer.class, Integer.class, "integration.api.workers", "50", "Max number of requests executed at the same time on the integration API port", null),
+	IntegrationAPIQueueSize("Advanced", ManagementServer.class, Integer.class, "integration.api.queue.size", "500", "Max number of requests waiting for a worker on the integration API port; requests beyond it are rejected with 503", null),
+	ApiAuthCacheTtl("Advanced", ManagementServer.class, Integer.class, "api.auth.cache.ttl", "10", "Seconds the user and account found for an API key or session are cached for authenticating API requests. The cache is per management server, so changes made through another server take up to this long to apply; 0 disables the cache", null),
 	InvestigateRetryInterval("Advanced", HighAvailabilityManager.class, Integer.class, "investigate.retry.interval", "60", "Time (in seconds) between VM pings when agent is disconnected", null),
 	MigrateRetryInterval("Advanced", HighAvailabilityManager.class, Integer.class, "migrate.retry.interval", "120", "Time (in seconds) between migration retries", null),
 	PingInterval("Advanced", AgentManager.class, Integer.class, "ping.interval", "60", "Ping interval in seconds", null),
@@ -264,6 +293,10 @@ public enum Config {
     DirectNetworkStatsInterval("Usage", ManagementServer.class, Integer.class, "direct.network.stats.interval", "86400", "Interval (in seconds) to collect stats from Traffic Monitor", null),
     UsageSanityCheckInterval("Usage", ManagementServer.class, Integer.class, "usage.sanity.check.interval", null, "Interval (in days) to check sanity of usage data", null),
     UsageAggregationTimezone("Usage", ManagementServer.class, String.class, "usage.aggregation.timezone", "GMT", "The timezone to use for usage stats aggregation", null),
+    UsageParseWorkers("Usage", ManagementServer.class, Integer.class, "usage.parse.workers", "4", "Number of threads the usage server parses partitions of accounts with", null),
+    UsageParsePartitionSize("Usage", ManagementServer.class, Integer.class, "usage.parse.partition.size", "500", "Number of accounts parsed together as a partition; a partition that fails is parsed again by the next usage job", null),
+    UsageMeteringInterval("Usage", ManagementServer.class, Integer.class, "usage.metering.interval", "0", "Interval in seconds the usage server meters the usage since the last usage job at, for the listCurrentUsage API; 0 disables metering", null),
+    UsageMeteringSnapshotInterval("Usage", ManagementServer.class, Integer.class, "usage.metering.snapshot.interval", "300", "Interval in seconds the usage server saves the metered usage at", null),
     
 	// Hidden
 	UseSecondaryStorageVm("Hidden", ManagementServer.class, Boolean.class, "secondary.storage.vm", "false", "Deploys a VM per zone to manage secondary storage if true, otherwise secondary storage is mounted on management server", null),
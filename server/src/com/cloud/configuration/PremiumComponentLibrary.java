@@ -38,6 +38,8 @@ import com.cloud.upgrade.PremiumDatabaseUpgradeChecker;
 import com.cloud.usage.dao.UsageDaoImpl;
 import com.cloud.usage.dao.UsageIPAddressDaoImpl;
 import com.cloud.usage.dao.UsageJobDaoImpl;
+import com.cloud.usage.dao.UsageMeterDaoImpl;
+import com.cloud.usage.dao.UsageRollupDaoImpl;
 import com.cloud.utils.component.SystemIntegrityChecker;
 
 public class PremiumComponentLibrary extends DefaultComponentLibrary {
@@ -46,6 +48,8 @@ public class PremiumComponentLibrary extends DefaultComponentLibrary {
     	super.populateDaos();
         addDao("UsageJobDao", UsageJobDaoImpl.class);
         addDao("UsageDao", UsageDaoImpl.class);
+        addDao("UsageRollupDao", UsageRollupDaoImpl.class);
+        addDao("UsageMeterDao", UsageMeterDaoImpl.class);
         addDao("UsageIpAddressDao", UsageIPAddressDaoImpl.class);
         addDao("CommandExecLogDao", CommandExecLogDaoImpl.class);
         addDao("NetappPool", PoolDaoImpl.class);
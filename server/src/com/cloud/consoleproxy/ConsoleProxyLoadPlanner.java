@@ -0,0 +1,298 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.info.ConsoleProxyConnectionInfo;
+import com.cloud.info.ConsoleProxyStatus;
+
+/**
+ * ConsoleProxyLoadPlanner places viewer sessions on console proxies and
+ * decides how many proxies a zone needs.
+ * 
+ * Placement scores each proxy by the session count, received bandwidth and
+ * CPU load from its last load report, plus the sessions assigned to it since
+ * that report, so a burst of assignments does not pile onto one proxy.
+ * 
+ * Demand in a zone is forecasted from the session counts sampled at every
+ * capacity scan: a trend over the recent samples and, once a day of history
+ * is known, the peak seen in the same time of day slots. Proxies are launched
+ * for the peak forecasted within the lead time; one is stopped only after the
+ * zone has had a whole proxy to spare for the scale down delay.
+ * 
+ * All times are in milliseconds and passed in by the caller.
+ */
+public class ConsoleProxyLoadPlanner {
+    public static final long SLOT_DURATION = 10 * 60 * 1000L;
+    public static final int SLOTS_PER_DAY = 144;
+
+    // assignments made this long before a load report are expected to be in the report
+    private static final long ASSIGNMENT_REPORT_DELAY = 5000;
+
+    private static final double LEVEL_SMOOTHING = 0.5;
+    private static final double TREND_SMOOTHING = 0.3;
+    private static final double DAILY_SMOOTHING = 0.5;
+    // per minute, the trend is followed for a few minutes only instead of for the whole lead time
+    private static final double TREND_DAMPING = 0.8;
+
+    private final int _capacityPerProxy;
+    private final int _standbyCapacity;
+    private final long _leadTime;
+    private final long _scaleDownDelay;
+    private final long _bandwidthPerProxy;
+
+    private final Map<Long, ProxyLoad> _proxyLoads = new HashMap<Long, ProxyLoad>();
+    private final Map<Long, ZoneDemand> _zoneDemands = new HashMap<Long, ZoneDemand>();
+
+    public ConsoleProxyLoadPlanner(int capacityPerProxy, int standbyCapacity, long leadTime, long scaleDownDelay, long bandwidthPerProxy) {
+        _capacityPerProxy = capacityPerProxy;
+        _standbyCapacity = standbyCapacity;
+        _leadTime = leadTime;
+        _scaleDownDelay = scaleDownDelay;
+        _bandwidthPerProxy = bandwidthPerProxy;
+    }
+
+    //
+    // Session placement
+    //
+    public synchronized void onLoadReport(long proxyId, long now, ConsoleProxyStatus status) {
+        ProxyLoad load = getProxyLoad(proxyId);
+
+        int sessions = 0;
+        long bytesReceived = 0;
+        if (status.getConnections() != null) {
+            sessions = status.getConnections().length;
+            for (ConsoleProxyConnectionInfo connection : status.getConnections()) {
+                bytesReceived += connection.bytesReceived;
+            }
+        }
+
+        // counters restart with a new session, only trust the difference when it grows
+        if (load.reportTime > 0 && now > load.reportTime && bytesReceived >= load.bytesReceived) {
+            load.bandwidth = (bytesReceived - load.bytesReceived) * 1000.0 / (now - load.reportTime);
+        } else if (load.reportTime > 0) {
+            load.bandwidth = 0;
+        }
+
+        load.sessions = sessions;
+        load.bytesReceived = bytesReceived;
+        load.cpuLoad = Math.max(0, status.getCpuLoad());
+        load.reportTime = now;
+
+        Iterator<Long> it = load.assignments.iterator();
+        while (it.hasNext()) {
+            if (it.next() < now - ASSIGNMENT_REPORT_DELAY) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized boolean hasRecentAssignments(long proxyId) {
+        ProxyLoad load = _proxyLoads.get(proxyId);
+        return load != null && !load.assignments.isEmpty();
+    }
+
+    /**
+     * Picks the least loaded proxy, preferring the ones which are below
+     * their session capacity, and counts the new session against it.
+     * 
+     * @param assignedLoad number of VMs assigned to each proxy, used for proxies which have not reported yet
+     */
+    public synchronized Long selectProxy(List<Long> candidateIds, Map<Long, Integer> assignedLoad, long now) {
+        Long selected = null;
+        double selectedScore = Double.MAX_VALUE;
+        boolean selectedHasRoom = false;
+        for (Long proxyId : candidateIds) {
+            int sessions = getSessionCount(proxyId, assignedLoad);
+            boolean hasRoom = sessions < _capacityPerProxy;
+            double score = getScore(proxyId, sessions);
+            if (selected == null || (hasRoom && !selectedHasRoom) || (hasRoom == selectedHasRoom && score < selectedScore)) {
+                selected = proxyId;
+                selectedScore = score;
+                selectedHasRoom = hasRoom;
+            }
+        }
+
+        if (selected != null) {
+            getProxyLoad(selected).assignments.add(now);
+        }
+        return selected;
+    }
+
+    public synchronized double getScore(long proxyId, Map<Long, Integer> assignedLoad) {
+        return getScore(proxyId, getSessionCount(proxyId, assignedLoad));
+    }
+
+    private double getScore(long proxyId, int sessions) {
+        ProxyLoad load = _proxyLoads.get(proxyId);
+        double score = (double)sessions / _capacityPerProxy;
+        if (load != null) {
+            score += load.bandwidth / _bandwidthPerProxy + load.cpuLoad;
+        }
+        return score;
+    }
+
+    private int getSessionCount(long proxyId, Map<Long, Integer> assignedLoad) {
+        ProxyLoad load = _proxyLoads.get(proxyId);
+        if (load != null && load.reportTime > 0) {
+            return load.sessions + load.assignments.size();
+        }
+
+        Integer assigned = assignedLoad != null ? assignedLoad.get(proxyId) : null;
+        return (assigned != null ? assigned : 0) + (load != null ? load.assignments.size() : 0);
+    }
+
+    private ProxyLoad getProxyLoad(long proxyId) {
+        ProxyLoad load = _proxyLoads.get(proxyId);
+        if (load == null) {
+            load = new ProxyLoad();
+            _proxyLoads.put(proxyId, load);
+        }
+        return load;
+    }
+
+    //
+    // Zone capacity
+    //
+    public synchronized void recordZoneDemand(long zoneId, long now, int sessions) {
+        ZoneDemand demand = _zoneDemands.get(zoneId);
+        if (demand == null) {
+            demand = new ZoneDemand();
+            _zoneDemands.put(zoneId, demand);
+        }
+        demand.record(now, sessions);
+    }
+
+    /**
+     * @return the highest number of sessions expected in the zone from now until the lead time has passed
+     */
+    public synchronized int forecastDemand(long zoneId, long now) {
+        ZoneDemand demand = _zoneDemands.get(zoneId);
+        if (demand == null) {
+            return 0;
+        }
+        return demand.forecast(now, _leadTime);
+    }
+
+    /**
+     * @return number of proxies needed to serve the forecasted demand with the standby capacity to spare
+     */
+    public int getRequiredProxyCount(long zoneId, long now) {
+        return (forecastDemand(zoneId, now) + _standbyCapacity) / _capacityPerProxy + 1;
+    }
+
+    public boolean needsMoreProxies(long zoneId, long now, int proxyCount) {
+        return proxyCount < getRequiredProxyCount(zoneId, now);
+    }
+
+    /**
+     * A proxy may be stopped once the zone has had more than one proxy above
+     * the required count for the whole scale down delay, and at every scan
+     * after that for as long as the surplus lasts.
+     */
+    public synchronized boolean canStopProxy(long zoneId, long now, int proxyCount) {
+        ZoneDemand demand = _zoneDemands.get(zoneId);
+        if (demand == null) {
+            return false;
+        }
+
+        if (proxyCount <= getRequiredProxyCount(zoneId, now) + 1) {
+            demand.surplusSince = 0;
+            return false;
+        }
+
+        if (demand.surplusSince == 0) {
+            demand.surplusSince = now;
+        }
+        return now - demand.surplusSince >= _scaleDownDelay;
+    }
+
+    public synchronized void onProxyStopped(long proxyId) {
+        _proxyLoads.remove(proxyId);
+    }
+
+    private static class ProxyLoad {
+        int sessions;
+        long bytesReceived;
+        double bandwidth;
+        double cpuLoad;
+        long reportTime;
+
+        // times of sessions assigned since the last load report
+        final List<Long> assignments = new ArrayList<Long>();
+    }
+
+    private static class ZoneDemand {
+        long lastTime;
+        int lastSessions;
+        double level;
+        double trend;                   // sessions per minute
+
+        // smoothed peak of each time of day slot over the previous days, negative if not known yet
+        final double[] dailyPeaks = new double[SLOTS_PER_DAY];
+        long currentSlot = -1;
+        int currentSlotPeak;
+
+        long surplusSince;
+
+        ZoneDemand() {
+            for (int i = 0; i < SLOTS_PER_DAY; i++) {
+                dailyPeaks[i] = -1;
+            }
+        }
+
+        void record(long now, int sessions) {
+            if (lastTime == 0) {
+                level = sessions;
+            } else if (now > lastTime) {
+                double minutes = (now - lastTime) / 60000.0;
+                double previousLevel = level;
+                level = LEVEL_SMOOTHING * sessions + (1 - LEVEL_SMOOTHING) * (level + trend * minutes);
+                trend = TREND_SMOOTHING * (level - previousLevel) / minutes + (1 - TREND_SMOOTHING) * trend;
+            }
+            lastTime = now;
+            lastSessions = sessions;
+
+            long slot = now / SLOT_DURATION;
+            if (slot != currentSlot) {
+                if (currentSlot >= 0) {
+                    int index = (int)(currentSlot % SLOTS_PER_DAY);
+                    double peak = dailyPeaks[index];
+                    dailyPeaks[index] = peak < 0 ? currentSlotPeak : DAILY_SMOOTHING * currentSlotPeak + (1 - DAILY_SMOOTHING) * peak;
+                }
+                currentSlot = slot;
+                currentSlotPeak = 0;
+            }
+            currentSlotPeak = Math.max(currentSlotPeak, sessions);
+        }
+
+        int forecast(long now, long leadTime) {
+            double damping = 0;
+            double factor = 1;
+            for (long minute = 0; minute < leadTime / 60000; minute++) {
+                factor *= TREND_DAMPING;
+                damping += factor;
+            }
+            double forecast = Math.max(lastSessions, level + trend * damping);
+            for (long slot = now / SLOT_DURATION; slot <= (now + leadTime) / SLOT_DURATION; slot++) {
+                forecast = Math.max(forecast, dailyPeaks[(int)(slot % SLOTS_PER_DAY)]);
+            }
+            return (int)Math.ceil(forecast);
+        }
+    }
+}
@@ -231,6 +231,9 @@ public class ConsoleProxyManagerImpl implements ConsoleProxyManager, ConsoleProx
     private int _capacityPerProxy = ConsoleProxyManager.DEFAULT_PROXY_CAPACITY;
     private int _standbyCapacity = ConsoleProxyManager.DEFAULT_STANDBY_CAPACITY;
 
+    // null unless consoleproxy.loadplanner.enabled is set
+    private ConsoleProxyLoadPlanner _loadPlanner;
+
     private boolean _use_lvm;
     private boolean _use_storage_vm;
     private boolean _disable_rp_filter = false;
@@ -651,6 +654,19 @@ public class ConsoleProxyManagerImpl implements ConsoleProxyManager, ConsoleProx
                     }
                 }
             }
+
+            if (_loadPlanner != null) {
+                List<Long> candidateIds = new ArrayList<Long>();
+                for (ConsoleProxyVO proxy : runningList) {
+                    candidateIds.add(proxy.getId());
+                }
+                Long proxyId = _loadPlanner.selectProxy(candidateIds, loadInfo, System.currentTimeMillis());
+                for (ConsoleProxyVO proxy : runningList) {
+                    if (proxy.getId() == proxyId.longValue()) {
+                        return proxy;
+                    }
+                }
+            }
             return allocator.allocProxy(runningList, loadInfo, dataCenterId);
         } else {
             if (s_logger.isTraceEnabled()) {
@@ -805,6 +821,9 @@ public class ConsoleProxyManagerImpl implements ConsoleProxyManager, ConsoleProx
                 details = answer.getDetails().getBytes(Charset.forName("US-ASCII"));
             }
             _consoleProxyDao.update(answer.getProxyVmId(), count, DateUtil.currentGMTTime(), details);
+            if (_loadPlanner != null) {
+                _loadPlanner.onLoadReport(answer.getProxyVmId(), System.currentTimeMillis(), status);
+            }
         } else {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("Unable to get console proxy load info, id : " + answer.getProxyVmId());
@@ -842,6 +861,9 @@ public class ConsoleProxyManagerImpl implements ConsoleProxyManager, ConsoleProx
                 details = cmd.getLoadInfo().getBytes(Charset.forName("US-ASCII"));
             }
             _consoleProxyDao.update(cmd.getProxyVmId(), count, DateUtil.currentGMTTime(), details);
+            if (_loadPlanner != null) {
+                _loadPlanner.onLoadReport(cmd.getProxyVmId(), System.currentTimeMillis(), status);
+            }
         } else {
             if (s_logger.isTraceEnabled()) {
                 s_logger.trace("Unable to get console proxy load info, id : " + cmd.getProxyVmId());
@@ -1400,6 +1422,13 @@ public class ConsoleProxyManagerImpl implements ConsoleProxyManager, ConsoleProx
         _standbyCapacity = NumbersUtil.parseInt(configs.get("consoleproxy.capacity.standby"), DEFAULT_STANDBY_CAPACITY);
         _proxySessionTimeoutValue = NumbersUtil.parseInt(configs.get("consoleproxy.session.timeout"), DEFAULT_PROXY_SESSION_TIMEOUT);
 
+        if (Boolean.parseBoolean(configs.get(Config.ConsoleProxyLoadPlannerEnabled.key()))) {
+            long leadTime = NumbersUtil.parseLong(configs.get(Config.ConsoleProxyCapacityLeadTime.key()), 600000);
+            long scaleDownDelay = NumbersUtil.parseLong(configs.get(Config.ConsoleProxyCapacityScaleDownDelay.key()), 1800000);
+            long bandwidth = NumbersUtil.parseLong(configs.get(Config.ConsoleProxyBandwidthMax.key()), 10485760);
+            _loadPlanner = new ConsoleProxyLoadPlanner(_capacityPerProxy, _standbyCapacity, leadTime, scaleDownDelay, bandwidth);
+        }
+
         value = configs.get("consoleproxy.port");
         if (value != null) {
             _consoleProxyPort = NumbersUtil.parseInt(value, ConsoleProxyManager.DEFAULT_PROXY_VNC_PORT);
@@ -1423,6 +1452,7 @@ public class ConsoleProxyManagerImpl implements ConsoleProxyManager, ConsoleProx
         if (s_logger.isInfoEnabled()) {
             s_logger.info("Console proxy max session soft limit : " + _capacityPerProxy);
             s_logger.info("Console proxy standby capacity : " + _standbyCapacity);
+            s_logger.info("Console proxy load planner : " + (_loadPlanner != null ? "enabled" : "disabled"));
         }
 
         _instance = configs.get("instance.name");
@@ -1722,6 +1752,9 @@ public class ConsoleProxyManagerImpl implements ConsoleProxyManager, ConsoleProx
 
     @Override
     public void finalizeStop(VirtualMachineProfile<ConsoleProxyVO> profile, StopAnswer answer) {
+        if (_loadPlanner != null) {
+            _loadPlanner.onProxyStopped(profile.getId());
+        }
     }
 
     @Override
@@ -1865,6 +1898,26 @@ public class ConsoleProxyManagerImpl implements ConsoleProxyManager, ConsoleProx
             return new Pair<AfterScanAction, Object>(AfterScanAction.expand, null);
         }
 
+        if (_loadPlanner != null) {
+            long now = System.currentTimeMillis();
+            _loadPlanner.recordZoneDemand(dataCenterId, now, vmInfo.getCount());
+
+            if (_loadPlanner.needsMoreProxies(dataCenterId, now, proxyInfo.getCount())) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Expand console proxy capacity for zone " + proxyInfo.getName() + " ahead of forecasted demand of "
+                            + _loadPlanner.forecastDemand(dataCenterId, now) + " sessions");
+                }
+                return new Pair<AfterScanAction, Object>(AfterScanAction.expand, null);
+            }
+
+            if (_loadPlanner.canStopProxy(dataCenterId, now, proxyInfo.getCount())) {
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Shrink console proxy capacity for zone " + proxyInfo.getName());
+                }
+                return new Pair<AfterScanAction, Object>(AfterScanAction.shrink, null);
+            }
+        }
+
         return new Pair<AfterScanAction, Object>(AfterScanAction.nop, null);
     }
 
@@ -1876,6 +1929,29 @@ public class ConsoleProxyManagerImpl implements ConsoleProxyManager, ConsoleProx
 
     @Override
     public void shrinkPool(Long pool, Object actionArgs) {
+        if (_loadPlanner == null) {
+            return;
+        }
+        long dataCenterId = pool.longValue();
+
+        // only an idle proxy is stopped, viewers are never cut off to shrink the pool
+        List<ConsoleProxyVO> runningList = _consoleProxyDao.getProxyListInStates(dataCenterId, State.Running);
+        ConsoleProxyVO idleProxy = null;
+        for (ConsoleProxyVO proxy : runningList) {
+            if (proxy.getActiveSession() == 0 && !_loadPlanner.hasRecentAssignments(proxy.getId())) {
+                idleProxy = proxy;
+                break;
+            }
+        }
+
+        if (idleProxy == null) {
+            return;
+        }
+
+        if (s_logger.isInfoEnabled()) {
+            s_logger.info("Stop idle console proxy " + idleProxy.getHostName() + " as zone " + dataCenterId + " has capacity to spare");
+        }
+        stopProxy(idleProxy.getId());
     }
 
     @Override
@@ -20,6 +20,9 @@ public class Criteria {
 	private Long limit;
 	private String orderBy;
 	private Boolean ascending;
+	private Long startAfterId;
+	private boolean estimateCount;
+	private Integer estimatedCount;
 	private final HashMap<String, Object> criteria;
 
 	public static final String ID = "id";
@@ -128,5 +131,32 @@ public class Criteria {
 	public void setAscending(Boolean ascending) {
 		this.ascending = ascending;
 	}
+
+	public Long getStartAfterId() {
+		return startAfterId;
+	}
+
+	/**
+	 * Continue a keyset paged search after the row with this id instead of using the offset.
+	 */
+	public void setStartAfterId(Long startAfterId) {
+		this.startAfterId = startAfterId;
+	}
+
+	public boolean isEstimateCount() {
+		return estimateCount;
+	}
+
+	public void setEstimateCount(boolean estimateCount) {
+		this.estimateCount = estimateCount;
+	}
+
+	public Integer getEstimatedCount() {
+		return estimatedCount;
+	}
+
+	public void setEstimatedCount(Integer estimatedCount) {
+		this.estimatedCount = estimatedCount;
+	}
 	
 }
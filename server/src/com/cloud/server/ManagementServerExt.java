@@ -17,7 +17,9 @@ import java.util.TimeZone;
 
 import com.cloud.api.commands.GenerateUsageRecordsCmd;
 import com.cloud.api.commands.GetUsageRecordsCmd;
+import com.cloud.api.commands.ListCurrentUsageCmd;
 import com.cloud.server.api.response.UsageTypeResponse;
+import com.cloud.usage.UsageMeterVO;
 import com.cloud.usage.UsageVO;
 public interface ManagementServerExt extends ManagementServer {
     /**
@@ -48,6 +50,16 @@ public interface ManagementServerExt extends ManagementServer {
      */
     List<UsageVO> getUsageRecords(GetUsageRecordsCmd cmd);
 
+    /**
+     * Retrieves the usage of the accounts since the end of the last usage job, as last
+     * saved by the usage server when usage metering is enabled.  Usage records remain
+     * the source of truth, this is an estimate.
+     *
+     * @param cmd the command wrapping the account, domain and usage type to list the usage of
+     * @return the usage per account, zone and usage type
+     */
+    List<UsageMeterVO> listCurrentUsage(ListCurrentUsageCmd cmd);
+
     /**
      * Retrieves the timezone used for usage aggregation.  One day is represented as midnight to 11:59:59pm
      * in the given time zone
@@ -21,23 +21,27 @@ import java.util.TimeZone;
 
 import com.cloud.api.commands.GenerateUsageRecordsCmd;
 import com.cloud.api.commands.GetUsageRecordsCmd;
+import com.cloud.api.commands.ListCurrentUsageCmd;
 import com.cloud.domain.dao.DomainDao;
 import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.exception.PermissionDeniedException;
 import com.cloud.projects.Project;
 import com.cloud.server.api.response.UsageTypeResponse;
 import com.cloud.usage.UsageJobVO;
+import com.cloud.usage.UsageMeterVO;
+import com.cloud.usage.UsageRecordsQuery;
 import com.cloud.usage.UsageTypes;
 import com.cloud.usage.UsageVO;
 import com.cloud.usage.dao.UsageDao;
 import com.cloud.usage.dao.UsageJobDao;
+import com.cloud.usage.dao.UsageMeterDao;
+import com.cloud.usage.dao.UsageRollupDao;
 import com.cloud.user.Account;
 import com.cloud.user.AccountVO;
 import com.cloud.user.UserContext;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.db.Filter;
-import com.cloud.utils.db.SearchCriteria;
 import com.cloud.utils.db.Transaction;
 
 public class ManagementServerExtImpl extends ManagementServerImpl implements ManagementServerExt {
@@ -45,7 +49,9 @@ public class ManagementServerExtImpl extends ManagementServerImpl implements Man
     private final DomainDao _domainDao;
     private final UsageDao _usageDao;
     private final UsageJobDao _usageJobDao;
+    private final UsageMeterDao _usageMeterDao;
     private final TimeZone _usageTimezone;
+    private final UsageRecordsQuery _usageQuery;
 
     protected ManagementServerExtImpl() {
         super();
@@ -55,6 +61,7 @@ public class ManagementServerExtImpl extends ManagementServerImpl implements Man
         _domainDao = locator.getDao(DomainDao.class);
         _usageDao = locator.getDao(UsageDao.class);
         _usageJobDao = locator.getDao(UsageJobDao.class);
+        _usageMeterDao = locator.getDao(UsageMeterDao.class);
 
         Map<String, String> configs = getConfigs();
         String timeZoneStr = configs.get("usage.aggregation.timezone");
@@ -62,6 +69,7 @@ public class ManagementServerExtImpl extends ManagementServerImpl implements Man
             timeZoneStr = "GMT";
         }
         _usageTimezone = TimeZone.getTimeZone(timeZoneStr);
+        _usageQuery = new UsageRecordsQuery(_usageDao, locator.getDao(UsageRollupDao.class), _usageTimezone);
     }
 
     @Override
@@ -92,14 +100,73 @@ public class ManagementServerExtImpl extends ManagementServerImpl implements Man
 
     @Override
     public List<UsageVO> getUsageRecords(GetUsageRecordsCmd cmd) {
-        Long accountId = cmd.getAccountId();
         Long domainId = cmd.getDomainId();
-        String accountName = cmd.getAccountName();
+        Long usageType = cmd.getUsageType();
+        Long accountId = getUsageAccountId(cmd.getAccountId(), cmd.getAccountName(), domainId, cmd.getProjectId());
+
+        Date startDate = cmd.getStartDate();
+        Date endDate = cmd.getEndDate();
+        if(startDate.after(endDate)){
+        	throw new InvalidParameterValueException("Incorrect Date Range. Start date: "+startDate+" is after end date:"+endDate);
+        }
+        TimeZone usageTZ = getUsageTimezone();
+        Date adjustedStartDate = computeAdjustedTime(startDate, usageTZ, true);
+        Date adjustedEndDate = computeAdjustedTime(endDate, usageTZ, false);
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("getting usage records for account: " + accountId + ", domainId: " + domainId + ", between " + startDate + " and " + endDate + ", using pageSize: " + cmd.getPageSizeVal() + " and startIndex: " + cmd.getStartIndex());
+        }
+
+        if ((adjustedStartDate == null) || (adjustedEndDate == null) || !adjustedStartDate.before(adjustedEndDate)) {
+            return new ArrayList<UsageVO>(); // return an empty list if we fail to validate the dates
+        }
+
+        List<UsageVO> usageRecords = null;
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            if (cmd.isRollup()) {
+                usageRecords = _usageQuery.sumRecords(adjustedStartDate, adjustedEndDate, accountId, domainId, usageType, cmd.getStartIndex(), cmd.getPageSizeVal());
+            } else {
+                usageRecords = _usageQuery.listRecords(adjustedStartDate, adjustedEndDate, accountId, domainId, usageType, cmd.getStartIndex(), cmd.getPageSizeVal());
+            }
+        } finally {
+            txn.close();
+
+            // switch back to VMOPS_DB
+            Transaction swap = Transaction.open(Transaction.CLOUD_DB);
+            swap.close();
+        }
+
+        // now that we are done with the records, update the command with the correct timezone so it can write the proper response
+        cmd.setUsageTimezone(getUsageTimezone());
+
+        return usageRecords;
+    }
+
+    @Override
+    public List<UsageMeterVO> listCurrentUsage(ListCurrentUsageCmd cmd) {
+        Long accountId = getUsageAccountId(cmd.getAccountId(), cmd.getAccountName(), cmd.getDomainId(), cmd.getProjectId());
+
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            return _usageMeterDao.listMeters(accountId, cmd.getDomainId(), cmd.getUsageType(), cmd.getStartIndex(), cmd.getPageSizeVal());
+        } finally {
+            txn.close();
+
+            // switch back to VMOPS_DB
+            Transaction swap = Transaction.open(Transaction.CLOUD_DB);
+            swap.close();
+        }
+    }
+
+    /**
+     * @return the account to list the usage of, null to list the usage of
+     * all the accounts.
+     */
+    private Long getUsageAccountId(Long accountId, String accountName, Long domainId, Long projectId) {
         Account userAccount = null;
         Account caller = (Account)UserContext.current().getCaller();
-        Long usageType = cmd.getUsageType();
-        Long projectId = cmd.getProjectId();
-        
+
         if (projectId != null) {
             if (accountId != null) {
                 throw new InvalidParameterValueException("Projectid and accountId can't be specified together");
@@ -142,58 +209,10 @@ public class ManagementServerExtImpl extends ManagementServerImpl implements Man
             s_logger.debug("Account details not available. Using userContext accountId: " + accountId);
         }
 
-        Date startDate = cmd.getStartDate();
-        Date endDate = cmd.getEndDate();
-        if(startDate.after(endDate)){
-        	throw new InvalidParameterValueException("Incorrect Date Range. Start date: "+startDate+" is after end date:"+endDate);
-        }
-        TimeZone usageTZ = getUsageTimezone();
-        Date adjustedStartDate = computeAdjustedTime(startDate, usageTZ, true);
-        Date adjustedEndDate = computeAdjustedTime(endDate, usageTZ, false);
-
-        if (s_logger.isDebugEnabled()) {
-            s_logger.debug("getting usage records for account: " + accountId + ", domainId: " + domainId + ", between " + startDate + " and " + endDate + ", using pageSize: " + cmd.getPageSizeVal() + " and startIndex: " + cmd.getStartIndex());
-        }
-
-        Filter usageFilter = new Filter(UsageVO.class, "startDate", false, cmd.getStartIndex(), cmd.getPageSizeVal());
-        
-        SearchCriteria<UsageVO> sc = _usageDao.createSearchCriteria();
-
         if (accountId != -1 && accountId != Account.ACCOUNT_ID_SYSTEM && !isAdmin) {
-            sc.addAnd("accountId", SearchCriteria.Op.EQ, accountId);
-        }
-
-        if (domainId != null) {
-            sc.addAnd("domainId", SearchCriteria.Op.EQ, domainId);
-        }
-        
-        if (usageType != null) {
-            sc.addAnd("usageType", SearchCriteria.Op.EQ, usageType);
-        }
-
-        if ((adjustedStartDate != null) && (adjustedEndDate != null) && adjustedStartDate.before(adjustedEndDate)) {
-            sc.addAnd("startDate", SearchCriteria.Op.BETWEEN, adjustedStartDate, adjustedEndDate);
-            sc.addAnd("endDate", SearchCriteria.Op.BETWEEN, adjustedStartDate, adjustedEndDate);
-        } else {
-            return new ArrayList<UsageVO>(); // return an empty list if we fail to validate the dates
+            return accountId;
         }
-
-        List<UsageVO> usageRecords = null;
-        Transaction txn = Transaction.open(Transaction.USAGE_DB);
-        try {
-            usageRecords = _usageDao.searchAllRecords(sc, usageFilter);
-        } finally {
-            txn.close();
-
-            // switch back to VMOPS_DB
-            Transaction swap = Transaction.open(Transaction.CLOUD_DB);
-            swap.close();
-        }
-
-        // now that we are done with the records, update the command with the correct timezone so it can write the proper response
-        cmd.setUsageTimezone(getUsageTimezone());
-
-        return usageRecords;
+        return null;
     }
 
     @Override
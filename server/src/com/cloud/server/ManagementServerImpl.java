@@ -1465,6 +1465,11 @@ public class ManagementServerImpl implements ManagementServer {
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
         Filter searchFilter = new Filter(EventVO.class, "createDate", false, cmd.getStartIndex(), cmd.getPageSizeVal());
+        Long startAfterId = cmd.getStartAfterId();
+        if (startAfterId != null) {
+            // events are created in id order so newest first by id continues the createDate order
+            searchFilter.addSeek(EventVO.class, "id", false, startAfterId);
+        }
         SearchBuilder<EventVO> sb = _eventDao.createSearchBuilder();
 
         sb.and("accountIdIN", sb.entity().getAccountId(), SearchCriteria.Op.IN);
@@ -1566,6 +1571,9 @@ public class ManagementServerImpl implements ManagementServer {
             }
             return pendingEvents;
         } else {
+            if (cmd.isEstimateCount()) {
+                cmd.setEstimatedCount(_eventDao.getEstimatedCount(sc));
+            }
             return _eventDao.searchAllEvents(sc, searchFilter);
         }
     }
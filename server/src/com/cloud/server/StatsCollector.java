@@ -13,8 +13,9 @@
 package com.cloud.server;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -27,14 +28,15 @@ import com.cloud.resource.ResourceManager;
 import org.apache.log4j.Logger;
 
 import com.cloud.agent.AgentManager;
-import com.cloud.agent.AgentManager.OnError;
 import com.cloud.agent.api.Answer;
-import com.cloud.agent.api.GetFileStatsCommand;
 import com.cloud.agent.api.GetStorageStatsCommand;
+import com.cloud.agent.api.GetVolumeStatsAnswer;
+import com.cloud.agent.api.GetVolumeStatsCommand;
 import com.cloud.agent.api.HostStatsEntry;
+import com.cloud.agent.api.StoragePoolStatsEntry;
+import com.cloud.agent.api.UnsupportedAnswer;
 import com.cloud.agent.api.VmStatsEntry;
-import com.cloud.agent.manager.Commands;
-import com.cloud.exception.AgentUnavailableException;
+import com.cloud.agent.api.VolumeStatsEntry;
 import com.cloud.exception.StorageUnavailableException;
 import com.cloud.host.Host;
 import com.cloud.host.HostStats;
@@ -43,13 +45,11 @@ import com.cloud.host.Status;
 import com.cloud.host.dao.HostDao;
 import com.cloud.resource.ResourceState;
 import com.cloud.storage.StorageManager;
-import com.cloud.storage.StoragePoolHostVO;
 import com.cloud.storage.StoragePoolVO;
 import com.cloud.storage.StorageStats;
 import com.cloud.storage.VolumeStats;
 import com.cloud.storage.VolumeVO;
 import com.cloud.storage.dao.StoragePoolDao;
-import com.cloud.storage.dao.StoragePoolHostDao;
 import com.cloud.storage.dao.VolumeDao;
 import com.cloud.storage.secondary.SecondaryStorageVmManager;
 import com.cloud.utils.NumbersUtil;
@@ -80,20 +80,25 @@ public class StatsCollector {
 	private final VolumeDao _volsDao;
 	private final StoragePoolDao _storagePoolDao;
 	private final StorageManager _storageManager;
-    private final StoragePoolHostDao _storagePoolHostDao;
     private final SecondaryStorageVmManager _ssvmMgr;
     private final ResourceManager _resourceMgr;
 
 	private ConcurrentHashMap<Long, HostStats> _hostStats = new ConcurrentHashMap<Long, HostStats>();
 	private final ConcurrentHashMap<Long, VmStats> _VmStats = new ConcurrentHashMap<Long, VmStats>();
-	private ConcurrentHashMap<Long, VolumeStats> _volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
+	private final ConcurrentHashMap<Long, VolumeStats> _volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
 	private ConcurrentHashMap<Long, StorageStats> _storageStats = new ConcurrentHashMap<Long, StorageStats>();
-	private ConcurrentHashMap<Long, StorageStats> _storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
+	private final ConcurrentHashMap<Long, StorageStats> _storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
+	// hosts that cannot report the stats of several pools in one command are asked pool by pool
+	private final Set<Long> _hostsWithoutBatchedStats = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+	private final Map<Long, Long> _hostPoolRefreshCounts = new ConcurrentHashMap<Long, Long>();
+	private final StorageStatsPlanner _storageStatsPlanner;
 	
 	long hostStatsInterval = -1L;
 	long hostAndVmStatsInterval = -1L;
 	long storageStatsInterval = -1L;
 	long volumeStatsInterval = -1L;
+	// volume stats are collected along with the pool stats, when this long ago
+	private long _lastVolumeStatsCollection = 0;
 
 	//private final GlobalLock m_capacityCheckLock = GlobalLock.getInternLock("capacity.check");
 
@@ -117,7 +122,6 @@ public class StatsCollector {
 		_volsDao = locator.getDao(VolumeDao.class);
 		_storagePoolDao = locator.getDao(StoragePoolDao.class);
 		_storageManager = locator.getManager(StorageManager.class);
-        _storagePoolHostDao  = locator.getDao(StoragePoolHostDao.class);
         _resourceMgr = locator.getManager(ResourceManager.class);
 
 		_executor = Executors.newScheduledThreadPool(3, new NamedThreadFactory("StatsCollector"));
@@ -126,6 +130,7 @@ public class StatsCollector {
 		 hostAndVmStatsInterval = NumbersUtil.parseLong(configs.get("vm.stats.interval"), 60000L);
 		 storageStatsInterval = NumbersUtil.parseLong(configs.get("storage.stats.interval"), 60000L);
 		 volumeStatsInterval = NumbersUtil.parseLong(configs.get("volume.stats.interval"), -1L);
+		 _storageStatsPlanner = new StorageStatsPlanner(NumbersUtil.parseInt(configs.get("storage.stats.batch.volumes"), 5000));
 
 		 if (hostStatsInterval > 0) {
 		     _executor.scheduleWithFixedDelay(new HostCollector(), 15000L, hostStatsInterval, TimeUnit.MILLISECONDS);
@@ -140,8 +145,10 @@ public class StatsCollector {
 		 }
 		
 		// -1 means we don't even start this thread to pick up any data.
+		// Otherwise it collects the pool stats too, as hosts report pools and volumes in one command
 		if (volumeStatsInterval > 0) {
-			_executor.scheduleWithFixedDelay(new VolumeCollector(), 15000L, volumeStatsInterval, TimeUnit.MILLISECONDS);
+			long interval = storageStatsInterval > 0 ? Math.min(storageStatsInterval, volumeStatsInterval) : volumeStatsInterval;
+			_executor.scheduleWithFixedDelay(new VolumeCollector(), 15000L, interval, TimeUnit.MILLISECONDS);
 		} else {
 			s_logger.info("Disabling volume stats collector");
 		}
@@ -294,40 +301,150 @@ public class StatsCollector {
                     }
                 }
                 _storageStats = storageStats;
-				ConcurrentHashMap<Long, StorageStats> storagePoolStats = new ConcurrentHashMap<Long, StorageStats>();
 
-				List<StoragePoolVO> storagePools = _storagePoolDao.listAll();
-				for (StoragePoolVO pool: storagePools) {
-					// check if the pool has enabled hosts
-					List<Long> hostIds = _storageManager.getUpHostsInPool(pool.getId());
-					if (hostIds == null || hostIds.isEmpty()) continue;
-					GetStorageStatsCommand command = new GetStorageStatsCommand(pool.getUuid(), pool.getPoolType(), pool.getPath());
-					long poolId = pool.getId();
-					try {
-    					Answer answer = _storageManager.sendToPool(pool, command);
-    					if (answer != null && answer.getResult()) {
-    						storagePoolStats.put(pool.getId(), (StorageStats)answer);
-    
-    						// Seems like we have dynamically updated the pool size since the prev. size and the current do not match
-    						if (_storagePoolStats.get(poolId)!= null &&
-    								_storagePoolStats.get(poolId).getCapacityBytes() != ((StorageStats)answer).getCapacityBytes()){
-    		                    pool.setCapacityBytes(((StorageStats)answer).getCapacityBytes());
-    		                    _storagePoolDao.update(pool.getId(), pool);
-    	                    }
-    					}
-                    } catch (StorageUnavailableException e) {
-                        s_logger.info("Unable to reach " + pool, e);
-                    } catch (Exception e) {
-                        s_logger.warn("Unable to get stats for " + pool, e);
-                    }
-				}
-                _storagePoolStats = storagePoolStats;
+                // the volume collector collects the pools otherwise
+                if (volumeStatsInterval <= 0) {
+                    collectPrimaryStorageStats(false);
+                }
 			} catch (Throwable t) {
 				s_logger.error("Error trying to retrieve storage stats", t);
 			}
 		}
 	}
 
+	/**
+	 * Collects the stats of the primary storage pools, and of the volumes on
+	 * them if asked to, with one command per host.  Stats are updated in place
+	 * so the last ones known stay available for pools and volumes a host could
+	 * not report this time.
+	 */
+	protected void collectPrimaryStorageStats(boolean withVolumes) {
+		Map<Long, StoragePoolVO> poolsById = new HashMap<Long, StoragePoolVO>();
+		for (StoragePoolVO pool : _storagePoolDao.listAll()) {
+			poolsById.put(pool.getId(), pool);
+		}
+
+		Map<Long, Map<String, Long>> volumesByPool = new HashMap<Long, Map<String, Long>>();
+		Set<Long> volumeIds = new HashSet<Long>();
+		if (withVolumes) {
+			for (VolumeVO volume : _volsDao.listAll()) {
+				volumeIds.add(volume.getId());
+				if (volume.getPoolId() == null || volume.getPath() == null) {
+					continue;
+				}
+				Map<String, Long> volumes = volumesByPool.get(volume.getPoolId());
+				if (volumes == null) {
+					volumes = new HashMap<String, Long>();
+					volumesByPool.put(volume.getPoolId(), volumes);
+				}
+				volumes.put(volume.getPath(), volume.getId());
+			}
+		}
+
+		List<StorageStatsPlanner.Pool> batchedPools = new ArrayList<StorageStatsPlanner.Pool>();
+		List<StoragePoolVO> unbatchedPools = new ArrayList<StoragePoolVO>();
+		for (StoragePoolVO pool : poolsById.values()) {
+			// check if the pool has enabled hosts
+			List<Long> hostIds = _storageManager.getUpHostsInPool(pool.getId());
+			if (hostIds == null || hostIds.isEmpty()) {
+				continue;
+			}
+			hostIds.removeAll(_hostsWithoutBatchedStats);
+			if (hostIds.isEmpty()) {
+				unbatchedPools.add(pool);
+			} else {
+				Map<String, Long> volumes = volumesByPool.get(pool.getId());
+				batchedPools.add(new StorageStatsPlanner.Pool(pool.getId(), hostIds, volumes == null ? 0 : volumes.size()));
+			}
+		}
+
+		int commands = 0;
+		long poolRefreshes = 0;
+		for (StorageStatsPlanner.Batch batch : _storageStatsPlanner.plan(batchedPools)) {
+			List<String> poolUuids = new ArrayList<String>();
+			Map<String, List<String>> volumePaths = new HashMap<String, List<String>>();
+			for (StorageStatsPlanner.Pool batchedPool : batch.getPools()) {
+				String uuid = poolsById.get(batchedPool.getId()).getUuid();
+				poolUuids.add(uuid);
+				Map<String, Long> volumes = volumesByPool.get(batchedPool.getId());
+				if (volumes != null) {
+					volumePaths.put(uuid, new ArrayList<String>(volumes.keySet()));
+				}
+			}
+
+			commands++;
+			Answer answer = _agentMgr.easySend(batch.getHostId(), new GetVolumeStatsCommand(poolUuids, volumePaths));
+			if (answer instanceof UnsupportedAnswer) {
+				s_logger.debug("Host " + batch.getHostId() + " does not report the stats of several storage pools at once, asking it pool by pool");
+				_hostsWithoutBatchedStats.add(batch.getHostId());
+				for (StorageStatsPlanner.Pool batchedPool : batch.getPools()) {
+					unbatchedPools.add(poolsById.get(batchedPool.getId()));
+				}
+				continue;
+			}
+			if (answer == null || !answer.getResult()) {
+				s_logger.debug("Unable to get storage stats from host " + batch.getHostId() + (answer != null ? ": " + answer.getDetails() : ""));
+				continue;
+			}
+
+			GetVolumeStatsAnswer statsAnswer = (GetVolumeStatsAnswer)answer;
+			Long lastRefreshCount = _hostPoolRefreshCounts.put(batch.getHostId(), statsAnswer.getPoolRefreshCount());
+			if (lastRefreshCount != null && statsAnswer.getPoolRefreshCount() >= lastRefreshCount) {
+				poolRefreshes += statsAnswer.getPoolRefreshCount() - lastRefreshCount;
+			}
+			for (StorageStatsPlanner.Pool batchedPool : batch.getPools()) {
+				StoragePoolVO pool = poolsById.get(batchedPool.getId());
+				StoragePoolStatsEntry stats = statsAnswer.getPoolStats().get(pool.getUuid());
+				if (stats != null) {
+					updateStoragePoolStats(pool, stats);
+				}
+				Map<String, Long> volumes = volumesByPool.get(pool.getId());
+				if (volumes != null) {
+					for (Map.Entry<String, Long> volume : volumes.entrySet()) {
+						VolumeStatsEntry volumeStats = statsAnswer.getVolumeStats().get(volume.getKey());
+						if (volumeStats != null) {
+							_volumeStats.put(volume.getValue(), volumeStats);
+						}
+					}
+				}
+			}
+		}
+
+		for (StoragePoolVO pool : unbatchedPools) {
+			GetStorageStatsCommand command = new GetStorageStatsCommand(pool.getUuid(), pool.getPoolType(), pool.getPath());
+			commands++;
+			try {
+				Answer answer = _storageManager.sendToPool(pool, command);
+				if (answer != null && answer.getResult()) {
+					updateStoragePoolStats(pool, (StorageStats)answer);
+				}
+			} catch (StorageUnavailableException e) {
+				s_logger.info("Unable to reach " + pool, e);
+			} catch (Exception e) {
+				s_logger.warn("Unable to get stats for " + pool, e);
+			}
+		}
+
+		// forget pools and volumes that are gone
+		_storagePoolStats.keySet().retainAll(poolsById.keySet());
+		if (withVolumes) {
+			_volumeStats.keySet().retainAll(volumeIds);
+		}
+		if (s_logger.isDebugEnabled()) {
+			s_logger.debug("Collected stats of " + poolsById.size() + " storage pools" + (withVolumes ? " and " + volumeIds.size() + " volumes" : "") + " with " + commands
+					+ " commands, hosts rescanned their storage pools " + poolRefreshes + " times since the last collection");
+		}
+	}
+
+	private void updateStoragePoolStats(StoragePoolVO pool, StorageStats stats) {
+		StorageStats previous = _storagePoolStats.put(pool.getId(), stats);
+		// Seems like we have dynamically updated the pool size since the prev. size and the current do not match
+		if (previous != null && previous.getCapacityBytes() != stats.getCapacityBytes()) {
+			pool.setCapacityBytes(stats.getCapacityBytes());
+			_storagePoolDao.update(pool.getId(), pool);
+		}
+	}
+
 	public StorageStats getStorageStats(long id) {
 		return _storageStats.get(id);
 	}
@@ -344,67 +461,18 @@ public class StatsCollector {
 		@Override
         public void run() {
 			try {
-				List<VolumeVO> volumes = _volsDao.listAll();
-				Map<Long, List<VolumeCommand>> commandsByPool = new HashMap<Long, List<VolumeCommand>>();
-				
-				for (VolumeVO volume : volumes) {
-					List<VolumeCommand> commands = commandsByPool.get(volume.getPoolId());
-					if (commands == null) {
-						commands = new ArrayList<VolumeCommand>();
-						commandsByPool.put(volume.getPoolId(), commands);
-					}
-					VolumeCommand vCommand = new VolumeCommand();
-					vCommand.volumeId = volume.getId();
-					vCommand.command = new GetFileStatsCommand(volume);
-					commands.add(vCommand);
+				long now = System.currentTimeMillis();
+				boolean withVolumes = now - _lastVolumeStatsCollection >= volumeStatsInterval;
+				collectPrimaryStorageStats(withVolumes);
+				if (withVolumes) {
+					_lastVolumeStatsCollection = now;
 				}
-				ConcurrentHashMap<Long, VolumeStats> volumeStats = new ConcurrentHashMap<Long, VolumeStats>();
-				for (Iterator<Long> iter = commandsByPool.keySet().iterator(); iter.hasNext();) {
-					Long poolId = iter.next();
-					if(poolId != null) {
-						List<VolumeCommand> commandsList = commandsByPool.get(poolId);
-						
-						long[] volumeIdArray = new long[commandsList.size()];
-						Commands commands = new Commands(OnError.Continue);
-						for (int i = 0; i < commandsList.size(); i++) {
-							VolumeCommand vCommand = commandsList.get(i);
-							volumeIdArray[i] = vCommand.volumeId;
-							commands.addCommand(vCommand.command);
-						}
-						
-			            List<StoragePoolHostVO> poolhosts = _storagePoolHostDao.listByPoolId(poolId);
-			            for(StoragePoolHostVO poolhost : poolhosts) {
-	    					Answer[] answers = _agentMgr.send(poolhost.getHostId(), commands);
-	    					if (answers != null) {
-	    					    long totalBytes = 0L;
-	    						for (int i = 0; i < answers.length; i++) {
-	    							if (answers[i].getResult()) {
-	    							    VolumeStats vStats = (VolumeStats)answers[i];
-	    								volumeStats.put(volumeIdArray[i], vStats);
-	    								totalBytes += vStats.getBytesUsed();
-	    							}
-	    						}
-	    						break;
-	                        }
-			            }
-					}
-				}
-
-				// We replace the existing volumeStats so that it does not grow with no bounds
-				_volumeStats = volumeStats;
-			} catch (AgentUnavailableException e) {
-			    s_logger.debug(e.getMessage());
 			} catch (Throwable t) {
 				s_logger.error("Error trying to retrieve volume stats", t);
 			}
 		}
 	}
 
-	private class VolumeCommand {
-		public long volumeId;
-		public GetFileStatsCommand command;
-	}
-	
 	public VolumeStats[] getVolumeStats(long[] ids) {
 		VolumeStats[] stats = new VolumeStats[ids.length];
 		if (volumeStatsInterval > 0) {
@@ -414,4 +482,11 @@ public class StatsCollector {
 		}
 		return stats;
 	}
+
+	public VolumeStats getVolumeStats(long id) {
+		if (volumeStatsInterval > 0) {
+			return _volumeStats.get(id);
+		}
+		return null;
+	}
 }
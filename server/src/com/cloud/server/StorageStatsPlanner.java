@@ -0,0 +1,133 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * StorageStatsPlanner decides which host reports the stats of each storage
+ * pool, so the stats of all the pools and volumes can be collected with one
+ * command per host instead of one per pool.  Hosts reaching the most pools
+ * not yet covered are picked first, and a command is closed once it holds
+ * the stats of maxVolumesPerBatch volumes to keep commands small.
+ */
+public class StorageStatsPlanner {
+    private final int _maxVolumesPerBatch;
+
+    public static class Pool {
+        final long id;
+        final List<Long> hostIds;
+        final int volumeCount;
+
+        /**
+         * @param hostIds up hosts the pool can be reached from
+         * @param volumeCount volumes to collect stats of on the pool
+         */
+        public Pool(long id, List<Long> hostIds, int volumeCount) {
+            this.id = id;
+            this.hostIds = hostIds;
+            this.volumeCount = volumeCount;
+        }
+
+        public long getId() {
+            return id;
+        }
+    }
+
+    public static class Batch {
+        final long hostId;
+        final List<Pool> pools = new ArrayList<Pool>();
+        int volumeCount;
+
+        Batch(long hostId) {
+            this.hostId = hostId;
+        }
+
+        public long getHostId() {
+            return hostId;
+        }
+
+        public List<Pool> getPools() {
+            return pools;
+        }
+
+        public int getVolumeCount() {
+            return volumeCount;
+        }
+    }
+
+    public StorageStatsPlanner(int maxVolumesPerBatch) {
+        _maxVolumesPerBatch = maxVolumesPerBatch;
+    }
+
+    /**
+     * @return one batch per command to send, pools without any up host are left out
+     */
+    public List<Batch> plan(List<Pool> pools) {
+        Set<Pool> uncovered = new LinkedHashSet<Pool>();
+        Map<Long, List<Pool>> poolsByHost = new HashMap<Long, List<Pool>>();
+        for (Pool pool : pools) {
+            if (pool.hostIds == null || pool.hostIds.isEmpty()) {
+                continue;
+            }
+            uncovered.add(pool);
+            for (Long hostId : pool.hostIds) {
+                List<Pool> reachable = poolsByHost.get(hostId);
+                if (reachable == null) {
+                    reachable = new ArrayList<Pool>();
+                    poolsByHost.put(hostId, reachable);
+                }
+                reachable.add(pool);
+            }
+        }
+
+        List<Batch> batches = new ArrayList<Batch>();
+        while (!uncovered.isEmpty()) {
+            Long bestHost = null;
+            int bestCount = 0;
+            for (Map.Entry<Long, List<Pool>> entry : poolsByHost.entrySet()) {
+                int count = 0;
+                for (Pool pool : entry.getValue()) {
+                    if (uncovered.contains(pool)) {
+                        count++;
+                    }
+                }
+                if (count > bestCount || (count == bestCount && count > 0 && entry.getKey() < bestHost)) {
+                    bestHost = entry.getKey();
+                    bestCount = count;
+                }
+            }
+
+            Batch batch = new Batch(bestHost);
+            batches.add(batch);
+            for (Pool pool : poolsByHost.remove(bestHost)) {
+                if (!uncovered.contains(pool)) {
+                    continue;
+                }
+                if (!batch.pools.isEmpty() && batch.volumeCount + pool.volumeCount > _maxVolumesPerBatch) {
+                    batch = new Batch(bestHost);
+                    batches.add(batch);
+                }
+                batch.pools.add(pool);
+                batch.volumeCount += pool.volumeCount;
+                uncovered.remove(pool);
+            }
+        }
+        return batches;
+    }
+}
@@ -0,0 +1,101 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.server.api.response;
+
+import java.util.Date;
+
+import com.cloud.api.ApiConstants;
+import com.cloud.api.response.BaseResponse;
+import com.cloud.serializer.Param;
+import com.cloud.utils.IdentityProxy;
+import com.google.gson.annotations.SerializedName;
+
+@SuppressWarnings("unused")
+public class CurrentUsageResponse extends BaseResponse {
+    @SerializedName(ApiConstants.ACCOUNT) @Param(description="the user account name")
+    private String accountName;
+
+    @SerializedName(ApiConstants.ACCOUNT_ID) @Param(description="the user account Id")
+    private IdentityProxy accountId = new IdentityProxy("account");
+
+    @SerializedName(ApiConstants.PROJECT_ID) @Param(description="the project id of the resource")
+    private IdentityProxy projectId = new IdentityProxy("projects");
+
+    @SerializedName(ApiConstants.PROJECT) @Param(description="the project name of the resource")
+    private String projectName;
+
+    @SerializedName(ApiConstants.DOMAIN_ID) @Param(description="the domain ID")
+    private IdentityProxy domainId = new IdentityProxy("domain");
+
+    @SerializedName(ApiConstants.ZONE_ID) @Param(description="the zone ID")
+    private IdentityProxy zoneId = new IdentityProxy("data_center");
+
+    @SerializedName("usagetype") @Param(description="usage type ID")
+    private Integer usageType;
+
+    @SerializedName("rawusage") @Param(description="raw usage in hours, or bytes for the network usage types")
+    private String rawUsage;
+
+    @SerializedName("accruing") @Param(description="number of resources still accruing usage")
+    private Integer accruing;
+
+    @SerializedName(ApiConstants.START_DATE) @Param(description="start of the current usage period, the end of the last usage job")
+    private Date startDate;
+
+    @SerializedName(ApiConstants.END_DATE) @Param(description="time the usage was metered up to")
+    private Date endDate;
+
+    public void setAccountName(String accountName) {
+        this.accountName = accountName;
+    }
+
+    public void setAccountId(Long accountId) {
+        this.accountId.setValue(accountId);
+    }
+
+    public void setProjectId(Long projectId) {
+        this.projectId.setValue(projectId);
+    }
+
+    public void setProjectName(String projectName) {
+        this.projectName = projectName;
+    }
+
+    public void setDomainId(Long domainId) {
+        this.domainId.setValue(domainId);
+    }
+
+    public void setZoneId(Long zoneId) {
+        this.zoneId.setValue(zoneId);
+    }
+
+    public void setUsageType(Integer usageType) {
+        this.usageType = usageType;
+    }
+
+    public void setRawUsage(String rawUsage) {
+        this.rawUsage = rawUsage;
+    }
+
+    public void setAccruing(Integer accruing) {
+        this.accruing = accruing;
+    }
+
+    public void setStartDate(Date startDate) {
+        this.startDate = startDate;
+    }
+
+    public void setEndDate(Date endDate) {
+        this.endDate = endDate;
+    }
+}
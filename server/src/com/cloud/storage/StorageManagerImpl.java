@@ -32,6 +32,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -75,6 +76,7 @@ import com.cloud.api.commands.UpdateStoragePoolCmd;
 import com.cloud.api.commands.UploadVolumeCmd;
 import com.cloud.async.AsyncJobManager;
 import com.cloud.capacity.Capacity;
+import com.cloud.capacity.CapacityManager;
 import com.cloud.capacity.CapacityState;
 import com.cloud.capacity.CapacityVO;
 import com.cloud.capacity.dao.CapacityDao;
@@ -148,6 +150,7 @@ import com.cloud.storage.listener.StoragePoolMonitor;
 import com.cloud.storage.secondary.SecondaryStorageVmManager;
 import com.cloud.storage.snapshot.SnapshotManager;
 import com.cloud.storage.snapshot.SnapshotScheduler;
+import com.cloud.template.TemplateCachePlanner;
 import com.cloud.template.TemplateManager;
 import com.cloud.user.Account;
 import com.cloud.user.AccountManager;
@@ -157,6 +160,7 @@ import com.cloud.user.UserContext;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserDao;
 import com.cloud.uservm.UserVm;
+import com.cloud.utils.DateUtil;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.Ternary;
@@ -180,9 +184,11 @@ import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExecutionException;
 import com.cloud.utils.fsm.NoTransitionException;
 import com.cloud.utils.fsm.StateMachine2;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.vm.ConsoleProxyVO;
 import com.cloud.vm.DiskProfile;
 import com.cloud.vm.DomainRouterVO;
+import com.cloud.vm.ExpungePipeline;
 import com.cloud.vm.SecondaryStorageVmVO;
 import com.cloud.vm.UserVmManager;
 import com.cloud.vm.UserVmVO;
@@ -260,6 +266,8 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
     @Inject
     protected CapacityDao _capacityDao;
     @Inject
+    protected CapacityManager _capacityMgr;
+    @Inject
     protected DiskOfferingDao _diskOfferingDao;
     @Inject
     protected AccountDao _accountDao;
@@ -321,7 +329,14 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
     ScheduledExecutorService _executor = null;
     boolean _storageCleanupEnabled;
     boolean _templateCleanupEnabled = true;
+    boolean _templateCacheEnabled;
+    int _templateCacheInterval;
+    long _templateCacheLookback;
+    int _templateCacheStageMax;
+    int _templateCacheIdleThreshold;
+    TemplateCachePlanner _templateCachePlanner;
     int _storageCleanupInterval;
+    ExpungePipeline<VolumeVO> _volumeExpungePipeline;
     private int _createVolumeFromSnapshotWait;
     private int _copyvolumewait;
     int _storagePoolAcquisitionWaitSeconds = 1800; // 30 minutes
@@ -596,6 +611,7 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
 
         try {
             if (success) {
+                Long oldPoolId = createdVolume.getPoolId();
                 createdVolume.setPodId(pod.first().getId());
                 createdVolume.setPoolId(pool.getId());
                 createdVolume.setPoolType(pool.getPoolType());
@@ -603,6 +619,7 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
                 createdVolume.setPath(volumeUUID);
                 createdVolume.setDomainId(account.getDomainId());
                 stateTransitTo(createdVolume, Volume.Event.OperationSucceeded);
+                _capacityMgr.volumeAllocationChanged(oldPoolId, createdVolume.getSize(), pool.getId(), createdVolume.getSize());
             }
         } catch (NoTransitionException e) {
             s_logger.debug("Failed to update volume state: " + e.toString());
@@ -802,6 +819,8 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
         if (created == null) {
             return null;
         } else {
+            Long oldPoolId = volume.getPoolId();
+            long oldSize = volume.getSize();
             volume.setFolder(pool.getPath());
             volume.setPath(created.getPath());
             volume.setSize(created.getSize());
@@ -814,6 +833,7 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
                 s_logger.debug("Unable to update volume state: " + e.toString());
                 return null;
             }
+            _capacityMgr.volumeAllocationChanged(oldPoolId, oldSize, pool.getId(), volume.getSize());
             return volume;
         }
     }
@@ -891,9 +911,26 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
 
         s_logger.info("Storage cleanup enabled: " + _storageCleanupEnabled + ", interval: " + _storageCleanupInterval + ", template cleanup enabled: " + _templateCleanupEnabled);
 
+        _templateCacheEnabled = Boolean.parseBoolean(configs.get(Config.TemplateCacheEnabled.key()));
+        _templateCacheInterval = NumbersUtil.parseInt(configs.get(Config.TemplateCacheInterval.key()), 600);
+        _templateCacheLookback = NumbersUtil.parseInt(configs.get(Config.TemplateCacheLookbackDays.key()), 7) * 24L * 60 * 60 * 1000;
+        _templateCacheStageMax = NumbersUtil.parseInt(configs.get(Config.TemplateCacheStageMax.key()), 4);
+        _templateCacheIdleThreshold = NumbersUtil.parseInt(configs.get(Config.TemplateCacheIdleThreshold.key()), 2);
+        _templateCachePlanner = new TemplateCachePlanner(NumbersUtil.parseInt(configs.get(Config.TemplateCachePoolBudget.key()), 10),
+                NumbersUtil.parseInt(configs.get(Config.TemplateCacheMinDeploys.key()), 3));
+        s_logger.info("Template cache enabled: " + _templateCacheEnabled + ", interval: " + _templateCacheInterval);
+
         String workers = configs.get("expunge.workers");
         int wrks = NumbersUtil.parseInt(workers, 10);
         _executor = Executors.newScheduledThreadPool(wrks, new NamedThreadFactory("StorageManager-Scavenger"));
+        _volumeExpungePipeline = new ExpungePipeline<VolumeVO>("Volume", new DestroyedVolumeSource(), wrks, 0,
+                NumbersUtil.parseInt(configs.get(Config.ExpungeMaxPerPool.key()), 4),
+                NumbersUtil.parseInt(configs.get(Config.ExpungeBatchSize.key()), 100));
+        try {
+            JmxUtil.registerMBean("ExpungePipeline", "Volume", _volumeExpungePipeline);
+        } catch (Exception e) {
+            s_logger.warn("Failed to register volume expunge MBean", e);
+        }
 
         boolean localStorage = Boolean.parseBoolean(configs.get(Config.UseLocalStorage.key()));
         if (localStorage) {
@@ -1116,15 +1153,19 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
         } else {
             s_logger.debug("Storage cleanup is not enabled, so the storage cleanup thread is not being scheduled.");
         }
+        if (_templateCacheEnabled) {
+            _executor.scheduleWithFixedDelay(new TemplateCacheStager(), _templateCacheInterval, _templateCacheInterval, TimeUnit.SECONDS);
+        }
 
         return true;
     }
 
     @Override
     public boolean stop() {
-        if (_storageCleanupEnabled) {
+        if (_storageCleanupEnabled || _templateCacheEnabled) {
             _executor.shutdown();
         }
+        _volumeExpungePipeline.shutdown();
 
         return true;
     }
@@ -2093,10 +2134,18 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
                     // Cleanup primary storage pools
                     if (_templateCleanupEnabled) {
                         List<StoragePoolVO> storagePools = _storagePoolDao.listAll();
+                        List<TemplateCachePlanner.Deploys> deploys = null;
+                        if (_templateCacheEnabled) {
+                            deploys = listTemplateDeploys(new Date(System.currentTimeMillis() - _templateCacheLookback));
+                        }
                         for (StoragePoolVO pool : storagePools) {
                             try {
 
                                 List<VMTemplateStoragePoolVO> unusedTemplatesInPool = _tmpltMgr.getUnusedTemplatesInPool(pool);
+                                if (deploys != null) {
+                                    // unused copies within the pool's cache budget are kept for the next deploy
+                                    unusedTemplatesInPool = selectTemplateCacheEvictions(pool, unusedTemplatesInPool, deploys);
+                                }
                                 s_logger.debug("Storage pool garbage collector found " + unusedTemplatesInPool.size() + " templates to clean up in storage pool: " + pool.getName());
                                 for (VMTemplateStoragePoolVO templatePoolVO : unusedTemplatesInPool) {
                                     if (templatePoolVO.getDownloadState() != VMTemplateStorageResourceAssoc.Status.DOWNLOADED) {
@@ -2121,13 +2170,10 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
 
                     cleanupSecondaryStorage(recurring);
 
-                    List<VolumeVO> vols = _volsDao.listVolumesToBeDestroyed();
-                    for (VolumeVO vol : vols) {
-                        try {
-                            expungeVolume(vol, false);
-                        } catch (Exception e) {
-                            s_logger.warn("Unable to destroy " + vol.getId(), e);
-                        }
+                    try {
+                        _volumeExpungePipeline.drain();
+                    } catch (InterruptedException e) {
+                        s_logger.warn("Interrupted while destroying volumes");
                     }
                 } finally {
                     scanLock.unlock();
@@ -2978,6 +3024,7 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
                             s_logger.debug("Failed to change volume state: " + e.toString());
                             throw new CloudRuntimeException("Failed to change volume state: " + e.toString());
                         }
+                        _capacityMgr.volumeAllocationChanged(oldPoolId, volume.getSize(), destPool.getId(), volume.getSize());
                     }
                     transitResult = true;
                     try {
@@ -3122,9 +3169,11 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
                 } catch (NoTransitionException e) {
                     throw new CloudRuntimeException("Unable to update the failure on a volume: " + newVol, e);
                 }
+                _capacityMgr.volumeAllocationChanged(poolId, newVol.getSize(), null, newVol.getSize());
                 throw new StorageUnavailableException("Unable to create " + newVol, poolId == null ? -1L : poolId);
             }
             created.first().setDeviceId(newVol.getDeviceId().intValue());
+            long requestedSize = newVol.getSize();
             newVol.setFolder(created.second().getPath());
             newVol.setPath(created.first().getPath());
             newVol.setSize(created.first().getSize());
@@ -3135,6 +3184,8 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
             } catch (NoTransitionException e) {
                 throw new CloudRuntimeException("Unable to update an CREATE operation succeeded on volume " + newVol, e);
             }
+            // the volume can come out larger than asked for, e.g. when created from a bigger template
+            _capacityMgr.volumeAllocationChanged(newVol.getPoolId(), requestedSize, newVol.getPoolId(), newVol.getSize());
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Volume " + newVol + " is created on " + created.second());
             }
@@ -3185,12 +3236,14 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("Trying to create in " + pool);
             }
+            Long oldPoolId = toBeCreated.getPoolId();
             toBeCreated.setPoolId(pool.getId());
             try {
                 stateTransitTo(toBeCreated, Volume.Event.OperationRetry);
             } catch (NoTransitionException e) {
                 throw new CloudRuntimeException("Unable to retry a create operation on volume " + toBeCreated);
             }
+            _capacityMgr.volumeAllocationChanged(oldPoolId, toBeCreated.getSize(), pool.getId(), toBeCreated.getSize());
 
             CreateCommand cmd = null;
             VMTemplateStoragePoolVO tmpltStoredOn = null;
@@ -3266,6 +3319,7 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
         if (pool == null) {
             s_logger.debug("Removing volume as storage pool is gone: " + poolId);
             _volsDao.remove(vol.getId());
+            _capacityMgr.invalidatePoolCapacity(poolId);
             return;
         }
 
@@ -3296,6 +3350,7 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
         } finally {
             if (removeVolume) {
                 _volsDao.remove(vol.getId());
+                _capacityMgr.volumeAllocationChanged(poolId, vol.getSize(), null, vol.getSize());
                 if (s_logger.isDebugEnabled()) {
                     s_logger.debug("Volume successfully expunged from " + poolId);
                 }
@@ -3335,6 +3390,151 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
         }
     }
 
+    /**
+     * Root volumes created from each template on each pool since a time,
+     * including the ones since removed, as the deploy history of templates.
+     */
+    List<TemplateCachePlanner.Deploys> listTemplateDeploys(Date since) {
+        String sql = "SELECT template_id, pool_id, COUNT(*), MAX(created) FROM volumes WHERE volume_type='ROOT' AND template_id IS NOT NULL AND pool_id IS NOT NULL AND created > ? GROUP BY template_id, pool_id";
+        List<TemplateCachePlanner.Deploys> list = new ArrayList<TemplateCachePlanner.Deploys>();
+        try {
+            Transaction txn = Transaction.currentTxn();
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            pstmt.setString(1, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), since));
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                Date last = DateUtil.parseDateString(TimeZone.getTimeZone("GMT"), rs.getString(4));
+                list.add(new TemplateCachePlanner.Deploys(rs.getLong(1), rs.getLong(2), rs.getInt(3), last != null ? last.getTime() : 0));
+            }
+        } catch (Exception e) {
+            s_logger.warn("Unable to list the template deploy history due to " + e.getMessage());
+        }
+        return list;
+    }
+
+    private TemplateCachePlanner.Pool toCachePool(StoragePoolVO pool) {
+        return new TemplateCachePlanner.Pool(pool.getId(), pool.getDataCenterId(), pool.getClusterId(), pool.getCapacityBytes(), pool.getAvailableBytes());
+    }
+
+    private List<VMTemplateStoragePoolVO> selectTemplateCacheEvictions(StoragePoolVO pool, List<VMTemplateStoragePoolVO> unused, List<TemplateCachePlanner.Deploys> deploys) {
+        Map<Long, VMTemplateStoragePoolVO> unusedById = new HashMap<Long, VMTemplateStoragePoolVO>();
+        for (VMTemplateStoragePoolVO templatePoolVO : unused) {
+            unusedById.put(templatePoolVO.getId(), templatePoolVO);
+        }
+        List<TemplateCachePlanner.Copy> copies = new ArrayList<TemplateCachePlanner.Copy>();
+        for (VMTemplateStoragePoolVO templatePoolVO : _vmTemplatePoolDao.listByPoolId(pool.getId())) {
+            VMTemplateVO template = _templateDao.findByIdIncludingRemoved(templatePoolVO.getTemplateId());
+            copies.add(new TemplateCachePlanner.Copy(templatePoolVO.getId(), templatePoolVO.getTemplateId(), pool.getId(), templatePoolVO.getTemplateSize(),
+                    templatePoolVO.getDownloadState() == VMTemplateStorageResourceAssoc.Status.DOWNLOADED, unusedById.containsKey(templatePoolVO.getId()),
+                    template == null || template.getRemoved() != null));
+        }
+
+        List<VMTemplateStoragePoolVO> evictions = new ArrayList<VMTemplateStoragePoolVO>();
+        for (TemplateCachePlanner.Copy copy : _templateCachePlanner.planEvictions(toCachePool(pool), copies, deploys)) {
+            evictions.add(unusedById.get(copy.getId()));
+        }
+        return evictions;
+    }
+
+    /**
+     * Copies the templates deployed most in a cluster to one of its pools
+     * before the next deploy has to wait for the copy.  Only zones with few
+     * VMs starting are looked at, and a few copies are made per run, one
+     * after the other.
+     */
+    protected void stageHotTemplates() {
+        Map<Long, Integer> starting = new HashMap<Long, Integer>();
+        String sql = "SELECT data_center_id, COUNT(*) FROM vm_instance WHERE state='Starting' AND removed IS NULL GROUP BY data_center_id";
+        try {
+            Transaction txn = Transaction.currentTxn();
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                starting.put(rs.getLong(1), rs.getInt(2));
+            }
+        } catch (Exception e) {
+            s_logger.warn("Unable to count the starting VMs due to " + e.getMessage());
+            return;
+        }
+
+        List<TemplateCachePlanner.Pool> pools = new ArrayList<TemplateCachePlanner.Pool>();
+        List<TemplateCachePlanner.Copy> copies = new ArrayList<TemplateCachePlanner.Copy>();
+        Map<Long, Long> templateSizes = new HashMap<Long, Long>();
+        Map<Long, StoragePoolVO> poolsById = new HashMap<Long, StoragePoolVO>();
+        long recent = System.currentTimeMillis() - 60 * 60 * 1000L;
+        for (StoragePoolVO pool : _storagePoolDao.listByStatus(StoragePoolStatus.Up)) {
+            Integer count = starting.get(pool.getDataCenterId());
+            if (!pool.isShared() || (count != null && count >= _templateCacheIdleThreshold)) {
+                continue;
+            }
+            pools.add(toCachePool(pool));
+            poolsById.put(pool.getId(), pool);
+            for (VMTemplateStoragePoolVO templatePoolVO : _vmTemplatePoolDao.listByPoolId(pool.getId())) {
+                boolean downloaded = templatePoolVO.getDownloadState() == VMTemplateStorageResourceAssoc.Status.DOWNLOADED;
+                // a copy that failed a while ago doesn't stop the template from being staged again
+                if (!downloaded && (templatePoolVO.getLastUpdated() == null || templatePoolVO.getLastUpdated().getTime() < recent)) {
+                    continue;
+                }
+                copies.add(new TemplateCachePlanner.Copy(templatePoolVO.getId(), templatePoolVO.getTemplateId(), pool.getId(), templatePoolVO.getTemplateSize(), downloaded, false));
+                if (downloaded && templatePoolVO.getTemplateSize() > 0) {
+                    templateSizes.put(templatePoolVO.getTemplateId(), templatePoolVO.getTemplateSize());
+                }
+            }
+        }
+        if (pools.isEmpty()) {
+            return;
+        }
+
+        List<TemplateCachePlanner.Deploys> deploys = listTemplateDeploys(new Date(System.currentTimeMillis() - _templateCacheLookback));
+        for (TemplateCachePlanner.Deploys d : deploys) {
+            // templates not on any pool yet are sized by their copy on secondary storage
+            if (!templateSizes.containsKey(d.getTemplateId())) {
+                List<VMTemplateHostVO> templateHosts = _templateHostDao.listByTemplateId(d.getTemplateId());
+                for (VMTemplateHostVO templateHost : templateHosts) {
+                    if (templateHost.getDownloadState() == VMTemplateStorageResourceAssoc.Status.DOWNLOADED && templateHost.getSize() > 0) {
+                        templateSizes.put(d.getTemplateId(), templateHost.getSize());
+                        break;
+                    }
+                }
+            }
+        }
+
+        for (TemplateCachePlanner.Stage stage : _templateCachePlanner.planStaging(pools, copies, deploys, templateSizes, _templateCacheStageMax)) {
+            VMTemplateVO template = _templateDao.findById(stage.getTemplateId());
+            if (template == null || template.getFormat() == ImageFormat.ISO) {
+                continue;
+            }
+            s_logger.info("Staging " + stage + " ahead of deployments");
+            try {
+                if (_tmpltMgr.prepareTemplateForCreate(template, poolsById.get(stage.getPoolId())) == null) {
+                    s_logger.info("Unable to stage " + stage);
+                }
+            } catch (Exception e) {
+                s_logger.warn("Unable to stage " + stage, e);
+            }
+        }
+    }
+
+    protected class TemplateCacheStager implements Runnable {
+        @Override
+        public void run() {
+            GlobalLock scanLock = GlobalLock.getInternLock("storagemgr.templatecache");
+            try {
+                if (scanLock.lock(3)) {
+                    try {
+                        stageHotTemplates();
+                    } finally {
+                        scanLock.unlock();
+                    }
+                }
+            } catch (Exception e) {
+                s_logger.error("Caught the following Exception", e);
+            } finally {
+                scanLock.releaseRef();
+            }
+        }
+    }
+
     protected class StorageGarbageCollector implements Runnable {
 
         public StorageGarbageCollector() {
@@ -3353,6 +3553,44 @@ public class StorageManagerImpl implements StorageManager, Manager, ClusterManag
         }
     }
 
+    protected class DestroyedVolumeSource implements ExpungePipeline.Source<VolumeVO> {
+        @Override
+        public List<VolumeVO> fetch(long afterId, int batchSize) {
+            return _volsDao.listVolumesToBeDestroyed(afterId, batchSize);
+        }
+
+        @Override
+        public long count() {
+            return _volsDao.countVolumesToBeDestroyed();
+        }
+
+        @Override
+        public long getId(VolumeVO vol) {
+            return vol.getId();
+        }
+
+        @Override
+        public Long getHostId(VolumeVO vol) {
+            // the command goes to whichever host can reach the pool
+            return null;
+        }
+
+        @Override
+        public Collection<Long> getPoolIds(VolumeVO vol) {
+            List<Long> poolIds = new ArrayList<Long>();
+            if (vol.getPoolId() != null) {
+                poolIds.add(vol.getPoolId());
+            }
+            return poolIds;
+        }
+
+        @Override
+        public boolean expunge(VolumeVO vol) {
+            expungeVolume(vol, false);
+            return _volsDao.findById(vol.getId()) == null;
+        }
+    }
+
     @Override
     public void onManagementNodeJoined(List<ManagementServerHostVO> nodeList, long selfNodeId) {
         // TODO Auto-generated method stub
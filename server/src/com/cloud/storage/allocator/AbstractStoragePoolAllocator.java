@@ -141,6 +141,13 @@ public abstract class AbstractStoragePoolAllocator extends AdapterBase implement
 	
 	protected boolean checkPool(ExcludeList avoid, StoragePoolVO pool, DiskProfile dskCh, VMTemplateVO template, List<VMTemplateStoragePoolVO> templatesInPool, 
 			StatsCollector sc, DeploymentPlan plan) {
+		return isPoolSuitable(avoid, pool, dskCh, sc) && hasPoolCapacity(pool, dskCh);
+	}
+	
+	/**
+	 * Checks everything about the pool but the capacity allocated on it
+	 */
+	protected boolean isPoolSuitable(ExcludeList avoid, StoragePoolVO pool, DiskProfile dskCh, StatsCollector sc) {
 		
 		if (s_logger.isDebugEnabled()) {
             s_logger.debug("Checking if storage pool is suitable, name: " + pool.getName()+ " ,poolId: "+ pool.getId());
@@ -209,16 +216,17 @@ public abstract class AbstractStoragePoolAllocator extends AdapterBase implement
 				}
 			}
 		}
-		
+		return true;
+	}
+	
+	/**
+	 * Checks the capacity allocated on the pool, as summed in the database, leaves room for the disk
+	 */
+	protected boolean hasPoolCapacity(StoragePoolVO pool, DiskProfile dskCh) {
 		long totalAllocatedSize  = _capacityMgr.getAllocatedPoolCapacity(pool, null);
 		long askingSize = dskCh.getSize();
 		
-		long totalOverProvCapacity;
-        if (pool.getPoolType() == StoragePoolType.NetworkFilesystem) {
-            totalOverProvCapacity = _storageOverprovisioningFactor.multiply(new BigDecimal(pool.getCapacityBytes())).longValue();// All this for the inaccuracy of floats for big number multiplication.
-        }else {
-            totalOverProvCapacity = pool.getCapacityBytes();
-        }
+		long totalOverProvCapacity = getOverProvisionedCapacity(pool);
 
 		if (s_logger.isDebugEnabled()) {
 			s_logger.debug("Attempting to look for pool " + pool.getId() + " for storage, maxSize : " + totalOverProvCapacity + ", totalAllocatedSize : " + totalAllocatedSize + ", askingSize : " + askingSize + ", allocated disable threshold: " + _storageAllocatedThreshold);
@@ -243,6 +251,13 @@ public abstract class AbstractStoragePoolAllocator extends AdapterBase implement
 		return true;
 	}
 	
+	protected long getOverProvisionedCapacity(StoragePoolVO pool) {
+        if (pool.getPoolType() == StoragePoolType.NetworkFilesystem) {
+            return _storageOverprovisioningFactor.multiply(new BigDecimal(pool.getCapacityBytes())).longValue();// All this for the inaccuracy of floats for big number multiplication.
+        }
+        return pool.getCapacityBytes();
+	}
+	
 	@Override
 	public String chooseStorageIp(VirtualMachine vm, Host host, Host storage) {
 		return storage.getStorageIpAddress();
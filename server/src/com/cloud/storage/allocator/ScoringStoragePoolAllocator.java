@@ -0,0 +1,159 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.allocator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import javax.ejb.Local;
+import javax.naming.ConfigurationException;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.capacity.PoolCapacityLedger.PoolUsage;
+import com.cloud.configuration.Config;
+import com.cloud.deploy.DeploymentPlan;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.server.StatsCollector;
+import com.cloud.storage.StoragePool;
+import com.cloud.storage.StoragePoolVO;
+import com.cloud.utils.NumbersUtil;
+import com.cloud.vm.DiskProfile;
+import com.cloud.vm.VirtualMachine;
+import com.cloud.vm.VirtualMachineProfile;
+
+/**
+ * ScoringStoragePoolAllocator returns the suitable pools best first instead of
+ * in random order.  A pool scores for the share of its capacity still free
+ * after the volume is placed, for its I/O headroom and for already having the
+ * template of the volume, which saves copying the template to it.  Allocated
+ * capacity comes from the in-memory ledger of the capacity manager so ranking
+ * the pools does not sum their volumes with SQL.  The ledger may lag behind
+ * the database, so only the pools returned, best first, have their capacity
+ * checked against the database.
+ * 
+ * There are no per pool I/O statistics to read, so the I/O headroom of a pool
+ * is taken from the number of volumes on it against storage.pool.allocator.io.volumes.
+ */
+@Local(value=StoragePoolAllocator.class)
+public class ScoringStoragePoolAllocator extends FirstFitStoragePoolAllocator {
+    private static final Logger s_logger = Logger.getLogger(ScoringStoragePoolAllocator.class);
+
+    int _ioVolumesPerPool = 100;
+    double _ioWeight = 0.5d;
+    double _templateWeight = 0.25d;
+
+    @Override
+    public List<StoragePool> allocateToPool(DiskProfile dskCh, VirtualMachineProfile<? extends VirtualMachine> vmProfile, DeploymentPlan plan, ExcludeList avoid, int returnUpTo) {
+        List<StoragePool> suitablePools = new ArrayList<StoragePool>();
+        if (!allocatorIsCorrectType(dskCh)) {
+            return suitablePools;
+        }
+        long dcId = plan.getDataCenterId();
+        Long podId = plan.getPodId();
+        Long clusterId = plan.getClusterId();
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Looking for pools in dc: " + dcId + "  pod:" + podId + "  cluster:" + clusterId + (dskCh.getTags() != null && dskCh.getTags().length != 0 ? " having tags:" + Arrays.toString(dskCh.getTags()) : ""));
+        }
+
+        List<StoragePoolVO> pools = _storagePoolDao.findPoolsByTags(dcId, podId, clusterId, dskCh.getTags(), null);
+        if (pools.size() == 0) {
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("No storage pools available for allocation, returning");
+            }
+            return suitablePools;
+        }
+
+        // pools with the same score are returned in random order
+        Collections.shuffle(pools);
+        StatsCollector sc = StatsCollector.getInstance();
+        List<ScoredPool> scored = new ArrayList<ScoredPool>();
+        for (StoragePoolVO pool : pools) {
+            if (!isPoolSuitable(avoid, pool, dskCh, sc)) {
+                continue;
+            }
+            PoolUsage usage = _capacityMgr.getPoolUsage(pool.getId());
+            boolean hasTemplate = dskCh.getTemplateId() != null && usage.hasTemplate(dskCh.getTemplateId());
+            double score = score(getOverProvisionedCapacity(pool), usage.getAllocatedBytes(_extraBytesPerVolume), dskCh.getSize(), usage.getVolumeCount(), hasTemplate);
+            if (s_logger.isTraceEnabled()) {
+                s_logger.trace("Storage pool " + pool.getId() + " scores " + score + " with " + usage.getVolumeCount() + " volumes, template present: " + hasTemplate);
+            }
+            scored.add(new ScoredPool(pool, score));
+        }
+        Collections.sort(scored);
+
+        for (ScoredPool scoredPool : scored) {
+            if (suitablePools.size() == returnUpTo) {
+                break;
+            }
+            if (hasPoolCapacity(scoredPool.pool, dskCh)) {
+                suitablePools.add(scoredPool.pool);
+            }
+        }
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("ScoringStoragePoolAllocator returning " + suitablePools.size() + " suitable storage pools");
+        }
+        return suitablePools;
+    }
+
+    /**
+     * @param capacity capacity of the pool, over provisioning included
+     * @param allocated bytes already allocated on the pool
+     * @param asking size of the volume to place
+     * @param volumeCount volumes on the pool
+     * @param hasTemplate whether the template of the volume is already on the pool
+     * @return score of the pool, higher is better, negative when the volume does not fit
+     */
+    double score(long capacity, long allocated, long asking, long volumeCount, boolean hasTemplate) {
+        if (capacity <= 0 || allocated + asking > capacity) {
+            return -1;
+        }
+        double score = (capacity - allocated - asking) / (double)capacity;
+        if (_ioVolumesPerPool > 0) {
+            score += _ioWeight * Math.max(0, 1 - volumeCount / (double)_ioVolumesPerPool);
+        }
+        if (hasTemplate) {
+            score += _templateWeight;
+        }
+        return score;
+    }
+
+    static class ScoredPool implements Comparable<ScoredPool> {
+        final StoragePoolVO pool;
+        final double score;
+
+        ScoredPool(StoragePoolVO pool, double score) {
+            this.pool = pool;
+            this.score = score;
+        }
+
+        @Override
+        public int compareTo(ScoredPool other) {
+            return Double.compare(other.score, score);
+        }
+    }
+
+    @Override
+    public boolean configure(String name, Map<String, Object> params) throws ConfigurationException {
+        super.configure(name, params);
+
+        _ioVolumesPerPool = NumbersUtil.parseInt(_configDao.getValue(Config.StoragePoolAllocatorIoVolumes.key()), 100);
+        _ioWeight = NumbersUtil.parseFloat(_configDao.getValue(Config.StoragePoolAllocatorIoWeight.key()), 0.5f);
+        _templateWeight = NumbersUtil.parseFloat(_configDao.getValue(Config.StoragePoolAllocatorTemplateWeight.key()), 0.25f);
+        return true;
+    }
+}
@@ -63,6 +63,13 @@ public interface VolumeDao extends GenericDao<VolumeVO, Long>, StateDao<Volume.S
     HypervisorType getHypervisorType(long volumeId);
     
     List<VolumeVO> listVolumesToBeDestroyed();
+
+    /**
+     * @return up to limit volumes to be destroyed with an id greater than afterId, ordered by id.
+     */
+    List<VolumeVO> listVolumesToBeDestroyed(long afterId, int limit);
+
+    long countVolumesToBeDestroyed();
     
     ImageFormat getImageFormat(Long volumeId);
     
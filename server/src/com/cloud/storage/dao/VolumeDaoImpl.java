@@ -32,6 +32,7 @@ import com.cloud.storage.Volume.Type;
 import com.cloud.storage.VolumeVO;
 import com.cloud.utils.Pair;
 import com.cloud.utils.db.DB;
+import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.SearchBuilder;
@@ -52,6 +53,8 @@ public class VolumeDaoImpl extends GenericDaoBase<VolumeVO, Long> implements Vol
     protected final SearchBuilder<VolumeVO> InstanceStatesSearch;
     protected final SearchBuilder<VolumeVO> AllFieldsSearch;
     protected GenericSearchBuilder<VolumeVO, Long> CountByAccount;
+    protected final SearchBuilder<VolumeVO> DestroySearch;
+    protected final GenericSearchBuilder<VolumeVO, Long> CountDestroyed;
     
     protected static final String SELECT_VM_SQL = "SELECT DISTINCT instance_id from volumes v where v.host_id = ? and v.mirror_state = ?";
     protected static final String SELECT_HYPERTYPE_FROM_VOLUME = "SELECT c.hypervisor_type from volumes v, storage_pool s, cluster c where v.pool_id = s.id and s.cluster_id = c.id and v.id = ?";
@@ -252,6 +255,16 @@ public class VolumeDaoImpl extends GenericDaoBase<VolumeVO, Long> implements Vol
         AllFieldsSearch.and("notDestroyed", AllFieldsSearch.entity().getState(), Op.NEQ);
         AllFieldsSearch.and("updatedCount", AllFieldsSearch.entity().getUpdatedCount(), Op.EQ);
         AllFieldsSearch.done();
+
+        DestroySearch = createSearchBuilder();
+        DestroySearch.and("state", DestroySearch.entity().getState(), Op.EQ);
+        DestroySearch.and("afterId", DestroySearch.entity().getId(), Op.GT);
+        DestroySearch.done();
+
+        CountDestroyed = createSearchBuilder(Long.class);
+        CountDestroyed.select(null, Func.COUNT, null);
+        CountDestroyed.and("state", CountDestroyed.entity().getState(), Op.EQ);
+        CountDestroyed.done();
         
         DetachedAccountIdSearch = createSearchBuilder();
         DetachedAccountIdSearch.and("accountId", DetachedAccountIdSearch.entity().getAccountId(), Op.EQ);
@@ -323,6 +336,23 @@ public class VolumeDaoImpl extends GenericDaoBase<VolumeVO, Long> implements Vol
         return listBy(sc);
     }
 
+    @Override
+    public List<VolumeVO> listVolumesToBeDestroyed(long afterId, int limit) {
+        SearchCriteria<VolumeVO> sc = DestroySearch.create();
+        sc.setParameters("state", Volume.State.Destroy);
+        sc.setParameters("afterId", afterId);
+
+        return listBy(sc, new Filter(VolumeVO.class, "id", true, 0L, (long)limit));
+    }
+
+    @Override
+    public long countVolumesToBeDestroyed() {
+        SearchCriteria<Long> sc = CountDestroyed.create();
+        sc.setParameters("state", Volume.State.Destroy);
+
+        return customSearch(sc, null).get(0);
+    }
+
 	@Override
 	public boolean updateState(com.cloud.storage.Volume.State currentState,
 			Event event, com.cloud.storage.Volume.State nextState, Volume vo,
@@ -16,6 +16,7 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -152,6 +153,25 @@ public class DownloadMonitorImpl implements  DownloadMonitor {
 
 	final Map<VMTemplateHostVO, DownloadListener> _listenerMap = new ConcurrentHashMap<VMTemplateHostVO, DownloadListener>();
 
+    /**
+     * The templates last listed on each secondary storage host, kept so the
+     * next sync only has to ask for the changes since that generation of the
+     * host's template inventory.
+     */
+    static class TemplateInventoryCopy {
+        final String epoch;
+        final long generation;
+        final Map<String, TemplateInfo> templates;
+
+        TemplateInventoryCopy(String epoch, long generation, Map<String, TemplateInfo> templates) {
+            this.epoch = epoch;
+            this.generation = generation;
+            this.templates = templates;
+        }
+    }
+
+    final Map<Long, TemplateInventoryCopy> _templateInventories = new ConcurrentHashMap<Long, TemplateInventoryCopy>();
+
 
 	public void send(Long hostId, Command cmd, Listener listener) throws AgentUnavailableException {
 		_agentMgr.send(hostId, new Commands(cmd), listener);
@@ -512,12 +532,21 @@ public class DownloadMonitorImpl implements  DownloadMonitor {
     }
     
     private Map<String, TemplateInfo> listTemplate(HostVO ssHost) {
-        ListTemplateCommand cmd = new ListTemplateCommand(ssHost.getStorageUrl());
+        TemplateInventoryCopy copy = _templateInventories.get(ssHost.getId());
+        ListTemplateCommand cmd;
+        if (copy != null) {
+            cmd = new ListTemplateCommand(ssHost.getStorageUrl(), copy.epoch, copy.generation);
+        } else {
+            cmd = new ListTemplateCommand(ssHost.getStorageUrl());
+        }
         Answer answer = _agentMgr.sendToSecStorage(ssHost, cmd);
         if (answer != null && answer.getResult()) {
             ListTemplateAnswer tanswer = (ListTemplateAnswer)answer;
-            return tanswer.getTemplateInfo();
+            Map<String, TemplateInfo> templates = applyTemplateChanges(ssHost.getId(), copy, tanswer);
+            // handleTemplateSync removes what it has matched, so it gets its own map
+            return templates != null ? new HashMap<String, TemplateInfo>(templates) : null;
         } else {
+            _templateInventories.remove(ssHost.getId());
             if (s_logger.isDebugEnabled()) {
                 s_logger.debug("can not list template for secondary storage host " + ssHost.getId());
             }
@@ -525,6 +554,34 @@ public class DownloadMonitorImpl implements  DownloadMonitor {
         
         return null;
     }
+
+    protected Map<String, TemplateInfo> applyTemplateChanges(long hostId, TemplateInventoryCopy copy, ListTemplateAnswer answer) {
+        Map<String, TemplateInfo> templates;
+        if (answer.isIncremental() && copy != null && copy.epoch.equals(answer.getInventoryEpoch())) {
+            templates = new HashMap<String, TemplateInfo>(copy.templates);
+            if (answer.getRemovedTemplates() != null) {
+                for (String name : answer.getRemovedTemplates()) {
+                    templates.remove(name);
+                }
+            }
+            if (answer.getTemplateInfo() != null) {
+                templates.putAll(answer.getTemplateInfo());
+            }
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Template inventory of secondary storage host " + hostId + " moved from generation " + copy.generation + " to " + answer.getGeneration());
+            }
+        } else {
+            templates = answer.getTemplateInfo();
+        }
+
+        if (answer.getInventoryEpoch() != null && templates != null) {
+            _templateInventories.put(hostId, new TemplateInventoryCopy(answer.getInventoryEpoch(), answer.getGeneration(), templates));
+        } else {
+            // an older storage VM without an inventory sends everything each time
+            _templateInventories.remove(hostId);
+        }
+        return templates;
+    }
     
     private Map<String, TemplateInfo> listTemplate(SwiftVO swift) {
         if (swift == null) {
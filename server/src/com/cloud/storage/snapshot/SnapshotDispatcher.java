@@ -0,0 +1,241 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.snapshot;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.utils.DateUtil.IntervalType;
+
+/**
+ * SnapshotDispatcher picks which of the due recurring snapshots the
+ * scheduler starts on a poll.  Snapshots are started shortest policy
+ * interval first, then oldest first, as long as the primary storage pool,
+ * the host and the zone's secondary storage VMs are under their limits of
+ * snapshots in flight, and no more than maxPerPoll on one poll.  The rest
+ * stay due and are looked at again on the next poll.
+ * 
+ * getJitter spreads the schedules themselves: each volume's snapshots are
+ * scheduled a fixed offset after the policy's time, so volumes with the same
+ * policy don't all become due on the same boundary.
+ */
+public class SnapshotDispatcher {
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    public static class Candidate {
+        final long scheduleId;
+        final long volumeId;
+        final long poolId;
+        final Long hostId;
+        final long zoneId;
+        final IntervalType interval;
+        final long scheduledTime;
+
+        public Candidate(long scheduleId, long volumeId, long poolId, Long hostId, long zoneId, IntervalType interval, long scheduledTime) {
+            this.scheduleId = scheduleId;
+            this.volumeId = volumeId;
+            this.poolId = poolId;
+            this.hostId = hostId;
+            this.zoneId = zoneId;
+            this.interval = interval;
+            this.scheduledTime = scheduledTime;
+        }
+
+        public long getScheduleId() {
+            return scheduleId;
+        }
+
+        public long getVolumeId() {
+            return volumeId;
+        }
+
+        public long getPoolId() {
+            return poolId;
+        }
+
+        public Long getHostId() {
+            return hostId;
+        }
+
+        public long getZoneId() {
+            return zoneId;
+        }
+    }
+
+    static final Comparator<Candidate> s_priority = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate c1, Candidate c2) {
+            // a missed hourly snapshot is a bigger share of its retention than a missed monthly one
+            int order = (c1.interval == null ? Integer.MAX_VALUE : c1.interval.ordinal()) - (c2.interval == null ? Integer.MAX_VALUE : c2.interval.ordinal());
+            if (order != 0) {
+                return order;
+            }
+            return c1.scheduledTime < c2.scheduledTime ? -1 : (c1.scheduledTime > c2.scheduledTime ? 1 : 0);
+        }
+    };
+
+    private final int _maxPerPool;
+    private final int _maxPerHost;
+    private final int _maxPerSsvm;
+    private final int _maxPerPoll;
+
+    private final Map<Long, Integer> _poolLoad = new HashMap<Long, Integer>();
+    private final Map<Long, Integer> _hostLoad = new HashMap<Long, Integer>();
+    private final Map<Long, Integer> _zoneLoad = new HashMap<Long, Integer>();
+    private final Map<Long, Integer> _ssvms = new HashMap<Long, Integer>();
+    private Map<Long, Long> _poolLag = new HashMap<Long, Long>();
+    private Map<Long, Integer> _poolWaiting = new HashMap<Long, Integer>();
+
+    /**
+     * @param maxPerPool snapshots in flight on one primary storage pool, 0 for no limit.
+     * @param maxPerHost snapshots in flight on one host, 0 for no limit.
+     * @param maxPerSsvm snapshots in flight per secondary storage VM of a zone, 0 for no limit.
+     * @param maxPerPoll snapshots started on one poll, 0 for no limit.
+     */
+    public SnapshotDispatcher(int maxPerPool, int maxPerHost, int maxPerSsvm, int maxPerPoll) {
+        _maxPerPool = maxPerPool;
+        _maxPerHost = maxPerHost;
+        _maxPerSsvm = maxPerSsvm;
+        _maxPerPoll = maxPerPoll;
+    }
+
+    /**
+     * Offset of a volume's snapshots from the policy's schedule, the same on
+     * every run so the snapshots of a volume stay an interval apart.  It is
+     * at most half of the policy's interval.
+     * @param window milliseconds to spread the snapshots over.
+     */
+    public static long getJitter(long volumeId, IntervalType interval, long window) {
+        long max = window;
+        if (interval != null) {
+            max = Math.min(max, getIntervalMillis(interval) / 2);
+        }
+        if (max <= 0) {
+            return 0;
+        }
+        // Fibonacci hashing spreads consecutive volume ids evenly across the window
+        return ((volumeId * 0x9E3779B97F4A7C15L) >>> 1) % max;
+    }
+
+    static long getIntervalMillis(IntervalType interval) {
+        switch (interval) {
+        case HOURLY:
+            return HOUR;
+        case DAILY:
+            return 24 * HOUR;
+        case WEEKLY:
+            return 7 * 24 * HOUR;
+        default:
+            return 28 * 24 * HOUR;
+        }
+    }
+
+    /**
+     * Forgets the snapshots in flight, before they are counted again for a poll.
+     */
+    public synchronized void reset() {
+        _poolLoad.clear();
+        _hostLoad.clear();
+        _zoneLoad.clear();
+        _ssvms.clear();
+    }
+
+    public synchronized void setSecondaryStorageVms(long zoneId, int count) {
+        _ssvms.put(zoneId, count);
+    }
+
+    /**
+     * Counts a snapshot that is still being taken or backed up.
+     */
+    public synchronized void inFlight(Candidate snapshot) {
+        increment(_poolLoad, snapshot.poolId);
+        if (snapshot.hostId != null) {
+            increment(_hostLoad, snapshot.hostId);
+        }
+        increment(_zoneLoad, snapshot.zoneId);
+    }
+
+    /**
+     * @return the snapshots to start now, in the order to start them.  They
+     *         are counted as in flight.
+     */
+    public synchronized List<Candidate> select(List<Candidate> due, long now) {
+        List<Candidate> sorted = new ArrayList<Candidate>(due);
+        Collections.sort(sorted, s_priority);
+
+        List<Candidate> selected = new ArrayList<Candidate>();
+        Map<Long, Long> lag = new HashMap<Long, Long>();
+        Map<Long, Integer> waiting = new HashMap<Long, Integer>();
+        for (Candidate candidate : sorted) {
+            if ((_maxPerPoll > 0 && selected.size() >= _maxPerPoll) || !hasRoom(candidate)) {
+                Long oldest = lag.get(candidate.poolId);
+                long candidateLag = Math.max(0, now - candidate.scheduledTime);
+                if (oldest == null || candidateLag > oldest) {
+                    lag.put(candidate.poolId, candidateLag);
+                }
+                increment(waiting, candidate.poolId);
+                continue;
+            }
+            inFlight(candidate);
+            selected.add(candidate);
+        }
+        _poolLag = lag;
+        _poolWaiting = waiting;
+        return selected;
+    }
+
+    /**
+     * @return for each pool with snapshots held back on the last poll, how
+     *         long in milliseconds the oldest of them has been due.
+     */
+    public synchronized Map<Long, Long> getPoolLag() {
+        return new HashMap<Long, Long>(_poolLag);
+    }
+
+    /**
+     * @return for each pool with snapshots held back on the last poll, how many.
+     */
+    public synchronized Map<Long, Integer> getPoolWaiting() {
+        return new HashMap<Long, Integer>(_poolWaiting);
+    }
+
+    private boolean hasRoom(Candidate candidate) {
+        if (_maxPerPool > 0 && get(_poolLoad, candidate.poolId) >= _maxPerPool) {
+            return false;
+        }
+        if (_maxPerHost > 0 && candidate.hostId != null && get(_hostLoad, candidate.hostId) >= _maxPerHost) {
+            return false;
+        }
+        if (_maxPerSsvm > 0) {
+            Integer ssvms = _ssvms.get(candidate.zoneId);
+            int limit = _maxPerSsvm * Math.max(1, ssvms == null ? 1 : ssvms);
+            if (get(_zoneLoad, candidate.zoneId) >= limit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int get(Map<Long, Integer> load, long key) {
+        Integer count = load.get(key);
+        return count == null ? 0 : count;
+    }
+
+    private static void increment(Map<Long, Integer> load, long key) {
+        load.put(key, get(load, key) + 1);
+    }
+}
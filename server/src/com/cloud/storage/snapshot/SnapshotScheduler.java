@@ -13,6 +13,7 @@
 package com.cloud.storage.snapshot;
 
 import java.util.Date;
+import java.util.Map;
 
 import com.cloud.storage.SnapshotPolicyVO;
 import com.cloud.utils.component.Manager;
@@ -36,4 +37,10 @@ public interface SnapshotScheduler extends Manager, Scheduler {
      * @return
      */
     boolean removeSchedule(Long volumeId, Long policyId);
+
+    /**
+     * @return for each primary storage pool that had due snapshots held back on the
+     *         last poll, milliseconds the oldest of them has been waiting.
+     */
+    Map<Long, Long> getQueueLag();
 }
@@ -12,10 +12,13 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.storage.snapshot;
 
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -31,6 +34,7 @@ import com.cloud.async.AsyncJobManager;
 import com.cloud.async.AsyncJobResult;
 import com.cloud.async.AsyncJobVO;
 import com.cloud.async.dao.AsyncJobDao;
+import com.cloud.configuration.Config;
 import com.cloud.configuration.dao.ConfigurationDao;
 import com.cloud.event.EventTypes;
 import com.cloud.event.EventUtils;
@@ -55,6 +59,9 @@ import com.cloud.utils.concurrency.TestClock;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GlobalLock;
 import com.cloud.utils.db.SearchCriteria;
+import com.cloud.vm.VMInstanceVO;
+import com.cloud.vm.dao.SecondaryStorageVmDao;
+import com.cloud.vm.dao.VMInstanceDao;
 
 /**
  *
@@ -72,12 +79,16 @@ public class SnapshotSchedulerImpl implements SnapshotScheduler {
     @Inject protected SnapshotManager         _snapshotManager;
     @Inject protected StoragePoolHostDao      _poolHostDao;
     @Inject protected VolumeDao               _volsDao;
+    @Inject protected VMInstanceDao           _vmDao;
+    @Inject protected SecondaryStorageVmDao   _secStorageVmDao;
 
     private static final int ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION = 5;    // 5 seconds
     private int        _snapshotPollInterval;
     private Timer      _testClockTimer;
     private Date       _currentTimestamp;
     private TestClock  _testTimerTask;
+    private long       _dispatchWindow;
+    private SnapshotDispatcher _dispatcher;
 
     private Date getNextScheduledTime(long policyId, Date currentTimestamp) {
         SnapshotPolicyVO policy = _snapshotPolicyDao.findById(policyId);
@@ -87,7 +98,11 @@ public class SnapshotSchedulerImpl implements SnapshotScheduler {
             IntervalType type = DateUtil.getIntervalType(intervalType);
             String schedule = policy.getSchedule();
             String timezone = policy.getTimezone();
-            nextTimestamp = DateUtil.getNextRunTime(type, schedule, timezone, currentTimestamp);
+            // the volume's snapshots run a fixed time after the policy's, so look for the run the
+            // policy has after the current time less that offset
+            long jitter = SnapshotDispatcher.getJitter(policy.getVolumeId(), type, _dispatchWindow);
+            nextTimestamp = DateUtil.getNextRunTime(type, schedule, timezone, new Date(currentTimestamp.getTime() - jitter));
+            nextTimestamp = new Date(nextTimestamp.getTime() + jitter);
             String currentTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, currentTimestamp);
             String nextScheduledTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, nextTimestamp);
             s_logger.debug("Current time is " + currentTime + ". NextScheduledTime of policyId " + policyId + " is " + nextScheduledTime);
@@ -204,24 +219,48 @@ public class SnapshotSchedulerImpl implements SnapshotScheduler {
         List<SnapshotScheduleVO> snapshotsToBeExecuted = _snapshotScheduleDao.getSchedulesToExecute(_currentTimestamp);
         s_logger.debug("Got " + snapshotsToBeExecuted.size() + " snapshots to be executed at " + displayTime);
 
+        countSnapshotsInFlight();
+        Map<Long, SnapshotScheduleVO> schedules = new HashMap<Long, SnapshotScheduleVO>();
+        List<SnapshotDispatcher.Candidate> candidates = new ArrayList<SnapshotDispatcher.Candidate>();
+        Set<Long> zones = new HashSet<Long>();
+        for (SnapshotScheduleVO snapshotToBeExecuted : snapshotsToBeExecuted) {
+            VolumeVO volume = _volsDao.findById(snapshotToBeExecuted.getVolumeId());
+            if (volume == null || volume.getPoolId() == null) {
+                // this volume is not attached
+                continue;
+            }
+            SnapshotPolicyVO policy = _snapshotPolicyDao.findById(snapshotToBeExecuted.getPolicyId());
+            if (policy == null) {
+                _snapshotScheduleDao.remove(snapshotToBeExecuted.getId());
+                continue;
+            }
+            schedules.put(snapshotToBeExecuted.getId(), snapshotToBeExecuted);
+            candidates.add(toCandidate(snapshotToBeExecuted, volume, DateUtil.getIntervalType(policy.getInterval())));
+            if (!zones.contains(volume.getDataCenterId())) {
+                zones.add(volume.getDataCenterId());
+                _dispatcher.setSecondaryStorageVms(volume.getDataCenterId(), _secStorageVmDao.listRunningSecStorageOrderByLoad(null, volume.getDataCenterId()).size());
+            }
+        }
+        List<SnapshotDispatcher.Candidate> selected = _dispatcher.select(candidates, _currentTimestamp.getTime());
+        if (selected.size() < candidates.size()) {
+            Map<Long, Integer> waiting = _dispatcher.getPoolWaiting();
+            Map<Long, Long> lag = _dispatcher.getPoolLag();
+            for (Map.Entry<Long, Integer> entry : waiting.entrySet()) {
+                s_logger.info("Holding back " + entry.getValue() + " snapshots on storage pool " + entry.getKey() + ", the oldest has been due for " + (lag.get(entry.getKey()) / 1000) + " seconds");
+            }
+        }
+
         // This is done for recurring snapshots, which are executed by the system automatically
         // Hence set user id to that of system
         long userId = 1;
 
-        for (SnapshotScheduleVO snapshotToBeExecuted : snapshotsToBeExecuted) {
+        for (SnapshotDispatcher.Candidate candidate : selected) {
+            SnapshotScheduleVO snapshotToBeExecuted = schedules.get(candidate.getScheduleId());
             SnapshotScheduleVO tmpSnapshotScheduleVO = null;
             long snapshotScheId = snapshotToBeExecuted.getId();
             long policyId = snapshotToBeExecuted.getPolicyId();
             long volumeId = snapshotToBeExecuted.getVolumeId();
             try {
-                VolumeVO volume = _volsDao.findById(volumeId);
-                if ( volume.getPoolId() == null) {
-                    // this volume is not attached
-                    continue;
-                }
-                if ( _snapshotPolicyDao.findById(policyId) == null ) {
-                    _snapshotScheduleDao.remove(snapshotToBeExecuted.getId());
-                }
                 if (s_logger.isDebugEnabled()) {
                     Date scheduledTimestamp = snapshotToBeExecuted.getScheduledTimestamp();
                     displayTime = DateUtil.displayDateInTimezone(DateUtil.GMT_TIMEZONE, scheduledTimestamp);
@@ -270,6 +309,41 @@ public class SnapshotSchedulerImpl implements SnapshotScheduler {
         }
     }
 
+    /**
+     * Counts the recurring snapshots started by any management server that
+     * haven't finished yet against the dispatch limits.
+     */
+    private void countSnapshotsInFlight() {
+        _dispatcher.reset();
+        SearchCriteria<SnapshotScheduleVO> sc = _snapshotScheduleDao.createSearchCriteria();
+        sc.addAnd("asyncJobId", SearchCriteria.Op.NNULL);
+        List<SnapshotScheduleVO> executing = _snapshotScheduleDao.search(sc, null);
+        for (SnapshotScheduleVO schedule : executing) {
+            VolumeVO volume = _volsDao.findById(schedule.getVolumeId());
+            if (volume == null || volume.getPoolId() == null) {
+                continue;
+            }
+            _dispatcher.inFlight(toCandidate(schedule, volume, null));
+        }
+    }
+
+    private SnapshotDispatcher.Candidate toCandidate(SnapshotScheduleVO schedule, VolumeVO volume, IntervalType interval) {
+        Long hostId = null;
+        if (volume.getInstanceId() != null) {
+            VMInstanceVO vm = _vmDao.findById(volume.getInstanceId());
+            if (vm != null) {
+                hostId = vm.getHostId() != null ? vm.getHostId() : vm.getLastHostId();
+            }
+        }
+        return new SnapshotDispatcher.Candidate(schedule.getId(), volume.getId(), volume.getPoolId(), hostId, volume.getDataCenterId(), interval,
+                schedule.getScheduledTimestamp().getTime());
+    }
+
+    @Override
+    public Map<Long, Long> getQueueLag() {
+        return _dispatcher.getPoolLag();
+    }
+
     private Date scheduleNextSnapshotJob(SnapshotScheduleVO snapshotSchedule) {
         if ( snapshotSchedule == null ) {
             return null;
@@ -347,6 +421,12 @@ public class SnapshotSchedulerImpl implements SnapshotScheduler {
             return false;
         }
         _snapshotPollInterval = NumbersUtil.parseInt(configDao.getValue("snapshot.poll.interval"), 300);
+        _dispatchWindow = NumbersUtil.parseLong(configDao.getValue(Config.SnapshotDispatchWindow.key()), 1800) * 1000L;
+        int maxPerPool = NumbersUtil.parseInt(configDao.getValue(Config.SnapshotMaxConcurrentPerPool.key()), 10);
+        int maxPerHost = NumbersUtil.parseInt(configDao.getValue(Config.SnapshotMaxConcurrentPerHost.key()), 4);
+        int maxPerSsvm = NumbersUtil.parseInt(configDao.getValue(Config.SnapshotMaxConcurrentPerSsvm.key()), 10);
+        int maxPerPoll = NumbersUtil.parseInt(configDao.getValue(Config.SnapshotMaxDispatchPerPoll.key()), 200);
+        _dispatcher = new SnapshotDispatcher(maxPerPool, maxPerHost, maxPerSsvm, maxPerPoll);
         boolean snapshotsRecurringTest = Boolean.parseBoolean(configDao.getValue("snapshot.recurring.test"));
         if (snapshotsRecurringTest) {
             // look for some test values in the configuration table so that snapshots can be taken more frequently (QA test code)
@@ -0,0 +1,308 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.template;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * TemplateCachePlanner decides which templates to copy to primary storage
+ * ahead of deployments and which unused copies to give up.
+ * 
+ * A template is hot in a cluster when at least minDeploys root volumes were
+ * created from it on the cluster's pools within the look back period of the
+ * deploy history passed in.  Pools without a cluster are grouped by zone.
+ * A hot template is staged on one pool of the cluster unless a pool there
+ * already holds a copy, picking the pool it was deployed on most, then the
+ * one with the most room left in its cache budget.
+ * 
+ * The cache budget of a pool is a share of its capacity that template
+ * copies may take.  Unused copies are kept while the pool is within its
+ * budget; past it the least recently deployed ones are evicted first.
+ * Unused copies of removed templates are always evicted.
+ */
+public class TemplateCachePlanner {
+    public static class Pool {
+        final long id;
+        final long zoneId;
+        final Long clusterId;
+        final long capacity;
+        final long available;
+
+        public Pool(long id, long zoneId, Long clusterId, long capacity, long available) {
+            this.id = id;
+            this.zoneId = zoneId;
+            this.clusterId = clusterId;
+            this.capacity = capacity;
+            this.available = available;
+        }
+
+        String getGroup() {
+            return clusterId != null ? "cluster-" + clusterId : "zone-" + zoneId;
+        }
+    }
+
+    public static class Copy {
+        final long id;
+        final long templateId;
+        final long poolId;
+        final long size;
+        final boolean downloaded;
+        final boolean unused;
+        final boolean removed;
+
+        public Copy(long id, long templateId, long poolId, long size, boolean downloaded, boolean unused) {
+            this(id, templateId, poolId, size, downloaded, unused, false);
+        }
+
+        /**
+         * @param downloaded false while the copy is being made, it is never evicted then.
+         * @param unused no volume uses the copy, so it may be evicted.
+         * @param removed the template was deleted, the copy is evicted as soon as it is unused.
+         */
+        public Copy(long id, long templateId, long poolId, long size, boolean downloaded, boolean unused, boolean removed) {
+            this.id = id;
+            this.templateId = templateId;
+            this.poolId = poolId;
+            this.size = size;
+            this.downloaded = downloaded;
+            this.unused = unused;
+            this.removed = removed;
+        }
+
+        public long getId() {
+            return id;
+        }
+    }
+
+    /**
+     * Root volumes created from a template on a pool within the look back period.
+     */
+    public static class Deploys {
+        final long templateId;
+        final long poolId;
+        final int count;
+        final long lastDeployed;
+
+        public Deploys(long templateId, long poolId, int count, long lastDeployed) {
+            this.templateId = templateId;
+            this.poolId = poolId;
+            this.count = count;
+            this.lastDeployed = lastDeployed;
+        }
+
+        public long getTemplateId() {
+            return templateId;
+        }
+    }
+
+    public static class Stage {
+        final long templateId;
+        final long poolId;
+
+        Stage(long templateId, long poolId) {
+            this.templateId = templateId;
+            this.poolId = poolId;
+        }
+
+        public long getTemplateId() {
+            return templateId;
+        }
+
+        public long getPoolId() {
+            return poolId;
+        }
+
+        @Override
+        public String toString() {
+            return "template " + templateId + " to pool " + poolId;
+        }
+    }
+
+    private final int _budgetPercent;
+    private final int _minDeploys;
+
+    /**
+     * @param budgetPercent percent of a pool's capacity template copies may take.
+     * @param minDeploys deploys in the look back period that make a template hot in a cluster.
+     */
+    public TemplateCachePlanner(int budgetPercent, int minDeploys) {
+        _budgetPercent = budgetPercent;
+        _minDeploys = minDeploys;
+    }
+
+    public long getBudget(Pool pool) {
+        return pool.capacity / 100 * _budgetPercent;
+    }
+
+    /**
+     * @param templateSizes size of each template's copy on primary storage, templates without one are not staged.
+     * @param maxStages most copies to plan.
+     * @return the copies to make, hottest first.
+     */
+    public List<Stage> planStaging(List<Pool> pools, List<Copy> copies, List<Deploys> deploys, Map<Long, Long> templateSizes, int maxStages) {
+        Map<Long, Pool> poolsById = new HashMap<Long, Pool>();
+        Map<String, List<Pool>> groups = new HashMap<String, List<Pool>>();
+        for (Pool pool : pools) {
+            poolsById.put(pool.id, pool);
+            List<Pool> group = groups.get(pool.getGroup());
+            if (group == null) {
+                group = new ArrayList<Pool>();
+                groups.put(pool.getGroup(), group);
+            }
+            group.add(pool);
+        }
+
+        Map<Long, Long> used = new HashMap<Long, Long>();
+        Set<String> held = new HashSet<String>();
+        for (Copy copy : copies) {
+            add(used, copy.poolId, copy.size);
+            Pool pool = poolsById.get(copy.poolId);
+            if (pool != null) {
+                held.add(copy.templateId + "@" + pool.getGroup());
+            }
+        }
+
+        // deploys of each template per group, and per pool to choose within the group
+        final Map<String, Integer> demand = new HashMap<String, Integer>();
+        Map<String, Integer> poolDeploys = new HashMap<String, Integer>();
+        for (Deploys d : deploys) {
+            Pool pool = poolsById.get(d.poolId);
+            if (pool == null) {
+                continue;
+            }
+            String key = d.templateId + "@" + pool.getGroup();
+            Integer count = demand.get(key);
+            demand.put(key, (count == null ? 0 : count) + d.count);
+            poolDeploys.put(d.templateId + "@" + d.poolId, d.count);
+        }
+
+        List<String> hot = new ArrayList<String>();
+        for (Map.Entry<String, Integer> entry : demand.entrySet()) {
+            if (entry.getValue() >= _minDeploys && !held.contains(entry.getKey())) {
+                hot.add(entry.getKey());
+            }
+        }
+        Collections.sort(hot, new Comparator<String>() {
+            @Override
+            public int compare(String key1, String key2) {
+                int order = demand.get(key2) - demand.get(key1);
+                return order != 0 ? order : key1.compareTo(key2);
+            }
+        });
+
+        // pools report their free space with the existing copies already taken out
+        Map<Long, Long> planned = new HashMap<Long, Long>();
+        List<Stage> stages = new ArrayList<Stage>();
+        for (String key : hot) {
+            if (stages.size() >= maxStages) {
+                break;
+            }
+            int at = key.indexOf('@');
+            long templateId = Long.parseLong(key.substring(0, at));
+            Long size = templateSizes.get(templateId);
+            if (size == null || size <= 0) {
+                continue;
+            }
+
+            Pool target = null;
+            int targetDeploys = -1;
+            long targetRoom = -1;
+            for (Pool pool : groups.get(key.substring(at + 1))) {
+                long room = getBudget(pool) - get(used, pool.id);
+                if (room < size || pool.available - get(planned, pool.id) < size) {
+                    continue;
+                }
+                Integer count = poolDeploys.get(templateId + "@" + pool.id);
+                int deployed = count == null ? 0 : count;
+                if (deployed > targetDeploys || (deployed == targetDeploys && room > targetRoom)) {
+                    target = pool;
+                    targetDeploys = deployed;
+                    targetRoom = room;
+                }
+            }
+            if (target != null) {
+                add(used, target.id, size);
+                add(planned, target.id, size);
+                stages.add(new Stage(templateId, target.id));
+            }
+        }
+        return stages;
+    }
+
+    /**
+     * @param copies all template copies on the pool.
+     * @param deploys deploy history of the pool.
+     * @return the unused copies of removed templates, then the unused copies to evict, least
+     *         recently deployed first, to bring the pool within its budget.
+     */
+    public List<Copy> planEvictions(Pool pool, List<Copy> copies, List<Deploys> deploys) {
+        long used = 0;
+        List<Copy> evictions = new ArrayList<Copy>();
+        List<Copy> candidates = new ArrayList<Copy>();
+        for (Copy copy : copies) {
+            if (copy.unused && copy.downloaded && copy.removed) {
+                evictions.add(copy);
+                continue;
+            }
+            used += copy.size;
+            if (copy.unused && copy.downloaded) {
+                candidates.add(copy);
+            }
+        }
+
+        final Map<Long, Long> lastDeployed = new HashMap<Long, Long>();
+        for (Deploys d : deploys) {
+            if (d.poolId == pool.id) {
+                lastDeployed.put(d.templateId, d.lastDeployed);
+            }
+        }
+        Collections.sort(candidates, new Comparator<Copy>() {
+            @Override
+            public int compare(Copy c1, Copy c2) {
+                long last1 = get(lastDeployed, c1.templateId);
+                long last2 = get(lastDeployed, c2.templateId);
+                if (last1 != last2) {
+                    return last1 < last2 ? -1 : 1;
+                }
+                // of the ones not deployed lately, give back the most space first
+                return c1.size > c2.size ? -1 : (c1.size < c2.size ? 1 : 0);
+            }
+        });
+
+        long budget = getBudget(pool);
+        for (Copy copy : candidates) {
+            if (used <= budget) {
+                break;
+            }
+            evictions.add(copy);
+            used -= copy.size;
+        }
+        return evictions;
+    }
+
+    private static long get(Map<Long, Long> map, long key) {
+        Long value = map.get(key);
+        return value == null ? 0 : value;
+    }
+
+    private static void add(Map<Long, Long> map, long key, long value) {
+        map.put(key, get(map, key) + value);
+    }
+}
@@ -56,6 +56,7 @@ import com.cloud.api.commands.UpdateTemplateOrIsoPermissionsCmd;
 import com.cloud.api.commands.UpdateTemplatePermissionsCmd;
 import com.cloud.async.AsyncJobManager;
 import com.cloud.async.AsyncJobVO;
+import com.cloud.capacity.CapacityManager;
 import com.cloud.configuration.Config;
 import com.cloud.configuration.Resource.ResourceType;
 import com.cloud.configuration.dao.ConfigurationDao;
@@ -184,6 +185,7 @@ public class TemplateManagerImpl implements TemplateManager, Manager, TemplateSe
     @Inject UploadDao _uploadDao;
     long _routerTemplateId = -1;
     @Inject StorageManager _storageMgr;
+    @Inject CapacityManager _capacityMgr;
     @Inject AsyncJobManager _asyncMgr;
     @Inject UserVmManager _vmMgr;
     @Inject UsageEventDao _usageEventDao;
@@ -611,6 +613,7 @@ public class TemplateManagerImpl implements TemplateManager, Manager, TemplateSe
             try {
                 templateStoragePoolRef = _tmpltPoolDao.persist(templateStoragePoolRef);
                 templateStoragePoolRefId =  templateStoragePoolRef.getId();
+                _capacityMgr.invalidatePoolCapacity(poolId);
                 
             } catch (Exception e) {
                 s_logger.debug("Assuming we're in a race condition: " + e.getMessage());
@@ -665,6 +668,7 @@ public class TemplateManagerImpl implements TemplateManager, Manager, TemplateSe
 	        		templateStoragePoolRef.setInstallPath(answer.getInstallPath());
 	        		templateStoragePoolRef.setTemplateSize(answer.getTemplateSize());
 	        		_tmpltPoolDao.update(templateStoragePoolRef.getId(), templateStoragePoolRef);
+	        		_capacityMgr.invalidatePoolCapacity(poolId);
 	        		if (s_logger.isDebugEnabled()) {
 	        			s_logger.debug("Template " + templateId + " is downloaded via " + vo.getHostId());
 	        		}
@@ -920,6 +924,7 @@ public class TemplateManagerImpl implements TemplateManager, Manager, TemplateSe
     	if (answer != null && answer.getResult()) {
     		// Remove the templatePoolVO
     		if (_tmpltPoolDao.remove(templatePoolVO.getId())) {
+    			_capacityMgr.invalidatePoolCapacity(pool.getId());
     			s_logger.debug("Successfully evicted template: " + template.getName() + " from storage pool: " + pool.getName());
     		}
     	}
@@ -74,6 +74,12 @@ public class UsageJobVO {
     @Column(name="heartbeat")
     private Date heartbeat;
 
+    @Column(name="num_accounts")
+    private long numAccounts;
+
+    @Column(name="num_records")
+    private long numRecords;
+
     public UsageJobVO() {}
 
     public Long getId() {
@@ -171,4 +177,34 @@ public class UsageJobVO {
     public void setHeartbeat(Date heartbeat) {
         this.heartbeat = heartbeat;
     }
+
+    public long getNumAccounts() {
+        return numAccounts;
+    }
+
+    public void setNumAccounts(long numAccounts) {
+        this.numAccounts = numAccounts;
+    }
+
+    public long getNumRecords() {
+        return numRecords;
+    }
+
+    public void setNumRecords(long numRecords) {
+        this.numRecords = numRecords;
+    }
+
+    /**
+     * @return accounts parsed per second of execution time; an account parsed for several aggregation ranges counts once per range.
+     */
+    public double getAccountsPerSecond() {
+        return execTime > 0 ? numAccounts * 1000.0 / execTime : 0;
+    }
+
+    /**
+     * @return usage records created per second of execution time.
+     */
+    public double getRecordsPerSecond() {
+        return execTime > 0 ? numRecords * 1000.0 / execTime : 0;
+    }
 }
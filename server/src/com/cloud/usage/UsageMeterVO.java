@@ -0,0 +1,129 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * Snapshot of the usage of an account in a zone since the end of the last
+ * usage job, as metered by the usage server between jobs.  The usage jobs
+ * remain the source of truth, the meters are an estimate.
+ */
+@Entity
+@Table(name="usage_meter")
+public class UsageMeterVO {
+    @Id
+    @GeneratedValue(strategy=GenerationType.IDENTITY)
+    @Column(name="id")
+    private Long id;
+
+    @Column(name="account_id")
+    private long accountId;
+
+    @Column(name="domain_id")
+    private long domainId;
+
+    @Column(name="zone_id")
+    private long zoneId;
+
+    @Column(name="usage_type")
+    private int usageType;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="period_start")
+    private Date periodStart;
+
+    @Column(name="raw_usage")
+    private double rawUsage;
+
+    @Column(name="open_count")
+    private int openCount;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="updated")
+    private Date updated;
+
+    protected UsageMeterVO() {
+    }
+
+    public UsageMeterVO(long accountId, long domainId, long zoneId, int usageType, Date periodStart) {
+        this.accountId = accountId;
+        this.domainId = domainId;
+        this.zoneId = zoneId;
+        this.usageType = usageType;
+        this.periodStart = periodStart;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public long getAccountId() {
+        return accountId;
+    }
+
+    public long getDomainId() {
+        return domainId;
+    }
+
+    public long getZoneId() {
+        return zoneId;
+    }
+
+    public int getUsageType() {
+        return usageType;
+    }
+
+    public Date getPeriodStart() {
+        return periodStart;
+    }
+
+    /**
+     * @return hours, or bytes for the network usage types, since the period start.
+     */
+    public double getRawUsage() {
+        return rawUsage;
+    }
+
+    /**
+     * @return number of resources that were still accruing usage when the
+     * snapshot was taken.
+     */
+    public int getOpenCount() {
+        return openCount;
+    }
+
+    public Date getUpdated() {
+        return updated;
+    }
+
+    public void setUpdated(Date updated) {
+        this.updated = updated;
+    }
+
+    public void add(double rawUsage, boolean open) {
+        this.rawUsage += rawUsage;
+        if (open) {
+            openCount++;
+        }
+    }
+}
@@ -0,0 +1,123 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+import com.cloud.utils.db.GenericDao;
+
+/**
+ * A partition of accounts that failed to parse for an aggregation range.
+ * The next usage job parses the stages that are not yet completed for
+ * these accounts and range, and deletes the checkpoint once they are.
+ */
+@Entity
+@Table(name="usage_parse_checkpoint")
+public class UsageParseCheckpointVO {
+    @Id
+    @GeneratedValue(strategy=GenerationType.IDENTITY)
+    @Column(name="id")
+    private Long id;
+
+    @Column(name="job_id")
+    private long jobId;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="start_date")
+    private Date startDate;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="end_date")
+    private Date endDate;
+
+    @Column(name="first_account_id")
+    private long firstAccountId;
+
+    @Column(name="last_account_id")
+    private long lastAccountId;
+
+    @Column(name="completed_stages")
+    private int completedStages;
+
+    @Column(name="attempts")
+    private int attempts;
+
+    @Column(name=GenericDao.CREATED_COLUMN)
+    private Date created;
+
+    protected UsageParseCheckpointVO() {
+    }
+
+    public UsageParseCheckpointVO(long jobId, Date startDate, Date endDate, long firstAccountId, long lastAccountId, int completedStages) {
+        this.jobId = jobId;
+        this.startDate = startDate;
+        this.endDate = endDate;
+        this.firstAccountId = firstAccountId;
+        this.lastAccountId = lastAccountId;
+        this.completedStages = completedStages;
+        this.attempts = 1;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public long getJobId() {
+        return jobId;
+    }
+
+    public Date getStartDate() {
+        return startDate;
+    }
+
+    public Date getEndDate() {
+        return endDate;
+    }
+
+    public long getFirstAccountId() {
+        return firstAccountId;
+    }
+
+    public long getLastAccountId() {
+        return lastAccountId;
+    }
+
+    public int getCompletedStages() {
+        return completedStages;
+    }
+
+    public void setCompletedStages(int completedStages) {
+        this.completedStages = completedStages;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public Date getCreated() {
+        return created;
+    }
+}
@@ -0,0 +1,169 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage;
+
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageRollupDao;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+
+/**
+ * The queries behind listUsageRecords: a page of the usage records in a
+ * range, or the usage in a range summed per account, usage type, offering
+ * and zone.  Callers run them in a USAGE_DB transaction.
+ */
+public class UsageRecordsQuery {
+    private final UsageDao _usageDao;
+    private final UsageRollupDao _usageRollupDao;
+    private final TimeZone _usageTimezone;
+
+    public UsageRecordsQuery(UsageDao usageDao, UsageRollupDao usageRollupDao, TimeZone usageTimezone) {
+        _usageDao = usageDao;
+        _usageRollupDao = usageRollupDao;
+        _usageTimezone = usageTimezone;
+    }
+
+    /**
+     * @return the records that start and end within the range, latest first.
+     */
+    public List<UsageVO> listRecords(Date startDate, Date endDate, Long accountId, Long domainId, Long usageType, Long startIndex, Long pageSize) {
+        Filter usageFilter = new Filter(UsageVO.class, "startDate", false, startIndex, pageSize);
+
+        SearchCriteria<UsageVO> sc = _usageDao.createSearchCriteria();
+
+        if (accountId != null) {
+            sc.addAnd("accountId", SearchCriteria.Op.EQ, accountId);
+        }
+
+        if (domainId != null) {
+            sc.addAnd("domainId", SearchCriteria.Op.EQ, domainId);
+        }
+
+        if (usageType != null) {
+            sc.addAnd("usageType", SearchCriteria.Op.EQ, usageType);
+        }
+
+        sc.addAnd("startDate", SearchCriteria.Op.BETWEEN, startDate, endDate);
+        sc.addAnd("endDate", SearchCriteria.Op.BETWEEN, startDate, endDate);
+
+        return _usageDao.searchAllRecords(sc, usageFilter);
+    }
+
+    /**
+     * Sums the usage in the range per account, usage type, offering and zone.
+     * The whole months and days in the range are read from the rollups, the
+     * rest of the range and the records not rolled up yet from cloud_usage.
+     * Records are counted in the day they start.
+     */
+    public List<UsageVO> sumRecords(Date startDate, Date endDate, Long accountId, Long domainId, Long usageType, Long startIndex, Long pageSize) {
+        Calendar cal = Calendar.getInstance(_usageTimezone);
+        cal.setTime(startDate);
+        truncateToDay(cal);
+        if (cal.getTime().before(startDate)) {
+            cal.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        Date firstDay = cal.getTime();
+        cal.setTime(new Date(endDate.getTime() + 1));
+        truncateToDay(cal);
+        Date daysEnd = cal.getTime();
+
+        Map<String, UsageRollupVO> sums = new TreeMap<String, UsageRollupVO>();
+        if (!firstDay.before(daysEnd)) {
+            // no whole day in the range
+            addSums(sums, _usageRollupDao.sumRecords(startDate, endDate, accountId, domainId, usageType, 0, Long.MAX_VALUE));
+        } else {
+            long lastRolledUpId = _usageRollupDao.getLastRolledUpUsageId();
+            if (startDate.before(firstDay)) {
+                addSums(sums, _usageRollupDao.sumRecords(startDate, new Date(firstDay.getTime() - 1000), accountId, domainId, usageType, 0, Long.MAX_VALUE));
+            }
+            if (!endDate.before(daysEnd)) {
+                addSums(sums, _usageRollupDao.sumRecords(daysEnd, endDate, accountId, domainId, usageType, 0, Long.MAX_VALUE));
+            }
+
+            // whole months from the monthly rollups, the days around them from the daily ones
+            cal.setTime(firstDay);
+            if (cal.get(Calendar.DAY_OF_MONTH) != 1) {
+                cal.set(Calendar.DAY_OF_MONTH, 1);
+                cal.add(Calendar.MONTH, 1);
+            }
+            Date firstMonth = cal.getTime();
+            cal.setTime(daysEnd);
+            cal.set(Calendar.DAY_OF_MONTH, 1);
+            Date monthsEnd = cal.getTime();
+            if (firstMonth.before(monthsEnd)) {
+                addSums(sums, _usageRollupDao.listRollups(UsageRollupVO.MONTHLY, firstMonth, new Date(monthsEnd.getTime() - 1000), accountId, domainId, usageType));
+                if (firstDay.before(firstMonth)) {
+                    addSums(sums, _usageRollupDao.listRollups(UsageRollupVO.DAILY, firstDay, new Date(firstMonth.getTime() - 1000), accountId, domainId, usageType));
+                }
+                if (monthsEnd.before(daysEnd)) {
+                    addSums(sums, _usageRollupDao.listRollups(UsageRollupVO.DAILY, monthsEnd, new Date(daysEnd.getTime() - 1000), accountId, domainId, usageType));
+                }
+            } else {
+                addSums(sums, _usageRollupDao.listRollups(UsageRollupVO.DAILY, firstDay, new Date(daysEnd.getTime() - 1000), accountId, domainId, usageType));
+            }
+
+            // records created since the last rollup update
+            addSums(sums, _usageRollupDao.sumRecords(firstDay, new Date(daysEnd.getTime() - 1000), accountId, domainId, usageType, lastRolledUpId, Long.MAX_VALUE));
+        }
+
+        DecimalFormat dFormat = new DecimalFormat("#.######");
+        List<UsageVO> usageSums = new ArrayList<UsageVO>();
+        int index = 0;
+        for (UsageRollupVO sum : sums.values()) {
+            if (startIndex != null && index++ < startIndex) {
+                continue;
+            }
+            if (pageSize != null && usageSums.size() >= pageSize) {
+                break;
+            }
+            String usageDisplay;
+            if (sum.getUsageType() == UsageTypes.NETWORK_BYTES_SENT || sum.getUsageType() == UsageTypes.NETWORK_BYTES_RECEIVED) {
+                usageDisplay = (long)sum.getRawUsage() + " bytes";
+            } else {
+                usageDisplay = dFormat.format(sum.getRawUsage()) + " Hrs";
+            }
+            Long offeringId = (sum.getOfferingId() != 0) ? Long.valueOf(sum.getOfferingId()) : null;
+            usageSums.add(new UsageVO(sum.getZoneId(), sum.getAccountId(), sum.getDomainId(), "usage summed up over " + sum.getNumRecords() + " usage records", usageDisplay,
+                    sum.getUsageType(), sum.getRawUsage(), null, null, offeringId, null, null, null, startDate, endDate));
+        }
+        return usageSums;
+    }
+
+    private static void addSums(Map<String, UsageRollupVO> sums, List<UsageRollupVO> rollups) {
+        for (UsageRollupVO rollup : rollups) {
+            UsageRollupVO sum = sums.get(rollup.getUsageKey());
+            if (sum == null) {
+                sums.put(rollup.getUsageKey(), new UsageRollupVO(null, null, rollup.getAccountId(), rollup.getDomainId(), rollup.getZoneId(), rollup.getUsageType(),
+                        rollup.getOfferingId(), rollup.getRawUsage(), rollup.getNumRecords()));
+            } else {
+                sum.add(rollup.getRawUsage(), rollup.getNumRecords());
+            }
+        }
+    }
+
+    private static void truncateToDay(Calendar cal) {
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+    }
+}
@@ -0,0 +1,138 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage;
+
+import java.util.Date;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * The usage records of a day or of a month, in the usage aggregation
+ * timezone, summed per account, usage type, offering and zone.
+ */
+@Entity
+@Table(name="usage_rollup")
+public class UsageRollupVO {
+    public static final String DAILY = "Daily";
+    public static final String MONTHLY = "Monthly";
+
+    @Id
+    @GeneratedValue(strategy=GenerationType.IDENTITY)
+    @Column(name="id")
+    private Long id;
+
+    @Column(name="granularity")
+    private String granularity;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name="period_start")
+    private Date periodStart;
+
+    @Column(name="account_id")
+    private long accountId;
+
+    @Column(name="domain_id")
+    private long domainId;
+
+    @Column(name="zone_id")
+    private long zoneId;
+
+    @Column(name="usage_type")
+    private int usageType;
+
+    @Column(name="offering_id")
+    private long offeringId;
+
+    @Column(name="raw_usage")
+    private double rawUsage;
+
+    @Column(name="num_records")
+    private long numRecords;
+
+    protected UsageRollupVO() {
+    }
+
+    public UsageRollupVO(String granularity, Date periodStart, long accountId, long domainId, long zoneId, int usageType, long offeringId, double rawUsage, long numRecords) {
+        this.granularity = granularity;
+        this.periodStart = periodStart;
+        this.accountId = accountId;
+        this.domainId = domainId;
+        this.zoneId = zoneId;
+        this.usageType = usageType;
+        this.offeringId = offeringId;
+        this.rawUsage = rawUsage;
+        this.numRecords = numRecords;
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getGranularity() {
+        return granularity;
+    }
+
+    public Date getPeriodStart() {
+        return periodStart;
+    }
+
+    public long getAccountId() {
+        return accountId;
+    }
+
+    public long getDomainId() {
+        return domainId;
+    }
+
+    public long getZoneId() {
+        return zoneId;
+    }
+
+    public int getUsageType() {
+        return usageType;
+    }
+
+    /**
+     * @return the offering id, 0 for usage types without an offering.
+     */
+    public long getOfferingId() {
+        return offeringId;
+    }
+
+    public double getRawUsage() {
+        return rawUsage;
+    }
+
+    public long getNumRecords() {
+        return numRecords;
+    }
+
+    public void add(double rawUsage, long numRecords) {
+        this.rawUsage += rawUsage;
+        this.numRecords += numRecords;
+    }
+
+    /**
+     * @return key of the rollup row, without the granularity and period.
+     */
+    public String getUsageKey() {
+        return accountId + "-" + usageType + "-" + offeringId + "-" + zoneId;
+    }
+}
@@ -31,7 +31,9 @@ public interface UsageDao extends GenericDao<UsageVO, Long> {
     void updateAccounts(List<AccountVO> accounts) throws UsageServerException;
     void saveUserStats(List<UserStatisticsVO> userStats) throws UsageServerException;
     void updateUserStats(List<UserStatisticsVO> userStats) throws UsageServerException;
+    void saveUsageRecords(List<UsageVO> usageRecords) throws UsageServerException;
     Long getLastAccountId() throws UsageServerException;
     Long getLastUserStatsId() throws UsageServerException;
+    Long getLastUsageId();
     List<Long> listPublicTemplatesByAccount(long accountId);
 }
@@ -14,6 +14,7 @@ package com.cloud.usage.dao;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Date;
@@ -48,6 +49,9 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
 
     private static final String GET_LAST_ACCOUNT = "SELECT id FROM cloud_usage.account ORDER BY id DESC LIMIT 1";
     private static final String GET_LAST_USER_STATS = "SELECT id FROM cloud_usage.user_statistics ORDER BY id DESC LIMIT 1";
+    private static final String GET_LAST_USAGE = "SELECT id FROM cloud_usage.cloud_usage ORDER BY id DESC LIMIT 1";
+    private static final String INSERT_USAGE_RECORD = "INSERT INTO cloud_usage.cloud_usage (zone_id, account_id, domain_id, description, usage_display, usage_type, raw_usage, vm_instance_id, vm_name, " +
+                                                      "offering_id, template_id, usage_id, type, size, network_id, start_date, end_date) VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
     private static final String GET_PUBLIC_TEMPLATES_BY_ACCOUNTID = "SELECT id FROM cloud.vm_template WHERE account_id = ? AND public = '1' AND removed IS NULL";
 
     protected final static TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
@@ -244,6 +248,66 @@ public class UsageDaoImpl extends GenericDaoBase<UsageVO, Long> implements Usage
         }
         return null;
     }
+
+    @Override
+    public void saveUsageRecords(List<UsageVO> usageRecords) throws UsageServerException {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            txn.start();
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(INSERT_USAGE_RECORD);
+            for (UsageVO usageRecord : usageRecords) {
+                pstmt.setLong(1, usageRecord.getZoneId());
+                pstmt.setLong(2, usageRecord.getAccountId());
+                pstmt.setLong(3, usageRecord.getDomainId());
+                pstmt.setString(4, usageRecord.getDescription());
+                pstmt.setString(5, usageRecord.getUsageDisplay());
+                pstmt.setInt(6, usageRecord.getUsageType());
+                pstmt.setDouble(7, usageRecord.getRawUsage());
+                setLong(pstmt, 8, usageRecord.getVmInstanceId());
+                pstmt.setString(9, usageRecord.getVmName());
+                setLong(pstmt, 10, usageRecord.getOfferingId());
+                setLong(pstmt, 11, usageRecord.getTemplateId());
+                setLong(pstmt, 12, usageRecord.getUsageId());
+                pstmt.setString(13, usageRecord.getType());
+                setLong(pstmt, 14, usageRecord.getSize());
+                setLong(pstmt, 15, usageRecord.getNetworkId());
+                pstmt.setString(16, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), usageRecord.getStartDate()));
+                pstmt.setString(17, DateUtil.getDateDisplayString(TimeZone.getTimeZone("GMT"), usageRecord.getEndDate()));
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+            txn.commit();
+        } catch (Exception ex) {
+            txn.rollback();
+            s_logger.error("error saving usage records to cloud_usage db", ex);
+            throw new UsageServerException(ex.getMessage());
+        }
+    }
+
+    private static void setLong(PreparedStatement pstmt, int index, Long value) throws SQLException {
+        if (value == null) {
+            pstmt.setNull(index, Types.BIGINT);
+        } else {
+            pstmt.setLong(index, value.longValue());
+        }
+    }
+
+    @Override
+    public Long getLastUsageId() {
+        Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        String sql = GET_LAST_USAGE;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(sql);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return Long.valueOf(rs.getLong(1));
+            }
+        } catch (Exception ex) {
+            s_logger.error("error getting last usage id", ex);
+        }
+        return null;
+    }
     
     @Override
     public List<Long> listPublicTemplatesByAccount(long accountId) {
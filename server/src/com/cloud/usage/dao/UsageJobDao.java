@@ -27,4 +27,5 @@ public interface UsageJobDao extends GenericDao<UsageJobVO, Long> {
     Date getLastHeartbeat();
     UsageJobVO isOwner(String hostname, int pid);
     void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success) throws UsageServerException;
+    void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success, long numAccounts, long numRecords) throws UsageServerException;
 }
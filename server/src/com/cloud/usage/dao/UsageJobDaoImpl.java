@@ -55,6 +55,11 @@ public class UsageJobDaoImpl extends GenericDaoBase<UsageJobVO, Long> implements
 
     @Override
     public void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success) throws UsageServerException {
+        updateJobSuccess(jobId, startMillis, endMillis, execTime, success, 0, 0);
+    }
+
+    @Override
+    public void updateJobSuccess(Long jobId, long startMillis, long endMillis, long execTime, boolean success, long numAccounts, long numRecords) throws UsageServerException {
         Transaction txn = Transaction.open(Transaction.USAGE_DB);
         try {
             txn.start();
@@ -67,6 +72,8 @@ public class UsageJobDaoImpl extends GenericDaoBase<UsageJobVO, Long> implements
             jobForUpdate.setStartDate(new Date(startMillis));
             jobForUpdate.setEndDate(new Date(endMillis));
             jobForUpdate.setSuccess(success);
+            jobForUpdate.setNumAccounts(numAccounts);
+            jobForUpdate.setNumRecords(numRecords);
             update(job.getId(), jobForUpdate);
 
             txn.commit();
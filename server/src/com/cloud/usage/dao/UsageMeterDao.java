@@ -0,0 +1,29 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage.dao;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import com.cloud.usage.UsageMeterVO;
+import com.cloud.utils.db.GenericDao;
+
+public interface UsageMeterDao extends GenericDao<UsageMeterVO, Long> {
+    /**
+     * Replaces the snapshot with the given meters, all taken at the same time.
+     */
+    void saveSnapshot(Collection<UsageMeterVO> meters, Date updated);
+
+    List<UsageMeterVO> listMeters(Long accountId, Long domainId, Long usageType, Long startIndex, Long pageSize);
+}
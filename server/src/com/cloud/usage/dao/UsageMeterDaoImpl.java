@@ -0,0 +1,98 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage.dao;
+
+import java.sql.PreparedStatement;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.ejb.Local;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.usage.UsageMeterVO;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+@Local(value={UsageMeterDao.class})
+public class UsageMeterDaoImpl extends GenericDaoBase<UsageMeterVO, Long> implements UsageMeterDao {
+    public static final Logger s_logger = Logger.getLogger(UsageMeterDaoImpl.class.getName());
+
+    private static final String SAVE_METER = "INSERT INTO cloud_usage.usage_meter (account_id, domain_id, zone_id, usage_type, period_start, raw_usage, open_count, updated) VALUES (?,?,?,?,?,?,?,?) " +
+                                             "ON DUPLICATE KEY UPDATE domain_id = VALUES(domain_id), period_start = VALUES(period_start), raw_usage = VALUES(raw_usage), open_count = VALUES(open_count), updated = VALUES(updated)";
+    private static final String DELETE_OLD_METERS = "DELETE FROM cloud_usage.usage_meter WHERE updated < ?";
+
+    private static final int BATCH_SIZE = 1000;
+    private static final TimeZone s_gmt = TimeZone.getTimeZone("GMT");
+
+    public UsageMeterDaoImpl() {
+    }
+
+    @Override
+    public void saveSnapshot(Collection<UsageMeterVO> meters, Date updated) {
+        String updatedStr = DateUtil.getDateDisplayString(s_gmt, updated);
+        Transaction txn = Transaction.currentTxn();
+        try {
+            txn.start();
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(SAVE_METER);
+            int batched = 0;
+            for (UsageMeterVO meter : meters) {
+                pstmt.setLong(1, meter.getAccountId());
+                pstmt.setLong(2, meter.getDomainId());
+                pstmt.setLong(3, meter.getZoneId());
+                pstmt.setInt(4, meter.getUsageType());
+                pstmt.setString(5, DateUtil.getDateDisplayString(s_gmt, meter.getPeriodStart()));
+                pstmt.setDouble(6, meter.getRawUsage());
+                pstmt.setInt(7, meter.getOpenCount());
+                pstmt.setString(8, updatedStr);
+                pstmt.addBatch();
+                if (++batched % BATCH_SIZE == 0) {
+                    pstmt.executeBatch();
+                }
+            }
+            pstmt.executeBatch();
+
+            // meters of accounts that no longer have usage in the period
+            pstmt = txn.prepareAutoCloseStatement(DELETE_OLD_METERS);
+            pstmt.setString(1, updatedStr);
+            pstmt.executeUpdate();
+            txn.commit();
+        } catch (Exception ex) {
+            txn.rollback();
+            throw new CloudRuntimeException("Unable to save the usage meters", ex);
+        }
+    }
+
+    @Override
+    public List<UsageMeterVO> listMeters(Long accountId, Long domainId, Long usageType, Long startIndex, Long pageSize) {
+        SearchCriteria<UsageMeterVO> sc = createSearchCriteria();
+        if (accountId != null) {
+            sc.addAnd("accountId", SearchCriteria.Op.EQ, accountId);
+        }
+        if (domainId != null) {
+            sc.addAnd("domainId", SearchCriteria.Op.EQ, domainId);
+        }
+        if (usageType != null) {
+            sc.addAnd("usageType", SearchCriteria.Op.EQ, usageType.intValue());
+        }
+        Filter filter = new Filter(UsageMeterVO.class, "accountId", true, startIndex, pageSize);
+        filter.addOrderBy(UsageMeterVO.class, "usageType", true);
+        return listBy(sc, filter);
+    }
+}
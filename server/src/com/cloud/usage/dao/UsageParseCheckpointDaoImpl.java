@@ -0,0 +1,34 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage.dao;
+
+import java.util.List;
+
+import javax.ejb.Local;
+
+import com.cloud.usage.UsageParseCheckpointVO;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.SearchCriteria;
+
+@Local(value={UsageParseCheckpointDao.class})
+public class UsageParseCheckpointDaoImpl extends GenericDaoBase<UsageParseCheckpointVO, Long> implements UsageParseCheckpointDao {
+
+    @Override
+    public List<UsageParseCheckpointVO> listPending() {
+        Filter filter = new Filter(UsageParseCheckpointVO.class, "startDate", true, null, null);
+        filter.addOrderBy(UsageParseCheckpointVO.class, "firstAccountId", true);
+        SearchCriteria<UsageParseCheckpointVO> sc = createSearchCriteria();
+        return listBy(sc, filter);
+    }
+}
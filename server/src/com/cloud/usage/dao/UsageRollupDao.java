@@ -0,0 +1,51 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage.dao;
+
+import java.util.Date;
+import java.util.List;
+
+import com.cloud.usage.UsageRollupVO;
+import com.cloud.utils.db.GenericDao;
+
+public interface UsageRollupDao extends GenericDao<UsageRollupVO, Long> {
+    /**
+     * @return id of the last usage record added to the rollups, 0 if none was.
+     */
+    long getLastRolledUpUsageId();
+
+    void setLastRolledUpUsageId(long usageId);
+
+    /**
+     * Sums the usage records with ids in (fromId, toId] per account, usage
+     * type, offering, zone and record start date.  The rows returned have no
+     * granularity and the record start date as period start.
+     */
+    List<UsageRollupVO> sumRecords(long fromId, long toId);
+
+    /**
+     * Sums the usage records that start and end within the range and have ids
+     * in (fromId, toId], like sumRecords(long, long).
+     */
+    List<UsageRollupVO> sumRecords(Date startDate, Date endDate, Long accountId, Long domainId, Long usageType, long fromId, long toId);
+
+    /**
+     * Adds the usage to the rollup rows with the same granularity, period and
+     * key, creating the ones that don't exist yet.
+     */
+    void addUsage(List<UsageRollupVO> rollups);
+
+    int deleteRollups(String granularity, Date startDate, Date endDate);
+
+    List<UsageRollupVO> listRollups(String granularity, Date startDate, Date endDate, Long accountId, Long domainId, Long usageType);
+}
@@ -0,0 +1,192 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage.dao;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import javax.ejb.Local;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.usage.UsageRollupVO;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.db.GenericDaoBase;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+@Local(value={UsageRollupDao.class})
+public class UsageRollupDaoImpl extends GenericDaoBase<UsageRollupVO, Long> implements UsageRollupDao {
+    public static final Logger s_logger = Logger.getLogger(UsageRollupDaoImpl.class.getName());
+
+    private static final String GET_WATERMARK = "SELECT last_usage_id FROM cloud_usage.usage_rollup_watermark WHERE id = 1";
+    private static final String SET_WATERMARK = "INSERT INTO cloud_usage.usage_rollup_watermark (id, last_usage_id) VALUES (1, ?) ON DUPLICATE KEY UPDATE last_usage_id = VALUES(last_usage_id)";
+    private static final String SUM_RECORDS = "SELECT account_id, domain_id, zone_id, usage_type, IFNULL(offering_id, 0), start_date, SUM(raw_usage), COUNT(*) FROM cloud_usage.cloud_usage ";
+    private static final String SUM_RECORDS_GROUP_BY = " GROUP BY account_id, domain_id, zone_id, usage_type, IFNULL(offering_id, 0), start_date";
+    private static final String ADD_USAGE = "INSERT INTO cloud_usage.usage_rollup (granularity, period_start, account_id, domain_id, zone_id, usage_type, offering_id, raw_usage, num_records) " +
+                                            "VALUES (?,?,?,?,?,?,?,?,?) ON DUPLICATE KEY UPDATE raw_usage = raw_usage + VALUES(raw_usage), num_records = num_records + VALUES(num_records)";
+    private static final String DELETE_ROLLUPS = "DELETE FROM cloud_usage.usage_rollup WHERE granularity = ? AND period_start BETWEEN ? AND ?";
+
+    private static final TimeZone s_gmt = TimeZone.getTimeZone("GMT");
+
+    public UsageRollupDaoImpl() {
+    }
+
+    @Override
+    public long getLastRolledUpUsageId() {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(GET_WATERMARK);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                return rs.getLong(1);
+            }
+            return 0;
+        } catch (Exception ex) {
+            throw new CloudRuntimeException("Unable to get the last rolled up usage id", ex);
+        }
+    }
+
+    @Override
+    public void setLastRolledUpUsageId(long usageId) {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(SET_WATERMARK);
+            pstmt.setLong(1, usageId);
+            pstmt.executeUpdate();
+        } catch (Exception ex) {
+            throw new CloudRuntimeException("Unable to set the last rolled up usage id", ex);
+        }
+    }
+
+    @Override
+    public List<UsageRollupVO> sumRecords(long fromId, long toId) {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(SUM_RECORDS + "WHERE id > ? AND id <= ?" + SUM_RECORDS_GROUP_BY);
+            pstmt.setLong(1, fromId);
+            pstmt.setLong(2, toId);
+            return toRollups(pstmt.executeQuery());
+        } catch (Exception ex) {
+            throw new CloudRuntimeException("Unable to sum usage records " + fromId + "-" + toId, ex);
+        }
+    }
+
+    @Override
+    public List<UsageRollupVO> sumRecords(Date startDate, Date endDate, Long accountId, Long domainId, Long usageType, long fromId, long toId) {
+        StringBuilder sql = new StringBuilder(SUM_RECORDS);
+        sql.append("WHERE start_date BETWEEN ? AND ? AND end_date BETWEEN ? AND ? AND id > ? AND id <= ?");
+        if (accountId != null) {
+            sql.append(" AND account_id = ?");
+        }
+        if (domainId != null) {
+            sql.append(" AND domain_id = ?");
+        }
+        if (usageType != null) {
+            sql.append(" AND usage_type = ?");
+        }
+        sql.append(SUM_RECORDS_GROUP_BY);
+
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(sql.toString());
+            int i = 1;
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmt, startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmt, endDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmt, startDate));
+            pstmt.setString(i++, DateUtil.getDateDisplayString(s_gmt, endDate));
+            pstmt.setLong(i++, fromId);
+            pstmt.setLong(i++, toId);
+            if (accountId != null) {
+                pstmt.setLong(i++, accountId);
+            }
+            if (domainId != null) {
+                pstmt.setLong(i++, domainId);
+            }
+            if (usageType != null) {
+                pstmt.setLong(i++, usageType);
+            }
+            return toRollups(pstmt.executeQuery());
+        } catch (Exception ex) {
+            throw new CloudRuntimeException("Unable to sum usage records between " + startDate + " and " + endDate, ex);
+        }
+    }
+
+    private List<UsageRollupVO> toRollups(ResultSet rs) throws Exception {
+        List<UsageRollupVO> rollups = new ArrayList<UsageRollupVO>();
+        while (rs.next()) {
+            Date recordStart = DateUtil.parseDateString(s_gmt, rs.getString(6));
+            rollups.add(new UsageRollupVO(null, recordStart, rs.getLong(1), rs.getLong(2), rs.getLong(3), rs.getInt(4), rs.getLong(5), rs.getDouble(7), rs.getLong(8)));
+        }
+        return rollups;
+    }
+
+    @Override
+    public void addUsage(List<UsageRollupVO> rollups) {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(ADD_USAGE);
+            for (UsageRollupVO rollup : rollups) {
+                pstmt.setString(1, rollup.getGranularity());
+                pstmt.setString(2, DateUtil.getDateDisplayString(s_gmt, rollup.getPeriodStart()));
+                pstmt.setLong(3, rollup.getAccountId());
+                pstmt.setLong(4, rollup.getDomainId());
+                pstmt.setLong(5, rollup.getZoneId());
+                pstmt.setInt(6, rollup.getUsageType());
+                pstmt.setLong(7, rollup.getOfferingId());
+                pstmt.setDouble(8, rollup.getRawUsage());
+                pstmt.setLong(9, rollup.getNumRecords());
+                pstmt.addBatch();
+            }
+            pstmt.executeBatch();
+        } catch (Exception ex) {
+            throw new CloudRuntimeException("Unable to add usage to the rollups", ex);
+        }
+    }
+
+    @Override
+    public int deleteRollups(String granularity, Date startDate, Date endDate) {
+        Transaction txn = Transaction.currentTxn();
+        try {
+            PreparedStatement pstmt = txn.prepareAutoCloseStatement(DELETE_ROLLUPS);
+            pstmt.setString(1, granularity);
+            pstmt.setString(2, DateUtil.getDateDisplayString(s_gmt, startDate));
+            pstmt.setString(3, DateUtil.getDateDisplayString(s_gmt, endDate));
+            return pstmt.executeUpdate();
+        } catch (Exception ex) {
+            throw new CloudRuntimeException("Unable to delete " + granularity + " rollups between " + startDate + " and " + endDate, ex);
+        }
+    }
+
+    @Override
+    public List<UsageRollupVO> listRollups(String granularity, Date startDate, Date endDate, Long accountId, Long domainId, Long usageType) {
+        SearchCriteria<UsageRollupVO> sc = createSearchCriteria();
+        sc.addAnd("granularity", SearchCriteria.Op.EQ, granularity);
+        sc.addAnd("periodStart", SearchCriteria.Op.BETWEEN, startDate, endDate);
+        if (accountId != null) {
+            sc.addAnd("accountId", SearchCriteria.Op.EQ, accountId);
+        }
+        if (domainId != null) {
+            sc.addAnd("domainId", SearchCriteria.Op.EQ, domainId);
+        }
+        if (usageType != null) {
+            sc.addAnd("usageType", SearchCriteria.Op.EQ, usageType.intValue());
+        }
+        return listBy(sc);
+    }
+}
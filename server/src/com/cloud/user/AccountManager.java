@@ -82,6 +82,16 @@ public interface AccountManager extends AccountService {
      */
     Pair<User, Account> findUserByApiKey(String apiKey);
 
+    /**
+     * Locate a user that hasn't been removed and its account, for checking the user
+     * behind a session.  Like findUserByApiKey the result may be served from a cache
+     * that lives for api.auth.cache.ttl seconds.
+     * 
+     * @param userId
+     * @return the user/account pair, null if the user doesn't exist or is removed
+     */
+    Pair<User, Account> getActiveUserAccount(long userId);
+
     boolean lockAccount(long accountId);
 
 	boolean enableAccount(long accountId);
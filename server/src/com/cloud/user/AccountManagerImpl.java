@@ -100,6 +100,7 @@ import com.cloud.user.Account.State;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserAccountDao;
 import com.cloud.user.dao.UserDao;
+import com.cloud.utils.LRUCache;
 import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.Pair;
 import com.cloud.utils.Ternary;
@@ -210,6 +211,11 @@ public class AccountManagerImpl implements AccountManager, AccountService, Manag
     Adapters<SecurityChecker> _securityCheckers;
     int _cleanupInterval;
 
+    // users and accounts resolved for authenticating API requests; null when api.auth.cache.ttl is 0
+    private static final int AUTH_CACHE_SIZE = 10000;
+    private LRUCache<String, Pair<User, Account>> _apiKeyCache;
+    private LRUCache<Long, Pair<User, Account>> _activeUserCache;
+
     @Override
     public boolean configure(final String name, final Map<String, Object> params) throws ConfigurationException {
         _name = name;
@@ -231,6 +237,12 @@ public class AccountManagerImpl implements AccountManager, AccountService, Manag
         String value = configs.get(Config.AccountCleanupInterval.key());
         _cleanupInterval = NumbersUtil.parseInt(value, 60 * 60 * 24); // 1 hour.
 
+        int authCacheTtl = NumbersUtil.parseInt(configs.get(Config.ApiAuthCacheTtl.key()), 10);
+        if (authCacheTtl > 0) {
+            _apiKeyCache = new LRUCache<String, Pair<User, Account>>(AUTH_CACHE_SIZE, authCacheTtl * 1000L);
+            _activeUserCache = new LRUCache<Long, Pair<User, Account>>(AUTH_CACHE_SIZE, authCacheTtl * 1000L);
+        }
+
         _userAuthenticators = locator.getAdapters(UserAuthenticator.class);
         if (_userAuthenticators == null || !_userAuthenticators.isSet()) {
             s_logger.error("Unable to find an user authenticator.");
@@ -402,7 +414,9 @@ public class AccountManagerImpl implements AccountManager, AccountService, Manag
     private boolean doSetUserStatus(long userId, State state) {
         UserVO userForUpdate = _userDao.createForUpdate();
         userForUpdate.setState(state);
-        return _userDao.update(Long.valueOf(userId), userForUpdate);
+        boolean success = _userDao.update(Long.valueOf(userId), userForUpdate);
+        invalidateAuthCache();
+        return success;
     }
 
     @Override
@@ -412,6 +426,7 @@ public class AccountManagerImpl implements AccountManager, AccountService, Manag
         acctForUpdate.setState(State.enabled);
         acctForUpdate.setNeedsCleanup(false);
         success = _accountDao.update(Long.valueOf(accountId), acctForUpdate);
+        invalidateAuthCache();
         return success;
     }
 
@@ -426,6 +441,7 @@ public class AccountManagerImpl implements AccountManager, AccountService, Manag
                 AccountVO acctForUpdate = _accountDao.createForUpdate();
                 acctForUpdate.setState(State.locked);
                 success = _accountDao.update(Long.valueOf(accountId), acctForUpdate);
+                invalidateAuthCache();
             } else {
                 if (s_logger.isInfoEnabled()) {
                     s_logger.info("Attempting to lock a non-enabled account, current state is " + account.getState() + " (accountId: " + accountId + "), locking failed.");
@@ -446,6 +462,7 @@ public class AccountManagerImpl implements AccountManager, AccountService, Manag
             s_logger.error("Unable to delete account " + accountId);
             return false;
         }
+        invalidateAuthCache();
 
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Removed account " + accountId);
@@ -627,6 +644,7 @@ public class AccountManagerImpl implements AccountManager, AccountService, Manag
             AccountVO acctForUpdate = _accountDao.createForUpdate();
             acctForUpdate.setState(State.disabled);
             success = _accountDao.update(Long.valueOf(accountId), acctForUpdate);
+            invalidateAuthCache();
 
             if (success) {
                 boolean disableAccountResult = false;
@@ -875,6 +893,7 @@ public class AccountManagerImpl implements AccountManager, AccountService, Manag
             }
 
             _userDao.update(id, user);
+            invalidateAuthCache();
         } catch (Throwable th) {
             s_logger.error("error updating user", th);
             throw new CloudRuntimeException("Unable to update user " + id);
@@ -1222,6 +1241,7 @@ public class AccountManagerImpl implements AccountManager, AccountService, Manag
         }
 
         txn.commit();
+        invalidateAuthCache();
 
         if (success) {
             return _accountDao.findById(account.getId());
@@ -1253,7 +1273,9 @@ public class AccountManagerImpl implements AccountManager, AccountService, Manag
         }
 
         checkAccess(UserContext.current().getCaller(), null, true, account);
-        return _userDao.remove(id);
+        boolean success = _userDao.remove(id);
+        invalidateAuthCache();
+        return success;
     }
 
     public class ResourceCountCalculateTask implements Runnable {
@@ -1774,7 +1796,62 @@ public class AccountManagerImpl implements AccountManager, AccountService, Manag
 
     @Override
     public Pair<User, Account> findUserByApiKey(String apiKey) {
-        return _accountDao.findUserAccountByApiKey(apiKey);
+        if (_apiKeyCache == null) {
+            return _accountDao.findUserAccountByApiKey(apiKey);
+        }
+        Pair<User, Account> userAcct = _apiKeyCache.get(apiKey);
+        if (userAcct != null) {
+            return copyOf(userAcct);
+        }
+        userAcct = _accountDao.findUserAccountByApiKey(apiKey);
+        if (userAcct != null) {
+            _apiKeyCache.put(apiKey, copyOf(userAcct));
+        }
+        return userAcct;
+    }
+
+    @Override
+    public Pair<User, Account> getActiveUserAccount(long userId) {
+        Pair<User, Account> userAcct = (_activeUserCache != null) ? _activeUserCache.get(userId) : null;
+        if (userAcct != null) {
+            return copyOf(userAcct);
+        }
+        User user = _userDao.findById(userId);
+        if (user == null) {
+            return null;
+        }
+        Account account = _accountDao.findByIdIncludingRemoved(user.getAccountId());
+        if (account == null) {
+            return null;
+        }
+        userAcct = new Pair<User, Account>(user, account);
+        if (_activeUserCache != null) {
+            _activeUserCache.put(userId, copyOf(userAcct));
+        }
+        return userAcct;
+    }
+
+    /**
+     * The cached users and accounts are shared by every request thread, so only copies
+     * of them are handed out; a caller changing its user or account cannot change what
+     * the next request authenticates against.
+     */
+    private static Pair<User, Account> copyOf(Pair<User, Account> userAcct) {
+        return new Pair<User, Account>(new UserVO((UserVO) userAcct.first()), new AccountVO((AccountVO) userAcct.second()));
+    }
+
+    /**
+     * Drops the users and accounts cached for authentication.  Called once a change to a
+     * user's keys or state, or to an account's state, has been written, so a lookup racing
+     * the update cannot put the old row back.  The caches are local to this management
+     * server: changes made on other management servers are only picked up when the entries
+     * expire, which is why api.auth.cache.ttl is kept short.
+     */
+    private void invalidateAuthCache() {
+        if (_apiKeyCache != null) {
+            _apiKeyCache.clear();
+            _activeUserCache.clear();
+        }
     }
 
     @Override @DB
@@ -1792,6 +1869,7 @@ public class AccountManagerImpl implements AccountManager, AccountService, Manag
         keys[0] = createUserApiKey(userId);
         keys[1] = createUserSecretKey(userId);
         txn.commit();
+        invalidateAuthCache();
 
         return keys;
     }
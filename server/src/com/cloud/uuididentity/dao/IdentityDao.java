@@ -12,12 +12,21 @@
 // Automatically generated by addcopyright.py at 04/03/2012
 package com.cloud.uuididentity.dao;
 
+import java.util.List;
+import java.util.Map;
+
 import com.cloud.api.IdentityMapper;
 import com.cloud.utils.db.GenericDao;
 
 public interface IdentityDao extends GenericDao<IdentityVO, Long> {
 	Long getIdentityId(IdentityMapper mapper, String identityString);
     Long getIdentityId(String tableName, String identityString);
+    /**
+     * Resolves several ids or uuids of the same table in one query.
+     * @return map from each identity string passed in to its database id, never null.
+     * @throws CloudRuntimeException if the lookup fails.
+     */
+    Map<String, Long> getIdentityIds(String tableName, List<String> identityStrings);
 	String getIdentityUuid(String tableName, String identityString);
 	void initializeDefaultUuid(String tableName);
 }
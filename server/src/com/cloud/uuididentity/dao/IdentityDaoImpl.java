@@ -16,7 +16,9 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 import javax.ejb.Local;
@@ -28,6 +30,7 @@ import com.cloud.exception.InvalidParameterValueException;
 import com.cloud.utils.db.DB;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
 
 @Local(value={IdentityDao.class})
 public class IdentityDaoImpl extends GenericDaoBase<IdentityVO, Long> implements IdentityDao {
@@ -87,6 +90,90 @@ public class IdentityDaoImpl extends GenericDaoBase<IdentityVO, Long> implements
 		return null;
     }
 	
+    @DB
+    public Map<String, Long> getIdentityIds(String tableName, List<String> identityStrings) {
+        assert(tableName != null);
+        assert(identityStrings != null);
+
+        Map<String, Long> ids = new HashMap<String, Long>();
+        if (identityStrings.isEmpty()) {
+            return ids;
+        }
+
+        StringBuilder marks = new StringBuilder();
+        for (int i = 0; i < identityStrings.size(); i++) {
+            marks.append(i == 0 ? "?" : ",?");
+        }
+
+        PreparedStatement pstmt = null;
+        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+        try {
+            try {
+                pstmt = txn.prepareAutoCloseStatement(
+                    String.format("SELECT id, uuid FROM `%s` WHERE id IN (%s) OR uuid IN (%s)", tableName, marks, marks)
+                );
+
+                int i = 1;
+                for (String identityString : identityStrings) {
+                    Long id = parseId(identityString);
+                    pstmt.setLong(i, id != null ? id : 0);
+                    pstmt.setString(i + identityStrings.size(), identityString);
+                    i++;
+                }
+
+                Map<Long, String> rows = new HashMap<Long, String>();
+                ResultSet rs = pstmt.executeQuery();
+                while (rs.next()) {
+                    rows.put(rs.getLong(1), rs.getString(2));
+                }
+                return matchIdentities(tableName, identityStrings, rows);
+            } catch (SQLException e) {
+                s_logger.error("Unexpected exception ", e);
+                throw new CloudRuntimeException("Unable to look up " + tableName + " ids", e);
+            }
+        } finally {
+            txn.close();
+        }
+    }
+
+    /**
+     * @param rows uuid of each row found, by id.
+     * @return the id of each identity string, matched on the uuid or on the
+     *         number it parses to, e.g. 7 for "007", as getIdentityId does.
+     */
+    static Map<String, Long> matchIdentities(String tableName, List<String> identityStrings, Map<Long, String> rows) {
+        Map<String, Long> idsByUuid = new HashMap<String, Long>();
+        for (Map.Entry<Long, String> row : rows.entrySet()) {
+            if (row.getValue() != null) {
+                idsByUuid.put(row.getValue(), row.getKey());
+            }
+        }
+
+        Map<String, Long> ids = new HashMap<String, Long>();
+        for (String identityString : identityStrings) {
+            Long id = idsByUuid.get(identityString);
+            if (id == null) {
+                Long parsedId = parseId(identityString);
+                if (parsedId != null && (rows.containsKey(parsedId) || parsedId == -1L)) {
+                    id = parsedId;
+                } else {
+                    throw new InvalidParameterValueException("Object " + tableName + "(uuid: " + identityString + ") does not exist.");
+                }
+            }
+            ids.put(identityString, id);
+        }
+        return ids;
+    }
+
+    private static Long parseId(String identityString) {
+        try {
+            return Long.parseLong(identityString);
+        } catch(NumberFormatException e) {
+            // this could happen when it is a uuid string, so catch and ignore it
+            return null;
+        }
+    }
+
     @DB
 	public String getIdentityUuid(String tableName, String identityString) {
 		assert(tableName != null);
@@ -0,0 +1,289 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.vm;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.concurrency.NamedThreadFactory;
+
+/**
+ * ExpungePipeline cleans up destroyed vms or volumes in parallel.  A drain
+ * fetches the candidates in batches ordered by id and hands them to a pool
+ * of workers, with no more than maxPerHost in flight on one host and
+ * maxPerPool on one primary storage pool.  A candidate that can't start
+ * because its host or pool is busy doesn't hold up the ones behind it.  As
+ * long as a batch comes back full the next one is fetched right away, so a
+ * backlog is worked off in one drain instead of one batch per interval.
+ * Candidates that fail are left for the next drain.
+ */
+public class ExpungePipeline<T> implements ExpungePipelineMBean {
+    private static final Logger s_logger = Logger.getLogger(ExpungePipeline.class);
+
+    public interface Source<T> {
+        /**
+         * @return up to batchSize candidates with an id greater than afterId, ordered by id.
+         */
+        List<T> fetch(long afterId, int batchSize);
+
+        /**
+         * @return number of candidates waiting.
+         */
+        long count();
+
+        long getId(T candidate);
+
+        /**
+         * @return host the cleanup of the candidate runs on, null if none.
+         */
+        Long getHostId(T candidate);
+
+        /**
+         * @return primary storage pools the cleanup of the candidate works on.
+         */
+        Collection<Long> getPoolIds(T candidate);
+
+        /**
+         * @return true if the candidate was cleaned up.
+         */
+        boolean expunge(T candidate);
+    }
+
+    private final String _name;
+    private final Source<T> _source;
+    private final int _workers;
+    private final int _maxPerHost;
+    private final int _maxPerPool;
+    private final int _batchSize;
+    private final ExecutorService _workerPool;
+
+    // guarded by _lock
+    private final Object _lock = new Object();
+    private final Map<Long, Integer> _hostLoad = new HashMap<Long, Integer>();
+    private final Map<Long, Integer> _poolLoad = new HashMap<Long, Integer>();
+    private int _running;
+
+    private volatile long _backlog;
+    private volatile long _expunged;
+    private volatile long _failed;
+    private volatile long _drainStart;
+    private volatile long _drainEnd;
+    private volatile long _drained;
+
+    /**
+     * @param workers candidates cleaned up at the same time.
+     * @param maxPerHost candidates in flight on one host, 0 for no limit.
+     * @param maxPerPool candidates in flight on one primary storage pool, 0 for no limit.
+     * @param batchSize candidates fetched at a time.
+     */
+    public ExpungePipeline(String name, Source<T> source, int workers, int maxPerHost, int maxPerPool, int batchSize) {
+        _name = name;
+        _source = source;
+        _workers = Math.max(1, workers);
+        _maxPerHost = maxPerHost;
+        _maxPerPool = maxPerPool;
+        _batchSize = Math.max(1, batchSize);
+        _workerPool = Executors.newFixedThreadPool(_workers, new NamedThreadFactory(name + "-Expunge"));
+    }
+
+    /**
+     * Expunges what is waiting, fetching batches until one comes back short.
+     * Callers make sure only one drain runs at a time.
+     * @return number of candidates expunged.
+     */
+    public int drain() throws InterruptedException {
+        long expunged = _expunged;
+        _drained = 0;
+        _drainStart = System.currentTimeMillis();
+        _drainEnd = 0;
+        try {
+            long afterId = 0;
+            while (true) {
+                _backlog = _source.count();
+                List<T> batch = _source.fetch(afterId, _batchSize);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug(_name + ": expunging " + batch.size() + " of " + _backlog + " waiting");
+                }
+                afterId = _source.getId(batch.get(batch.size() - 1));
+                run(batch);
+                if (batch.size() < _batchSize) {
+                    break;
+                }
+            }
+            _backlog = _source.count();
+        } finally {
+            _drainEnd = System.currentTimeMillis();
+        }
+        int count = (int)(_expunged - expunged);
+        if (_drained > 0) {
+            s_logger.info(_name + ": expunged " + count + " of " + _drained + " in " + (_drainEnd - _drainStart) + "ms, " + _backlog + " left");
+        }
+        return count;
+    }
+
+    private static class Candidate<T> {
+        final T candidate;
+        final Long hostId;
+        final Collection<Long> poolIds;
+
+        Candidate(T candidate, Long hostId, Collection<Long> poolIds) {
+            this.candidate = candidate;
+            this.hostId = hostId;
+            this.poolIds = poolIds;
+        }
+    }
+
+    private void run(List<T> batch) throws InterruptedException {
+        // looked up once and outside the lock, the source may have to go to the database
+        List<Candidate<T>> pending = new LinkedList<Candidate<T>>();
+        for (T candidate : batch) {
+            pending.add(new Candidate<T>(candidate, _source.getHostId(candidate), _source.getPoolIds(candidate)));
+        }
+        synchronized (_lock) {
+            while (!pending.isEmpty() || _running > 0) {
+                Iterator<Candidate<T>> it = pending.iterator();
+                while (it.hasNext() && _running < _workers) {
+                    final Candidate<T> candidate = it.next();
+                    if (!hasRoom(candidate.hostId, candidate.poolIds)) {
+                        continue;
+                    }
+                    it.remove();
+                    acquire(candidate.hostId, candidate.poolIds, 1);
+                    _running++;
+                    try {
+                        _workerPool.execute(new Runnable() {
+                            @Override
+                            public void run() {
+                                expunge(candidate.candidate, candidate.hostId, candidate.poolIds);
+                            }
+                        });
+                    } catch (RejectedExecutionException e) {
+                        // shutting down, leave the rest for the next drain
+                        s_logger.warn(_name + ": unable to start expunging " + candidate.candidate + ", " + pending.size() + " more left for the next drain", e);
+                        acquire(candidate.hostId, candidate.poolIds, -1);
+                        _running--;
+                        pending.clear();
+                        break;
+                    }
+                }
+                if (_running > 0) {
+                    _lock.wait();
+                }
+            }
+        }
+    }
+
+    private void expunge(T candidate, Long hostId, Collection<Long> poolIds) {
+        boolean result = false;
+        try {
+            result = _source.expunge(candidate);
+        } catch (Exception e) {
+            s_logger.warn(_name + ": unable to expunge " + candidate, e);
+        } finally {
+            synchronized (_lock) {
+                if (result) {
+                    _expunged++;
+                } else {
+                    _failed++;
+                }
+                _drained++;
+                acquire(hostId, poolIds, -1);
+                _running--;
+                _lock.notifyAll();
+            }
+        }
+    }
+
+    private boolean hasRoom(Long hostId, Collection<Long> poolIds) {
+        if (_maxPerHost > 0 && hostId != null && get(_hostLoad, hostId) >= _maxPerHost) {
+            return false;
+        }
+        if (_maxPerPool > 0) {
+            for (Long poolId : poolIds) {
+                if (get(_poolLoad, poolId) >= _maxPerPool) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void acquire(Long hostId, Collection<Long> poolIds, int delta) {
+        if (hostId != null) {
+            add(_hostLoad, hostId, delta);
+        }
+        for (Long poolId : poolIds) {
+            add(_poolLoad, poolId, delta);
+        }
+    }
+
+    private static void add(Map<Long, Integer> load, Long key, int delta) {
+        int count = get(load, key) + delta;
+        if (count > 0) {
+            load.put(key, count);
+        } else {
+            load.remove(key);
+        }
+    }
+
+    private static int get(Map<Long, Integer> load, Long key) {
+        Integer count = load.get(key);
+        return count == null ? 0 : count;
+    }
+
+    public void shutdown() {
+        _workerPool.shutdown();
+    }
+
+    @Override
+    public long getBacklog() {
+        return _backlog;
+    }
+
+    @Override
+    public double getDrainRate() {
+        long start = _drainStart;
+        if (start == 0) {
+            return 0;
+        }
+        long end = _drainEnd != 0 ? _drainEnd : System.currentTimeMillis();
+        return _drained * 1000.0 / Math.max(1, end - start);
+    }
+
+    @Override
+    public long getExpunged() {
+        return _expunged;
+    }
+
+    @Override
+    public long getFailed() {
+        return _failed;
+    }
+
+    @Override
+    public boolean isDraining() {
+        return _drainStart != 0 && _drainEnd == 0;
+    }
+}
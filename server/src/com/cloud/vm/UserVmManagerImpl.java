@@ -13,6 +13,7 @@
 package com.cloud.vm;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -210,6 +211,7 @@ import com.cloud.utils.db.Transaction;
 import com.cloud.utils.exception.CloudRuntimeException;
 import com.cloud.utils.exception.ExecutionException;
 import com.cloud.utils.fsm.NoTransitionException;
+import com.cloud.utils.mgmt.JmxUtil;
 import com.cloud.utils.net.NetUtils;
 import com.cloud.vm.VirtualMachine.State;
 import com.cloud.vm.dao.InstanceGroupDao;
@@ -339,6 +341,7 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
     protected ScheduledExecutorService _executor = null;
     protected int _expungeInterval;
     protected int _expungeDelay;
+    protected ExpungePipeline<UserVmVO> _expungePipeline;
 
     protected String _name;
     protected String _instance;
@@ -1126,7 +1129,16 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         time = configs.get("expunge.delay");
         _expungeDelay = NumbersUtil.parseInt(time, _expungeInterval);
 
-        _executor = Executors.newScheduledThreadPool(wrks, new NamedThreadFactory("UserVm-Scavenger"));
+        _executor = Executors.newScheduledThreadPool(1, new NamedThreadFactory("UserVm-Scavenger"));
+        _expungePipeline = new ExpungePipeline<UserVmVO>("UserVm", new DestroyedVmSource(), wrks,
+                NumbersUtil.parseInt(configs.get(Config.ExpungeMaxPerHost.key()), 2),
+                NumbersUtil.parseInt(configs.get(Config.ExpungeMaxPerPool.key()), 4),
+                NumbersUtil.parseInt(configs.get(Config.ExpungeBatchSize.key()), 100));
+        try {
+            JmxUtil.registerMBean("ExpungePipeline", "UserVm", _expungePipeline);
+        } catch (Exception e) {
+            s_logger.warn("Failed to register expunge MBean", e);
+        }
 
         _itMgr.registerGuru(VirtualMachine.Type.User, this);
 
@@ -1151,6 +1163,7 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
     @Override
     public boolean stop() {
         _executor.shutdown();
+        _expungePipeline.shutdown();
         return true;
     }
 
@@ -1685,21 +1698,7 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
             try {
                 if (scanLock.lock(ACQUIRE_GLOBAL_LOCK_TIMEOUT_FOR_COOPERATION)) {
                     try {
-                        List<UserVmVO> vms = _vmDao.findDestroyedVms(new Date(System.currentTimeMillis() - ((long) _expungeDelay << 10)));
-                        if (s_logger.isInfoEnabled()) {
-                            if (vms.size() == 0) {
-                                s_logger.trace("Found " + vms.size() + " vms to expunge.");
-                            } else {
-                                s_logger.info("Found " + vms.size() + " vms to expunge.");
-                            }
-                        }
-                        for (UserVmVO vm : vms) {
-                            try {
-                                expunge(vm, _accountMgr.getSystemUser().getId(), _accountMgr.getSystemAccount());
-                            } catch (Exception e) {
-                                s_logger.warn("Unable to expunge " + vm, e);
-                            }
-                        }
+                        _expungePipeline.drain();
                     } catch (Exception e) {
                         s_logger.error("Caught the following Exception", e);
                     } finally {
@@ -1712,6 +1711,48 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         }
     }
 
+    protected class DestroyedVmSource implements ExpungePipeline.Source<UserVmVO> {
+        private Date getCutoff() {
+            return new Date(System.currentTimeMillis() - ((long) _expungeDelay << 10));
+        }
+
+        @Override
+        public List<UserVmVO> fetch(long afterId, int batchSize) {
+            return _vmDao.findDestroyedVms(getCutoff(), afterId, batchSize);
+        }
+
+        @Override
+        public long count() {
+            return _vmDao.countDestroyedVms(getCutoff());
+        }
+
+        @Override
+        public long getId(UserVmVO vm) {
+            return vm.getId();
+        }
+
+        @Override
+        public Long getHostId(UserVmVO vm) {
+            return vm.getHostId() != null ? vm.getHostId() : vm.getLastHostId();
+        }
+
+        @Override
+        public Collection<Long> getPoolIds(UserVmVO vm) {
+            Set<Long> poolIds = new HashSet<Long>();
+            for (VolumeVO volume : _volsDao.findByInstance(vm.getId())) {
+                if (volume.getPoolId() != null) {
+                    poolIds.add(volume.getPoolId());
+                }
+            }
+            return poolIds;
+        }
+
+        @Override
+        public boolean expunge(UserVmVO vm) {
+            return UserVmManagerImpl.this.expunge(vm, _accountMgr.getSystemUser().getId(), _accountMgr.getSystemAccount());
+        }
+    }
+
     private static boolean isAdmin(short accountType) {
         return ((accountType == Account.ACCOUNT_TYPE_ADMIN) || (accountType == Account.ACCOUNT_TYPE_RESOURCE_DOMAIN_ADMIN) || (accountType == Account.ACCOUNT_TYPE_DOMAIN_ADMIN) || (accountType == Account.ACCOUNT_TYPE_READ_ONLY_ADMIN));
     }
@@ -2922,6 +2963,8 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         ListProjectResourcesCriteria listProjectResourcesCriteria = domainIdRecursiveListProject.third();
 
         Criteria c = new Criteria("id", Boolean.TRUE, cmd.getStartIndex(), cmd.getPageSizeVal());
+        c.setStartAfterId(cmd.getStartAfterId());
+        c.setEstimateCount(cmd.isEstimateCount());
         c.addCriteria(Criteria.KEYWORD, cmd.getKeyword());
         c.addCriteria(Criteria.ID, cmd.getId());
         c.addCriteria(Criteria.NAME, cmd.getInstanceName());
@@ -2953,12 +2996,17 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
         }
         c.addCriteria(Criteria.ISADMIN, _accountMgr.isAdmin(caller.getType()));
 
-        return searchForUserVMs(c, caller, domainId, isRecursive, permittedAccounts, listAll, listProjectResourcesCriteria);
+        List<UserVmVO> vms = searchForUserVMs(c, caller, domainId, isRecursive, permittedAccounts, listAll, listProjectResourcesCriteria);
+        cmd.setEstimatedCount(c.getEstimatedCount());
+        return vms;
     }
 
     @Override
     public List<UserVmVO> searchForUserVMs(Criteria c, Account caller, Long domainId, boolean isRecursive, List<Long> permittedAccounts, boolean listAll, ListProjectResourcesCriteria listProjectResourcesCriteria) {
         Filter searchFilter = new Filter(UserVmVO.class, c.getOrderBy(), c.getAscending(), c.getOffset(), c.getLimit());
+        if (c.getStartAfterId() != null) {
+            searchFilter.addSeek(UserVmVO.class, "id", true, c.getStartAfterId());
+        }
 
         SearchBuilder<UserVmVO> sb = _vmDao.createSearchBuilder();
         _accountMgr.buildACLSearchBuilder(sb, domainId, isRecursive, permittedAccounts, listProjectResourcesCriteria);
@@ -3104,6 +3152,9 @@ public class UserVmManagerImpl implements UserVmManager, UserVmService, Manager
             sc.setJoinParameters("volumeSearch", "poolId", storageId);
         }
 
+        if (c.isEstimateCount()) {
+            c.setEstimatedCount(_vmDao.getEstimatedCount(sc));
+        }
         return _vmDao.search(sc, searchFilter);
     }
 
@@ -39,6 +39,13 @@ public interface UserVmDao extends GenericDao<UserVmVO, Long> {
     
     List<UserVmVO> findDestroyedVms(Date date);
 
+    /**
+     * @return up to limit destroyed vms last updated before date with an id greater than afterId, ordered by id.
+     */
+    List<UserVmVO> findDestroyedVms(Date date, long afterId, int limit);
+
+    long countDestroyedVms(Date date);
+
 	/**
 	 * List running VMs on the specified host
 	 * @param id
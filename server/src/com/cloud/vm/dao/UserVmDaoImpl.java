@@ -28,6 +28,7 @@ import org.apache.log4j.Logger;
 import com.cloud.user.Account;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.db.Attribute;
+import com.cloud.utils.db.Filter;
 import com.cloud.utils.db.GenericDaoBase;
 import com.cloud.utils.db.GenericSearchBuilder;
 import com.cloud.utils.db.JoinBuilder;
@@ -61,6 +62,7 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
     protected SearchBuilder<UserVmVO> AccountDataCenterVirtualSearch;
     protected GenericSearchBuilder<UserVmVO, Long> CountByAccountPod;
     protected GenericSearchBuilder<UserVmVO, Long> CountByAccount;
+    protected GenericSearchBuilder<UserVmVO, Long> CountDestroyed;
     protected GenericSearchBuilder<UserVmVO, Long> PodsHavingVmsForAccount;
     
     protected SearchBuilder<UserVmVO> UserVmSearch;
@@ -146,8 +148,15 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
         DestroySearch = createSearchBuilder();
         DestroySearch.and("state", DestroySearch.entity().getState(), SearchCriteria.Op.IN);
         DestroySearch.and("updateTime", DestroySearch.entity().getUpdateTime(), SearchCriteria.Op.LT);
+        DestroySearch.and("afterId", DestroySearch.entity().getId(), SearchCriteria.Op.GT);
         DestroySearch.done();
 
+        CountDestroyed = createSearchBuilder(Long.class);
+        CountDestroyed.select(null, Func.COUNT, null);
+        CountDestroyed.and("state", CountDestroyed.entity().getState(), SearchCriteria.Op.IN);
+        CountDestroyed.and("updateTime", CountDestroyed.entity().getUpdateTime(), SearchCriteria.Op.LT);
+        CountDestroyed.done();
+
         AccountHostSearch = createSearchBuilder();
         AccountHostSearch.and("accountId", AccountHostSearch.entity().getAccountId(), SearchCriteria.Op.EQ);
         AccountHostSearch.and("hostId", AccountHostSearch.entity().getHostId(), SearchCriteria.Op.EQ);
@@ -218,6 +227,25 @@ public class UserVmDaoImpl extends GenericDaoBase<UserVmVO, Long> implements Use
     	
     	return listBy(sc);
     }
+
+    @Override
+    public List<UserVmVO> findDestroyedVms(Date date, long afterId, int limit) {
+        SearchCriteria<UserVmVO> sc = DestroySearch.create();
+        sc.setParameters("state", State.Destroyed, State.Expunging, State.Error);
+        sc.setParameters("updateTime", date);
+        sc.setParameters("afterId", afterId);
+
+        return listBy(sc, new Filter(UserVmVO.class, "id", true, 0L, (long)limit));
+    }
+
+    @Override
+    public long countDestroyedVms(Date date) {
+        SearchCriteria<Long> sc = CountDestroyed.create();
+        sc.setParameters("state", State.Destroyed, State.Expunging, State.Error);
+        sc.setParameters("updateTime", date);
+
+        return customSearch(sc, null).get(0);
+    }
     
     @Override
     public List<UserVmVO> listByAccountId(long id) {
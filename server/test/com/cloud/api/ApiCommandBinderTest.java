@@ -0,0 +1,154 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.api;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.cloud.api.commands.DeployVMCmd;
+import com.cloud.api.commands.ListEventsCmd;
+import com.cloud.api.commands.ListVMsCmd;
+
+public class ApiCommandBinderTest extends TestCase {
+    private final StubResolver _resolver = new StubResolver();
+
+    static class StubResolver implements ApiCommandBinder.IdentityResolver {
+        int singleCalls = 0;
+        int batchCalls = 0;
+
+        @Override
+        public Long getIdentityId(String tableName, String identityString) {
+            singleCalls++;
+            return resolve(identityString);
+        }
+
+        @Override
+        public Map<String, Long> getIdentityIds(String tableName, List<String> identityStrings) {
+            batchCalls++;
+            Map<String, Long> ids = new HashMap<String, Long>();
+            for (String identityString : identityStrings) {
+                ids.put(identityString, resolve(identityString));
+            }
+            return ids;
+        }
+
+        private Long resolve(String identityString) {
+            if (identityString.startsWith("uuid-")) {
+                return Long.valueOf(identityString.substring("uuid-".length()));
+            }
+            return Long.valueOf(identityString);
+        }
+    }
+
+    private void bind(BaseCmd cmd, Map<String, String> params) {
+        ApiDispatcher.setupParameters(cmd, params, _resolver);
+    }
+
+    public void testBinderIsBuiltOncePerClass() {
+        assertSame(ApiCommandBinder.getBinder(ListVMsCmd.class), ApiCommandBinder.getBinder(ListVMsCmd.class));
+    }
+
+    public void testBindsOwnAndInheritedParameters() {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(ApiConstants.ID, "42");
+        params.put(ApiConstants.STATE, "Running");
+        params.put(ApiConstants.FOR_VIRTUAL_NETWORK, "true");
+        params.put(ApiConstants.DETAILS, "nics,stats");
+        params.put(ApiConstants.PAGE, "2");
+        params.put(ApiConstants.PAGE_SIZE, "20");
+
+        ListVMsCmd cmd = new ListVMsCmd();
+        bind(cmd, params);
+        assertEquals(Long.valueOf(42), cmd.getId());
+        assertEquals("Running", cmd.getState());
+        assertEquals(Boolean.TRUE, cmd.getForVirtualNetwork());
+        assertEquals(Integer.valueOf(2), cmd.getPage());
+        assertEquals(Long.valueOf(20), cmd.getPageSizeVal());
+        assertEquals(1, _resolver.singleCalls);
+    }
+
+    public void testIdentityListResolvedInOneCall() {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(ApiConstants.ZONE_ID, "1");
+        params.put(ApiConstants.SERVICE_OFFERING_ID, "uuid-3");
+        params.put(ApiConstants.TEMPLATE_ID, "4");
+        params.put(ApiConstants.NETWORK_IDS, "uuid-7,008,uuid-9");
+
+        DeployVMCmd cmd = new DeployVMCmd();
+        bind(cmd, params);
+        List<Long> expected = new ArrayList<Long>();
+        expected.add(7L);
+        expected.add(8L);
+        expected.add(9L);
+        assertEquals(expected, cmd.getNetworkIds());
+        assertEquals(Long.valueOf(3), cmd.getServiceOfferingId());
+        assertEquals(1, _resolver.batchCalls);
+    }
+
+    public void testMissingRequiredParameterIsRejected() {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(ApiConstants.ZONE_ID, "1");
+        params.put(ApiConstants.SERVICE_OFFERING_ID, "3");
+        try {
+            bind(new DeployVMCmd(), params);
+            fail("command without a template id was accepted");
+        } catch (ServerApiException e) {
+            assertEquals(BaseCmd.PARAM_ERROR, e.getErrorCode());
+        }
+    }
+
+    public void testPageRequiresPageSize() {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(ApiConstants.PAGE, "2");
+        try {
+            bind(new ListVMsCmd(), params);
+            fail("page without a page size was accepted");
+        } catch (ServerApiException e) {
+            assertEquals(BaseCmd.PARAM_ERROR, e.getErrorCode());
+        }
+    }
+
+    public void testListEventsDatesAreMassaged() {
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(ApiConstants.START_DATE, "2012-04-01");
+        params.put(ApiConstants.END_DATE, "2012-04-02 10:11:12");
+
+        ListEventsCmd cmd = new ListEventsCmd();
+        bind(cmd, params);
+        Calendar cal = Calendar.getInstance();
+        cal.setTime(cmd.getStartDate());
+        assertEquals(0, cal.get(Calendar.HOUR_OF_DAY));
+        cal.setTime(cmd.getEndDate());
+        assertEquals(10, cal.get(Calendar.HOUR_OF_DAY));
+    }
+
+    public void testStringLengthIsChecked() {
+        StringBuilder name = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            name.append('a');
+        }
+        Map<String, String> params = new HashMap<String, String>();
+        params.put(ApiConstants.NAME, name.toString());
+        try {
+            bind(new ListVMsCmd(), params);
+            fail("name longer than the parameter length was accepted");
+        } catch (ServerApiException e) {
+            assertEquals(BaseCmd.PARAM_ERROR, e.getErrorCode());
+        }
+    }
+}
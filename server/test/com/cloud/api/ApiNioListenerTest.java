@@ -0,0 +1,173 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.api;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+
+public class ApiNioListenerTest extends TestCase {
+    private ApiNioListener _listener;
+    private int _port;
+    private final CountDownLatch _release = new CountDownLatch(1);
+    private volatile boolean _block = false;
+
+    @Override
+    protected void setUp() throws Exception {
+        ServerSocket probe = new ServerSocket(0);
+        _port = probe.getLocalPort();
+        probe.close();
+
+        HttpRequestHandler handler = new HttpRequestHandler() {
+            @Override
+            public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+                if (_block) {
+                    try {
+                        _release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                    }
+                }
+                assertNotNull(context.getAttribute(ApiNioListener.CONTEXT_QUEUED_AT));
+                final ApiNioListener.Continuation continuation = (ApiNioListener.Continuation) context.getAttribute(ApiNioListener.CONTEXT_CONTINUATION);
+                if (request.getRequestLine().getUri().contains("longpoll") && !continuation.isResumed()) {
+                    continuation.suspend();
+                    new Thread() {
+                        @Override
+                        public void run() {
+                            try {
+                                _release.await(10, TimeUnit.SECONDS);
+                            } catch (InterruptedException e) {
+                            }
+                            continuation.resume();
+                        }
+                    }.start();
+                    return;
+                }
+                response.setEntity(new StringEntity("uri=" + request.getRequestLine().getUri() + (continuation.isResumed() ? " resumed" : "")));
+            }
+        };
+        _listener = new ApiNioListener(handler, _port, 1, 1, 30000);
+        _listener.start();
+        Thread.sleep(200);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        _release.countDown();
+        _listener.interrupt();
+    }
+
+    public void testKeepAliveAndPipelining() throws Exception {
+        Socket socket = new Socket("localhost", _port);
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET /?command=a HTTP/1.1\r\nHost: localhost\r\n\r\n" +
+                "POST /?command=b HTTP/1.1\r\nHost: localhost\r\nContent-Length: 3\r\n\r\nabc").getBytes("ISO-8859-1"));
+        out.flush();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        assertEquals("uri=/?command=a", readResponse(in, 200));
+        assertEquals("uri=/?command=b", readResponse(in, 200));
+        socket.close();
+    }
+
+    public void testRequestSplitAcrossReads() throws Exception {
+        Socket socket = new Socket("localhost", _port);
+        OutputStream out = socket.getOutputStream();
+        out.write("GET /?command=split HT".getBytes("ISO-8859-1"));
+        out.flush();
+        Thread.sleep(100);
+        out.write("TP/1.0\r\n\r\n".getBytes("ISO-8859-1"));
+        out.flush();
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+        assertEquals("uri=/?command=split", readResponse(in, 200));
+        // HTTP/1.0 without keep-alive is closed after the response
+        assertEquals(null, in.readLine());
+        socket.close();
+    }
+
+    public void testShedsLoadWhenQueueIsFull() throws Exception {
+        _block = true;
+        List<Socket> sockets = new ArrayList<Socket>();
+        // one request executing and one queued
+        for (int i = 0; i < 2; i++) {
+            Socket socket = new Socket("localhost", _port);
+            socket.getOutputStream().write("GET /?command=slow HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1"));
+            sockets.add(socket);
+            Thread.sleep(100);
+        }
+
+        Socket rejected = new Socket("localhost", _port);
+        rejected.getOutputStream().write("GET /?command=rejected HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1"));
+        BufferedReader in = new BufferedReader(new InputStreamReader(rejected.getInputStream(), "ISO-8859-1"));
+        readResponse(in, 503);
+        rejected.close();
+
+        _release.countDown();
+        for (Socket socket : sockets) {
+            assertEquals("uri=/?command=slow", readResponse(new BufferedReader(new InputStreamReader(socket.getInputStream(), "ISO-8859-1")), 200));
+            socket.close();
+        }
+    }
+
+    public void testSuspendedRequestDoesNotHoldWorker() throws Exception {
+        Socket parked = new Socket("localhost", _port);
+        parked.getOutputStream().write("GET /?command=longpoll HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1"));
+        Thread.sleep(100);
+
+        // the only worker is free for other requests while the first one is suspended
+        Socket other = new Socket("localhost", _port);
+        other.getOutputStream().write("GET /?command=a HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1"));
+        assertEquals("uri=/?command=a", readResponse(new BufferedReader(new InputStreamReader(other.getInputStream(), "ISO-8859-1")), 200));
+        other.close();
+
+        _release.countDown();
+        assertEquals("uri=/?command=longpoll resumed", readResponse(new BufferedReader(new InputStreamReader(parked.getInputStream(), "ISO-8859-1")), 200));
+        parked.close();
+    }
+
+    private String readResponse(BufferedReader in, int expectedStatus) throws IOException {
+        String statusLine = in.readLine();
+        assertNotNull(statusLine);
+        assertTrue(statusLine, statusLine.startsWith("HTTP/1.1 " + expectedStatus + " "));
+        int length = 0;
+        String line;
+        while ((line = in.readLine()) != null && line.length() > 0) {
+            if (line.startsWith("Content-Length: ")) {
+                length = Integer.parseInt(line.substring("Content-Length: ".length()));
+            }
+        }
+        char[] body = new char[length];
+        int read = 0;
+        while (read < length) {
+            read += in.read(body, read, length - read);
+        }
+        return new String(body);
+    }
+}
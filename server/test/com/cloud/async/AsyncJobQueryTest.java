@@ -0,0 +1,110 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.async;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.cloud.api.commands.QueryAsyncJobResultsCmd;
+import com.cloud.async.dao.AsyncJobDao;
+import com.cloud.user.Account;
+import com.cloud.user.AccountManager;
+import com.cloud.user.AccountVO;
+import com.cloud.user.UserVO;
+
+/**
+ * Checks that queryAsyncJobResults called outside the api connector doesn't park
+ * the calling thread, whatever timeout the command asks for.
+ */
+public class AsyncJobQueryTest extends TestCase {
+    private static final long USER_ID = 2;
+    private static final long ACCOUNT_ID = 2;
+
+    private AsyncJobManagerImpl _mgr;
+    private final List<Long> _polled = new ArrayList<Long>();
+
+    @Override
+    protected void setUp() throws Exception {
+        _mgr = new AsyncJobManagerImpl();
+        set(_mgr, AsyncJobManagerImpl.class, "_jobDao", Proxy.newProxyInstance(AsyncJobDao.class.getClassLoader(), new Class<?>[] { AsyncJobDao.class }, new InvocationHandler() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("listByIds")) {
+                    List<AsyncJobVO> jobs = new ArrayList<AsyncJobVO>();
+                    for (Long id : (List<Long>) args[0]) {
+                        AsyncJobVO job = new AsyncJobVO(USER_ID, ACCOUNT_ID, "cmd", null);
+                        job.setId(id);
+                        job.setStatus(AsyncJobResult.STATUS_IN_PROGRESS);
+                        jobs.add(job);
+                    }
+                    return jobs;
+                } else if (name.equals("updateLastPolled")) {
+                    _polled.addAll((List<Long>) args[0]);
+                    return null;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        }));
+        set(_mgr, AsyncJobManagerImpl.class, "_accountMgr", Proxy.newProxyInstance(AccountManager.class.getClassLoader(), new Class<?>[] { AccountManager.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("getUserIncludingRemoved")) {
+                    UserVO user = new UserVO(USER_ID);
+                    user.setAccountId(ACCOUNT_ID);
+                    return user;
+                } else if (name.equals("getAccount")) {
+                    return admin();
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        }));
+    }
+
+    private static AccountVO admin() {
+        AccountVO account = new AccountVO(ACCOUNT_ID);
+        account.setType(Account.ACCOUNT_TYPE_ADMIN);
+        return account;
+    }
+
+    private static void set(Object target, Class<?> clazz, String fieldName, Object value) throws Exception {
+        Field field = clazz.getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+    public void testTimeoutDoesNotBlock() throws Exception {
+        QueryAsyncJobResultsCmd cmd = new QueryAsyncJobResultsCmd();
+        set(cmd, QueryAsyncJobResultsCmd.class, "ids", Arrays.asList(11L, 12L));
+        set(cmd, QueryAsyncJobResultsCmd.class, "timeout", 30);
+
+        long start = System.currentTimeMillis();
+        List<AsyncJobVO> jobs = _mgr.queryAsyncJobResults(admin(), cmd);
+        long elapsed = System.currentTimeMillis() - start;
+
+        assertTrue("the call waited " + elapsed + "ms", elapsed < 5000);
+        assertEquals(2, jobs.size());
+        assertEquals(Long.valueOf(11), jobs.get(0).getId());
+        assertEquals(AsyncJobResult.STATUS_IN_PROGRESS, jobs.get(1).getStatus());
+        assertEquals(Arrays.asList(11L, 12L), _polled);
+    }
+}
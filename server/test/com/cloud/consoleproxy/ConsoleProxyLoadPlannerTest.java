@@ -0,0 +1,234 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.info.ConsoleProxyConnectionInfo;
+import com.cloud.info.ConsoleProxyStatus;
+
+public class ConsoleProxyLoadPlannerTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(ConsoleProxyLoadPlannerTest.class);
+
+    private static final long MINUTE = 60000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long DAY = 24 * HOUR;
+    // a midnight, far enough from 0 which means no sample yet
+    private static final long START = 15000 * DAY;
+
+    private static final int CAPACITY = 50;
+    private static final int STANDBY = 10;
+    private static final long BOOT_TIME = 4 * MINUTE;
+    private static final long LEAD_TIME = 20 * MINUTE;
+    private static final long SCALE_DOWN_DELAY = 30 * MINUTE;
+
+    private ConsoleProxyLoadPlanner createPlanner() {
+        return new ConsoleProxyLoadPlanner(CAPACITY, STANDBY, LEAD_TIME, SCALE_DOWN_DELAY, 10485760);
+    }
+
+    private static ConsoleProxyStatus status(int sessions, long bytesPerSession, double cpuLoad) {
+        ConsoleProxyConnectionInfo[] connections = new ConsoleProxyConnectionInfo[sessions];
+        for (int i = 0; i < sessions; i++) {
+            connections[i] = new ConsoleProxyConnectionInfo();
+            connections[i].bytesReceived = bytesPerSession;
+        }
+        return new ConsoleProxyStatus(connections, cpuLoad);
+    }
+
+    public void testBurstIsSpreadBeforeNextReport() {
+        ConsoleProxyLoadPlanner planner = createPlanner();
+        planner.onLoadReport(1, START, status(0, 0, 0));
+        planner.onLoadReport(2, START, status(0, 0, 0));
+
+        List<Long> candidates = new ArrayList<Long>();
+        candidates.add(1L);
+        candidates.add(2L);
+        Map<Long, Integer> counts = new HashMap<Long, Integer>();
+        for (int i = 0; i < 10; i++) {
+            Long proxyId = planner.selectProxy(candidates, null, START + 1000);
+            counts.put(proxyId, counts.containsKey(proxyId) ? counts.get(proxyId) + 1 : 1);
+        }
+        assertEquals(Integer.valueOf(5), counts.get(1L));
+        assertEquals(Integer.valueOf(5), counts.get(2L));
+
+        // assignments older than the report are expected to be counted by the proxy
+        planner.onLoadReport(1, START + 10000, status(5, 0, 0));
+        assertFalse(planner.hasRecentAssignments(1));
+    }
+
+    public void testBandwidthAndCpuAreScored() {
+        ConsoleProxyLoadPlanner planner = createPlanner();
+        planner.onLoadReport(1, START, status(10, 0, 0.1));
+        planner.onLoadReport(2, START, status(10, 0, 0.1));
+        // proxy 1 received 50MB in 10 seconds
+        planner.onLoadReport(1, START + 10000, status(10, 5 * 1048576, 0.1));
+        planner.onLoadReport(2, START + 10000, status(10, 1024, 0.1));
+        assertTrue(planner.getScore(1, null) > planner.getScore(2, null));
+
+        planner.onLoadReport(3, START + 10000, status(10, 0, 0.9));
+        List<Long> candidates = new ArrayList<Long>();
+        candidates.add(1L);
+        candidates.add(2L);
+        candidates.add(3L);
+        assertEquals(Long.valueOf(2), planner.selectProxy(candidates, null, START + 11000));
+    }
+
+    public void testProxyWithRoomIsPreferred() {
+        ConsoleProxyLoadPlanner planner = createPlanner();
+        // full on sessions but idle otherwise, against a busy one with room left
+        planner.onLoadReport(1, START, status(CAPACITY, 0, 0));
+        planner.onLoadReport(2, START, status(CAPACITY - 1, 0, 2.0));
+
+        List<Long> candidates = new ArrayList<Long>();
+        candidates.add(1L);
+        candidates.add(2L);
+        assertEquals(Long.valueOf(2), planner.selectProxy(candidates, null, START + 1000));
+        // both full now, the lower score wins
+        assertEquals(Long.valueOf(1), planner.selectProxy(candidates, null, START + 1000));
+    }
+
+    public void testUnreportedProxyUsesAssignedLoad() {
+        ConsoleProxyLoadPlanner planner = createPlanner();
+        planner.onLoadReport(1, START, status(20, 0, 0));
+
+        List<Long> candidates = new ArrayList<Long>();
+        candidates.add(1L);
+        candidates.add(2L);
+        Map<Long, Integer> assigned = new HashMap<Long, Integer>();
+        assigned.put(2L, 30);
+        assertEquals(Long.valueOf(1), planner.selectProxy(candidates, assigned, START + 1000));
+    }
+
+    public void testRisingDemandIsForecasted() {
+        ConsoleProxyLoadPlanner planner = createPlanner();
+        for (int i = 0; i <= 10; i++) {
+            planner.recordZoneDemand(1, START + 8 * HOUR + i * MINUTE, 10 + 5 * i);
+        }
+        int forecast = planner.forecastDemand(1, START + 8 * HOUR + 10 * MINUTE);
+        assertTrue("forecast " + forecast, forecast > 60);
+        // the trend is damped, it is not followed for the whole lead time
+        assertTrue("forecast " + forecast, forecast < 60 + 5 * LEAD_TIME / MINUTE);
+    }
+
+    public void testYesterdaysPeakIsPrelaunched() {
+        ConsoleProxyLoadPlanner planner = createPlanner();
+        for (long t = START; t < START + DAY; t += MINUTE) {
+            long minuteOfDay = (t - START) / MINUTE;
+            planner.recordZoneDemand(1, t, minuteOfDay >= 8 * 60 && minuteOfDay < 9 * 60 ? 200 : 10);
+        }
+
+        // flat demand on the next day until the lead time reaches the peak
+        long now = START + DAY;
+        for (; now < START + DAY + 7 * HOUR; now += MINUTE) {
+            planner.recordZoneDemand(1, now, 10);
+        }
+        assertEquals(1, planner.getRequiredProxyCount(1, now));
+
+        now = START + DAY + 8 * HOUR - LEAD_TIME + MINUTE;
+        planner.recordZoneDemand(1, now, 10);
+        assertEquals((200 + STANDBY) / CAPACITY + 1, planner.getRequiredProxyCount(1, now));
+        assertTrue(planner.needsMoreProxies(1, now, 1));
+    }
+
+    public void testScaleDownHysteresis() {
+        ConsoleProxyLoadPlanner planner = createPlanner();
+        long now = START;
+        planner.recordZoneDemand(1, now, 10);
+
+        // one proxy above the required count is kept
+        assertFalse(planner.canStopProxy(1, now, 2));
+
+        assertFalse(planner.canStopProxy(1, now, 4));
+        assertFalse(planner.canStopProxy(1, now + SCALE_DOWN_DELAY - MINUTE, 4));
+        assertTrue(planner.canStopProxy(1, now + SCALE_DOWN_DELAY, 4));
+        assertTrue(planner.canStopProxy(1, now + SCALE_DOWN_DELAY + MINUTE, 3));
+
+        // the surplus has to last the whole delay again once it was gone
+        assertFalse(planner.canStopProxy(1, now + SCALE_DOWN_DELAY + 2 * MINUTE, 2));
+        assertFalse(planner.canStopProxy(1, now + SCALE_DOWN_DELAY + 3 * MINUTE, 3));
+        assertTrue(planner.canStopProxy(1, now + 2 * SCALE_DOWN_DELAY + 3 * MINUTE, 3));
+    }
+
+    /**
+     * Replays two days of a morning login surge. On day one the planner only
+     * has the trend to go by, on day two it knows the daily peak.
+     */
+    public void testMorningSurgeReplay() {
+        List<long[]> trace = createMorningSurgeTrace(2);
+
+        ConsoleProxyLoadSimulator standby = replay(trace, null, START);
+        ConsoleProxyLoadSimulator planned = replay(trace, createPlanner(), START);
+        s_logger.info("Morning surge replay, both days, " + standby);
+        s_logger.info("Morning surge replay, both days, " + planned);
+        assertTrue(planned.getOverloadedSessionSeconds() <= standby.getOverloadedSessionSeconds());
+
+        standby = replay(trace, null, START + DAY);
+        planned = replay(trace, createPlanner(), START + DAY);
+        s_logger.info("Morning surge replay, second day, " + standby);
+        s_logger.info("Morning surge replay, second day, " + planned);
+
+        // idle proxies are stopped after the surge and launched again ahead of the next one
+        assertTrue(planned.getMinProxies() < planned.getMaxProxies());
+        assertEquals(0, planned.getOverloadedSessionSeconds());
+        assertTrue(planned.getProxyHours() < standby.getProxyHours());
+        assertTrue(planned.getStops() <= planned.getLaunches());
+    }
+
+    private static ConsoleProxyLoadSimulator replay(List<long[]> trace, ConsoleProxyLoadPlanner planner, long measureFrom) {
+        ConsoleProxyLoadSimulator simulator = new ConsoleProxyLoadSimulator(CAPACITY, STANDBY, BOOT_TIME, planner);
+        simulator.replay(trace, START, START + 2 * DAY, measureFrom);
+        return simulator;
+    }
+
+    /**
+     * Sessions of 20 minutes, kept at 10 concurrent sessions except from 08:00,
+     * when the count ramps up to 250 within 10 minutes, until noon when it
+     * falls back to 10 over an hour.
+     */
+    private static List<long[]> createMorningSurgeTrace(int days) {
+        final long duration = 20 * MINUTE;
+        List<long[]> trace = new ArrayList<long[]>();
+        List<Long> activeEnds = new ArrayList<Long>();
+        for (long t = START; t < START + days * DAY; t += MINUTE) {
+            long minuteOfDay = ((t - START) % DAY) / MINUTE;
+            int target = 10;
+            if (minuteOfDay >= 8 * 60 && minuteOfDay < 8 * 60 + 10) {
+                target = 10 + (int)(240 * (minuteOfDay - 8 * 60 + 1) / 10);
+            } else if (minuteOfDay >= 8 * 60 + 10 && minuteOfDay < 12 * 60) {
+                target = 250;
+            } else if (minuteOfDay >= 12 * 60 && minuteOfDay < 13 * 60) {
+                target = 250 - (int)(240 * (minuteOfDay - 12 * 60) / 60);
+            }
+
+            for (int i = activeEnds.size() - 1; i >= 0; i--) {
+                if (activeEnds.get(i) <= t) {
+                    activeEnds.remove(i);
+                }
+            }
+            int needed = target - activeEnds.size();
+            for (int i = 0; i < needed; i++) {
+                long arrival = t + i * MINUTE / needed;
+                trace.add(new long[] { arrival, duration });
+                activeEnds.add(arrival + duration);
+            }
+        }
+        return trace;
+    }
+}
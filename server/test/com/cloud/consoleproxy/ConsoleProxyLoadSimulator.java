@@ -0,0 +1,254 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.consoleproxy;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.cloud.info.ConsoleProxyConnectionInfo;
+import com.cloud.info.ConsoleProxyStatus;
+
+/**
+ * Replays a trace of viewer sessions in one zone against either the standby
+ * capacity check of ConsoleProxyManagerImpl or a ConsoleProxyLoadPlanner.
+ * 
+ * Like the capacity scanner, at most one proxy is booting at a time and a new
+ * proxy only takes sessions once it has booted. Proxies report their load at
+ * every step.
+ */
+public class ConsoleProxyLoadSimulator {
+    public static final long STEP = 10000;
+    public static final long SCAN_INTERVAL = 30000;
+    private static final long ZONE_ID = 1;
+
+    private final int _capacityPerProxy;
+    private final int _standbyCapacity;
+    private final long _bootTime;
+    private final ConsoleProxyLoadPlanner _planner;
+
+    private final List<SimProxy> _proxies = new ArrayList<SimProxy>();
+    private long _nextProxyId = 1;
+
+    // results
+    private long _overloadedSessionSeconds;
+    private long _proxySeconds;
+    private int _maxProxies;
+    private int _minProxies = Integer.MAX_VALUE;
+    private int _maxSessionsOnProxy;
+    private int _launches;
+    private int _stops;
+
+    /**
+     * @param planner null to replay against the standby capacity check only
+     */
+    public ConsoleProxyLoadSimulator(int capacityPerProxy, int standbyCapacity, long bootTime, ConsoleProxyLoadPlanner planner) {
+        _capacityPerProxy = capacityPerProxy;
+        _standbyCapacity = standbyCapacity;
+        _bootTime = bootTime;
+        _planner = planner;
+    }
+
+    /**
+     * @param sessions start time and duration of each session, ordered by start time
+     * @param measureFrom only time after this is counted in the results
+     */
+    public void replay(List<long[]> sessions, long start, long end, long measureFrom) {
+        Iterator<long[]> arrivals = sessions.iterator();
+        long[] next = arrivals.hasNext() ? arrivals.next() : null;
+
+        for (long now = start; now < end; now += STEP) {
+            for (SimProxy proxy : _proxies) {
+                proxy.expire(now);
+            }
+
+            while (next != null && next[0] <= now) {
+                place(now, next[0] + next[1]);
+                next = arrivals.hasNext() ? arrivals.next() : null;
+            }
+
+            if (_planner != null) {
+                for (SimProxy proxy : _proxies) {
+                    if (proxy.isReady(now)) {
+                        _planner.onLoadReport(proxy.id, now, proxy.getStatus());
+                    }
+                }
+            }
+
+            if ((now - start) % SCAN_INTERVAL == 0) {
+                scan(now);
+            }
+
+            if (now >= measureFrom) {
+                for (SimProxy proxy : _proxies) {
+                    _overloadedSessionSeconds += Math.max(0, proxy.sessionEnds.size() - _capacityPerProxy) * STEP / 1000;
+                    _maxSessionsOnProxy = Math.max(_maxSessionsOnProxy, proxy.sessionEnds.size());
+                }
+                _proxySeconds += _proxies.size() * STEP / 1000;
+                _maxProxies = Math.max(_maxProxies, _proxies.size());
+                _minProxies = Math.min(_minProxies, _proxies.size());
+            }
+        }
+    }
+
+    private void place(long now, long sessionEnd) {
+        List<Long> candidateIds = new ArrayList<Long>();
+        Map<Long, Integer> assignedLoad = new HashMap<Long, Integer>();
+        for (SimProxy proxy : _proxies) {
+            if (proxy.isReady(now)) {
+                candidateIds.add(proxy.id);
+                assignedLoad.put(proxy.id, proxy.sessionEnds.size());
+            }
+        }
+        if (candidateIds.isEmpty()) {
+            return;
+        }
+
+        Long selected = null;
+        if (_planner != null) {
+            selected = _planner.selectProxy(candidateIds, assignedLoad, now);
+        } else {
+            // least assigned proxy
+            for (Long proxyId : candidateIds) {
+                if (selected == null || assignedLoad.get(proxyId) < assignedLoad.get(selected)) {
+                    selected = proxyId;
+                }
+            }
+        }
+        getProxy(selected).sessionEnds.add(sessionEnd);
+    }
+
+    private void scan(long now) {
+        int sessions = 0;
+        boolean booting = false;
+        for (SimProxy proxy : _proxies) {
+            sessions += proxy.sessionEnds.size();
+            booting |= !proxy.isReady(now);
+        }
+        // the scanner skips a zone while a proxy is in transition
+        if (booting) {
+            return;
+        }
+
+        int proxyCount = _proxies.size();
+        boolean expand = proxyCount * _capacityPerProxy - sessions <= _standbyCapacity;
+        if (_planner != null) {
+            _planner.recordZoneDemand(ZONE_ID, now, sessions);
+            if (!expand && _planner.needsMoreProxies(ZONE_ID, now, proxyCount)) {
+                expand = true;
+            } else if (!expand && _planner.canStopProxy(ZONE_ID, now, proxyCount)) {
+                stopIdleProxy();
+                return;
+            }
+        }
+
+        if (expand) {
+            _proxies.add(new SimProxy(_nextProxyId++, now + _bootTime));
+            _launches++;
+        }
+    }
+
+    private void stopIdleProxy() {
+        Iterator<SimProxy> it = _proxies.iterator();
+        while (it.hasNext()) {
+            SimProxy proxy = it.next();
+            if (proxy.sessionEnds.isEmpty() && !_planner.hasRecentAssignments(proxy.id)) {
+                it.remove();
+                _planner.onProxyStopped(proxy.id);
+                _stops++;
+                return;
+            }
+        }
+    }
+
+    private SimProxy getProxy(long id) {
+        for (SimProxy proxy : _proxies) {
+            if (proxy.id == id) {
+                return proxy;
+            }
+        }
+        return null;
+    }
+
+    public long getOverloadedSessionSeconds() {
+        return _overloadedSessionSeconds;
+    }
+
+    public double getProxyHours() {
+        return _proxySeconds / 3600.0;
+    }
+
+    public int getMaxProxies() {
+        return _maxProxies;
+    }
+
+    public int getMinProxies() {
+        return _minProxies;
+    }
+
+    public int getMaxSessionsOnProxy() {
+        return _maxSessionsOnProxy;
+    }
+
+    public int getLaunches() {
+        return _launches;
+    }
+
+    public int getStops() {
+        return _stops;
+    }
+
+    public int getProxyCount() {
+        return _proxies.size();
+    }
+
+    @Override
+    public String toString() {
+        return (_planner != null ? "planner" : "standby") + ": overloaded session-seconds " + _overloadedSessionSeconds + ", max sessions on a proxy " + _maxSessionsOnProxy
+                + ", proxies " + _minProxies + " to " + _maxProxies + ", proxy hours " + String.format("%.1f", getProxyHours()) + ", launches " + _launches + ", stops " + _stops;
+    }
+
+    private static class SimProxy {
+        final long id;
+        final long readyAt;
+        final List<Long> sessionEnds = new ArrayList<Long>();
+
+        SimProxy(long id, long readyAt) {
+            this.id = id;
+            this.readyAt = readyAt;
+        }
+
+        boolean isReady(long now) {
+            return now >= readyAt;
+        }
+
+        void expire(long now) {
+            Iterator<Long> it = sessionEnds.iterator();
+            while (it.hasNext()) {
+                if (it.next() <= now) {
+                    it.remove();
+                }
+            }
+        }
+
+        ConsoleProxyStatus getStatus() {
+            ConsoleProxyConnectionInfo[] connections = new ConsoleProxyConnectionInfo[sessionEnds.size()];
+            for (int i = 0; i < connections.length; i++) {
+                connections[i] = new ConsoleProxyConnectionInfo();
+            }
+            return new ConsoleProxyStatus(connections, 0.1);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+public class StorageStatsPlannerTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(StorageStatsPlannerTest.class);
+
+    public void testSharedPoolsGoToOneHost() {
+        List<StorageStatsPlanner.Pool> pools = new ArrayList<StorageStatsPlanner.Pool>();
+        pools.add(new StorageStatsPlanner.Pool(1, Arrays.asList(10L, 11L, 12L), 5));
+        pools.add(new StorageStatsPlanner.Pool(2, Arrays.asList(10L, 11L, 12L), 5));
+        // local storage of host 11
+        pools.add(new StorageStatsPlanner.Pool(3, Arrays.asList(11L), 5));
+        // no host is up
+        pools.add(new StorageStatsPlanner.Pool(4, new ArrayList<Long>(), 5));
+
+        List<StorageStatsPlanner.Batch> batches = new StorageStatsPlanner(100).plan(pools);
+        assertEquals(1, batches.size());
+        assertEquals(11, batches.get(0).getHostId());
+        assertEquals(3, batches.get(0).getPools().size());
+        assertEquals(15, batches.get(0).getVolumeCount());
+    }
+
+    public void testBatchesAreCappedByVolumes() {
+        List<StorageStatsPlanner.Pool> pools = new ArrayList<StorageStatsPlanner.Pool>();
+        for (int i = 0; i < 5; i++) {
+            pools.add(new StorageStatsPlanner.Pool(i, Arrays.asList(1L, 2L), 40));
+        }
+        pools.add(new StorageStatsPlanner.Pool(9, Arrays.asList(2L), 500));
+
+        List<StorageStatsPlanner.Batch> batches = new StorageStatsPlanner(100).plan(pools);
+        Set<Long> covered = new HashSet<Long>();
+        for (StorageStatsPlanner.Batch batch : batches) {
+            assertEquals(2, batch.getHostId());
+            // a pool bigger than the cap still gets a command of its own
+            assertTrue(batch.getVolumeCount() <= 100 || batch.getPools().size() == 1);
+            for (StorageStatsPlanner.Pool pool : batch.getPools()) {
+                assertTrue(covered.add(pool.getId()));
+            }
+        }
+        assertEquals(6, covered.size());
+        assertEquals(4, batches.size());
+    }
+
+    /**
+     * Counts the commands one collection sends for 10 clusters of 8 hosts,
+     * each with 4 shared pools and local storage on every host, against one
+     * command per pool for the pool stats and one per volume for the volume
+     * stats as before.
+     */
+    public void testCommandsPerCycle() {
+        int clusters = 10;
+        int hostsPerCluster = 8;
+        int volumesPerPool = 150;
+        List<StorageStatsPlanner.Pool> pools = new ArrayList<StorageStatsPlanner.Pool>();
+        long poolId = 0;
+        for (int c = 0; c < clusters; c++) {
+            List<Long> hosts = new ArrayList<Long>();
+            for (int h = 0; h < hostsPerCluster; h++) {
+                long hostId = c * hostsPerCluster + h;
+                hosts.add(hostId);
+                pools.add(new StorageStatsPlanner.Pool(poolId++, Arrays.asList(hostId), 10));
+            }
+            for (int p = 0; p < 4; p++) {
+                pools.add(new StorageStatsPlanner.Pool(poolId++, hosts, volumesPerPool));
+            }
+        }
+        int volumes = 0;
+        for (StorageStatsPlanner.Pool pool : pools) {
+            volumes += pool.volumeCount;
+        }
+
+        List<StorageStatsPlanner.Batch> batches = new StorageStatsPlanner(5000).plan(pools);
+        s_logger.info("Stats of " + pools.size() + " pools and " + volumes + " volumes: " + batches.size() + " commands per collection, was " + pools.size()
+                + " for the pools and " + volumes + " for the volumes");
+        assertEquals(clusters * hostsPerCluster, batches.size());
+        int covered = 0;
+        for (StorageStatsPlanner.Batch batch : batches) {
+            covered += batch.getPools().size();
+        }
+        assertEquals(pools.size(), covered);
+    }
+}
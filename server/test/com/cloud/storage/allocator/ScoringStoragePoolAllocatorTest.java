@@ -0,0 +1,267 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.allocator;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.cloud.capacity.CapacityManagerImpl;
+import com.cloud.capacity.PoolCapacityLedger;
+import com.cloud.capacity.PoolCapacityLedger.PoolUsage;
+import com.cloud.dc.ClusterVO;
+import com.cloud.dc.dao.ClusterDao;
+import com.cloud.deploy.DataCenterDeployment;
+import com.cloud.deploy.DeploymentPlanner.ExcludeList;
+import com.cloud.hypervisor.Hypervisor.HypervisorType;
+import com.cloud.storage.Storage.StoragePoolType;
+import com.cloud.storage.StoragePool;
+import com.cloud.storage.StoragePoolVO;
+import com.cloud.storage.VMTemplateStoragePoolVO;
+import com.cloud.storage.Volume;
+import com.cloud.storage.dao.StoragePoolDao;
+import com.cloud.storage.dao.VMTemplatePoolDao;
+import com.cloud.storage.dao.VolumeDao;
+import com.cloud.utils.Pair;
+import com.cloud.vm.DiskProfile;
+
+public class ScoringStoragePoolAllocatorTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(ScoringStoragePoolAllocatorTest.class);
+    private static final long GB = 1024L * 1024L * 1024L;
+
+    public void testLedgerTracksVolumes() {
+        PoolCapacityLedger ledger = new PoolCapacityLedger();
+        Map<Long, Long> templates = new HashMap<Long, Long>();
+        templates.put(7L, 2 * GB);
+        assertEquals(0, ledger.load(1, new PoolUsage(1, 10 * GB, templates)));
+        ledger.load(2, new PoolUsage(0, 0, new HashMap<Long, Long>()));
+
+        ledger.volumeChanged(null, 0, 1L, 5 * GB);
+        assertEquals(2, ledger.get(1).getVolumeCount());
+        assertEquals(17 * GB, ledger.get(1).getAllocatedBytes(0));
+        assertEquals(17 * GB + 3 * 100, ledger.get(1).getAllocatedBytes(100));
+        assertTrue(ledger.get(1).hasTemplate(7));
+
+        // resize, then move to the other pool
+        ledger.volumeChanged(1L, 5 * GB, 1L, 8 * GB);
+        assertEquals(20 * GB, ledger.get(1).getAllocatedBytes(0));
+        ledger.volumeChanged(1L, 8 * GB, 2L, 8 * GB);
+        assertEquals(1, ledger.get(1).getVolumeCount());
+        assertEquals(8 * GB, ledger.get(2).getVolumeBytes());
+
+        // pools not loaded are left to be read from the database
+        ledger.volumeChanged(2L, 8 * GB, 3L, 8 * GB);
+        assertNull(ledger.get(3));
+        assertEquals(0, ledger.get(2).getVolumeCount());
+
+        // a reload reports what the ledger had missed
+        assertEquals(4 * GB, ledger.load(2, new PoolUsage(1, 4 * GB, new HashMap<Long, Long>())));
+        ledger.invalidate(1);
+        assertNull(ledger.get(1));
+        assertEquals(1, ledger.listPools().size());
+    }
+
+    public void testScore() {
+        ScoringStoragePoolAllocator allocator = new ScoringStoragePoolAllocator();
+        assertTrue(allocator.score(100 * GB, 95 * GB, 10 * GB, 0, true) < 0);
+        assertTrue(allocator.score(100 * GB, 20 * GB, 10 * GB, 0, false) > allocator.score(100 * GB, 50 * GB, 10 * GB, 0, false));
+        assertTrue(allocator.score(100 * GB, 20 * GB, 10 * GB, 10, false) > allocator.score(100 * GB, 20 * GB, 10 * GB, 90, false));
+        assertTrue(allocator.score(100 * GB, 30 * GB, 10 * GB, 10, true) > allocator.score(100 * GB, 20 * GB, 10 * GB, 10, false));
+        // the I/O headroom runs out but does not go below nothing
+        assertEquals(allocator.score(100 * GB, 20 * GB, 10 * GB, 100, false), allocator.score(100 * GB, 20 * GB, 10 * GB, 500, false));
+    }
+
+    /**
+     * Places 10k volumes on 200 pools through allocateToPool and the capacity
+     * manager, with the database kept in memory and its queries counted.  The
+     * pools are ranked from the ledger and only the pool taken is summed in the
+     * database, where the allocators used to sum every pool they looked at.
+     */
+    public void testAllocationBenchmark() throws Exception {
+        int poolCount = 200;
+        int volumeCount = 10000;
+        int templateCount = 20;
+        Random random = new Random(46);
+        Fixture fixture = new Fixture();
+        for (int i = 0; i < poolCount; i++) {
+            fixture.addPool((2 + 2 * (i % 3)) * 1024 * GB, random.nextInt(templateCount), random.nextInt(templateCount));
+        }
+
+        long start = System.nanoTime();
+        int onTemplate = 0;
+        for (int v = 0; v < volumeCount; v++) {
+            long size = (10 + random.nextInt(91)) * GB;
+            long templateId = random.nextInt(templateCount);
+            List<StoragePool> pools = fixture.allocate(size, templateId);
+            assertEquals("volume " + v + " did not fit", 1, pools.size());
+            StoragePool pool = pools.get(0);
+            if (fixture.templates.get(pool.getId()).containsKey(templateId)) {
+                onTemplate++;
+            }
+            fixture.placeVolume(pool.getId(), size);
+        }
+        long elapsed = System.nanoTime() - start;
+
+        double minFill = 1;
+        double maxFill = 0;
+        for (StoragePoolVO pool : fixture.pools) {
+            PoolUsage usage = fixture.capacityMgr.getPoolUsage(pool.getId());
+            assertEquals(fixture.volumeBytes.get(pool.getId()).longValue(), usage.getVolumeBytes());
+            double fill = usage.getAllocatedBytes(0) / (double)pool.getCapacityBytes();
+            minFill = Math.min(minFill, fill);
+            maxFill = Math.max(maxFill, fill);
+        }
+        s_logger.info("Placed " + volumeCount + " volumes on " + poolCount + " pools in " + (elapsed / 1000000) + "ms with " + fixture.queries
+                + " queries, summing every pool per volume would take " + (2L * poolCount * volumeCount) + ", pool fill " + minFill + " - " + maxFill + ", "
+                + onTemplate + " volumes placed with their template");
+        // each pool is loaded into the ledger once, then only the pool taken is summed
+        assertTrue(fixture.queries <= 2 * poolCount + 2 * volumeCount);
+        assertTrue(maxFill - minFill < 0.15);
+        assertTrue(onTemplate > volumeCount / 2);
+    }
+
+    public void testLedgerIsNotTrustedForCapacity() throws Exception {
+        Fixture fixture = new Fixture();
+        fixture.addPool(100 * GB, 1, 1);
+        fixture.addPool(100 * GB, 1, 1);
+        fixture.placeVolume(1, 50 * GB);
+
+        // another management server fills the pool the ledger thinks is empty
+        fixture.capacityMgr.getPoolUsage(0);
+        fixture.volumeBytes.put(0L, 90 * GB);
+        fixture.volumeCounts.put(0L, 1L);
+
+        List<StoragePool> pools = fixture.allocate(20 * GB, 2);
+        assertEquals(1, pools.size());
+        assertEquals(1, pools.get(0).getId());
+        // and the check brought the ledger up to date
+        assertEquals(90 * GB, fixture.capacityMgr.getPoolUsage(0).getVolumeBytes());
+    }
+
+    /**
+     * An allocator and capacity manager over storage pools, volumes and
+     * template copies kept in memory.
+     */
+    private static class Fixture {
+        final ScoringStoragePoolAllocator allocator = new ScoringStoragePoolAllocator();
+        final CapacityManagerImpl capacityMgr = new CapacityManagerImpl();
+        final List<StoragePoolVO> pools = new ArrayList<StoragePoolVO>();
+        final Map<Long, Long> volumeCounts = new HashMap<Long, Long>();
+        final Map<Long, Long> volumeBytes = new HashMap<Long, Long>();
+        final Map<Long, Map<Long, Long>> templates = new HashMap<Long, Map<Long, Long>>();
+        final ClusterVO cluster = new ClusterVO(1);
+        int queries;
+
+        Fixture() throws Exception {
+            Logger.getLogger(AbstractStoragePoolAllocator.class).setLevel(Level.INFO);
+            Logger.getLogger(ScoringStoragePoolAllocator.class).setLevel(Level.INFO);
+            cluster.setHypervisorType(HypervisorType.KVM.toString());
+
+            set(capacityMgr, "_volumeDao", proxy(VolumeDao.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (!method.getName().equals("getCountAndTotalByPool")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    queries++;
+                    return new Pair<Long, Long>(volumeCounts.get(args[0]), volumeBytes.get(args[0]));
+                }
+            }));
+            set(capacityMgr, "_templatePoolDao", proxy(VMTemplatePoolDao.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (!method.getName().equals("listByPoolId")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    queries++;
+                    List<VMTemplateStoragePoolVO> copies = new ArrayList<VMTemplateStoragePoolVO>();
+                    for (Map.Entry<Long, Long> entry : templates.get(args[0]).entrySet()) {
+                        VMTemplateStoragePoolVO copy = new VMTemplateStoragePoolVO((Long)args[0], entry.getKey());
+                        copy.setTemplateSize(entry.getValue());
+                        copies.add(copy);
+                    }
+                    return copies;
+                }
+            }));
+
+            allocator._capacityMgr = capacityMgr;
+            allocator._storagePoolDao = proxy(StoragePoolDao.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (!method.getName().equals("findPoolsByTags")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return new ArrayList<StoragePoolVO>(pools);
+                }
+            });
+            allocator._clusterDao = proxy(ClusterDao.class, new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    if (!method.getName().equals("findById")) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    return cluster;
+                }
+            });
+        }
+
+        void addPool(long capacity, long... templateIds) {
+            long id = pools.size();
+            StoragePoolVO pool = new StoragePoolVO(id, "pool" + id, "pool" + id, StoragePoolType.NetworkFilesystem, 1, 1L, capacity, capacity, "nfs", 2049, "/pool" + id);
+            pool.setClusterId(cluster.getId());
+            pools.add(pool);
+            volumeCounts.put(id, 0L);
+            volumeBytes.put(id, 0L);
+            Map<Long, Long> copies = new HashMap<Long, Long>();
+            for (long templateId : templateIds) {
+                copies.put(templateId, 2 * GB);
+            }
+            templates.put(id, copies);
+        }
+
+        List<StoragePool> allocate(long size, long templateId) {
+            DiskProfile disk = new DiskProfile(1, Volume.Type.ROOT, "ROOT-1", 1, size, null, false, false, templateId);
+            disk.setHyperType(HypervisorType.KVM);
+            return allocator.allocateToPool(disk, null, new DataCenterDeployment(1, 1L, cluster.getId(), null, null, null), new ExcludeList(), 1);
+        }
+
+        // what StorageManagerImpl does when a volume is created on the pool
+        void placeVolume(long poolId, long size) {
+            volumeCounts.put(poolId, volumeCounts.get(poolId) + 1);
+            volumeBytes.put(poolId, volumeBytes.get(poolId) + size);
+            capacityMgr.volumeAllocationChanged(null, 0, poolId, size);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> T proxy(Class<T> iface, InvocationHandler handler) {
+            return (T)Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface }, handler);
+        }
+
+        private static void set(Object target, String fieldName, Object value) throws Exception {
+            Field field = target.getClass().getDeclaredField(fieldName);
+            field.setAccessible(true);
+            field.set(target, value);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.storage.snapshot;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.utils.DateUtil.IntervalType;
+
+public class SnapshotDispatcherTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(SnapshotDispatcherTest.class);
+
+    private static final long MINUTE = 60 * 1000L;
+    private static final long HOUR = 60 * MINUTE;
+    private static final long WINDOW = 30 * MINUTE;
+    private static final long START = 7 * 24 * HOUR;
+
+    public void testJitterIsStableAndSpread() {
+        assertEquals(SnapshotDispatcher.getJitter(42, IntervalType.DAILY, WINDOW), SnapshotDispatcher.getJitter(42, IntervalType.DAILY, WINDOW));
+        assertEquals(0, SnapshotDispatcher.getJitter(42, IntervalType.DAILY, 0));
+
+        int[] buckets = new int[30];
+        for (long volumeId = 1; volumeId <= 3000; volumeId++) {
+            long jitter = SnapshotDispatcher.getJitter(volumeId, IntervalType.HOURLY, 2 * HOUR);
+            // capped at half of the hourly interval
+            assertTrue(jitter >= 0 && jitter < WINDOW);
+            buckets[(int)(jitter / MINUTE)]++;
+        }
+        for (int count : buckets) {
+            assertTrue("jitter is not spread evenly: " + count, count > 70 && count < 130);
+        }
+    }
+
+    public void testLimitsAndPriority() {
+        SnapshotDispatcher dispatcher = new SnapshotDispatcher(2, 1, 3, 0);
+        dispatcher.setSecondaryStorageVms(1, 1);
+        List<SnapshotDispatcher.Candidate> due = new ArrayList<SnapshotDispatcher.Candidate>();
+        due.add(new SnapshotDispatcher.Candidate(1, 1, 10, 100L, 1, IntervalType.WEEKLY, 0));
+        due.add(new SnapshotDispatcher.Candidate(2, 2, 10, 101L, 1, IntervalType.HOURLY, 5));
+        due.add(new SnapshotDispatcher.Candidate(3, 3, 10, 102L, 1, IntervalType.DAILY, 1));
+        due.add(new SnapshotDispatcher.Candidate(4, 4, 11, 101L, 1, IntervalType.HOURLY, 2));
+        due.add(new SnapshotDispatcher.Candidate(5, 5, 11, 103L, 1, IntervalType.HOURLY, 3));
+
+        List<SnapshotDispatcher.Candidate> selected = dispatcher.select(due, 1000);
+        List<Long> ids = new ArrayList<Long>();
+        for (SnapshotDispatcher.Candidate candidate : selected) {
+            ids.add(candidate.getScheduleId());
+        }
+        // 4 takes host 101 before 2 gets to it, then the zone's one secondary storage VM is full
+        assertEquals("[4, 5, 3]", ids.toString());
+        assertEquals(Integer.valueOf(2), dispatcher.getPoolWaiting().get(10L));
+        assertEquals(Long.valueOf(1000), dispatcher.getPoolLag().get(10L));
+        assertNull(dispatcher.getPoolLag().get(11L));
+    }
+
+    private static class Policy {
+        final long volumeId;
+        final long poolId;
+        final long hostId;
+        final long zoneId;
+        final IntervalType interval;
+        long next;
+        long finish = -1;
+        long started = -1;
+
+        Policy(long volumeId, long poolId, long hostId, long zoneId, IntervalType interval) {
+            this.volumeId = volumeId;
+            this.poolId = poolId;
+            this.hostId = hostId;
+            this.zoneId = zoneId;
+            this.interval = interval;
+        }
+
+        void schedule(long now) {
+            long period = SnapshotDispatcher.getIntervalMillis(interval);
+            long jitter = SnapshotDispatcher.getJitter(volumeId, interval, WINDOW);
+            next = ((now - jitter) / period + 1) * period + jitter;
+        }
+    }
+
+    /**
+     * 20000 policies on 100 pools, 400 hosts and 5 zones with 4 secondary
+     * storage VMs each, polled every minute for three hours.
+     */
+    public void testSimulation() {
+        int maxPerPool = 10;
+        int maxPerHost = 4;
+        int maxPerSsvm = 50;
+        int maxPerPoll = 400;
+        SnapshotDispatcher dispatcher = new SnapshotDispatcher(maxPerPool, maxPerHost, maxPerSsvm, maxPerPoll);
+        Random random = new Random(1);
+
+        List<Policy> policies = new ArrayList<Policy>();
+        for (int i = 0; i < 20000; i++) {
+            int type = random.nextInt(10);
+            IntervalType interval = type < 6 ? IntervalType.HOURLY : (type < 9 ? IntervalType.DAILY : IntervalType.WEEKLY);
+            Policy policy = new Policy(i + 1, i % 100, i % 400, i % 5, interval);
+            // starting a week in, every policy has a run at the start
+            policy.schedule(START - 1);
+            policies.add(policy);
+        }
+
+        int hourly = 0;
+        for (Policy policy : policies) {
+            if (policy.interval == IntervalType.HOURLY) {
+                hourly++;
+            }
+        }
+        int peakDue = 0;
+        int peakStarted = 0;
+        long maxLag = 0;
+        boolean held = false;
+        int hourlyRuns = 0;
+        for (long now = START + MINUTE; now <= START + 3 * HOUR; now += MINUTE) {
+            dispatcher.reset();
+            for (int zone = 0; zone < 5; zone++) {
+                dispatcher.setSecondaryStorageVms(zone, 4);
+            }
+
+            Map<Long, Policy> byVolume = new HashMap<Long, Policy>();
+            List<SnapshotDispatcher.Candidate> due = new ArrayList<SnapshotDispatcher.Candidate>();
+            for (Policy policy : policies) {
+                if (policy.finish >= 0 && policy.finish <= now) {
+                    policy.finish = -1;
+                    policy.schedule(now);
+                }
+                SnapshotDispatcher.Candidate candidate = new SnapshotDispatcher.Candidate(policy.volumeId, policy.volumeId, policy.poolId, policy.hostId, policy.zoneId,
+                        policy.interval, policy.next);
+                if (policy.finish >= 0) {
+                    dispatcher.inFlight(candidate);
+                } else if (policy.next <= now) {
+                    due.add(candidate);
+                    byVolume.put(policy.volumeId, policy);
+                }
+            }
+            peakDue = Math.max(peakDue, due.size());
+
+            List<SnapshotDispatcher.Candidate> selected = dispatcher.select(due, now);
+            peakStarted = Math.max(peakStarted, selected.size());
+            held |= !dispatcher.getPoolLag().isEmpty();
+            for (Long lag : dispatcher.getPoolLag().values()) {
+                maxLag = Math.max(maxLag, lag);
+            }
+
+            Map<Long, Integer> poolLoad = new HashMap<Long, Integer>();
+            Map<Long, Integer> hostLoad = new HashMap<Long, Integer>();
+            Map<Long, Integer> zoneLoad = new HashMap<Long, Integer>();
+            for (SnapshotDispatcher.Candidate candidate : selected) {
+                Policy policy = byVolume.get(candidate.getVolumeId());
+                policy.started = now;
+                // taking and backing up a snapshot takes one to three minutes
+                policy.finish = now + (1 + random.nextInt(3)) * MINUTE;
+                if (policy.interval == IntervalType.HOURLY && now > START + HOUR && now <= START + 2 * HOUR) {
+                    hourlyRuns++;
+                }
+            }
+            for (Policy policy : policies) {
+                if (policy.finish >= 0) {
+                    count(poolLoad, policy.poolId);
+                    count(hostLoad, policy.hostId);
+                    count(zoneLoad, policy.zoneId);
+                }
+            }
+            for (int load : poolLoad.values()) {
+                assertTrue(load <= maxPerPool);
+            }
+            for (int load : hostLoad.values()) {
+                assertTrue(load <= maxPerHost);
+            }
+            for (int load : zoneLoad.values()) {
+                assertTrue(load <= maxPerSsvm * 4);
+            }
+        }
+
+        s_logger.info("20000 policies all due at the start of a week: at most " + peakDue + " due and " + peakStarted
+                + " started on a poll with it, longest wait " + (maxLag / MINUTE) + " minutes");
+        assertTrue(peakStarted <= maxPerPoll);
+        assertTrue(peakDue < policies.size() / 2);
+        assertTrue(held);
+        // every hourly policy still gets its snapshot in the second hour, none waits into the next run
+        assertEquals(hourly, hourlyRuns);
+        assertTrue(maxLag < HOUR);
+    }
+
+    private static void count(Map<Long, Integer> load, long key) {
+        Integer count = load.get(key);
+        load.put(key, count == null ? 1 : count + 1);
+    }
+}
@@ -0,0 +1,119 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.template;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class TemplateCachePlannerTest extends TestCase {
+    private static final long GB = 1024L * 1024 * 1024;
+
+    private final TemplateCachePlanner _planner = new TemplateCachePlanner(10, 3);
+
+    public void testStagesHotTemplatesOncePerCluster() {
+        List<TemplateCachePlanner.Pool> pools = new ArrayList<TemplateCachePlanner.Pool>();
+        pools.add(new TemplateCachePlanner.Pool(1, 1, 10L, 1000 * GB, 900 * GB));
+        pools.add(new TemplateCachePlanner.Pool(2, 1, 10L, 1000 * GB, 900 * GB));
+        pools.add(new TemplateCachePlanner.Pool(3, 1, 20L, 1000 * GB, 900 * GB));
+
+        List<TemplateCachePlanner.Copy> copies = new ArrayList<TemplateCachePlanner.Copy>();
+        // template 102 is already in cluster 10
+        copies.add(new TemplateCachePlanner.Copy(1, 102, 1, 5 * GB, true, false));
+
+        List<TemplateCachePlanner.Deploys> deploys = new ArrayList<TemplateCachePlanner.Deploys>();
+        deploys.add(new TemplateCachePlanner.Deploys(101, 1, 2, 1000));
+        deploys.add(new TemplateCachePlanner.Deploys(101, 2, 5, 1000));
+        deploys.add(new TemplateCachePlanner.Deploys(102, 1, 9, 1000));
+        deploys.add(new TemplateCachePlanner.Deploys(102, 3, 4, 1000));
+        // not hot anywhere
+        deploys.add(new TemplateCachePlanner.Deploys(103, 3, 2, 1000));
+
+        Map<Long, Long> sizes = new HashMap<Long, Long>();
+        sizes.put(101L, 10 * GB);
+        sizes.put(102L, 5 * GB);
+        sizes.put(103L, 5 * GB);
+
+        List<TemplateCachePlanner.Stage> stages = _planner.planStaging(pools, copies, deploys, sizes, 10);
+        assertEquals(2, stages.size());
+        // hottest first: 101 has 7 deploys in cluster 10, on the pool it was deployed on most
+        assertEquals(101, stages.get(0).getTemplateId());
+        assertEquals(2, stages.get(0).getPoolId());
+        assertEquals(102, stages.get(1).getTemplateId());
+        assertEquals(3, stages.get(1).getPoolId());
+
+        assertEquals(1, _planner.planStaging(pools, copies, deploys, sizes, 1).size());
+    }
+
+    public void testStagingStaysWithinBudget() {
+        List<TemplateCachePlanner.Pool> pools = new ArrayList<TemplateCachePlanner.Pool>();
+        pools.add(new TemplateCachePlanner.Pool(1, 1, null, 100 * GB, 90 * GB));
+        List<TemplateCachePlanner.Copy> copies = new ArrayList<TemplateCachePlanner.Copy>();
+        copies.add(new TemplateCachePlanner.Copy(1, 100, 1, 4 * GB, true, true));
+
+        List<TemplateCachePlanner.Deploys> deploys = new ArrayList<TemplateCachePlanner.Deploys>();
+        Map<Long, Long> sizes = new HashMap<Long, Long>();
+        for (long templateId = 101; templateId <= 103; templateId++) {
+            deploys.add(new TemplateCachePlanner.Deploys(templateId, 1, (int)(10 - templateId % 100), 1000));
+            sizes.put(templateId, 3 * GB);
+        }
+        // 10GB budget with 4GB taken leaves room for two of the three
+        List<TemplateCachePlanner.Stage> stages = _planner.planStaging(pools, copies, deploys, sizes, 10);
+        assertEquals(2, stages.size());
+        assertEquals(101, stages.get(0).getTemplateId());
+        assertEquals(102, stages.get(1).getTemplateId());
+    }
+
+    public void testEvictsLeastRecentlyDeployedPastBudget() {
+        TemplateCachePlanner.Pool pool = new TemplateCachePlanner.Pool(1, 1, 10L, 100 * GB, 50 * GB);
+        List<TemplateCachePlanner.Copy> copies = new ArrayList<TemplateCachePlanner.Copy>();
+        copies.add(new TemplateCachePlanner.Copy(1, 101, 1, 4 * GB, true, false));
+        copies.add(new TemplateCachePlanner.Copy(2, 102, 1, 4 * GB, true, true));
+        copies.add(new TemplateCachePlanner.Copy(3, 103, 1, 4 * GB, true, true));
+        copies.add(new TemplateCachePlanner.Copy(4, 104, 1, 4 * GB, false, true));
+
+        List<TemplateCachePlanner.Deploys> deploys = new ArrayList<TemplateCachePlanner.Deploys>();
+        deploys.add(new TemplateCachePlanner.Deploys(102, 1, 1, 2000));
+        deploys.add(new TemplateCachePlanner.Deploys(103, 1, 1, 1000));
+
+        // 16GB of copies on a 10GB budget: 103 goes first, then 102; the one in use and the one being copied stay
+        List<TemplateCachePlanner.Copy> evictions = _planner.planEvictions(pool, copies, deploys);
+        assertEquals(2, evictions.size());
+        assertEquals(3, evictions.get(0).getId());
+        assertEquals(2, evictions.get(1).getId());
+
+        copies.remove(3);
+        copies.remove(2);
+        assertTrue(_planner.planEvictions(pool, copies, deploys).isEmpty());
+    }
+
+    public void testCopiesOfRemovedTemplatesAreEvictedWithinBudget() {
+        TemplateCachePlanner.Pool pool = new TemplateCachePlanner.Pool(1, 1, 10L, 100 * GB, 50 * GB);
+        List<TemplateCachePlanner.Copy> copies = new ArrayList<TemplateCachePlanner.Copy>();
+        copies.add(new TemplateCachePlanner.Copy(1, 101, 1, 2 * GB, true, true, true));
+        copies.add(new TemplateCachePlanner.Copy(2, 102, 1, 2 * GB, true, true));
+        // still used by a volume, goes once the volume is gone
+        copies.add(new TemplateCachePlanner.Copy(3, 103, 1, 2 * GB, true, false, true));
+
+        List<TemplateCachePlanner.Deploys> deploys = new ArrayList<TemplateCachePlanner.Deploys>();
+        deploys.add(new TemplateCachePlanner.Deploys(101, 1, 5, 3000));
+
+        // 6GB on a 10GB budget, only the removed template's unused copy goes
+        List<TemplateCachePlanner.Copy> evictions = _planner.planEvictions(pool, copies, deploys);
+        assertEquals(1, evictions.size());
+        assertEquals(1, evictions.get(0).getId());
+    }
+}
@@ -0,0 +1,148 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.user;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import junit.framework.TestCase;
+
+import com.cloud.user.Account.State;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.user.dao.UserDao;
+import com.cloud.utils.LRUCache;
+import com.cloud.utils.Pair;
+
+/**
+ * Checks that the authentication caches are dropped after the row is written,
+ * so a lookup made while the update is in flight cannot bring the old state back.
+ */
+public class AccountManagerAuthCacheTest extends TestCase {
+    private static final long USER_ID = 5;
+    private static final long ACCOUNT_ID = 7;
+    private static final String API_KEY = "key";
+
+    private AccountManagerImpl _mgr;
+    private UserVO _user;
+    private AccountVO _account;
+    // lookup made by another thread while the dao is writing
+    private Runnable _concurrentLookup;
+
+    @Override
+    protected void setUp() throws Exception {
+        _user = new UserVO(USER_ID);
+        _user.setAccountId(ACCOUNT_ID);
+        _user.setState(State.enabled);
+        _user.setApiKey(API_KEY);
+        _account = new AccountVO(ACCOUNT_ID);
+        _account.setState(State.enabled);
+
+        _mgr = new AccountManagerImpl();
+        set("_userDao", Proxy.newProxyInstance(UserDao.class.getClassLoader(), new Class<?>[] { UserDao.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("findById")) {
+                    return new UserVO(_user);
+                } else if (name.equals("createForUpdate")) {
+                    return new UserVO();
+                } else if (name.equals("update")) {
+                    _concurrentLookup.run();
+                    _user.setState(((UserVO) args[1]).getState());
+                    return true;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        }));
+        set("_accountDao", Proxy.newProxyInstance(AccountDao.class.getClassLoader(), new Class<?>[] { AccountDao.class }, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if (name.equals("findByIdIncludingRemoved") || name.equals("findById")) {
+                    return new AccountVO(_account);
+                } else if (name.equals("findUserAccountByApiKey")) {
+                    return new Pair<User, Account>(new UserVO(_user), new AccountVO(_account));
+                } else if (name.equals("createForUpdate")) {
+                    return new AccountVO();
+                } else if (name.equals("update")) {
+                    _concurrentLookup.run();
+                    _account.setState(((AccountVO) args[1]).getState());
+                    return true;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        }));
+        set("_apiKeyCache", new LRUCache<String, Pair<User, Account>>(100, 60000));
+        set("_activeUserCache", new LRUCache<Long, Pair<User, Account>>(100, 60000));
+
+        _concurrentLookup = new Runnable() {
+            @Override
+            public void run() {
+                _mgr.getActiveUserAccount(USER_ID);
+                _mgr.findUserByApiKey(API_KEY);
+            }
+        };
+    }
+
+    private void set(String fieldName, Object value) throws Exception {
+        Field field = AccountManagerImpl.class.getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(_mgr, value);
+    }
+
+    public void testLockAccountIsSeenByCachedLookups() {
+        assertEquals(State.enabled, _mgr.getActiveUserAccount(USER_ID).second().getState());
+        assertEquals(State.enabled, _mgr.findUserByApiKey(API_KEY).second().getState());
+
+        assertTrue(_mgr.lockAccount(ACCOUNT_ID));
+
+        assertEquals(State.locked, _mgr.getActiveUserAccount(USER_ID).second().getState());
+        assertEquals(State.locked, _mgr.findUserByApiKey(API_KEY).second().getState());
+    }
+
+    public void testEnableAccountIsSeenByCachedLookups() {
+        _account.setState(State.disabled);
+        assertEquals(State.disabled, _mgr.getActiveUserAccount(USER_ID).second().getState());
+
+        assertTrue(_mgr.enableAccount(ACCOUNT_ID));
+
+        assertEquals(State.enabled, _mgr.getActiveUserAccount(USER_ID).second().getState());
+    }
+
+    public void testChangesFromOtherServersWaitForExpiry() {
+        assertEquals(State.enabled, _mgr.getActiveUserAccount(USER_ID).first().getState());
+
+        // written by another management server, which cannot clear this one's cache
+        _user.setState(State.disabled);
+
+        assertEquals(State.enabled, _mgr.getActiveUserAccount(USER_ID).first().getState());
+    }
+
+    public void testCachedEntriesAreNotShared() {
+        Pair<User, Account> first = _mgr.getActiveUserAccount(USER_ID);
+        Pair<User, Account> second = _mgr.getActiveUserAccount(USER_ID);
+        assertNotSame(first.first(), second.first());
+        assertNotSame(first.second(), second.second());
+
+        // a request changing what it was handed doesn't change the cache
+        ((UserVO) first.first()).setState(State.disabled);
+        ((AccountVO) second.second()).setState(State.locked);
+        assertEquals(State.enabled, _mgr.getActiveUserAccount(USER_ID).first().getState());
+        assertEquals(State.enabled, _mgr.getActiveUserAccount(USER_ID).second().getState());
+
+        ((UserVO) _mgr.findUserByApiKey(API_KEY).first()).setSecretKey("changed");
+        assertNull(_mgr.findUserByApiKey(API_KEY).first().getSecretKey());
+    }
+}
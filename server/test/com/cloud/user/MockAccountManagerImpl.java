@@ -263,6 +263,11 @@ public class MockAccountManagerImpl implements Manager, AccountManager {
         return null;
     }
 
+    @Override
+    public Pair<User, Account> getActiveUserAccount(long userId) {
+        return null;
+    }
+
     @Override
     public UserVO createUser(long accountId, String userName, String password, String firstName, String lastName, String email, String timezone) {
         return null;
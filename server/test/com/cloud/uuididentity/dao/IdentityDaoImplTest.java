@@ -0,0 +1,52 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.uuididentity.dao;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.cloud.exception.InvalidParameterValueException;
+
+public class IdentityDaoImplTest extends TestCase {
+    private final Map<Long, String> _rows = new HashMap<Long, String>();
+
+    @Override
+    protected void setUp() {
+        _rows.put(7L, "a4e5c2a0-7c3e-4b8e-9b5d-0c6f6c8e2f11");
+        _rows.put(8L, null);
+    }
+
+    public void testMatchesUuidsAndIds() {
+        Map<String, Long> ids = IdentityDaoImpl.matchIdentities("networks", Arrays.asList("a4e5c2a0-7c3e-4b8e-9b5d-0c6f6c8e2f11", "8"), _rows);
+        assertEquals(Long.valueOf(7), ids.get("a4e5c2a0-7c3e-4b8e-9b5d-0c6f6c8e2f11"));
+        assertEquals(Long.valueOf(8), ids.get("8"));
+    }
+
+    public void testIdsWithLeadingZerosAreKeyedAsPassed() {
+        Map<String, Long> ids = IdentityDaoImpl.matchIdentities("networks", Arrays.asList("007", "-1"), _rows);
+        assertEquals(2, ids.size());
+        assertEquals(Long.valueOf(7), ids.get("007"));
+        assertEquals(Long.valueOf(-1), ids.get("-1"));
+    }
+
+    public void testUnknownIdentityIsRejected() {
+        try {
+            IdentityDaoImpl.matchIdentities("networks", Arrays.asList("8", "9"), _rows);
+            fail("id without a row was resolved");
+        } catch (InvalidParameterValueException e) {
+        }
+    }
+}
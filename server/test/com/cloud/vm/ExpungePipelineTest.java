@@ -0,0 +1,208 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.vm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.apache.log4j.Logger;
+
+public class ExpungePipelineTest extends TestCase {
+    private static final Logger s_logger = Logger.getLogger(ExpungePipelineTest.class);
+
+    static class Vm {
+        final long id;
+        final long hostId;
+        final long poolId;
+
+        Vm(long id, long hostId, long poolId) {
+            this.id = id;
+            this.hostId = hostId;
+            this.poolId = poolId;
+        }
+    }
+
+    /**
+     * Destroyed vms kept in memory.  Expunging one takes expungeTime
+     * milliseconds and records the highest number in flight per host and pool.
+     */
+    static class FakeSource implements ExpungePipeline.Source<Vm> {
+        final List<Vm> destroyed = Collections.synchronizedList(new ArrayList<Vm>());
+        final Set<Long> failing = new HashSet<Long>();
+        final long expungeTime;
+        final Map<Long, Integer> hostLoad = new HashMap<Long, Integer>();
+        final Map<Long, Integer> poolLoad = new HashMap<Long, Integer>();
+        int maxHostLoad;
+        int maxPoolLoad;
+        int fetches;
+        int lookups;
+
+        FakeSource(int vms, int hosts, int pools, long expungeTime) {
+            for (int i = 1; i <= vms; i++) {
+                destroyed.add(new Vm(i, i % hosts, i % pools));
+            }
+            this.expungeTime = expungeTime;
+        }
+
+        @Override
+        public List<Vm> fetch(long afterId, int batchSize) {
+            fetches++;
+            List<Vm> batch = new ArrayList<Vm>();
+            synchronized (destroyed) {
+                for (Vm vm : destroyed) {
+                    if (vm.id > afterId && batch.size() < batchSize) {
+                        batch.add(vm);
+                    }
+                }
+            }
+            return batch;
+        }
+
+        @Override
+        public long count() {
+            return destroyed.size();
+        }
+
+        @Override
+        public long getId(Vm vm) {
+            return vm.id;
+        }
+
+        @Override
+        public Long getHostId(Vm vm) {
+            return vm.hostId;
+        }
+
+        @Override
+        public Collection<Long> getPoolIds(Vm vm) {
+            synchronized (this) {
+                lookups++;
+            }
+            return Collections.singletonList(vm.poolId);
+        }
+
+        @Override
+        public boolean expunge(Vm vm) {
+            synchronized (this) {
+                maxHostLoad = Math.max(maxHostLoad, add(hostLoad, vm.hostId, 1));
+                maxPoolLoad = Math.max(maxPoolLoad, add(poolLoad, vm.poolId, 1));
+            }
+            try {
+                Thread.sleep(expungeTime);
+            } catch (InterruptedException e) {
+            }
+            synchronized (this) {
+                add(hostLoad, vm.hostId, -1);
+                add(poolLoad, vm.poolId, -1);
+            }
+            if (failing.contains(vm.id)) {
+                throw new RuntimeException("agent unavailable");
+            }
+            destroyed.remove(vm);
+            return true;
+        }
+
+        private static int add(Map<Long, Integer> load, long key, int delta) {
+            Integer count = load.get(key);
+            int value = (count == null ? 0 : count) + delta;
+            load.put(key, value);
+            return value;
+        }
+    }
+
+    public void testBacklogIsDrainedInOneRun() throws Exception {
+        FakeSource source = new FakeSource(250, 10, 5, 0);
+        ExpungePipeline<Vm> pipeline = new ExpungePipeline<Vm>("test", source, 4, 0, 0, 100);
+        try {
+            assertEquals(250, pipeline.drain());
+            assertTrue(source.destroyed.isEmpty());
+            // 100 + 100 + 50, the short batch ends the drain
+            assertEquals(3, source.fetches);
+            assertEquals(0, pipeline.getBacklog());
+            assertEquals(250, pipeline.getExpunged());
+            assertFalse(pipeline.isDraining());
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    public void testHostAndPoolLimits() throws Exception {
+        FakeSource source = new FakeSource(200, 4, 2, 2);
+        ExpungePipeline<Vm> pipeline = new ExpungePipeline<Vm>("test", source, 16, 2, 3, 50);
+        try {
+            assertEquals(200, pipeline.drain());
+            assertTrue("host limit exceeded: " + source.maxHostLoad, source.maxHostLoad <= 2);
+            assertTrue("pool limit exceeded: " + source.maxPoolLoad, source.maxPoolLoad <= 3);
+            assertTrue(source.maxPoolLoad > 1);
+            // candidates waiting for room are not looked up again
+            assertEquals(200, source.lookups);
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    public void testFailuresAreLeftForTheNextDrain() throws Exception {
+        FakeSource source = new FakeSource(30, 3, 3, 0);
+        source.failing.add(5L);
+        source.failing.add(17L);
+        ExpungePipeline<Vm> pipeline = new ExpungePipeline<Vm>("test", source, 4, 0, 0, 10);
+        try {
+            assertEquals(28, pipeline.drain());
+            assertEquals(2, pipeline.getFailed());
+            assertEquals(2, pipeline.getBacklog());
+
+            source.failing.clear();
+            assertEquals(2, pipeline.drain());
+            assertEquals(0, pipeline.getBacklog());
+        } finally {
+            pipeline.shutdown();
+        }
+    }
+
+    public void testDrainAfterShutdownReturns() throws Exception {
+        FakeSource source = new FakeSource(30, 3, 3, 0);
+        ExpungePipeline<Vm> pipeline = new ExpungePipeline<Vm>("test", source, 4, 0, 0, 10);
+        pipeline.shutdown();
+        assertEquals(0, pipeline.drain());
+        assertEquals(30, pipeline.getBacklog());
+        assertFalse(pipeline.isDraining());
+    }
+
+    /**
+     * Compares the old one at a time expunge with the pipeline on a tenant
+     * teardown spread over 50 hosts and 10 pools.
+     */
+    public void testDrainBenchmark() throws Exception {
+        int vms = 1000;
+        for (int workers : new int[] { 1, 20 }) {
+            FakeSource source = new FakeSource(vms, 50, 10, 2);
+            ExpungePipeline<Vm> pipeline = new ExpungePipeline<Vm>("test", source, workers, 2, 4, 100);
+            try {
+                long start = System.currentTimeMillis();
+                assertEquals(vms, pipeline.drain());
+                s_logger.info(workers + " workers: expunged " + vms + " vms in " + (System.currentTimeMillis() - start) + "ms, "
+                        + Math.round(pipeline.getDrainRate()) + " per second");
+            } finally {
+                pipeline.shutdown();
+            }
+        }
+    }
+}
@@ -27,6 +27,7 @@ ALTER TABLE `cloud`.`event` ADD INDEX `i_event__user_id`(`user_id`);
 ALTER TABLE `cloud`.`event` ADD INDEX `i_event__account_id` (`account_id`);
 ALTER TABLE `cloud`.`event` ADD INDEX `i_event__level_id`(`level`);
 ALTER TABLE `cloud`.`event` ADD INDEX `i_event__type_id`(`type`);
+ALTER TABLE `cloud`.`event` ADD INDEX `i_event__domain_id`(`domain_id`);
 
 ALTER TABLE `cloud`.`vm_template` ADD INDEX `i_vm_template__public`(`public`);
 
@@ -88,3 +89,5 @@ ALTER TABLE `cloud`.`ssh_keypairs` ADD CONSTRAINT `fk_ssh_keypairs__account_id`
 ALTER TABLE `cloud`.`ssh_keypairs` ADD CONSTRAINT `fk_ssh_keypairs__domain_id` FOREIGN KEY `fk_ssh_keypair__domain_id` (`domain_id`) REFERENCES `domain` (`id`) ON DELETE CASCADE;
 
 ALTER TABLE `cloud`.`usage_event` ADD INDEX `i_usage_event__created`(`created`);
+
+ALTER TABLE `cloud`.`vm_instance` ADD INDEX `i_vm_instance__account_id__removed`(`account_id`, `removed`);
@@ -26,6 +26,10 @@ DROP TABLE IF EXISTS `cloud_usage`.`usage_network_offering`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_event`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_vpn_user`;
 DROP TABLE IF EXISTS `cloud_usage`.`usage_security_group`;
+DROP TABLE IF EXISTS `cloud_usage`.`usage_parse_checkpoint`;
+DROP TABLE IF EXISTS `cloud_usage`.`usage_rollup`;
+DROP TABLE IF EXISTS `cloud_usage`.`usage_rollup_watermark`;
+DROP TABLE IF EXISTS `cloud_usage`.`usage_meter`;
 
 CREATE TABLE  `cloud_usage`.`cloud_usage` (
   `id` bigint unsigned NOT NULL auto_increment,
@@ -116,11 +120,64 @@ CREATE TABLE  `cloud_usage`.`usage_job` (
   `end_date` DATETIME COMMENT 'end date of the aggregation range used by this job',
   `success` int(1),
   `heartbeat` DATETIME NOT NULL,
+  `num_accounts` bigint unsigned NOT NULL default '0' COMMENT 'number of accounts parsed, once per aggregation range',
+  `num_records` bigint unsigned NOT NULL default '0' COMMENT 'number of usage records created',
+  PRIMARY KEY  (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE  `cloud_usage`.`usage_parse_checkpoint` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `job_id` bigint unsigned NOT NULL COMMENT 'usage job that failed to parse the partition',
+  `start_date` DATETIME NOT NULL COMMENT 'start date of the aggregation range',
+  `end_date` DATETIME NOT NULL COMMENT 'end date of the aggregation range',
+  `first_account_id` bigint unsigned NOT NULL COMMENT 'first account id of the partition',
+  `last_account_id` bigint unsigned NOT NULL COMMENT 'last account id of the partition',
+  `completed_stages` int unsigned NOT NULL default '0' COMMENT 'bit mask of the parser stages already committed',
+  `attempts` int unsigned NOT NULL default '0' COMMENT 'number of jobs that failed to parse the partition',
+  `created` DATETIME NOT NULL,
   PRIMARY KEY  (`id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8;
 
 ALTER TABLE `cloud_usage`.`usage_job` ADD INDEX `i_usage_job__end_millis`(`end_millis`);
 
+CREATE TABLE  `cloud_usage`.`usage_rollup` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `granularity` varchar(32) NOT NULL COMMENT 'Daily or Monthly',
+  `period_start` DATETIME NOT NULL COMMENT 'start of the day or month in the usage aggregation time zone',
+  `account_id` bigint unsigned NOT NULL,
+  `domain_id` bigint unsigned NOT NULL,
+  `zone_id` bigint unsigned NOT NULL,
+  `usage_type` int(1) unsigned NOT NULL,
+  `offering_id` bigint unsigned NOT NULL default '0' COMMENT '0 for usage types without an offering',
+  `raw_usage` DOUBLE UNSIGNED NOT NULL,
+  `num_records` bigint unsigned NOT NULL COMMENT 'number of usage records summed up',
+  PRIMARY KEY  (`id`),
+  UNIQUE KEY `uc_usage_rollup__key`(`granularity`, `period_start`, `account_id`, `usage_type`, `offering_id`, `zone_id`),
+  INDEX `i_usage_rollup__domain_id`(`granularity`, `period_start`, `domain_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE  `cloud_usage`.`usage_rollup_watermark` (
+  `id` bigint unsigned NOT NULL,
+  `last_usage_id` bigint unsigned NOT NULL COMMENT 'id of the last usage record added to the rollups',
+  PRIMARY KEY  (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE  `cloud_usage`.`usage_meter` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `account_id` bigint unsigned NOT NULL,
+  `domain_id` bigint unsigned NOT NULL,
+  `zone_id` bigint unsigned NOT NULL,
+  `usage_type` int(1) unsigned NOT NULL,
+  `period_start` DATETIME NOT NULL COMMENT 'end of the last usage job',
+  `raw_usage` DOUBLE UNSIGNED NOT NULL COMMENT 'hours, or bytes for the network usage types, since the period start',
+  `open_count` int unsigned NOT NULL default '0' COMMENT 'number of resources still accruing usage',
+  `updated` DATETIME NOT NULL COMMENT 'time the usage was metered up to',
+  PRIMARY KEY  (`id`),
+  UNIQUE KEY `uc_usage_meter__key`(`account_id`, `zone_id`, `usage_type`),
+  INDEX `i_usage_meter__domain_id`(`domain_id`),
+  INDEX `i_usage_meter__updated`(`updated`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
 CREATE TABLE  `cloud_usage`.`account` (
   `id` bigint unsigned NOT NULL,
   `account_name` varchar(100) COMMENT 'an account name set by the creator of the account, defaults to username for single accounts',
@@ -26,3 +26,96 @@ ALTER TABLE `cloud`.`user_vm` ADD COLUMN `update_parameters` tinyint(1) NOT NULL
 UPDATE `cloud`.`user_vm` SET update_parameters=0 where id>0;
 
 INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'ha.tag', NULL, 'HA tag defining that the host marked with this tag can be used for HA purposes only');
+
+# Indexes to serve keyset paged listVirtualMachines and listEvents as range scans on the primary key
+ALTER TABLE `cloud`.`event` ADD INDEX `i_event__domain_id`(`domain_id`);
+ALTER TABLE `cloud`.`vm_instance` ADD INDEX `i_vm_instance__account_id__removed`(`account_id`, `removed`);
+
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'integration.api.nio', 'true', 'Serve the integration API port with a non-blocking listener that doesn\'t hold a thread per connection');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'integration.api.workers', '50', 'Max number of requests executed at the same time on the integration API port');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'integration.api.queue.size', '500', 'Max number of requests waiting for a worker on the integration API port; requests beyond it are rejected with 503');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'api.auth.cache.ttl', '10', 'Seconds the user and account found for an API key or session are cached for authenticating API requests. The cache is per management server, so changes made through another server take up to this long to apply; 0 disables the cache');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'job.query.wait.max', '60', 'Max time (in seconds) a queryAsyncJobResults call waits for one of its jobs to complete');
+
+ALTER TABLE `cloud_usage`.`usage_job` ADD COLUMN `num_accounts` bigint unsigned NOT NULL default '0' COMMENT 'number of accounts parsed, once per aggregation range';
+ALTER TABLE `cloud_usage`.`usage_job` ADD COLUMN `num_records` bigint unsigned NOT NULL default '0' COMMENT 'number of usage records created';
+
+CREATE TABLE `cloud_usage`.`usage_parse_checkpoint` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `job_id` bigint unsigned NOT NULL COMMENT 'usage job that failed to parse the partition',
+  `start_date` DATETIME NOT NULL COMMENT 'start date of the aggregation range',
+  `end_date` DATETIME NOT NULL COMMENT 'end date of the aggregation range',
+  `first_account_id` bigint unsigned NOT NULL COMMENT 'first account id of the partition',
+  `last_account_id` bigint unsigned NOT NULL COMMENT 'last account id of the partition',
+  `completed_stages` int unsigned NOT NULL default '0' COMMENT 'bit mask of the parser stages already committed',
+  `attempts` int unsigned NOT NULL default '0' COMMENT 'number of jobs that failed to parse the partition',
+  `created` DATETIME NOT NULL,
+  PRIMARY KEY  (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE `cloud_usage`.`usage_rollup` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `granularity` varchar(32) NOT NULL COMMENT 'Daily or Monthly',
+  `period_start` DATETIME NOT NULL COMMENT 'start of the day or month in the usage aggregation time zone',
+  `account_id` bigint unsigned NOT NULL,
+  `domain_id` bigint unsigned NOT NULL,
+  `zone_id` bigint unsigned NOT NULL,
+  `usage_type` int(1) unsigned NOT NULL,
+  `offering_id` bigint unsigned NOT NULL default '0' COMMENT '0 for usage types without an offering',
+  `raw_usage` DOUBLE UNSIGNED NOT NULL,
+  `num_records` bigint unsigned NOT NULL COMMENT 'number of usage records summed up',
+  PRIMARY KEY  (`id`),
+  UNIQUE KEY `uc_usage_rollup__key`(`granularity`, `period_start`, `account_id`, `usage_type`, `offering_id`, `zone_id`),
+  INDEX `i_usage_rollup__domain_id`(`granularity`, `period_start`, `domain_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE `cloud_usage`.`usage_rollup_watermark` (
+  `id` bigint unsigned NOT NULL,
+  `last_usage_id` bigint unsigned NOT NULL COMMENT 'id of the last usage record added to the rollups',
+  PRIMARY KEY  (`id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+CREATE TABLE `cloud_usage`.`usage_meter` (
+  `id` bigint unsigned NOT NULL auto_increment,
+  `account_id` bigint unsigned NOT NULL,
+  `domain_id` bigint unsigned NOT NULL,
+  `zone_id` bigint unsigned NOT NULL,
+  `usage_type` int(1) unsigned NOT NULL,
+  `period_start` DATETIME NOT NULL COMMENT 'end of the last usage job',
+  `raw_usage` DOUBLE UNSIGNED NOT NULL COMMENT 'hours, or bytes for the network usage types, since the period start',
+  `open_count` int unsigned NOT NULL default '0' COMMENT 'number of resources still accruing usage',
+  `updated` DATETIME NOT NULL COMMENT 'time the usage was metered up to',
+  PRIMARY KEY  (`id`),
+  UNIQUE KEY `uc_usage_meter__key`(`account_id`, `zone_id`, `usage_type`),
+  INDEX `i_usage_meter__domain_id`(`domain_id`),
+  INDEX `i_usage_meter__updated`(`updated`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8;
+
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Usage', 'DEFAULT', 'management-server', 'usage.parse.workers', '4', 'Number of threads the usage server parses partitions of accounts with');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Usage', 'DEFAULT', 'management-server', 'usage.parse.partition.size', '500', 'Number of accounts parsed together as a partition; a partition that fails is parsed again by the next usage job');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Usage', 'DEFAULT', 'management-server', 'usage.metering.interval', '0', 'Interval in seconds the usage server meters the usage since the last usage job at, for the listCurrentUsage API; 0 disables metering');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Usage', 'DEFAULT', 'management-server', 'usage.metering.snapshot.interval', '300', 'Interval in seconds the usage server saves the metered usage at');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Console Proxy', 'DEFAULT', 'management-server', 'consoleproxy.loadplanner.enabled', 'false', 'If true, console proxy sessions are placed by reported session count, bandwidth and CPU load, and proxy VMs are launched ahead of forecasted demand');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Console Proxy', 'DEFAULT', 'management-server', 'consoleproxy.capacity.leadtime', '600000', 'How far ahead(in milliseconds) console proxy demand is forecasted when launching proxy VMs, should cover the time to boot a proxy VM');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Console Proxy', 'DEFAULT', 'management-server', 'consoleproxy.capacity.scaledown.delay', '1800000', 'Time(in milliseconds) a zone must have a spare idle console proxy before one is stopped');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Console Proxy', 'DEFAULT', 'management-server', 'consoleproxy.bandwidth.max', '10485760', 'Bytes per second a console proxy VM is expected to receive from VNC servers at full load, used to score proxies for session placement');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Snapshots', 'DEFAULT', 'management-server', 'snapshot.dispatch.window', '1800', 'Time in seconds recurring snapshots of a policy are spread over, each volume is given a fixed offset in it. It is capped at half the policy interval.');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Snapshots', 'DEFAULT', 'management-server', 'snapshot.max.concurrent.per.pool', '10', 'Maximum recurring snapshots being taken or backed up on one primary storage pool, 0 for no limit');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Snapshots', 'DEFAULT', 'management-server', 'snapshot.max.concurrent.per.host', '4', 'Maximum recurring snapshots being taken or backed up from one host, 0 for no limit');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Snapshots', 'DEFAULT', 'management-server', 'snapshot.max.concurrent.per.ssvm', '10', 'Maximum recurring snapshots being backed up per running secondary storage VM of a zone, 0 for no limit');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Snapshots', 'DEFAULT', 'management-server', 'snapshot.max.dispatch.per.poll', '200', 'Maximum recurring snapshots started on one poll of the snapshot scheduler, 0 for no limit');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'template.cache.enabled', 'false', 'Copy the templates deployed most in a cluster to its primary storage ahead of deployments, and keep unused template copies within the pool''s cache budget');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'template.cache.interval', '600', 'Time (in seconds) between looking for templates to copy to primary storage ahead of deployments');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'template.cache.idle.threshold', '2', 'Templates are copied ahead of deployments to a zone only while fewer VMs than this are starting in it');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'template.cache.lookback.days', '7', 'Days of deploy history used to find the templates deployed most in a cluster');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'template.cache.min.deploys', '3', 'Deploys of a template in a cluster within the look back period before it is copied to the cluster ahead of deployments');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'template.cache.pool.budget', '10', 'Percentage of a primary storage pool''s capacity template copies may take before unused ones are evicted');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'template.cache.stage.max', '4', 'Maximum templates copied to primary storage ahead of deployments in one run');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'storage.pool.allocator.io.volumes', '100', 'Volumes on a storage pool at which the scoring storage pool allocator sees no I/O headroom left on it');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'storage.pool.allocator.io.weight', '0.5', 'Weight of the I/O headroom of a pool, relative to its free space, when the scoring storage pool allocator ranks pools');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'storage.pool.allocator.template.weight', '0.25', 'Weight of a pool already having the template of a root volume, relative to its free space, when the scoring storage pool allocator ranks pools');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'storage.pool.capacity.reconcile.interval', '600', 'Time (in seconds) between reloading the allocated capacity of storage pools kept in memory from the database, 0 to never reload it');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Storage', 'DEFAULT', 'management-server', 'storage.stats.batch.volumes', '5000', 'Maximum volumes whose stats are asked of a host in one command');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'expunge.batch.size', '100', 'Number of destroyed vms or volumes fetched at a time by expunge and storage cleanup; full batches are followed right away by the next one');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'expunge.max.per.host', '2', 'Maximum number of vms being expunged at the same time on one host, 0 for no limit');
+INSERT IGNORE INTO `cloud`.`configuration` VALUES ('Advanced', 'DEFAULT', 'management-server', 'expunge.max.per.pool', '4', 'Maximum number of vms or volumes being expunged at the same time on one primary storage pool, 0 for no limit');
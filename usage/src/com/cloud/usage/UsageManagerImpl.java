@@ -14,12 +14,16 @@ package com.cloud.usage;
 
 import java.net.InetAddress;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
@@ -41,27 +45,20 @@ import com.cloud.usage.dao.UsageJobDao;
 import com.cloud.usage.dao.UsageLoadBalancerPolicyDao;
 import com.cloud.usage.dao.UsageNetworkDao;
 import com.cloud.usage.dao.UsageNetworkOfferingDao;
+import com.cloud.usage.dao.UsageParseCheckpointDao;
 import com.cloud.usage.dao.UsagePortForwardingRuleDao;
+import com.cloud.usage.dao.UsageRollupDao;
 import com.cloud.usage.dao.UsageSecurityGroupDao;
 import com.cloud.usage.dao.UsageStorageDao;
 import com.cloud.usage.dao.UsageVMInstanceDao;
 import com.cloud.usage.dao.UsageVPNUserDao;
 import com.cloud.usage.dao.UsageVolumeDao;
-import com.cloud.usage.parser.IPAddressUsageParser;
-import com.cloud.usage.parser.LoadBalancerUsageParser;
-import com.cloud.usage.parser.NetworkOfferingUsageParser;
-import com.cloud.usage.parser.NetworkUsageParser;
-import com.cloud.usage.parser.PortForwardingUsageParser;
-import com.cloud.usage.parser.SecurityGroupUsageParser;
-import com.cloud.usage.parser.StorageUsageParser;
-import com.cloud.usage.parser.VMInstanceUsageParser;
-import com.cloud.usage.parser.VPNUserUsageParser;
-import com.cloud.usage.parser.VolumeUsageParser;
 import com.cloud.user.Account;
 import com.cloud.user.AccountVO;
 import com.cloud.user.UserStatisticsVO;
 import com.cloud.user.dao.AccountDao;
 import com.cloud.user.dao.UserStatisticsDao;
+import com.cloud.utils.NumbersUtil;
 import com.cloud.utils.component.ComponentLocator;
 import com.cloud.utils.component.Inject;
 import com.cloud.utils.concurrency.NamedThreadFactory;
@@ -84,6 +81,7 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	private static final int DAILY_TIME = 60 * 24;
 	private static final int THREE_DAYS_IN_MINUTES = 60 * 24 * 3;
 	private static final int USAGE_AGGREGATION_RANGE_MIN = 10;
+	private static final int MAX_STAGE_ATTEMPTS = 3;
 
 	private final ComponentLocator _locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
 	private final AccountDao m_accountDao = _locator.getDao(AccountDao.class);
@@ -100,6 +98,8 @@ public class UsageManagerImpl implements UsageManager, Runnable {
     private final UsageVPNUserDao m_usageVPNUserDao = _locator.getDao(UsageVPNUserDao.class);
     private final UsageSecurityGroupDao m_usageSecurityGroupDao = _locator.getDao(UsageSecurityGroupDao.class);
     private final UsageJobDao m_usageJobDao = _locator.getDao(UsageJobDao.class);
+    private final UsageParseCheckpointDao m_usageParseCheckpointDao = _locator.getDao(UsageParseCheckpointDao.class);
+    private final UsageRollupDao m_usageRollupDao = _locator.getDao(UsageRollupDao.class);
     @Inject protected AlertManager _alertMgr;
     @Inject protected UsageEventDao _usageEventDao;
 
@@ -108,6 +108,11 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	private final Calendar m_jobExecTime = Calendar.getInstance();
 	private int m_aggregationDuration = 0;
 	private int m_sanityCheckInterval = 0;
+	private int m_parseWorkers = 4;
+	private int m_parsePartitionSize = 500;
+	private int m_meterInterval = 0;
+	private int m_meterSnapshotInterval = 300;
+	private UsageMeter m_meter = null;
     String m_hostname = null;
     int m_pid = 0;
     TimeZone m_usageTimezone = TimeZone.getTimeZone("GMT");;
@@ -116,9 +121,12 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	private final ScheduledExecutorService m_executor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Job"));
 	private final ScheduledExecutorService m_heartbeatExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-HB"));
 	private final ScheduledExecutorService m_sanityExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Sanity"));
+	private final ScheduledExecutorService m_meterExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("Usage-Meter"));
+	private ExecutorService m_parseExecutor = null;
 	private Future m_scheduledFuture = null;
 	private Future m_heartbeat = null;
 	private Future m_sanity = null;
+	private Future m_metering = null;
 
 	protected UsageManagerImpl() {
 	}
@@ -169,6 +177,12 @@ public class UsageManagerImpl implements UsageManager, Runnable {
         if(sanityCheckInterval != null){
             m_sanityCheckInterval = Integer.parseInt(sanityCheckInterval);
         }
+        m_parseWorkers = Math.max(1, NumbersUtil.parseInt(configs.get("usage.parse.workers"), 4));
+        m_parsePartitionSize = Math.max(1, NumbersUtil.parseInt(configs.get("usage.parse.partition.size"), 500));
+        m_parseExecutor = Executors.newFixedThreadPool(m_parseWorkers, new NamedThreadFactory("Usage-Parser"));
+        s_logger.info("Parsing usage with " + m_parseWorkers + " workers, " + m_parsePartitionSize + " accounts per partition");
+        m_meterInterval = NumbersUtil.parseInt(configs.get("usage.metering.interval"), 0);
+        m_meterSnapshotInterval = Math.max(1, NumbersUtil.parseInt(configs.get("usage.metering.snapshot.interval"), 300));
 
         if(aggreagationTimeZone != null && !aggreagationTimeZone.isEmpty()){  
         	m_usageTimezone = TimeZone.getTimeZone(aggreagationTimeZone);
@@ -241,6 +255,12 @@ public class UsageManagerImpl implements UsageManager, Runnable {
             m_sanity = m_sanityExecutor.scheduleAtFixedRate(new SanityCheck(), 1, m_sanityCheckInterval, TimeUnit.DAYS);
         }
 
+        if (m_meterInterval > 0) {
+            s_logger.info("Metering usage every " + m_meterInterval + " seconds, saving the meters every " + m_meterSnapshotInterval + " seconds");
+            m_meter = new UsageMeter();
+            m_metering = m_meterExecutor.scheduleWithFixedDelay(new Metering(), m_meterInterval, m_meterInterval, TimeUnit.SECONDS);
+        }
+
         Transaction usageTxn = Transaction.open(Transaction.USAGE_DB);
         try {
             if(m_heartbeatLock.lock(3)) { // 3 second timeout
@@ -269,6 +289,10 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 	    if(m_sanity != null){
 	    	m_sanity.cancel(true);
 	    }
+	    if (m_metering != null) {
+	        m_metering.cancel(true);
+	    }
+	    m_parseExecutor.shutdownNow();
 		return true;
 	}
 
@@ -492,7 +516,10 @@ public class UsageManagerImpl implements UsageManager, Runnable {
             // - insert the latest events into the usage.events table
             List<UsageEventVO> events = _usageEventDao.getRecentEvents(new Date(endDateMillis));
 
-            
+            long lastUsageIdBefore = 0;
+            long numAccountsParsed = 0;
+            int failedPartitions = 0;
+            long parsedThroughMillis = 0;
             Transaction usageTxn = Transaction.open(Transaction.USAGE_DB);
             try {
                 usageTxn.start();
@@ -570,9 +597,25 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 usageTxn.commit();
                 usageTxn.start();
 
-                boolean parsed = false;
-                numAcctsProcessed = 0;
-                
+                Long lastUsageId = m_usageDao.getLastUsageId();
+                if (lastUsageId != null) {
+                    lastUsageIdBefore = lastUsageId.longValue();
+                }
+
+                // parse what is left of the partitions that failed in earlier jobs
+                List<UsageParseCheckpointVO> checkpoints = m_usageParseCheckpointDao.listPending();
+                if (!checkpoints.isEmpty()) {
+                    List<UsagePartitionParser> partitions = new ArrayList<UsagePartitionParser>();
+                    for (UsageParseCheckpointVO checkpoint : checkpoints) {
+                        List<AccountVO> partitionAccounts = listPartitionAccounts(checkpoint);
+                        partitions.add(new UsagePartitionParser(m_usageParseCheckpointDao, checkpoint, partitionAccounts, MAX_STAGE_ATTEMPTS));
+                        numAccountsParsed += partitionAccounts.size();
+                    }
+                    int failed = parsePartitions(partitions);
+                    failedPartitions += failed;
+                    s_logger.info("Parsed " + (checkpoints.size() - failed) + " of " + checkpoints.size() + " partitions left by earlier usage jobs");
+                }
+
                 Date currentStartDate = startDate;
                 Date currentEndDate = endDate;
                 Date tempDate = endDate;
@@ -590,26 +633,23 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                     Long offset = Long.valueOf(0);
                     Long limit = Long.valueOf(500);
 
+                    // active and recently deleted accounts, sorted by id so every partition is a range of account ids
+                    TreeMap<Long, AccountVO> rangeAccounts = new TreeMap<Long, AccountVO>();
                     do {
                         Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
                         accounts = m_accountDao.listAll(filter);
                         if ((accounts != null) && !accounts.isEmpty()) {
                             for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                numAcctsProcessed++;
+                                rangeAccounts.put(account.getId(), account);
                             }
                         }
                         offset = new Long(offset.longValue() + limit.longValue());
                     } while ((accounts != null) && !accounts.isEmpty());
 
-                    if (s_logger.isDebugEnabled()) {
-                        s_logger.debug("processed VM/Network Usage for " + numAcctsProcessed + " ACTIVE accts");
-                    }
-                    numAcctsProcessed = 0;
-
                     // reset offset
                     offset = Long.valueOf(0);
 
+                    List<AccountVO> deletedAccounts = new ArrayList<AccountVO>();
                     do {
                         Filter filter = new Filter(AccountVO.class, "id", true, offset, limit);
 
@@ -617,51 +657,78 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 
                         if ((accounts != null) && !accounts.isEmpty()) {
                             for (AccountVO account : accounts) {
-                                parsed = parseHelperTables(account, currentStartDate, currentEndDate);
-                                List<Long> publicTemplates = m_usageDao.listPublicTemplatesByAccount(account.getId());
-                                for(Long templateId : publicTemplates){
-                                    //mark public templates owned by deleted accounts as deleted
-                                    List<UsageStorageVO> storageVOs = m_usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
-                                    if (storageVOs.size() > 1) {
-                                        s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() + "; marking them all as deleted...");
-                                    }
-                                    for (UsageStorageVO storageVO : storageVOs) {
-                                        if (s_logger.isDebugEnabled()) {
-                                            s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
-                                        }
-                                        storageVO.setDeleted(account.getRemoved()); 
-                                        m_usageStorageDao.update(storageVO);
-                                    }
-                                }
-                                numAcctsProcessed++;
+                                rangeAccounts.put(account.getId(), account);
+                                deletedAccounts.add(account);
                             }
                         }
                         offset = new Long(offset.longValue() + limit.longValue());
                     } while ((accounts != null) && !accounts.isEmpty());
 
+                    for (AccountVO account : deletedAccounts) {
+                        List<Long> publicTemplates = m_usageDao.listPublicTemplatesByAccount(account.getId());
+                        for(Long templateId : publicTemplates){
+                            //mark public templates owned by deleted accounts as deleted
+                            List<UsageStorageVO> storageVOs = m_usageStorageDao.listById(account.getId(), templateId, StorageTypes.TEMPLATE);
+                            if (storageVOs.size() > 1) {
+                                s_logger.warn("More that one usage entry for storage: " + templateId + " assigned to account: " + account.getId() + "; marking them all as deleted...");
+                            }
+                            for (UsageStorageVO storageVO : storageVOs) {
+                                if (s_logger.isDebugEnabled()) {
+                                    s_logger.debug("deleting template: " + storageVO.getId() + " from account: " + storageVO.getAccountId());
+                                }
+                                storageVO.setDeleted(account.getRemoved()); 
+                                m_usageStorageDao.update(storageVO);
+                            }
+                        }
+                    }
+
+                    // the partitions are parsed in their own transactions on the worker threads,
+                    // commit the templates marked as deleted so the storage parser sees them
+                    usageTxn.commit();
+                    usageTxn.start();
+
+                    List<AccountVO> sortedAccounts = new ArrayList<AccountVO>(rangeAccounts.values());
+                    List<UsagePartitionParser> partitions = new ArrayList<UsagePartitionParser>();
+                    for (int i = 0; i < sortedAccounts.size(); i += m_parsePartitionSize) {
+                        List<AccountVO> partitionAccounts = sortedAccounts.subList(i, Math.min(i + m_parsePartitionSize, sortedAccounts.size()));
+                        partitions.add(new UsagePartitionParser(m_usageParseCheckpointDao, job.getId(), partitionAccounts, currentStartDate, currentEndDate, MAX_STAGE_ATTEMPTS));
+                    }
+                    failedPartitions += parsePartitions(partitions);
+                    numAccountsParsed += sortedAccounts.size();
+                    // the partitions are committed, or saved as checkpoints, so this range is not parsed again
+                    parsedThroughMillis = Math.min(currentEndDate.getTime(), endDateMillis);
+
+                    if (s_logger.isDebugEnabled()) {
+                        s_logger.debug("processed Usage for " + sortedAccounts.size() + " accts, " + deletedAccounts.size() + " of them RECENTLY DELETED, in " + partitions.size() + " partitions");
+                    }
+
                     currentStartDate = new Date(currentEndDate.getTime() + 1);
                     aggregateCal.setTime(currentEndDate);
                     aggregateCal.add(Calendar.MINUTE, m_aggregationDuration);                        
                     currentEndDate = aggregateCal.getTime();
                 }
-                
-                if (s_logger.isDebugEnabled()) {
-                    s_logger.debug("processed Usage for " + numAcctsProcessed + " RECENTLY DELETED accts");
-                }
 
-                // FIXME: we don't break the above loop if something fails to parse, so it gets reset every account,
-                //        do we want to break out of processing accounts and rollback if there are errors?
-                if (!parsed) {
-                    usageTxn.rollback();
-                } else {
-                    success = true;
-                }
+                // partitions that failed are saved as checkpoints and parsed by the next job
+                success = true;
             } catch (Exception ex) {
                 s_logger.error("Exception in usage manager", ex);
                 usageTxn.rollback();
             } finally {
+                long numRecords = 0;
+                Long lastUsageId = m_usageDao.getLastUsageId();
+                if (lastUsageId != null) {
+                    numRecords = lastUsageId.longValue() - lastUsageIdBefore;
+                }
+
                 // everything seemed to work...set endDate as the last success date
-                m_usageJobDao.updateJobSuccess(job.getId(), startDateMillis, endDateMillis, System.currentTimeMillis() - timeStart, success);
+                // if a later range failed, the ranges whose partitions were already committed must not be parsed again
+                boolean parsedRanges = success || (parsedThroughMillis > 0);
+                long lastParsedMillis = (!success && parsedThroughMillis > 0) ? parsedThroughMillis : endDateMillis;
+                m_usageJobDao.updateJobSuccess(job.getId(), startDateMillis, lastParsedMillis, System.currentTimeMillis() - timeStart, parsedRanges, numAccountsParsed, numRecords);
+                if (s_logger.isInfoEnabled()) {
+                    long execTime = Math.max(1, System.currentTimeMillis() - timeStart);
+                    s_logger.info("Usage job parsed " + numAccountsParsed + " accts (" + (numAccountsParsed * 1000 / execTime) + "/s) and created " + numRecords + " usage records (" + (numRecords * 1000 / execTime) + "/s), " + failedPartitions + " partitions failed");
+                }
 
                 // create a new job if this is a recurring job
                 if (job.getJobType() == UsageJobVO.JOB_TYPE_RECURRING) {
@@ -670,10 +737,35 @@ public class UsageManagerImpl implements UsageManager, Runnable {
                 usageTxn.commit();
                 usageTxn.close();
 
+                // the job's records are committed, add them to the daily and monthly rollups
+                try {
+                    long rollupStart = System.currentTimeMillis();
+                    long numRolledUp = new UsageRollupUpdater(m_usageDao, m_usageRollupDao, m_usageTimezone).update();
+                    if (s_logger.isInfoEnabled()) {
+                        long rollupTime = Math.max(1, System.currentTimeMillis() - rollupStart);
+                        s_logger.info("Rolled up " + numRolledUp + " usage records in " + rollupTime + "ms (" + (numRolledUp * 1000 / rollupTime) + "/s)");
+                    }
+                } catch (Exception e) {
+                    // the records not rolled up yet are picked up by the next job
+                    s_logger.error("Failed to update the usage rollups", e);
+                }
+
+                // the job's records are the usage of the metered period, start metering the next one
+                if (success && (m_meter != null)) {
+                    try {
+                        m_meter.reconcile(endDateMillis);
+                    } catch (Exception e) {
+                        s_logger.error("Failed to reconcile the usage meters", e);
+                    }
+                }
+
                 // switch back to CLOUD_DB
                 Transaction swap = Transaction.open(Transaction.CLOUD_DB);
                 if(!success){
                     _alertMgr.sendAlert(AlertManager.ALERT_TYPE_USAGE_SERVER_RESULT, 0, new Long(0), "Usage job failed. Job id: "+job.getId(), "Usage job failed. Job id: "+job.getId());
+                } else if (failedPartitions > 0) {
+                    _alertMgr.sendAlert(AlertManager.ALERT_TYPE_USAGE_SERVER_RESULT, 0, new Long(0), "Usage job failed to parse " + failedPartitions + " partitions of accounts. Job id: "+job.getId(),
+                            "Usage job failed to parse " + failedPartitions + " partitions of accounts, they will be parsed again by the next job. Job id: "+job.getId());
                 } else {
                     _alertMgr.clearAlert(AlertManager.ALERT_TYPE_USAGE_SERVER_RESULT, 0, 0);
                 }
@@ -685,79 +777,38 @@ public class UsageManagerImpl implements UsageManager, Runnable {
 		}
 	}
 	
-	private boolean parseHelperTables(AccountVO account, Date currentStartDate, Date currentEndDate){
-	    boolean parsed = false;
-
-	    parsed = VMInstanceUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("vm usage instances successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
-        }
-
-        parsed = NetworkUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("network usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
-        }
-
-        parsed = VolumeUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("volume usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
-        }
-
-        parsed = StorageUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("storage usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+    private int parsePartitions(List<UsagePartitionParser> partitions) throws InterruptedException {
+        int failed = 0;
+        for (Future<UsagePartitionParser> future : m_parseExecutor.invokeAll(partitions)) {
+            try {
+                if (!future.get().isCompleted()) {
+                    failed++;
+                }
+            } catch (ExecutionException e) {
+                s_logger.error("Unexpected exception parsing a partition of accounts", e.getCause());
+                failed++;
             }
         }
+        return failed;
+    }
 
-        parsed = SecurityGroupUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("Security Group usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
-        }
-        
-        parsed = LoadBalancerUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("load balancer usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
-        }
-        
-        parsed = PortForwardingUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("port forwarding usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+    private List<AccountVO> listPartitionAccounts(UsageParseCheckpointVO checkpoint) {
+        Calendar recentlyDeletedCal = Calendar.getInstance(m_usageTimezone);
+        recentlyDeletedCal.setTime(checkpoint.getStartDate());
+        recentlyDeletedCal.add(Calendar.MINUTE, -1*THREE_DAYS_IN_MINUTES);
+        Date recentlyDeletedDate = recentlyDeletedCal.getTime();
+
+        SearchCriteria<AccountVO> sc = m_accountDao.createSearchCriteria();
+        sc.addAnd("id", SearchCriteria.Op.BETWEEN, checkpoint.getFirstAccountId(), checkpoint.getLastAccountId());
+        List<AccountVO> accounts = new ArrayList<AccountVO>();
+        // the same accounts the partition was made of, the active and the recently deleted ones
+        for (AccountVO account : m_accountDao.searchIncludingRemoved(sc, new Filter(AccountVO.class, "id", true, null, null), null, false)) {
+            if ((account.getRemoved() == null) || !account.getRemoved().before(recentlyDeletedDate)) {
+                accounts.add(account);
             }
         }
-        
-        parsed = NetworkOfferingUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("network offering usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
-        }
-        
-        parsed = IPAddressUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("IPAddress usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
-        }
-        parsed = VPNUserUsageParser.parse(account, currentStartDate, currentEndDate);
-        if (s_logger.isDebugEnabled()) {
-            if (!parsed) {
-                s_logger.debug("VPN user usage successfully parsed? " + parsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
-            }
-        }
-        return parsed;
-	}
+        return accounts;
+    }
 
 	private void createHelperRecord(UsageEventVO event) {
 	    String eventType = event.getType();
@@ -1521,4 +1572,31 @@ public class UsageManagerImpl implements UsageManager, Runnable {
             }
         }
     }
+
+    private class Metering implements Runnable {
+        private long _lastSnapshot = 0;
+
+        public void run() {
+            try {
+                // only the usage server running the jobs meters the usage
+                Transaction usageTxn = Transaction.open(Transaction.USAGE_DB);
+                try {
+                    if (m_usageJobDao.isOwner(m_hostname, m_pid) == null) {
+                        return;
+                    }
+                } finally {
+                    usageTxn.close();
+                }
+
+                m_meter.update();
+                long now = System.currentTimeMillis();
+                if (now - _lastSnapshot >= m_meterSnapshotInterval * 1000L) {
+                    m_meter.snapshot();
+                    _lastSnapshot = now;
+                }
+            } catch (Exception e) {
+                s_logger.error("Usage metering error", e);
+            }
+        }
+    }
 }
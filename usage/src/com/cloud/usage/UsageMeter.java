@@ -0,0 +1,417 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.event.EventTypes;
+import com.cloud.event.UsageEventVO;
+import com.cloud.event.dao.UsageEventDao;
+import com.cloud.usage.dao.UsageIPAddressDao;
+import com.cloud.usage.dao.UsageJobDao;
+import com.cloud.usage.dao.UsageMeterDao;
+import com.cloud.usage.dao.UsageNetworkDao;
+import com.cloud.usage.dao.UsageRollupDao;
+import com.cloud.usage.dao.UsageVMInstanceDao;
+import com.cloud.usage.dao.UsageVolumeDao;
+import com.cloud.user.AccountVO;
+import com.cloud.user.UserStatisticsVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.user.dao.UserStatisticsDao;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * Meters the usage of the current period, the time since the end of the
+ * last usage job, while the usage jobs only run once per aggregation range.
+ *
+ * The resources that accrue usage at the start of the period are read from
+ * the usage helper tables, which the last job left up to date.  From there
+ * new usage events are read by id as they are created, the way the job will
+ * eventually apply them to the helper tables.  The network usage is the
+ * difference between the user statistics and the bytes the last job
+ * accounted for; user statistics rows are counters updated in place, so they
+ * are read again on every update instead of being tailed by id.
+ *
+ * Running VMs, allocated VMs, volumes, IP addresses and network bytes are
+ * metered.  The totals per account, zone and usage type are saved to
+ * usage_meter by snapshot() for the listCurrentUsage API.  When a job
+ * completes, reconcile() compares the metered usage of the job's period with
+ * the usage records the job created, then starts a new period from the
+ * helper tables.  The job's records remain the source of truth.
+ */
+public class UsageMeter {
+    public static final Logger s_logger = Logger.getLogger(UsageMeter.class.getName());
+
+    private static final int EVENT_BATCH_SIZE = 1000;
+    private static final int STATS_BATCH_SIZE = 500;
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+    private static final int THREE_DAYS_IN_MINUTES = 60 * 24 * 3;
+    private static final double RECONCILE_TOLERANCE = 0.01;
+
+    private static ComponentLocator _locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
+    private static AccountDao m_accountDao = _locator.getDao(AccountDao.class);
+    private static UsageEventDao m_usageEventDao = _locator.getDao(UsageEventDao.class);
+    private static UserStatisticsDao m_userStatsDao = _locator.getDao(UserStatisticsDao.class);
+    private static UsageJobDao m_usageJobDao = _locator.getDao(UsageJobDao.class);
+    private static UsageVMInstanceDao m_usageInstanceDao = _locator.getDao(UsageVMInstanceDao.class);
+    private static UsageVolumeDao m_usageVolumeDao = _locator.getDao(UsageVolumeDao.class);
+    private static UsageIPAddressDao m_usageIPAddressDao = _locator.getDao(UsageIPAddressDao.class);
+    private static UsageNetworkDao m_usageNetworkDao = _locator.getDao(UsageNetworkDao.class);
+    private static UsageMeterDao m_usageMeterDao = _locator.getDao(UsageMeterDao.class);
+    private static UsageRollupDao m_usageRollupDao = _locator.getDao(UsageRollupDao.class);
+
+    /**
+     * A resource accruing hourly usage from start to end, end being 0 while it
+     * still does.
+     */
+    static class Interval {
+        final int usageType;
+        final long zoneId;
+        final long start;
+        long end;
+
+        Interval(int usageType, long zoneId, long start) {
+            this.usageType = usageType;
+            this.zoneId = zoneId;
+            this.start = start;
+        }
+
+        double getHours(long from, long to) {
+            long intervalEnd = ((end == 0) || (end > to)) ? to : end;
+            long intervalStart = Math.max(start, from);
+            return (intervalEnd > intervalStart) ? (double)(intervalEnd - intervalStart) / HOUR_MILLIS : 0;
+        }
+    }
+
+    /**
+     * The bytes of a user statistics key accounted for by the last job and
+     * the current ones.
+     */
+    static class NetworkCounter {
+        final long accountId;
+        final long zoneId;
+        long accountedSent;
+        long accountedReceived;
+        long sent;
+        long received;
+
+        NetworkCounter(long accountId, long zoneId) {
+            this.accountId = accountId;
+            this.zoneId = zoneId;
+        }
+    }
+
+    private final Map<Long, List<Interval>> _intervals = new HashMap<Long, List<Interval>>();
+    // the intervals of each account still open, by usage type and resource
+    private final Map<Long, Map<String, Interval>> _openIntervals = new HashMap<Long, Map<String, Interval>>();
+    private final Map<String, NetworkCounter> _networkCounters = new HashMap<String, NetworkCounter>();
+    private final Map<Long, Long> _domainIds = new HashMap<Long, Long>();
+    private long _periodStart = 0;
+    private long _lastEventId = 0;
+    private boolean _loaded = false;
+
+    /**
+     * Reads the new usage events and the user statistics.
+     */
+    public synchronized void update() {
+        if (!_loaded) {
+            Transaction txn = Transaction.open(Transaction.USAGE_DB);
+            try {
+                load(m_usageJobDao.getLastJobSuccessDateMillis());
+            } finally {
+                txn.close();
+            }
+        }
+
+        Transaction txn = Transaction.open(Transaction.CLOUD_DB);
+        try {
+            int numEvents = 0;
+            List<UsageEventVO> events;
+            do {
+                events = m_usageEventDao.listEventsAfter(_lastEventId, EVENT_BATCH_SIZE);
+                for (UsageEventVO event : events) {
+                    applyEvent(event);
+                    _lastEventId = event.getId();
+                }
+                numEvents += events.size();
+            } while (events.size() == EVENT_BATCH_SIZE);
+
+            updateNetworkCounters();
+            if (s_logger.isDebugEnabled()) {
+                s_logger.debug("Metered " + numEvents + " usage events up to event id " + _lastEventId);
+            }
+        } finally {
+            txn.close();
+        }
+    }
+
+    /**
+     * Saves the usage of the current period up to now.
+     */
+    public synchronized void snapshot() {
+        if (!_loaded) {
+            return;
+        }
+        Date now = new Date();
+        Map<String, UsageMeterVO> meters = getMeters(_periodStart, now.getTime());
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            m_usageMeterDao.saveSnapshot(meters.values(), now);
+        } finally {
+            txn.close();
+        }
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Saved " + meters.size() + " usage meters of the period starting " + new Date(_periodStart));
+        }
+    }
+
+    /**
+     * Compares the metered usage with the usage records of a job that parsed
+     * up to periodEnd, then starts metering the period after it.
+     */
+    public synchronized void reconcile(long periodEnd) {
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            if (_loaded && (periodEnd > _periodStart)) {
+                Map<String, UsageMeterVO> metered = getMeters(_periodStart, periodEnd);
+                Map<String, Double> parsed = new HashMap<String, Double>();
+                for (UsageRollupVO sum : m_usageRollupDao.sumRecords(new Date(_periodStart), new Date(periodEnd), null, null, null, 0, Long.MAX_VALUE)) {
+                    String key = sum.getAccountId() + "-" + sum.getZoneId() + "-" + sum.getUsageType();
+                    Double usage = parsed.get(key);
+                    parsed.put(key, ((usage != null) ? usage : 0) + sum.getRawUsage());
+                }
+
+                int numDiffering = 0;
+                for (UsageMeterVO meter : metered.values()) {
+                    String key = meter.getAccountId() + "-" + meter.getZoneId() + "-" + meter.getUsageType();
+                    Double usage = parsed.get(key);
+                    double parsedUsage = (usage != null) ? usage : 0;
+                    if (Math.abs(meter.getRawUsage() - parsedUsage) > RECONCILE_TOLERANCE * Math.max(1, parsedUsage)) {
+                        numDiffering++;
+                        if (s_logger.isDebugEnabled()) {
+                            s_logger.debug("Metered usage of type " + meter.getUsageType() + " for account " + meter.getAccountId() + " in zone " + meter.getZoneId() + " was " + meter.getRawUsage() +
+                                    ", the usage job parsed " + parsedUsage);
+                        }
+                    }
+                }
+                s_logger.info("Reconciled " + metered.size() + " usage meters with the usage job parsed up to " + new Date(periodEnd) + ", " + numDiffering + " differed by more than " +
+                        (int)(RECONCILE_TOLERANCE * 100) + "%");
+            }
+
+            load(periodEnd);
+        } finally {
+            txn.close();
+        }
+    }
+
+    /**
+     * Starts a new period from the state of the helper tables.  Must be
+     * called in a usage db transaction.
+     */
+    private void load(long periodStart) {
+        _intervals.clear();
+        _openIntervals.clear();
+        _networkCounters.clear();
+        _periodStart = periodStart;
+
+        SearchCriteria<UsageVMInstanceVO> vmSc = m_usageInstanceDao.createSearchCriteria();
+        vmSc.addAnd("endDate", SearchCriteria.Op.NULL);
+        for (UsageVMInstanceVO vm : m_usageInstanceDao.search(vmSc, null)) {
+            open(vm.getAccountId(), vm.getUsageType(), vm.getZoneId(), String.valueOf(vm.getVmInstanceId()), vm.getStartDate().getTime());
+        }
+
+        SearchCriteria<UsageVolumeVO> volumeSc = m_usageVolumeDao.createSearchCriteria();
+        volumeSc.addAnd("deleted", SearchCriteria.Op.NULL);
+        for (UsageVolumeVO volume : m_usageVolumeDao.search(volumeSc, null)) {
+            open(volume.getAccountId(), UsageTypes.VOLUME, volume.getZoneId(), String.valueOf(volume.getId()), volume.getCreated().getTime());
+        }
+
+        SearchCriteria<UsageIPAddressVO> ipSc = m_usageIPAddressDao.createSearchCriteria();
+        ipSc.addAnd("released", SearchCriteria.Op.NULL);
+        for (UsageIPAddressVO ip : m_usageIPAddressDao.search(ipSc, null)) {
+            open(ip.getAccountId(), UsageTypes.IP_ADDRESS, ip.getZoneId(), ip.getAddress(), ip.getAssigned().getTime());
+        }
+
+        for (Map.Entry<String, UsageNetworkVO> entry : m_usageNetworkDao.getRecentNetworkStats().entrySet()) {
+            UsageNetworkVO stats = entry.getValue();
+            NetworkCounter counter = new NetworkCounter(stats.getAccountId(), stats.getZoneId());
+            counter.accountedSent = counter.sent = stats.getAggBytesSent();
+            counter.accountedReceived = counter.received = stats.getAggBytesReceived();
+            _networkCounters.put(entry.getKey(), counter);
+        }
+
+        // the events the last job copied are the ones in the helper tables
+        List<UsageEventVO> latestEvents = m_usageEventDao.getLatestEvent();
+        _lastEventId = ((latestEvents != null) && (latestEvents.size() == 1)) ? latestEvents.get(0).getId() : 0;
+        _loaded = true;
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Started metering usage from " + new Date(periodStart) + " after usage event " + _lastEventId + " with " + _openIntervals.size() + " accounts accruing usage");
+        }
+    }
+
+    private void applyEvent(UsageEventVO event) {
+        String type = event.getType();
+        long accountId = event.getAccountId();
+        long time = event.getCreateDate().getTime();
+        String vmId = String.valueOf(event.getResourceId());
+        if (EventTypes.EVENT_VM_START.equals(type)) {
+            close(accountId, UsageTypes.RUNNING_VM, vmId, time);
+            open(accountId, UsageTypes.RUNNING_VM, event.getZoneId(), vmId, time);
+        } else if (EventTypes.EVENT_VM_STOP.equals(type)) {
+            close(accountId, UsageTypes.RUNNING_VM, vmId, time);
+        } else if (EventTypes.EVENT_VM_CREATE.equals(type)) {
+            open(accountId, UsageTypes.ALLOCATED_VM, event.getZoneId(), vmId, time);
+        } else if (EventTypes.EVENT_VM_DESTROY.equals(type)) {
+            close(accountId, UsageTypes.ALLOCATED_VM, vmId, time);
+        } else if (EventTypes.EVENT_VM_UPGRADE.equals(type)) {
+            close(accountId, UsageTypes.ALLOCATED_VM, vmId, time);
+            open(accountId, UsageTypes.ALLOCATED_VM, event.getZoneId(), vmId, time);
+        } else if (EventTypes.EVENT_VOLUME_CREATE.equals(type)) {
+            close(accountId, UsageTypes.VOLUME, vmId, time);
+            open(accountId, UsageTypes.VOLUME, event.getZoneId(), vmId, time);
+        } else if (EventTypes.EVENT_VOLUME_DELETE.equals(type)) {
+            close(accountId, UsageTypes.VOLUME, vmId, time);
+        } else if (EventTypes.EVENT_NET_IP_ASSIGN.equals(type)) {
+            open(accountId, UsageTypes.IP_ADDRESS, event.getZoneId(), event.getResourceName(), time);
+        } else if (EventTypes.EVENT_NET_IP_RELEASE.equals(type)) {
+            close(accountId, UsageTypes.IP_ADDRESS, event.getResourceName(), time);
+        }
+    }
+
+    private void open(long accountId, int usageType, long zoneId, String resource, long start) {
+        Interval interval = new Interval(usageType, zoneId, start);
+        List<Interval> intervals = _intervals.get(accountId);
+        if (intervals == null) {
+            intervals = new ArrayList<Interval>();
+            _intervals.put(accountId, intervals);
+        }
+        intervals.add(interval);
+
+        Map<String, Interval> openIntervals = _openIntervals.get(accountId);
+        if (openIntervals == null) {
+            openIntervals = new HashMap<String, Interval>();
+            _openIntervals.put(accountId, openIntervals);
+        }
+        Interval previous = openIntervals.put(usageType + "-" + resource, interval);
+        if (previous != null) {
+            previous.end = start;
+        }
+    }
+
+    private void close(long accountId, int usageType, String resource, long end) {
+        Map<String, Interval> openIntervals = _openIntervals.get(accountId);
+        if (openIntervals != null) {
+            Interval interval = openIntervals.remove(usageType + "-" + resource);
+            if (interval != null) {
+                interval.end = end;
+            }
+        }
+    }
+
+    /**
+     * Sums the user statistics per key the same way the usage job does.
+     */
+    private void updateNetworkCounters() {
+        Calendar recentlyDeletedCal = Calendar.getInstance();
+        recentlyDeletedCal.setTimeInMillis(_periodStart);
+        recentlyDeletedCal.add(Calendar.MINUTE, -1 * THREE_DAYS_IN_MINUTES);
+
+        Map<String, NetworkCounter> current = new HashMap<String, NetworkCounter>();
+        List<UserStatisticsVO> userStats;
+        int startIndex = 0;
+        do {
+            userStats = m_userStatsDao.listActiveAndRecentlyDeleted(recentlyDeletedCal.getTime(), startIndex, STATS_BATCH_SIZE);
+            for (UserStatisticsVO userStat : userStats) {
+                if (userStat.getDeviceId() == null) {
+                    continue;
+                }
+                String key = userStat.getDataCenterId() + "-" + userStat.getAccountId() + "-Host-" + userStat.getDeviceId();
+                NetworkCounter counter = current.get(key);
+                if (counter == null) {
+                    counter = new NetworkCounter(userStat.getAccountId(), userStat.getDataCenterId());
+                    current.put(key, counter);
+                }
+                counter.sent += userStat.getAggBytesSent();
+                counter.received += userStat.getAggBytesReceived();
+            }
+            startIndex += STATS_BATCH_SIZE;
+        } while (!userStats.isEmpty());
+
+        for (Map.Entry<String, NetworkCounter> entry : current.entrySet()) {
+            NetworkCounter counter = _networkCounters.get(entry.getKey());
+            if (counter == null) {
+                counter = new NetworkCounter(entry.getValue().accountId, entry.getValue().zoneId);
+                _networkCounters.put(entry.getKey(), counter);
+            }
+            counter.sent = entry.getValue().sent;
+            counter.received = entry.getValue().received;
+        }
+    }
+
+    private Map<String, UsageMeterVO> getMeters(long from, long to) {
+        Map<String, UsageMeterVO> meters = new HashMap<String, UsageMeterVO>();
+        Date periodStart = new Date(from);
+        for (Map.Entry<Long, List<Interval>> entry : _intervals.entrySet()) {
+            long accountId = entry.getKey();
+            for (Interval interval : entry.getValue()) {
+                double hours = interval.getHours(from, to);
+                boolean open = (interval.end == 0) || (interval.end > to);
+                if ((hours > 0) || open) {
+                    getMeter(meters, accountId, interval.zoneId, interval.usageType, periodStart).add(hours, open);
+                }
+            }
+        }
+        for (NetworkCounter counter : _networkCounters.values()) {
+            // negative when the counters were reset, which the job doesn't charge either
+            long sent = counter.sent - counter.accountedSent;
+            long received = counter.received - counter.accountedReceived;
+            if (sent > 0) {
+                getMeter(meters, counter.accountId, counter.zoneId, UsageTypes.NETWORK_BYTES_SENT, periodStart).add(sent, false);
+            }
+            if (received > 0) {
+                getMeter(meters, counter.accountId, counter.zoneId, UsageTypes.NETWORK_BYTES_RECEIVED, periodStart).add(received, false);
+            }
+        }
+        return meters;
+    }
+
+    private UsageMeterVO getMeter(Map<String, UsageMeterVO> meters, long accountId, long zoneId, int usageType, Date periodStart) {
+        String key = accountId + "-" + zoneId + "-" + usageType;
+        UsageMeterVO meter = meters.get(key);
+        if (meter == null) {
+            meter = new UsageMeterVO(accountId, getDomainId(accountId), zoneId, usageType, periodStart);
+            meters.put(key, meter);
+        }
+        return meter;
+    }
+
+    private long getDomainId(long accountId) {
+        Long domainId = _domainIds.get(accountId);
+        if (domainId == null) {
+            AccountVO account = m_accountDao.findByIdIncludingRemoved(accountId);
+            domainId = (account != null) ? account.getDomainId() : 0;
+            _domainIds.put(accountId, domainId);
+        }
+        return domainId;
+    }
+}
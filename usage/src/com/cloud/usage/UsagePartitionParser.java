@@ -0,0 +1,152 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage;
+
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.usage.dao.UsageParseCheckpointDao;
+import com.cloud.usage.parser.UsageParserStage;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * Parses the usage of a partition of accounts, sorted by id, for one
+ * aggregation range.  It runs on a parser worker thread and commits every
+ * stage in its own USAGE_DB transaction, so a stage that fails is rolled back
+ * and retried without redoing the stages already committed.  If a stage still
+ * fails after the retries the partition is saved as a checkpoint, which the
+ * next usage job picks up to parse only the missing stages.
+ */
+public class UsagePartitionParser implements Callable<UsagePartitionParser> {
+    public static final Logger s_logger = Logger.getLogger(UsagePartitionParser.class.getName());
+
+    private final UsageParseCheckpointDao _checkpointDao;
+    private final long _jobId;
+    private final List<AccountVO> _accounts;
+    private final Date _startDate;
+    private final Date _endDate;
+    private final int _maxAttempts;
+    private UsageParseCheckpointVO _checkpoint;
+    private int _completedStages;
+
+    public UsagePartitionParser(UsageParseCheckpointDao checkpointDao, long jobId, List<AccountVO> accounts, Date startDate, Date endDate, int maxAttempts) {
+        _checkpointDao = checkpointDao;
+        _jobId = jobId;
+        _accounts = accounts;
+        _startDate = startDate;
+        _endDate = endDate;
+        _maxAttempts = maxAttempts;
+    }
+
+    /**
+     * Creates a parser for the stages a failed partition has not completed yet.
+     */
+    public UsagePartitionParser(UsageParseCheckpointDao checkpointDao, UsageParseCheckpointVO checkpoint, List<AccountVO> accounts, int maxAttempts) {
+        this(checkpointDao, checkpoint.getJobId(), accounts, checkpoint.getStartDate(), checkpoint.getEndDate(), maxAttempts);
+        _checkpoint = checkpoint;
+        _completedStages = checkpoint.getCompletedStages();
+    }
+
+    @Override
+    public UsagePartitionParser call() {
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug("Parsing usage for " + _accounts.size() + " accounts " + getFirstAccountId() + "-" + getLastAccountId() + " between " + _startDate + " and " + _endDate);
+        }
+        for (UsageParserStage stage : UsageParserStage.values()) {
+            if (stage.isCompleted(_completedStages)) {
+                continue;
+            }
+            for (int attempt = 1; attempt <= _maxAttempts; attempt++) {
+                if (parseStage(stage, attempt)) {
+                    _completedStages |= stage.getMask();
+                    break;
+                }
+            }
+        }
+
+        try {
+            saveCheckpoint();
+        } catch (Exception e) {
+            s_logger.error("Unable to save the checkpoint for accounts " + getFirstAccountId() + "-" + getLastAccountId() + " between " + _startDate + " and " + _endDate, e);
+        }
+        return this;
+    }
+
+    private boolean parseStage(UsageParserStage stage, int attempt) {
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            txn.start();
+            if (!stage.parse(_accounts, _startDate, _endDate)) {
+                txn.rollback();
+                s_logger.warn("Failed to parse " + stage.getDescription() + " for accounts " + getFirstAccountId() + "-" + getLastAccountId() + ", attempt " + attempt + " of " + _maxAttempts);
+                return false;
+            }
+            txn.commit();
+            return true;
+        } catch (Exception e) {
+            txn.rollback();
+            s_logger.warn("Failed to parse " + stage.getDescription() + " for accounts " + getFirstAccountId() + "-" + getLastAccountId() + ", attempt " + attempt + " of " + _maxAttempts, e);
+            return false;
+        } finally {
+            txn.close();
+        }
+    }
+
+    private void saveCheckpoint() {
+        if (_checkpoint == null && isCompleted()) {
+            return;
+        }
+
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            if (_checkpoint == null) {
+                _checkpoint = _checkpointDao.persist(new UsageParseCheckpointVO(_jobId, _startDate, _endDate, getFirstAccountId(), getLastAccountId(), _completedStages));
+                s_logger.warn("Saved checkpoint " + _checkpoint.getId() + " for accounts " + getFirstAccountId() + "-" + getLastAccountId() + " between " + _startDate + " and " + _endDate + " to be parsed by the next usage job");
+            } else if (isCompleted()) {
+                _checkpointDao.remove(_checkpoint.getId());
+                s_logger.info("Parsed the remaining stages of checkpoint " + _checkpoint.getId());
+            } else {
+                _checkpoint.setCompletedStages(_completedStages);
+                _checkpoint.setAttempts(_checkpoint.getAttempts() + 1);
+                _checkpointDao.update(_checkpoint.getId(), _checkpoint);
+                s_logger.warn("Checkpoint " + _checkpoint.getId() + " failed to parse again, attempts: " + _checkpoint.getAttempts());
+            }
+        } finally {
+            txn.close();
+        }
+    }
+
+    public boolean isCompleted() {
+        return _completedStages == UsageParserStage.allStages();
+    }
+
+    public int getCompletedStages() {
+        return _completedStages;
+    }
+
+    public int getNumAccounts() {
+        return _accounts.size();
+    }
+
+    public long getFirstAccountId() {
+        return _accounts.isEmpty() ? 0 : _accounts.get(0).getId();
+    }
+
+    public long getLastAccountId() {
+        return _accounts.isEmpty() ? 0 : _accounts.get(_accounts.size() - 1).getId();
+    }
+}
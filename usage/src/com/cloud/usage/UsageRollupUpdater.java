@@ -0,0 +1,179 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageRollupDao;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * Keeps the daily and monthly usage rollups up to date.  Usage records are
+ * added to the rollups in usage id order, in chunks that each commit with
+ * the id of the last record rolled up, so every record is counted once even
+ * if an update stops halfway.  Records are bucketed by their start date in
+ * the usage aggregation time zone.
+ *
+ * Updates must not run while a usage job is creating records, as records
+ * with lower ids could still be uncommitted.
+ */
+public class UsageRollupUpdater {
+    public static final Logger s_logger = Logger.getLogger(UsageRollupUpdater.class.getName());
+
+    private static final long ID_CHUNK_SIZE = 100000;
+
+    private final UsageDao _usageDao;
+    private final UsageRollupDao _rollupDao;
+    private final TimeZone _timezone;
+
+    public UsageRollupUpdater(UsageDao usageDao, UsageRollupDao rollupDao, TimeZone timezone) {
+        _usageDao = usageDao;
+        _rollupDao = rollupDao;
+        _timezone = timezone;
+    }
+
+    /**
+     * Adds the usage records created since the last update to the rollups.
+     * The first update rolls up all the existing records.
+     * @return number of usage records rolled up.
+     */
+    public long update() {
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            long lastId = _rollupDao.getLastRolledUpUsageId();
+            Long maxId = _usageDao.getLastUsageId();
+            if (maxId == null || maxId.longValue() <= lastId) {
+                return 0;
+            }
+
+            long numRecords = 0;
+            while (lastId < maxId.longValue()) {
+                long toId = Math.min(lastId + ID_CHUNK_SIZE, maxId.longValue());
+                txn.start();
+                Collection<UsageRollupVO> rollups = rollUp(_rollupDao.sumRecords(lastId, toId));
+                numRecords += addUsage(rollups);
+                _rollupDao.setLastRolledUpUsageId(toId);
+                txn.commit();
+                if (s_logger.isDebugEnabled()) {
+                    s_logger.debug("Rolled up usage records " + (lastId + 1) + "-" + toId + " into " + rollups.size() + " rollup rows");
+                }
+                lastId = toId;
+            }
+            return numRecords;
+        } finally {
+            txn.close();
+        }
+    }
+
+    /**
+     * Recomputes the rollups of the months in the range from the usage
+     * records already rolled up, e.g. after records were fixed up by hand.
+     * @return number of usage records rolled up.
+     */
+    public long rebuild(Date startDate, Date endDate) {
+        Calendar cal = Calendar.getInstance(_timezone);
+        cal.setTime(startDate);
+        truncate(cal, Calendar.DAY_OF_MONTH);
+        Date monthStart = cal.getTime();
+        cal.setTime(endDate);
+        truncate(cal, Calendar.DAY_OF_MONTH);
+        cal.add(Calendar.MONTH, 1);
+        Date monthEnd = cal.getTime();
+
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            txn.start();
+            long lastId = _rollupDao.getLastRolledUpUsageId();
+            Date lastSecond = new Date(monthEnd.getTime() - 1000);
+            _rollupDao.deleteRollups(UsageRollupVO.DAILY, monthStart, lastSecond);
+            _rollupDao.deleteRollups(UsageRollupVO.MONTHLY, monthStart, lastSecond);
+
+            // a day at a time to bound the number of sums held in memory
+            long numRecords = 0;
+            cal.setTime(monthStart);
+            while (cal.getTime().before(monthEnd)) {
+                Date dayStart = cal.getTime();
+                cal.add(Calendar.DAY_OF_MONTH, 1);
+                Date dayEnd = new Date(cal.getTimeInMillis() - 1000);
+                numRecords += addUsage(rollUp(_rollupDao.sumRecords(dayStart, dayEnd, null, null, null, 0, lastId)));
+            }
+            txn.commit();
+            return numRecords;
+        } finally {
+            txn.close();
+        }
+    }
+
+    private long addUsage(Collection<UsageRollupVO> rollups) {
+        long numRecords = 0;
+        for (UsageRollupVO rollup : rollups) {
+            if (UsageRollupVO.DAILY.equals(rollup.getGranularity())) {
+                numRecords += rollup.getNumRecords();
+            }
+        }
+        if (!rollups.isEmpty()) {
+            _rollupDao.addUsage(new ArrayList<UsageRollupVO>(rollups));
+        }
+        return numRecords;
+    }
+
+    /**
+     * Sums the usage per record start date into daily and monthly rollups.
+     */
+    Collection<UsageRollupVO> rollUp(List<UsageRollupVO> sums) {
+        Calendar cal = Calendar.getInstance(_timezone);
+        Map<String, UsageRollupVO> rollups = new HashMap<String, UsageRollupVO>();
+        for (UsageRollupVO sum : sums) {
+            cal.setTime(sum.getPeriodStart());
+            truncate(cal, Calendar.HOUR_OF_DAY);
+            addTo(rollups, UsageRollupVO.DAILY, cal.getTime(), sum);
+            cal.set(Calendar.DAY_OF_MONTH, 1);
+            addTo(rollups, UsageRollupVO.MONTHLY, cal.getTime(), sum);
+        }
+        return rollups.values();
+    }
+
+    private static void addTo(Map<String, UsageRollupVO> rollups, String granularity, Date periodStart, UsageRollupVO sum) {
+        String key = granularity + "-" + periodStart.getTime() + "-" + sum.getUsageKey();
+        UsageRollupVO rollup = rollups.get(key);
+        if (rollup == null) {
+            rollups.put(key, new UsageRollupVO(granularity, periodStart, sum.getAccountId(), sum.getDomainId(), sum.getZoneId(), sum.getUsageType(),
+                    sum.getOfferingId(), sum.getRawUsage(), sum.getNumRecords()));
+        } else {
+            rollup.add(sum.getRawUsage(), sum.getNumRecords());
+        }
+    }
+
+    /**
+     * Clears the given field and all the finer ones.
+     */
+    private static void truncate(Calendar cal, int field) {
+        if (field == Calendar.DAY_OF_MONTH) {
+            cal.set(Calendar.DAY_OF_MONTH, 1);
+        }
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+    }
+}
@@ -0,0 +1,146 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage.parser;
+
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.user.AccountVO;
+
+/**
+ * The usage parsers, in the order they are run for an account.  Each parser
+ * only reads its own helper table, so the stages of a partition of accounts
+ * can be committed and retried independently of each other.
+ */
+public enum UsageParserStage {
+    VM_INSTANCE("vm usage instances") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return VMInstanceUsageParser.parse(account, startDate, endDate);
+        }
+
+        @Override
+        public boolean parse(List<AccountVO> accounts, Date startDate, Date endDate) {
+            return VMInstanceUsageStreamParser.parse(accounts, startDate, endDate);
+        }
+    },
+    NETWORK("network usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return NetworkUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    VOLUME("volume usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return VolumeUsageParser.parse(account, startDate, endDate);
+        }
+
+        @Override
+        public boolean parse(List<AccountVO> accounts, Date startDate, Date endDate) {
+            return VolumeUsageStreamParser.parse(accounts, startDate, endDate);
+        }
+    },
+    STORAGE("storage usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return StorageUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    SECURITY_GROUP("Security Group usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return SecurityGroupUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    LOAD_BALANCER("load balancer usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return LoadBalancerUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    PORT_FORWARDING("port forwarding usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return PortForwardingUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    NETWORK_OFFERING("network offering usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return NetworkOfferingUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    IP_ADDRESS("IPAddress usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return IPAddressUsageParser.parse(account, startDate, endDate);
+        }
+    },
+    VPN_USER("VPN user usage") {
+        @Override
+        public boolean parse(AccountVO account, Date startDate, Date endDate) {
+            return VPNUserUsageParser.parse(account, startDate, endDate);
+        }
+    };
+
+    public static final Logger s_logger = Logger.getLogger(UsageParserStage.class.getName());
+
+    private final String _description;
+
+    private UsageParserStage(String description) {
+        _description = description;
+    }
+
+    public String getDescription() {
+        return _description;
+    }
+
+    public abstract boolean parse(AccountVO account, Date startDate, Date endDate);
+
+    /**
+     * Parses a partition of accounts sorted by id.  Stages whose helper table
+     * can be read in a single pass for the whole partition override this;
+     * the others parse one account at a time.
+     */
+    public boolean parse(List<AccountVO> accounts, Date startDate, Date endDate) {
+        boolean parsed = true;
+        for (AccountVO account : accounts) {
+            boolean accountParsed = parse(account, startDate, endDate);
+            if (s_logger.isDebugEnabled()) {
+                if (!accountParsed) {
+                    s_logger.debug(_description + " successfully parsed? " + accountParsed + " (for account: " + account.getAccountName() + ", id: " + account.getId() + ")");
+                }
+            }
+            parsed &= accountParsed;
+        }
+        return parsed;
+    }
+
+    public int getMask() {
+        return 1 << ordinal();
+    }
+
+    public boolean isCompleted(int completedStages) {
+        return (completedStages & getMask()) != 0;
+    }
+
+    /**
+     * @return the completed stages mask with every stage completed.
+     */
+    public static int allStages() {
+        return (1 << values().length) - 1;
+    }
+}
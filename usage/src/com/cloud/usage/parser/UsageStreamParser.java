@@ -0,0 +1,194 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage.parser;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+
+import org.apache.log4j.Logger;
+
+import com.cloud.exception.UsageServerException;
+import com.cloud.usage.UsageServer;
+import com.cloud.usage.UsageVO;
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.user.AccountVO;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.db.Transaction;
+import com.cloud.utils.exception.CloudRuntimeException;
+
+/**
+ * Parses one helper table for a partition of accounts in a single pass.
+ * Instead of a query per account that is loaded into maps keyed by strings,
+ * the helper rows of the whole account id range are read with one query
+ * ordered by the usage key.  The rows of a key are then next to each other, so
+ * only the usage of the current key is kept and a record is created as soon
+ * as the key changes.  Records are inserted in JDBC batches.
+ *
+ * The rows are streamed on a connection of their own, as a MySQL connection
+ * can't run the inserts while a streaming result set is open.  The helper
+ * rows are committed before the usage job starts parsing, so that connection
+ * sees the same rows as the parsing transaction.
+ */
+public abstract class UsageStreamParser {
+    public static final Logger s_logger = Logger.getLogger(UsageStreamParser.class.getName());
+
+    private static ComponentLocator _locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
+    private static UsageDao m_usageDao = _locator.getDao(UsageDao.class);
+
+    protected static final TimeZone s_gmtTimeZone = TimeZone.getTimeZone("GMT");
+    private static final int BATCH_SIZE = 500;
+
+    private final Map<Long, AccountVO> _accounts = new HashMap<Long, AccountVO>();
+    private final long _firstAccountId;
+    private final long _lastAccountId;
+    protected final Date _startDate;
+    protected final Date _endDate;
+    private final List<UsageVO> _records = new ArrayList<UsageVO>(BATCH_SIZE);
+    private long _numRows = 0;
+    private long _numRecords = 0;
+
+    /**
+     * @param accounts accounts sorted by id
+     */
+    protected UsageStreamParser(List<AccountVO> accounts, Date startDate, Date endDate) {
+        for (AccountVO account : accounts) {
+            _accounts.put(account.getId(), account);
+        }
+        _firstAccountId = accounts.isEmpty() ? 0 : accounts.get(0).getId();
+        _lastAccountId = accounts.isEmpty() ? -1 : accounts.get(accounts.size() - 1).getId();
+        _startDate = startDate;
+        if ((endDate == null) || endDate.after(new Date())) {
+            endDate = new Date();
+        }
+        _endDate = endDate;
+    }
+
+    /**
+     * @return select of the helper rows, with the first two parameters for the
+     * account id range, the other seven as in the per account queries, and
+     * ordered by account id and then by the usage key.
+     */
+    protected abstract String getSql();
+
+    /**
+     * Adds the row to the usage of the current key, calling createRecords()
+     * first if the row starts a new key.
+     */
+    protected abstract void processRow(ResultSet rs, AccountVO account) throws SQLException;
+
+    /**
+     * Creates the records of the current key, if any, and forgets it.
+     */
+    protected abstract void createRecords();
+
+    public boolean parse() {
+        if (_accounts.isEmpty()) {
+            return true;
+        }
+
+        Connection conn = Transaction.getStandaloneUsageConnection();
+        if (conn == null) {
+            throw new CloudRuntimeException("Unable to get a connection to the usage db");
+        }
+        try {
+            PreparedStatement pstmt = conn.prepareStatement(getSql(), ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            // makes the MySQL driver stream the rows instead of reading the whole result into memory
+            pstmt.setFetchSize(Integer.MIN_VALUE);
+            pstmt.setLong(1, _firstAccountId);
+            pstmt.setLong(2, _lastAccountId);
+            String startDate = DateUtil.getDateDisplayString(s_gmtTimeZone, _startDate);
+            String endDate = DateUtil.getDateDisplayString(s_gmtTimeZone, _endDate);
+            pstmt.setString(3, startDate);
+            pstmt.setString(4, endDate);
+            pstmt.setString(5, startDate);
+            pstmt.setString(6, endDate);
+            pstmt.setString(7, startDate);
+            pstmt.setString(8, endDate);
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                // rows of accounts that are not part of the partition, e.g. long deleted ones, are skipped
+                AccountVO account = _accounts.get(rs.getLong("account_id"));
+                if (account != null) {
+                    processRow(rs, account);
+                    _numRows++;
+                }
+            }
+            createRecords();
+            rs.close();
+            pstmt.close();
+        } catch (SQLException e) {
+            throw new CloudRuntimeException("Unable to read usage helper rows for accounts " + _firstAccountId + "-" + _lastAccountId, e);
+        } finally {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+            }
+        }
+        flush();
+
+        if (s_logger.isDebugEnabled()) {
+            s_logger.debug(getClass().getSimpleName() + " created " + _numRecords + " usage records from " + _numRows + " helper rows for accounts " + _firstAccountId + "-" + _lastAccountId);
+        }
+        return true;
+    }
+
+    protected Date parseDate(String date) {
+        return date == null ? null : DateUtil.parseDateString(s_gmtTimeZone, date);
+    }
+
+    /**
+     * @return the part of the aggregation range between the two dates, in milliseconds, like the per account parsers count it
+     */
+    protected long getDuration(Date start, Date end) {
+        if ((end == null) || end.after(_endDate)) {
+            end = _endDate;
+        }
+        if (start.before(_startDate)) {
+            start = _startDate;
+        }
+        return (end.getTime() - start.getTime()) + 1;
+    }
+
+    protected void addRecord(UsageVO usageRecord) {
+        _records.add(usageRecord);
+        _numRecords++;
+        if (_records.size() >= BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        if (_records.isEmpty()) {
+            return;
+        }
+        try {
+            m_usageDao.saveUsageRecords(_records);
+        } catch (UsageServerException e) {
+            throw new CloudRuntimeException("Unable to save usage records for accounts " + _firstAccountId + "-" + _lastAccountId, e);
+        }
+        _records.clear();
+    }
+
+    public long getNumRecords() {
+        return _numRecords;
+    }
+}
@@ -0,0 +1,93 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage.parser;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+import com.cloud.usage.UsageTypes;
+import com.cloud.user.AccountVO;
+
+/**
+ * Single pass version of VMInstanceUsageParser for a partition of accounts.
+ * The usage key is (vm, service offering, usage type).
+ */
+public class VMInstanceUsageStreamParser extends UsageStreamParser {
+    protected static final String GET_USAGE_RECORDS_BY_ACCOUNT_RANGE = "SELECT usage_type, zone_id, account_id, vm_instance_id, vm_name, service_offering_id, template_id, hypervisor_type, start_date, end_date " +
+                                                                       "FROM usage_vm_instance " +
+                                                                       "WHERE account_id BETWEEN ? AND ? AND ((end_date IS NULL) OR (start_date BETWEEN ? AND ?) OR " +
+                                                                       "      (end_date BETWEEN ? AND ?) OR ((start_date <= ?) AND (end_date >= ?))) " +
+                                                                       "ORDER BY account_id, vm_instance_id, service_offering_id, usage_type, start_date";
+
+    private AccountVO _account = null;
+    private long _vmId = -1;
+    private long _serviceOfferingId;
+    private int _usageType;
+    private String _vmName;
+    private long _zoneId;
+    private long _templateId;
+    private String _hypervisorType;
+    private long _duration;
+
+    public VMInstanceUsageStreamParser(List<AccountVO> accounts, Date startDate, Date endDate) {
+        super(accounts, startDate, endDate);
+    }
+
+    public static boolean parse(List<AccountVO> accounts, Date startDate, Date endDate) {
+        return new VMInstanceUsageStreamParser(accounts, startDate, endDate).parse();
+    }
+
+    @Override
+    protected String getSql() {
+        return GET_USAGE_RECORDS_BY_ACCOUNT_RANGE;
+    }
+
+    @Override
+    protected void processRow(ResultSet rs, AccountVO account) throws SQLException {
+        long vmId = rs.getLong("vm_instance_id");
+        long serviceOfferingId = rs.getLong("service_offering_id");
+        int usageType = rs.getInt("usage_type");
+        if ((account != _account) || (vmId != _vmId) || (serviceOfferingId != _serviceOfferingId) || (usageType != _usageType)) {
+            createRecords();
+            _account = account;
+            _vmId = vmId;
+            _serviceOfferingId = serviceOfferingId;
+            _usageType = usageType;
+            _vmName = rs.getString("vm_name");
+            _duration = 0;
+        }
+        // like the per account parser, the zone, template and hypervisor of the latest row are used
+        _zoneId = rs.getLong("zone_id");
+        _templateId = rs.getLong("template_id");
+        _hypervisorType = rs.getString("hypervisor_type");
+
+        switch (usageType) {
+        case UsageTypes.ALLOCATED_VM:
+        case UsageTypes.RUNNING_VM:
+            _duration += getDuration(parseDate(rs.getString("start_date")), parseDate(rs.getString("end_date")));
+            break;
+        }
+    }
+
+    @Override
+    protected void createRecords() {
+        // Only create a usage record if we have a runningTime of bigger than zero.
+        if ((_account != null) && (_duration > 0L)) {
+            addRecord(VMInstanceUsageParser.buildUsageRecord(_usageType, _duration, _startDate, _endDate, _account, _vmId, _vmName, _zoneId, _serviceOfferingId, _templateId, _hypervisorType));
+        }
+        _account = null;
+        _duration = 0;
+    }
+}
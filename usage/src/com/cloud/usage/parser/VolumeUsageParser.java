@@ -118,6 +118,10 @@ public class VolumeUsageParser {
 	}
 
 	private static void createUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long volId, long zoneId, Long doId, Long templateId, long size) {
+        m_usageDao.persist(buildUsageRecord(type, runningTime, startDate, endDate, account, volId, zoneId, doId, templateId, size));
+    }
+
+	static UsageVO buildUsageRecord(int type, long runningTime, Date startDate, Date endDate, AccountVO account, long volId, long zoneId, Long doId, Long templateId, long size) {
         // Our smallest increment is hourly for now
         if (s_logger.isDebugEnabled()) {
             s_logger.debug("Total running time " + runningTime + "ms");
@@ -141,9 +145,8 @@ public class VolumeUsageParser {
             usageDesc += " (DiskOffering: " +doId+ ")";
         } 
         
-        UsageVO usageRecord = new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type,
+        return new UsageVO(zoneId, account.getId(), account.getDomainId(), usageDesc, usageDisplay + " Hrs", type,
                 new Double(usage), null, null, doId, templateId, volId, size, startDate, endDate);
-        m_usageDao.persist(usageRecord);
     }
 
 	private static class VolInfo {
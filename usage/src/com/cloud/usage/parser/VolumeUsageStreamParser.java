@@ -0,0 +1,84 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage.parser;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+import com.cloud.usage.UsageTypes;
+import com.cloud.user.AccountVO;
+
+/**
+ * Single pass version of VolumeUsageParser for a partition of accounts.
+ * The usage key is the volume.
+ */
+public class VolumeUsageStreamParser extends UsageStreamParser {
+    protected static final String GET_USAGE_RECORDS_BY_ACCOUNT_RANGE = "SELECT id, zone_id, account_id, domain_id, disk_offering_id, template_id, size, created, deleted " +
+                                                                       "FROM usage_volume " +
+                                                                       "WHERE account_id BETWEEN ? AND ? AND ((deleted IS NULL) OR (created BETWEEN ? AND ?) OR " +
+                                                                       "      (deleted BETWEEN ? AND ?) OR ((created <= ?) AND (deleted >= ?))) " +
+                                                                       "ORDER BY account_id, id, created";
+
+    private AccountVO _account = null;
+    private long _volId = -1;
+    private long _zoneId;
+    private Long _diskOfferingId;
+    private Long _templateId;
+    private long _size;
+    private long _duration;
+
+    public VolumeUsageStreamParser(List<AccountVO> accounts, Date startDate, Date endDate) {
+        super(accounts, startDate, endDate);
+    }
+
+    public static boolean parse(List<AccountVO> accounts, Date startDate, Date endDate) {
+        return new VolumeUsageStreamParser(accounts, startDate, endDate).parse();
+    }
+
+    @Override
+    protected String getSql() {
+        return GET_USAGE_RECORDS_BY_ACCOUNT_RANGE;
+    }
+
+    @Override
+    protected void processRow(ResultSet rs, AccountVO account) throws SQLException {
+        long volId = rs.getLong("id");
+        if ((account != _account) || (volId != _volId)) {
+            createRecords();
+            _account = account;
+            _volId = volId;
+            _duration = 0;
+        }
+        // like the per account parser, the offering, template and size of the latest row are used
+        _zoneId = rs.getLong("zone_id");
+        long diskOfferingId = rs.getLong("disk_offering_id");
+        _diskOfferingId = diskOfferingId == 0 ? null : Long.valueOf(diskOfferingId);
+        long templateId = rs.getLong("template_id");
+        _templateId = templateId == 0 ? null : Long.valueOf(templateId);
+        _size = rs.getLong("size");
+
+        _duration += getDuration(parseDate(rs.getString("created")), parseDate(rs.getString("deleted")));
+    }
+
+    @Override
+    protected void createRecords() {
+        // Only create a usage record if we have a runningTime of bigger than zero.
+        if ((_account != null) && (_duration > 0L)) {
+            addRecord(VolumeUsageParser.buildUsageRecord(UsageTypes.VOLUME, _duration, _startDate, _endDate, _account, _volId, _zoneId, _diskOfferingId, _templateId, _size));
+        }
+        _account = null;
+        _duration = 0;
+    }
+}
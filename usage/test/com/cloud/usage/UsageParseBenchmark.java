@@ -0,0 +1,241 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+// 
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.cloud.usage.dao.UsageParseCheckpointDao;
+import com.cloud.usage.parser.UsageParserStage;
+import com.cloud.user.AccountVO;
+import com.cloud.user.dao.AccountDao;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.concurrency.NamedThreadFactory;
+import com.cloud.utils.db.Filter;
+import com.cloud.utils.db.SearchCriteria;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * Generates a usage data set in the cloud_usage db and parses one hour of it.
+ * The vm and volume stages are first run with the per account parsers and
+ * then with the single pass ones, on one thread, and must create the same
+ * records.  Then all the stages are parsed with one parser worker and with
+ * the given number of workers.  The throughput of every run is printed.  The
+ * generated rows use account ids starting at 1000000000 and are deleted
+ * when the benchmark ends.  Run it by hand against a scratch usage database,
+ * never against a production one.
+ *
+ * usage: UsageParseBenchmark [accounts] [vms per account] [workers] [partition size]
+ */
+public class UsageParseBenchmark {
+    private static final long BASE_ID = 1000000000L;
+
+    private final int _numAccounts;
+    private final int _vmsPerAccount;
+    private final long _lastAccountId;
+
+    public UsageParseBenchmark(int numAccounts, int vmsPerAccount) {
+        _numAccounts = numAccounts;
+        _vmsPerAccount = vmsPerAccount;
+        _lastAccountId = BASE_ID + numAccounts - 1;
+    }
+
+    private void generate(Connection conn, Date created) throws SQLException {
+        PreparedStatement accounts = conn.prepareStatement("INSERT INTO cloud_usage.account (id, account_name, type, domain_id, removed, cleanup_needed) VALUES (?, ?, 0, 1, NULL, 0)");
+        PreparedStatement vms = conn.prepareStatement("INSERT INTO cloud_usage.usage_vm_instance (usage_type, zone_id, account_id, vm_instance_id, vm_name, service_offering_id, template_id, hypervisor_type, start_date, end_date) " +
+                "VALUES (?, 1, ?, ?, ?, 1, 1, 'KVM', ?, NULL)");
+        PreparedStatement volumes = conn.prepareStatement("INSERT INTO cloud_usage.usage_volume (id, zone_id, account_id, domain_id, disk_offering_id, template_id, size, created, deleted) VALUES (?, 1, ?, 1, 1, NULL, 10737418240, ?, NULL)");
+        for (int i = 0; i < _numAccounts; i++) {
+            long accountId = BASE_ID + i;
+            accounts.setLong(1, accountId);
+            accounts.setString(2, "usage-benchmark-" + i);
+            accounts.addBatch();
+            for (int j = 0; j < _vmsPerAccount; j++) {
+                long vmId = BASE_ID + ((long)i * _vmsPerAccount) + j;
+                for (int usageType : new int[] { UsageTypes.RUNNING_VM, UsageTypes.ALLOCATED_VM }) {
+                    vms.setInt(1, usageType);
+                    vms.setLong(2, accountId);
+                    vms.setLong(3, vmId);
+                    vms.setString(4, "i-" + vmId);
+                    vms.setTimestamp(5, new Timestamp(created.getTime()));
+                    vms.addBatch();
+                }
+                volumes.setLong(1, vmId);
+                volumes.setLong(2, accountId);
+                volumes.setTimestamp(3, new Timestamp(created.getTime()));
+                volumes.addBatch();
+            }
+            if (i % 500 == 499) {
+                accounts.executeBatch();
+                vms.executeBatch();
+                volumes.executeBatch();
+            }
+        }
+        accounts.executeBatch();
+        vms.executeBatch();
+        volumes.executeBatch();
+    }
+
+    private void deleteRecords(Connection conn) throws SQLException {
+        execute(conn, "DELETE FROM cloud_usage.cloud_usage WHERE account_id BETWEEN ? AND ?");
+    }
+
+    private void cleanup(Connection conn) throws SQLException {
+        deleteRecords(conn);
+        execute(conn, "DELETE FROM cloud_usage.usage_parse_checkpoint WHERE first_account_id BETWEEN ? AND ?");
+        execute(conn, "DELETE FROM cloud_usage.usage_volume WHERE account_id BETWEEN ? AND ?");
+        execute(conn, "DELETE FROM cloud_usage.usage_vm_instance WHERE account_id BETWEEN ? AND ?");
+        execute(conn, "DELETE FROM cloud_usage.account WHERE id BETWEEN ? AND ?");
+    }
+
+    private void execute(Connection conn, String sql) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement(sql);
+        pstmt.setLong(1, BASE_ID);
+        pstmt.setLong(2, _lastAccountId);
+        pstmt.executeUpdate();
+        pstmt.close();
+    }
+
+    private long countRecords(Connection conn) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement("SELECT count(*) FROM cloud_usage.cloud_usage WHERE account_id BETWEEN ? AND ?");
+        pstmt.setLong(1, BASE_ID);
+        pstmt.setLong(2, _lastAccountId);
+        ResultSet rs = pstmt.executeQuery();
+        long count = rs.next() ? rs.getLong(1) : 0;
+        pstmt.close();
+        return count;
+    }
+
+    private String sumRecords(Connection conn) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement("SELECT usage_type, count(*), sum(raw_usage) FROM cloud_usage.cloud_usage WHERE account_id BETWEEN ? AND ? GROUP BY usage_type ORDER BY usage_type");
+        pstmt.setLong(1, BASE_ID);
+        pstmt.setLong(2, _lastAccountId);
+        ResultSet rs = pstmt.executeQuery();
+        StringBuilder sums = new StringBuilder();
+        while (rs.next()) {
+            sums.append(" type ").append(rs.getInt(1)).append(": ").append(rs.getLong(2)).append(" records, ").append(rs.getDouble(3)).append(" hrs");
+        }
+        pstmt.close();
+        return sums.toString();
+    }
+
+    private String compareStages(Connection conn, List<AccountVO> accounts, Date startDate, Date endDate, int partitionSize, boolean singlePass) throws Exception {
+        deleteRecords(conn);
+
+        System.gc();
+        long heapBefore = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        long start = System.currentTimeMillis();
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            for (UsageParserStage stage : new UsageParserStage[] { UsageParserStage.VM_INSTANCE, UsageParserStage.VOLUME }) {
+                for (int i = 0; i < accounts.size(); i += partitionSize) {
+                    List<AccountVO> partition = accounts.subList(i, Math.min(i + partitionSize, accounts.size()));
+                    txn.start();
+                    if (singlePass) {
+                        stage.parse(partition, startDate, endDate);
+                    } else {
+                        for (AccountVO account : partition) {
+                            stage.parse(account, startDate, endDate);
+                        }
+                    }
+                    txn.commit();
+                }
+            }
+        } finally {
+            txn.close();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        long heapAfter = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+
+        long records = countRecords(conn);
+        System.out.println((singlePass ? "single pass" : "per account") + " vm and volume stages: " + records + " records in " + elapsed + "ms, "
+                + (records * 1000L / elapsed) + " records/s, heap grew " + ((heapAfter - heapBefore) / 1024 / 1024) + "MB");
+        return sumRecords(conn);
+    }
+
+    private List<AccountVO> listAccounts(AccountDao accountDao) {
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            SearchCriteria<AccountVO> sc = accountDao.createSearchCriteria();
+            sc.addAnd("id", SearchCriteria.Op.BETWEEN, BASE_ID, _lastAccountId);
+            return accountDao.searchIncludingRemoved(sc, new Filter(AccountVO.class, "id", true, null, null), null, false);
+        } finally {
+            txn.close();
+        }
+    }
+
+    private void run(Connection conn, List<AccountVO> accounts, UsageParseCheckpointDao checkpointDao, Date startDate, Date endDate, int workers, int partitionSize) throws Exception {
+        deleteRecords(conn);
+
+        List<UsagePartitionParser> partitions = new ArrayList<UsagePartitionParser>();
+        for (int i = 0; i < accounts.size(); i += partitionSize) {
+            partitions.add(new UsagePartitionParser(checkpointDao, 0, accounts.subList(i, Math.min(i + partitionSize, accounts.size())), startDate, endDate, 1));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new NamedThreadFactory("Usage-Benchmark"));
+        long start = System.currentTimeMillis();
+        try {
+            executor.invokeAll(partitions);
+        } finally {
+            executor.shutdown();
+        }
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+        long records = countRecords(conn);
+        System.out.println(workers + " workers: " + accounts.size() + " accounts and " + records + " records in " + elapsed + "ms, "
+                + (accounts.size() * 1000L / elapsed) + " accounts/s, " + (records * 1000L / elapsed) + " records/s");
+    }
+
+    public static void main(String args[]) throws Exception {
+        int numAccounts = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int vmsPerAccount = args.length > 1 ? Integer.parseInt(args[1]) : 2;
+        int workers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int partitionSize = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+
+        ComponentLocator locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
+        AccountDao accountDao = locator.getDao(AccountDao.class);
+        UsageParseCheckpointDao checkpointDao = locator.getDao(UsageParseCheckpointDao.class);
+
+        long now = System.currentTimeMillis();
+        Date endDate = new Date(now - 60 * 60 * 1000L);
+        Date startDate = new Date(endDate.getTime() - 60 * 60 * 1000L + 1);
+
+        UsageParseBenchmark benchmark = new UsageParseBenchmark(numAccounts, vmsPerAccount);
+        Connection conn = Transaction.getStandaloneUsageConnection();
+        try {
+            benchmark.cleanup(conn);
+            benchmark.generate(conn, new Date(startDate.getTime() - 24 * 60 * 60 * 1000L));
+            List<AccountVO> accounts = benchmark.listAccounts(accountDao);
+
+            String perAccount = benchmark.compareStages(conn, accounts, startDate, endDate, partitionSize, false);
+            String singlePass = benchmark.compareStages(conn, accounts, startDate, endDate, partitionSize, true);
+            if (!perAccount.equals(singlePass)) {
+                System.out.println("Records differ, per account:" + perAccount + ", single pass:" + singlePass);
+            }
+
+            benchmark.run(conn, accounts, checkpointDao, startDate, endDate, 1, partitionSize);
+            benchmark.run(conn, accounts, checkpointDao, startDate, endDate, workers, partitionSize);
+        } finally {
+            benchmark.cleanup(conn);
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,210 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.usage;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+import com.cloud.usage.dao.UsageDao;
+import com.cloud.usage.dao.UsageRollupDao;
+import com.cloud.utils.DateUtil;
+import com.cloud.utils.component.ComponentLocator;
+import com.cloud.utils.db.Transaction;
+
+/**
+ * Generates hourly usage records in the cloud_usage db, rolls them up and
+ * times the queries behind listUsageRecords for one month of usage: paging
+ * through the records the way a billing client has to without rollup=true,
+ * and summing them with rollup=true.  Run it by hand against a scratch usage
+ * database with no usage server running against it; it refuses to start if
+ * cloud_usage or usage_rollup already hold rows.  The generated records and
+ * rollups are deleted and the rollup watermark is reset when it ends.
+ *
+ * usage: UsageRollupBenchmark [records] [accounts] [days] [page size]
+ */
+public class UsageRollupBenchmark {
+    private static final long BASE_ID = 1000000000L;
+    private static final int BATCH_SIZE = 1000;
+    private static final int COMMIT_SIZE = 50000;
+    private static final int[] USAGE_TYPES = { UsageTypes.RUNNING_VM, UsageTypes.ALLOCATED_VM, UsageTypes.VOLUME, UsageTypes.IP_ADDRESS };
+    private static final TimeZone s_gmt = TimeZone.getTimeZone("GMT");
+
+    private final long _numRecords;
+    private final int _numAccounts;
+    private final int _numHours;
+    private final long _pageSize;
+
+    public UsageRollupBenchmark(long numRecords, int numAccounts, int numDays, long pageSize) {
+        _numRecords = numRecords;
+        _numAccounts = numAccounts;
+        _numHours = numDays * 24;
+        _pageSize = pageSize;
+    }
+
+    private static long count(Connection conn, String table) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement("SELECT count(*) FROM cloud_usage." + table);
+        ResultSet rs = pstmt.executeQuery();
+        long count = rs.next() ? rs.getLong(1) : 0;
+        pstmt.close();
+        return count;
+    }
+
+    private void generate(Connection conn, Date firstHour) throws SQLException {
+        conn.setAutoCommit(false);
+        PreparedStatement pstmt = conn.prepareStatement("INSERT INTO cloud_usage.cloud_usage (zone_id, account_id, domain_id, description, usage_display, usage_type, raw_usage, offering_id, usage_id, start_date, end_date) " +
+                "VALUES (1, ?, 1, 'usage rollup benchmark', '1 Hrs', ?, 1, ?, ?, ?, ?)");
+        long start = System.currentTimeMillis();
+        for (long i = 0; i < _numRecords; i++) {
+            long hour = i * _numHours / _numRecords;
+            Date startDate = new Date(firstHour.getTime() + hour * 60 * 60 * 1000L);
+            int usageType = USAGE_TYPES[(int)((i / _numAccounts) % USAGE_TYPES.length)];
+            pstmt.setLong(1, BASE_ID + (i % _numAccounts));
+            pstmt.setInt(2, usageType);
+            if (usageType == UsageTypes.IP_ADDRESS) {
+                pstmt.setNull(3, Types.BIGINT);
+            } else {
+                pstmt.setLong(3, 1 + (i % 3));
+            }
+            pstmt.setLong(4, i);
+            pstmt.setString(5, DateUtil.getDateDisplayString(s_gmt, startDate));
+            pstmt.setString(6, DateUtil.getDateDisplayString(s_gmt, new Date(startDate.getTime() + 60 * 60 * 1000L - 1000)));
+            pstmt.addBatch();
+            if ((i + 1) % BATCH_SIZE == 0) {
+                pstmt.executeBatch();
+            }
+            if ((i + 1) % COMMIT_SIZE == 0) {
+                conn.commit();
+            }
+        }
+        pstmt.executeBatch();
+        conn.commit();
+        pstmt.close();
+        conn.setAutoCommit(true);
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        System.out.println("Generated " + _numRecords + " usage records for " + _numAccounts + " accounts in " + elapsed + "ms");
+    }
+
+    private void cleanup(Connection conn, UsageRollupDao rollupDao) throws SQLException {
+        PreparedStatement pstmt = conn.prepareStatement("DELETE FROM cloud_usage.cloud_usage WHERE account_id >= ?");
+        pstmt.setLong(1, BASE_ID);
+        pstmt.executeUpdate();
+        pstmt.close();
+        pstmt = conn.prepareStatement("DELETE FROM cloud_usage.usage_rollup WHERE account_id >= ?");
+        pstmt.setLong(1, BASE_ID);
+        pstmt.executeUpdate();
+        pstmt.close();
+
+        // the db started empty, nothing is rolled up any more
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            rollupDao.setLastRolledUpUsageId(0);
+        } finally {
+            txn.close();
+        }
+    }
+
+    /**
+     * Times one month of listUsageRecords for an account or for all of them.
+     * Without rollup=true the records come a page at a time; all the pages
+     * are fetched for one account, only the first for all accounts.
+     */
+    private void query(UsageRecordsQuery usageQuery, Date monthStart, Date monthEnd, Long accountId) {
+        String target = (accountId != null) ? "account " + accountId : "all accounts";
+        Transaction txn = Transaction.open(Transaction.USAGE_DB);
+        try {
+            long start = System.currentTimeMillis();
+            List<UsageVO> page = usageQuery.listRecords(monthStart, monthEnd, accountId, null, null, 0L, _pageSize);
+            long firstPage = System.currentTimeMillis() - start;
+            long records = page.size();
+            int pages = 1;
+            while (accountId != null && page.size() == _pageSize) {
+                page = usageQuery.listRecords(monthStart, monthEnd, accountId, null, null, records, _pageSize);
+                records += page.size();
+                pages++;
+            }
+            long allPages = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            List<UsageVO> sums = usageQuery.sumRecords(monthStart, monthEnd, accountId, null, null, null, null);
+            long rollup = System.currentTimeMillis() - start;
+
+            StringBuilder sb = new StringBuilder("One month of listUsageRecords for " + target + ": first page of " + _pageSize + " records in " + firstPage + "ms");
+            if (accountId != null) {
+                sb.append(", all " + records + " records in " + pages + " pages in " + allPages + "ms");
+            }
+            sb.append("; rollup=true: " + sums.size() + " sums in " + rollup + "ms");
+            System.out.println(sb.toString());
+        } finally {
+            txn.close();
+        }
+    }
+
+    public static void main(String args[]) throws Exception {
+        long numRecords = args.length > 0 ? Long.parseLong(args[0]) : 50000000L;
+        int numAccounts = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        int numDays = args.length > 2 ? Integer.parseInt(args[2]) : 90;
+        long pageSize = args.length > 3 ? Long.parseLong(args[3]) : 500;
+
+        ComponentLocator locator = ComponentLocator.getLocator(UsageServer.Name, "usage-components.xml", "log4j-cloud_usage");
+        UsageDao usageDao = locator.getDao(UsageDao.class);
+        UsageRollupDao rollupDao = locator.getDao(UsageRollupDao.class);
+        UsageRollupUpdater updater = new UsageRollupUpdater(usageDao, rollupDao, s_gmt);
+        UsageRecordsQuery usageQuery = new UsageRecordsQuery(usageDao, rollupDao, s_gmt);
+
+        // starts on the first of a month so the second month is a whole one
+        Calendar cal = Calendar.getInstance(s_gmt);
+        cal.add(Calendar.DAY_OF_MONTH, -numDays);
+        cal.set(Calendar.DAY_OF_MONTH, 1);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        Date firstHour = cal.getTime();
+        cal.add(Calendar.MONTH, 1);
+        Date monthStart = cal.getTime();
+        cal.add(Calendar.MONTH, 1);
+        Date monthEnd = new Date(cal.getTimeInMillis() - 1000);
+
+        UsageRollupBenchmark benchmark = new UsageRollupBenchmark(numRecords, numAccounts, numDays, pageSize);
+        Connection conn = Transaction.getStandaloneUsageConnection();
+        try {
+            if (count(conn, "cloud_usage") > 0 || count(conn, "usage_rollup") > 0) {
+                System.out.println("cloud_usage or usage_rollup is not empty, run the benchmark against a scratch usage database");
+                System.exit(1);
+            }
+            try {
+                benchmark.generate(conn, firstHour);
+
+                long start = System.currentTimeMillis();
+                long rolledUp = updater.update();
+                long elapsed = Math.max(1, System.currentTimeMillis() - start);
+                System.out.println("Rolled up " + rolledUp + " usage records in " + elapsed + "ms, " + (rolledUp * 1000 / elapsed) + " records/s");
+
+                benchmark.query(usageQuery, monthStart, monthEnd, BASE_ID);
+                benchmark.query(usageQuery, monthStart, monthEnd, null);
+            } finally {
+                benchmark.cleanup(conn, rollupDao);
+            }
+        } finally {
+            conn.close();
+        }
+        System.exit(0);
+    }
+}
@@ -0,0 +1,111 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.utils;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A size bounded cache that evicts the least recently used entry.  Entries
+ * can also be given a time to live after which they are not returned.
+ * All methods are synchronized so the cache can be shared between threads.
+ */
+public class LRUCache<K, V> {
+    private final LinkedHashMap<K, CacheEntry<V>> _map;
+    private final long _ttl;
+    private long _hits;
+    private long _misses;
+
+    /**
+     * @param maxSize max number of entries
+     * @param ttl milliseconds an entry stays valid; 0 means until evicted.
+     */
+    public LRUCache(final int maxSize, long ttl) {
+        _ttl = ttl;
+        _map = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    public synchronized V get(K key) {
+        CacheEntry<V> entry = _map.get(key);
+        if (entry == null) {
+            _misses++;
+            return null;
+        }
+        if (_ttl > 0 && System.currentTimeMillis() - entry.created > _ttl) {
+            _map.remove(key);
+            _misses++;
+            return null;
+        }
+        _hits++;
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        _map.put(key, new CacheEntry<V>(value));
+    }
+
+    public synchronized V remove(K key) {
+        CacheEntry<V> entry = _map.remove(key);
+        return entry != null ? entry.value : null;
+    }
+
+    /**
+     * Removes every entry whose value matches.
+     * @return number of entries removed.
+     */
+    public synchronized int removeValue(V value) {
+        int count = 0;
+        Iterator<CacheEntry<V>> it = _map.values().iterator();
+        while (it.hasNext()) {
+            if (value.equals(it.next().value)) {
+                it.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized void clear() {
+        _map.clear();
+    }
+
+    public synchronized int size() {
+        return _map.size();
+    }
+
+    public synchronized long getHits() {
+        return _hits;
+    }
+
+    public synchronized long getMisses() {
+        return _misses;
+    }
+
+    private static class CacheEntry<V> {
+        final V value;
+        final long created;
+
+        CacheEntry(V value) {
+            this.value = value;
+            this.created = System.currentTimeMillis();
+        }
+    }
+}
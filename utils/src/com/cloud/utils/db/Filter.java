@@ -33,6 +33,9 @@ public class Filter {
     Long _offset;
     Long _limit;
     String _orderBy;
+    String _seekColumn;
+    boolean _seekAscending;
+    Long _seekAfter;
     
     /**
      * @param clazz the VO object type
@@ -57,6 +60,9 @@ public class Filter {
      */
     public Filter(Filter that) {
         this._orderBy = that._orderBy;
+        this._seekColumn = that._seekColumn;
+        this._seekAscending = that._seekAscending;
+        this._seekAfter = that._seekAfter;
         this._limit = null;
         that._limit = null;
     }
@@ -65,6 +71,54 @@ public class Filter {
         if (field == null) {
             return;
         }
+        StringBuilder order = new StringBuilder(getColumnName(clazz, field));
+        order.append(ascending ? " ASC " : " DESC ");
+        
+        if (_orderBy == null) {
+            _orderBy = order.insert(0, " ORDER BY ").toString();
+        } else {
+            _orderBy = order.insert(0, _orderBy).toString();
+        }
+    }
+    
+    /**
+     * Switches this filter to keyset (seek) paging.  Instead of skipping
+     * offset rows, the query continues right after the row whose key is
+     * afterValue.  The key must be unique and indexed, which in practice
+     * means the id.  The result is ordered by the key only, any other
+     * order by is dropped, and the offset is reset so that the limit
+     * becomes a plain LIMIT on an index range scan.
+     * 
+     * @param clazz the VO object type
+     * @param field name of the key field
+     * @param ascending direction to page in
+     * @param afterValue key of the last row of the previous page; null starts from the first row.
+     */
+    public void addSeek(Class<?> clazz, String field, boolean ascending, Long afterValue) {
+        _seekColumn = getColumnName(clazz, field);
+        _seekAscending = ascending;
+        _seekAfter = afterValue;
+        _orderBy = " ORDER BY " + _seekColumn + (ascending ? " ASC " : " DESC ");
+        if (_limit != null) {
+            _offset = 0L;
+        }
+    }
+    
+    /**
+     * @return the where condition to continue a keyset paged search; null if this is not a keyset paged filter.
+     */
+    public String getSeekClause() {
+        if (_seekColumn == null || _seekAfter == null) {
+            return null;
+        }
+        return _seekColumn + (_seekAscending ? " > " : " < ") + _seekAfter;
+    }
+    
+    public boolean isSeek() {
+        return _seekColumn != null;
+    }
+    
+    protected static String getColumnName(Class<?> clazz, String field) {
         Field f;
         Pair<Class<?>, Field> pair = ReflectUtil.getAnyField(clazz, field);
         assert(pair != null) : "Can't find field " + field + " in " + clazz.getName();
@@ -74,19 +128,13 @@ public class Filter {
         Column column = f.getAnnotation(Column.class);
         String name = column != null ? column.name() : field;
         
-        StringBuilder order = new StringBuilder();
-        if (column.table() == null || column.table().length() == 0) {
-            order.append(DbUtil.getTableName(clazz));
+        StringBuilder sb = new StringBuilder();
+        if (column == null || column.table() == null || column.table().length() == 0) {
+            sb.append(DbUtil.getTableName(clazz));
         } else {
-            order.append(column.table());
-        }
-        order.append(".").append(name).append(ascending ? " ASC " : " DESC ");
-        
-        if (_orderBy == null) {
-            _orderBy = order.insert(0, " ORDER BY ").toString();
-        } else {
-            _orderBy = order.insert(0, _orderBy).toString();
+            sb.append(column.table());
         }
+        return sb.append(".").append(name).toString();
     }
     
     public String getOrderBy() {
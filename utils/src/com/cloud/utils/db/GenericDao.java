@@ -161,6 +161,16 @@ public interface GenericDao<T, ID extends Serializable> {
     List<T> searchIncludingRemoved(SearchCriteria<T> sc, final Filter filter, final Boolean lock, final boolean cache, final boolean enable_query_cache);
     
     
+    /**
+     * Estimates how many rows the search would return from the optimizer's
+     * query plan instead of running a COUNT over the table.  The number is
+     * only a hint; use it where an exact count is too expensive, such as
+     * for the total of a paged list.
+     * @param sc search criteria; rows that are removed are not counted.
+     * @return estimated number of matching rows.
+     */
+    Integer getEstimatedCount(SearchCriteria<T> sc);
+    
     /**
      * Customized search with SearchCritiria
      * @param sc
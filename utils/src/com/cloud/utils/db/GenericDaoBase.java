@@ -359,6 +359,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
         }
 
+        addSeek(str, filter);
         List<Object> groupByValues = addGroupBy(str, sc);
         addFilter(str, filter);
 
@@ -406,6 +407,63 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         }
     }
 
+    @Override @DB(txn=false)
+    public Integer getEstimatedCount(SearchCriteria<T> sc) {
+        String clause = sc != null ? sc.getWhereClause() : null;
+        if (clause != null && clause.length() == 0) {
+            clause = null;
+        }
+        // removed rows are left out in the sql only, the caller may go on to search with sc
+        if (_removed != null) {
+            clause = (clause != null) ? "(" + clause + ") AND " + _removed.first() : _removed.first();
+        }
+
+        final StringBuilder str = createPartialSelectSql(sc, clause != null);
+        if (clause != null) {
+            str.append(clause);
+        }
+
+        Collection<JoinBuilder<SearchCriteria<?>>> joins = null;
+        if (sc != null) {
+            joins = sc.getJoins();
+            if (joins != null) {
+                addJoins(str, joins);
+            }
+        }
+        str.insert(0, "EXPLAIN ");
+
+        final Transaction txn = Transaction.currentTxn();
+        PreparedStatement pstmt = null;
+        try {
+            pstmt = txn.prepareAutoCloseStatement(str.toString());
+            int i = 0;
+            if (sc != null) {
+                for (final Pair<Attribute, Object> value : sc.getValues()) {
+                    prepareAttribute(++i, pstmt, value.first(), value.second());
+                }
+            }
+
+            if (joins != null) {
+                i = addJoinAttributes(i, pstmt, joins);
+            }
+
+            // The optimizer reports the rows it expects to examine per table in the plan.
+            // For the table this dao is for, that is a good enough guess of the result size.
+            Integer estimate = null;
+            ResultSet rs = pstmt.executeQuery();
+            while (rs.next()) {
+                if (estimate == null || _table.equals(rs.getString("table"))) {
+                    estimate = rs.getInt("rows");
+                }
+            }
+            return estimate != null ? estimate : 0;
+        } catch (final SQLException e) {
+            throw new CloudRuntimeException("DB Exception on: " + pstmt, e);
+        } catch (final Throwable e) {
+            throw new CloudRuntimeException("Caught: " + pstmt, e);
+        }
+    }
+
     @Override @SuppressWarnings("unchecked")
     public <M> List<M> customSearchIncludingRemoved(SearchCriteria<M> sc, final Filter filter) {
         String clause = sc != null ? sc.getWhereClause() : null;
@@ -426,6 +484,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
             }
         }
 
+        addSeek(str, filter);
         List<Object> groupByValues = addGroupBy(str, sc);
         addFilter(str, filter);
 
@@ -1014,6 +1073,14 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
         }
     }
 
+    @DB(txn=false)
+    protected void addSeek(final StringBuilder sql, final Filter filter) {
+        String seek = filter != null ? filter.getSeekClause() : null;
+        if (seek != null) {
+            sql.append(sql.lastIndexOf("WHERE") == -1 ? " WHERE " : " AND ").append(seek);
+        }
+    }
+
     @DB(txn=false)
     protected void addFilter(final StringBuilder sql, final Filter filter) {
         if (filter != null) {
@@ -1033,6 +1100,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
     @Override @DB(txn=false)
     public List<T> listAllIncludingRemoved(final Filter filter) {
         final StringBuilder sql = createPartialSelectSql(null, false);
+        addSeek(sql, filter);
         addFilter(sql, filter);
 
         return executeList(sql.toString());
@@ -1074,6 +1142,7 @@ public abstract class GenericDaoBase<T, ID extends Serializable> implements Gene
 
         final StringBuilder sql = createPartialSelectSql(null, true);
         sql.append(_removed.first());
+        addSeek(sql, filter);
         addFilter(sql, filter);
 
         return executeList(sql.toString());
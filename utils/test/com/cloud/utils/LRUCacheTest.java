@@ -0,0 +1,53 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.utils;
+
+import junit.framework.TestCase;
+
+public class LRUCacheTest extends TestCase {
+
+    public void testEvictsLeastRecentlyUsed() {
+        LRUCache<String, Integer> cache = new LRUCache<String, Integer>(2, 0);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        cache.put("c", 3);
+
+        assertNull(cache.get("b"));
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertEquals(Integer.valueOf(3), cache.get("c"));
+        assertEquals(2, cache.size());
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    public void testEntriesExpire() throws Exception {
+        LRUCache<String, Integer> cache = new LRUCache<String, Integer>(10, 50);
+        cache.put("a", 1);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        Thread.sleep(100);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    public void testRemoveValue() {
+        LRUCache<String, Integer> cache = new LRUCache<String, Integer>(10, 0);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        cache.put("c", 1);
+        assertEquals(2, cache.removeValue(1));
+        assertEquals(1, cache.size());
+        cache.clear();
+        assertNull(cache.get("b"));
+    }
+}
@@ -0,0 +1,72 @@
+// Copyright 2012 Citrix Systems, Inc. Licensed under the
+// Apache License, Version 2.0 (the "License"); you may not use this
+// file except in compliance with the License.  Citrix Systems, Inc.
+// reserves all rights not expressly granted by the License.
+// You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+//
+// Automatically generated by addcopyright.py at 04/03/2012
+package com.cloud.utils.db;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import junit.framework.TestCase;
+
+public class FilterTest extends TestCase {
+
+    @Entity
+    @Table(name="seek_test")
+    static class SeekTestVO {
+        @Id
+        @Column(name="id")
+        long id;
+
+        @Column(name="created")
+        long created;
+    }
+
+    public void testOffsetFilter() {
+        Filter filter = new Filter(SeekTestVO.class, "created", false, 40L, 20L);
+        assertEquals(" ORDER BY seek_test.created DESC ", filter.getOrderBy());
+        assertEquals(Long.valueOf(40), filter.getOffset());
+        assertFalse(filter.isSeek());
+        assertNull(filter.getSeekClause());
+    }
+
+    public void testSeekReplacesOrderAndOffset() {
+        Filter filter = new Filter(SeekTestVO.class, "created", false, 40L, 20L);
+        filter.addSeek(SeekTestVO.class, "id", false, 1234L);
+        assertTrue(filter.isSeek());
+        assertEquals(" ORDER BY seek_test.id DESC ", filter.getOrderBy());
+        assertEquals(Long.valueOf(0), filter.getOffset());
+        assertEquals(Long.valueOf(20), filter.getLimit());
+        assertEquals("seek_test.id < 1234", filter.getSeekClause());
+    }
+
+    public void testSeekFirstPage() {
+        Filter filter = new Filter(SeekTestVO.class, "id", true, 0L, 20L);
+        filter.addSeek(SeekTestVO.class, "id", true, null);
+        assertTrue(filter.isSeek());
+        assertNull(filter.getSeekClause());
+
+        filter.addSeek(SeekTestVO.class, "id", true, 99L);
+        assertEquals("seek_test.id > 99", filter.getSeekClause());
+    }
+
+    public void testCopyKeepsSeek() {
+        Filter filter = new Filter(SeekTestVO.class, "created", false, 40L, 20L);
+        filter.addSeek(SeekTestVO.class, "id", false, 1234L);
+
+        Filter copy = new Filter(filter);
+        assertTrue(copy.isSeek());
+        assertEquals(" ORDER BY seek_test.id DESC ", copy.getOrderBy());
+        assertEquals("seek_test.id < 1234", copy.getSeekClause());
+    }
+}